@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.benchmark;
+
+import com.evolveum.midpoint.prism.Item;
+import com.evolveum.midpoint.prism.ItemDefinition;
+import com.evolveum.midpoint.prism.PrismContext;
+import com.evolveum.midpoint.prism.PrismObject;
+import com.evolveum.midpoint.prism.PrismValue;
+import com.evolveum.midpoint.prism.path.ItemPath;
+import com.evolveum.midpoint.util.exception.SchemaException;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ObjectType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.RoleType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ShadowType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.UserType;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import javax.xml.namespace.QName;
+
+/**
+ * Common parameters and helper methods for benchmarks working with fixture objects.
+ *
+ * Type of the object and size of its main multi-valued item (assignments, inducements
+ * or attribute values) are benchmark parameters, so each benchmark is run for all combinations.
+ *
+ * @author agent
+ */
+@State(Scope.Benchmark)
+public abstract class AbstractFixtureBenchmark {
+
+    private static final QName ATTR_MEMBER_OF = new QName("http://midpoint.evolveum.com/xml/ns/public/resource/instance-3", "memberOf");
+
+    @Param({ BenchmarkFixtures.TYPE_USER, BenchmarkFixtures.TYPE_ROLE, BenchmarkFixtures.TYPE_SHADOW })
+    public String type;
+
+    @Param({ "10", "100" })
+    public int size;
+
+    protected PrismContext prismContext;
+
+    protected void initialize() {
+        prismContext = BenchmarkFixtures.getPrismContext();
+    }
+
+    protected PrismObject<ObjectType> parseFixture() throws SchemaException {
+        return prismContext.parseObject(BenchmarkFixtures.createXml(type, size), PrismContext.LANG_XML);
+    }
+
+    /**
+     * Path to the item that makes the object "large".
+     */
+    protected ItemPath getMainItemPath() {
+        switch (type) {
+            case BenchmarkFixtures.TYPE_USER: return new ItemPath(UserType.F_ASSIGNMENT);
+            case BenchmarkFixtures.TYPE_ROLE: return new ItemPath(RoleType.F_INDUCEMENT);
+            case BenchmarkFixtures.TYPE_SHADOW: return new ItemPath(ShadowType.F_ATTRIBUTES, ATTR_MEMBER_OF);
+            default: throw new IllegalArgumentException("Unknown fixture type: " + type);
+        }
+    }
+
+    /**
+     * Returns a copy of the object with the description changed and i-th value of the main item removed.
+     */
+    protected PrismObject<ObjectType> createModifiedCopy(PrismObject<ObjectType> object, int i) {
+        PrismObject<ObjectType> copy = object.clone();
+        copy.asObjectable().setDescription("Modified #" + i);
+        Item<PrismValue, ItemDefinition> item = copy.findItem(getMainItemPath());
+        PrismValue value = item.getValues().get(i % item.getValues().size());
+        item.remove(value);
+        return copy;
+    }
+}
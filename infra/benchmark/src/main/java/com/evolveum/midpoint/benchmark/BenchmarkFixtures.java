@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.benchmark;
+
+import com.evolveum.midpoint.prism.PrismContext;
+import com.evolveum.midpoint.schema.MidPointPrismContextFactory;
+
+import java.util.UUID;
+
+/**
+ * Generated objects used by the benchmarks. They are meant to resemble real-world data:
+ *  - users with many assignments (and some links),
+ *  - roles with many inducements carrying constructions with outbound mappings,
+ *  - shadows with a large multi-valued attribute (e.g. group membership).
+ *
+ * The objects are generated in XML; other formats are obtained by re-serializing the parsed object.
+ *
+ * @author agent
+ */
+public class BenchmarkFixtures {
+
+    public static final String TYPE_USER = "user";
+    public static final String TYPE_ROLE = "role";
+    public static final String TYPE_SHADOW = "shadow";
+
+    private static final String RESOURCE_OID = "10000000-0000-0000-0000-000000000004";
+    private static final String NS_RI = "http://midpoint.evolveum.com/xml/ns/public/resource/instance-3";
+
+    private static PrismContext prismContext;
+
+    /**
+     * Prism context is expensive to create, so it is shared by all benchmarks in the JVM (fork).
+     */
+    public static synchronized PrismContext getPrismContext() {
+        if (prismContext == null) {
+            try {
+                prismContext = new MidPointPrismContextFactory().createInitializedPrismContext();
+            } catch (Exception e) {
+                throw new IllegalStateException("Couldn't initialize prism context: " + e.getMessage(), e);
+            }
+        }
+        return prismContext;
+    }
+
+    public static String createXml(String type, int size) {
+        switch (type) {
+            case TYPE_USER: return createUserXml(size);
+            case TYPE_ROLE: return createRoleXml(size);
+            case TYPE_SHADOW: return createShadowXml(size);
+            default: throw new IllegalArgumentException("Unknown fixture type: " + type);
+        }
+    }
+
+    private static String createUserXml(int assignments) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<user oid='").append(UUID.randomUUID()).append("' version='42'")
+                .append(" xmlns='http://midpoint.evolveum.com/xml/ns/public/common/common-3'")
+                .append(" xmlns:t='http://prism.evolveum.com/xml/ns/public/types-3'>\n");
+        sb.append("  <name>jack</name>\n");
+        sb.append("  <description>Generated user with ").append(assignments).append(" assignments</description>\n");
+        for (int i = 0; i < assignments; i++) {
+            sb.append("  <assignment id='").append(i + 1).append("'>\n");
+            sb.append("    <description>Assignment ").append(i).append("</description>\n");
+            sb.append("    <targetRef oid='").append(roleOid(i)).append("' type='RoleType'/>\n");
+            if (i % 3 == 0) {
+                sb.append("    <activation>\n");
+                sb.append("      <validFrom>2016-01-01T00:00:00.000+01:00</validFrom>\n");
+                sb.append("      <validTo>2030-01-01T00:00:00.000+01:00</validTo>\n");
+                sb.append("    </activation>\n");
+            }
+            sb.append("  </assignment>\n");
+        }
+        sb.append("  <activation>\n");
+        sb.append("    <administrativeStatus>enabled</administrativeStatus>\n");
+        sb.append("  </activation>\n");
+        for (int i = 0; i < assignments / 10 + 1; i++) {
+            sb.append("  <linkRef oid='").append(UUID.randomUUID()).append("' type='ShadowType'/>\n");
+        }
+        sb.append("  <fullName>Jack Sparrow</fullName>\n");
+        sb.append("  <givenName>Jack</givenName>\n");
+        sb.append("  <familyName>Sparrow</familyName>\n");
+        sb.append("  <emailAddress>jack@example.com</emailAddress>\n");
+        sb.append("  <locality>Caribbean</locality>\n");
+        sb.append("  <employeeType>pirate</employeeType>\n");
+        sb.append("  <organizationalUnit>Black Pearl</organizationalUnit>\n");
+        sb.append("</user>\n");
+        return sb.toString();
+    }
+
+    private static String createRoleXml(int inducements) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<role oid='").append(UUID.randomUUID()).append("' version='42'")
+                .append(" xmlns='http://midpoint.evolveum.com/xml/ns/public/common/common-3'")
+                .append(" xmlns:t='http://prism.evolveum.com/xml/ns/public/types-3'")
+                .append(" xmlns:ri='").append(NS_RI).append("'>\n");
+        sb.append("  <name>Generated role</name>\n");
+        sb.append("  <description>Generated role with ").append(inducements).append(" inducements</description>\n");
+        for (int i = 0; i < inducements; i++) {
+            sb.append("  <inducement id='").append(i + 1).append("'>\n");
+            if (i % 2 == 0) {
+                sb.append("    <targetRef oid='").append(roleOid(i)).append("' type='RoleType'/>\n");
+            } else {
+                sb.append("    <construction>\n");
+                sb.append("      <resourceRef oid='").append(RESOURCE_OID).append("' type='ResourceType'/>\n");
+                sb.append("      <kind>account</kind>\n");
+                sb.append("      <attribute>\n");
+                sb.append("        <ref>ri:group</ref>\n");
+                sb.append("        <outbound>\n");
+                sb.append("          <strength>strong</strength>\n");
+                sb.append("          <source><path>$user/name</path></source>\n");
+                sb.append("          <expression>\n");
+                sb.append("            <script>\n");
+                sb.append("              <code>'cn=group-").append(i).append("-' + name + ',ou=Groups,dc=example,dc=com'</code>\n");
+                sb.append("            </script>\n");
+                sb.append("          </expression>\n");
+                sb.append("        </outbound>\n");
+                sb.append("      </attribute>\n");
+                sb.append("    </construction>\n");
+            }
+            sb.append("  </inducement>\n");
+        }
+        sb.append("  <roleType>business</roleType>\n");
+        sb.append("</role>\n");
+        return sb.toString();
+    }
+
+    private static String createShadowXml(int values) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<shadow oid='").append(UUID.randomUUID()).append("' version='42'")
+                .append(" xmlns='http://midpoint.evolveum.com/xml/ns/public/common/common-3'")
+                .append(" xmlns:t='http://prism.evolveum.com/xml/ns/public/types-3'")
+                .append(" xmlns:icfs='http://midpoint.evolveum.com/xml/ns/public/connector/icf-1/resource-schema-3'")
+                .append(" xmlns:ri='").append(NS_RI).append("'")
+                .append(" xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance'")
+                .append(" xmlns:xsd='http://www.w3.org/2001/XMLSchema'>\n");
+        sb.append("  <name>uid=jack,ou=People,dc=example,dc=com</name>\n");
+        sb.append("  <resourceRef oid='").append(RESOURCE_OID).append("' type='ResourceType'/>\n");
+        sb.append("  <objectClass>ri:AccountObjectClass</objectClass>\n");
+        sb.append("  <kind>account</kind>\n");
+        sb.append("  <intent>default</intent>\n");
+        sb.append("  <attributes>\n");
+        sb.append("    <icfs:name xsi:type='xsd:string'>uid=jack,ou=People,dc=example,dc=com</icfs:name>\n");
+        sb.append("    <icfs:uid xsi:type='xsd:string'>").append(UUID.randomUUID()).append("</icfs:uid>\n");
+        sb.append("    <ri:cn xsi:type='xsd:string'>Jack Sparrow</ri:cn>\n");
+        sb.append("    <ri:sn xsi:type='xsd:string'>Sparrow</ri:sn>\n");
+        for (int i = 0; i < values; i++) {
+            sb.append("    <ri:memberOf xsi:type='xsd:string'>cn=group-").append(i).append(",ou=Groups,dc=example,dc=com</ri:memberOf>\n");
+        }
+        sb.append("  </attributes>\n");
+        sb.append("</shadow>\n");
+        return sb.toString();
+    }
+
+    private static String roleOid(int i) {
+        return String.format("12345678-d34d-b33f-f00d-%012d", i);
+    }
+}
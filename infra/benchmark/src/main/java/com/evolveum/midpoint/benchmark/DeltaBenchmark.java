@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.benchmark;
+
+import com.evolveum.midpoint.prism.PrismObject;
+import com.evolveum.midpoint.prism.delta.ObjectDelta;
+import com.evolveum.midpoint.util.exception.SchemaException;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ObjectType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delta operations: merging a sequence of deltas (as done e.g. when summarizing secondary deltas)
+ * and application of the resulting delta.
+ *
+ * @author agent
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DeltaBenchmark extends AbstractFixtureBenchmark {
+
+    @Param({ "5", "20" })
+    public int deltas;
+
+    private PrismObject<ObjectType> object;
+    private List<ObjectDelta<ObjectType>> deltaList;
+    private ObjectDelta<ObjectType> summaryDelta;
+
+    @Setup(Level.Trial)
+    public void setup() throws SchemaException {
+        initialize();
+        object = parseFixture();
+        deltaList = new ArrayList<>(deltas);
+        for (int i = 0; i < deltas; i++) {
+            deltaList.add(object.diff(createModifiedCopy(object, i)));
+        }
+        summaryDelta = ObjectDelta.summarize(deltaList);
+    }
+
+    @Benchmark
+    public ObjectDelta<ObjectType> summarize() throws SchemaException {
+        return ObjectDelta.summarize(deltaList);
+    }
+
+    @Benchmark
+    public ObjectDelta<ObjectType> cloneDelta() {
+        return summaryDelta.clone();
+    }
+
+    @Benchmark
+    public PrismObject<ObjectType> applySummaryDelta() throws SchemaException {
+        PrismObject<ObjectType> target = object.clone();
+        summaryDelta.applyTo(target);
+        return target;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.benchmark;
+
+import com.evolveum.midpoint.prism.Item;
+import com.evolveum.midpoint.prism.ItemDefinition;
+import com.evolveum.midpoint.prism.PrismObject;
+import com.evolveum.midpoint.prism.PrismValue;
+import com.evolveum.midpoint.prism.delta.ObjectDelta;
+import com.evolveum.midpoint.util.exception.SchemaException;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ObjectType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Basic operations on in-memory objects: clone, diff, delta application, equals and item lookup.
+ *
+ * Note that applyDelta includes cloning of the object (the delta has to be applied to a fresh copy each time),
+ * so the clone benchmark can be used as its baseline.
+ *
+ * @author agent
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ObjectBenchmark extends AbstractFixtureBenchmark {
+
+    private PrismObject<ObjectType> object;
+    private PrismObject<ObjectType> copy;
+    private PrismObject<ObjectType> modified;
+    private ObjectDelta<ObjectType> delta;
+
+    @Setup(Level.Trial)
+    public void setup() throws SchemaException {
+        initialize();
+        object = parseFixture();
+        copy = object.clone();
+        modified = createModifiedCopy(object, size / 2);
+        delta = object.diff(modified);
+    }
+
+    @Benchmark
+    public PrismObject<ObjectType> cloneObject() {
+        return object.clone();
+    }
+
+    @Benchmark
+    public ObjectDelta<ObjectType> diff() {
+        return object.diff(modified);
+    }
+
+    @Benchmark
+    public PrismObject<ObjectType> applyDelta() throws SchemaException {
+        PrismObject<ObjectType> target = object.clone();
+        delta.applyTo(target);
+        return target;
+    }
+
+    @Benchmark
+    public boolean equalsSame() {
+        return object.equals(copy);
+    }
+
+    @Benchmark
+    public boolean equalsModified() {
+        return object.equals(modified);
+    }
+
+    @Benchmark
+    public Item<PrismValue, ItemDefinition> findItem() {
+        return object.findItem(getMainItemPath());
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.benchmark;
+
+import com.evolveum.midpoint.prism.PrismContext;
+import com.evolveum.midpoint.prism.PrismObject;
+import com.evolveum.midpoint.util.exception.SchemaException;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ObjectType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and serialization of whole objects in all supported languages.
+ *
+ * @author agent
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParsingBenchmark extends AbstractFixtureBenchmark {
+
+    @Param({ PrismContext.LANG_XML, PrismContext.LANG_JSON, PrismContext.LANG_YAML })
+    public String language;
+
+    private String serialized;
+    private PrismObject<ObjectType> object;
+
+    @Setup(Level.Trial)
+    public void setup() throws SchemaException {
+        initialize();
+        object = parseFixture();
+        serialized = prismContext.serializeObjectToString(object, language);
+    }
+
+    @Benchmark
+    public PrismObject<ObjectType> parse() throws SchemaException {
+        return prismContext.parseObject(serialized, language);
+    }
+
+    @Benchmark
+    public String serialize() throws SchemaException {
+        return prismContext.serializeObjectToString(object, language);
+    }
+}
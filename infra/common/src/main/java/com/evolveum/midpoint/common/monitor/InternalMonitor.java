@@ -51,6 +51,8 @@ public class InternalMonitor {
 	private static boolean traceShadowFetchOperation = false;
 	
 	private static long shadowChangeOpeartionCount = 0;
+	
+	private static long shadowRepositoryLookupCount = 0;
 	/**
 	 * All provisioning operations that reach out to the resources.
 	 */
@@ -176,6 +178,17 @@ public class InternalMonitor {
 		provisioningAllExtOperationCount++;
 	}
 	
+	public static long getShadowRepositoryLookupCount() {
+		return shadowRepositoryLookupCount;
+	}
+	
+	/**
+	 * Repository searches done to find the shadows of the objects fetched from the resources.
+	 */
+	public static void recordShadowRepositoryLookup() {
+		shadowRepositoryLookupCount++;
+	}
+	
 	public static long getConnectorOperationCount() {
 		return connectorOperationCount;
 	}
@@ -229,6 +242,7 @@ public class InternalMonitor {
 		shadowFetchOperationCount = 0;
 		traceShadowFetchOperation = false;
 		shadowChangeOpeartionCount = 0;
+		shadowRepositoryLookupCount = 0;
 		traceConnectorOperation = false;
 		connectorOperationCount = 0;
 	}
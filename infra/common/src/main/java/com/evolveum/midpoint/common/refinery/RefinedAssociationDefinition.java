@@ -86,6 +86,10 @@ public class RefinedAssociationDefinition implements Serializable {
 		return !BooleanUtils.isFalse(getResourceObjectAssociationType().isExplicitReferentialIntegrity());	// because default is TRUE
 	}
 
+	public boolean isBulkFetch() {
+		return BooleanUtils.isTrue(getResourceObjectAssociationType().isBulkFetch());
+	}
+
 	public QName getMatchingRule() {
 		return getResourceObjectAssociationType().getMatchingRule();
 	}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.prism;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * List with a lazily built index of its elements (see IndexedValueList and the item list of PrismContainerValue).
+ *
+ * The list is often modified directly by the clients, therefore all modifications are counted and the index
+ * is thrown away when the list was modified by other means than by add(E). The index is built on read,
+ * so it is always built completely before it is published (objects may be shared by several threads
+ * that only read them). Concurrent modifications are not supported, the same as for ArrayList.
+ *
+ * @author agent
+ */
+abstract class IndexedList<E, I> extends ArrayList<E> {
+
+	private static final long serialVersionUID = 1L;
+
+	private int replaceCount;
+
+	private transient volatile BuiltIndex<I> builtIndex;
+
+	IndexedList() {
+	}
+
+	IndexedList(int initialCapacity) {
+		super(initialCapacity);
+	}
+
+	IndexedList(Collection<? extends E> elements) {
+		super(elements);
+	}
+
+	/**
+	 * Returns true if the list is large enough to be indexed.
+	 */
+	protected abstract boolean isIndexApplicable();
+
+	/**
+	 * Creates the index of all the elements of the list.
+	 */
+	protected abstract I createIndex();
+
+	protected abstract void addToIndex(I index, E element);
+
+	@Override
+	public boolean add(E element) {
+		BuiltIndex<I> validIndex = getValidIndex();
+		boolean added = super.add(element);
+		if (validIndex != null) {
+			addToIndex(validIndex.index, element);
+			builtIndex = new BuiltIndex<>(validIndex.index, getModificationCount());
+		}
+		return added;
+	}
+
+	@Override
+	public E set(int i, E element) {
+		replaceCount++;
+		return super.set(i, element);
+	}
+
+	/**
+	 * Returns the index, or null if the list is not indexed.
+	 */
+	protected I getIndex() {
+		if (!isIndexApplicable()) {
+			return null;
+		}
+		BuiltIndex<I> validIndex = getValidIndex();
+		if (validIndex == null) {
+			// built in a local variable, other threads may only see the complete index
+			int modificationCount = getModificationCount();
+			validIndex = new BuiltIndex<>(createIndex(), modificationCount);
+			builtIndex = validIndex;
+		}
+		return validIndex.index;
+	}
+
+	public void invalidateIndex() {
+		builtIndex = null;
+	}
+
+	private BuiltIndex<I> getValidIndex() {
+		BuiltIndex<I> current = builtIndex;
+		return current != null && current.modificationCount == getModificationCount() ? current : null;
+	}
+
+	private int getModificationCount() {
+		return modCount + replaceCount;
+	}
+
+	@Override
+	public Object clone() {
+		IndexedList<E, I> clone = (IndexedList<E, I>) super.clone();
+		clone.builtIndex = null;
+		return clone;
+	}
+
+	private static final class BuiltIndex<I> {
+
+		private final I index;
+		private final int modificationCount;
+
+		private BuiltIndex(I index, int modificationCount) {
+			this.index = index;
+			this.modificationCount = modificationCount;
+		}
+	}
+}
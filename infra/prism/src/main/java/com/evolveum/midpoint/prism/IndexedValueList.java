@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.prism;
+
+import java.util.Collection;
+
+/**
+ * List of values with a lazily built hash index (see PrismValueIndex). The index is built only when
+ * the list is large enough and it is used to look up candidates for equality checks.
+ *
+ * Values that change their content while in the list should call invalidateIndex(); other modifications
+ * are tracked by the list itself (see IndexedList).
+ *
+ * @author agent
+ */
+public class IndexedValueList<V> extends IndexedList<V, PrismValueIndex<V>> {
+
+	private static final long serialVersionUID = 1L;
+
+	public IndexedValueList() {
+	}
+
+	public IndexedValueList(Collection<? extends V> values) {
+		super(values);
+	}
+
+	/**
+	 * Returns values that may be equal to the probe. For small lists (or probes that cannot be hashed)
+	 * this is the whole list.
+	 */
+	public Collection<V> getCandidates(Object probe) {
+		PrismValueIndex<V> index = getIndex();
+		if (index == null) {
+			return this;
+		}
+		Collection<V> candidates = index.getCandidates(probe);
+		return candidates != null ? candidates : this;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		PrismValueIndex<V> index = getIndex();
+		Collection<V> candidates = index != null ? index.getCandidates(o) : null;
+		return candidates != null ? candidates.contains(o) : super.contains(o);
+	}
+
+	@Override
+	protected boolean isIndexApplicable() {
+		return PrismValueIndex.isApplicable(size());
+	}
+
+	@Override
+	protected PrismValueIndex<V> createIndex() {
+		return new PrismValueIndex<V>(this);
+	}
+
+	@Override
+	protected void addToIndex(PrismValueIndex<V> index, V value) {
+		index.add(value);
+	}
+}
@@ -58,7 +58,7 @@ public abstract class Item<V extends PrismValue, D extends ItemDefinition> imple
     protected QName elementName;
     protected PrismValue parent;
     protected D definition;
-    private List<V> values = new ArrayList<V>();
+    private List<V> values = new IndexedValueList<V>();
     private transient Map<String,Object> userData = new HashMap<>();;
     
     protected transient PrismContext prismContext;          // beware, this one can easily be null
@@ -138,6 +138,9 @@ public abstract class Item<V extends PrismValue, D extends ItemDefinition> imple
      */
     public void setElementName(QName elementName) {
         this.elementName = elementName;
+        if (parent instanceof PrismContainerValue) {
+        	((PrismContainerValue<?>) parent).invalidateItemIndex();
+        }
     }
 
     /**
@@ -268,7 +271,7 @@ public abstract class Item<V extends PrismValue, D extends ItemDefinition> imple
      * provided value argument may not be.
      */
     public PrismValue findValue(PrismValue value, boolean ignoreMetadata) {
-        for (PrismValue myVal : getValues()) {
+        for (PrismValue myVal : getValueCandidates(value)) {
             if (myVal.equalsComplex(value, ignoreMetadata, false)) {
                 return myVal;
             }
@@ -344,7 +347,7 @@ public abstract class Item<V extends PrismValue, D extends ItemDefinition> imple
     }
     
     public boolean contains(V value, boolean ignoreMetadata) {
-    	for (V myValue: getValues()) {
+    	for (V myValue: getValueCandidates(value)) {
     		if (myValue.equals(value, ignoreMetadata)) {
     			return true;
     		}
@@ -353,7 +356,7 @@ public abstract class Item<V extends PrismValue, D extends ItemDefinition> imple
     }
         
     public boolean containsRealValue(V value) {
-    	for (V myValue: getValues()) {
+    	for (V myValue: getValueCandidates(value)) {
     		if (myValue.equalsRealValue(value)) {
     			return true;
     		}
@@ -881,5 +884,25 @@ public abstract class Item<V extends PrismValue, D extends ItemDefinition> imple
     protected String getDebugDumpClassName() {
         return "Item";
     }
-    
+
+    /**
+     * Returns values that may be equal to the specified one. For small items these are simply all the values.
+     * For large items the value index is used to skip values that certainly do not match.
+     */
+    private Collection<V> getValueCandidates(PrismValue value) {
+    	if (values instanceof IndexedValueList) {
+    		return ((IndexedValueList<V>) values).getCandidates(value);
+    	}
+    	return values;
+    }
+
+    /**
+     * Called by the values when their content changes in a way that may change the index hash.
+     */
+    void invalidateValueIndex() {
+    	if (values instanceof IndexedValueList) {
+    		((IndexedValueList<V>) values).invalidateIndex();
+    	}
+    }
+
 }
@@ -18,9 +18,12 @@ package com.evolveum.midpoint.prism;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.xml.namespace.QName;
@@ -362,7 +365,7 @@ public class PrismContainerValue<C extends Containerable> extends PrismValue imp
         	item.applyDefinition((ID)determineItemDefinition(item.getElementName(), getActualDefinition()), false);
         }
         if (items == null) {
-        	items = new ArrayList<Item<?,?>>();
+        	items = new ItemList();
         }
         return items.add(item);
     }
@@ -716,7 +719,7 @@ public class PrismContainerValue<C extends Containerable> extends PrismValue imp
             return null;
         }
         Item<IV,ID> matching = null;
-        for (Item<?,?> item : items) {
+        for (Item<?,?> item : getItemCandidates(subName)) {
             if (QNameUtil.match(subName, item.getElementName())) {
                 if (matching != null) {
                     String containerName = getParent() != null ? DebugUtil.formatElementName(getParent().getElementName()) : "";
@@ -1329,7 +1332,7 @@ public class PrismContainerValue<C extends Containerable> extends PrismValue imp
 				Item<?,?> clonedItem = item.clone();
 				clonedItem.setParent(clone);
 				if (clone.items == null) {
-					clone.items = new ArrayList<>(this.items.size());
+					clone.items = new ItemList(this.items.size());
 				}
 				clone.items.add(clonedItem);
 			}
@@ -1582,4 +1585,76 @@ public class PrismContainerValue<C extends Containerable> extends PrismValue imp
 		}
 		return rv;
 	}
+
+    private Collection<Item<?,?>> getItemCandidates(QName itemName) {
+    	if (items instanceof ItemList) {
+    		return ((ItemList) items).getCandidates(itemName);
+    	}
+    	return items;
+    }
+
+    /**
+     * Called by the items when their name changes.
+     */
+    void invalidateItemIndex() {
+    	if (items instanceof ItemList) {
+    		((ItemList) items).invalidateIndex();
+    	}
+    }
+
+    /**
+     * List of items with a lazily built index by local name. The list keeps the order of the items
+     * (which is important for serialization), the index makes findItem fast for values with many items,
+     * such as large extensions or shadow attributes. The local name is used as the key because the items
+     * can be looked up by unqualified names (see QNameUtil.match).
+     * <p/>
+     * The list is returned by getItems() and it is sometimes modified directly (see IndexedList).
+     */
+    private static class ItemList extends IndexedList<Item<?,?>, Map<String,List<Item<?,?>>>> {
+
+    	private static final long serialVersionUID = 1L;
+
+    	private static final int INDEX_THRESHOLD = 8;
+
+    	ItemList() {
+    	}
+
+    	ItemList(int initialCapacity) {
+    		super(initialCapacity);
+    	}
+
+    	Collection<Item<?,?>> getCandidates(QName itemName) {
+    		Map<String,List<Item<?,?>>> index = itemName != null ? getIndex() : null;
+    		if (index == null) {
+    			return this;
+    		}
+    		List<Item<?,?>> candidates = index.get(itemName.getLocalPart());
+    		return candidates != null ? candidates : Collections.<Item<?,?>>emptyList();
+    	}
+
+    	@Override
+    	protected boolean isIndexApplicable() {
+    		return size() >= INDEX_THRESHOLD;
+    	}
+
+    	@Override
+    	protected Map<String,List<Item<?,?>>> createIndex() {
+    		Map<String,List<Item<?,?>>> index = new HashMap<>();
+    		for (Item<?,?> item : this) {
+    			addToIndex(index, item);
+    		}
+    		return index;
+    	}
+
+    	@Override
+    	protected void addToIndex(Map<String,List<Item<?,?>>> index, Item<?,?> item) {
+    		String localPart = item.getElementName() != null ? item.getElementName().getLocalPart() : null;
+    		List<Item<?,?>> list = index.get(localPart);
+    		if (list == null) {
+    			list = new ArrayList<>(1);
+    			index.put(localPart, list);
+    		}
+    		list.add(item);
+    	}
+    }
 }
@@ -245,6 +245,15 @@ public class PrismContext {
 		return myXnodeProcessor.parseObject(xnode, parsingContext);
 	}
 	
+	/**
+	 * Parses data produced by serializeObjectToBinary.
+	 */
+	public <T extends Objectable> PrismObject<T> parseObject(byte[] binaryData, ParsingContext parsingContext) throws SchemaException {
+		RootXNode xroot = new BinaryXNodeCodec().decode(binaryData);
+		XNodeProcessor myXnodeProcessor = new XNodeProcessor(this);
+		return myXnodeProcessor.parseObject(xroot, parsingContext);
+	}
+
 	/**
 	 * Parses a string and creates a prism from it. Used mostly for testing, but can also be used for built-in editors, etc.
 	 */
@@ -526,6 +535,19 @@ public class PrismContext {
 		return parser.serializeToString(xroot);
 	}
 	
+	/**
+	 * Serializes an object into compact binary form. It is not meant to be read by humans
+	 * nor to be interchanged with other systems; use parseObject(byte[], ...) to read it back.
+	 */
+	public <O extends Objectable> byte[] serializeObjectToBinary(PrismObject<O> object) throws SchemaException {
+		RootXNode xroot = xnodeProcessor.serializeObject(object);
+		return new BinaryXNodeCodec().encode(xroot);
+	}
+
+	public static boolean isBinary(byte[] data) {
+		return BinaryXNodeCodec.isBinary(data);
+	}
+
 	public <C extends Containerable> String serializeContainerValueToString(PrismContainerValue<C> cval, QName elementName, String language) throws SchemaException {
 		Parser parser = getParserNotNull(language);
 		
@@ -94,6 +94,7 @@ public class PrismPropertyValue<T> extends PrismValue implements DebugDumpable,
 
     public void setValue(T value) {
         this.value = value;
+        valueChanged();
         checkValue();
     }
 
@@ -154,6 +155,7 @@ public class PrismPropertyValue<T> extends PrismValue implements DebugDumpable,
 
 	public void setRawElement(XNode rawElement) {
 		this.rawElement = rawElement;
+		valueChanged();
 	}
 
 	@Override
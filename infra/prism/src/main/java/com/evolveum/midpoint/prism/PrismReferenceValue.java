@@ -94,6 +94,7 @@ public class PrismReferenceValue extends PrismValue implements DebugDumpable, Se
 
 	public void setOid(String oid) {
 		this.oid = oid;
+		valueChanged();
 	}
 	
 	public PrismObject getObject() {
@@ -102,6 +103,7 @@ public class PrismReferenceValue extends PrismValue implements DebugDumpable, Se
 
 	public void setObject(PrismObject object) {
 		this.object = object;
+		valueChanged();
 	}
 
 	/**
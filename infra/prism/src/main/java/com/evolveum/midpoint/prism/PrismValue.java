@@ -101,6 +101,15 @@ public abstract class PrismValue implements Visitable, PathVisitable, Serializab
 		}
 		this.parent = parent;
 	}
+
+	/**
+	 * Should be called when the value content changes in a way that may affect its equality with other values.
+	 */
+	protected void valueChanged() {
+		if (parent instanceof Item) {
+			((Item<?,?>) parent).invalidateValueIndex();
+		}
+	}
 	
 	public ItemPath getPath() {
 		Itemable parent = getParent();
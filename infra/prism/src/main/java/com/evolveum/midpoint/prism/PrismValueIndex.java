@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.prism;
+
+import com.evolveum.midpoint.prism.polystring.PolyString;
+
+import javax.xml.namespace.QName;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hash index of prism values. It is used to avoid linear scans when looking up values in large
+ * multi-valued items (e.g. group members) and in delta set triples.
+ *
+ * The index does not decide about equality by itself. It only narrows the set of candidates: all the
+ * values that may be equal to the probe are returned, and the caller checks them with the usual
+ * equals/equalsRealValue/equalsComplex methods. Therefore the index hash must only be consistent with
+ * the weakest of these (equality of real values, no matching rule, metadata ignored).
+ *
+ * Values that cannot be hashed reliably (container values, raw values, DOM elements, unknown real value
+ * types) are kept aside and returned as candidates for every probe.
+ *
+ * @author agent
+ */
+public class PrismValueIndex<V> {
+
+	public static final int DEFAULT_THRESHOLD = 50;
+
+	private static volatile int threshold = DEFAULT_THRESHOLD;
+
+	private final Map<Integer, List<V>> buckets = new HashMap<>();
+	private final List<V> unhashableValues = new ArrayList<>();
+
+	public PrismValueIndex() {
+	}
+
+	public PrismValueIndex(Collection<? extends V> values) {
+		for (V value : values) {
+			add(value);
+		}
+	}
+
+	/**
+	 * Minimal number of values for which the index is created. Zero or negative value switches the indexing off.
+	 */
+	public static int getThreshold() {
+		return threshold;
+	}
+
+	public static void setThreshold(int threshold) {
+		PrismValueIndex.threshold = threshold;
+	}
+
+	public static boolean isApplicable(int size) {
+		return threshold > 0 && size >= threshold;
+	}
+
+	public void add(V value) {
+		Integer hash = indexHashCode(value);
+		if (hash == null) {
+			unhashableValues.add(value);
+			return;
+		}
+		List<V> bucket = buckets.get(hash);
+		if (bucket == null) {
+			bucket = new ArrayList<>(1);
+			buckets.put(hash, bucket);
+		}
+		bucket.add(value);
+	}
+
+	public void remove(V value) {
+		Integer hash = indexHashCode(value);
+		List<V> list = hash == null ? unhashableValues : buckets.get(hash);
+		if (list == null) {
+			return;
+		}
+		for (int i = 0; i < list.size(); i++) {
+			if (list.get(i) == value) {
+				list.remove(i);
+				break;
+			}
+		}
+		if (hash != null && list.isEmpty()) {
+			buckets.remove(hash);
+		}
+	}
+
+	/**
+	 * Returns values that may be equal to the probe. Returns null if the probe itself cannot be hashed;
+	 * the caller has to scan all the values in that case.
+	 */
+	public Collection<V> getCandidates(Object probe) {
+		Integer hash = indexHashCode(probe);
+		if (hash == null) {
+			return null;
+		}
+		List<V> bucket = buckets.get(hash);
+		if (unhashableValues.isEmpty()) {
+			return bucket != null ? bucket : Collections.<V>emptyList();
+		}
+		if (bucket == null) {
+			return unhashableValues;
+		}
+		List<V> candidates = new ArrayList<>(bucket.size() + unhashableValues.size());
+		candidates.addAll(bucket);
+		candidates.addAll(unhashableValues);
+		return candidates;
+	}
+
+	/**
+	 * Hash code that is the same for all values that have equal real values. Returns null if such hash
+	 * cannot be determined.
+	 */
+	public static Integer indexHashCode(Object value) {
+		if (value instanceof PrismPropertyValue) {
+			PrismPropertyValue<?> pval = (PrismPropertyValue<?>) value;
+			if (pval.isRaw()) {
+				return null;
+			}
+			return realValueHashCode(pval.getValue());
+		} else if (value instanceof PrismReferenceValue) {
+			String oid = ((PrismReferenceValue) value).getOid();
+			return oid != null ? oid.hashCode() : 0;
+		} else {
+			return null;
+		}
+	}
+
+	private static Integer realValueHashCode(Object realValue) {
+		if (realValue == null) {
+			return 0;
+		} else if (realValue instanceof String || realValue instanceof Number || realValue instanceof Boolean
+				|| realValue instanceof Enum) {
+			return realValue.hashCode();
+		} else if (realValue instanceof QName) {
+			// QName.hashCode ignores the prefix, so it is consistent also with literal comparison
+			return realValue.hashCode();
+		} else if (realValue instanceof PolyString) {
+			// norm may be recomputed while the value is in the index
+			String orig = ((PolyString) realValue).getOrig();
+			return orig != null ? orig.hashCode() : 0;
+		} else if (realValue instanceof byte[]) {
+			return Arrays.hashCode((byte[]) realValue);
+		} else {
+			return null;
+		}
+	}
+}
@@ -15,6 +15,9 @@
  */
 package com.evolveum.midpoint.prism.delta;
 
+import com.evolveum.midpoint.prism.IndexedValueList;
+import com.evolveum.midpoint.prism.PrismValue;
+import com.evolveum.midpoint.prism.PrismValueIndex;
 import com.evolveum.midpoint.prism.SimpleVisitable;
 import com.evolveum.midpoint.prism.SimpleVisitor;
 import com.evolveum.midpoint.prism.Visitable;
@@ -29,6 +32,7 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.Set;
 
 /**
  * The triple of values (added, unchanged, deleted) that represents difference between two collections of values.
@@ -91,22 +95,34 @@ public class DeltaSetTriple<T> implements DebugDumpable, Serializable, SimpleVis
         	triple.getMinusSet().addAll(valuesOld);
         	return;
         }
+        // Large collections of values (e.g. members of big groups) are indexed, otherwise the diff would be O(n^2)
+        Collection<T> indexedNew = createIndexedCollection(valuesNew);
         for (T val : valuesOld) {
-            if (valuesNew.contains(val)) {
+            if (indexedNew.contains(val)) {
                 triple.getZeroSet().add(val);
             } else {
                 triple.getMinusSet().add(val);
             }
         }
+        Collection<T> indexedOld = createIndexedCollection(valuesOld);
         for (T val : valuesNew) {
-            if (!valuesOld.contains(val)) {
+            if (!indexedOld.contains(val)) {
                 triple.getPlusSet().add(val);
             }
         }
     }
 
+    private static <T> Collection<T> createIndexedCollection(Collection<T> values) {
+        if (values instanceof IndexedValueList || values instanceof Set
+                || !PrismValueIndex.isApplicable(values.size())
+                || !(values.iterator().next() instanceof PrismValue)) {
+            return values;
+        }
+        return new IndexedValueList<T>(values);
+    }
+
     protected Collection<T> createSet() {
-        return new ArrayList<T>();
+        return new IndexedValueList<T>();
     }
 
     public Collection<T> getZeroSet() {
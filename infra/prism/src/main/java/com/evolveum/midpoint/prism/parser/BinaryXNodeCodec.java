@@ -0,0 +1,596 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.prism.parser;
+
+import com.evolveum.midpoint.prism.path.ItemPath;
+import com.evolveum.midpoint.prism.xml.XmlTypeConverter;
+import com.evolveum.midpoint.prism.xml.XsdTypeMapper;
+import com.evolveum.midpoint.prism.xnode.ListXNode;
+import com.evolveum.midpoint.prism.xnode.MapXNode;
+import com.evolveum.midpoint.prism.xnode.PrimitiveXNode;
+import com.evolveum.midpoint.prism.xnode.RootXNode;
+import com.evolveum.midpoint.prism.xnode.SchemaXNode;
+import com.evolveum.midpoint.prism.xnode.ValueParser;
+import com.evolveum.midpoint.prism.xnode.XNode;
+import com.evolveum.midpoint.util.DOMUtil;
+import com.evolveum.midpoint.util.QNameUtil;
+import com.evolveum.midpoint.util.exception.SchemaException;
+import com.evolveum.midpoint.util.exception.SystemException;
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+import org.apache.commons.lang.StringUtils;
+import org.w3c.dom.Element;
+
+import javax.xml.namespace.QName;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of XNode trees. It is meant for machine-to-machine storage of objects
+ * (e.g. the fullObject column in the repository), not for interchange with humans.
+ *
+ * Compared to XML the encoding avoids repeating namespace URIs and element names: every QName
+ * (and every namespace URI) is written in full only at its first occurrence in the document and
+ * is referenced by a number afterwards. There is no tokenizer and no DOM involved in decoding.
+ *
+ * Primitive values are kept in their lexical form and they are left unparsed in the resulting
+ * XNode tree, exactly as the DOM parser does. They are parsed lazily by the XNodeProcessor when
+ * the definition is known. Only QNames and item paths are decoded eagerly, as their lexical form
+ * depends on namespace declarations.
+ *
+ * Schema nodes (xsd:schema) are stored as serialized XML, as there is no point in re-encoding them.
+ *
+ * @author agent
+ */
+public class BinaryXNodeCodec {
+
+	private static final Trace LOGGER = TraceManager.getTrace(BinaryXNodeCodec.class);
+
+	/**
+	 * Every encoded document starts with this header. The leading zero byte makes sure that
+	 * the data cannot be mistaken for XML, JSON, YAML or gzip.
+	 */
+	private static final byte[] MAGIC = { 0x00, 'M', 'P', 'B' };
+	private static final byte VERSION = 1;
+
+	private static final byte NODE_ROOT = 1;
+	private static final byte NODE_MAP = 2;
+	private static final byte NODE_LIST = 3;
+	private static final byte NODE_PRIMITIVE = 4;
+	private static final byte NODE_SCHEMA = 5;
+
+	private static final int FLAG_EXPLICIT_TYPE = 0x01;
+	private static final int FLAG_COMMENT = 0x02;
+	private static final int FLAG_MAX_OCCURS = 0x04;
+	private static final int FLAG_ATTRIBUTE = 0x08;
+
+	private static final byte VALUE_EMPTY = 0;
+	private static final byte VALUE_QNAME = 1;
+	private static final byte VALUE_ITEM_PATH = 2;
+	private static final byte VALUE_TEXT = 3;
+
+	// dictionary references: 0 = null, 1 = new entry follows, n >= 2 = reference to entry (n - 2)
+	private static final int REF_NULL = 0;
+	private static final int REF_NEW = 1;
+	private static final int REF_BASE = 2;
+
+	/**
+	 * Returns true if the data look like a document produced by this codec.
+	 */
+	public static boolean isBinary(byte[] data) {
+		if (data == null || data.length < MAGIC.length + 1) {
+			return false;
+		}
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (data[i] != MAGIC[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public byte[] encode(RootXNode root) throws SchemaException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.write(MAGIC);
+			out.writeByte(VERSION);
+			new Encoder(out).writeNode(root);
+			out.flush();
+		} catch (IOException e) {
+			// should not happen when writing to memory
+			throw new SystemException("Couldn't encode XNode: " + e.getMessage(), e);
+		}
+		return bytes.toByteArray();
+	}
+
+	public RootXNode decode(byte[] data) throws SchemaException {
+		if (!isBinary(data)) {
+			throw new SchemaException("Data are not in the binary XNode format");
+		}
+		byte version = data[MAGIC.length];
+		if (version != VERSION) {
+			throw new SchemaException("Unsupported version of the binary XNode format: " + version);
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, MAGIC.length + 1, data.length - MAGIC.length - 1));
+		XNode node;
+		try {
+			node = new Decoder(in).readNode();
+		} catch (EOFException e) {
+			throw new SchemaException("Unexpected end of binary XNode data", e);
+		} catch (IOException e) {
+			throw new SystemException("Couldn't decode XNode: " + e.getMessage(), e);
+		}
+		if (!(node instanceof RootXNode)) {
+			throw new SchemaException("Binary XNode data do not start with a root node but with " + node);
+		}
+		return (RootXNode) node;
+	}
+
+	private static class Encoder {
+
+		private final DataOutputStream out;
+		private final Map<String, Integer> strings = new HashMap<>();
+		private final Map<QName, Integer> qnames = new HashMap<>();
+
+		Encoder(DataOutputStream out) {
+			this.out = out;
+		}
+
+		void writeNode(XNode node) throws IOException, SchemaException {
+			if (node instanceof RootXNode) {
+				out.writeByte(NODE_ROOT);
+				writeCommon(node, 0);
+				RootXNode root = (RootXNode) node;
+				writeQName(root.getRootElementName());
+				out.writeBoolean(root.getSubnode() != null);
+				if (root.getSubnode() != null) {
+					writeNode(root.getSubnode());
+				}
+			} else if (node instanceof MapXNode) {
+				out.writeByte(NODE_MAP);
+				writeCommon(node, 0);
+				MapXNode map = (MapXNode) node;
+				writeVarInt(map.size());
+				for (Map.Entry<QName, XNode> entry : map.entrySet()) {
+					writeQName(entry.getKey());
+					writeNode(entry.getValue());
+				}
+			} else if (node instanceof ListXNode) {
+				out.writeByte(NODE_LIST);
+				writeCommon(node, 0);
+				ListXNode list = (ListXNode) node;
+				writeVarInt(list.size());
+				for (XNode subnode : list) {
+					writeNode(subnode);
+				}
+			} else if (node instanceof PrimitiveXNode) {
+				PrimitiveXNode<?> primitive = (PrimitiveXNode<?>) node;
+				out.writeByte(NODE_PRIMITIVE);
+				writeCommon(node, primitive.isAttribute() ? FLAG_ATTRIBUTE : 0);
+				writePrimitiveValue(primitive);
+			} else if (node instanceof SchemaXNode) {
+				out.writeByte(NODE_SCHEMA);
+				writeCommon(node, 0);
+				writeString(serializeSchemaElement(((SchemaXNode) node).getSchemaElement()));
+			} else {
+				throw new IllegalArgumentException("Cannot encode " + node);
+			}
+		}
+
+		private void writeCommon(XNode node, int extraFlags) throws IOException {
+			int flags = extraFlags;
+			if (node.isExplicitTypeDeclaration()) {
+				flags |= FLAG_EXPLICIT_TYPE;
+			}
+			if (node.getComment() != null) {
+				flags |= FLAG_COMMENT;
+			}
+			if (node.getMaxOccurs() != null) {
+				flags |= FLAG_MAX_OCCURS;
+			}
+			out.writeByte(flags);
+			writeQName(node.getTypeQName());
+			if (node.getComment() != null) {
+				writeLiteral(node.getComment());
+			}
+			if (node.getMaxOccurs() != null) {
+				out.writeInt(node.getMaxOccurs());
+			}
+		}
+
+		private void writePrimitiveValue(PrimitiveXNode<?> primitive) throws IOException, SchemaException {
+			if (!primitive.isParsed()) {
+				// keeping the lexical form as it is; it will be parsed by whoever reads it
+				String stringValue = primitive.getStringValue();
+				if (stringValue == null) {
+					out.writeByte(VALUE_EMPTY);
+					return;
+				}
+				out.writeByte(VALUE_TEXT);
+				writeLiteral(stringValue);
+				writeNamespaces(primitive.getRelevantNamespaceDeclarations());
+				return;
+			}
+			Object value = primitive.getValue();
+			if (value == null) {
+				out.writeByte(VALUE_EMPTY);
+			} else if (value instanceof QName) {
+				out.writeByte(VALUE_QNAME);
+				writeQName((QName) value);
+			} else if (value instanceof ItemPath) {
+				XPathHolder holder = new XPathHolder((ItemPath) value);
+				out.writeByte(VALUE_ITEM_PATH);
+				writeLiteral(holder.getXPathWithoutDeclarations());
+				writeNamespaces(holder.getNamespaceMap());
+			} else {
+				if (primitive.getTypeQName() == null) {
+					// the same check as DomSerializer does; we cannot store a value that could not be parsed back
+					XsdTypeMapper.toXsdType(value.getClass());
+				}
+				out.writeByte(VALUE_TEXT);
+				writeLiteral(primitive.getFormattedValue());
+				writeNamespaces(null);
+			}
+		}
+
+		private String serializeSchemaElement(Element schemaElement) {
+			if (schemaElement == null) {
+				return null;
+			}
+			// the element will be stored standalone, so it has to carry all the declarations it can see
+			Element copy = (Element) schemaElement.cloneNode(true);
+			for (Map.Entry<String, String> declaration : DOMUtil.getAllVisibleNamespaceDeclarations(schemaElement).entrySet()) {
+				if (!DOMUtil.hasNamespaceDeclarationForPrefix(copy, declaration.getKey())) {
+					DOMUtil.setNamespaceDeclaration(copy, declaration.getKey(), declaration.getValue());
+				}
+			}
+			return DOMUtil.serializeDOMToString(copy);
+		}
+
+		private void writeNamespaces(Map<String, String> namespaces) throws IOException {
+			if (namespaces == null) {
+				writeVarInt(0);
+				return;
+			}
+			writeVarInt(namespaces.size());
+			for (Map.Entry<String, String> namespace : namespaces.entrySet()) {
+				writeString(namespace.getKey());
+				writeString(namespace.getValue());
+			}
+		}
+
+		private void writeQName(QName qname) throws IOException {
+			if (qname == null) {
+				writeVarInt(REF_NULL);
+				return;
+			}
+			Integer index = qnames.get(qname);
+			if (index != null) {
+				writeVarInt(REF_BASE + index);
+				return;
+			}
+			qnames.put(qname, qnames.size());
+			writeVarInt(REF_NEW);
+			writeString(qname.getNamespaceURI());
+			writeLiteral(qname.getLocalPart());
+			writeString(qname.getPrefix());
+		}
+
+		/**
+		 * Writes a string that is likely to be repeated in the document (namespaces, prefixes).
+		 */
+		private void writeString(String string) throws IOException {
+			if (string == null) {
+				writeVarInt(REF_NULL);
+				return;
+			}
+			Integer index = strings.get(string);
+			if (index != null) {
+				writeVarInt(REF_BASE + index);
+				return;
+			}
+			strings.put(string, strings.size());
+			writeVarInt(REF_NEW);
+			writeLiteral(string);
+		}
+
+		/**
+		 * Writes a string without interning it. DataOutputStream.writeUTF cannot be used
+		 * here as it is limited to 64k.
+		 */
+		private void writeLiteral(String string) throws IOException {
+			byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+			writeVarInt(bytes.length);
+			out.write(bytes);
+		}
+
+		private void writeVarInt(int value) throws IOException {
+			while ((value & ~0x7F) != 0) {
+				out.writeByte((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			out.writeByte(value);
+		}
+	}
+
+	private static class Decoder {
+
+		private final DataInputStream in;
+		private final List<String> strings = new ArrayList<>();
+		private final List<QName> qnames = new ArrayList<>();
+
+		Decoder(DataInputStream in) {
+			this.in = in;
+		}
+
+		XNode readNode() throws IOException, SchemaException {
+			byte type = in.readByte();
+			switch (type) {
+				case NODE_ROOT: {
+					RootXNode root = new RootXNode();
+					readCommon(root);
+					root.setRootElementName(readQName());
+					if (in.readBoolean()) {
+						root.setSubnode(readNode());
+					}
+					return root;
+				}
+				case NODE_MAP: {
+					MapXNode map = new MapXNode();
+					readCommon(map);
+					int size = readVarInt();
+					for (int i = 0; i < size; i++) {
+						QName key = readQName();
+						map.put(key, readNode());
+					}
+					return map;
+				}
+				case NODE_LIST: {
+					ListXNode list = new ListXNode();
+					readCommon(list);
+					int size = readVarInt();
+					for (int i = 0; i < size; i++) {
+						list.add(readNode());
+					}
+					return list;
+				}
+				case NODE_PRIMITIVE: {
+					PrimitiveXNode<Object> primitive = new PrimitiveXNode<>();
+					int flags = readCommon(primitive);
+					primitive.setAttribute((flags & FLAG_ATTRIBUTE) != 0);
+					readPrimitiveValue(primitive);
+					return primitive;
+				}
+				case NODE_SCHEMA: {
+					SchemaXNode schema = new SchemaXNode();
+					readCommon(schema);
+					String serialized = readString();
+					if (serialized != null) {
+						schema.setSchemaElement(DOMUtil.parseDocument(serialized).getDocumentElement());
+					}
+					return schema;
+				}
+				default:
+					throw new SchemaException("Unknown node type " + type + " in binary XNode data");
+			}
+		}
+
+		private int readCommon(XNode node) throws IOException, SchemaException {
+			int flags = in.readUnsignedByte();
+			node.setExplicitTypeDeclaration((flags & FLAG_EXPLICIT_TYPE) != 0);
+			node.setTypeQName(readQName());
+			if ((flags & FLAG_COMMENT) != 0) {
+				node.setComment(readLiteral());
+			}
+			if ((flags & FLAG_MAX_OCCURS) != 0) {
+				node.setMaxOccurs(in.readInt());
+			}
+			return flags;
+		}
+
+		private void readPrimitiveValue(PrimitiveXNode<Object> primitive) throws IOException, SchemaException {
+			byte kind = in.readByte();
+			switch (kind) {
+				case VALUE_EMPTY:
+					return;
+				case VALUE_QNAME:
+					setParsedValue(primitive, readQName());
+					return;
+				case VALUE_ITEM_PATH: {
+					String xpath = readLiteral();
+					Map<String, String> namespaces = readNamespaces();
+					setParsedValue(primitive, new XPathHolder(xpath, namespaces).toItemPath());
+					return;
+				}
+				case VALUE_TEXT: {
+					String text = readLiteral();
+					Map<String, String> namespaces = readNamespaces();
+					primitive.setValueParser(new LexicalValueParser<>(text, namespaces));
+					return;
+				}
+				default:
+					throw new SchemaException("Unknown primitive value kind " + kind + " in binary XNode data");
+			}
+		}
+
+		// setValue(..) would try to guess the type if there is none; we want to keep the node as it was
+		private void setParsedValue(PrimitiveXNode<Object> primitive, Object value) {
+			QName typeQName = primitive.getTypeQName();
+			primitive.setValue(value, typeQName);
+			if (typeQName == null) {
+				primitive.setTypeQName(null);
+			}
+		}
+
+		private Map<String, String> readNamespaces() throws IOException, SchemaException {
+			int size = readVarInt();
+			if (size == 0) {
+				return Collections.emptyMap();
+			}
+			Map<String, String> namespaces = new HashMap<>();
+			for (int i = 0; i < size; i++) {
+				String prefix = readString();
+				namespaces.put(prefix, readString());
+			}
+			return namespaces;
+		}
+
+		private QName readQName() throws IOException, SchemaException {
+			int ref = readVarInt();
+			if (ref == REF_NULL) {
+				return null;
+			} else if (ref == REF_NEW) {
+				String namespace = readString();
+				String localPart = readLiteral();
+				String prefix = readString();
+				QName qname = new QName(namespace, localPart, prefix);
+				qnames.add(qname);
+				return qname;
+			} else {
+				int index = ref - REF_BASE;
+				if (index >= qnames.size()) {
+					throw new SchemaException("Invalid QName reference " + index + " in binary XNode data");
+				}
+				return qnames.get(index);
+			}
+		}
+
+		private String readString() throws IOException, SchemaException {
+			int ref = readVarInt();
+			if (ref == REF_NULL) {
+				return null;
+			} else if (ref == REF_NEW) {
+				String string = readLiteral();
+				strings.add(string);
+				return string;
+			} else {
+				int index = ref - REF_BASE;
+				if (index >= strings.size()) {
+					throw new SchemaException("Invalid string reference " + index + " in binary XNode data");
+				}
+				return strings.get(index);
+			}
+		}
+
+		private String readLiteral() throws IOException {
+			byte[] bytes = new byte[readVarInt()];
+			in.readFully(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		private int readVarInt() throws IOException {
+			int value = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				int b = in.readUnsignedByte();
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("Malformed variable-length integer in binary XNode data");
+		}
+	}
+
+	/**
+	 * Parses primitive values from their lexical form, the same way as DomParser parses element content.
+	 * Immutable, as required by ValueParser contract.
+	 */
+	private static class LexicalValueParser<T> implements ValueParser<T>, java.io.Serializable {
+
+		private final String value;
+		private final Map<String, String> namespaces;
+
+		LexicalValueParser(String value, Map<String, String> namespaces) {
+			this.value = value;
+			this.namespaces = namespaces;
+		}
+
+		@Override
+		public T parse(QName typeName, XNodeProcessorEvaluationMode mode) throws SchemaException {
+			try {
+				if (ItemPath.XSD_TYPE.equals(typeName)) {
+					return (T) new XPathHolder(value, namespaces).toItemPath();
+				} else if (DOMUtil.XSD_QNAME.equals(typeName)) {
+					return (T) resolveQName();
+				} else if (XmlTypeConverter.canConvert(typeName)) {
+					return (T) XmlTypeConverter.toJavaValue(value, typeName);
+				} else if (DOMUtil.XSD_ANYTYPE.equals(typeName)) {
+					return (T) value;
+				} else {
+					throw new SchemaException("Cannot convert value '" + value + "' to " + typeName);
+				}
+			} catch (IllegalArgumentException e) {
+				if (mode != XNodeProcessorEvaluationMode.COMPAT) {
+					throw e;
+				}
+				LOGGER.warn("Value '{}' couldn't be parsed as '{}' -- interpreting as null because of COMPAT mode set", value, typeName, e);
+				return null;
+			}
+		}
+
+		// see DOMUtil.resolveQName
+		private QName resolveQName() {
+			if (StringUtils.isBlank(value)) {
+				return null;
+			}
+			String[] parts = value.split(":");
+			if (parts.length > 2) {
+				throw new IllegalArgumentException("Unsupported format: more than one colon in Qname: " + value);
+			}
+			if (parts.length == 1 || parts[1] == null || parts[1].isEmpty()) {
+				return new QName(null, parts[0]);
+			}
+			String prefix = parts[0];
+			String namespace = namespaces.get(prefix);
+			if (namespace == null) {
+				QNameUtil.reportUndeclaredNamespacePrefix(prefix, value);
+				prefix = QNameUtil.markPrefixAsUndeclared(prefix);
+			}
+			return new QName(namespace, parts[1], prefix);
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return StringUtils.isBlank(value);
+		}
+
+		@Override
+		public String getStringValue() {
+			return value;
+		}
+
+		@Override
+		public Map<String, String> getPotentiallyRelevantNamespaces() {
+			return namespaces;
+		}
+
+		@Override
+		public String toString() {
+			return "LexicalValueParser(" + value + ")";
+		}
+	}
+}
@@ -41,10 +41,9 @@ import javax.xml.namespace.QName;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * @author mederly
@@ -60,31 +59,51 @@ public class PrismBeanInspector {
 
     //region Caching mechanism (multiple dimensions)
 
+    /*
+     * The caches are read by all the parsing threads, so they are lock-free (ConcurrentHashMap). Because ConcurrentHashMap
+     * does not accept nulls, null keys and values are stored as NULL; find1 and getSubcache do the translation.
+     * Values are computed without any locking; if two threads compute the same value concurrently, the first one stored is used.
+     */
+    private static final Object NULL = new Object();
+
     interface Getter1<V, P1> {
         V get(P1 param1);
     }
 
-    private <V, P1> V find1(Map<P1,V> cache, P1 param1, Getter1<V, P1> getter) {
-        if (cache.containsKey(param1)) {
-            return cache.get(param1);
-        } else {
-            V value = getter.get(param1);
-            cache.put(param1, value);
-            return value;
+    <V, P1> V find1(ConcurrentMap<P1,V> cache, P1 param1, Getter1<V, P1> getter) {
+        ConcurrentMap<Object,Object> rawCache = (ConcurrentMap) cache;
+        Object key = param1 != null ? param1 : NULL;
+        Object value = rawCache.get(key);
+        if (value == null) {
+            V computed = getter.get(param1);
+            value = rawCache.putIfAbsent(key, computed != null ? computed : NULL);
+            if (value == null) {
+                return computed;
+            }
+        }
+        return value != NULL ? (V) value : null;
+    }
+
+    <P1, C extends ConcurrentMap<?,?>> C getSubcache(ConcurrentMap<P1,C> cache, P1 param1) {
+        ConcurrentMap<Object,C> rawCache = (ConcurrentMap) cache;
+        Object key = param1 != null ? param1 : NULL;
+        C subcache = rawCache.get(key);
+        if (subcache == null) {
+            subcache = (C) new ConcurrentHashMap();
+            C existing = rawCache.putIfAbsent(key, subcache);
+            if (existing != null) {
+                subcache = existing;
+            }
         }
+        return subcache;
     }
 
     interface Getter2<V, P1, P2> {
         V get(P1 param1, P2 param2);
     }
 
-    private <V, P1, P2> V find2(final Map<P1,Map<P2,V>> cache, final P1 param1, final P2 param2, final Getter2<V, P1, P2> getter) {
-        Map<P2, V> cache2 = cache.get(param1);
-        if (cache2 == null) {
-            cache2 = Collections.synchronizedMap(new HashMap());
-            cache.put(param1, cache2);
-        }
-        return find1(cache2, param2, new Getter1<V, P2>() {
+    <V, P1, P2> V find2(final ConcurrentMap<P1,ConcurrentMap<P2,V>> cache, final P1 param1, final P2 param2, final Getter2<V, P1, P2> getter) {
+        return find1(getSubcache(cache, param1), param2, new Getter1<V, P2>() {
             @Override
             public V get(P2 p) {
                 return getter.get(param1, p);
@@ -96,13 +115,8 @@ public class PrismBeanInspector {
         V get(P1 param1, P2 param2, P3 param3);
     }
 
-    private <V, P1, P2, P3> V find3(final Map<P1,Map<P2,Map<P3,V>>> cache, final P1 param1, final P2 param2, final P3 param3, final Getter3<V, P1, P2, P3> getter) {
-        Map<P2, Map<P3, V>> cache2 = cache.get(param1);
-        if (cache2 == null) {
-            cache2 = Collections.synchronizedMap(new HashMap());
-            cache.put(param1, cache2);
-        }
-        return find2(cache2, param2, param3, new Getter2<V, P2, P3>() {
+    <V, P1, P2, P3> V find3(final ConcurrentMap<P1,ConcurrentMap<P2,ConcurrentMap<P3,V>>> cache, final P1 param1, final P2 param2, final P3 param3, final Getter3<V, P1, P2, P3> getter) {
+        return find2(getSubcache(cache, param1), param2, param3, new Getter2<V, P2, P3>() {
             @Override
             public V get(P2 p, P3 q) {
                 return getter.get(param1, p, q);
@@ -113,7 +127,7 @@ public class PrismBeanInspector {
 
     //region Individual inspection methods - cached versions
 
-    private Map<Class<? extends Object>, String> _determineNamespace = Collections.synchronizedMap(new HashMap());
+    private final ConcurrentMap<Class<? extends Object>,String> _determineNamespace = new ConcurrentHashMap<>();
 
     String determineNamespace(Class<? extends Object> paramType) {
         return find1(_determineNamespace, paramType, new Getter1<String,Class<? extends Object>>() {
@@ -124,7 +138,7 @@ public class PrismBeanInspector {
         });
     }
 
-    private Map<Class<? extends Object>, QName> _determineTypeForClass = Collections.synchronizedMap(new HashMap());
+    private final ConcurrentMap<Class<? extends Object>,QName> _determineTypeForClass = new ConcurrentHashMap<>();
 
     QName determineTypeForClass(Class<? extends Object> paramType) {
         return find1(_determineTypeForClass, paramType, new Getter1<QName,Class<? extends Object>>() {
@@ -135,7 +149,7 @@ public class PrismBeanInspector {
         });
     }
 
-    private Map<Field,Map<Method,Boolean>> _isAttribute = Collections.synchronizedMap(new HashMap());
+    private final ConcurrentMap<Field,ConcurrentMap<Method,Boolean>> _isAttribute = new ConcurrentHashMap<>();
 
     boolean isAttribute(Field field, Method getter) {
         return find2(_isAttribute, field, getter, new Getter2<Boolean,Field,Method>() {
@@ -146,7 +160,7 @@ public class PrismBeanInspector {
         });
     }
 
-    private Map<Class,Map<String,Method>> _findSetter = Collections.synchronizedMap(new HashMap());
+    private final ConcurrentMap<Class,ConcurrentMap<String,Method>> _findSetter = new ConcurrentHashMap<>();
 
     <T> Method findSetter(Class<T> beanClass, String fieldName) {
         return find2(_findSetter, beanClass, fieldName, new Getter2<Method,Class,String>() {
@@ -157,7 +171,7 @@ public class PrismBeanInspector {
         });
     }
 
-    private Map<Package,Class> _getObjectFactoryClassPackage = Collections.synchronizedMap(new HashMap());
+    private final ConcurrentMap<Package,Class> _getObjectFactoryClassPackage = new ConcurrentHashMap<>();
     Class getObjectFactoryClass(Package aPackage) {
         return find1(_getObjectFactoryClassPackage, aPackage, new Getter1<Class,Package>() {
             @Override
@@ -167,7 +181,7 @@ public class PrismBeanInspector {
         });
     }
     
-    private Map<String,Class> _getObjectFactoryClassNamespace = Collections.synchronizedMap(new HashMap());
+    private final ConcurrentMap<String,Class> _getObjectFactoryClassNamespace = new ConcurrentHashMap<>();
     Class getObjectFactoryClass(String namespaceUri) {
         return find1(_getObjectFactoryClassNamespace, namespaceUri, new Getter1<Class,String>() {
             @Override
@@ -177,7 +191,7 @@ public class PrismBeanInspector {
         });
     }
 
-    private Map<Class<? extends Object>, List<String>> _getPropOrder = Collections.synchronizedMap(new HashMap());
+    private final ConcurrentMap<Class<? extends Object>,List<String>> _getPropOrder = new ConcurrentHashMap<>();
 
     List<String> getPropOrder(Class<? extends Object> beanClass) {
         return find1(_getPropOrder, beanClass, new Getter1<List<String>, Class<? extends Object>>() {
@@ -188,7 +202,7 @@ public class PrismBeanInspector {
         });
     }
 
-    private Map<Class,Map<String,Method>> _findElementMethodInObjectFactory = Collections.synchronizedMap(new HashMap());
+    private final ConcurrentMap<Class,ConcurrentMap<String,Method>> _findElementMethodInObjectFactory = new ConcurrentHashMap<>();
 
     Method findElementMethodInObjectFactory(Class objectFactoryClass, String propName) {
         return find2(_findElementMethodInObjectFactory, objectFactoryClass, propName, new Getter2<Method,Class,String>() {
@@ -199,7 +213,7 @@ public class PrismBeanInspector {
         });
     }
 
-    private Map<Class,Map<Method,Field>> _lookupSubstitution = Collections.synchronizedMap(new HashMap());
+    private final ConcurrentMap<Class,ConcurrentMap<Method,Field>> _lookupSubstitution = new ConcurrentHashMap<>();
 
     <T> Field lookupSubstitution(Class<T> beanClass, Method elementMethod) {
         return find2(_lookupSubstitution, beanClass, elementMethod, new Getter2<Field,Class,Method>() {
@@ -210,7 +224,7 @@ public class PrismBeanInspector {
         });
     }
 
-    private Map<Class,Map<String,String>> _findEnumFieldName = Collections.synchronizedMap(new HashMap());
+    private final ConcurrentMap<Class,ConcurrentMap<String,String>> _findEnumFieldName = new ConcurrentHashMap<>();
 
     <T> String findEnumFieldName(Class<T> classType, String primValue) {
         return find2(_findEnumFieldName, classType, primValue, new Getter2<String,Class,String>() {
@@ -221,7 +235,7 @@ public class PrismBeanInspector {
         });
     }
 
-    private Map<Class,Map<String,String>> _findEnumFieldValue = Collections.synchronizedMap(new HashMap());
+    private final ConcurrentMap<Class,ConcurrentMap<String,String>> _findEnumFieldValue = new ConcurrentHashMap<>();
 
     <T> String findEnumFieldValue(Class<T> classType, String toStringValue) {
         return find2(_findEnumFieldValue, classType, toStringValue, new Getter2<String,Class,String>() {
@@ -232,7 +246,7 @@ public class PrismBeanInspector {
         });
     }
 
-    private Map<Field,Map<Class<? extends Object>,Map<String,QName>>> _findFieldTypeName = Collections.synchronizedMap(new HashMap());
+    private final ConcurrentMap<Field,ConcurrentMap<Class<? extends Object>,ConcurrentMap<String,QName>>> _findFieldTypeName = new ConcurrentHashMap<>();
 
     QName findFieldTypeName(Field field, Class<? extends Object> beanClass, String defaultNamespacePlaceholder) {
         return find3(_findFieldTypeName, field, beanClass, defaultNamespacePlaceholder, new Getter3<QName,Field,Class<? extends Object>,String>() {
@@ -243,7 +257,7 @@ public class PrismBeanInspector {
         });
     }
 
-    private Map<String,Map<Class<? extends Object>,Map<String,QName>>> _findFieldElementQName = Collections.synchronizedMap(new HashMap());
+    private final ConcurrentMap<String,ConcurrentMap<Class<? extends Object>,ConcurrentMap<String,QName>>> _findFieldElementQName = new ConcurrentHashMap<>();
 
     QName findFieldElementQName(String fieldName, Class<? extends Object> beanClass, String defaultNamespace) {
         return find3(_findFieldElementQName, fieldName, beanClass, defaultNamespace, new Getter3<QName, String, Class<? extends Object>, String>() {
@@ -254,7 +268,7 @@ public class PrismBeanInspector {
         });
     }
 
-    private Map<Class,Map<String,Method>> _findPropertyGetter = Collections.synchronizedMap(new HashMap());
+    private final ConcurrentMap<Class,ConcurrentMap<String,Method>> _findPropertyGetter = new ConcurrentHashMap<>();
 
     public <T> Method findPropertyGetter(Class<T> beanClass, String propName) {
         return find2(_findPropertyGetter, beanClass, propName, new Getter2<Method,Class,String>() {
@@ -265,7 +279,7 @@ public class PrismBeanInspector {
         });
     }
 
-    private Map<Class,Map<String,Field>> _findPropertyField = Collections.synchronizedMap(new HashMap());
+    private final ConcurrentMap<Class,ConcurrentMap<String,Field>> _findPropertyField = new ConcurrentHashMap<>();
 
     public <T> Field findPropertyField(Class<T> beanClass, String propName) {
         return find2(_findPropertyField, beanClass, propName, new Getter2<Field,Class,String>() {
@@ -669,7 +683,29 @@ public class PrismBeanInspector {
     }
     //endregion
     
+    private final ConcurrentMap<Class,Field> _findAnyField = new ConcurrentHashMap<>();
+
     public <T> Field findAnyField(Class<T> beanClass) {
+        return find1(_findAnyField, beanClass, new Getter1<Field,Class>() {
+            @Override
+            public Field get(Class c) {
+                return findAnyFieldUncached(c);
+            }
+        });
+    }
+
+    private final ConcurrentMap<Class,Method> _findAnyMethod = new ConcurrentHashMap<>();
+
+    public <T> Method findAnyMethod(Class<T> beanClass) {
+        return find1(_findAnyMethod, beanClass, new Getter1<Method,Class>() {
+            @Override
+            public Method get(Class c) {
+                return findAnyMethodUncached(c);
+            }
+        });
+    }
+
+    <T> Field findAnyFieldUncached(Class<T> beanClass) {
     	return findField(beanClass, new Handler<Field>() {
 			@Override
 			public boolean handle(Field field) {
@@ -678,7 +714,7 @@ public class PrismBeanInspector {
     	});
     }
     
-    public <T> Method findAnyMethod(Class<T> beanClass) {
+    <T> Method findAnyMethodUncached(Class<T> beanClass) {
     	return findMethod(beanClass, new Handler<Method>() {
 			@Override
 			public boolean handle(Method method) {
@@ -18,7 +18,7 @@ package com.evolveum.midpoint.prism.path;
 
 /**
  * Denotes identifier of the object or container (i.e. OID or container ID).
- * Currently supported only for sorting (not even for filtering!).
+ * Currently supported only for sorting and (in the repository) for comparing object OIDs with constants.
  *
  * @author mederly
  */
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.prism;
+
+import static com.evolveum.midpoint.prism.PrismInternalTestUtil.COMMON_DIR_PATH;
+import static com.evolveum.midpoint.prism.PrismInternalTestUtil.DEFAULT_NAMESPACE_PREFIX;
+import static com.evolveum.midpoint.prism.PrismInternalTestUtil.USER_JACK_ADHOC_BASENAME;
+import static com.evolveum.midpoint.prism.PrismInternalTestUtil.USER_JACK_FILE_BASENAME;
+import static com.evolveum.midpoint.prism.PrismInternalTestUtil.USER_JACK_OBJECT_BASENAME;
+import static com.evolveum.midpoint.prism.PrismInternalTestUtil.assertUserJack;
+import static com.evolveum.midpoint.prism.PrismInternalTestUtil.constructInitializedPrismContext;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
+
+import com.evolveum.midpoint.prism.delta.DiffUtil;
+import com.evolveum.midpoint.prism.delta.ObjectDelta;
+import com.evolveum.midpoint.prism.foo.UserType;
+import com.evolveum.midpoint.prism.parser.XNodeProcessorEvaluationMode;
+import com.evolveum.midpoint.util.PrettyPrinter;
+
+/**
+ * Tests for the binary object format (PrismContext.serializeObjectToBinary).
+ *
+ * @author agent
+ */
+public class TestBinarySerialization {
+
+	@BeforeSuite
+	public void setupDebug() {
+		PrettyPrinter.setDefaultNamespacePrefix(DEFAULT_NAMESPACE_PREFIX);
+	}
+
+	private File getFile(String baseName) {
+		return new File(new File(COMMON_DIR_PATH, "xml"), baseName + ".xml");
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		final String TEST_NAME = "testRoundTrip";
+		PrismInternalTestUtil.displayTestTitle(TEST_NAME);
+
+		PrismObject<UserType> parsedUser = roundTrip(getFile(USER_JACK_FILE_BASENAME));
+		assertUserJack(parsedUser);
+	}
+
+	@Test
+	public void testRoundTripObject() throws Exception {
+		final String TEST_NAME = "testRoundTripObject";
+		PrismInternalTestUtil.displayTestTitle(TEST_NAME);
+
+		PrismObject<UserType> parsedUser = roundTrip(getFile(USER_JACK_OBJECT_BASENAME));
+		assertUserJack(parsedUser);
+	}
+
+	@Test
+	public void testRoundTripAdhoc() throws Exception {
+		final String TEST_NAME = "testRoundTripAdhoc";
+		PrismInternalTestUtil.displayTestTitle(TEST_NAME);
+
+		roundTrip(getFile(USER_JACK_ADHOC_BASENAME));
+	}
+
+	@Test
+	public void testBinaryDetection() throws Exception {
+		final String TEST_NAME = "testBinaryDetection";
+		PrismInternalTestUtil.displayTestTitle(TEST_NAME);
+
+		// GIVEN
+		PrismContext prismContext = constructInitializedPrismContext();
+		PrismObject<UserType> user = prismContext.parseObject(getFile(USER_JACK_FILE_BASENAME));
+
+		// WHEN
+		byte[] binary = prismContext.serializeObjectToBinary(user);
+		byte[] xml = prismContext.serializeObjectToString(user, PrismContext.LANG_XML).getBytes(StandardCharsets.UTF_8);
+
+		// THEN
+		System.out.println("Binary size: " + binary.length + ", XML size: " + xml.length);
+		assertTrue("Binary data not recognized", PrismContext.isBinary(binary));
+		assertFalse("XML data recognized as binary", PrismContext.isBinary(xml));
+		assertFalse("Empty data recognized as binary", PrismContext.isBinary(new byte[0]));
+		assertTrue("Binary data are not smaller than XML", binary.length < xml.length);
+	}
+
+	private PrismObject<UserType> roundTrip(File file) throws Exception {
+		// GIVEN
+		PrismContext prismContext = constructInitializedPrismContext();
+		PrismObject<UserType> originalUser = prismContext.parseObject(file);
+
+		System.out.println("Input parsed user:");
+		System.out.println(originalUser.debugDump());
+		assertNotNull(originalUser);
+
+		// WHEN
+		byte[] binary = prismContext.serializeObjectToBinary(originalUser);
+
+		// THEN
+		assertNotNull(binary);
+		System.out.println("Serialized user: " + binary.length + " bytes");
+
+		// WHEN
+		PrismObject<UserType> parsedUser = prismContext.parseObject(binary,
+				ParsingContext.forMode(XNodeProcessorEvaluationMode.STRICT));
+		System.out.println("Re-parsed user:");
+		System.out.println(parsedUser.debugDump());
+		assertNotNull(parsedUser);
+
+		ObjectDelta<UserType> diff = DiffUtil.diff(originalUser, parsedUser);
+		System.out.println("Diff:");
+		System.out.println(diff.debugDump());
+
+		assertTrue("Diff: " + diff, diff.isEmpty());
+		assertTrue("Users not equal", originalUser.equals(parsedUser));
+		return parsedUser;
+	}
+}
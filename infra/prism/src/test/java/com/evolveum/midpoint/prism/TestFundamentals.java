@@ -23,6 +23,12 @@ import static org.testng.AssertJUnit.assertNotNull;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.evolveum.midpoint.prism.xnode.MapXNode;
 import com.evolveum.prism.xml.ns._public.types_3.RawType;
@@ -30,6 +36,7 @@ import org.testng.annotations.BeforeSuite;
 import org.testng.annotations.Test;
 import org.xml.sax.SAXException;
 
+import com.evolveum.midpoint.prism.delta.DeltaSetTriple;
 import com.evolveum.midpoint.prism.delta.ItemDelta;
 import com.evolveum.midpoint.prism.delta.ObjectDelta;
 import com.evolveum.midpoint.prism.delta.PropertyDelta;
@@ -103,4 +110,146 @@ public class TestFundamentals {
 		assertEquals("Wrong or missing type QName", typeQName, rawTypeClone.getXnode().getTypeQName());
 	}
 
+	@Test
+	public void testLargePropertyValueIndex() throws Exception {
+		System.out.println("\n\n===[ testLargePropertyValueIndex ]===\n");
+		// GIVEN
+		PrismProperty<String> property = new PrismProperty<String>(new QName(NS_FOO, "member"));
+		int count = PrismValueIndex.getThreshold() * 4;
+
+		// WHEN
+		for (int i = 0; i < count; i++) {
+			assertTrue("Value "+i+" not added", property.add(new PrismPropertyValue<String>("member"+i)));
+		}
+		boolean duplicateAdded = property.add(new PrismPropertyValue<String>("member7"));
+
+		// THEN
+		assertEquals("Duplicate value was added", false, duplicateAdded);
+		assertEquals("Wrong number of values", count, property.size());
+		assertTrue("Value not found", property.contains(new PrismPropertyValue<String>("member" + (count - 1))));
+		assertTrue("Value not found by real value", property.containsRealValue(new PrismPropertyValue<String>("member3")));
+		assertEquals("Unexpected value found", false, property.contains(new PrismPropertyValue<String>("nobody")));
+
+		// values modified directly and in place must be found as well
+		property.getValues().set(0, new PrismPropertyValue<String>("replaced"));
+		property.getValues().get(1).setValue("changed");
+		assertTrue("Replaced value not found", property.contains(new PrismPropertyValue<String>("replaced")));
+		assertTrue("Changed value not found", property.contains(new PrismPropertyValue<String>("changed")));
+		assertEquals("Old value found", false, property.contains(new PrismPropertyValue<String>("member1")));
+	}
+
+	@Test
+	public void testLargePropertyValueIndexConcurrentRead() throws Exception {
+		System.out.println("\n\n===[ testLargePropertyValueIndexConcurrentRead ]===\n");
+		// GIVEN
+		final PrismProperty<String> property = new PrismProperty<String>(new QName(NS_FOO, "member"));
+		final int count = PrismValueIndex.getThreshold() * 4;
+		for (int i = 0; i < count; i++) {
+			property.add(new PrismPropertyValue<String>("member"+i));
+		}
+		int threads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (int round = 0; round < 20; round++) {
+				// the index is built again by the first reader(s)
+				property.getValues().set(0, new PrismPropertyValue<String>("member0"));
+				final CountDownLatch start = new CountDownLatch(1);
+				List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+				for (int t = 0; t < threads; t++) {
+					results.add(executor.submit(new Callable<Boolean>() {
+						@Override
+						public Boolean call() throws Exception {
+							start.await();
+							for (int i = count - 1; i >= 0; i--) {
+								if (!property.contains(new PrismPropertyValue<String>("member"+i))) {
+									return false;
+								}
+							}
+							return true;
+						}
+					}));
+				}
+
+				// WHEN
+				start.countDown();
+
+				// THEN
+				for (Future<Boolean> result : results) {
+					assertTrue("Value not found in round " + round, result.get());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testLargeContainerValueConcurrentFindItem() throws Exception {
+		System.out.println("\n\n===[ testLargeContainerValueConcurrentFindItem ]===\n");
+		// GIVEN
+		final PrismContainerValue<?> containerValue = new PrismContainerValue<>();
+		final int count = 100;
+		for (int i = 0; i < count; i++) {
+			containerValue.add(new PrismProperty<String>(new QName(NS_FOO, "item"+i)));
+		}
+		int threads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (int round = 0; round < 20; round++) {
+				// the index is built again by the first reader(s)
+				containerValue.getItems().set(0, new PrismProperty<String>(new QName(NS_FOO, "item0")));
+				final CountDownLatch start = new CountDownLatch(1);
+				List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+				for (int t = 0; t < threads; t++) {
+					results.add(executor.submit(new Callable<Boolean>() {
+						@Override
+						public Boolean call() throws Exception {
+							start.await();
+							for (int i = count - 1; i >= 0; i--) {
+								if (containerValue.findItem(new QName(NS_FOO, "item"+i)) == null) {
+									return false;
+								}
+							}
+							return true;
+						}
+					}));
+				}
+
+				// WHEN
+				start.countDown();
+
+				// THEN
+				for (Future<Boolean> result : results) {
+					assertTrue("Item not found in round " + round, result.get());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testLargeDeltaSetTripleDiff() throws Exception {
+		System.out.println("\n\n===[ testLargeDeltaSetTripleDiff ]===\n");
+		// GIVEN
+		int count = PrismValueIndex.getThreshold() * 4;
+		Collection<PrismPropertyValue<String>> valuesOld = new ArrayList<PrismPropertyValue<String>>();
+		Collection<PrismPropertyValue<String>> valuesNew = new ArrayList<PrismPropertyValue<String>>();
+		for (int i = 0; i < count; i++) {
+			valuesOld.add(new PrismPropertyValue<String>("member"+i));
+			valuesNew.add(new PrismPropertyValue<String>("member"+(i+10)));
+		}
+
+		// WHEN
+		DeltaSetTriple<PrismPropertyValue<String>> triple = DeltaSetTriple.diff(valuesOld, valuesNew);
+		triple.addToZeroSet(new PrismPropertyValue<String>("member20"));
+
+		// THEN
+		assertEquals("Wrong zero set size", count - 10, triple.getZeroSet().size());
+		assertEquals("Wrong plus set size", 10, triple.getPlusSet().size());
+		assertEquals("Wrong minus set size", 10, triple.getMinusSet().size());
+		assertTrue("Missing plus value", triple.presentInPlusSet(new PrismPropertyValue<String>("member"+(count+9))));
+		assertTrue("Missing minus value", triple.presentInMinusSet(new PrismPropertyValue<String>("member0")));
+	}
+
 }
@@ -33,9 +33,11 @@ import org.testng.annotations.Test;
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 
+import com.evolveum.midpoint.prism.delta.PropertyDelta;
 import com.evolveum.midpoint.prism.foo.ActivationType;
 import com.evolveum.midpoint.prism.foo.AssignmentType;
 import com.evolveum.midpoint.prism.foo.UserType;
+import com.evolveum.midpoint.prism.path.ItemPath;
 import com.evolveum.midpoint.prism.util.PrismAsserts;
 import com.evolveum.midpoint.util.DOMUtil;
 import com.evolveum.midpoint.util.PrettyPrinter;
@@ -48,6 +50,7 @@ import com.evolveum.midpoint.util.exception.SchemaException;
 public class TestPerformance {
 	
 	private static final int ITERATIONS = 10000;
+	private static final int MANY_ITEMS = 500;
 	
 	
 	@BeforeSuite
@@ -113,4 +116,59 @@ public class TestPerformance {
 		System.out.println(user.debugDump());
 	}	
 
+	/**
+	 * Container value with many items (e.g. shadow attributes or a large extension).
+	 * Finding an item and applying a delta should not depend on the number of items.
+	 */
+	@Test
+	public void testPerfContainerManyItems() throws Exception {
+		final String TEST_NAME = "testPerfContainerManyItems";
+		PrismInternalTestUtil.displayTestTitle(TEST_NAME);
+
+		// GIVEN
+		PrismContext ctx = constructInitializedPrismContext();
+		PrismContainer<Containerable> container = new PrismContainer<>(new QName(NS_FOO, "attributes"), ctx);
+		PrismContainerValue<Containerable> containerValue = container.createNewValue();
+		for (int i = 0; i < MANY_ITEMS; i++) {
+			PrismProperty<String> property = new PrismProperty<>(new QName(NS_FOO, "attr" + i), ctx);
+			property.setRealValue("value " + i);
+			containerValue.add(property);
+		}
+		PerfRecorder recorderFindProperty = new PerfRecorder("findProperty");
+		PerfRecorder recorderApplyDelta = new PerfRecorder("applyDelta");
+
+		// WHEN
+		for (int i=0; i < ITERATIONS; i++) {
+			QName attrName = new QName(NS_FOO, "attr" + (i % MANY_ITEMS));
+			PropertyDelta<String> delta = new PropertyDelta<>(new ItemPath(attrName), null, ctx);
+			delta.setValuesToReplace(new PrismPropertyValue<>("new value " + i));
+
+			long tsStart = System.nanoTime();
+
+			PrismProperty<String> property = containerValue.findProperty(attrName);
+
+			long ts1 = System.nanoTime();
+
+			delta.applyTo(containerValue);
+
+			long tsEnd = System.nanoTime();
+
+			assertNotNull("No property " + attrName, property);
+			recorderFindProperty.record(i, ((double)(ts1 - tsStart))/1000000);
+			recorderApplyDelta.record(i, ((double)(tsEnd - ts1))/1000000);
+		}
+
+		// THEN
+		System.out.println(recorderFindProperty.dump());
+		System.out.println(recorderApplyDelta.dump());
+
+		recorderFindProperty.assertAverageBelow(0.01D);
+		recorderApplyDelta.assertAverageBelow(0.05D);
+
+		assertEquals("Wrong number of items", MANY_ITEMS, containerValue.getItems().size());
+		PrismProperty<String> lastProperty = containerValue.findProperty(new QName(NS_FOO, "attr" + ((ITERATIONS - 1) % MANY_ITEMS)));
+		assertEquals("Wrong value", "new value " + (ITERATIONS - 1), lastProperty.getRealValue());
+		assertNotNull("Property not found by unqualified name", containerValue.findProperty(new QName("attr7")));
+	}
+
 }
@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2010-2015 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.prism.parser;
+
+import com.evolveum.midpoint.prism.PrismInternalTestUtil;
+import com.evolveum.midpoint.prism.foo.AttributesType;
+import com.evolveum.midpoint.prism.util.PrismTestUtil;
+import com.evolveum.midpoint.util.PrettyPrinter;
+import com.evolveum.midpoint.util.exception.SchemaException;
+
+import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
+import org.xml.sax.SAXException;
+
+import javax.xml.bind.annotation.XmlAnyElement;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.evolveum.midpoint.prism.PrismInternalTestUtil.DEFAULT_NAMESPACE_PREFIX;
+import static com.evolveum.midpoint.prism.PrismInternalTestUtil.displayTestTitle;
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+
+/**
+ * Tests the lock-free caches of PrismBeanInspector.
+ *
+ * @author agent
+ */
+public class TestPrismBeanInspector {
+
+    private static final int THREADS = 8;
+
+    public static class AnyMethodBean {
+        @XmlAnyElement
+        public List<Object> getAny() {
+            return null;
+        }
+    }
+
+    public static class InheritedAnyFieldBean extends AttributesType {
+    }
+
+    public static class NoAnyBean {
+        protected String name;
+    }
+
+    @BeforeSuite
+    public void setupDebug() throws SchemaException, SAXException, IOException {
+        PrettyPrinter.setDefaultNamespacePrefix(DEFAULT_NAMESPACE_PREFIX);
+        PrismTestUtil.resetPrismContext(new PrismInternalTestUtil());
+    }
+
+    private PrismBeanInspector createInspector() {
+        return new PrismBeanInspector(PrismTestUtil.getPrismContext());
+    }
+
+    @Test
+    public void test100CachedNullResult() throws Exception {
+        final String TEST_NAME = "test100CachedNullResult";
+        displayTestTitle(TEST_NAME);
+
+        PrismBeanInspector inspector = createInspector();
+        ConcurrentMap<String, String> cache = new ConcurrentHashMap<>();
+        CountingGetter getter = new CountingGetter(null);
+
+        // WHEN
+        String first = inspector.find1(cache, "key", getter);
+        String second = inspector.find1(cache, "key", getter);
+
+        // THEN
+        assertNull("Unexpected first value", first);
+        assertNull("Unexpected second value", second);
+        assertEquals("Null result was not cached", 1, getter.count.get());
+        assertEquals("Wrong cache size", 1, cache.size());
+    }
+
+    @Test
+    public void test110CachedNullKey() throws Exception {
+        final String TEST_NAME = "test110CachedNullKey";
+        displayTestTitle(TEST_NAME);
+
+        PrismBeanInspector inspector = createInspector();
+        ConcurrentMap<String, String> cache = new ConcurrentHashMap<>();
+        CountingGetter getter = new CountingGetter("value");
+
+        // WHEN
+        String first = inspector.find1(cache, null, getter);
+        String second = inspector.find1(cache, null, getter);
+
+        // THEN
+        assertEquals("Wrong first value", "value", first);
+        assertEquals("Wrong second value", "value", second);
+        assertEquals("Value for null key was not cached", 1, getter.count.get());
+    }
+
+    @Test
+    public void test120NestedSubcaches() throws Exception {
+        final String TEST_NAME = "test120NestedSubcaches";
+        displayTestTitle(TEST_NAME);
+
+        PrismBeanInspector inspector = createInspector();
+        ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, String>>> cache = new ConcurrentHashMap<>();
+        final AtomicInteger count = new AtomicInteger();
+        PrismBeanInspector.Getter3<String, String, String, String> getter = new PrismBeanInspector.Getter3<String, String, String, String>() {
+            @Override
+            public String get(String param1, String param2, String param3) {
+                count.incrementAndGet();
+                return param3 != null ? param1 + param2 + param3 : null;
+            }
+        };
+
+        // WHEN
+        assertEquals("abc", inspector.find3(cache, "a", "b", "c", getter));
+        assertEquals("abd", inspector.find3(cache, "a", "b", "d", getter));
+        assertEquals("aec", inspector.find3(cache, "a", "e", "c", getter));
+        assertNull(inspector.find3(cache, "a", null, null, getter));
+        assertEquals("abc", inspector.find3(cache, "a", "b", "c", getter));
+        assertNull(inspector.find3(cache, "a", null, null, getter));
+
+        // THEN
+        assertEquals("Wrong number of computations", 4, count.get());
+        assertEquals("Wrong number of first-level entries", 1, cache.size());
+        ConcurrentMap<String, ConcurrentMap<String, String>> subcache = cache.get("a");
+        assertEquals("Wrong number of second-level entries", 3, subcache.size());
+        assertEquals("Wrong number of third-level entries", 2, subcache.get("b").size());
+    }
+
+    @Test
+    public void test130NestedSubcachesConcurrentFirstAccess() throws Exception {
+        final String TEST_NAME = "test130NestedSubcachesConcurrentFirstAccess";
+        displayTestTitle(TEST_NAME);
+
+        final PrismBeanInspector inspector = createInspector();
+        final ConcurrentMap<String, ConcurrentMap<String, String>> cache = new ConcurrentHashMap<>();
+        final PrismBeanInspector.Getter2<String, String, String> getter = new PrismBeanInspector.Getter2<String, String, String>() {
+            @Override
+            public String get(String param1, String param2) {
+                return param1 + param2;
+            }
+        };
+
+        // WHEN
+        List<String> results = runConcurrently(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                String name = Thread.currentThread().getName();
+                return inspector.find2(cache, "a", name, getter);
+            }
+        });
+
+        // THEN
+        assertEquals("A subcache was lost", 1, cache.size());
+        ConcurrentMap<String, String> subcache = cache.get("a");
+        for (String result : results) {
+            assertTrue("Result " + result + " is not in the subcache", subcache.containsValue(result));
+        }
+    }
+
+    @Test
+    public void test200FindAnyField() throws Exception {
+        final String TEST_NAME = "test200FindAnyField";
+        displayTestTitle(TEST_NAME);
+
+        PrismBeanInspector inspector = createInspector();
+
+        // WHEN
+        Field field = inspector.findAnyField(InheritedAnyFieldBean.class);
+        Field fieldAgain = inspector.findAnyField(InheritedAnyFieldBean.class);
+        Field none = inspector.findAnyField(NoAnyBean.class);
+        Field noneAgain = inspector.findAnyField(NoAnyBean.class);
+
+        // THEN
+        assertNotNull("No any field", field);
+        assertEquals("Cached field differs from uncached one", inspector.findAnyFieldUncached(InheritedAnyFieldBean.class), field);
+        assertSame("Field was not cached", field, fieldAgain);
+        assertNull("Unexpected any field", none);
+        assertNull("Unexpected any field on second lookup", noneAgain);
+    }
+
+    @Test
+    public void test210FindAnyMethod() throws Exception {
+        final String TEST_NAME = "test210FindAnyMethod";
+        displayTestTitle(TEST_NAME);
+
+        PrismBeanInspector inspector = createInspector();
+
+        // WHEN
+        Method method = inspector.findAnyMethod(AnyMethodBean.class);
+        Method methodAgain = inspector.findAnyMethod(AnyMethodBean.class);
+        Method none = inspector.findAnyMethod(NoAnyBean.class);
+
+        // THEN
+        assertNotNull("No any method", method);
+        assertEquals("Cached method differs from uncached one", inspector.findAnyMethodUncached(AnyMethodBean.class), method);
+        assertSame("Method was not cached", method, methodAgain);
+        assertNull("Unexpected any method", none);
+    }
+
+    @Test
+    public void test220FindAnyFieldConcurrentFirstAccess() throws Exception {
+        final String TEST_NAME = "test220FindAnyFieldConcurrentFirstAccess";
+        displayTestTitle(TEST_NAME);
+
+        final PrismBeanInspector inspector = createInspector();
+
+        // WHEN
+        List<Field> fields = runConcurrently(new Callable<Field>() {
+            @Override
+            public Field call() throws Exception {
+                return inspector.findAnyField(InheritedAnyFieldBean.class);
+            }
+        });
+        List<Method> methods = runConcurrently(new Callable<Method>() {
+            @Override
+            public Method call() throws Exception {
+                return inspector.findAnyMethod(AnyMethodBean.class);
+            }
+        });
+
+        // THEN
+        Field expectedField = inspector.findAnyFieldUncached(InheritedAnyFieldBean.class);
+        Field cachedField = inspector.findAnyField(InheritedAnyFieldBean.class);
+        for (Field field : fields) {
+            assertEquals("Wrong field", expectedField, field);
+        }
+        Method expectedMethod = inspector.findAnyMethodUncached(AnyMethodBean.class);
+        Method cachedMethod = inspector.findAnyMethod(AnyMethodBean.class);
+        for (Method method : methods) {
+            assertEquals("Wrong method", expectedMethod, method);
+        }
+        // after the race, all later lookups return the single stored value
+        assertSame("Field was not cached", cachedField, inspector.findAnyField(InheritedAnyFieldBean.class));
+        assertSame("Method was not cached", cachedMethod, inspector.findAnyMethod(AnyMethodBean.class));
+    }
+
+    private <T> List<T> runConcurrently(final Callable<T> callable) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<T>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(executor.submit(new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        start.await();
+                        return callable.call();
+                    }
+                }));
+            }
+            start.countDown();
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : futures) {
+                results.add(future.get(30, TimeUnit.SECONDS));
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static class CountingGetter implements PrismBeanInspector.Getter1<String, String> {
+
+        private final String value;
+        private final AtomicInteger count = new AtomicInteger();
+
+        CountingGetter(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String get(String param1) {
+            count.incrementAndGet();
+            return value;
+        }
+    }
+}
@@ -30,10 +30,12 @@ import java.util.List;
  *     quickest method call - MIN
  *     average length of method call - MEAN
  *     number of method calls - USAGE_COUNT
+ *     distribution of method call durations - P50, P95, P99
  *
  *  We also update these statistics every time specific method call is captured by MidpointInterceptor class and then
- *  processed by AspectProfilingFilters. This is performed in update() method that is synchronized for obvious
- *  reasons.
+ *  processed by ProfilingDataManager. Durations are recorded into a lock-free LatencyHistogram, so the update
+ *  is safe to be called from any number of threads concurrently. Only the list of slowest calls is guarded by
+ *  a lock, and it is entered only for calls slower than the current top-N minimum.
  *
  *  @author shood
  * */
@@ -41,33 +43,35 @@ public class MethodUsageStatistics {
 
     private static Trace LOGGER = TraceManager.getTrace(ProfilingDataManager.class);
 
-    private long min = Long.MAX_VALUE;
-    private long max = 0;
-    private long mean = 0;
-    private long processTimeMean = 0;
-    private long usageCount = 1;
-    private long currentTopTenMin = Long.MAX_VALUE;
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final LatencyHistogram processTimeHistogram = new LatencyHistogram();
+    private volatile long currentTopTenMin = Long.MIN_VALUE;
     private ProfilingDataManager.Subsystem subsystem;
+    private final String className;
+    private final String methodName;
     private List<ProfilingDataLog> slowestMethodList = Collections.synchronizedList(new ArrayList<ProfilingDataLog>());
 
-    public MethodUsageStatistics(ProfilingDataLog logEvent, ProfilingDataManager.Subsystem subsystem){
-        long estTime = logEvent.getEstimatedTime();
-
-        this.min = estTime;
-        this.max = estTime;
-        this.usageCount++;
-        this.currentTopTenMin = estTime;
+    public MethodUsageStatistics(String className, String methodName, ProfilingDataManager.Subsystem subsystem) {
+        this.className = className;
+        this.methodName = methodName;
         this.subsystem = subsystem;
-        this.mean = estTime;
+    }
 
+    public MethodUsageStatistics(ProfilingDataLog logEvent, ProfilingDataManager.Subsystem subsystem){
+        this(logEvent.getClassName(), logEvent.getMethodName(), subsystem);
+        update(logEvent);
     }
 
-    public long getProcessTimeMean() {
-        return processTimeMean;
+    public String getClassName() {
+        return className;
     }
 
-    public void setProcessTimeMean(long processTimeMean) {
-        this.processTimeMean = processTimeMean;
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public long getProcessTimeMean() {
+        return processTimeHistogram.getSnapshot().getMean();
     }
 
     public ProfilingDataManager.Subsystem getSubsystem() {
@@ -79,35 +83,23 @@ public class MethodUsageStatistics {
     }
 
     public long getMin() {
-        return min;
-    }
-
-    public void setMin(long min) {
-        this.min = min;
+        return histogram.getSnapshot().getMin();
     }
 
     public long getMax() {
-        return max;
-    }
-
-    public void setMax(long max) {
-        this.max = max;
+        return histogram.getSnapshot().getMax();
     }
 
     public long getMean() {
-        return mean;
-    }
-
-    public void setMean(long mean) {
-        this.mean = mean;
+        return histogram.getSnapshot().getMean();
     }
 
     public long getUsageCount() {
-        return usageCount;
+        return histogram.getSnapshot().getCount();
     }
 
-    public void setUsageCount(long usageCount) {
-        this.usageCount = usageCount;
+    public LatencyHistogram.Snapshot getSnapshot() {
+        return histogram.getSnapshot();
     }
 
     public long getCurrentTopTenMin() {
@@ -126,47 +118,49 @@ public class MethodUsageStatistics {
         this.slowestMethodList = slowestMethodList;
     }
 
-    public synchronized void update(ProfilingDataLog logEvent){
-        long currentEst = logEvent.getEstimatedTime();
-
-        if(this.min > currentEst)
-            this.min = currentEst;
-
-        if(this.max < currentEst)
-            this.max = currentEst;
-
-        calculateMeanIterative(currentEst);
-        usageCount++;
-
+    public void update(ProfilingDataLog logEvent){
+        update(logEvent.getEstimatedTime());
     }
 
-    private void calculateMeanIterative(long currentEst){
-        this.mean += (currentEst - this.mean)/this.usageCount;
+    public void update(long estimatedTime) {
+        histogram.record(estimatedTime);
     }
 
     public void updateProcessTimeList(long est){
-        this.processTimeMean += (est - this.processTimeMean)/this.usageCount;
+        processTimeHistogram.record(est);
     }
 
     public void appendToLogger(boolean afterTest){
-        ProfilingDataLog log = this.slowestMethodList.get(0);
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        Object[] args = new Object[]{className, methodName, snapshot.getCount(), formatExecutionTime(snapshot.getMax()),
+                formatExecutionTime(snapshot.getMin()), formatExecutionTime(snapshot.getMean()),
+                formatExecutionTime(snapshot.getPercentile(50)), formatExecutionTime(snapshot.getPercentile(95)),
+                formatExecutionTime(snapshot.getPercentile(99)), formatExecutionTime(getProcessTimeMean())};
 
         if(afterTest){
-            LOGGER.info("{}->{}: CALLS: {} MAX: {} MIN: {} MEAN: {} PROCESS_TIME_MEAN: {}",
-                    new Object[]{log.getClassName(), log.getMethodName(), usageCount, formatExecutionTime(max), formatExecutionTime(min), formatExecutionTime(this.mean),
-                            formatExecutionTime(processTimeMean)});
+            LOGGER.info("{}->{}: CALLS: {} MAX: {} MIN: {} MEAN: {} P50: {} P95: {} P99: {} PROCESS_TIME_MEAN: {}", args);
         } else {
-            LOGGER.debug("{}->{}: CALLS: {} MAX: {} MIN: {} MEAN: {} PROCESS_TIME_MEAN: {}",
-                    new Object[]{log.getClassName(), log.getMethodName(), usageCount, formatExecutionTime(max), formatExecutionTime(min), formatExecutionTime(this.mean),
-                            formatExecutionTime(processTimeMean)});
+            LOGGER.debug("{}->{}: CALLS: {} MAX: {} MIN: {} MEAN: {} P50: {} P95: {} P99: {} PROCESS_TIME_MEAN: {}", args);
         }
 
-
-        for(ProfilingDataLog l: this.slowestMethodList)
+        List<ProfilingDataLog> slowest;
+        synchronized (slowestMethodList) {
+            slowest = new ArrayList<>(slowestMethodList);
+        }
+        for(ProfilingDataLog l: slowest)
             l.appendToLogger(afterTest);
     }
 
-    private static String formatExecutionTime(long est){
+    public String toSummaryString() {
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        return className + "->" + methodName + ": calls: " + snapshot.getCount()
+                + " p50: " + formatExecutionTime(snapshot.getPercentile(50))
+                + " p95: " + formatExecutionTime(snapshot.getPercentile(95))
+                + " p99: " + formatExecutionTime(snapshot.getPercentile(99))
+                + " max: " + formatExecutionTime(snapshot.getMax());
+    }
+
+    static String formatExecutionTime(long est){
         StringBuilder sb = new StringBuilder();
 
         sb.append((long) (est / 1000000));
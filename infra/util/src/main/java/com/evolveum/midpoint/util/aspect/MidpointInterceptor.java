@@ -43,7 +43,7 @@ public class MidpointInterceptor implements MethodInterceptor {
 	// This logger provide profiling informations
     private static final org.slf4j.Logger LOGGER_PROFILING = org.slf4j.LoggerFactory.getLogger("PROFILING");
 
-    private static boolean isProfilingActive = false;
+    private static volatile boolean isProfilingActive = false;
 
 	private static final String MDC_SUBSYSTEM_KEY = "subsystem";
     public static final String INDENT_STRING = " ";
@@ -260,6 +260,10 @@ public class MidpointInterceptor implements MethodInterceptor {
         isProfilingActive = false;
     }
 
+    public static boolean isSubsystemProfilingActive(){
+        return isProfilingActive;
+    }
+
     private String formatVal(Object value) {
 		if (value == null) {
 			return ("null");
@@ -19,7 +19,13 @@ package com.evolveum.midpoint.util.aspect;
 import com.evolveum.midpoint.util.logging.Trace;
 import com.evolveum.midpoint.util.logging.TraceManager;
 
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  *  IMPORTANT NOTES:
@@ -28,7 +34,12 @@ import java.util.*;
  *  This is a Singleton Class
  *
  *  ProfilingDataManager serves as a head of profiling data manipulation, configuration and dumping to log.
- *  Some of processes in this class are synchronized for obvious reasons.
+ *
+ *  Recording of profiling events is called from all threads via MidpointInterceptor, so it must be cheap
+ *  and free of contention: statistics are kept in a concurrent map and each method's durations are recorded
+ *  into a lock-free histogram (see MethodUsageStatistics). Only dumping to log is synchronized.
+ *
+ *  Current statistics (including percentiles) are also available via JMX, see ProfilingDataManagerMXBean.
  *
  *  @author shood
  * */
@@ -37,7 +48,10 @@ public class ProfilingDataManager {
     /*
     *   private instance of ProfilingDataManager
     * */
-    private static ProfilingDataManager profilingDataManager = null;
+    private static volatile ProfilingDataManager profilingDataManager = null;
+
+    public static final String JMX_OBJECT_NAME = "com.evolveum.midpoint:type=ProfilingDataManager";
+    private static boolean jmxRegistered = false;
 
     private static final int DEFAULT_DUMP_INTERVAL = 30;
     private static final int DEFAULT_PERF_DUMP_INTERVAL = 10;
@@ -75,23 +89,28 @@ public class ProfilingDataManager {
 
     private static Trace LOGGER = TraceManager.getTrace(ProfilingDataManager.class);
 
-    private long lastDumpTimestamp;
-    private long lastPerformanceDumpTimestamp;
+    private volatile long lastDumpTimestamp;
+    private volatile long lastPerformanceDumpTimestamp;
     private int minuteDumpInterval = DEFAULT_DUMP_INTERVAL;
 
     private boolean isPerformanceProfiled = false;
 
-    private Map<String, MethodUsageStatistics> performanceMap = new HashMap<>();
+    private volatile ConcurrentMap<String, MethodUsageStatistics> performanceMap = new ConcurrentHashMap<>();
 
     private static final String PRINT_RIGHT_ARROW = "->";
 
     public static ProfilingDataManager getInstance() {
 
-        if(profilingDataManager == null){
-            profilingDataManager = new ProfilingDataManager(DEFAULT_DUMP_INTERVAL, false);
+        ProfilingDataManager instance = profilingDataManager;
+        if (instance == null) {
+            synchronized (ProfilingDataManager.class) {
+                if (profilingDataManager == null) {
+                    profilingDataManager = new ProfilingDataManager(DEFAULT_DUMP_INTERVAL, false);
+                }
+                instance = profilingDataManager;
+            }
         }
-
-        return profilingDataManager;
+        return instance;
     }
 
     private ProfilingDataManager(int dumpInterval, boolean performance) {
@@ -121,6 +140,22 @@ public class ProfilingDataManager {
 
         profilingTest = false;
         profilingDataManager = new ProfilingDataManager(minuteDumpInterval, performance);
+        registerJmx();
+    }
+
+    private static synchronized void registerJmx() {
+        if (jmxRegistered) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new JmxAccess(), new ObjectName(JMX_OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // e.g. another midPoint instance in the same JVM (tests); it delegates to the same singleton anyway
+        } catch (Exception e) {
+            LOGGER.warn("Couldn't register profiling data MBean: {}", e.getMessage(), e);
+        }
+        jmxRegistered = true;
     }
 
     public void configureProfilingDataManagerForTest(Map<Subsystem, Boolean> subsystems, boolean performance){
@@ -133,72 +168,86 @@ public class ProfilingDataManager {
 
     public void applyGranularityFilterOnEnd(String className, String methodName, Object[] args, Subsystem subsystem, long startTime, long processingStartTime){
 
-        ProfilingDataLog profilingEvent;
-        profilingEvent = prepareProfilingDataLog(className, methodName, startTime, args);
-        String key = prepareKey(profilingEvent);
-
-        if(isRepositoryProfiled && Subsystem.REPOSITORY.equals(subsystem)){
-            updateOverallStatistics(performanceMap, profilingEvent, key,  Subsystem.REPOSITORY);
-
-        } else if(isModelProfiled && Subsystem.MODEL.equals(subsystem)){
-            updateOverallStatistics(performanceMap, profilingEvent, key, Subsystem.MODEL);
-
-        } else if (isProvisioningProfiled && Subsystem.PROVISIONING.equals(subsystem)){
-            updateOverallStatistics(performanceMap, profilingEvent, key, Subsystem.PROVISIONING);
-
-        } else if (isTaskManagerProfiled && Subsystem.TASK_MANAGER.equals(subsystem)){
-            updateOverallStatistics(performanceMap, profilingEvent, key, Subsystem.TASK_MANAGER);
-
-        } else if (isUcfProfiled && Subsystem.UCF.equals(subsystem)){
-            updateOverallStatistics(performanceMap, profilingEvent, key, Subsystem.UCF);
-
-        } else if(isSynchronizationServiceProfiled && Subsystem.SYNCHRONIZATION_SERVICE.equals(subsystem)){
-            updateOverallStatistics(performanceMap, profilingEvent, key, Subsystem.SYNCHRONIZATION_SERVICE);
+        if (subsystem != null && isSubsystemProfiled(subsystem)) {
+            long estimatedTime = calculateTime(startTime);
+            String key = prepareKey(className, methodName);
+            MethodUsageStatistics statistics = getOrCreateStatistics(key, className, methodName, subsystem);
+            statistics.update(estimatedTime);
 
-        } else if(isWorkflowProfiled && Subsystem.WORKFLOW.equals(subsystem)){
-            updateOverallStatistics(performanceMap, profilingEvent, key, Subsystem.WORKFLOW);
+            // creating the event (and formatting the arguments) is relatively expensive, so do it only when needed
+            if (estimatedTime > statistics.getCurrentTopTenMin()) {
+                updateSlowestMethodList(statistics, new ProfilingDataLog(className, methodName, estimatedTime, System.currentTimeMillis(), args));
+            }
+            statistics.updateProcessTimeList(System.nanoTime() - processingStartTime);
         }
 
-        Long processingEstTime = System.nanoTime() - processingStartTime;
-        logEventProcessingDuration(key, processingEstTime);
-
-        ProfilingDataManager.getInstance().dumpToLog();
+        dumpToLog();
     }
 
-    private void logEventProcessingDuration(String key, long est){
-        if(performanceMap.get(key) != null)
-            performanceMap.get(key).updateProcessTimeList(est);
+    private boolean isSubsystemProfiled(Subsystem subsystem) {
+        switch (subsystem) {
+            case REPOSITORY: return isRepositoryProfiled;
+            case MODEL: return isModelProfiled;
+            case PROVISIONING: return isProvisioningProfiled;
+            case TASK_MANAGER: return isTaskManagerProfiled;
+            case UCF: return isUcfProfiled;
+            case SYNCHRONIZATION_SERVICE: return isSynchronizationServiceProfiled;
+            case WORKFLOW: return isWorkflowProfiled;
+            default: return false;          // WEB events come through prepareRequestProfilingEvent
+        }
     }
 
     public void prepareRequestProfilingEvent(ProfilingDataLog requestEvent){
         String key = requestEvent.getClassName();
-        updateOverallStatistics(performanceMap, requestEvent, key, Subsystem.WEB);
+        MethodUsageStatistics statistics = getOrCreateStatistics(key, requestEvent.getClassName(), requestEvent.getMethodName(), Subsystem.WEB);
+        statistics.update(requestEvent);
+        if (requestEvent.getEstimatedTime() > statistics.getCurrentTopTenMin()) {
+            updateSlowestMethodList(statistics, requestEvent);
+        }
     }
 
-    private String prepareKey(ProfilingDataLog log){
-        String key = log.getClassName();
-        key = key.concat(PRINT_RIGHT_ARROW);
-        key = key.concat(log.getMethodName());
+    private MethodUsageStatistics getOrCreateStatistics(String key, String className, String methodName, Subsystem subsystem) {
+        ConcurrentMap<String, MethodUsageStatistics> map = performanceMap;
+        MethodUsageStatistics statistics = map.get(key);
+        if (statistics == null) {
+            MethodUsageStatistics newStatistics = new MethodUsageStatistics(className, methodName, subsystem);
+            statistics = map.putIfAbsent(key, newStatistics);
+            if (statistics == null) {
+                statistics = newStatistics;
+            }
+        }
+        return statistics;
+    }
 
-        return key;
+    private String prepareKey(String className, String methodName){
+        return className + PRINT_RIGHT_ARROW + methodName;
     }
 
-    public synchronized void dumpToLog(){
+    public void dumpToLog(){
         if(profilingTest){
             return;
         }
 
+        // cheap unsynchronized check, as this is called after each profiled method invocation
         long currentTime = System.currentTimeMillis();
+        if (currentTime < lastDumpTimestamp + minutesToMillis(minuteDumpInterval)
+                && (!isPerformanceProfiled || currentTime < lastPerformanceDumpTimestamp + minutesToMillis(DEFAULT_PERF_DUMP_INTERVAL))) {
+            return;
+        }
+        dumpToLogSynchronized(currentTime);
+    }
+
+    private synchronized void dumpToLogSynchronized(long currentTime) {
 
         if(currentTime >= (lastDumpTimestamp + minutesToMillis(minuteDumpInterval))){
+            // if the data are not dumped to log, they are kept (cumulatively) for JMX clients
             if(LOGGER.isDebugEnabled()){
-
                 printEverything(false);
-
-                //Set next dump cycle
-                lastDumpTimestamp = System.currentTimeMillis();
                 cleanEverything();
             }
+
+            //Set next dump cycle (even if nothing was printed, to keep the check in dumpToLog cheap)
+            lastDumpTimestamp = System.currentTimeMillis();
         }
 
         //Print performance statistics if needed
@@ -241,37 +290,30 @@ public class ProfilingDataManager {
         return (long)(minutes*60*1000);
     }
 
-    private synchronized void updateOverallStatistics(Map<String, MethodUsageStatistics> logMap, ProfilingDataLog eventLog, String key, Subsystem subsystem){
-        if(!logMap.containsKey(key)){
-            eventLog.setArgs(prepareArguments(eventLog.args));
-            logMap.put(key, new MethodUsageStatistics(eventLog, subsystem));
-        } else {
-            logMap.get(key).update(eventLog);
-        }
-
-        if(logMap.get(key).getSlowestMethodList().size() < TOP_TEN_METHOD_NUMBER){
+    private void updateSlowestMethodList(MethodUsageStatistics statistics, ProfilingDataLog eventLog){
+        List<ProfilingDataLog> slowestMethodList = statistics.getSlowestMethodList();
+        synchronized (slowestMethodList) {
+            if (slowestMethodList.size() >= TOP_TEN_METHOD_NUMBER
+                    && slowestMethodList.get(slowestMethodList.size()-1).getEstimatedTime() >= eventLog.getEstimatedTime()) {
+                return;         // someone was faster
+            }
             eventLog.setArgs(prepareArguments(eventLog.args));
-            logMap.get(key).getSlowestMethodList().add(eventLog);
-            sort(logMap.get(key).getSlowestMethodList());
-        } else {
-            if(logMap.get(key).getSlowestMethodList().get(logMap.get(key).getSlowestMethodList().size()-1).getEstimatedTime() < eventLog.getEstimatedTime()){
-                eventLog.setArgs(prepareArguments(eventLog.args));
-                logMap.get(key).getSlowestMethodList().add(eventLog);
-                sort(logMap.get(key).getSlowestMethodList());
-                logMap.get(key).setCurrentTopTenMin(logMap.get(key).getSlowestMethodList().get(logMap.get(key).getSlowestMethodList().size()-1).getEstimatedTime());
+            slowestMethodList.add(eventLog);
+            sort(slowestMethodList);
+            while (slowestMethodList.size() > TOP_TEN_METHOD_NUMBER) {
+                slowestMethodList.remove(slowestMethodList.size()-1);
+            }
+            if (slowestMethodList.size() >= TOP_TEN_METHOD_NUMBER) {
+                statistics.setCurrentTopTenMin(slowestMethodList.get(slowestMethodList.size()-1).getEstimatedTime());
             }
-        }
-
-        if(logMap.get(key).getSlowestMethodList().size() > TOP_TEN_METHOD_NUMBER){
-            logMap.get(key).getSlowestMethodList().remove(logMap.get(key).getSlowestMethodList().size()-1);
         }
     }
 
     private static void printMap(Map<String, MethodUsageStatistics> logMap, Subsystem subsystem, boolean afterTest){
 
-        for(String key: logMap.keySet()){
-            if(logMap.get(key) != null && subsystem.equals(logMap.get(key).getSubsystem())){
-                logMap.get(key).appendToLogger(afterTest);
+        for(MethodUsageStatistics statistics: logMap.values()){
+            if(subsystem.equals(statistics.getSubsystem())){
+                statistics.appendToLogger(afterTest);
             }
         }
     }
@@ -296,17 +338,11 @@ public class ProfilingDataManager {
     }
 
     private void cleanEverything(){
-        performanceMap.clear();
+        // threads still holding statistics from the old map will simply update an object that is no longer visible
+        performanceMap = new ConcurrentHashMap<>();
     }
 
-    private ProfilingDataLog prepareProfilingDataLog(String className, String methodName, long startTime, Object[] args){
-        long eTime = calculateTime(startTime);
-        long timestamp = System.currentTimeMillis();
-
-        return new ProfilingDataLog(className, methodName, eTime, timestamp, args);
-    }
-
-    private synchronized static List<ProfilingDataLog> sort(List<ProfilingDataLog> list){
+    private static List<ProfilingDataLog> sort(List<ProfilingDataLog> list){
         Collections.sort(list, arrayComparator);
         return list;
     }
@@ -366,4 +402,46 @@ public class ProfilingDataManager {
     public Map<String, MethodUsageStatistics> getProfilingData(){
         return performanceMap;
     }
+
+    /**
+     * Exposes current profiling data via JMX. Delegates to the current instance, as it is replaced on reconfiguration.
+     */
+    private static class JmxAccess implements ProfilingDataManagerMXBean {
+
+        @Override
+        public boolean isProfilingActive() {
+            return MidpointInterceptor.isSubsystemProfilingActive();
+        }
+
+        @Override
+        public int getDumpInterval() {
+            return getInstance().getMinuteDumpInterval();
+        }
+
+        @Override
+        public List<String> getMethodStatistics() {
+            List<String> rv = new ArrayList<>();
+            for (MethodUsageStatistics statistics : getInstance().getPerformanceMap().values()) {
+                rv.add(statistics.toSummaryString());
+            }
+            Collections.sort(rv);
+            return rv;
+        }
+
+        @Override
+        public long getPercentile(String method, double percentile) {
+            MethodUsageStatistics statistics = getInstance().getPerformanceMap().get(method);
+            return statistics != null ? statistics.getSnapshot().getPercentile(percentile) : -1;
+        }
+
+        @Override
+        public void dumpStatistics() {
+            getInstance().printEverything(true);
+        }
+
+        @Override
+        public void resetStatistics() {
+            getInstance().cleanEverything();
+        }
+    }
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.util.aspect;
+
+import java.util.List;
+
+/**
+ *  JMX view of the subsystem profiling data. Registered under ProfilingDataManager.JMX_OBJECT_NAME
+ *  when profiling is configured.
+ *
+ *  @author agent
+ */
+public interface ProfilingDataManagerMXBean {
+
+    boolean isProfilingActive();
+
+    int getDumpInterval();
+
+    /**
+     * One line per profiled method, containing number of calls, p50, p95, p99 and max duration.
+     */
+    List<String> getMethodStatistics();
+
+    /**
+     * Returns given percentile (0-100) of duration of a method, in nanoseconds; or -1 if the method is not known.
+     * Method is identified as "class->method" (with "com.evolveum.midpoint" replaced by "..").
+     */
+    long getPercentile(String method, double percentile);
+
+    /**
+     * Writes current statistics to the log, regardless of the dump interval.
+     */
+    void dumpStatistics();
+
+    void resetStatistics();
+}
@@ -16,13 +16,16 @@
 
 package com.evolveum.midpoint.util;
 
+import com.evolveum.midpoint.util.aspect.LatencyHistogram;
 import com.evolveum.midpoint.util.aspect.MethodUsageStatistics;
 import com.evolveum.midpoint.util.aspect.PerformanceStatistics;
 import com.evolveum.midpoint.util.aspect.ProfilingDataLog;
 import com.evolveum.midpoint.util.aspect.ProfilingDataManager;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.testng.AssertJUnit.*;
@@ -181,4 +184,63 @@ public class ProfilingTest {
         //Now we test the results
         assertSame(2, perfMap.keySet().size());
     }
+
+    @Test
+    public void prof_06_histogramPercentiles(){
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        //WHEN - values 1..1000 microseconds
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+
+        //THEN - percentiles are upper estimates within 12.5% of the real value
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(1000L, snapshot.getMin());
+        assertEquals(1000000L, snapshot.getMax());
+        assertEquals(500500L, snapshot.getMean());
+        assertPercentile(snapshot, 50, 500000L);
+        assertPercentile(snapshot, 95, 950000L);
+        assertPercentile(snapshot, 99, 990000L);
+        assertEquals(1000000L, snapshot.getPercentile(100));
+    }
+
+    private void assertPercentile(LatencyHistogram.Snapshot snapshot, double percentile, long expected) {
+        long value = snapshot.getPercentile(percentile);
+        assertTrue("p" + percentile + " too low: " + value, value >= expected);
+        assertTrue("p" + percentile + " too high: " + value, value <= expected + expected / 8);
+    }
+
+    @Test
+    public void prof_07_histogramConcurrentRecording() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final int THREADS = 8;
+        final int VALUES = 100000;
+
+        //WHEN
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < VALUES; i++) {
+                        histogram.record(i);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        //THEN - no updates are lost
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals((long) THREADS * VALUES, snapshot.getCount());
+        assertEquals((long) THREADS * ((long) VALUES * (VALUES - 1) / 2), snapshot.getSum());
+        assertEquals(0L, snapshot.getMin());
+        assertEquals(VALUES - 1L, snapshot.getMax());
+    }
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.model.common.expression.script.jsr223;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.script.CompiledScript;
+
+/**
+ * Size-bounded cache of compiled scripts, keyed by the script source. Least recently used
+ * scripts are evicted when the cache is full.
+ *
+ * @author agent
+ */
+public class CompiledScriptCache {
+
+	public static final int DEFAULT_MAX_SIZE = 1000;
+
+	private final Map<String, CompiledScript> scripts;
+	private volatile int maxSize;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public CompiledScriptCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	public CompiledScriptCache(int maxSize) {
+		this.maxSize = maxSize;
+		this.scripts = new LinkedHashMap<String, CompiledScript>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CompiledScript> eldest) {
+				if (size() > CompiledScriptCache.this.maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public CompiledScript get(String code) {
+		CompiledScript compiledScript;
+		synchronized (scripts) {
+			compiledScript = scripts.get(code);
+		}
+		if (compiledScript != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+		return compiledScript;
+	}
+
+	public void put(String code, CompiledScript compiledScript) {
+		if (maxSize <= 0) {
+			return;
+		}
+		synchronized (scripts) {
+			scripts.put(code, compiledScript);
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Zero or negative value switches the caching off.
+	 */
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		synchronized (scripts) {
+			Iterator<String> iterator = scripts.keySet().iterator();
+			while (scripts.size() > Math.max(maxSize, 0) && iterator.hasNext()) {
+				iterator.next();
+				iterator.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	public int size() {
+		synchronized (scripts) {
+			return scripts.size();
+		}
+	}
+
+	public void clear() {
+		synchronized (scripts) {
+			scripts.clear();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public void resetStatistics() {
+		hits.set(0);
+		misses.set(0);
+		evictions.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "CompiledScriptCache(size=" + size() + "/" + maxSize + ", hits=" + hits.get() + ", misses=" + misses.get()
+				+ ", evictions=" + evictions.get() + ")";
+	}
+}
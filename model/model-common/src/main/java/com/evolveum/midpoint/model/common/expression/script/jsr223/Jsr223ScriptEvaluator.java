@@ -17,17 +17,21 @@ package com.evolveum.midpoint.model.common.expression.script.jsr223;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
 
 import javax.script.Bindings;
 import javax.script.Compilable;
 import javax.script.CompiledScript;
+import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+import javax.script.SimpleScriptContext;
 import javax.xml.namespace.QName;
 
 import com.evolveum.midpoint.common.monitor.InternalMonitor;
@@ -66,6 +70,10 @@ import com.evolveum.midpoint.xml.ns._public.common.common_3.ScriptExpressionRetu
 /**
  * Expression evaluator that is using javax.script (JSR-223) engine.
  * 
+ * Compiled scripts are kept in a size-bounded cache. Function libraries are bound in the global scope
+ * of the script context; these bindings are built once and shared by all evaluations. Only the variables
+ * are bound per evaluation, using a binding object (and script context) that is reused by the thread.
+ * 
  * @author Radovan Semancik
  *
  */
@@ -77,7 +85,9 @@ public class Jsr223ScriptEvaluator implements ScriptEvaluator {
 	private PrismContext prismContext;
 	private Protector protector;
 	
-	private Map<String, CompiledScript> scriptCache;
+	private final CompiledScriptCache scriptCache;
+	private volatile FunctionBindings functionBindings;
+	private final ThreadLocal<EvaluationScope> threadScope = new ThreadLocal<>();
 	
 	public Jsr223ScriptEvaluator(String engineName, PrismContext prismContext, Protector protector) {
 		ScriptEngineManager scriptEngineManager = new ScriptEngineManager();
@@ -87,7 +97,15 @@ public class Jsr223ScriptEvaluator implements ScriptEvaluator {
 		}
 		this.prismContext = prismContext;
 		this.protector = protector;
-		this.scriptCache = new ConcurrentHashMap<String, CompiledScript>();
+		this.scriptCache = new CompiledScriptCache();
+	}
+
+	public CompiledScriptCache getScriptCache() {
+		return scriptCache;
+	}
+
+	public void setScriptCacheMaxSize(int maxSize) {
+		scriptCache.setMaxSize(maxSize);
 	}
 	
 	@Override
@@ -97,8 +115,6 @@ public class Jsr223ScriptEvaluator implements ScriptEvaluator {
 													  String contextDescription, Task task, OperationResult result) throws ExpressionEvaluationException,
 			ObjectNotFoundException, ExpressionSyntaxException {
 		
-		Bindings bindings = convertToBindings(variables, objectResolver, functions, contextDescription, task, result);
-		
 		String codeString = expressionType.getCode();
 		if (codeString == null) {
 			throw new ExpressionEvaluationException("No script code in " + contextDescription);
@@ -111,13 +127,8 @@ public class Jsr223ScriptEvaluator implements ScriptEvaluator {
 		
 		CompiledScript compiledScript = createCompiledScript(codeString, contextDescription);
 		
-		Object evalRawResult;
-		try {
-			InternalMonitor.recordScriptExecution();
-			evalRawResult = compiledScript.eval(bindings);
-		} catch (ScriptException e) {
-			throw new ExpressionEvaluationException(e.getMessage() + " " + contextDescription, e);
-		}
+		Object evalRawResult = evaluateCompiledScript(compiledScript, variables, objectResolver, functions,
+				contextDescription, task, result);
 		
 		if (outputDefinition == null) {
 			// No outputDefinition means "void" return type, we can return right now
@@ -199,8 +210,6 @@ public class Jsr223ScriptEvaluator implements ScriptEvaluator {
 			String contextDescription, OperationResult result) throws ExpressionEvaluationException,
 			ObjectNotFoundException, ExpressionSyntaxException {
 		
-		Bindings bindings = convertToBindings(variables, objectResolver, functions, contextDescription, (Task) null, result);
-		
 //		String codeString = code;
 		if (codeString == null) {
 			throw new ExpressionEvaluationException("No script code in " + contextDescription);
@@ -213,17 +222,63 @@ public class Jsr223ScriptEvaluator implements ScriptEvaluator {
 		
 		CompiledScript compiledScript = createCompiledScript(codeString, contextDescription);
 		
-		Object evalRawResult;
+		Object evalRawResult = evaluateCompiledScript(compiledScript, variables, objectResolver, functions,
+				contextDescription, (Task) null, result);
+				
+		return evalRawResult;
+	}
+
+	private Object evaluateCompiledScript(CompiledScript compiledScript, ExpressionVariables variables,
+			ObjectResolver objectResolver, Collection<FunctionLibrary> functions, String contextDescription,
+			Task task, OperationResult result) throws ExpressionEvaluationException, ObjectNotFoundException,
+			ExpressionSyntaxException {
+		EvaluationScope scope = acquireScope();
 		try {
+			convertToBindings(scope.variableBindings, variables, objectResolver, contextDescription, task, result);
+			scope.context.setBindings(getFunctionBindings(functions), ScriptContext.GLOBAL_SCOPE);
 			InternalMonitor.recordScriptExecution();
-			evalRawResult = compiledScript.eval(bindings);
+			return compiledScript.eval(scope.context);
 		} catch (ScriptException e) {
 			throw new ExpressionEvaluationException(e.getMessage() + " " + contextDescription, e);
+		} finally {
+			releaseScope(scope);
 		}
-		
-		
-				
-		return evalRawResult;
+	}
+
+	/**
+	 * Returns the scope cached for this thread. If it is already used (i.e. the script evaluation is nested,
+	 * e.g. a script invoking a model operation that evaluates mappings) a new scope is created.
+	 */
+	private EvaluationScope acquireScope() {
+		EvaluationScope scope = threadScope.get();
+		if (scope == null) {
+			scope = new EvaluationScope();
+			threadScope.set(scope);
+		} else if (scope.inUse) {
+			scope = new EvaluationScope();
+		}
+		scope.inUse = true;
+		return scope;
+	}
+
+	private void releaseScope(EvaluationScope scope) {
+		// do not keep references to the variables (e.g. focus objects) after the evaluation
+		scope.context.getBindings(ScriptContext.ENGINE_SCOPE).clear();
+		scope.context.setBindings(null, ScriptContext.GLOBAL_SCOPE);
+		scope.inUse = false;
+	}
+
+	private Bindings getFunctionBindings(Collection<FunctionLibrary> functions) {
+		if (functions == null) {
+			return null;
+		}
+		FunctionBindings current = functionBindings;
+		if (current != null && current.isFor(functions)) {
+			return current.bindings;
+		}
+		current = new FunctionBindings(functions);
+		functionBindings = current;
+		return current.bindings;
 	}
 	
 	private CompiledScript createCompiledScript(String codeString, String contextDescription) throws ExpressionEvaluationException {
@@ -263,16 +318,9 @@ public class Jsr223ScriptEvaluator implements ScriptEvaluator {
 		return false;
 	}
 	
-	private Bindings convertToBindings(ExpressionVariables variables, ObjectResolver objectResolver,
-									   Collection<FunctionLibrary> functions,
-									   String contextDescription, Task task, OperationResult result) throws ExpressionSyntaxException, ObjectNotFoundException {
-		Bindings bindings = scriptEngine.createBindings();
-		// Functions
-		if (functions != null) {
-			for (FunctionLibrary funcLib: functions) {
-				bindings.put(funcLib.getVariableName(), funcLib.getGenericFunctions());
-			}
-		}
+	private void convertToBindings(Bindings bindings, ExpressionVariables variables, ObjectResolver objectResolver,
+								   String contextDescription, Task task, OperationResult result) throws ExpressionSyntaxException, ObjectNotFoundException {
+		// Functions are in the global scope (see getFunctionBindings)
 		// Variables
 		if (variables != null) {
 			for (Entry<QName, Object> variableEntry: variables.entrySet()) {
@@ -285,7 +333,6 @@ public class Jsr223ScriptEvaluator implements ScriptEvaluator {
 				bindings.put(variableName, variableValue);
 			}
 		}
-		return bindings;
 	}
 
 	private Object convertVariableValue(Object originalValue, String variableName, ObjectResolver objectResolver,
@@ -352,4 +399,49 @@ public class Jsr223ScriptEvaluator implements ScriptEvaluator {
 		return LANGUAGE_URL_BASE + getLanguageName();
 	}
 
+	private static class EvaluationScope {
+
+		private final SimpleScriptContext context = new SimpleScriptContext();
+		private final Bindings variableBindings = new SimpleBindings();
+		private boolean inUse;
+
+		EvaluationScope() {
+			context.setBindings(variableBindings, ScriptContext.ENGINE_SCOPE);
+		}
+	}
+
+	/**
+	 * Immutable bindings of function libraries. Remembers the libraries it was built for, so changes
+	 * of the function library collection are detected.
+	 */
+	private static class FunctionBindings {
+
+		private final Collection<FunctionLibrary> functions;
+		private final FunctionLibrary[] libraries;
+		private final Bindings bindings;
+
+		FunctionBindings(Collection<FunctionLibrary> functions) {
+			this.functions = functions;
+			this.libraries = functions.toArray(new FunctionLibrary[functions.size()]);
+			Map<String, Object> map = new HashMap<>();
+			for (FunctionLibrary funcLib : libraries) {
+				map.put(funcLib.getVariableName(), funcLib.getGenericFunctions());
+			}
+			this.bindings = new SimpleBindings(Collections.unmodifiableMap(map));
+		}
+
+		boolean isFor(Collection<FunctionLibrary> functions) {
+			if (this.functions != functions || functions.size() != libraries.length) {
+				return false;
+			}
+			int i = 0;
+			for (FunctionLibrary funcLib : functions) {
+				if (funcLib != libraries[i++]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
 }
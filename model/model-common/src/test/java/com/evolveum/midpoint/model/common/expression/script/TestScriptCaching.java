@@ -19,6 +19,7 @@ import com.evolveum.midpoint.common.monitor.InternalMonitor;
 import com.evolveum.midpoint.model.common.expression.ExpressionUtil;
 import com.evolveum.midpoint.model.common.expression.ExpressionVariables;
 import com.evolveum.midpoint.model.common.expression.functions.FunctionLibrary;
+import com.evolveum.midpoint.model.common.expression.script.jsr223.CompiledScriptCache;
 import com.evolveum.midpoint.model.common.expression.script.jsr223.Jsr223ScriptEvaluator;
 import com.evolveum.midpoint.prism.ItemDefinition;
 import com.evolveum.midpoint.prism.PrismContext;
@@ -129,6 +130,45 @@ public class TestScriptCaching {
     	assertTrue("Even Horatio was wrong! "+horatio1Time+" -> "+horatio2Time, horatio2Time <= horatio1Time);
     }
     	
+    @Test
+    public void testBoundedCache() throws Exception {
+    	final String TEST_NAME = "testBoundedCache";
+    	TestUtil.displayTestTile(TEST_NAME);
+    	
+    	// GIVEN
+    	Jsr223ScriptEvaluator jsr223Evaluator = (Jsr223ScriptEvaluator) evaluator;
+    	CompiledScriptCache scriptCache = jsr223Evaluator.getScriptCache();
+    	jsr223Evaluator.setScriptCacheMaxSize(1);
+    	scriptCache.clear();
+    	scriptCache.resetStatistics();
+    	InternalMonitor.reset();
+    	
+    	try {
+	    	// WHEN, THEN
+	    	executeScript("expression-string-variables.xml", "FOOBAR", "first");
+	    	assertScriptMonitor(1,1, "first");
+	    	
+	    	executeScript("expression-string-variables.xml", "FOOBAR", "second");
+	    	assertScriptMonitor(1,2, "second");
+	    	
+	    	// Different script. Evicts the first one.
+	    	executeScript("expression-func-concatname.xml", "Horatio Torquemada Marley", "horatio");
+	    	assertScriptMonitor(2,3, "horatio");
+	    	
+	    	// Evicted, should compile again.
+	    	executeScript("expression-string-variables.xml", "FOOBAR", "third");
+	    	assertScriptMonitor(3,4, "third");
+	    	
+	    	assertEquals("Wrong cache size", 1, scriptCache.size());
+	    	assertEquals("Wrong # of cache hits", 1, scriptCache.getHits());
+	    	assertEquals("Wrong # of cache misses", 3, scriptCache.getMisses());
+	    	assertEquals("Wrong # of evictions", 2, scriptCache.getEvictions());
+    	} finally {
+    		jsr223Evaluator.setScriptCacheMaxSize(CompiledScriptCache.DEFAULT_MAX_SIZE);
+    		scriptCache.clear();
+    	}
+    }
+    	
     private void assertScriptMonitor(int expCompilations, int expExecutions, String desc) {
 		assertEquals("Unexpected number of script compilations after "+desc, expCompilations, InternalMonitor.getScriptCompileCount());
 		assertEquals("Unexpected number of script executions after "+desc, expExecutions, InternalMonitor.getScriptExecutionCount());
@@ -275,10 +275,42 @@ public class ObjectImporter {
 	        }
         }
 
-        validator.validate(input, parentResult, OperationConstants.IMPORT_OBJECT);
+        boolean orgClosureBulkMode = options != null && BooleanUtils.isTrue(options.isOrgClosureBulkMode());
+        if (orgClosureBulkMode) {
+            repository.beginOrgClosureBulkMode();
+        }
+        try {
+            validator.validate(input, parentResult, OperationConstants.IMPORT_OBJECT);
+        } catch (RuntimeException | Error e) {
+            if (orgClosureBulkMode) {
+                // problems are recorded in the result; the original exception is more important
+                finishOrgClosureBulkMode(parentResult);
+            }
+            throw e;
+        }
+        if (orgClosureBulkMode) {
+            OperationResult closureResult = finishOrgClosureBulkMode(parentResult);
+            if (closureResult.isError()) {
+                throw new SystemException("Couldn't finish org closure bulk mode: " + closureResult.getMessage());
+            }
+        }
 
     }
 
+    private OperationResult finishOrgClosureBulkMode(OperationResult parentResult) {
+        OperationResult closureResult = parentResult.createSubresult(ObjectImporter.class.getName() + ".finishOrgClosureBulkMode");
+        try {
+            repository.finishOrgClosureBulkMode(closureResult);
+        } catch (RuntimeException e) {
+            closureResult.recordFatalError("Couldn't finish org closure bulk mode: " + e.getMessage(), e);
+        }
+        closureResult.computeStatusIfUnknown();
+        if (closureResult.isError()) {
+            LOGGER.error("Couldn't finish org closure bulk mode: {}", closureResult.getMessage());
+        }
+        return closureResult;
+    }
+
     private <T extends ObjectType> void importObjectToRepository(PrismObject<T> object, ImportOptionsType options, boolean raw,
                                          Task task, OperationResult objectResult) throws ObjectNotFoundException, ExpressionEvaluationException, CommunicationException,
 				ConfigurationException, PolicyViolationException, SecurityViolationException, SchemaException, ObjectAlreadyExistsException {
@@ -23,6 +23,7 @@ import static com.evolveum.midpoint.model.api.ProgressInformation.StateType.ENTE
 
 import com.evolveum.midpoint.common.Clock;
 import com.evolveum.midpoint.common.InternalsConfig;
+import com.evolveum.midpoint.common.configuration.api.MidpointConfiguration;
 import com.evolveum.midpoint.model.api.ModelAuthorizationAction;
 import com.evolveum.midpoint.model.api.ModelExecuteOptions;
 import com.evolveum.midpoint.model.api.ProgressInformation;
@@ -56,6 +57,7 @@ import com.evolveum.midpoint.provisioning.api.ProvisioningOperationOptions;
 import com.evolveum.midpoint.provisioning.api.ProvisioningService;
 import com.evolveum.midpoint.repo.api.RepoAddOptions;
 import com.evolveum.midpoint.repo.api.RepositoryService;
+import com.evolveum.midpoint.repo.cache.RepositoryCache;
 import com.evolveum.midpoint.schema.GetOperationOptions;
 import com.evolveum.midpoint.schema.ObjectDeltaOperation;
 import com.evolveum.midpoint.schema.ResourceShadowDiscriminator;
@@ -82,17 +84,32 @@ import com.evolveum.midpoint.wf.api.WorkflowManager;
 import com.evolveum.midpoint.xml.ns._public.common.common_3.*;
 import com.evolveum.prism.xml.ns._public.types_3.RawType;
 
+import org.apache.commons.configuration.Configuration;
 import org.apache.commons.lang.BooleanUtils;
+import org.apache.commons.lang.Validate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.xml.bind.JAXBElement;
 import javax.xml.namespace.QName;
 
@@ -112,6 +129,9 @@ public class ChangeExecutor {
 	private static final String OPERATION_UNLINK_ACCOUNT = ChangeExecutor.class.getName() + ".unlinkShadow";
 	private static final String OPERATION_UPDATE_SITUATION_ACCOUNT = ChangeExecutor.class.getName() + ".updateSituationInShadow";
 
+	private static final String MODEL_CONFIGURATION = "midpoint.model";
+	private static final String PROPERTY_PROJECTION_EXECUTION_THREADS = "projectionExecutionThreads";
+
     @Autowired(required = true)
     private transient TaskManager taskManager;
 
@@ -141,15 +161,65 @@ public class ChangeExecutor {
     @Autowired(required = true)
 	private ModelObjectResolver objectResolver;
     
+    @Autowired(required = false)
+    private MidpointConfiguration midpointConfiguration;
+
     private PrismObjectDefinition<UserType> userDefinition = null;
     private PrismObjectDefinition<ShadowType> shadowDefinition = null;
-    
+
+    // executes provisioning operations of independent projections; null if projections are executed sequentially
+    private volatile ExecutorService projectionExecutor;
+    private int projectionExecutionThreads = 1;
+
     @PostConstruct
+    private void init() {
+    	locateDefinitions();
+    	initProjectionExecutor();
+    }
+
     private void locateDefinitions() {
     	userDefinition = prismContext.getSchemaRegistry().findObjectDefinitionByCompileTimeClass(UserType.class);
     	shadowDefinition = prismContext.getSchemaRegistry().findObjectDefinitionByCompileTimeClass(ShadowType.class);
     }
 
+    private void initProjectionExecutor() {
+    	int threads = 1;
+    	if (midpointConfiguration != null) {
+    		Configuration config = midpointConfiguration.getConfiguration(MODEL_CONFIGURATION);
+    		if (config != null) {
+    			threads = config.getInt(PROPERTY_PROJECTION_EXECUTION_THREADS, 1);
+    		}
+    	}
+    	setProjectionExecutionThreads(threads);
+    }
+
+    @PreDestroy
+    private synchronized void shutdown() {
+    	if (projectionExecutor != null) {
+    		projectionExecutor.shutdownNow();
+    		projectionExecutor = null;
+    	}
+    }
+
+    public synchronized int getProjectionExecutionThreads() {
+    	return projectionExecutionThreads;
+    }
+
+    /**
+     * Sets the number of threads that execute provisioning operations of independent projections. Value of 1 means
+     * that the projections are executed sequentially. Should not be changed while changes are being executed
+     * (it is meant for the initialization and tests).
+     */
+    public synchronized void setProjectionExecutionThreads(int threads) {
+    	Validate.isTrue(threads > 0, "Number of projection execution threads must be positive");
+    	shutdown();
+    	projectionExecutionThreads = threads;
+    	if (threads > 1) {
+    		LOGGER.info("Projections on different resources will be executed using {} threads", threads);
+    		projectionExecutor = Executors.newFixedThreadPool(threads, new ProjectionExecutionThreadFactory());
+    	}
+    }
+
 	// returns true if current operation has to be restarted, see ObjectAlreadyExistsException handling (TODO specify more exactly)
     public <O extends ObjectType> boolean executeChanges(LensContext<O> syncContext, Task task, OperationResult parentResult) throws ObjectAlreadyExistsException,
             ObjectNotFoundException, SchemaException, CommunicationException, ConfigurationException, SecurityViolationException, ExpressionEvaluationException {
@@ -216,6 +286,12 @@ public class ChangeExecutor {
         syncContext.checkAbortRequested();
 
 		boolean restartRequested = false;
+
+		// If configured, provisioning operations of independent projections are only started in the loop below.
+		// The rest of their processing is done in finishParallelProjections.
+		ExecutorService executor = projectionExecutor;
+		Map<String, Integer> projectionsPerResource = executor != null ? countProjectionsPerResource(syncContext) : null;
+		List<ParallelProjection> parallelProjections = new ArrayList<>();
     	
         for (LensProjectionContext accCtx : syncContext.getProjectionContexts()) {
         	if (accCtx.getWave() != syncContext.getExecutionWave()) {
@@ -237,6 +313,7 @@ public class ChangeExecutor {
 			if (accCtx.getResource() != null) {
 				subResult.addParam("resource", accCtx.getResource().getName());
 			}
+			ParallelProjection parallelProjection = null;
 			try {
 
                 syncContext.checkAbortRequested();
@@ -290,7 +367,16 @@ public class ChangeExecutor {
 						}
 					}
 
-					executeDelta(accDelta, accCtx, syncContext, null, accCtx.getResource(), task, subResult);
+					if (isIndependentProjection(accCtx, syncContext, projectionsPerResource)) {
+						parallelProjection = startProjectionDelta(executor, accDelta, accCtx, syncContext, task, subResult);
+						if (parallelProjection != null) {
+							// links, scripts and progress are processed when the operation finishes
+							parallelProjections.add(parallelProjection);
+							continue;
+						}
+					} else {
+						executeDelta(accDelta, accCtx, syncContext, null, accCtx.getResource(), task, subResult);
+					}
 
 				}
 
@@ -346,11 +432,18 @@ public class ChangeExecutor {
 				recordProjectionExecutionException(e, accCtx, subResult, SynchronizationPolicyDecision.BROKEN);
 				continue;
 			} finally {
-                syncContext.reportProgress(
-                        new ProgressInformation(RESOURCE_OBJECT_OPERATION,
-                                accCtx.getResourceShadowDiscriminator(), subResult));
+				if (parallelProjection == null) {
+	                syncContext.reportProgress(
+	                        new ProgressInformation(RESOURCE_OBJECT_OPERATION,
+	                                accCtx.getResourceShadowDiscriminator(), subResult));
+				}
             }
 		}
+
+		// Operations that were already started have to be finished even if the wave is going to be restarted.
+		if (finishParallelProjections(parallelProjections, syncContext, task)) {
+			restartRequested = true;
+		}
         
         // Result computation here needs to be slightly different
         result.computeStatusComposite();
@@ -358,6 +451,328 @@ public class ChangeExecutor {
 
     }
 
+	/**
+	 * Starts the provisioning operation of a projection that does not depend on any other projection in the wave
+	 * (see isIndependentProjection) and returns without waiting for it.
+	 *
+	 * Everything that works with the lens context (computing the delta, authorization, metadata, scripts) is done
+	 * here, in the clockwork thread. The worker thread only calls the provisioning service, with its own task
+	 * and operation result. The operation is finished by finishParallelProjections.
+	 *
+	 * Returns null if there is nothing to execute (the delta was already executed).
+	 */
+	private <F extends ObjectType> ParallelProjection startProjectionDelta(ExecutorService executor,
+			ObjectDelta<ShadowType> objectDelta, LensProjectionContext projCtx, LensContext<F> context, Task task, OperationResult parentResult)
+			throws ObjectAlreadyExistsException, ObjectNotFoundException, SchemaException, CommunicationException,
+			ConfigurationException, SecurityViolationException, ExpressionEvaluationException {
+
+		objectDelta = prepareDeltaExecution(objectDelta, projCtx, context, projCtx.getResource(), task);
+		if (objectDelta == null) {
+			return null;
+		}
+
+		final ParallelProjection parallelProjection = new ParallelProjection(projCtx, objectDelta, parentResult);
+		try {
+			prepareProvisioningOperation(parallelProjection, context, task);
+
+			Task workerTask = taskManager.createTaskInstance(OPERATION_EXECUTE_DELTA);
+			workerTask.setOwner(task.getOwner());
+			workerTask.setChannel(task.getChannel());
+			Utils.setRequestee(workerTask, context);
+			parallelProjection.workerTask = workerTask;
+
+			final Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+			parallelProjection.future = executor.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					SecurityContext securityContext = SecurityContextHolder.createEmptyContext();
+					securityContext.setAuthentication(authentication);
+					SecurityContextHolder.setContext(securityContext);
+					RepositoryCache.enter();
+					try {
+						return executeProvisioningOperation(parallelProjection);
+					} finally {
+						RepositoryCache.exit();
+						SecurityContextHolder.clearContext();
+					}
+				}
+			});
+		} catch (Throwable t) {
+			completeProjectionDelta(parallelProjection, context, task, t);
+			throw t;
+		}
+		return parallelProjection;
+	}
+
+	// The parallel counterpart of executeAddition/executeModification/executeDeletion, up to the provisioning operation.
+	private <F extends ObjectType> void prepareProvisioningOperation(ParallelProjection parallelProjection,
+			LensContext<F> context, Task task) throws ObjectAlreadyExistsException, ObjectNotFoundException,
+			SchemaException, CommunicationException, ConfigurationException, SecurityViolationException,
+			ExpressionEvaluationException {
+
+		LensProjectionContext projCtx = parallelProjection.projCtx;
+		ObjectDelta<ShadowType> change = parallelProjection.delta;
+		ResourceType resource = projCtx.getResource();
+		OperationResult result = parallelProjection.result;
+
+		parallelProjection.options = createProvisioningOptions(context, null);
+
+		OwnerResolver ownerResolver = createOwnerResolver(context, task, result);
+		if (change.getChangeType() == ChangeType.ADD) {
+			PrismObject<ShadowType> objectToAdd = getObjectToAdd(change);
+			parallelProjection.object = objectToAdd;
+			authorizeAddition(objectToAdd, context, ownerResolver, task, result);
+			parallelProjection.scripts = prepareAddScripts(objectToAdd, context, projCtx, resource, task, result);
+
+		} else if (change.getChangeType() == ChangeType.MODIFY) {
+			parallelProjection.object = projCtx.getObjectNew();
+			authorizeModification(change, projCtx, context, ownerResolver, task, result);
+			parallelProjection.scripts = prepareModifyScripts(ShadowType.class, change.getOid(), context, projCtx,
+					resource, task, result);
+
+		} else if (change.getChangeType() == ChangeType.DELETE) {
+			parallelProjection.object = projCtx.getObjectOld();
+			securityEnforcer.authorize(ModelAuthorizationAction.DELETE.getUrl(), AuthorizationPhaseType.EXECUTION,
+					projCtx.getObjectOld(), null, null, ownerResolver, result);
+			parallelProjection.scripts = prepareDeleteScripts(ShadowType.class, change.getOid(), context, projCtx,
+					resource, task, result);
+		}
+	}
+
+	// Runs in the worker thread. Does not touch the lens context nor the task of the clockwork.
+	private String executeProvisioningOperation(ParallelProjection parallelProjection) throws ObjectNotFoundException,
+			ObjectAlreadyExistsException, SchemaException, CommunicationException, ConfigurationException,
+			SecurityViolationException, ExpressionEvaluationException {
+		ObjectDelta<ShadowType> change = parallelProjection.delta;
+		Task workerTask = parallelProjection.workerTask;
+		OperationResult workerResult = parallelProjection.workerResult;
+		if (change.getChangeType() == ChangeType.ADD) {
+			return provisioning.addObject(parallelProjection.object, parallelProjection.scripts,
+					parallelProjection.options, workerTask, workerResult);
+		} else if (change.getChangeType() == ChangeType.MODIFY) {
+			return provisioning.modifyObject(ShadowType.class, change.getOid(), change.getModifications(),
+					parallelProjection.scripts, parallelProjection.options, workerTask, workerResult);
+		} else {
+			provisioning.deleteObject(ShadowType.class, change.getOid(), parallelProjection.options,
+					parallelProjection.scripts, workerTask, workerResult);
+			return change.getOid();
+		}
+	}
+
+	/**
+	 * Waits for the operations started by startProjectionDelta and finishes the processing of the projections
+	 * (executed deltas, links, reconciliation scripts, progress, error handling) in the original order.
+	 *
+	 * All of them are finished even if one of them requests restart of the wave: their operations were already
+	 * executed, so they must not be executed again in the restarted wave.
+	 */
+	private <O extends ObjectType> boolean finishParallelProjections(List<ParallelProjection> parallelProjections,
+			LensContext<O> syncContext, Task task) {
+		boolean restartRequested = false;
+		LensFocusContext<O> focusContext = syncContext.getFocusContext();
+		for (ParallelProjection parallelProjection : parallelProjections) {
+			LensProjectionContext accCtx = parallelProjection.projCtx;
+			OperationResult subResult = parallelProjection.projectionResult;
+			try {
+				finishProjectionDelta(parallelProjection, syncContext, task);
+
+				if (focusContext != null) {
+					updateLinks(focusContext, accCtx, task, subResult);
+				}
+
+				executeReconciliationScript(accCtx, syncContext, BeforeAfterType.AFTER, task, subResult);
+
+				subResult.computeStatus();
+				subResult.recordNotApplicableIfUnknown();
+
+			} catch (ObjectAlreadyExistsException e) {
+				// see executeChanges
+				if (isRepeatedAlreadyExistsException(accCtx)) {
+					recordProjectionExecutionException(e, accCtx, subResult, SynchronizationPolicyDecision.BROKEN);
+					continue;
+				}
+				subResult.recordSuccess();
+				subResult.muteLastSubresultError();
+				restartRequested = true;
+			} catch (SchemaException | ObjectNotFoundException | CommunicationException | ConfigurationException
+					| SecurityViolationException | ExpressionEvaluationException | RuntimeException e) {
+				recordProjectionExecutionException(e, accCtx, subResult, SynchronizationPolicyDecision.BROKEN);
+			} finally {
+				syncContext.reportProgress(
+						new ProgressInformation(RESOURCE_OBJECT_OPERATION,
+								accCtx.getResourceShadowDiscriminator(), subResult));
+			}
+		}
+		return restartRequested;
+	}
+
+	// The parallel counterpart of executeAddition/executeModification/executeDeletion, after the provisioning operation.
+	private <F extends ObjectType> void finishProjectionDelta(ParallelProjection parallelProjection, LensContext<F> context,
+			Task task) throws ObjectAlreadyExistsException, ObjectNotFoundException, SchemaException, CommunicationException,
+			ConfigurationException, SecurityViolationException, ExpressionEvaluationException {
+
+		String oid = null;
+		Throwable failure = null;
+		try {
+			oid = parallelProjection.future.get();
+		} catch (ExecutionException e) {
+			failure = e.getCause();
+		} catch (InterruptedException e) {
+			parallelProjection.future.cancel(true);
+			Thread.currentThread().interrupt();
+			failure = new SystemException("Interrupted while executing changes for "
+					+ parallelProjection.projCtx.toHumanReadableString(), e);
+		}
+
+		OperationResult result = parallelProjection.result;
+		for (OperationResult subresult : parallelProjection.workerResult.getSubresults()) {
+			result.addSubresult(subresult);
+		}
+
+		ObjectDelta<ShadowType> change = parallelProjection.delta;
+		if (failure instanceof ObjectNotFoundException && change.getChangeType() == ChangeType.DELETE) {
+			ignoreAlreadyDeleted(change.getOid(), ShadowType.class, result);
+			failure = null;
+		}
+		if (failure == null) {
+			if (change.getChangeType() == ChangeType.ADD) {
+				try {
+					checkProvisioningAddResult(oid, parallelProjection.object, result);
+					change.setOid(oid);
+				} catch (SystemException e) {
+					failure = e;
+				}
+			} else if (change.getChangeType() == ChangeType.MODIFY && oid != null && !oid.equals(change.getOid())) {
+				change.setOid(oid);
+			}
+		}
+
+		completeProjectionDelta(parallelProjection, context, task, failure);
+		if (failure != null) {
+			throwProjectionException(failure);
+		}
+	}
+
+	// The parallel counterpart of the bookkeeping done by executeDelta after the operation, both for success and failure.
+	private <F extends ObjectType> void completeProjectionDelta(ParallelProjection parallelProjection, LensContext<F> context,
+			Task task, Throwable failure) throws SchemaException {
+		LensProjectionContext projCtx = parallelProjection.projCtx;
+		ObjectDelta<ShadowType> change = parallelProjection.delta;
+		OperationResult result = parallelProjection.result;
+
+		String oid = failure != null && change.getChangeType() == ChangeType.ADD ? null : change.getOid();
+		task.recordObjectActionExecuted(parallelProjection.object, ShadowType.class, oid, change.getChangeType(),
+				context.getChannel(), failure);
+		if (failure == null) {
+			// To make sure that the OID is set (e.g. after ADD operation)
+			LensUtil.setContextOid(context, projCtx, change.getOid());
+		}
+
+		recordDeltaExecution(change, projCtx, context, projCtx.getResource(), task, result);
+	}
+
+	private <O extends ObjectType> Map<String, Integer> countProjectionsPerResource(LensContext<O> syncContext) {
+		Map<String, Integer> projectionsPerResource = new HashMap<>();
+		for (LensProjectionContext projCtx : syncContext.getProjectionContexts()) {
+			ResourceShadowDiscriminator discr = projCtx.getResourceShadowDiscriminator();
+			String resourceOid = discr != null ? discr.getResourceOid() : null;
+			Integer count = projectionsPerResource.get(resourceOid);
+			projectionsPerResource.put(resourceOid, count != null ? count + 1 : 1);
+		}
+		return projectionsPerResource;
+	}
+
+	// projectionsPerResource is null if parallel execution is not configured
+	private <O extends ObjectType> boolean isIndependentProjection(LensProjectionContext projCtx, LensContext<O> syncContext,
+			Map<String, Integer> projectionsPerResource) {
+		if (projectionsPerResource == null) {
+			return false;
+		}
+		if (projCtx.getWave() != syncContext.getExecutionWave() || !projCtx.isCanProject()) {
+			return false;
+		}
+		SynchronizationPolicyDecision decision = projCtx.getSynchronizationPolicyDecision();
+		if (decision == SynchronizationPolicyDecision.IGNORE || decision == SynchronizationPolicyDecision.BROKEN) {
+			return false;
+		}
+		// reconciliation scripts have to be executed before the delta
+		if (projCtx.isDoReconciliation()) {
+			return false;
+		}
+		ResourceShadowDiscriminator discr = projCtx.getResourceShadowDiscriminator();
+		if (discr == null || discr.getOrder() != 0 || projCtx.getResource() == null) {
+			return false;
+		}
+		// other projections on the same resource (higher-order contexts, entitlements) may depend on this one
+		Integer count = projectionsPerResource.get(discr.getResourceOid());
+		return count != null && count == 1;
+	}
+
+	private void throwProjectionException(Throwable t) throws ObjectAlreadyExistsException, ObjectNotFoundException,
+			SchemaException, CommunicationException, ConfigurationException, SecurityViolationException,
+			ExpressionEvaluationException {
+		if (t instanceof ObjectAlreadyExistsException) {
+			throw (ObjectAlreadyExistsException) t;
+		} else if (t instanceof ObjectNotFoundException) {
+			throw (ObjectNotFoundException) t;
+		} else if (t instanceof SchemaException) {
+			throw (SchemaException) t;
+		} else if (t instanceof CommunicationException) {
+			throw (CommunicationException) t;
+		} else if (t instanceof ConfigurationException) {
+			throw (ConfigurationException) t;
+		} else if (t instanceof SecurityViolationException) {
+			throw (SecurityViolationException) t;
+		} else if (t instanceof ExpressionEvaluationException) {
+			throw (ExpressionEvaluationException) t;
+		} else if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		} else if (t instanceof Error) {
+			throw (Error) t;
+		} else {
+			throw new SystemException(t.getMessage(), t);
+		}
+	}
+
+	/**
+	 * Provisioning operation of a projection executed by a worker thread. Fields set before the operation
+	 * is submitted are not changed until it finishes.
+	 */
+	private static class ParallelProjection {
+
+		private final LensProjectionContext projCtx;
+		private final ObjectDelta<ShadowType> delta;
+		// result of the projection (see executeChanges) and the result of the delta execution within it
+		private final OperationResult projectionResult;
+		private final OperationResult result;
+		// the worker thread writes only here; the subresults are moved to the result when the operation finishes
+		private final OperationResult workerResult = new OperationResult(OPERATION_EXECUTE_DELTA);
+		private PrismObject<ShadowType> object;
+		private OperationProvisioningScriptsType scripts;
+		private ProvisioningOperationOptions options;
+		private Task workerTask;
+		private Future<String> future;
+
+		ParallelProjection(LensProjectionContext projCtx, ObjectDelta<ShadowType> delta, OperationResult projectionResult) {
+			this.projCtx = projCtx;
+			this.delta = delta;
+			this.projectionResult = projectionResult;
+			this.result = projectionResult.createSubresult(OPERATION_EXECUTE_DELTA);
+		}
+	}
+
+	private static class ProjectionExecutionThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger counter = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "projection-execution-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
 	private <O extends ObjectType> boolean isRepeatedAlreadyExistsException(LensProjectionContext projContext) {
 		int deltas = projContext.getExecutedDeltas().size();
 		if (deltas < 2) {
@@ -664,6 +1079,39 @@ public class ChangeExecutor {
             throw new IllegalArgumentException("Null change");
         }
         
+		objectDelta = prepareDeltaExecution(objectDelta, objectContext, context, resource, task);
+		if (objectDelta == null) {
+			return;
+		}
+
+    	OperationResult result = parentResult.createSubresult(OPERATION_EXECUTE_DELTA);
+    		
+    	try {
+    		
+	        if (objectDelta.getChangeType() == ChangeType.ADD) {
+	            executeAddition(objectDelta, context, objectContext, options, resource, task, result);
+	        } else if (objectDelta.getChangeType() == ChangeType.MODIFY) {
+	        	executeModification(objectDelta, context, objectContext, options, resource, task, result);
+	        } else if (objectDelta.getChangeType() == ChangeType.DELETE) {
+	            executeDeletion(objectDelta, context, objectContext, options, resource, task, result);
+	        }
+	        
+	        // To make sure that the OID is set (e.g. after ADD operation)
+	        LensUtil.setContextOid(context, objectContext, objectDelta.getOid());
+
+    	} finally {
+    		recordDeltaExecution(objectDelta, objectContext, context, resource, task, result);
+    	}
+    }
+
+	/**
+	 * Steps done before a delta is executed, both by executeDelta and by the parallel execution of projections.
+	 * Returns the delta to execute, or null if there is nothing to execute (the delta was already executed).
+	 */
+	private <T extends ObjectType, F extends ObjectType> ObjectDelta<T> prepareDeltaExecution(ObjectDelta<T> objectDelta,
+			LensElementContext<T> objectContext, LensContext<F> context, ResourceType resource, Task task)
+			throws SchemaException {
+
         if (objectDelta.getOid() == null) {
         	objectDelta.setOid(objectContext.getOid());
         }
@@ -675,7 +1123,7 @@ public class ChangeExecutor {
 
 		if (objectDelta == null || objectDelta.isEmpty()) {
         	LOGGER.debug("Skipping execution of delta because it was already executed: {}", objectContext);
-        	return;
+        	return null;
         }
         
 		if (InternalsConfig.consistencyChecks) {
@@ -692,43 +1140,34 @@ public class ChangeExecutor {
     	if (LOGGER.isTraceEnabled()) {
     		logDeltaExecution(objectDelta, context, resource, null, task);
     	}
+    	return objectDelta;
+	}
 
-    	OperationResult result = parentResult.createSubresult(OPERATION_EXECUTE_DELTA);
-    		
-    	try {
-    		
-	        if (objectDelta.getChangeType() == ChangeType.ADD) {
-	            executeAddition(objectDelta, context, objectContext, options, resource, task, result);
-	        } else if (objectDelta.getChangeType() == ChangeType.MODIFY) {
-	        	executeModification(objectDelta, context, objectContext, options, resource, task, result);
-	        } else if (objectDelta.getChangeType() == ChangeType.DELETE) {
-	            executeDeletion(objectDelta, context, objectContext, options, resource, task, result);
-	        }
-	        
-	        // To make sure that the OID is set (e.g. after ADD operation)
-	        LensUtil.setContextOid(context, objectContext, objectDelta.getOid());
+	/**
+	 * Steps done after a delta was executed (successfully or not), both by executeDelta and by the parallel
+	 * execution of projections.
+	 */
+	private <T extends ObjectType, F extends ObjectType> void recordDeltaExecution(ObjectDelta<T> objectDelta,
+			LensElementContext<T> objectContext, LensContext<F> context, ResourceType resource, Task task,
+			OperationResult result) throws SchemaException {
+		result.computeStatus();
+		if (objectContext != null) {
+			if (!objectDelta.hasCompleteDefinition()){
+				throw new SchemaException("object delta does not have complete definition");
+			}
+			LensObjectDeltaOperation<T> objectDeltaOp = LensUtil.createObjectDeltaOperation(objectDelta.clone(), result, objectContext, null, resource);
+			objectContext.addToExecutedDeltas(objectDeltaOp);
+		}
 
-    	} finally {
-    		
-    		result.computeStatus();
-    		if (objectContext != null) {
-    			if (!objectDelta.hasCompleteDefinition()){
-    				throw new SchemaException("object delta does not have complete definition");
-    			}
-	    		LensObjectDeltaOperation<T> objectDeltaOp = LensUtil.createObjectDeltaOperation(objectDelta.clone(), result, objectContext, null, resource);
-		        objectContext.addToExecutedDeltas(objectDeltaOp);
-    		}
-        
-	        if (LOGGER.isDebugEnabled()) {
-	        	if (LOGGER.isTraceEnabled()) {
-	        		LOGGER.trace("EXECUTION result {}", result.getLastSubresult());
-	        	} else {
-	        		// Execution of deltas was not logged yet
-	        		logDeltaExecution(objectDelta, context, resource, result.getLastSubresult(), task);
-	        	}
-	    	}
-    	}
-    }
+		if (LOGGER.isDebugEnabled()) {
+			if (LOGGER.isTraceEnabled()) {
+				LOGGER.trace("EXECUTION result {}", result.getLastSubresult());
+			} else {
+				// Execution of deltas was not logged yet
+				logDeltaExecution(objectDelta, context, resource, result.getLastSubresult(), task);
+			}
+		}
+	}
 
 	private <T extends ObjectType, F extends FocusType> void removeExecutedItemDeltas(
 			ObjectDelta<T> objectDelta, LensElementContext<T> objectContext) {
@@ -959,24 +1398,14 @@ public class ChangeExecutor {
     				throws ObjectAlreadyExistsException, ObjectNotFoundException, SchemaException, CommunicationException, 
     				ConfigurationException, SecurityViolationException, ExpressionEvaluationException {
 
-        PrismObject<T> objectToAdd = change.getObjectToAdd();
-
-        if (change.getModifications() != null) {
-            for (ItemDelta delta : change.getModifications()) {
-                delta.applyTo(objectToAdd);
-            }
-            change.getModifications().clear();
-        }
+        PrismObject<T> objectToAdd = getObjectToAdd(change);
 
         OwnerResolver ownerResolver = createOwnerResolver(context, task, result);
 		try {
-			securityEnforcer.authorize(ModelAuthorizationAction.ADD.getUrl(), AuthorizationPhaseType.EXECUTION,
-        			objectToAdd, null, null, ownerResolver, result);
+			authorizeAddition(objectToAdd, context, ownerResolver, task, result);
 
         	T objectTypeToAdd = objectToAdd.asObjectable();
 
-    		applyMetadata(context, task, objectTypeToAdd, result);
-    	
     		if (options == null && context != null) {
     			options = context.getOptions();
     		}
@@ -987,18 +1416,9 @@ public class ChangeExecutor {
 			} else if (objectTypeToAdd instanceof NodeType) {
 				throw new UnsupportedOperationException("NodeType cannot be added using model interface");
 			} else if (ObjectTypes.isManagedByProvisioning(objectTypeToAdd)) {
-				ProvisioningOperationOptions provisioningOptions = copyFromModelOptions(options);
-
-				// TODO: this is probably wrong. We should not have special case for a channel!
-				if (context != null && context.getChannel() != null && context.getChannel().equals(QNameUtil.qNameToUri(SchemaConstants.CHANGE_CHANNEL_RECON))) {
-					provisioningOptions.setCompletePostponed(false);
-				}
-
+				ProvisioningOperationOptions provisioningOptions = createProvisioningOptions(context, options);
 				oid = addProvisioningObject(objectToAdd, context, objectContext, provisioningOptions, resource, task, result);
-				if (oid == null) {
-					throw new SystemException("Provisioning addObject returned null OID while adding " + objectToAdd);
-				}
-				result.addReturn("createdAccountOid", oid);
+				checkProvisioningAddResult(oid, objectToAdd, result);
 			} else {
 				FocusConstraintsChecker.clearCacheFor(objectToAdd.asObjectable().getName());
 
@@ -1042,29 +1462,17 @@ public class ChangeExecutor {
 			} else if (NodeType.class.isAssignableFrom(objectTypeClass)) {
 				taskManager.deleteNode(oid, result);
 			} else if (ObjectTypes.isClassManagedByProvisioning(objectTypeClass)) {
-				if (options == null) {
-					options = context.getOptions();
-				}
-				ProvisioningOperationOptions provisioningOptions = copyFromModelOptions(options);
-				if (context != null && context.getChannel() != null && context.getChannel().equals(QNameUtil.qNameToUri(SchemaConstants.CHANGE_CHANNEL_RECON))) {
-					provisioningOptions.setCompletePostponed(false);
-				}
+				ProvisioningOperationOptions provisioningOptions = createProvisioningOptions(context, options);
 				try {
 					deleteProvisioningObject(objectTypeClass, oid, context, objectContext, provisioningOptions, resource, task, result);
 				} catch (ObjectNotFoundException e) {
-					// Object that we wanted to delete is already gone. This can happen in some race conditions.
-					// As the resulting state is the same as we wanted it to be we will not complain and we will go on.
-					LOGGER.trace("Attempt to delete object {} ({}) that is already gone", oid, objectTypeClass);
-					result.muteLastSubresultError();
+					ignoreAlreadyDeleted(oid, objectTypeClass, result);
 				}
 			} else {
 				try {
 					cacheRepositoryService.deleteObject(objectTypeClass, oid, result);
 				} catch (ObjectNotFoundException e) {
-					// Object that we wanted to delete is already gone. This can happen in some race conditions.
-					// As the resulting state is the same as we wanted it to be we will not complain and we will go on.
-					LOGGER.trace("Attempt to delete object {} ({}) that is already gone", oid, objectTypeClass);
-					result.muteLastSubresultError();
+					ignoreAlreadyDeleted(oid, objectTypeClass, result);
 				}
 			}
 			task.recordObjectActionExecuted(objectOld, objectTypeClass, oid, ChangeType.DELETE, context.getChannel(), null);
@@ -1087,23 +1495,14 @@ public class ChangeExecutor {
         PrismObject<T> objectNew = objectContext.getObjectNew();
         OwnerResolver ownerResolver = createOwnerResolver(context, task, result);
 		try {
-			securityEnforcer.authorize(ModelAuthorizationAction.MODIFY.getUrl(), AuthorizationPhaseType.EXECUTION,
-					objectNew, change, null, ownerResolver, result);
-
-			applyMetadata(change, objectContext, objectTypeClass, task, context, result);
+			authorizeModification(change, objectContext, context, ownerResolver, task, result);
 
 			if (TaskType.class.isAssignableFrom(objectTypeClass)) {
 				taskManager.modifyTask(change.getOid(), change.getModifications(), result);
 			} else if (NodeType.class.isAssignableFrom(objectTypeClass)) {
 				throw new UnsupportedOperationException("NodeType is not modifiable using model interface");
 			} else if (ObjectTypes.isClassManagedByProvisioning(objectTypeClass)) {
-				if (options == null && context != null) {
-					options = context.getOptions();
-				}
-				ProvisioningOperationOptions provisioningOptions = copyFromModelOptions(options);
-				if (context != null && context.getChannel() != null && context.getChannel().equals(QNameUtil.qNameToUri(SchemaConstants.CHANGE_CHANNEL_RECON))) {
-					provisioningOptions.setCompletePostponed(false);
-				}
+				ProvisioningOperationOptions provisioningOptions = createProvisioningOptions(context, options);
 				String oid = modifyProvisioningObject(objectTypeClass, change.getOid(), change.getModifications(), context, objectContext,
 						provisioningOptions, resource, task, result);
 				if (!oid.equals(change.getOid())) {
@@ -1119,6 +1518,64 @@ public class ChangeExecutor {
 			throw t;
 		}
     }
+
+	/*
+	 *  Steps shared by the sequential execution (executeAddition/executeModification/executeDeletion) and
+	 *  the parallel execution of projections (prepareProvisioningOperation/finishProjectionDelta).
+	 */
+
+	private <T extends ObjectType> PrismObject<T> getObjectToAdd(ObjectDelta<T> change) throws SchemaException {
+		PrismObject<T> objectToAdd = change.getObjectToAdd();
+		if (change.getModifications() != null) {
+			for (ItemDelta delta : change.getModifications()) {
+				delta.applyTo(objectToAdd);
+			}
+			change.getModifications().clear();
+		}
+		return objectToAdd;
+	}
+
+	private <T extends ObjectType, F extends ObjectType> void authorizeAddition(PrismObject<T> objectToAdd, LensContext<F> context,
+			OwnerResolver ownerResolver, Task task, OperationResult result) throws SecurityViolationException, SchemaException {
+		securityEnforcer.authorize(ModelAuthorizationAction.ADD.getUrl(), AuthorizationPhaseType.EXECUTION,
+				objectToAdd, null, null, ownerResolver, result);
+		applyMetadata(context, task, objectToAdd.asObjectable(), result);
+	}
+
+	private <T extends ObjectType, F extends ObjectType> void authorizeModification(ObjectDelta<T> change,
+			LensElementContext<T> objectContext, LensContext<F> context, OwnerResolver ownerResolver, Task task,
+			OperationResult result) throws SecurityViolationException, SchemaException {
+		securityEnforcer.authorize(ModelAuthorizationAction.MODIFY.getUrl(), AuthorizationPhaseType.EXECUTION,
+				objectContext.getObjectNew(), change, null, ownerResolver, result);
+		applyMetadata(change, objectContext, change.getObjectTypeClass(), task, context, result);
+	}
+
+	private <F extends ObjectType> ProvisioningOperationOptions createProvisioningOptions(LensContext<F> context,
+			ModelExecuteOptions options) {
+		if (options == null && context != null) {
+			options = context.getOptions();
+		}
+		ProvisioningOperationOptions provisioningOptions = copyFromModelOptions(options);
+		// TODO: this is probably wrong. We should not have special case for a channel!
+		if (context != null && context.getChannel() != null && context.getChannel().equals(QNameUtil.qNameToUri(SchemaConstants.CHANGE_CHANNEL_RECON))) {
+			provisioningOptions.setCompletePostponed(false);
+		}
+		return provisioningOptions;
+	}
+
+	private void checkProvisioningAddResult(String oid, PrismObject<?> objectToAdd, OperationResult result) {
+		if (oid == null) {
+			throw new SystemException("Provisioning addObject returned null OID while adding " + objectToAdd);
+		}
+		result.addReturn("createdAccountOid", oid);
+	}
+
+	private void ignoreAlreadyDeleted(String oid, Class<?> objectTypeClass, OperationResult result) {
+		// Object that we wanted to delete is already gone. This can happen in some race conditions.
+		// As the resulting state is the same as we wanted it to be we will not complain and we will go on.
+		LOGGER.trace("Attempt to delete object {} ({}) that is already gone", oid, objectTypeClass);
+		result.muteLastSubresultError();
+	}
     
 	private <T extends ObjectType, F extends ObjectType> void applyMetadata(LensContext<F> context, Task task, T objectTypeToAdd, OperationResult result) throws SchemaException {
 		MetadataType metaData = LensUtil.createCreateMetadata(context, clock.currentTimeXMLGregorianCalendar(), task);
@@ -1197,19 +1654,7 @@ public class ChangeExecutor {
             throws ObjectNotFoundException, ObjectAlreadyExistsException, SchemaException,
             CommunicationException, ConfigurationException, SecurityViolationException, ExpressionEvaluationException {
 
-        if (object.canRepresent(ShadowType.class)) {
-            ShadowType shadow = (ShadowType) object.asObjectable();
-            String resourceOid = ShadowUtil.getResourceOid(shadow);
-            if (resourceOid == null) {
-                throw new IllegalArgumentException("Resource OID is null in shadow");
-            }
-        }
-
-        OperationProvisioningScriptsType scripts = null;
-        if (object.canRepresent(ShadowType.class)) {
-        	scripts = prepareScripts(object, context, objectContext, ProvisioningOperationTypeType.ADD,
-                resource, task, result);
-        }
+        OperationProvisioningScriptsType scripts = prepareAddScripts(object, context, objectContext, resource, task, result);
         Utils.setRequestee(task, context);
         String oid = provisioning.addObject(object, scripts, options, task, result);
         Utils.clearRequestee(task);
@@ -1220,21 +1665,9 @@ public class ChangeExecutor {
             String oid, LensContext<F> context, LensElementContext<T> objectContext, ProvisioningOperationOptions options,
             ResourceType resource, Task task, OperationResult result) throws ObjectNotFoundException, ObjectAlreadyExistsException,
             SchemaException, CommunicationException, ConfigurationException, SecurityViolationException, ExpressionEvaluationException {
-    	
-    	PrismObject<T> shadowToModify = null;
-		OperationProvisioningScriptsType scripts = null;
-		try {
-			shadowToModify = provisioning.getObject(objectTypeClass, oid,
-					SelectorOptions.createCollection(GetOperationOptions.createNoFetch()), task, result);
-		} catch (ObjectNotFoundException ex) {
-			// this is almost OK, mute the error and try to delete account (it
-			// will fail if something is wrong)
-			result.muteLastSubresultError();
-		}
-		if (ShadowType.class.isAssignableFrom(objectTypeClass)) {
-			scripts = prepareScripts(shadowToModify, context, objectContext, ProvisioningOperationTypeType.DELETE, resource,
-				task, result);
-		}
+
+		OperationProvisioningScriptsType scripts = prepareDeleteScripts(objectTypeClass, oid, context, objectContext,
+				resource, task, result);
         Utils.setRequestee(task, context);
 		provisioning.deleteObject(objectTypeClass, oid, options, scripts, task, result);
         Utils.clearRequestee(task);
@@ -1244,8 +1677,36 @@ public class ChangeExecutor {
             Collection<? extends ItemDelta> modifications, LensContext<F> context, LensElementContext<T> objectContext, ProvisioningOperationOptions options,
             ResourceType resource, Task task, OperationResult result) throws ObjectNotFoundException, CommunicationException, SchemaException, ConfigurationException, SecurityViolationException, ExpressionEvaluationException, ObjectAlreadyExistsException {
 
+    	OperationProvisioningScriptsType scripts = prepareModifyScripts(objectTypeClass, oid, context, objectContext,
+    			resource, task, result);
+        Utils.setRequestee(task, context);
+        String changedOid = provisioning.modifyObject(objectTypeClass, oid, modifications, scripts, options, task, result);
+        Utils.clearRequestee(task);
+        return changedOid;
+    }
+
+    // Scripts for the provisioning operations. Used by both the sequential and the parallel projection execution.
+
+    private <F extends ObjectType, T extends ObjectType> OperationProvisioningScriptsType prepareAddScripts(PrismObject<T> object,
+    		LensContext<F> context, LensElementContext<T> objectContext, ResourceType resource, Task task, OperationResult result)
+    		throws ObjectNotFoundException, SchemaException, CommunicationException, ConfigurationException,
+    		SecurityViolationException, ExpressionEvaluationException {
+        if (!object.canRepresent(ShadowType.class)) {
+        	return null;
+        }
+        ShadowType shadow = (ShadowType) object.asObjectable();
+        String resourceOid = ShadowUtil.getResourceOid(shadow);
+        if (resourceOid == null) {
+            throw new IllegalArgumentException("Resource OID is null in shadow");
+        }
+        return prepareScripts(object, context, objectContext, ProvisioningOperationTypeType.ADD, resource, task, result);
+    }
+
+    private <F extends ObjectType, T extends ObjectType> OperationProvisioningScriptsType prepareModifyScripts(Class<T> objectTypeClass,
+    		String oid, LensContext<F> context, LensElementContext<T> objectContext, ResourceType resource, Task task,
+    		OperationResult result) throws ObjectNotFoundException, SchemaException, CommunicationException,
+    		ConfigurationException, SecurityViolationException, ExpressionEvaluationException {
     	PrismObject<T> shadowToModify = null;
-    	OperationProvisioningScriptsType scripts = null;
     	try {
     		shadowToModify = provisioning.getObject(objectTypeClass, oid,
     			SelectorOptions.createCollection(GetOperationOptions.createRaw()), task, result);
@@ -1256,14 +1717,29 @@ public class ChangeExecutor {
     		result.muteLastSubresultError();
     		LOGGER.warn("Repository object {}: {} is gone. But trying to modify resource object anyway", objectTypeClass, oid);
     	}
-    	if (ShadowType.class.isAssignableFrom(objectTypeClass)) {
-    		scripts = prepareScripts(shadowToModify, context, objectContext,
-                ProvisioningOperationTypeType.MODIFY, resource, task, result);
+    	if (!ShadowType.class.isAssignableFrom(objectTypeClass)) {
+    		return null;
     	}
-        Utils.setRequestee(task, context);
-        String changedOid = provisioning.modifyObject(objectTypeClass, oid, modifications, scripts, options, task, result);
-        Utils.clearRequestee(task);
-        return changedOid;
+    	return prepareScripts(shadowToModify, context, objectContext, ProvisioningOperationTypeType.MODIFY, resource, task, result);
+    }
+
+    private <F extends ObjectType, T extends ObjectType> OperationProvisioningScriptsType prepareDeleteScripts(Class<T> objectTypeClass,
+    		String oid, LensContext<F> context, LensElementContext<T> objectContext, ResourceType resource, Task task,
+    		OperationResult result) throws ObjectNotFoundException, SchemaException, CommunicationException,
+    		ConfigurationException, SecurityViolationException, ExpressionEvaluationException {
+    	PrismObject<T> shadowToDelete = null;
+		try {
+			shadowToDelete = provisioning.getObject(objectTypeClass, oid,
+					SelectorOptions.createCollection(GetOperationOptions.createNoFetch()), task, result);
+		} catch (ObjectNotFoundException ex) {
+			// this is almost OK, mute the error and try to delete account (it
+			// will fail if something is wrong)
+			result.muteLastSubresultError();
+		}
+		if (!ShadowType.class.isAssignableFrom(objectTypeClass)) {
+			return null;
+		}
+		return prepareScripts(shadowToDelete, context, objectContext, ProvisioningOperationTypeType.DELETE, resource, task, result);
     }
 
     private <F extends ObjectType, T extends ObjectType> OperationProvisioningScriptsType prepareScripts(
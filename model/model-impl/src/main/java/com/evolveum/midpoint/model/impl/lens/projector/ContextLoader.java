@@ -17,16 +17,45 @@ package com.evolveum.midpoint.model.impl.lens.projector;
 
 import static com.evolveum.midpoint.common.InternalsConfig.consistencyChecks;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import com.evolveum.midpoint.common.configuration.api.MidpointConfiguration;
+import com.evolveum.midpoint.prism.query.InOidFilter;
+import com.evolveum.midpoint.prism.query.ObjectQuery;
+import com.evolveum.midpoint.repo.cache.RepositoryCache;
 
 import com.evolveum.midpoint.schema.constants.SchemaConstants;
 import com.evolveum.midpoint.xml.ns._public.common.common_3.*;
 
+import org.apache.commons.configuration.Configuration;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.Validate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
 
 import com.evolveum.midpoint.common.refinery.RefinedObjectClassDefinition;
@@ -62,6 +91,7 @@ import com.evolveum.midpoint.schema.result.OperationResult;
 import com.evolveum.midpoint.schema.util.MiscSchemaUtil;
 import com.evolveum.midpoint.schema.util.ShadowUtil;
 import com.evolveum.midpoint.task.api.Task;
+import com.evolveum.midpoint.task.api.TaskManager;
 import com.evolveum.midpoint.util.QNameUtil;
 import com.evolveum.midpoint.util.exception.CommunicationException;
 import com.evolveum.midpoint.util.exception.ConfigurationException;
@@ -93,8 +123,78 @@ public class ContextLoader {
 	
 	@Autowired(required = true)
 	private PrismContext prismContext;
+
+	@Autowired(required = true)
+	private TaskManager taskManager;
+
+	@Autowired(required = false)
+	private MidpointConfiguration midpointConfiguration;
 	
 	private static final Trace LOGGER = TraceManager.getTrace(ContextLoader.class);
+
+	private static final String MODEL_CONFIGURATION = "midpoint.model";
+	private static final String PROPERTY_PROJECTION_FETCH_THREADS = "projectionFetchThreads";
+	private static final String PROPERTY_PROJECTION_FETCHES_PER_RESOURCE = "projectionFetchesPerResource";
+	private static final String OPERATION_FETCH_PROJECTION = ContextLoader.class.getName() + ".fetchProjection";
+
+	// reads full projection shadows concurrently; null if they are read sequentially
+	private volatile ExecutorService projectionFetchExecutor;
+	private int projectionFetchThreads = 1;
+	// maximal number of concurrent reads on a single resource (across all contexts being loaded)
+	private volatile int fetchesPerResource = 2;
+	private final ConcurrentMap<String, ResourceFetchQueue> resourceFetchQueues = new ConcurrentHashMap<>();
+
+	@PostConstruct
+	private void initProjectionFetchExecutor() {
+		int threads = 1;
+		int perResource = fetchesPerResource;
+		if (midpointConfiguration != null) {
+			Configuration config = midpointConfiguration.getConfiguration(MODEL_CONFIGURATION);
+			if (config != null) {
+				threads = config.getInt(PROPERTY_PROJECTION_FETCH_THREADS, threads);
+				perResource = config.getInt(PROPERTY_PROJECTION_FETCHES_PER_RESOURCE, perResource);
+			}
+		}
+		setProjectionFetchesPerResource(perResource);
+		setProjectionFetchThreads(threads);
+	}
+
+	@PreDestroy
+	private synchronized void shutdown() {
+		if (projectionFetchExecutor != null) {
+			projectionFetchExecutor.shutdownNow();
+			projectionFetchExecutor = null;
+		}
+	}
+
+	public synchronized int getProjectionFetchThreads() {
+		return projectionFetchThreads;
+	}
+
+	/**
+	 * Sets the number of threads that read full projection shadows before the projection contexts are finished.
+	 * Value of 1 means that the shadows are read sequentially. Should not be changed while contexts are being loaded
+	 * (it is meant for the initialization and tests).
+	 */
+	public synchronized void setProjectionFetchThreads(int threads) {
+		Validate.isTrue(threads > 0, "Number of projection fetch threads must be positive");
+		shutdown();
+		projectionFetchThreads = threads;
+		if (threads > 1) {
+			LOGGER.info("Projection shadows will be fetched using {} threads, at most {} concurrently on one resource",
+					threads, fetchesPerResource);
+			projectionFetchExecutor = Executors.newFixedThreadPool(threads, new ProjectionFetchThreadFactory());
+		}
+	}
+
+	public int getProjectionFetchesPerResource() {
+		return fetchesPerResource;
+	}
+
+	public void setProjectionFetchesPerResource(int fetchesPerResource) {
+		Validate.isTrue(fetchesPerResource > 0, "Number of projection fetches per resource must be positive");
+		this.fetchesPerResource = fetchesPerResource;
+	}
 	
 	public <F extends ObjectType> void load(LensContext<F> context, String activityDescription, 
 			Task task, OperationResult result) 
@@ -151,10 +251,16 @@ public class ContextLoader {
     	removeRottenContexts(context);
     	    	
     	if (consistencyChecks) context.checkConsistence();
-		
-    	for (LensProjectionContext projectionContext: context.getProjectionContexts()) {
-            context.checkAbortRequested();
-    		finishLoadOfProjectionContext(context, projectionContext, task, result);
+
+		Map<String, ProjectionFetch> prefetched = prefetchFullShadows(context, task);
+		try {
+			for (LensProjectionContext projectionContext: context.getProjectionContexts()) {
+				context.checkAbortRequested();
+				finishLoadOfProjectionContext(context, projectionContext, prefetched, task, result);
+			}
+		} finally {
+			// we must not leave any thread working with the task after we return
+			waitForUnusedFetches(prefetched);
 		}
         
         if (consistencyChecks) context.checkConsistence();
@@ -217,7 +323,7 @@ public class ContextLoader {
 	public <F extends ObjectType> void makeSureProjectionIsLoaded(LensContext<F> context,
 																  LensProjectionContext projectionContext, Task task, OperationResult result) throws ObjectNotFoundException, CommunicationException, SchemaException, ConfigurationException, SecurityViolationException {
 		preprocessProjectionContext(context, projectionContext, task, result);
-		finishLoadOfProjectionContext(context, projectionContext, task, result);
+		finishLoadOfProjectionContext(context, projectionContext, Collections.<String, ProjectionFetch>emptyMap(), task, result);
 	}
 	
 	/**
@@ -475,6 +581,7 @@ public class ContextLoader {
 		if (linkRef == null) {
 			return;
 		}
+		Map<String, PrismObject<ShadowType>> repoShadows = loadLinkedRepoShadows(context, linkRef, result);
 		for (PrismReferenceValue linkRefVal : linkRef.getValues()) {
 			String oid = linkRefVal.getOid();
 			if (StringUtils.isBlank(oid)) {
@@ -495,7 +602,17 @@ public class ContextLoader {
 				continue;
 			}
 			PrismObject<ShadowType> shadow = linkRefVal.getObject();
-			if (shadow == null) {
+			if (shadow == null && repoShadows.containsKey(oid)) {
+				// Loaded from repository together with other linked shadows; this is what provisioning does for NO_FETCH.
+				shadow = repoShadows.get(oid);
+				try {
+					provisioningService.applyDefinition(shadow, result);
+				} catch (ObjectNotFoundException e) {
+					// E.g. the resource does not exist any more. Provisioning getObject below fails in the same way.
+					createBrokenLinkContext(context, oid, result);
+					continue;
+				}
+			} else if (shadow == null) {
 				// Using NO_FETCH so we avoid reading in a full account. This is more efficient as we don't need full account here.
 				// We need to fetch from provisioning and not repository so the correct definition will be set.
 				Collection<SelectorOptions<GetOperationOptions>> options = SelectorOptions.createCollection(GetOperationOptions.createNoFetch());
@@ -503,12 +620,7 @@ public class ContextLoader {
 				try {
 					shadow = provisioningService.getObject(ShadowType.class, oid, options, task, result);
 				} catch (ObjectNotFoundException e) {
-					// Broken accountRef. We need to mark it for deletion
-					LensProjectionContext accountContext = getOrCreateBrokenAccountContext(context, oid);
-					accountContext.setFresh(true);
-					accountContext.setExists(false);
-					OperationResult getObjectSubresult = result.getLastSubresult();
-					getObjectSubresult.setErrorsHandled();
+					createBrokenLinkContext(context, oid, result);
 					continue;
 				}
 			} else {
@@ -530,6 +642,51 @@ public class ContextLoader {
 		}
 	}
 
+	private <F extends FocusType> void createBrokenLinkContext(LensContext<F> context, String oid, OperationResult result) {
+		// Broken accountRef. We need to mark it for deletion
+		LensProjectionContext accountContext = getOrCreateBrokenAccountContext(context, oid);
+		accountContext.setFresh(true);
+		accountContext.setExists(false);
+		OperationResult getObjectSubresult = result.getLastSubresult();
+		getObjectSubresult.setErrorsHandled();
+	}
+
+	/**
+	 * Gets all linked shadows that would be otherwise read one by one (using NO_FETCH) in a single repository search.
+	 * Shadows that are not found are simply not in the map; they are then processed one by one, as before.
+	 */
+	private <F extends FocusType> Map<String, PrismObject<ShadowType>> loadLinkedRepoShadows(LensContext<F> context,
+			PrismReference linkRef, OperationResult result) {
+		List<String> oids = new ArrayList<>();
+		for (PrismReferenceValue linkRefVal : linkRef.getValues()) {
+			String oid = linkRefVal.getOid();
+			if (StringUtils.isBlank(oid) || linkRefVal.getObject() != null) {
+				continue;
+			}
+			LensProjectionContext existingAccountContext = findAccountContext(oid, context);
+			if (existingAccountContext == null && canBeLoaded(context, existingAccountContext)) {
+				oids.add(oid);
+			}
+		}
+		if (oids.size() < 2) {
+			return Collections.emptyMap();
+		}
+		Map<String, PrismObject<ShadowType>> shadows = new HashMap<>();
+		try {
+			ObjectQuery query = ObjectQuery.createObjectQuery(InOidFilter.createInOid(oids));
+			for (PrismObject<ShadowType> shadow : cacheRepositoryService.searchObjects(ShadowType.class, query, null, result)) {
+				shadows.put(shadow.getOid(), shadow);
+			}
+		} catch (SchemaException e) {
+			// we'll try one by one, so the problematic shadow can be identified
+			LOGGER.debug("Couldn't load linked shadows in one search, loading them one by one: {}", e.getMessage(), e);
+			result.muteLastSubresultError();
+			return Collections.emptyMap();
+		}
+		LOGGER.trace("Loaded {} of {} linked shadows from repository", shadows.size(), oids.size());
+		return shadows;
+	}
+
 	private <F extends FocusType> void loadLinkRefsFromDelta(LensContext<F> context, PrismObject<F> focus,
 			ObjectDelta<F> focusPrimaryDelta, Task task, OperationResult result) throws SchemaException,
 			ObjectNotFoundException, CommunicationException, ConfigurationException,
@@ -921,7 +1078,7 @@ public class ContextLoader {
      * variable if it's not set (from provisioning), load resource (if not set already), etc.
 	 */
 	private <F extends ObjectType> void finishLoadOfProjectionContext(LensContext<F> context, 
-			LensProjectionContext projContext, Task task, OperationResult result)
+			LensProjectionContext projContext, Map<String, ProjectionFetch> prefetched, Task task, OperationResult result)
 			throws ObjectNotFoundException, CommunicationException, SchemaException, ConfigurationException,
 			SecurityViolationException {
 
@@ -960,23 +1117,20 @@ public class ContextLoader {
 					}
 				} else {
 					projContext.setExists(true);
-					GetOperationOptions rootOptions = new GetOperationOptions();
-					if (projContext.isDoReconciliation()) {
-						if (SchemaConstants.CHANGE_CHANNEL_DISCOVERY.equals(context.getChannel())) {
-							// Avoid discovery loops
-							rootOptions.setDoNotDiscovery(true);
-						}
-					} else { 
-						rootOptions.setNoFetch(true);
-					}
-					rootOptions.setAllowNotFound(true);
+					GetOperationOptions rootOptions = createProjectionLoadOptions(context, projContext.isDoReconciliation());
 					Collection<SelectorOptions<GetOperationOptions>> options = SelectorOptions.createCollection(rootOptions);
 					if (LOGGER.isTraceEnabled()) {
 						LOGGER.trace("Loading projection shadow {}, options={}", projectionObjectOid, options);
 					}
 					try{
-						PrismObject<ShadowType> objectOld = provisioningService.getObject(
-								projContext.getObjectTypeClass(), projectionObjectOid, options, task, result);
+						ProjectionFetch fetch = GetOperationOptions.isNoFetch(rootOptions) ? null : prefetched.get(projectionObjectOid);
+						PrismObject<ShadowType> objectOld;
+						if (fetch != null) {
+							objectOld = fetch.getObject(result);
+						} else {
+							objectOld = provisioningService.getObject(
+									projContext.getObjectTypeClass(), projectionObjectOid, options, task, result);
+						}
 						if (LOGGER.isTraceEnabled()) {
 							if (!GetOperationOptions.isNoFetch(rootOptions) && !GetOperationOptions.isRaw(rootOptions)) {
 								LOGGER.trace("Full shadow loaded: {}", objectOld);
@@ -1067,6 +1221,241 @@ public class ContextLoader {
 		setPrimaryDeltaOldValue(projContext);
 	}
 	
+	private <F extends ObjectType> GetOperationOptions createProjectionLoadOptions(LensContext<F> context,
+			boolean fullShadow) {
+		GetOperationOptions rootOptions = new GetOperationOptions();
+		if (fullShadow) {
+			if (SchemaConstants.CHANGE_CHANNEL_DISCOVERY.equals(context.getChannel())) {
+				// Avoid discovery loops
+				rootOptions.setDoNotDiscovery(true);
+			}
+		} else {
+			rootOptions.setNoFetch(true);
+		}
+		rootOptions.setAllowNotFound(true);
+		return rootOptions;
+	}
+
+	/**
+	 * Starts reading full shadows (i.e. from the resources) of all projections for which finishLoadOfProjectionContext
+	 * will need them. The reads run concurrently, at most fetchesPerResource at a time on each resource. The results
+	 * are picked up by finishLoadOfProjectionContext, so the projection contexts themselves are still updated
+	 * by the calling thread only. Each read uses its own task, as the task of the caller is not thread-safe.
+	 */
+	private <F extends ObjectType> Map<String, ProjectionFetch> prefetchFullShadows(LensContext<F> context, Task task) {
+		ExecutorService executor = projectionFetchExecutor;
+		if (executor == null) {
+			return Collections.emptyMap();
+		}
+		List<LensProjectionContext> toFetch = new ArrayList<>();
+		for (LensProjectionContext projCtx : context.getProjectionContexts()) {
+			if (needsFullShadowRead(context, projCtx)) {
+				toFetch.add(projCtx);
+			}
+		}
+		if (toFetch.size() < 2) {
+			return Collections.emptyMap();
+		}
+
+		final SecurityContext securityContext = SecurityContextHolder.getContext();
+		Map<String, ProjectionFetch> fetches = new HashMap<>();
+		for (LensProjectionContext projCtx : toFetch) {
+			final String oid = projCtx.getOid();
+			if (fetches.containsKey(oid)) {
+				continue;
+			}
+			final Collection<SelectorOptions<GetOperationOptions>> options =
+					SelectorOptions.createCollection(createProjectionLoadOptions(context, true));
+			final ProjectionFetch fetch = new ProjectionFetch(oid);
+			final Task fetchTask = taskManager.createTaskInstance(OPERATION_FETCH_PROJECTION);
+			fetchTask.setOwner(task.getOwner());
+			fetchTask.setChannel(task.getChannel());
+			LOGGER.trace("Prefetching projection shadow {}, options={}", oid, options);
+			FutureTask<PrismObject<ShadowType>> future = new FutureTask<>(new Callable<PrismObject<ShadowType>>() {
+				@Override
+				public PrismObject<ShadowType> call() throws Exception {
+					SecurityContextHolder.setContext(securityContext);
+					RepositoryCache.enter();
+					try {
+						return provisioningService.getObject(ShadowType.class, oid, options, fetchTask, fetch.result);
+					} finally {
+						RepositoryCache.exit();
+						SecurityContextHolder.clearContext();
+					}
+				}
+			});
+			fetch.future = future;
+			getResourceFetchQueue(projCtx).submit(executor, future);
+			fetches.put(oid, fetch);
+		}
+		return fetches;
+	}
+
+	// Mirrors the conditions in finishLoadOfProjectionContext (without changing the context).
+	private <F extends ObjectType> boolean needsFullShadowRead(LensContext<F> context, LensProjectionContext projCtx) {
+		if (projCtx.getSynchronizationPolicyDecision() == SynchronizationPolicyDecision.BROKEN
+				|| projCtx.isAdd() || projCtx.getOid() == null) {
+			return false;
+		}
+		ResourceObjectTypeDefinitionType objectDefinition = projCtx.getResourceObjectTypeDefinitionType();
+		boolean reconcile = projCtx.isDoReconciliation()
+				|| objectDefinition != null && objectDefinition.getVolatility() == ResourceObjectVolatilityType.UNPREDICTABLE;
+		if (!reconcile) {
+			return false;
+		}
+		return !projCtx.isFullShadow() || projCtx.getObjectCurrent() == null || needToReload(context, projCtx);
+	}
+
+	private ResourceFetchQueue getResourceFetchQueue(LensProjectionContext projCtx) {
+		String resourceOid = null;
+		if (projCtx.getResource() != null) {
+			resourceOid = projCtx.getResource().getOid();
+		} else if (projCtx.getResourceShadowDiscriminator() != null) {
+			resourceOid = projCtx.getResourceShadowDiscriminator().getResourceOid();
+		} else if (projCtx.getObjectCurrent() != null) {
+			resourceOid = ShadowUtil.getResourceOid(projCtx.getObjectCurrent().asObjectable());
+		}
+		if (resourceOid == null) {
+			resourceOid = "";
+		}
+		ResourceFetchQueue queue = resourceFetchQueues.get(resourceOid);
+		if (queue == null) {
+			ResourceFetchQueue newQueue = new ResourceFetchQueue();
+			queue = resourceFetchQueues.putIfAbsent(resourceOid, newQueue);
+			if (queue == null) {
+				queue = newQueue;
+			}
+		}
+		return queue;
+	}
+
+	private void waitForUnusedFetches(Map<String, ProjectionFetch> fetches) {
+		for (ProjectionFetch fetch : fetches.values()) {
+			if (!fetch.used) {
+				try {
+					fetch.future.get();
+				} catch (InterruptedException e) {
+					fetch.future.cancel(true);
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					LOGGER.trace("Unused prefetch of {} failed: {}", fetch.oid, e.getMessage());
+				}
+			}
+		}
+	}
+
+	private static class ProjectionFetch {
+
+		private final String oid;
+		// holds the getObject result until it is moved to the result of the caller
+		private final OperationResult result = new OperationResult(OPERATION_FETCH_PROJECTION);
+		private Future<PrismObject<ShadowType>> future;
+		private boolean used;
+
+		ProjectionFetch(String oid) {
+			this.oid = oid;
+		}
+
+		PrismObject<ShadowType> getObject(OperationResult parentResult) throws ObjectNotFoundException,
+				CommunicationException, SchemaException, ConfigurationException, SecurityViolationException {
+			used = true;
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+				future.cancel(true);
+				Thread.currentThread().interrupt();
+				throw new SystemException("Interrupted while fetching projection " + oid, e);
+			} catch (ExecutionException e) {
+				Throwable t = e.getCause();
+				if (t instanceof ObjectNotFoundException) {
+					throw (ObjectNotFoundException) t;
+				} else if (t instanceof CommunicationException) {
+					throw (CommunicationException) t;
+				} else if (t instanceof SchemaException) {
+					throw (SchemaException) t;
+				} else if (t instanceof ConfigurationException) {
+					throw (ConfigurationException) t;
+				} else if (t instanceof SecurityViolationException) {
+					throw (SecurityViolationException) t;
+				} else if (t instanceof RuntimeException) {
+					throw (RuntimeException) t;
+				} else if (t instanceof Error) {
+					throw (Error) t;
+				} else {
+					throw new SystemException(t.getMessage(), t);
+				}
+			} finally {
+				for (OperationResult subresult : result.getSubresults()) {
+					parentResult.addSubresult(subresult);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads from one resource. At most fetchesPerResource of them are given to the executor at once; the others
+	 * wait here (not in the pool threads) until one of the running reads finishes.
+	 */
+	private class ResourceFetchQueue {
+
+		private final Queue<FutureTask<?>> waiting = new ArrayDeque<>();
+		private int running;
+
+		void submit(ExecutorService executor, FutureTask<?> fetch) {
+			synchronized (this) {
+				if (running >= fetchesPerResource) {
+					waiting.add(fetch);
+					return;
+				}
+				running++;
+			}
+			execute(executor, fetch);
+		}
+
+		private void execute(final ExecutorService executor, final FutureTask<?> fetch) {
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							fetch.run();
+						} finally {
+							executeNext(executor);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// the executor is being shut down
+				fetch.cancel(false);
+				executeNext(executor);
+			}
+		}
+
+		private void executeNext(ExecutorService executor) {
+			FutureTask<?> next;
+			synchronized (this) {
+				next = waiting.poll();
+				if (next == null) {
+					running--;
+					return;
+				}
+			}
+			execute(executor, next);
+		}
+	}
+
+	private static class ProjectionFetchThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger counter = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "projection-fetch-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
 	private <F extends ObjectType> boolean needToReload(LensContext<F> context,
 			LensProjectionContext projContext) {
 		ResourceShadowDiscriminator discr = projContext.getResourceShadowDiscriminator();
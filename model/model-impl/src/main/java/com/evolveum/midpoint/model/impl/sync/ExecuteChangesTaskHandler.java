@@ -65,6 +65,7 @@ public class ExecuteChangesTaskHandler extends AbstractSearchIterativeTaskHandle
 	public ExecuteChangesTaskHandler() {
         super("Execute", OperationConstants.EXECUTE);
 		setLogFinishInfo(true);
+		setWorkBucketsSupported(true);
     }
 
 	@PostConstruct
@@ -96,6 +96,7 @@ public class RecomputeTaskHandler extends AbstractSearchIterativeTaskHandler<Foc
         super("Recompute", OperationConstants.RECOMPUTE);
 		setLogFinishInfo(true);
 		setPreserveStatistics(false);
+		setWorkBucketsSupported(true);
     }
 
 	@PostConstruct
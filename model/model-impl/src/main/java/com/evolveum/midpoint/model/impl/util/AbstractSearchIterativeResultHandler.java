@@ -218,6 +218,13 @@ public abstract class AbstractSearchIterativeResultHandler<O extends ObjectType>
 		allItemsSubmitted = true;
 	}
 
+	/**
+	 * Returns true if processing was stopped by the handler itself (e.g. because of an error), not by the task manager.
+	 */
+	public boolean isStopRequested() {
+		return stopRequestedByAnyWorker.get();
+	}
+
 	public Float getAverageTime() {
 		long count = getProgress();
 		if (count > 0) {
@@ -490,6 +497,7 @@ public abstract class AbstractSearchIterativeResultHandler<O extends ObjectType>
 	}
 
 	public void createWorkerThreads(Task coordinatorTask, OperationResult opResult) {
+		allItemsSubmitted = false;				// the handler can be used for more searches (e.g. one per work bucket)
 		Integer threadsCount = getWorkerThreadsCount(coordinatorTask);
 		if (threadsCount == null || threadsCount == 0) {
 			return;             // nothing to do
@@ -52,6 +52,7 @@ import com.evolveum.midpoint.util.exception.SecurityViolationException;
 import com.evolveum.midpoint.util.logging.Trace;
 import com.evolveum.midpoint.util.logging.TraceManager;
 import com.evolveum.midpoint.xml.ns._public.common.common_3.ObjectType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.WorkBucketType;
 import org.springframework.beans.factory.annotation.Qualifier;
 
 import javax.xml.namespace.QName;
@@ -74,6 +75,7 @@ public abstract class AbstractSearchIterativeTaskHandler<O extends ObjectType, H
     private boolean enableIterationStatistics = true;   // beware, this controls whether task stores these statistics; see also recordIterationStatistics in AbstractSearchIterativeResultHandler
     private boolean enableSynchronizationStatistics = false;
     private boolean enableActionsExecutedStatistics = true;
+    private boolean workBucketsSupported = false;       // whether the work can be divided into buckets (see WorkBucketManager)
 
 	// If you need to store fields specific to task instance or task run the ResultHandler is a good place to do that.
 	
@@ -92,6 +94,9 @@ public abstract class AbstractSearchIterativeTaskHandler<O extends ObjectType, H
 
     @Autowired(required = true)
 	protected PrismContext prismContext;
+
+    @Autowired
+    protected WorkBucketManager workBucketManager;
 	
 	private static final transient Trace LOGGER = TraceManager.getTrace(AbstractSearchIterativeTaskHandler.class);
 	
@@ -141,6 +146,18 @@ public abstract class AbstractSearchIterativeTaskHandler<O extends ObjectType, H
 		this.logFinishInfo = logFinishInfo;
 	}
 
+    public boolean isWorkBucketsSupported() {
+        return workBucketsSupported;
+    }
+
+    /**
+     * Work buckets are defined as OID intervals, so this should be enabled only for handlers that search
+     * for objects in the repository (and that don't need to do anything special at the end of the run).
+     */
+    public void setWorkBucketsSupported(boolean workBucketsSupported) {
+        this.workBucketsSupported = workBucketsSupported;
+    }
+
 	@Override
 	public TaskRunResult run(Task coordinatorTask) {
         LOGGER.trace("{} run starting (coordinator task {})", taskName, coordinatorTask);
@@ -152,6 +169,9 @@ public abstract class AbstractSearchIterativeTaskHandler<O extends ObjectType, H
                     isEnableActionsExecutedStatistics());
         }
         try {
+            if (isWorkBucketsSupported() && workBucketManager.isCoordinator(coordinatorTask)) {
+                return workBucketManager.runCoordinator(coordinatorTask, taskOperationPrefix + ".run");
+            }
             return runInternal(coordinatorTask);
         } finally {
             coordinatorTask.storeOperationStats();
@@ -207,11 +227,14 @@ public abstract class AbstractSearchIterativeTaskHandler<O extends ObjectType, H
             LOGGER.trace("{}: searching {} with options {}, using query:\n{}", taskName, type, queryOptions, query.debugDump());
         }
 
+        boolean bucketWorker = isWorkBucketsSupported() && workBucketManager.isWorker(coordinatorTask);
+
         try {
 
             // counting objects can be within try-catch block, because the handling is similar to handling errors within searchIterative
+            // (workers don't count objects; the coordinator sums up their progress)
             Long expectedTotal = null;
-            if (countObjectsOnStart) {
+            if (countObjectsOnStart && !bucketWorker) {
                 if (!useRepository) {
                     Integer expectedTotalInt = modelObjectResolver.countObjects(type, query, queryOptions, coordinatorTask, opResult);
                     if (expectedTotalInt != null) {
@@ -234,13 +257,13 @@ public abstract class AbstractSearchIterativeTaskHandler<O extends ObjectType, H
                 throw new IllegalStateException("Unexpected ObjectAlreadyExistsException when updating task progress/expectedTotal", e);
             }
 
-            resultHandler.createWorkerThreads(coordinatorTask, opResult);
-            if (!useRepository) {
-                modelObjectResolver.searchIterative((Class<O>) type, query, queryOptions, resultHandler, coordinatorTask, opResult);
+            if (bucketWorker) {
+                processWorkBuckets(type, query, queryOptions, useRepository, resultHandler, coordinatorTask, opResult);
             } else {
-                repositoryService.searchObjectsIterative(type, query, (ResultHandler) resultHandler, null, false, opResult);    // TODO think about this
+                resultHandler.createWorkerThreads(coordinatorTask, opResult);
+                searchIterative(type, query, queryOptions, useRepository, resultHandler, coordinatorTask, opResult);
+                resultHandler.completeProcessing(coordinatorTask, opResult);
             }
-            resultHandler.completeProcessing(coordinatorTask, opResult);
 
         } catch (ObjectNotFoundException ex) {
             LOGGER.error("{}: Object not found: {}", new Object[]{taskName, ex.getMessage(), ex});
@@ -324,6 +347,43 @@ public abstract class AbstractSearchIterativeTaskHandler<O extends ObjectType, H
 		
 	}
 
+    private void searchIterative(Class<? extends ObjectType> type, ObjectQuery query, Collection<SelectorOptions<GetOperationOptions>> queryOptions,
+            boolean useRepository, H resultHandler, Task coordinatorTask, OperationResult opResult)
+            throws SchemaException, ObjectNotFoundException, CommunicationException, ConfigurationException, SecurityViolationException {
+        if (!useRepository) {
+            modelObjectResolver.searchIterative((Class<O>) type, query, queryOptions, resultHandler, coordinatorTask, opResult);
+        } else {
+            repositoryService.searchObjectsIterative(type, query, (ResultHandler) resultHandler, null, false, opResult);    // TODO think about this
+        }
+    }
+
+    /**
+     * Processes work buckets of the coordinator (parent) task, one after another, until there are none left.
+     * A bucket is marked as complete only if it was processed without interruption; otherwise it stays delegated
+     * to this task, so it will be processed again when the task is resumed or restarted.
+     */
+    private void processWorkBuckets(Class<? extends ObjectType> type, ObjectQuery query, Collection<SelectorOptions<GetOperationOptions>> queryOptions,
+            boolean useRepository, H resultHandler, Task workerTask, OperationResult opResult)
+            throws SchemaException, ObjectNotFoundException, CommunicationException, ConfigurationException, SecurityViolationException {
+        while (workerTask.canRun()) {
+            WorkBucketType bucket = workBucketManager.claimBucket(workerTask, opResult);
+            if (bucket == null) {
+                break;
+            }
+            ObjectQuery bucketQuery = workBucketManager.narrowQueryToBucket(query, bucket);
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace("{}: processing bucket #{} using query:\n{}", taskName, bucket.getSequentialNumber(), bucketQuery.debugDump());
+            }
+            resultHandler.createWorkerThreads(workerTask, opResult);
+            searchIterative(type, bucketQuery, queryOptions, useRepository, resultHandler, workerTask, opResult);
+            resultHandler.completeProcessing(workerTask, opResult);
+            if (!workerTask.canRun() || resultHandler.isStopRequested()) {
+                break;
+            }
+            workBucketManager.completeBucket(workerTask, bucket, opResult);
+        }
+    }
+
     protected void finish(H handler, TaskRunResult runResult, Task task, OperationResult opResult) throws SchemaException {
 	}
 
@@ -0,0 +1,655 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.model.impl.util;
+
+import com.evolveum.midpoint.prism.Item;
+import com.evolveum.midpoint.prism.PrismConstants;
+import com.evolveum.midpoint.prism.PrismContainer;
+import com.evolveum.midpoint.prism.PrismContext;
+import com.evolveum.midpoint.prism.PrismObject;
+import com.evolveum.midpoint.prism.PrismPropertyDefinition;
+import com.evolveum.midpoint.prism.delta.ItemDelta;
+import com.evolveum.midpoint.prism.delta.builder.DeltaBuilder;
+import com.evolveum.midpoint.prism.path.ItemPath;
+import com.evolveum.midpoint.prism.query.AndFilter;
+import com.evolveum.midpoint.prism.query.GreaterFilter;
+import com.evolveum.midpoint.prism.query.LessFilter;
+import com.evolveum.midpoint.prism.query.ObjectFilter;
+import com.evolveum.midpoint.prism.query.ObjectQuery;
+import com.evolveum.midpoint.repo.api.PreconditionViolationException;
+import com.evolveum.midpoint.repo.api.RepositoryService;
+import com.evolveum.midpoint.repo.api.VersionPrecondition;
+import com.evolveum.midpoint.schema.constants.SchemaConstants;
+import com.evolveum.midpoint.schema.result.OperationResult;
+import com.evolveum.midpoint.schema.result.OperationResultStatus;
+import com.evolveum.midpoint.schema.statistics.ActionsExecutedInformation;
+import com.evolveum.midpoint.schema.statistics.EnvironmentalPerformanceInformation;
+import com.evolveum.midpoint.schema.statistics.IterativeTaskInformation;
+import com.evolveum.midpoint.schema.statistics.SynchronizationInformation;
+import com.evolveum.midpoint.schema.util.ObjectQueryUtil;
+import com.evolveum.midpoint.task.api.Task;
+import com.evolveum.midpoint.task.api.TaskExecutionStatus;
+import com.evolveum.midpoint.task.api.TaskManager;
+import com.evolveum.midpoint.task.api.TaskRunResult;
+import com.evolveum.midpoint.task.api.TaskRunResult.TaskRunResultStatus;
+import com.evolveum.midpoint.util.DOMUtil;
+import com.evolveum.midpoint.util.exception.ObjectAlreadyExistsException;
+import com.evolveum.midpoint.util.exception.ObjectNotFoundException;
+import com.evolveum.midpoint.util.exception.SchemaException;
+import com.evolveum.midpoint.util.exception.SystemException;
+import com.evolveum.midpoint.util.logging.LoggingUtils;
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ActionsExecutedInformationType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.EnvironmentalPerformanceInformationType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.IterativeTaskInformationType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ObjectReferenceType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.OperationStatsType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.SynchronizationInformationType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.TaskType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.TaskWorkStateType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ThreadStopActionType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.WorkBucketStateType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.WorkBucketType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Manages execution of search-iterative tasks whose work is divided into buckets.
+ *
+ * The coordinator task (one having "workBuckets" extension property) divides the object space into OID
+ * intervals, stores them in its workState, and creates persistent worker subtasks. These can run on any node.
+ * Each worker repeatedly claims a bucket (using optimistic locking on the coordinator task), processes objects
+ * in it and marks it as complete.
+ *
+ * A bucket stays delegated to its worker until it is completed. So if a worker is restarted (e.g. on another
+ * node after the original node failed), it continues with its own bucket first. Buckets delegated to workers that
+ * were closed without completing them are returned to the "ready" state by the coordinator, and new workers
+ * are created if necessary. Each bucket is delegated at most "maxWorkBucketAttempts" times; a bucket that fails
+ * repeatedly (e.g. because of an object that can't be processed) is marked as failed, and the coordinator finishes
+ * with an error when all other buckets are done. If the coordinator itself is interrupted, the work state is kept
+ * and the next run continues where the previous one stopped, giving failed buckets another chance.
+ *
+ * The coordinator is woken up when a worker running on the same node changes the work state. Changes made by workers
+ * on other nodes (and workers that died) are noticed at latest after COORDINATOR_MAX_WAIT.
+ *
+ * Buckets are OID intervals, so they can be used only by handlers that search the repository. Searches on a resource
+ * (import, reconciliation) cannot be narrowed by shadow OID: each worker would have to read all the objects
+ * from the resource.
+ *
+ * @author agent
+ */
+@Component
+public class WorkBucketManager {
+
+    private static final transient Trace LOGGER = TraceManager.getTrace(WorkBucketManager.class);
+
+    private static final int OID_PREFIX_LENGTH = 4;
+    private static final int OID_PREFIX_SPACE = 1 << (4 * OID_PREFIX_LENGTH);
+
+    private static final long COORDINATOR_MAX_WAIT = 30000L;
+    private static final int DEFAULT_MAX_BUCKET_ATTEMPTS = 3;
+    private static final int MAX_CLAIM_ATTEMPTS = 40;
+    private static final long MAX_CLAIM_BACKOFF = 500L;
+
+    @Autowired
+    private TaskManager taskManager;
+
+    // the work state must be always read from the repository itself, never from a cache
+    @Autowired
+    @Qualifier("repositoryService")
+    private RepositoryService repositoryService;
+
+    @Autowired
+    private PrismContext prismContext;
+
+    private final Random random = new Random();
+
+    // signalled by local workers whenever they change the work state
+    private final Object workStateSignal = new Object();
+    private long workStateChangeCount;
+
+    public boolean isCoordinator(Task task) {
+        return !isWorker(task) && getWorkBucketsCount(task) > 0;
+    }
+
+    public boolean isWorker(Task task) {
+        return Boolean.TRUE.equals(task.<Boolean>getExtensionPropertyRealValue(SchemaConstants.MODEL_EXTENSION_WORK_BUCKET_WORKER));
+    }
+
+    private int getWorkBucketsCount(Task task) {
+        Integer count = task.getExtensionPropertyRealValue(SchemaConstants.MODEL_EXTENSION_WORK_BUCKETS);
+        return count != null ? count : 0;
+    }
+
+    private int getWorkerTasksCount(Task task) {
+        Integer count = task.getExtensionPropertyRealValue(SchemaConstants.MODEL_EXTENSION_WORKER_TASKS);
+        return count != null && count > 0 ? count : getWorkBucketsCount(task);
+    }
+
+    private int getMaxBucketAttempts(Task task) {
+        Integer attempts = task.getExtensionPropertyRealValue(SchemaConstants.MODEL_EXTENSION_MAX_WORK_BUCKET_ATTEMPTS);
+        return attempts != null && attempts > 0 ? attempts : DEFAULT_MAX_BUCKET_ATTEMPTS;
+    }
+
+    //region Coordinator
+    /**
+     * Runs the coordinator: (re)creates the buckets and the workers, and waits until all buckets are complete
+     * (or failed). Statistics of the workers are aggregated into the coordinator task.
+     */
+    public TaskRunResult runCoordinator(Task coordinatorTask, String operationName) {
+        OperationResult opResult = new OperationResult(operationName);
+        opResult.setStatus(OperationResultStatus.IN_PROGRESS);
+        TaskRunResult runResult = new TaskRunResult();
+        runResult.setOperationResult(opResult);
+
+        try {
+            int bucketsCount = getWorkBucketsCount(coordinatorTask);
+            if (bucketsCount > OID_PREFIX_SPACE) {
+                throw new SchemaException("Too many work buckets: " + bucketsCount + " (at most " + OID_PREFIX_SPACE + " are supported)");
+            }
+            TaskWorkStateType workState = getWorkState(coordinatorTask, opResult);
+            if (workState == null || workState.getBucket().isEmpty() || allBucketsComplete(workState)) {
+                LOGGER.debug("Creating {} work buckets for {}", bucketsCount, coordinatorTask);
+                deleteClosedWorkers(coordinatorTask, opResult);
+                repositoryService.modifyObject(TaskType.class, coordinatorTask.getOid(),
+                        createWorkStateReplaceDelta(createWorkState(bucketsCount)), opResult);
+            } else {
+                LOGGER.debug("Continuing processing of work buckets for {}", coordinatorTask);
+                resetFailedBuckets(coordinatorTask, workState, opResult);
+                resumeSuspendedWorkers(coordinatorTask, opResult);
+            }
+
+            for (;;) {
+                long changeCount = getWorkStateChangeCount();
+                workState = getWorkState(coordinatorTask, opResult);
+                List<Task> workers = listWorkers(coordinatorTask, opResult);
+                updateProgress(coordinatorTask, workers, opResult);
+                if (allBucketsClosed(workState)) {
+                    break;
+                }
+                if (!coordinatorTask.canRun()) {
+                    LOGGER.debug("Coordinator {} was interrupted, suspending its workers", coordinatorTask);
+                    suspendWorkers(workers, opResult);
+                    runResult.setRunResultStatus(TaskRunResultStatus.INTERRUPTED);
+                    runResult.setProgress(coordinatorTask.getProgress());
+                    aggregateStatistics(coordinatorTask, workers);
+                    return runResult;
+                }
+                releaseBucketsOfClosedWorkers(coordinatorTask, workState, workers, opResult);
+                createWorkersIfNeeded(coordinatorTask, workState, workers, opResult);
+                waitForWorkStateChange(changeCount);
+            }
+
+            List<Task> workers = listWorkers(coordinatorTask, opResult);
+            aggregateStatistics(coordinatorTask, workers);
+
+            int failed = countBuckets(workState, WorkBucketStateType.FAILED);
+            if (failed > 0) {
+                LOGGER.error("Coordinator {} finished, but {} work bucket(s) failed", coordinatorTask, failed);
+                opResult.recordFatalError(failed + " work bucket(s) could not be processed in "
+                        + getMaxBucketAttempts(coordinatorTask) + " attempts");
+                runResult.setRunResultStatus(TaskRunResultStatus.PERMANENT_ERROR);
+                runResult.setProgress(coordinatorTask.getProgress());
+                return runResult;
+            }
+        } catch (ObjectNotFoundException | SchemaException | ObjectAlreadyExistsException | RuntimeException e) {
+            LoggingUtils.logUnexpectedException(LOGGER, "Couldn't coordinate work buckets of {}", e, coordinatorTask);
+            opResult.recordFatalError("Couldn't coordinate work buckets: " + e.getMessage(), e);
+            runResult.setRunResultStatus(TaskRunResultStatus.PERMANENT_ERROR);
+            runResult.setProgress(coordinatorTask.getProgress());
+            return runResult;
+        }
+
+        opResult.computeStatus();
+        runResult.setRunResultStatus(TaskRunResultStatus.FINISHED);
+        runResult.setProgress(coordinatorTask.getProgress());
+        LOGGER.trace("Coordinator {} finished, all work buckets are complete", coordinatorTask);
+        return runResult;
+    }
+
+    private long getWorkStateChangeCount() {
+        synchronized (workStateSignal) {
+            return workStateChangeCount;
+        }
+    }
+
+    private void signalWorkStateChange() {
+        synchronized (workStateSignal) {
+            workStateChangeCount++;
+            workStateSignal.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until a local worker changes the work state (after the coordinator has seen lastChangeCount),
+     * but at most COORDINATOR_MAX_WAIT.
+     */
+    private void waitForWorkStateChange(long lastChangeCount) {
+        long deadline = System.currentTimeMillis() + COORDINATOR_MAX_WAIT;
+        synchronized (workStateSignal) {
+            while (workStateChangeCount == lastChangeCount) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return;
+                }
+                try {
+                    workStateSignal.wait(remaining);
+                } catch (InterruptedException e) {
+                    // will be checked via canRun() in the next iteration
+                    return;
+                }
+            }
+        }
+    }
+
+    private TaskWorkStateType getWorkState(Task coordinatorTask, OperationResult result) throws SchemaException, ObjectNotFoundException {
+        return repositoryService.getObject(TaskType.class, coordinatorTask.getOid(), null, result).asObjectable().getWorkState();
+    }
+
+    TaskWorkStateType createWorkState(int bucketsCount) {
+        TaskWorkStateType workState = new TaskWorkStateType();
+        for (int i = 0; i < bucketsCount; i++) {
+            WorkBucketType bucket = new WorkBucketType();
+            bucket.setId((long) (i + 1));
+            bucket.setSequentialNumber(i + 1);
+            bucket.setState(WorkBucketStateType.READY);
+            if (i > 0) {
+                bucket.setLowerBound(toOidPrefix((long) i * OID_PREFIX_SPACE / bucketsCount));
+            }
+            if (i < bucketsCount - 1) {
+                bucket.setUpperBound(toOidPrefix((long) (i + 1) * OID_PREFIX_SPACE / bucketsCount));
+            }
+            workState.getBucket().add(bucket);
+        }
+        return workState;
+    }
+
+    private String toOidPrefix(long value) {
+        String hex = Long.toHexString(value);
+        StringBuilder sb = new StringBuilder();
+        for (int i = hex.length(); i < OID_PREFIX_LENGTH; i++) {
+            sb.append('0');
+        }
+        return sb.append(hex).toString();
+    }
+
+    private boolean allBucketsComplete(TaskWorkStateType workState) {
+        return countBuckets(workState, WorkBucketStateType.COMPLETE) == workState.getBucket().size();
+    }
+
+    private boolean allBucketsClosed(TaskWorkStateType workState) {
+        return countBuckets(workState, WorkBucketStateType.COMPLETE) + countBuckets(workState, WorkBucketStateType.FAILED)
+                == workState.getBucket().size();
+    }
+
+    private int countBuckets(TaskWorkStateType workState, WorkBucketStateType state) {
+        int count = 0;
+        for (WorkBucketType bucket : workState.getBucket()) {
+            if (bucket.getState() == state) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private List<Task> listWorkers(Task coordinatorTask, OperationResult result) throws SchemaException {
+        List<Task> workers = new ArrayList<>();
+        for (Task subtask : coordinatorTask.listSubtasks(result)) {
+            if (subtask.isPersistent() && isWorker(subtask)) {
+                workers.add(subtask);
+            }
+        }
+        return workers;
+    }
+
+    private void deleteClosedWorkers(Task coordinatorTask, OperationResult result) throws SchemaException, ObjectNotFoundException {
+        for (Task worker : listWorkers(coordinatorTask, result)) {
+            if (worker.isClosed()) {
+                LOGGER.trace("Deleting worker {} from the previous run", worker);
+                taskManager.deleteTask(worker.getOid(), result);
+            }
+        }
+    }
+
+    private void resumeSuspendedWorkers(Task coordinatorTask, OperationResult result) throws SchemaException, ObjectNotFoundException {
+        for (Task worker : listWorkers(coordinatorTask, result)) {
+            if (worker.getExecutionStatus() == TaskExecutionStatus.SUSPENDED) {
+                LOGGER.trace("Resuming worker {}", worker);
+                taskManager.resumeTask(worker, result);
+            }
+        }
+    }
+
+    private void suspendWorkers(List<Task> workers, OperationResult result) {
+        List<String> oids = new ArrayList<>();
+        for (Task worker : workers) {
+            if (!worker.isClosed()) {
+                oids.add(worker.getOid());
+            }
+        }
+        if (!oids.isEmpty()) {
+            taskManager.suspendTasks(oids, 0L, result);
+        }
+    }
+
+    /**
+     * Buckets delegated to workers that are closed (or no longer exist) would never be completed, so we give them
+     * to other workers. A bucket that was already delegated the maximum number of times is marked as failed instead;
+     * otherwise a bucket that always fails would make us create new workers forever.
+     * If someone else modified the work state in the meanwhile, we simply try again in the next round.
+     */
+    void releaseBucketsOfClosedWorkers(Task coordinatorTask, TaskWorkStateType workState, List<Task> workers,
+            OperationResult result) throws SchemaException, ObjectNotFoundException, ObjectAlreadyExistsException {
+        int maxAttempts = getMaxBucketAttempts(coordinatorTask);
+        TaskWorkStateType newState = workState.clone();
+        boolean changed = false;
+        for (WorkBucketType bucket : newState.getBucket()) {
+            if (bucket.getState() == WorkBucketStateType.DELEGATED && !isLiveWorker(bucket.getWorkerRef(), workers)) {
+                if (getAttempts(bucket) >= maxAttempts) {
+                    LOGGER.warn("Bucket #{} of {} was not completed in {} attempts (last worker: {}), marking it as failed",
+                            bucket.getSequentialNumber(), coordinatorTask, getAttempts(bucket), bucket.getWorkerRef());
+                    bucket.setState(WorkBucketStateType.FAILED);
+                } else {
+                    LOGGER.debug("Releasing bucket #{} of {} that was delegated to {} which is not running any more",
+                            bucket.getSequentialNumber(), coordinatorTask, bucket.getWorkerRef());
+                    bucket.setState(WorkBucketStateType.READY);
+                    bucket.setWorkerRef(null);
+                }
+                changed = true;
+            }
+        }
+        if (changed) {
+            modifyWorkStateIfUnchanged(coordinatorTask, workState, newState, result);
+        }
+    }
+
+    /**
+     * Failed buckets get another chance when the coordinator is run again (e.g. after the cause of the failure
+     * was fixed and the task was resumed).
+     */
+    private void resetFailedBuckets(Task coordinatorTask, TaskWorkStateType workState, OperationResult result)
+            throws SchemaException, ObjectNotFoundException, ObjectAlreadyExistsException {
+        TaskWorkStateType newState = workState.clone();
+        boolean changed = false;
+        for (WorkBucketType bucket : newState.getBucket()) {
+            if (bucket.getState() == WorkBucketStateType.FAILED) {
+                LOGGER.debug("Resetting failed bucket #{} of {}", bucket.getSequentialNumber(), coordinatorTask);
+                bucket.setState(WorkBucketStateType.READY);
+                bucket.setWorkerRef(null);
+                bucket.setAttempts(null);
+                changed = true;
+            }
+        }
+        if (changed) {
+            modifyWorkStateIfUnchanged(coordinatorTask, workState, newState, result);
+        }
+    }
+
+    private void modifyWorkStateIfUnchanged(Task coordinatorTask, TaskWorkStateType workState, TaskWorkStateType newState,
+            OperationResult result) throws SchemaException, ObjectNotFoundException, ObjectAlreadyExistsException {
+        PrismObject<TaskType> coordinator = repositoryService.getObject(TaskType.class, coordinatorTask.getOid(), null, result);
+        if (!workState.equals(coordinator.asObjectable().getWorkState())) {
+            return;     // changed in the meanwhile; we'll try in the next round
+        }
+        try {
+            repositoryService.modifyObject(TaskType.class, coordinatorTask.getOid(), createWorkStateReplaceDelta(newState),
+                    new VersionPrecondition<>(coordinator), result);
+        } catch (PreconditionViolationException e) {
+            LOGGER.trace("Work state of {} was changed concurrently, it will be updated later", coordinatorTask);
+        }
+    }
+
+    private int getAttempts(WorkBucketType bucket) {
+        return bucket.getAttempts() != null ? bucket.getAttempts() : 0;
+    }
+
+    private boolean isLiveWorker(ObjectReferenceType workerRef, List<Task> workers) {
+        if (workerRef == null) {
+            return false;
+        }
+        for (Task worker : workers) {
+            if (workerRef.getOid().equals(worker.getOid())) {
+                return !worker.isClosed();
+            }
+        }
+        return false;
+    }
+
+    private void createWorkersIfNeeded(Task coordinatorTask, TaskWorkStateType workState, List<Task> workers,
+            OperationResult result) throws SchemaException {
+        int ready = countBuckets(workState, WorkBucketStateType.READY);
+        int live = 0;
+        for (Task worker : workers) {
+            if (!worker.isClosed()) {
+                live++;
+            }
+        }
+        int toCreate = Math.min(ready, getWorkerTasksCount(coordinatorTask) - live);
+        for (int i = 0; i < toCreate; i++) {
+            createWorker(coordinatorTask, workers.size() + i + 1, result);
+        }
+    }
+
+    private void createWorker(Task coordinatorTask, int number, OperationResult result) throws SchemaException {
+        Task worker = coordinatorTask.createSubtask();
+        String coordinatorName = coordinatorTask.getName() != null ? coordinatorTask.getName().getOrig() : coordinatorTask.getOid();
+        worker.setName(coordinatorName + " (worker " + number + ")");
+        worker.setHandlerUri(coordinatorTask.getHandlerUri());
+        worker.setCategory(coordinatorTask.getCategory());
+        if (coordinatorTask.getObjectRef() != null) {
+            worker.setObjectRef(coordinatorTask.getObjectRef().clone());
+        }
+        PrismContainer<?> extension = coordinatorTask.getExtension();
+        if (extension != null) {
+            for (Item<?, ?> item : extension.getValue().getItems()) {
+                if (!SchemaConstants.MODEL_EXTENSION_WORK_BUCKETS.equals(item.getElementName())
+                        && !SchemaConstants.MODEL_EXTENSION_WORKER_TASKS.equals(item.getElementName())
+                        && !SchemaConstants.MODEL_EXTENSION_MAX_WORK_BUCKET_ATTEMPTS.equals(item.getElementName())) {
+                    worker.setExtensionItem(item.clone());
+                }
+            }
+        }
+        worker.setExtensionPropertyValue(SchemaConstants.MODEL_EXTENSION_WORK_BUCKET_WORKER, true);
+        // a worker interrupted by a node failure should be restarted (on any node) and continue with its bucket
+        worker.setThreadStopAction(ThreadStopActionType.RESTART);
+        worker.setInitialExecutionStatus(TaskExecutionStatus.RUNNABLE);
+        worker.makeSingle();
+        taskManager.switchToBackground(worker, result);
+        LOGGER.debug("Created worker {} for {}", worker, coordinatorTask);
+    }
+
+    void updateProgress(Task coordinatorTask, List<Task> workers, OperationResult result)
+            throws SchemaException, ObjectNotFoundException, ObjectAlreadyExistsException {
+        long progress = 0;
+        for (Task worker : workers) {
+            progress += worker.getProgress();
+        }
+        if (progress != coordinatorTask.getProgress()) {
+            coordinatorTask.setProgress(progress);
+            coordinatorTask.savePendingModifications(result);
+        }
+    }
+
+    void aggregateStatistics(Task coordinatorTask, List<Task> workers) {
+        EnvironmentalPerformanceInformationType environmental = new EnvironmentalPerformanceInformationType();
+        IterativeTaskInformationType iterative = new IterativeTaskInformationType();
+        SynchronizationInformationType synchronization = new SynchronizationInformationType();
+        ActionsExecutedInformationType actionsExecuted = new ActionsExecutedInformationType();
+        for (Task worker : workers) {
+            OperationStatsType stats = worker.getStoredOperationStats();
+            if (stats == null) {
+                continue;
+            }
+            if (stats.getEnvironmentalPerformanceInformation() != null) {
+                EnvironmentalPerformanceInformation.addTo(environmental, stats.getEnvironmentalPerformanceInformation());
+            }
+            if (stats.getIterativeTaskInformation() != null) {
+                IterativeTaskInformation.addTo(iterative, stats.getIterativeTaskInformation(), false);
+            }
+            if (stats.getSynchronizationInformation() != null) {
+                SynchronizationInformation.addTo(synchronization, stats.getSynchronizationInformation());
+            }
+            if (stats.getActionsExecutedInformation() != null) {
+                ActionsExecutedInformation.addTo(actionsExecuted, stats.getActionsExecutedInformation());
+            }
+        }
+        // these will be stored when the task handler finishes
+        coordinatorTask.resetEnvironmentalPerformanceInformation(environmental);
+        coordinatorTask.resetIterativeTaskInformation(iterative);
+        coordinatorTask.resetSynchronizationInformation(synchronization);
+        coordinatorTask.resetActionsExecutedInformation(actionsExecuted);
+    }
+    //endregion
+
+    //region Worker
+    /**
+     * Returns the bucket the worker should process next: either the one already delegated to it (e.g. when the worker
+     * was restarted after a node failure) or the first ready one. Returns null if there's nothing more to do.
+     */
+    public WorkBucketType claimBucket(Task workerTask, OperationResult result)
+            throws SchemaException, ObjectNotFoundException {
+        String coordinatorOid = getCoordinatorOid(workerTask, result);
+        for (int attempt = 1; attempt <= MAX_CLAIM_ATTEMPTS; attempt++) {
+            PrismObject<TaskType> coordinator = repositoryService.getObject(TaskType.class, coordinatorOid, null, result);
+            TaskWorkStateType workState = coordinator.asObjectable().getWorkState();
+            if (workState == null) {
+                throw new IllegalStateException("No work state in coordinator task " + coordinator);
+            }
+            WorkBucketType ready = null;
+            for (WorkBucketType bucket : workState.getBucket()) {
+                if (bucket.getState() == WorkBucketStateType.DELEGATED && bucket.getWorkerRef() != null
+                        && workerTask.getOid().equals(bucket.getWorkerRef().getOid())) {
+                    LOGGER.debug("Continuing with bucket #{} already delegated to {}", bucket.getSequentialNumber(), workerTask);
+                    return bucket;
+                } else if (ready == null && bucket.getState() == WorkBucketStateType.READY) {
+                    ready = bucket;
+                }
+            }
+            if (ready == null) {
+                LOGGER.debug("No more ready buckets for {}", workerTask);
+                return null;
+            }
+            ready.setState(WorkBucketStateType.DELEGATED);
+            ready.setAttempts(getAttempts(ready) + 1);
+            ObjectReferenceType workerRef = new ObjectReferenceType();
+            workerRef.setOid(workerTask.getOid());
+            workerRef.setType(TaskType.COMPLEX_TYPE);
+            ready.setWorkerRef(workerRef);
+            try {
+                repositoryService.modifyObject(TaskType.class, coordinatorOid, createWorkStateReplaceDelta(workState.clone()),
+                        new VersionPrecondition<>(coordinator), result);
+                LOGGER.debug("Bucket #{} was delegated to {}", ready.getSequentialNumber(), workerTask);
+                return ready;
+            } catch (PreconditionViolationException e) {
+                LOGGER.trace("Work state of {} was changed concurrently (attempt {}), retrying", coordinatorOid, attempt);
+                backoff();
+            } catch (ObjectAlreadyExistsException e) {
+                throw new SystemException("Unexpected ObjectAlreadyExistsException when updating work state of " + coordinatorOid, e);
+            }
+        }
+        throw new SystemException("Couldn't claim a work bucket for " + workerTask + " in " + MAX_CLAIM_ATTEMPTS + " attempts");
+    }
+
+    public void completeBucket(Task workerTask, WorkBucketType bucket, OperationResult result)
+            throws SchemaException, ObjectNotFoundException {
+        String coordinatorOid = getCoordinatorOid(workerTask, result);
+        for (int attempt = 1; attempt <= MAX_CLAIM_ATTEMPTS; attempt++) {
+            PrismObject<TaskType> coordinator = repositoryService.getObject(TaskType.class, coordinatorOid, null, result);
+            TaskWorkStateType workState = coordinator.asObjectable().getWorkState().clone();
+            WorkBucketType current = findBucket(workState, bucket.getSequentialNumber());
+            if (current == null || current.getWorkerRef() == null || !workerTask.getOid().equals(current.getWorkerRef().getOid())) {
+                // the bucket was released by the coordinator in the meanwhile, so it will be processed once more
+                LOGGER.warn("Bucket #{} is no longer delegated to {}, not marking it as complete", bucket.getSequentialNumber(), workerTask);
+                return;
+            }
+            current.setState(WorkBucketStateType.COMPLETE);
+            try {
+                repositoryService.modifyObject(TaskType.class, coordinatorOid, createWorkStateReplaceDelta(workState),
+                        new VersionPrecondition<>(coordinator), result);
+                LOGGER.debug("Bucket #{} was completed by {}", bucket.getSequentialNumber(), workerTask);
+                signalWorkStateChange();
+                return;
+            } catch (PreconditionViolationException e) {
+                LOGGER.trace("Work state of {} was changed concurrently (attempt {}), retrying", coordinatorOid, attempt);
+                backoff();
+            } catch (ObjectAlreadyExistsException e) {
+                throw new SystemException("Unexpected ObjectAlreadyExistsException when updating work state of " + coordinatorOid, e);
+            }
+        }
+        throw new SystemException("Couldn't complete work bucket #" + bucket.getSequentialNumber() + " for " + workerTask
+                + " in " + MAX_CLAIM_ATTEMPTS + " attempts");
+    }
+
+    private WorkBucketType findBucket(TaskWorkStateType workState, int sequentialNumber) {
+        for (WorkBucketType bucket : workState.getBucket()) {
+            if (bucket.getSequentialNumber() == sequentialNumber) {
+                return bucket;
+            }
+        }
+        return null;
+    }
+
+    private String getCoordinatorOid(Task workerTask, OperationResult result) throws SchemaException, ObjectNotFoundException {
+        Task parent = workerTask.getParentTask(result);
+        if (parent == null) {
+            throw new IllegalStateException("No coordinator task for worker " + workerTask);
+        }
+        return parent.getOid();
+    }
+
+    private void backoff() {
+        try {
+            Thread.sleep((long) (random.nextDouble() * MAX_CLAIM_BACKOFF));
+        } catch (InterruptedException e) {
+            // just continue
+        }
+    }
+
+    /**
+     * Restricts the query to objects belonging to given bucket, i.e. having OID in [lowerBound, upperBound).
+     */
+    public ObjectQuery narrowQueryToBucket(ObjectQuery query, WorkBucketType bucket) throws SchemaException {
+        PrismPropertyDefinition<String> oidDefinition = new PrismPropertyDefinition<>(PrismConstants.T_ID, DOMUtil.XSD_STRING, prismContext);
+        ItemPath oidPath = new ItemPath(PrismConstants.T_ID);
+        List<ObjectFilter> conditions = new ArrayList<>();
+        if (bucket.getLowerBound() != null) {
+            conditions.add(GreaterFilter.createGreater(oidPath, oidDefinition, bucket.getLowerBound(), true));
+        }
+        if (bucket.getUpperBound() != null) {
+            conditions.add(LessFilter.createLess(oidPath, oidDefinition, bucket.getUpperBound(), false));
+        }
+        ObjectQuery narrowed = query != null ? query.clone() : new ObjectQuery();
+        if (!conditions.isEmpty()) {
+            ObjectFilter bucketFilter = conditions.size() == 1 ? conditions.get(0) : AndFilter.createAnd(conditions);
+            narrowed.setFilter(ObjectQueryUtil.filterAnd(narrowed.getFilter(), bucketFilter));
+        }
+        return narrowed;
+    }
+    //endregion
+
+    private Collection<? extends ItemDelta> createWorkStateReplaceDelta(TaskWorkStateType workState) throws SchemaException {
+        return DeltaBuilder.deltaFor(TaskType.class, prismContext)
+                .item(TaskType.F_WORK_STATE).replace(workState)
+                .asItemDeltas();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.model.impl.lens;
+
+import static com.evolveum.midpoint.test.IntegrationTestTools.display;
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.annotation.DirtiesContext.ClassMode;
+import org.springframework.test.context.ContextConfiguration;
+import org.testng.annotations.Test;
+
+import com.evolveum.icf.dummy.resource.DummyGroup;
+import com.evolveum.midpoint.model.api.context.SynchronizationPolicyDecision;
+import com.evolveum.midpoint.model.impl.lens.projector.ContextLoader;
+import com.evolveum.midpoint.prism.PrismObject;
+import com.evolveum.midpoint.prism.util.PrismTestUtil;
+import com.evolveum.midpoint.schema.constants.ObjectTypes;
+import com.evolveum.midpoint.schema.result.OperationResult;
+import com.evolveum.midpoint.schema.util.ObjectTypeUtil;
+import com.evolveum.midpoint.schema.util.ShadowUtil;
+import com.evolveum.midpoint.task.api.Task;
+import com.evolveum.midpoint.test.util.TestUtil;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ShadowType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.UserType;
+
+/**
+ * Loading of the linked projections: linked shadows read from the repository in one search
+ * and full shadows read concurrently (see ContextLoader.setProjectionFetchThreads).
+ *
+ * @author agent
+ */
+@ContextConfiguration(locations = {"classpath:ctx-model-test-main.xml"})
+@DirtiesContext(classMode = ClassMode.AFTER_CLASS)
+public class TestContextLoader extends AbstractLensTest {
+
+	private static final String RESOURCE_NONEXISTENT_OID = "10000000-0000-0000-0000-0000000000ff";
+	private static final String GROUP_PIRATE_DUMMY_NAME = "pirate";
+
+	@Autowired(required = true)
+	private ContextLoader contextLoader;
+
+	/**
+	 * Both linked shadows are read in one repository search, but their resource does not exist.
+	 * The links have to end up in broken projection contexts, the same as if the shadows were read one by one.
+	 */
+	@Test
+	public void test100LoadLinksToNonexistentResource() throws Exception {
+		final String TEST_NAME = "test100LoadLinksToNonexistentResource";
+		TestUtil.displayTestTile(this, TEST_NAME);
+
+		// GIVEN
+		Task task = taskManager.createTaskInstance(TestContextLoader.class.getName() + "." + TEST_NAME);
+		OperationResult result = task.getResult();
+
+		String shadowOid1 = addShadowOnNonexistentResource("ghost1", result);
+		String shadowOid2 = addShadowOnNonexistentResource("ghost2", result);
+		PrismObject<UserType> user = createUser("ghost", "Ghost Pirate LeChuck");
+		user.asObjectable().getLinkRef().add(ObjectTypeUtil.createObjectRef(shadowOid1, ObjectTypes.SHADOW));
+		user.asObjectable().getLinkRef().add(ObjectTypeUtil.createObjectRef(shadowOid2, ObjectTypes.SHADOW));
+		repoAddObject(UserType.class, user, result);
+
+		LensContext<UserType> context = createUserAccountContext();
+		fillContextWithUser(context, user.getOid(), result);
+
+		// WHEN
+		TestUtil.displayWhen(TEST_NAME);
+		contextLoader.load(context, TEST_NAME, task, result);
+
+		// THEN
+		TestUtil.displayThen(TEST_NAME);
+		display("Context after load", context);
+		assertEquals("Wrong number of projection contexts", 2, context.getProjectionContexts().size());
+		assertBroken(context, shadowOid1);
+		assertBroken(context, shadowOid2);
+	}
+
+	/**
+	 * Full shadows of two projections on the same resource are read concurrently, but only one at a time
+	 * may run on the resource. Both have to be read regardless.
+	 */
+	@Test
+	public void test200LoadFullShadowsConcurrently() throws Exception {
+		final String TEST_NAME = "test200LoadFullShadowsConcurrently";
+		TestUtil.displayTestTile(this, TEST_NAME);
+
+		// GIVEN
+		Task task = taskManager.createTaskInstance(TestContextLoader.class.getName() + "." + TEST_NAME);
+		OperationResult result = task.getResult();
+
+		dummyResource.addGroup(new DummyGroup(GROUP_PIRATE_DUMMY_NAME));
+		PrismObject<ShadowType> group = repoAddObjectFromFile(ENTITLEMENT_SHADOW_PIRATE_DUMMY_FILE, ShadowType.class, result);
+		PrismObject<UserType> user = createUser("guybrush2", "Guybrush Threepwood");
+		user.asObjectable().getLinkRef().add(ObjectTypeUtil.createObjectRef(ACCOUNT_SHADOW_GUYBRUSH_OID, ObjectTypes.SHADOW));
+		user.asObjectable().getLinkRef().add(ObjectTypeUtil.createObjectRef(group.getOid(), ObjectTypes.SHADOW));
+		repoAddObject(UserType.class, user, result);
+
+		LensContext<UserType> context = createUserAccountContext();
+		fillContextWithUser(context, user.getOid(), result);
+		contextLoader.load(context, TEST_NAME, task, result);
+		display("Context after first load", context);
+		assertEquals("Wrong number of projection contexts", 2, context.getProjectionContexts().size());
+		for (LensProjectionContext projCtx : context.getProjectionContexts()) {
+			projCtx.setDoReconciliation(true);
+		}
+
+		int originalThreads = contextLoader.getProjectionFetchThreads();
+		int originalFetchesPerResource = contextLoader.getProjectionFetchesPerResource();
+		contextLoader.setProjectionFetchThreads(4);
+		contextLoader.setProjectionFetchesPerResource(1);
+		try {
+
+			// WHEN
+			TestUtil.displayWhen(TEST_NAME);
+			contextLoader.load(context, TEST_NAME, task, result);
+
+		} finally {
+			contextLoader.setProjectionFetchThreads(originalThreads);
+			contextLoader.setProjectionFetchesPerResource(originalFetchesPerResource);
+		}
+
+		// THEN
+		TestUtil.displayThen(TEST_NAME);
+		display("Context after load", context);
+		result.computeStatus();
+		TestUtil.assertSuccess(result);
+
+		LensProjectionContext accountContext = context.findProjectionContextByOid(ACCOUNT_SHADOW_GUYBRUSH_OID);
+		assertFullShadow(accountContext);
+		assertEquals("Wrong full name", ACCOUNT_GUYBRUSH_DUMMY_FULLNAME,
+				ShadowUtil.getAttributeValue(accountContext.getObjectCurrent().asObjectable(),
+						dummyResourceCtl.getAttributeFullnameQName()));
+		assertFullShadow(context.findProjectionContextByOid(group.getOid()));
+	}
+
+	private String addShadowOnNonexistentResource(String name, OperationResult result) throws Exception {
+		PrismObject<ShadowType> shadow = PrismTestUtil.parseObject(ACCOUNT_SHADOW_GUYBRUSH_DUMMY_FILE);
+		shadow.setOid(null);
+		shadow.asObjectable().setName(PrismTestUtil.createPolyStringType(name));
+		shadow.asObjectable().getResourceRef().setOid(RESOURCE_NONEXISTENT_OID);
+		repoAddObject(ShadowType.class, shadow, result);
+		return shadow.getOid();
+	}
+
+	private void assertBroken(LensContext<UserType> context, String shadowOid) {
+		LensProjectionContext projCtx = context.findProjectionContextByOid(shadowOid);
+		assertNotNull("No projection context for " + shadowOid, projCtx);
+		assertEquals("Wrong policy decision for " + shadowOid, SynchronizationPolicyDecision.BROKEN,
+				projCtx.getSynchronizationPolicyDecision());
+		assertFalse("Broken projection " + shadowOid + " exists", projCtx.isExists());
+	}
+
+	private void assertFullShadow(LensProjectionContext projCtx) {
+		assertNotNull("No projection context", projCtx);
+		assertNotNull("No current object in " + projCtx, projCtx.getObjectCurrent());
+		assertTrue("Not a full shadow in " + projCtx, projCtx.isFullShadow());
+	}
+}
@@ -0,0 +1,588 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.model.impl.util;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
+import org.xml.sax.SAXException;
+
+import com.evolveum.midpoint.prism.PrismObject;
+import com.evolveum.midpoint.prism.delta.ItemDelta;
+import com.evolveum.midpoint.prism.query.AndFilter;
+import com.evolveum.midpoint.prism.query.ComparativeFilter;
+import com.evolveum.midpoint.prism.query.GreaterFilter;
+import com.evolveum.midpoint.prism.query.InOidFilter;
+import com.evolveum.midpoint.prism.query.LessFilter;
+import com.evolveum.midpoint.prism.query.ObjectFilter;
+import com.evolveum.midpoint.prism.query.ObjectQuery;
+import com.evolveum.midpoint.prism.util.PrismTestUtil;
+import com.evolveum.midpoint.repo.api.ModificationPrecondition;
+import com.evolveum.midpoint.repo.api.PreconditionViolationException;
+import com.evolveum.midpoint.repo.api.RepositoryService;
+import com.evolveum.midpoint.schema.MidPointPrismContextFactory;
+import com.evolveum.midpoint.schema.constants.MidPointConstants;
+import com.evolveum.midpoint.schema.result.OperationResult;
+import com.evolveum.midpoint.task.api.Task;
+import com.evolveum.midpoint.task.api.TaskManager;
+import com.evolveum.midpoint.test.util.TestUtil;
+import com.evolveum.midpoint.util.PrettyPrinter;
+import com.evolveum.midpoint.util.exception.SchemaException;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.IterativeTaskInformationType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ObjectReferenceType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.OperationStatsType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.TaskType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.TaskWorkStateType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.WorkBucketStateType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.WorkBucketType;
+
+/**
+ * WorkBucketManager with the coordinator task kept by a mock repository. The mock checks modification
+ * preconditions against the stored object and increases its version on each modification, like the real repository.
+ *
+ * @author agent
+ */
+public class TestWorkBucketManager {
+
+	private static final String COORDINATOR_OID = "c0c010c0-d34d-b33f-f00d-000000000001";
+	private static final String WORKER_PREFIX = "c0c010c0-d34d-b33f-f00d-1000000000";
+
+	private static final int THREADS = 4;
+
+	private final Object repoLock = new Object();
+	private PrismObject<TaskType> storedCoordinator;
+	private final AtomicInteger conflicts = new AtomicInteger();
+	private final AtomicInteger simulatedConflicts = new AtomicInteger();
+	private final AtomicInteger modifications = new AtomicInteger();
+
+	private RepositoryService repository;
+	private Task coordinatorTask;
+	private WorkBucketManager workBucketManager;
+
+	@BeforeSuite
+	public void setup() throws SchemaException, SAXException, IOException {
+		PrettyPrinter.setDefaultNamespacePrefix(MidPointConstants.NS_MIDPOINT_PUBLIC_PREFIX);
+		PrismTestUtil.resetPrismContext(MidPointPrismContextFactory.FACTORY);
+	}
+
+	@BeforeMethod
+	public void initManager() throws Exception {
+		storedCoordinator = null;
+		conflicts.set(0);
+		simulatedConflicts.set(0);
+		modifications.set(0);
+
+		repository = Mockito.mock(RepositoryService.class);
+		when(repository.getObject(any(Class.class), anyString(), any(Collection.class), any(OperationResult.class)))
+				.thenAnswer(new Answer<PrismObject<TaskType>>() {
+					@Override
+					public PrismObject<TaskType> answer(InvocationOnMock invocation) throws Throwable {
+						synchronized (repoLock) {
+							return storedCoordinator.clone();
+						}
+					}
+				});
+		Answer<Void> modifyAnswer = new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				Object[] args = invocation.getArguments();
+				ModificationPrecondition<TaskType> precondition = args.length == 5 ? (ModificationPrecondition<TaskType>) args[3] : null;
+				modifyCoordinator((Collection<? extends ItemDelta>) args[2], precondition);
+				return null;
+			}
+		};
+		doAnswer(modifyAnswer).when(repository).modifyObject(any(Class.class), anyString(), any(Collection.class),
+				any(OperationResult.class));
+		doAnswer(modifyAnswer).when(repository).modifyObject(any(Class.class), anyString(), any(Collection.class),
+				any(ModificationPrecondition.class), any(OperationResult.class));
+
+		coordinatorTask = Mockito.mock(Task.class);
+		when(coordinatorTask.getOid()).thenReturn(COORDINATOR_OID);
+
+		workBucketManager = new WorkBucketManager();
+		ReflectionTestUtils.setField(workBucketManager, "repositoryService", repository);
+		ReflectionTestUtils.setField(workBucketManager, "taskManager", Mockito.mock(TaskManager.class));
+		ReflectionTestUtils.setField(workBucketManager, "prismContext", PrismTestUtil.getPrismContext());
+	}
+
+	private void modifyCoordinator(Collection<? extends ItemDelta> modifications, ModificationPrecondition<TaskType> precondition)
+			throws SchemaException, PreconditionViolationException {
+		synchronized (repoLock) {
+			if (precondition != null && simulatedConflicts.getAndDecrement() > 0) {
+				// someone else (e.g. the coordinator saving its progress) has just modified the task
+				storedCoordinator.setVersion(nextVersion());
+			}
+			if (precondition != null) {
+				try {
+					precondition.check(storedCoordinator);
+				} catch (PreconditionViolationException e) {
+					conflicts.incrementAndGet();
+					throw e;
+				}
+			}
+			PrismObject<TaskType> modified = storedCoordinator.clone();
+			ItemDelta.applyTo(modifications, modified);
+			modified.setVersion(nextVersion());
+			storedCoordinator = modified;
+			this.modifications.incrementAndGet();
+		}
+	}
+
+	private String nextVersion() {
+		return String.valueOf(Integer.parseInt(storedCoordinator.getVersion()) + 1);
+	}
+
+	private void storeCoordinator(TaskWorkStateType workState) throws SchemaException {
+		TaskType coordinator = new TaskType();
+		PrismTestUtil.getPrismContext().adopt(coordinator);
+		coordinator.setOid(COORDINATOR_OID);
+		coordinator.setWorkState(workState);
+		coordinator.asPrismObject().setVersion("1");
+		synchronized (repoLock) {
+			storedCoordinator = coordinator.asPrismObject();
+		}
+	}
+
+	private TaskWorkStateType getStoredWorkState() {
+		synchronized (repoLock) {
+			return storedCoordinator.asObjectable().getWorkState().clone();
+		}
+	}
+
+	private Task createWorker(int number, boolean closed) throws Exception {
+		Task worker = Mockito.mock(Task.class);
+		when(worker.getOid()).thenReturn(WORKER_PREFIX + String.format("%02d", number));
+		when(worker.isClosed()).thenReturn(closed);
+		when(worker.getParentTask(any(OperationResult.class))).thenReturn(coordinatorTask);
+		return worker;
+	}
+
+	private void delegate(WorkBucketType bucket, Task worker, int attempts) {
+		ObjectReferenceType workerRef = new ObjectReferenceType();
+		workerRef.setOid(worker.getOid());
+		workerRef.setType(TaskType.COMPLEX_TYPE);
+		bucket.setWorkerRef(workerRef);
+		bucket.setState(WorkBucketStateType.DELEGATED);
+		bucket.setAttempts(attempts);
+	}
+
+	private WorkBucketType getBucket(TaskWorkStateType workState, int sequentialNumber) {
+		WorkBucketType bucket = workState.getBucket().get(sequentialNumber - 1);
+		assertEquals("Wrong bucket order", sequentialNumber, bucket.getSequentialNumber());
+		return bucket;
+	}
+
+	@Test
+	public void test100CreateWorkState() throws Exception {
+		final String TEST_NAME = "test100CreateWorkState";
+		TestUtil.displayTestTile(TEST_NAME);
+
+		// WHEN
+		TaskWorkStateType workState = workBucketManager.createWorkState(4);
+
+		// THEN
+		assertEquals("Wrong number of buckets", 4, workState.getBucket().size());
+		assertBounds(workState, 1, null, "4000");
+		assertBounds(workState, 2, "4000", "8000");
+		assertBounds(workState, 3, "8000", "c000");
+		assertBounds(workState, 4, "c000", null);
+		for (WorkBucketType bucket : workState.getBucket()) {
+			assertEquals("Wrong state", WorkBucketStateType.READY, bucket.getState());
+			assertNull("Unexpected worker", bucket.getWorkerRef());
+		}
+	}
+
+	@Test
+	public void test110CreateWorkStateUneven() throws Exception {
+		final String TEST_NAME = "test110CreateWorkStateUneven";
+		TestUtil.displayTestTile(TEST_NAME);
+
+		// WHEN
+		TaskWorkStateType three = workBucketManager.createWorkState(3);
+		TaskWorkStateType one = workBucketManager.createWorkState(1);
+
+		// THEN
+		assertBounds(three, 1, null, "5555");
+		assertBounds(three, 2, "5555", "aaaa");
+		assertBounds(three, 3, "aaaa", null);
+		assertBounds(one, 1, null, null);
+	}
+
+	@Test
+	public void test120CreateWorkStateContiguous() throws Exception {
+		final String TEST_NAME = "test120CreateWorkStateContiguous";
+		TestUtil.displayTestTile(TEST_NAME);
+
+		// WHEN
+		TaskWorkStateType workState = workBucketManager.createWorkState(1000);
+
+		// THEN
+		List<WorkBucketType> buckets = workState.getBucket();
+		assertNull("First bucket is bounded from below", buckets.get(0).getLowerBound());
+		assertNull("Last bucket is bounded from above", buckets.get(buckets.size() - 1).getUpperBound());
+		for (int i = 1; i < buckets.size(); i++) {
+			WorkBucketType previous = buckets.get(i - 1);
+			WorkBucketType bucket = buckets.get(i);
+			assertEquals("Gap or overlap before bucket #" + bucket.getSequentialNumber(), previous.getUpperBound(), bucket.getLowerBound());
+			assertEquals("Wrong length of the bound", 4, bucket.getLowerBound().length());
+			assertTrue("Bounds not ascending at bucket #" + bucket.getSequentialNumber(),
+					previous.getLowerBound() == null || previous.getLowerBound().compareTo(bucket.getLowerBound()) < 0);
+		}
+	}
+
+	private void assertBounds(TaskWorkStateType workState, int sequentialNumber, String lower, String upper) {
+		WorkBucketType bucket = getBucket(workState, sequentialNumber);
+		assertEquals("Wrong lower bound of bucket #" + sequentialNumber, lower, bucket.getLowerBound());
+		assertEquals("Wrong upper bound of bucket #" + sequentialNumber, upper, bucket.getUpperBound());
+	}
+
+	@Test
+	public void test150NarrowQueryToBucket() throws Exception {
+		final String TEST_NAME = "test150NarrowQueryToBucket";
+		TestUtil.displayTestTile(TEST_NAME);
+		TaskWorkStateType workState = workBucketManager.createWorkState(4);
+
+		// WHEN
+		ObjectQuery first = workBucketManager.narrowQueryToBucket(null, getBucket(workState, 1));
+		ObjectQuery middle = workBucketManager.narrowQueryToBucket(null, getBucket(workState, 2));
+		ObjectQuery last = workBucketManager.narrowQueryToBucket(null, getBucket(workState, 4));
+		ObjectQuery all = workBucketManager.narrowQueryToBucket(null, getBucket(workBucketManager.createWorkState(1), 1));
+
+		// THEN
+		assertLess(first.getFilter(), "4000");
+
+		assertTrue("Middle bucket filter is not an AND: " + middle.getFilter(), middle.getFilter() instanceof AndFilter);
+		List<ObjectFilter> conditions = ((AndFilter) middle.getFilter()).getConditions();
+		assertEquals("Wrong number of conditions", 2, conditions.size());
+		assertGreaterOrEqual(conditions.get(0), "4000");
+		assertLess(conditions.get(1), "8000");
+
+		assertGreaterOrEqual(last.getFilter(), "c000");
+
+		assertNotNull("No query for the only bucket", all);
+		assertNull("Unexpected filter for the only bucket: " + all.getFilter(), all.getFilter());
+	}
+
+	@Test
+	public void test160NarrowExistingQuery() throws Exception {
+		final String TEST_NAME = "test160NarrowExistingQuery";
+		TestUtil.displayTestTile(TEST_NAME);
+		TaskWorkStateType workState = workBucketManager.createWorkState(4);
+		InOidFilter originalFilter = InOidFilter.createInOid(COORDINATOR_OID);
+		ObjectQuery query = ObjectQuery.createObjectQuery(originalFilter);
+
+		// WHEN
+		ObjectQuery narrowed = workBucketManager.narrowQueryToBucket(query, getBucket(workState, 4));
+
+		// THEN
+		assertSame("Original query was changed", originalFilter, query.getFilter());
+		assertTrue("Narrowed filter is not an AND: " + narrowed.getFilter(), narrowed.getFilter() instanceof AndFilter);
+		List<ObjectFilter> conditions = ((AndFilter) narrowed.getFilter()).getConditions();
+		assertEquals("Wrong number of conditions", 2, conditions.size());
+		assertEquals("Original filter is missing", originalFilter, conditions.get(0));
+		assertGreaterOrEqual(conditions.get(1), "c000");
+	}
+
+	private void assertGreaterOrEqual(ObjectFilter filter, String bound) {
+		assertTrue("Not a greater filter: " + filter, filter instanceof GreaterFilter);
+		assertComparison((GreaterFilter<?>) filter, bound, true);
+	}
+
+	private void assertLess(ObjectFilter filter, String bound) {
+		assertTrue("Not a less filter: " + filter, filter instanceof LessFilter);
+		assertComparison((LessFilter<?>) filter, bound, false);
+	}
+
+	private void assertComparison(ComparativeFilter<?> filter, String bound, boolean equals) {
+		assertEquals("Wrong bound in " + filter, bound, filter.getSingleValue().getValue());
+		assertEquals("Wrong 'equals' flag in " + filter, equals, filter.isEquals());
+	}
+
+	@Test
+	public void test200ClaimBucketsConcurrently() throws Exception {
+		final String TEST_NAME = "test200ClaimBucketsConcurrently";
+		TestUtil.displayTestTile(TEST_NAME);
+		final int BUCKETS = 12;
+		storeCoordinator(workBucketManager.createWorkState(BUCKETS));
+		simulatedConflicts.set(3);
+		final Map<Integer, String> claimedBy = new ConcurrentHashMap<>();
+		final AtomicInteger duplicateClaims = new AtomicInteger();
+		List<Callable<Void>> workers = new ArrayList<>();
+		for (int i = 1; i <= THREADS; i++) {
+			final Task worker = createWorker(i, false);
+			workers.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					OperationResult result = new OperationResult(TEST_NAME);
+					for (;;) {
+						WorkBucketType bucket = workBucketManager.claimBucket(worker, result);
+						if (bucket == null) {
+							return null;
+						}
+						if (claimedBy.put(bucket.getSequentialNumber(), worker.getOid()) != null) {
+							duplicateClaims.incrementAndGet();
+						}
+						workBucketManager.completeBucket(worker, bucket, result);
+					}
+				}
+			});
+		}
+
+		// WHEN
+		runConcurrently(workers);
+
+		// THEN
+		assertEquals("Some buckets were claimed more than once", 0, duplicateClaims.get());
+		assertEquals("Wrong number of claimed buckets", BUCKETS, claimedBy.size());
+		assertTrue("Simulated conflicts did not happen", conflicts.get() >= 3);
+		TaskWorkStateType workState = getStoredWorkState();
+		for (WorkBucketType bucket : workState.getBucket()) {
+			assertEquals("Bucket #" + bucket.getSequentialNumber() + " is not complete", WorkBucketStateType.COMPLETE, bucket.getState());
+			assertEquals("Wrong worker of bucket #" + bucket.getSequentialNumber(),
+					claimedBy.get(bucket.getSequentialNumber()), bucket.getWorkerRef().getOid());
+			assertEquals("Wrong attempts of bucket #" + bucket.getSequentialNumber(), Integer.valueOf(1), bucket.getAttempts());
+		}
+	}
+
+	private void runConcurrently(List<Callable<Void>> callables) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(callables.size());
+		try {
+			final CountDownLatch start = new CountDownLatch(1);
+			List<Future<Void>> futures = new ArrayList<>();
+			for (final Callable<Void> callable : callables) {
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						start.await();
+						return callable.call();
+					}
+				}));
+			}
+			start.countDown();
+			for (Future<Void> future : futures) {
+				future.get(120, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void test210RestartedWorkerResumesItsBucket() throws Exception {
+		final String TEST_NAME = "test210RestartedWorkerResumesItsBucket";
+		TestUtil.displayTestTile(TEST_NAME);
+		OperationResult result = new OperationResult(TEST_NAME);
+		storeCoordinator(workBucketManager.createWorkState(4));
+		Task workerA = createWorker(1, false);
+		Task workerB = createWorker(2, false);
+		assertEquals("Wrong bucket for A", 1, workBucketManager.claimBucket(workerA, result).getSequentialNumber());
+		assertEquals("Wrong bucket for B", 2, workBucketManager.claimBucket(workerB, result).getSequentialNumber());
+		int modificationsBefore = modifications.get();
+
+		// WHEN (A was restarted, e.g. on another node)
+		WorkBucketType resumed = workBucketManager.claimBucket(workerA, result);
+
+		// THEN
+		assertEquals("Restarted worker got another bucket", 1, resumed.getSequentialNumber());
+		assertEquals("Work state was modified", modificationsBefore, modifications.get());
+		WorkBucketType stored = getBucket(getStoredWorkState(), 1);
+		assertEquals("Wrong state", WorkBucketStateType.DELEGATED, stored.getState());
+		assertEquals("Wrong attempts", Integer.valueOf(1), stored.getAttempts());
+
+		// WHEN (A finishes the resumed bucket)
+		workBucketManager.completeBucket(workerA, resumed, result);
+		WorkBucketType next = workBucketManager.claimBucket(workerA, result);
+
+		// THEN
+		assertEquals("Wrong next bucket", 3, next.getSequentialNumber());
+		assertEquals("Wrong state of the resumed bucket", WorkBucketStateType.COMPLETE, getBucket(getStoredWorkState(), 1).getState());
+	}
+
+	@Test
+	public void test300ReleaseBucketsOfClosedWorkers() throws Exception {
+		final String TEST_NAME = "test300ReleaseBucketsOfClosedWorkers";
+		TestUtil.displayTestTile(TEST_NAME);
+		OperationResult result = new OperationResult(TEST_NAME);
+		Task closedWorker = createWorker(1, true);
+		Task liveWorker = createWorker(2, false);
+		Task deletedWorker = createWorker(3, true);
+		Task failingWorker = createWorker(4, true);
+		TaskWorkStateType initialState = workBucketManager.createWorkState(5);
+		delegate(getBucket(initialState, 1), closedWorker, 1);
+		delegate(getBucket(initialState, 2), liveWorker, 1);
+		delegate(getBucket(initialState, 3), deletedWorker, 2);
+		delegate(getBucket(initialState, 4), failingWorker, 3);       // the default maximum
+		getBucket(initialState, 5).setState(WorkBucketStateType.COMPLETE);
+		storeCoordinator(initialState);
+		List<Task> workers = Arrays.asList(closedWorker, liveWorker, failingWorker);
+
+		// WHEN
+		workBucketManager.releaseBucketsOfClosedWorkers(coordinatorTask, getStoredWorkState(), workers, result);
+
+		// THEN
+		TaskWorkStateType workState = getStoredWorkState();
+		assertReleased(getBucket(workState, 1), 1);
+		assertEquals("Bucket of live worker was released", WorkBucketStateType.DELEGATED, getBucket(workState, 2).getState());
+		assertEquals("Wrong worker", liveWorker.getOid(), getBucket(workState, 2).getWorkerRef().getOid());
+		assertReleased(getBucket(workState, 3), 2);
+		WorkBucketType failed = getBucket(workState, 4);
+		assertEquals("Bucket was not marked as failed", WorkBucketStateType.FAILED, failed.getState());
+		assertEquals("Wrong last worker of failed bucket", failingWorker.getOid(), failed.getWorkerRef().getOid());
+		assertEquals("Complete bucket was changed", WorkBucketStateType.COMPLETE, getBucket(workState, 5).getState());
+	}
+
+	private void assertReleased(WorkBucketType bucket, int attempts) {
+		assertEquals("Bucket #" + bucket.getSequentialNumber() + " was not released", WorkBucketStateType.READY, bucket.getState());
+		assertNull("Worker of bucket #" + bucket.getSequentialNumber() + " was not removed", bucket.getWorkerRef());
+		assertEquals("Wrong attempts of bucket #" + bucket.getSequentialNumber(), Integer.valueOf(attempts), bucket.getAttempts());
+	}
+
+	@Test
+	public void test310ReleasedBucketCountsAttempts() throws Exception {
+		final String TEST_NAME = "test310ReleasedBucketCountsAttempts";
+		TestUtil.displayTestTile(TEST_NAME);
+		OperationResult result = new OperationResult(TEST_NAME);
+		storeCoordinator(workBucketManager.createWorkState(1));
+		WorkBucketType bucket = null;
+
+		// WHEN (each worker fails and is closed)
+		for (int i = 1; i <= 3; i++) {
+			Task worker = createWorker(i, false);
+			bucket = workBucketManager.claimBucket(worker, result);
+			assertNotNull("No bucket claimed in attempt " + i, bucket);
+			when(worker.isClosed()).thenReturn(true);
+			workBucketManager.releaseBucketsOfClosedWorkers(coordinatorTask, getStoredWorkState(),
+					Collections.singletonList(worker), result);
+		}
+
+		// THEN
+		WorkBucketType stored = getBucket(getStoredWorkState(), 1);
+		assertEquals("Bucket was not marked as failed", WorkBucketStateType.FAILED, stored.getState());
+		assertEquals("Wrong attempts", Integer.valueOf(3), stored.getAttempts());
+		assertNull("Failed bucket was claimed", workBucketManager.claimBucket(createWorker(4, false), result));
+	}
+
+	@Test
+	public void test320ReleaseSkippedOnConcurrentChange() throws Exception {
+		final String TEST_NAME = "test320ReleaseSkippedOnConcurrentChange";
+		TestUtil.displayTestTile(TEST_NAME);
+		OperationResult result = new OperationResult(TEST_NAME);
+		Task closedWorker = createWorker(1, true);
+		TaskWorkStateType initialState = workBucketManager.createWorkState(2);
+		delegate(getBucket(initialState, 1), closedWorker, 1);
+		storeCoordinator(initialState);
+		TaskWorkStateType seenState = getStoredWorkState();
+		// a worker completes the bucket meanwhile
+		TaskWorkStateType currentState = seenState.clone();
+		getBucket(currentState, 1).setState(WorkBucketStateType.COMPLETE);
+		storeCoordinator(currentState);
+
+		// WHEN
+		workBucketManager.releaseBucketsOfClosedWorkers(coordinatorTask, seenState, Collections.singletonList(closedWorker), result);
+
+		// THEN
+		assertEquals("Work state was modified", 0, modifications.get());
+		assertEquals("Completed bucket was released", WorkBucketStateType.COMPLETE, getBucket(getStoredWorkState(), 1).getState());
+	}
+
+	@Test
+	public void test400AggregateProgressAndStatistics() throws Exception {
+		final String TEST_NAME = "test400AggregateProgressAndStatistics";
+		TestUtil.displayTestTile(TEST_NAME);
+		OperationResult result = new OperationResult(TEST_NAME);
+		Task worker1 = createWorker(1, true);
+		when(worker1.getProgress()).thenReturn(10L);
+		when(worker1.getStoredOperationStats()).thenReturn(createStats(9, 1));
+		Task worker2 = createWorker(2, false);
+		when(worker2.getProgress()).thenReturn(5L);
+		when(worker2.getStoredOperationStats()).thenReturn(createStats(5, 0));
+		Task worker3 = createWorker(3, false);      // no statistics yet
+		List<Task> workers = Arrays.asList(worker1, worker2, worker3);
+
+		// WHEN
+		workBucketManager.updateProgress(coordinatorTask, workers, result);
+		workBucketManager.aggregateStatistics(coordinatorTask, workers);
+
+		// THEN
+		verify(coordinatorTask).setProgress(15L);
+		verify(coordinatorTask).savePendingModifications(any(OperationResult.class));
+		ArgumentCaptor<IterativeTaskInformationType> iterative = ArgumentCaptor.forClass(IterativeTaskInformationType.class);
+		verify(coordinatorTask).resetIterativeTaskInformation(iterative.capture());
+		assertEquals("Wrong success count", 14, iterative.getValue().getTotalSuccessCount());
+		assertEquals("Wrong failure count", 1, iterative.getValue().getTotalFailureCount());
+		assertEquals("Wrong success duration", 1400L, iterative.getValue().getTotalSuccessDuration());
+	}
+
+	@Test
+	public void test410ProgressNotSavedWhenUnchanged() throws Exception {
+		final String TEST_NAME = "test410ProgressNotSavedWhenUnchanged";
+		TestUtil.displayTestTile(TEST_NAME);
+		OperationResult result = new OperationResult(TEST_NAME);
+		Task worker = createWorker(1, false);
+		when(worker.getProgress()).thenReturn(7L);
+		when(coordinatorTask.getProgress()).thenReturn(7L);
+
+		// WHEN
+		workBucketManager.updateProgress(coordinatorTask, Collections.singletonList(worker), result);
+
+		// THEN
+		verify(coordinatorTask, never()).savePendingModifications(any(OperationResult.class));
+	}
+
+	private OperationStatsType createStats(int successes, int failures) {
+		IterativeTaskInformationType iterative = new IterativeTaskInformationType();
+		iterative.setTotalSuccessCount(successes);
+		iterative.setTotalSuccessDuration(successes * 100L);
+		iterative.setTotalFailureCount(failures);
+		iterative.setTotalFailureDuration(failures * 100L);
+		OperationStatsType stats = new OperationStatsType();
+		stats.setIterativeTaskInformation(iterative);
+		return stats;
+	}
+}
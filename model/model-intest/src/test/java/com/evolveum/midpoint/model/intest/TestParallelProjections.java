@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.model.intest;
+
+import static com.evolveum.midpoint.test.IntegrationTestTools.display;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.annotation.DirtiesContext.ClassMode;
+import org.springframework.test.context.ContextConfiguration;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+import com.evolveum.icf.dummy.resource.BreakMode;
+import com.evolveum.midpoint.model.impl.lens.ChangeExecutor;
+import com.evolveum.midpoint.prism.PrismObject;
+import com.evolveum.midpoint.prism.delta.ObjectDelta;
+import com.evolveum.midpoint.schema.result.OperationResult;
+import com.evolveum.midpoint.task.api.Task;
+import com.evolveum.midpoint.test.util.TestUtil;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.AssignmentPolicyEnforcementType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ObjectType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.UserType;
+
+/**
+ * Projections on different resources executed in parallel (see ChangeExecutor.setProjectionExecutionThreads).
+ *
+ * @author agent
+ */
+@ContextConfiguration(locations = {"classpath:ctx-model-intest-test-main.xml"})
+@DirtiesContext(classMode = ClassMode.AFTER_CLASS)
+public class TestParallelProjections extends AbstractInitializedModelIntegrationTest {
+
+	private static final String USER_SHARPTOOTH_NAME = "sharptooth";
+	private static final String USER_SHARPTOOTH_FULLNAME = "Cpt. Sharptooth";
+
+	@Autowired(required = true)
+	private ChangeExecutor changeExecutor;
+
+	private int originalProjectionExecutionThreads;
+
+	@Override
+	public void initSystem(Task initTask, OperationResult initResult) throws Exception {
+		super.initSystem(initTask, initResult);
+		originalProjectionExecutionThreads = changeExecutor.getProjectionExecutionThreads();
+		changeExecutor.setProjectionExecutionThreads(4);
+	}
+
+	@AfterClass
+	public void restoreProjectionExecutionThreads() {
+		changeExecutor.setProjectionExecutionThreads(originalProjectionExecutionThreads);
+	}
+
+	@Test
+	public void test100JackAssignAccountsDummyRedBlue() throws Exception {
+		final String TEST_NAME = "test100JackAssignAccountsDummyRedBlue";
+		TestUtil.displayTestTile(this, TEST_NAME);
+
+		// GIVEN
+		Task task = taskManager.createTaskInstance(TestParallelProjections.class.getName() + "." + TEST_NAME);
+		OperationResult result = task.getResult();
+		assumeAssignmentPolicy(AssignmentPolicyEnforcementType.FULL);
+
+		Collection<ObjectDelta<? extends ObjectType>> deltas = createAssignAccountsDeltas(USER_JACK_OID);
+
+		// WHEN
+		TestUtil.displayWhen(TEST_NAME);
+		modelService.executeChanges(deltas, null, task, result);
+
+		// THEN
+		TestUtil.displayThen(TEST_NAME);
+		result.computeStatus();
+		TestUtil.assertSuccess(result);
+
+		PrismObject<UserType> userJack = getUser(USER_JACK_OID);
+		display("User after", userJack);
+		assertLinks(userJack, 3);
+		assertAccount(userJack, RESOURCE_DUMMY_OID);
+		assertAccount(userJack, RESOURCE_DUMMY_RED_OID);
+		assertAccount(userJack, RESOURCE_DUMMY_BLUE_OID);
+
+		assertDummyAccount(null, ACCOUNT_JACK_DUMMY_USERNAME);
+		assertDummyAccount(RESOURCE_DUMMY_RED_NAME, ACCOUNT_JACK_DUMMY_USERNAME);
+		assertDummyAccount(RESOURCE_DUMMY_BLUE_NAME, ACCOUNT_JACK_DUMMY_USERNAME);
+	}
+
+	/**
+	 * Adding the account on the red resource fails. The accounts on the other resources have to be created
+	 * and linked regardless.
+	 */
+	@Test
+	public void test110SharptoothAssignAccountsDummyRedBlueRedBroken() throws Exception {
+		final String TEST_NAME = "test110SharptoothAssignAccountsDummyRedBlueRedBroken";
+		TestUtil.displayTestTile(this, TEST_NAME);
+
+		// GIVEN
+		Task task = taskManager.createTaskInstance(TestParallelProjections.class.getName() + "." + TEST_NAME);
+		OperationResult result = task.getResult();
+		assumeAssignmentPolicy(AssignmentPolicyEnforcementType.FULL);
+
+		PrismObject<UserType> user = createUser(USER_SHARPTOOTH_NAME, USER_SHARPTOOTH_FULLNAME);
+		addObject(user);
+
+		Collection<ObjectDelta<? extends ObjectType>> deltas = createAssignAccountsDeltas(user.getOid());
+
+		dummyResourceRed.setAddBreakMode(BreakMode.GENERIC);
+		try {
+
+			// WHEN
+			TestUtil.displayWhen(TEST_NAME);
+			modelService.executeChanges(deltas, null, task, result);
+
+		} finally {
+			dummyResourceRed.resetBreakMode();
+		}
+
+		// THEN
+		TestUtil.displayThen(TEST_NAME);
+		result.computeStatus();
+		display(result);
+		TestUtil.assertPartialError(result);
+
+		PrismObject<UserType> userAfter = getUser(user.getOid());
+		display("User after", userAfter);
+		assertLinks(userAfter, 2);
+		assertAccount(userAfter, RESOURCE_DUMMY_OID);
+		assertAccount(userAfter, RESOURCE_DUMMY_BLUE_OID);
+
+		assertDummyAccount(null, USER_SHARPTOOTH_NAME);
+		assertNoDummyAccount(RESOURCE_DUMMY_RED_NAME, USER_SHARPTOOTH_NAME);
+		assertDummyAccount(RESOURCE_DUMMY_BLUE_NAME, USER_SHARPTOOTH_NAME);
+	}
+
+	private Collection<ObjectDelta<? extends ObjectType>> createAssignAccountsDeltas(String userOid) throws Exception {
+		ObjectDelta<UserType> userDelta = createAccountAssignmentUserDelta(userOid, RESOURCE_DUMMY_OID, null, true);
+		userDelta.addModifications(createAccountAssignmentUserDelta(userOid, RESOURCE_DUMMY_RED_OID, null, true).getModifications());
+		userDelta.addModifications(createAccountAssignmentUserDelta(userOid, RESOURCE_DUMMY_BLUE_OID, null, true).getModifications());
+		Collection<ObjectDelta<? extends ObjectType>> deltas = new ArrayList<ObjectDelta<? extends ObjectType>>();
+		deltas.add(userDelta);
+		return deltas;
+	}
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.notifications.impl;
+
+import com.evolveum.midpoint.notifications.api.transports.Message;
+import com.evolveum.midpoint.notifications.api.transports.Transport;
+import com.evolveum.midpoint.repo.api.RepositoryService;
+import com.evolveum.midpoint.schema.result.OperationResult;
+import com.evolveum.midpoint.task.api.Task;
+import com.evolveum.midpoint.task.api.TaskManager;
+import com.evolveum.midpoint.util.logging.LoggingUtils;
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.AsynchronousNotificationDispatchType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.SystemConfigurationType;
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.commons.lang.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passes notification messages to transports. If asynchronous dispatch is configured (notificationConfiguration/asynchronousDispatch),
+ * messages are put into a queue and sent by worker threads; each transport has its own queue and workers, so e.g. a slow
+ * mail server does not delay SMS messages. Optionally, queued messages for the same recipients are joined into one message.
+ *
+ * The queues are in memory only. They are bounded: if a queue is full, the message is sent synchronously. When the system
+ * is being stopped, queued messages are sent before the shutdown completes (within SHUTDOWN_TIMEOUT).
+ *
+ * The dispatch configuration is read from the system configuration at most once per CONFIGURATION_REFRESH_INTERVAL,
+ * not for each message.
+ *
+ * @author agent
+ */
+@Component
+public class NotificationDispatcher {
+
+    private static final Trace LOGGER = TraceManager.getTrace(NotificationDispatcher.class);
+
+    private static final String DOT_CLASS = NotificationDispatcher.class.getName() + ".";
+    private static final String OPERATION_SEND_QUEUED = DOT_CLASS + "sendQueued";
+
+    public static final int DEFAULT_WORKER_THREADS = 2;
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+    public static final int DEFAULT_MAX_COALESCED_MESSAGES = 20;
+
+    private static final long POLL_INTERVAL = 1000L;
+    private static final long SHUTDOWN_TIMEOUT = 10000L;
+    private static final long CONFIGURATION_REFRESH_INTERVAL = 10000L;
+
+    private static final String TEXT_SEPARATOR = "\n\n----------------------------------------\n\n";
+    private static final String HTML_SEPARATOR = "\n<hr/>\n";
+
+    @Autowired(required = true)
+    @Qualifier("cacheRepositoryService")
+    private transient RepositoryService cacheRepositoryService;
+
+    @Autowired
+    private TaskManager taskManager;
+
+    private final Map<String, TransportQueue> queues = new HashMap<>();
+
+    private volatile DispatchSettings settings;
+
+    public void send(Transport transport, Message message, String transportName, Task task, OperationResult result) {
+        DispatchSettings currentSettings = getSettings(result);
+        if (!currentSettings.enabled) {
+            transport.send(message, transportName, task, result);
+            return;
+        }
+        TransportQueue queue = getQueue(transport, currentSettings);
+        if (queue.offer(new QueuedMessage(transport, message, transportName))) {
+            LOGGER.trace("Message queued for sending via transport {}: {}", transportName, message);
+        } else {
+            LOGGER.warn("Notification queue for transport {} is full, sending the message to {} synchronously.",
+                    transport.getName(), message.getTo());
+            transport.send(message, transportName, task, result);
+        }
+    }
+
+    private DispatchSettings getSettings(OperationResult result) {
+        DispatchSettings current = settings;
+        long now = System.currentTimeMillis();
+        if (current == null || now - current.timestamp > CONFIGURATION_REFRESH_INTERVAL) {
+            current = new DispatchSettings(getConfiguration(result), now);
+            settings = current;
+        }
+        return current;
+    }
+
+    private AsynchronousNotificationDispatchType getConfiguration(OperationResult result) {
+        SystemConfigurationType systemConfiguration = NotificationsUtil.getSystemConfiguration(cacheRepositoryService, result);
+        if (systemConfiguration == null || systemConfiguration.getNotificationConfiguration() == null) {
+            return null;
+        }
+        return systemConfiguration.getNotificationConfiguration().getAsynchronousDispatch();
+    }
+
+    private TransportQueue getQueue(Transport transport, DispatchSettings dispatchSettings) {
+        int threads = dispatchSettings.workerThreads;
+        int queueSize = dispatchSettings.queueSize;
+        synchronized (queues) {
+            TransportQueue queue = queues.get(transport.getName());
+            if (queue == null || queue.threads != threads || queue.capacity != queueSize) {
+                if (queue != null) {
+                    LOGGER.info("Configuration of asynchronous notifications for transport {} has changed, restarting the workers",
+                            transport.getName());
+                    queue.stop();
+                }
+                queue = new TransportQueue(transport.getName(), Math.max(threads, 1), Math.max(queueSize, 1));
+                queues.put(transport.getName(), queue);
+            }
+            queue.coalesce = dispatchSettings.coalesceMessages;
+            queue.maxCoalesced = dispatchSettings.maxCoalescedMessages;
+            return queue;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        List<TransportQueue> toStop;
+        synchronized (queues) {
+            toStop = new ArrayList<>(queues.values());
+            queues.clear();
+        }
+        for (TransportQueue queue : toStop) {
+            queue.stop();
+        }
+        long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+        for (TransportQueue queue : toStop) {
+            queue.awaitTermination(deadline);
+            if (!queue.messages.isEmpty()) {
+                LOGGER.warn("{} notification message(s) for transport {} could not be sent before shutdown.",
+                        queue.messages.size(), queue.name);
+            }
+        }
+    }
+
+    private void sendQueued(QueuedMessage queuedMessage) {
+        Task task = taskManager.createTaskInstance(OPERATION_SEND_QUEUED);
+        OperationResult result = task.getResult();
+        try {
+            queuedMessage.transport.send(queuedMessage.message, queuedMessage.transportName, task, result);
+        } catch (RuntimeException e) {
+            LoggingUtils.logException(LOGGER, "Couldn't send notification message to {} via {}", e,
+                    queuedMessage.message.getTo(), queuedMessage.transportName);
+        }
+    }
+
+    static Message coalesce(List<Message> messages) {
+        Message first = messages.get(0);
+        if (messages.size() == 1) {
+            return first;
+        }
+        String separator = StringUtils.containsIgnoreCase(first.getContentType(), "html") ? HTML_SEPARATOR : TEXT_SEPARATOR;
+        StringBuilder body = new StringBuilder();
+        boolean sameSubjects = true;
+        for (Message message : messages) {
+            if (body.length() > 0) {
+                body.append(separator);
+            }
+            body.append(message.getBody());
+            sameSubjects = sameSubjects && ObjectUtils.equals(first.getSubject(), message.getSubject());
+        }
+        Message coalesced = new Message();
+        coalesced.setTo(first.getTo());
+        coalesced.setContentType(first.getContentType());
+        coalesced.setSubject(sameSubjects ? first.getSubject() :
+                first.getSubject() + " (and " + (messages.size() - 1) + " more notification(s))");
+        coalesced.setBody(body.toString());
+        return coalesced;
+    }
+
+    // values copied from the configuration, so that the configuration object itself is not shared by the threads
+    private static class DispatchSettings {
+
+        private final boolean enabled;
+        private final int workerThreads;
+        private final int queueSize;
+        private final boolean coalesceMessages;
+        private final int maxCoalescedMessages;
+        private final long timestamp;
+
+        DispatchSettings(AsynchronousNotificationDispatchType config, long timestamp) {
+            this.enabled = config != null && !Boolean.FALSE.equals(config.isEnabled());
+            this.workerThreads = config != null && config.getWorkerThreads() != null ?
+                    config.getWorkerThreads() : DEFAULT_WORKER_THREADS;
+            this.queueSize = config != null && config.getQueueSize() != null ? config.getQueueSize() : DEFAULT_QUEUE_SIZE;
+            this.coalesceMessages = config != null && Boolean.TRUE.equals(config.isCoalesceMessages());
+            this.maxCoalescedMessages = config != null && config.getMaxCoalescedMessages() != null ?
+                    config.getMaxCoalescedMessages() : DEFAULT_MAX_COALESCED_MESSAGES;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static class QueuedMessage {
+
+        private final Transport transport;
+        private final Message message;
+        private final String transportName;
+
+        QueuedMessage(Transport transport, Message message, String transportName) {
+            this.transport = transport;
+            this.message = message;
+            this.transportName = transportName;
+        }
+
+        boolean canBeCoalescedWith(QueuedMessage other) {
+            return transport == other.transport
+                    && transportName.equals(other.transportName)
+                    && ObjectUtils.equals(message.getTo(), other.message.getTo())
+                    && ObjectUtils.equals(message.getContentType(), other.message.getContentType());
+        }
+    }
+
+    private class TransportQueue {
+
+        private final String name;
+        private final int threads;
+        private final int capacity;
+        private final BlockingQueue<QueuedMessage> messages;
+        private final List<Thread> workers = new ArrayList<>();
+
+        private volatile boolean stopping;
+        private volatile boolean coalesce;
+        private volatile int maxCoalesced;
+
+        TransportQueue(String name, int threads, int capacity) {
+            this.name = name;
+            this.threads = threads;
+            this.capacity = capacity;
+            this.messages = new LinkedBlockingQueue<>(capacity);
+            for (int i = 0; i < threads; i++) {
+                Thread worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        processMessages();
+                    }
+                }, "notifications-" + name + "-" + (i + 1));
+                worker.setDaemon(true);
+                workers.add(worker);
+                worker.start();
+            }
+        }
+
+        boolean offer(QueuedMessage message) {
+            return !stopping && messages.offer(message);
+        }
+
+        // workers finish the messages that are already queued
+        void stop() {
+            stopping = true;
+        }
+
+        void awaitTermination(long deadline) {
+            try {
+                for (Thread worker : workers) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return;
+                    }
+                    worker.join(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void processMessages() {
+            for (;;) {
+                QueuedMessage first;
+                try {
+                    first = messages.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    LOGGER.debug("Notification worker for transport {} was interrupted, exiting", name);
+                    return;
+                }
+                if (first == null) {
+                    if (stopping) {
+                        return;
+                    }
+                    continue;
+                }
+                List<QueuedMessage> batch = collectBatch(first);
+                if (batch.size() == 1) {
+                    sendQueued(first);
+                } else {
+                    LOGGER.debug("Sending {} notification messages to {} via {} as one message", batch.size(),
+                            first.message.getTo(), first.transportName);
+                    List<Message> toCoalesce = new ArrayList<>(batch.size());
+                    for (QueuedMessage queuedMessage : batch) {
+                        toCoalesce.add(queuedMessage.message);
+                    }
+                    sendQueued(new QueuedMessage(first.transport, coalesce(toCoalesce), first.transportName));
+                }
+            }
+        }
+
+        private List<QueuedMessage> collectBatch(QueuedMessage first) {
+            List<QueuedMessage> batch = new ArrayList<>();
+            batch.add(first);
+            if (!coalesce) {
+                return batch;
+            }
+            Iterator<QueuedMessage> iterator = messages.iterator();
+            while (batch.size() < maxCoalesced && iterator.hasNext()) {
+                QueuedMessage candidate = iterator.next();
+                // other worker could have taken the message in the meantime
+                if (first.canBeCoalescedWith(candidate) && messages.remove(candidate)) {
+                    batch.add(candidate);
+                }
+            }
+            return batch;
+        }
+    }
+}
@@ -17,11 +17,19 @@
 package com.evolveum.midpoint.notifications.impl.api.transports;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
 import javax.mail.Session;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
@@ -52,6 +60,9 @@ import com.evolveum.midpoint.xml.ns._public.common.common_3.UserType;
 import com.evolveum.prism.xml.ns._public.types_3.ProtectedStringType;
 
 /**
+ * Sends mail messages via SMTP. Connections to mail servers are kept open after a message is sent and reused
+ * for subsequent messages (until they are idle for more than CONNECTION_MAX_IDLE_TIME).
+ *
  * @author mederly
  */
 @Component
@@ -63,6 +74,9 @@ public class MailTransport implements Transport {
 
     private static final String DOT_CLASS = MailTransport.class.getName() + ".";
 
+    private static final long CONNECTION_MAX_IDLE_TIME = 30000L;
+    private static final int MAX_IDLE_CONNECTIONS_PER_SERVER = 4;
+
     @Autowired(required = true)
     @Qualifier("cacheRepositoryService")
     private transient RepositoryService cacheRepositoryService;
@@ -73,11 +87,28 @@ public class MailTransport implements Transport {
     @Autowired
     private NotificationManager notificationManager;
 
+    // idle connections, indexed by server configuration (see createConnectionKey)
+    private final Map<String, Deque<SmtpConnection>> idleConnections = new HashMap<>();
+
     @PostConstruct
     public void init() {
         notificationManager.registerTransport(NAME, this);
     }
 
+    @PreDestroy
+    public void shutdown() {
+        List<SmtpConnection> toClose = new ArrayList<>();
+        synchronized (idleConnections) {
+            for (Deque<SmtpConnection> connections : idleConnections.values()) {
+                toClose.addAll(connections);
+            }
+            idleConnections.clear();
+        }
+        for (SmtpConnection connection : toClose) {
+            connection.close();
+        }
+    }
+
     @Override
     public void send(Message mailMessage, String transportName, Task task, OperationResult parentResult) {
 
@@ -125,7 +156,8 @@ public class MailTransport implements Transport {
             resultForServer.addContext("server", host);
             resultForServer.addContext("port", mailServerConfigurationType.getPort());
 
-            Properties properties = System.getProperties();
+            // system properties are used as defaults (without being modified, as messages can be sent concurrently)
+            Properties properties = new Properties(System.getProperties());
             properties.setProperty("mail.smtp.host", host);
             if (mailServerConfigurationType.getPort() != null) {
                 properties.setProperty("mail.smtp.port", String.valueOf(mailServerConfigurationType.getPort()));
@@ -147,48 +179,55 @@ public class MailTransport implements Transport {
 
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Using mail properties: ");
-                for (Object key : properties.keySet()) {
-                    if (key instanceof String && ((String) key).startsWith("mail.")) {
-                        LOGGER.debug(" - " + key + " = " + properties.get(key));
+                for (String key : properties.stringPropertyNames()) {
+                    if (key.startsWith("mail.")) {
+                        LOGGER.debug(" - " + key + " = " + properties.getProperty(key));
                     }
                 }
             }
 
-            task.recordState("Sending notification mail via " + host);
+            String username = mailServerConfigurationType.getUsername();
+            String password = null;
+            if (StringUtils.isNotEmpty(username)) {
+                ProtectedStringType passwordProtected = mailServerConfigurationType.getPassword();
+                if (passwordProtected != null) {
+                    try {
+                        password = protector.decryptString(passwordProtected);
+                    } catch (EncryptionException e) {
+                        String msg = "Couldn't send mail message to " + mailMessage.getTo() + " via " + host + ", because the plaintext password value couldn't be obtained. Trying another mail server, if there is any.";
+                        LoggingUtils.logException(LOGGER, msg, e);
+                        resultForServer.recordFatalError(msg, e);
+                        continue;
+                    }
+                }
+            }
 
-            Session session = Session.getInstance(properties);
+            task.recordState("Sending notification mail via " + host);
 
+            String connectionKey = createConnectionKey(properties, username, password);
+            SmtpConnection connection = null;
             try {
-                MimeMessage mimeMessage = new MimeMessage(session);
-                mimeMessage.setFrom(new InternetAddress(from));
-                for (String recipient : mailMessage.getTo()) {
-                    mimeMessage.addRecipient(javax.mail.Message.RecipientType.TO, new InternetAddress(recipient));
+                connection = borrowConnection(connectionKey);
+                boolean reused = connection != null;
+                if (connection == null) {
+                    connection = openConnection(properties, username, password);
                 }
-                mimeMessage.setSubject(mailMessage.getSubject(), "utf-8");
-                String contentType = mailMessage.getContentType();
-                if (StringUtils.isEmpty(contentType)) {
-                    contentType = "text/plain; charset=UTF-8";
-                }
-                mimeMessage.setContent(mailMessage.getBody(), contentType);
-                javax.mail.Transport t = session.getTransport("smtp");
-                if (StringUtils.isNotEmpty(mailServerConfigurationType.getUsername())) {
-                    ProtectedStringType passwordProtected = mailServerConfigurationType.getPassword();
-                    String password = null;
-                    if (passwordProtected != null) {
-                        try {
-                            password = protector.decryptString(passwordProtected);
-                        } catch (EncryptionException e) {
-                            String msg = "Couldn't send mail message to " + mailMessage.getTo() + " via " + host + ", because the plaintext password value couldn't be obtained. Trying another mail server, if there is any.";
-                            LoggingUtils.logException(LOGGER, msg, e);
-                            resultForServer.recordFatalError(msg, e);
-                            continue;
-                        }
+                MimeMessage mimeMessage = createMimeMessage(connection.session, from, mailMessage);
+                try {
+                    connection.transport.sendMessage(mimeMessage, mimeMessage.getAllRecipients());
+                } catch (MessagingException | IllegalStateException e) {
+                    // a reused connection could have been closed by the server; failures related to the message
+                    // itself (e.g. invalid recipients) are not retried, as the message could have been partially sent
+                    if (!reused || e instanceof SendFailedException) {
+                        throw e;
                     }
-                    t.connect(mailServerConfigurationType.getUsername(), password);
-                } else {
-                    t.connect();
+                    LOGGER.debug("Couldn't send mail message via reused connection to {}, reconnecting: {}", host, e.getMessage());
+                    connection.close();
+                    connection = openConnection(properties, username, password);
+                    connection.transport.sendMessage(mimeMessage, mimeMessage.getAllRecipients());
                 }
-                t.sendMessage(mimeMessage, mimeMessage.getAllRecipients());
+                returnConnection(connectionKey, connection);
+                connection = null;
                 LOGGER.info("Message sent successfully to " + mailMessage.getTo() + " via server " + host + ".");
                 resultForServer.recordSuccess();
                 result.recordSuccess();
@@ -196,11 +235,15 @@ public class MailTransport implements Transport {
                 task.recordState("Notification mail sent successfully via " + host + ", in " + duration + " ms overall.");
                 task.recordNotificationOperation(NAME, true, duration);
                 return;
-            } catch (MessagingException e) {
+            } catch (MessagingException | IllegalStateException e) {
                 String msg = "Couldn't send mail message to " + mailMessage.getTo() + " via " + host + ", trying another mail server, if there is any";
                 LoggingUtils.logException(LOGGER, msg, e);
                 resultForServer.recordFatalError(msg, e);
                 task.recordState("Error sending notification mail via " + host);
+            } finally {
+                if (connection != null) {
+                    connection.close();
+                }
             }
         }
         LOGGER.warn("No more mail servers to try, mail notification to " + mailMessage.getTo() + " will not be sent.") ;
@@ -209,6 +252,100 @@ public class MailTransport implements Transport {
     }
 
 
+    private MimeMessage createMimeMessage(Session session, String from, Message mailMessage) throws MessagingException {
+        MimeMessage mimeMessage = new MimeMessage(session);
+        mimeMessage.setFrom(new InternetAddress(from));
+        for (String recipient : mailMessage.getTo()) {
+            mimeMessage.addRecipient(javax.mail.Message.RecipientType.TO, new InternetAddress(recipient));
+        }
+        mimeMessage.setSubject(mailMessage.getSubject(), "utf-8");
+        String contentType = mailMessage.getContentType();
+        if (StringUtils.isEmpty(contentType)) {
+            contentType = "text/plain; charset=UTF-8";
+        }
+        mimeMessage.setContent(mailMessage.getBody(), contentType);
+        return mimeMessage;
+    }
+
+    private String createConnectionKey(Properties properties, String username, String password) {
+        StringBuilder key = new StringBuilder();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith("mail.")) {
+                key.append(name).append('=').append(properties.getProperty(name)).append(';');
+            }
+        }
+        // password itself is not kept in the key; its hash is enough to detect the change
+        key.append("user=").append(username).append(";password=").append(password != null ? password.hashCode() : 0);
+        return key.toString();
+    }
+
+    private SmtpConnection openConnection(Properties properties, String username, String password) throws MessagingException {
+        Session session = Session.getInstance(properties);
+        javax.mail.Transport t = session.getTransport("smtp");
+        if (StringUtils.isNotEmpty(username)) {
+            t.connect(username, password);
+        } else {
+            t.connect();
+        }
+        return new SmtpConnection(session, t);
+    }
+
+    private SmtpConnection borrowConnection(String key) {
+        List<SmtpConnection> expired = new ArrayList<>();
+        SmtpConnection connection = null;
+        synchronized (idleConnections) {
+            Deque<SmtpConnection> connections = idleConnections.get(key);
+            while (connections != null && !connections.isEmpty()) {
+                SmtpConnection candidate = connections.pollFirst();
+                if (System.currentTimeMillis() - candidate.lastUsed <= CONNECTION_MAX_IDLE_TIME) {
+                    connection = candidate;
+                    break;
+                }
+                expired.add(candidate);
+            }
+        }
+        for (SmtpConnection expiredConnection : expired) {
+            expiredConnection.close();
+        }
+        return connection;
+    }
+
+    private void returnConnection(String key, SmtpConnection connection) {
+        connection.lastUsed = System.currentTimeMillis();
+        synchronized (idleConnections) {
+            Deque<SmtpConnection> connections = idleConnections.get(key);
+            if (connections == null) {
+                connections = new ArrayDeque<>();
+                idleConnections.put(key, connections);
+            }
+            if (connections.size() < MAX_IDLE_CONNECTIONS_PER_SERVER) {
+                connections.addFirst(connection);
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    private static class SmtpConnection {
+
+        private final Session session;
+        private final javax.mail.Transport transport;
+        private long lastUsed;
+
+        SmtpConnection(Session session, javax.mail.Transport transport) {
+            this.session = session;
+            this.transport = transport;
+        }
+
+        void close() {
+            try {
+                transport.close();
+            } catch (MessagingException e) {
+                LOGGER.debug("Couldn't close SMTP connection: {}", e.getMessage(), e);
+            }
+        }
+    }
+
     private String formatToFile(Message mailMessage) {
         return "============================================ " + new Date() + "\n" + mailMessage.toString() + "\n\n";
     }
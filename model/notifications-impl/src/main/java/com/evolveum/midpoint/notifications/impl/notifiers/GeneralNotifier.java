@@ -22,6 +22,7 @@ import com.evolveum.midpoint.notifications.api.NotificationManager;
 import com.evolveum.midpoint.notifications.api.events.Event;
 import com.evolveum.midpoint.notifications.api.events.ModelEvent;
 import com.evolveum.midpoint.notifications.api.events.SimpleObjectRef;
+import com.evolveum.midpoint.notifications.impl.NotificationDispatcher;
 import com.evolveum.midpoint.notifications.impl.NotificationsUtil;
 import com.evolveum.midpoint.notifications.impl.formatters.TextFormatter;
 import com.evolveum.midpoint.notifications.impl.handlers.AggregatedEventHandler;
@@ -77,6 +78,9 @@ public class GeneralNotifier extends BaseHandler {
     @Autowired
     protected AggregatedEventHandler aggregatedEventHandler;
 
+    @Autowired
+    protected NotificationDispatcher notificationDispatcher;
+
     protected static final List<ItemPath> auxiliaryPaths = Collections.unmodifiableList(Arrays.asList(
             new ItemPath(ShadowType.F_METADATA),
             new ItemPath(ShadowType.F_ACTIVATION, ActivationType.F_VALIDITY_STATUS),                // works for user activation as well
@@ -159,7 +163,7 @@ public class GeneralNotifier extends BaseHandler {
                                 message.setTo(recipientsAddresses);                      // todo cc/bcc recipients
 
                                 getLogger().trace("Sending notification via transport {}:\n{}", transportName, message);
-                                transport.send(message, transportName, task, result);
+                                notificationDispatcher.send(transport, message, transportName, task, result);
                             } else {
                                 getLogger().info("No recipients addresses for transport " + transportName + ", message corresponding to event " + event.getId() + " will not be send.");
                             }
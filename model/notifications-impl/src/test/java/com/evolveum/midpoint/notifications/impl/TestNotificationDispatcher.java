@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.notifications.impl;
+
+import com.evolveum.midpoint.notifications.api.transports.Message;
+import com.evolveum.midpoint.notifications.api.transports.Transport;
+import com.evolveum.midpoint.prism.PrismObject;
+import com.evolveum.midpoint.prism.util.PrismTestUtil;
+import com.evolveum.midpoint.repo.api.RepositoryService;
+import com.evolveum.midpoint.schema.MidPointPrismContextFactory;
+import com.evolveum.midpoint.schema.constants.MidPointConstants;
+import com.evolveum.midpoint.schema.result.OperationResult;
+import com.evolveum.midpoint.task.api.Task;
+import com.evolveum.midpoint.task.api.TaskManager;
+import com.evolveum.midpoint.util.PrettyPrinter;
+import com.evolveum.midpoint.util.exception.SchemaException;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.AsynchronousNotificationDispatchType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.NotificationConfigurationType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.SystemConfigurationType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.UserType;
+
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+/**
+ * Synchronous and asynchronous sending of messages by NotificationDispatcher (without the repository and the model).
+ *
+ * @author agent
+ */
+public class TestNotificationDispatcher {
+
+    private static final String TRANSPORT_NAME = "test";
+    private static final String RECIPIENT = "jack@caribbean.com";
+
+    @Mock
+    private RepositoryService cacheRepositoryService;
+
+    @Mock
+    private TaskManager taskManager;
+
+    @InjectMocks
+    private NotificationDispatcher dispatcher;
+
+    private Task task;
+
+    @BeforeSuite
+    public void setup() throws SchemaException, SAXException, IOException {
+        PrettyPrinter.setDefaultNamespacePrefix(MidPointConstants.NS_MIDPOINT_PUBLIC_PREFIX);
+        PrismTestUtil.resetPrismContext(MidPointPrismContextFactory.FACTORY);
+    }
+
+    @BeforeMethod
+    public void createDispatcher() {
+        dispatcher = new NotificationDispatcher();
+        MockitoAnnotations.initMocks(this);
+        task = mock(Task.class);
+        when(task.getResult()).thenReturn(new OperationResult(TestNotificationDispatcher.class.getName()));
+        when(taskManager.createTaskInstance(anyString())).thenReturn(task);
+    }
+
+    @AfterMethod
+    public void shutdownDispatcher() {
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void test100NotConfigured() throws Exception {
+        // GIVEN
+        setDispatchConfiguration(null);
+        TransportStub transport = new TransportStub(1, null);
+
+        // WHEN
+        dispatcher.send(transport, createMessage("subject", "body"), TRANSPORT_NAME, task, task.getResult());
+
+        // THEN
+        assertEquals("Wrong number of messages sent", 1, transport.sent.size());
+        assertEquals("Message was not sent synchronously", Thread.currentThread().getName(), transport.threads.get(0));
+    }
+
+    @Test
+    public void test110Disabled() throws Exception {
+        // GIVEN
+        AsynchronousNotificationDispatchType config = new AsynchronousNotificationDispatchType();
+        config.setEnabled(false);
+        setDispatchConfiguration(config);
+        TransportStub transport = new TransportStub(1, null);
+
+        // WHEN
+        dispatcher.send(transport, createMessage("subject", "body"), TRANSPORT_NAME, task, task.getResult());
+
+        // THEN
+        assertEquals("Wrong number of messages sent", 1, transport.sent.size());
+        assertEquals("Message was not sent synchronously", Thread.currentThread().getName(), transport.threads.get(0));
+    }
+
+    /**
+     * Messages are sent by the workers. The configuration is read only once for all the messages.
+     */
+    @Test
+    public void test200SendAsynchronously() throws Exception {
+        // GIVEN
+        AsynchronousNotificationDispatchType config = new AsynchronousNotificationDispatchType();
+        config.setWorkerThreads(2);
+        setDispatchConfiguration(config);
+        TransportStub transport = new TransportStub(3, null);
+
+        // WHEN
+        for (int i = 0; i < 3; i++) {
+            dispatcher.send(transport, createMessage("subject " + i, "body " + i), TRANSPORT_NAME, task, task.getResult());
+        }
+
+        // THEN
+        transport.awaitSent();
+        assertEquals("Wrong number of messages sent", 3, transport.sent.size());
+        for (String thread : transport.threads) {
+            assertTrue("Message was not sent by a worker: " + thread, thread.startsWith("notifications-" + TRANSPORT_NAME));
+        }
+        verify(cacheRepositoryService, times(1)).getObject(eq(SystemConfigurationType.class), anyString(),
+                any(Collection.class), any(OperationResult.class));
+    }
+
+    /**
+     * Messages for the same recipient waiting in the queue are sent as one message.
+     */
+    @Test
+    public void test210CoalesceMessages() throws Exception {
+        // GIVEN
+        AsynchronousNotificationDispatchType config = new AsynchronousNotificationDispatchType();
+        config.setWorkerThreads(1);
+        config.setCoalesceMessages(true);
+        setDispatchConfiguration(config);
+        CountDownLatch release = new CountDownLatch(1);
+        TransportStub transport = new TransportStub(2, release);
+
+        // the (only) worker waits in the first message until the others are queued
+        dispatcher.send(transport, createMessage("first", "body 0"), TRANSPORT_NAME, task, task.getResult());
+        transport.awaitStarted();
+
+        // WHEN
+        for (int i = 1; i <= 3; i++) {
+            dispatcher.send(transport, createMessage("subject " + i, "body " + i), TRANSPORT_NAME, task, task.getResult());
+        }
+        release.countDown();
+
+        // THEN
+        transport.awaitSent();
+        assertEquals("Wrong number of messages sent", 2, transport.sent.size());
+        Message coalesced = transport.sent.get(1);
+        assertEquals("Wrong recipients", Collections.singletonList(RECIPIENT), coalesced.getTo());
+        assertEquals("Wrong subject", "subject 1 (and 2 more notification(s))", coalesced.getSubject());
+        for (int i = 1; i <= 3; i++) {
+            assertTrue("Body " + i + " is missing", coalesced.getBody().contains("body " + i));
+        }
+    }
+
+    /**
+     * Messages that are still queued are sent before the shutdown completes.
+     */
+    @Test
+    public void test300ShutdownSendsQueuedMessages() throws Exception {
+        // GIVEN
+        AsynchronousNotificationDispatchType config = new AsynchronousNotificationDispatchType();
+        config.setWorkerThreads(1);
+        setDispatchConfiguration(config);
+        CountDownLatch release = new CountDownLatch(1);
+        TransportStub transport = new TransportStub(3, release);
+        for (int i = 0; i < 3; i++) {
+            dispatcher.send(transport, createMessage("subject " + i, "body " + i), TRANSPORT_NAME, task, task.getResult());
+        }
+        transport.awaitStarted();
+        release.countDown();
+
+        // WHEN
+        dispatcher.shutdown();
+
+        // THEN
+        assertEquals("Wrong number of messages sent", 3, transport.sent.size());
+    }
+
+    @Test
+    public void test400CoalesceDifferentSubjects() throws Exception {
+        // GIVEN
+        List<Message> messages = Arrays.asList(createMessage("first", "body 1"), createMessage("second", "body 2"));
+
+        // WHEN
+        Message coalesced = NotificationDispatcher.coalesce(messages);
+
+        // THEN
+        assertEquals("Wrong subject", "first (and 1 more notification(s))", coalesced.getSubject());
+        assertTrue("Wrong body: " + coalesced.getBody(), coalesced.getBody().startsWith("body 1"));
+        assertTrue("Wrong body: " + coalesced.getBody(), coalesced.getBody().endsWith("body 2"));
+        assertFalse("HTML separator in a text message", coalesced.getBody().contains("<hr/>"));
+    }
+
+    private void setDispatchConfiguration(AsynchronousNotificationDispatchType config) throws Exception {
+        SystemConfigurationType systemConfiguration = new SystemConfigurationType();
+        PrismObject<SystemConfigurationType> object = systemConfiguration.asPrismObject();
+        PrismTestUtil.getPrismContext().adopt(object);
+        if (config != null) {
+            NotificationConfigurationType notificationConfiguration = new NotificationConfigurationType();
+            notificationConfiguration.setAsynchronousDispatch(config);
+            systemConfiguration.setNotificationConfiguration(notificationConfiguration);
+        }
+        when(cacheRepositoryService.getObject(eq(SystemConfigurationType.class), anyString(), any(Collection.class),
+                any(OperationResult.class))).thenReturn(object);
+    }
+
+    private Message createMessage(String subject, String body) {
+        Message message = new Message();
+        message.setTo(Collections.singletonList(RECIPIENT));
+        message.setSubject(subject);
+        message.setBody(body);
+        message.setContentType("text/plain");
+        return message;
+    }
+
+    private static class TransportStub implements Transport {
+
+        private final List<Message> sent = Collections.synchronizedList(new ArrayList<Message>());
+        private final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch allSent;
+        private final CountDownLatch release;
+
+        TransportStub(int expectedMessages, CountDownLatch release) {
+            this.allSent = new CountDownLatch(expectedMessages);
+            this.release = release;
+        }
+
+        @Override
+        public void send(Message message, String transportName, Task task, OperationResult parentResult) {
+            started.countDown();
+            if (release != null) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            threads.add(Thread.currentThread().getName());
+            sent.add(message);
+            allSent.countDown();
+        }
+
+        void awaitStarted() throws InterruptedException {
+            assertTrue("No message is being sent", started.await(10, TimeUnit.SECONDS));
+        }
+
+        void awaitSent() throws InterruptedException {
+            assertTrue("Messages were not sent, sent " + sent.size(), allSent.await(10, TimeUnit.SECONDS));
+        }
+
+        @Override
+        public String getDefaultRecipientAddress(UserType recipient) {
+            return null;
+        }
+
+        @Override
+        public String getName() {
+            return TRANSPORT_NAME;
+        }
+    }
+}
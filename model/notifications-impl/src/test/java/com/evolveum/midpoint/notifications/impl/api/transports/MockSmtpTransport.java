@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.notifications.impl.api.transports;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SMTP transport that only records connections and sent messages. It is registered as a JavaMail provider
+ * (META-INF/javamail.providers) and selected by the mail.smtp.class property.
+ *
+ * @author agent
+ */
+public class MockSmtpTransport extends Transport {
+
+    private static final List<MockSmtpTransport> connections = new ArrayList<>();
+    private static final List<String> sentSubjects = new ArrayList<>();
+
+    private volatile boolean closedByServer;
+
+    public MockSmtpTransport(Session session, URLName urlName) {
+        super(session, urlName);
+    }
+
+    @Override
+    protected boolean protocolConnect(String host, int port, String user, String password) {
+        synchronized (connections) {
+            connections.add(this);
+        }
+        return true;
+    }
+
+    @Override
+    public void sendMessage(javax.mail.Message message, Address[] addresses) throws MessagingException {
+        if (!isConnected()) {
+            throw new IllegalStateException("Not connected");
+        }
+        if (closedByServer) {
+            throw new MessagingException("Connection closed by the server");
+        }
+        synchronized (sentSubjects) {
+            sentSubjects.add(message.getSubject());
+        }
+    }
+
+    public static int getConnectionCount() {
+        synchronized (connections) {
+            return connections.size();
+        }
+    }
+
+    public static List<String> getSentSubjects() {
+        synchronized (sentSubjects) {
+            return new ArrayList<>(sentSubjects);
+        }
+    }
+
+    // simulates the server closing the (idle) connections
+    public static void closeConnectionsByServer() {
+        synchronized (connections) {
+            for (MockSmtpTransport connection : connections) {
+                connection.closedByServer = true;
+            }
+        }
+    }
+
+    public static void reset() {
+        synchronized (connections) {
+            connections.clear();
+        }
+        synchronized (sentSubjects) {
+            sentSubjects.clear();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.notifications.impl.api.transports;
+
+import com.evolveum.midpoint.notifications.api.NotificationManager;
+import com.evolveum.midpoint.notifications.api.transports.Message;
+import com.evolveum.midpoint.prism.PrismObject;
+import com.evolveum.midpoint.prism.crypto.Protector;
+import com.evolveum.midpoint.prism.util.PrismTestUtil;
+import com.evolveum.midpoint.repo.api.RepositoryService;
+import com.evolveum.midpoint.schema.MidPointPrismContextFactory;
+import com.evolveum.midpoint.schema.constants.MidPointConstants;
+import com.evolveum.midpoint.schema.result.OperationResult;
+import com.evolveum.midpoint.task.api.Task;
+import com.evolveum.midpoint.test.util.TestUtil;
+import com.evolveum.midpoint.util.PrettyPrinter;
+import com.evolveum.midpoint.util.exception.SchemaException;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.MailConfigurationType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.MailServerConfigurationType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.MailTransportSecurityType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.NotificationConfigurationType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.SystemConfigurationType;
+
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.AssertJUnit.assertEquals;
+
+/**
+ * Reuse of SMTP connections by MailTransport. The SMTP protocol is served by MockSmtpTransport.
+ *
+ * @author agent
+ */
+public class TestMailTransport {
+
+    private static final String PROPERTY_SMTP_CLASS = "mail.smtp.class";
+
+    @Mock
+    private RepositoryService cacheRepositoryService;
+
+    @Mock
+    private Protector protector;
+
+    @Mock
+    private NotificationManager notificationManager;
+
+    @InjectMocks
+    private MailTransport mailTransport;
+
+    private Task task;
+
+    private String originalSmtpClass;
+
+    @BeforeSuite
+    public void setup() throws SchemaException, SAXException, IOException {
+        PrettyPrinter.setDefaultNamespacePrefix(MidPointConstants.NS_MIDPOINT_PUBLIC_PREFIX);
+        PrismTestUtil.resetPrismContext(MidPointPrismContextFactory.FACTORY);
+    }
+
+    @BeforeClass
+    public void useMockSmtpTransport() {
+        // system properties are the defaults of the mail properties used by MailTransport
+        originalSmtpClass = System.getProperty(PROPERTY_SMTP_CLASS);
+        System.setProperty(PROPERTY_SMTP_CLASS, MockSmtpTransport.class.getName());
+    }
+
+    @AfterClass
+    public void restoreSmtpTransport() {
+        if (originalSmtpClass != null) {
+            System.setProperty(PROPERTY_SMTP_CLASS, originalSmtpClass);
+        } else {
+            System.clearProperty(PROPERTY_SMTP_CLASS);
+        }
+    }
+
+    @BeforeMethod
+    public void createMailTransport() throws Exception {
+        mailTransport = new MailTransport();
+        MockitoAnnotations.initMocks(this);
+        task = mock(Task.class);
+        setMailConfiguration();
+        MockSmtpTransport.reset();
+    }
+
+    @AfterMethod
+    public void shutdownMailTransport() {
+        mailTransport.shutdown();
+    }
+
+    @Test
+    public void test100SendReusesConnection() throws Exception {
+        // GIVEN
+        OperationResult result = new OperationResult(TestMailTransport.class.getName() + ".test100SendReusesConnection");
+
+        // WHEN
+        for (int i = 1; i <= 3; i++) {
+            mailTransport.send(createMessage("message " + i), "mail", task, result);
+        }
+
+        // THEN
+        result.computeStatus();
+        TestUtil.assertSuccess(result);
+        assertEquals("Wrong messages sent", Arrays.asList("message 1", "message 2", "message 3"),
+                MockSmtpTransport.getSentSubjects());
+        assertEquals("Connection was not reused", 1, MockSmtpTransport.getConnectionCount());
+    }
+
+    /**
+     * The server closes the idle connection; the message has to be sent via a new one.
+     */
+    @Test
+    public void test110ReconnectWhenConnectionClosed() throws Exception {
+        // GIVEN
+        OperationResult result = new OperationResult(TestMailTransport.class.getName() + ".test110ReconnectWhenConnectionClosed");
+        mailTransport.send(createMessage("message 1"), "mail", task, result);
+        MockSmtpTransport.closeConnectionsByServer();
+
+        // WHEN
+        mailTransport.send(createMessage("message 2"), "mail", task, result);
+
+        // THEN
+        result.computeStatus();
+        TestUtil.assertSuccess(result);
+        assertEquals("Wrong messages sent", Arrays.asList("message 1", "message 2"), MockSmtpTransport.getSentSubjects());
+        assertEquals("Wrong number of connections", 2, MockSmtpTransport.getConnectionCount());
+    }
+
+    private void setMailConfiguration() throws Exception {
+        MailServerConfigurationType server = new MailServerConfigurationType();
+        server.setHost("localhost");
+        server.setTransportSecurity(MailTransportSecurityType.NONE);
+        MailConfigurationType mail = new MailConfigurationType();
+        mail.setDefaultFrom("midpoint@evolveum.com");
+        mail.getServer().add(server);
+        NotificationConfigurationType notificationConfiguration = new NotificationConfigurationType();
+        notificationConfiguration.setMail(mail);
+
+        SystemConfigurationType systemConfiguration = new SystemConfigurationType();
+        PrismObject<SystemConfigurationType> object = systemConfiguration.asPrismObject();
+        PrismTestUtil.getPrismContext().adopt(object);
+        systemConfiguration.setNotificationConfiguration(notificationConfiguration);
+        when(cacheRepositoryService.getObject(eq(SystemConfigurationType.class), anyString(), any(Collection.class),
+                any(OperationResult.class))).thenReturn(object);
+    }
+
+    private Message createMessage(String subject) {
+        Message message = new Message();
+        message.setTo(Collections.singletonList("jack@caribbean.com"));
+        message.setSubject(subject);
+        message.setBody("Body of " + subject);
+        return message;
+    }
+}
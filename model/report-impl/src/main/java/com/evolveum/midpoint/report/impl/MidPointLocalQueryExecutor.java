@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import javax.xml.namespace.QName;
 
@@ -45,6 +46,8 @@ public class MidPointLocalQueryExecutor extends MidPointQueryExecutor{
 	private String script;
 	private Class type;
 	private ReportService reportService;
+	private ExecutorService dataSourceExecutor;
+	private MidPointStreamingDataSource streamingDataSource;
 	
 	
 	public MidPointLocalQueryExecutor(JasperReportsContext jasperReportsContext, JRDataset dataset,
@@ -59,6 +62,10 @@ public class MidPointLocalQueryExecutor extends MidPointQueryExecutor{
 		JRFillParameter fillparam = (JRFillParameter) parametersMap.get(JRParameter.REPORT_PARAMETERS_MAP);
 		Map reportParams = (Map) fillparam.getValue();
 		reportService = (ReportService) parametersMap.get(ReportService.PARAMETER_REPORT_SERVICE).getValue();
+		JRValueParameter executorParameter = parametersMap.get(MidPointStreamingDataSource.PARAMETER_DATA_SOURCE_EXECUTOR);
+		if (executorParameter != null) {
+			dataSourceExecutor = (ExecutorService) executorParameter.getValue();
+		}
 
 		parseQuery();
 	}
@@ -88,6 +95,37 @@ public class MidPointLocalQueryExecutor extends MidPointQueryExecutor{
 		return reportService.evaluateAuditScript(script, parameters);
 	}
 	
+	/**
+	 * Objects are not fetched all at once; they are streamed from the repository while the report is being filled.
+	 * (Unless there is no executor to run the search, see MidPointStreamingDataSource.)
+	 */
+	@Override
+	protected JRDataSource createDataSourceFromQuery(Object query) throws SchemaException, ObjectNotFoundException,
+			SecurityViolationException, CommunicationException, ConfigurationException {
+		closeStreamingDataSource();
+		if (dataSourceExecutor == null) {
+			return super.createDataSourceFromQuery(query);
+		}
+		streamingDataSource = new MidPointStreamingDataSource(reportService, (ObjectQuery) query,
+				SelectorOptions.createCollection(GetOperationOptions.createRaw()), MidPointStreamingDataSource.DEFAULT_PAGE_SIZE,
+				dataSourceExecutor);
+		streamingDataSource.start();
+		return streamingDataSource;
+	}
+
+	@Override
+	public void close() {
+		closeStreamingDataSource();
+		super.close();
+	}
+
+	private void closeStreamingDataSource() {
+		if (streamingDataSource != null) {
+			streamingDataSource.close();
+			streamingDataSource = null;
+		}
+	}
+	
 	@Override
 	protected JRDataSource createDataSourceFromObjects(Collection<PrismObject<? extends ObjectType>> results) {
 		return new MidPointDataSource(toPcvList(results));
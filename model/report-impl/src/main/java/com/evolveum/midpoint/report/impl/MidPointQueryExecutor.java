@@ -123,6 +123,12 @@ public abstract class MidPointQueryExecutor extends JRAbstractQueryExecuter{
 	protected abstract JRDataSource createDataSourceFromObjects(Collection<PrismObject<? extends ObjectType>> results);
 
 	protected abstract JRDataSource createDataSourceFromContainerValues(Collection<PrismContainerValue<? extends Containerable>> results);
+
+	protected JRDataSource createDataSourceFromQuery(Object query) throws SchemaException, ObjectNotFoundException, SecurityViolationException, CommunicationException, ConfigurationException {
+		Collection<PrismObject<? extends ObjectType>> results;
+		results = searchObjects(query, SelectorOptions.createCollection(GetOperationOptions.createRaw()));
+		return createDataSourceFromObjects(results);
+	}
 	
 	@Override
 	protected void parseQuery() {
@@ -155,9 +161,7 @@ public abstract class MidPointQueryExecutor extends JRAbstractQueryExecuter{
 			}
 			
 			if (query != null) {
-				Collection<PrismObject<? extends ObjectType>> results;
-				results = searchObjects(query, SelectorOptions.createCollection(GetOperationOptions.createRaw()));
-				return createDataSourceFromObjects(results);
+				return createDataSourceFromQuery(query);
 			} else {
 				if (script.contains("AuditEventRecord")){
 					Collection<AuditEventRecord> audtiEventRecords = searchAuditRecords(script, getPromptingParameters());
@@ -1,6 +1,7 @@
 package com.evolveum.midpoint.report.impl;
 
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import com.evolveum.midpoint.prism.PrismContext;
 import com.evolveum.midpoint.report.api.ReportService;
@@ -33,7 +34,8 @@ public class MidPointQueryExecutorFactory extends AbstractQueryExecuterFactory{
 	
 	
 	private final static Object[] MIDPOINT_BUILTIN_PARAMETERS = {
-		ReportService.PARAMETER_REPORT_SERVICE, "midpoint.connection"
+		ReportService.PARAMETER_REPORT_SERVICE, "midpoint.connection",
+		MidPointStreamingDataSource.PARAMETER_DATA_SOURCE_EXECUTOR, ExecutorService.class.getName()
 		};
 	
 	
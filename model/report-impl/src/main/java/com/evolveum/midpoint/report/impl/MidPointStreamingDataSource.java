@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.report.impl;
+
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.jasperreports.engine.JRException;
+
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import com.evolveum.midpoint.prism.PrismObject;
+import com.evolveum.midpoint.prism.query.ObjectQuery;
+import com.evolveum.midpoint.report.api.ReportService;
+import com.evolveum.midpoint.schema.GetOperationOptions;
+import com.evolveum.midpoint.schema.ResultHandler;
+import com.evolveum.midpoint.schema.SelectorOptions;
+import com.evolveum.midpoint.schema.result.OperationResult;
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ObjectType;
+
+/**
+ * Data source that fetches the objects lazily, using iterative search. The search runs in a separate
+ * thread (taken from the given executor, see ReportCreateTaskHandler) and hands the objects over through
+ * a bounded queue, so at most pageSize objects are held in memory regardless of the size of the result.
+ *
+ * The data source should be closed. If it is not, the search waits for the consumer at most maxConsumerIdle
+ * milliseconds and then it is stopped, so the thread is returned to the executor.
+ *
+ * @author agent
+ */
+public class MidPointStreamingDataSource extends MidPointDataSource {
+
+	private static final Trace LOGGER = TraceManager.getTrace(MidPointStreamingDataSource.class);
+
+	public static final int DEFAULT_PAGE_SIZE = 100;
+	public static final long DEFAULT_MAX_CONSUMER_IDLE = 300000L;
+
+	/**
+	 * Report parameter with the executor that runs the searches. If it is not present, objects are not streamed.
+	 */
+	public static final String PARAMETER_DATA_SOURCE_EXECUTOR = "dataSourceExecutor";
+
+	private static final Object END = new Object();
+	private static final long POLL_INTERVAL = 500L;
+
+	private final ReportService reportService;
+	private final ObjectQuery query;
+	private final Collection<SelectorOptions<GetOperationOptions>> options;
+	private final BlockingQueue<Object> queue;
+	private final ExecutorService executor;
+
+	private Future<?> producer;
+	private volatile boolean closed;
+	// the consumer did not take the objects for too long
+	private volatile boolean abandoned;
+	private volatile Throwable producerException;
+	private volatile long maxConsumerIdle = DEFAULT_MAX_CONSUMER_IDLE;
+	private boolean finished;
+
+	public MidPointStreamingDataSource(ReportService reportService, ObjectQuery query,
+			Collection<SelectorOptions<GetOperationOptions>> options, int pageSize, ExecutorService executor) {
+		super(null);
+		this.reportService = reportService;
+		this.query = query;
+		this.options = options;
+		this.queue = new ArrayBlockingQueue<>(pageSize);
+		this.executor = executor;
+	}
+
+	public long getMaxConsumerIdle() {
+		return maxConsumerIdle;
+	}
+
+	/**
+	 * How long (in milliseconds) the search waits for the consumer to take an object before it gives up.
+	 */
+	public void setMaxConsumerIdle(long maxConsumerIdle) {
+		this.maxConsumerIdle = maxConsumerIdle;
+	}
+
+	public synchronized void start() {
+		if (producer != null) {
+			throw new IllegalStateException("Data source has been already started");
+		}
+		// the search is executed on behalf of the user that is filling the report
+		final SecurityContext securityContext = SecurityContextHolder.getContext();
+		producer = executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				SecurityContextHolder.setContext(securityContext);
+				try {
+					reportService.searchObjectsIterative(query, options, new ResultHandler<ObjectType>() {
+						@Override
+						public boolean handle(PrismObject<ObjectType> object, OperationResult parentResult) {
+							return put(object);
+						}
+					});
+				} catch (Throwable t) {
+					LOGGER.debug("Iterative search for report data source failed: {}", t.getMessage(), t);
+					producerException = t;
+				} finally {
+					SecurityContextHolder.clearContext();
+					if (!abandoned) {
+						put(END);
+					}
+				}
+			}
+		});
+	}
+
+	// returns false if the consumer is gone
+	private boolean put(Object object) {
+		long deadline = System.currentTimeMillis() + maxConsumerIdle;
+		try {
+			while (!closed && !abandoned) {
+				if (queue.offer(object, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+					return true;
+				}
+				if (System.currentTimeMillis() > deadline) {
+					LOGGER.warn("Report data source was not read for {} ms, stopping the search", maxConsumerIdle);
+					producerException = new IllegalStateException("Report data source was not read for "
+							+ maxConsumerIdle + " ms, the search was stopped");
+					abandoned = true;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	@Override
+	public boolean next() throws JRException {
+		if (finished) {
+			return false;
+		}
+		if (producer == null) {
+			start();
+		}
+		try {
+			for (;;) {
+				Object object = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				if (object == null) {
+					if (producer.isDone() && queue.isEmpty()) {
+						// the producer has sent no END (it was stopped)
+						return finish();
+					}
+				} else if (object == END) {
+					return finish();
+				} else {
+					currentObject = ((PrismObject<? extends ObjectType>) object).asObjectable().asPrismContainerValue();
+					return true;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new JRException("Interrupted while waiting for report data", e);
+		}
+	}
+
+	private boolean finish() throws JRException {
+		finished = true;
+		currentObject = null;
+		if (producerException != null) {
+			throw new JRException("Couldn't fetch report data: " + producerException.getMessage(), producerException);
+		}
+		return false;
+	}
+
+	/**
+	 * Stops the search (if it is still running) and releases the objects that were not consumed.
+	 */
+	public void close() {
+		closed = true;
+		if (producer != null) {
+			producer.cancel(true);
+		}
+		queue.clear();
+	}
+}
@@ -10,8 +10,13 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import net.sf.jasperreports.engine.JRException;
 import net.sf.jasperreports.engine.JRTemplate;
@@ -125,14 +130,26 @@ public class ReportCreateTaskHandler implements TaskHandler {
     @Autowired(required = true)
     private ObjectResolver objectResolver;
 
+    // runs the searches of streaming data sources (see MidPointStreamingDataSource)
+    private ExecutorService dataSourceExecutor;
+
     @PostConstruct
     private void initialize() {
         if (LOGGER.isTraceEnabled()) {
             LOGGER.trace("Registering with taskManager as a handler for " + REPORT_CREATE_TASK_URI);
         }
+        dataSourceExecutor = Executors.newCachedThreadPool(new DataSourceThreadFactory());
         taskManager.registerHandler(REPORT_CREATE_TASK_URI, this);
     }
 
+    @PreDestroy
+    private void shutdown() {
+        if (dataSourceExecutor != null) {
+            dataSourceExecutor.shutdownNow();
+            dataSourceExecutor = null;
+        }
+    }
+
     @Override
     public TaskRunResult run(Task task) {
         // TODO Auto-generated method stub
@@ -317,6 +334,7 @@ public class ReportCreateTaskHandler implements TaskHandler {
         params.put(PARAMETER_REPORT_OID, reportType.getOid());
         params.put(PARAMETER_OPERATION_RESULT, parentResult);
         params.put(ReportService.PARAMETER_REPORT_SERVICE, reportService);
+        params.put(MidPointStreamingDataSource.PARAMETER_DATA_SOURCE_EXECUTOR, dataSourceExecutor);
 
         return params;
     }
@@ -509,4 +527,16 @@ public class ReportCreateTaskHandler implements TaskHandler {
         return null;
     }
 
+    private static class DataSourceThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "report-data-source-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
 }
@@ -50,6 +50,7 @@ import com.evolveum.midpoint.prism.query.ObjectQuery;
 import com.evolveum.midpoint.prism.query.TypeFilter;
 import com.evolveum.midpoint.report.api.ReportService;
 import com.evolveum.midpoint.schema.GetOperationOptions;
+import com.evolveum.midpoint.schema.ResultHandler;
 import com.evolveum.midpoint.schema.SelectorOptions;
 import com.evolveum.midpoint.schema.result.OperationResult;
 import com.evolveum.midpoint.schema.util.ObjectResolver;
@@ -153,27 +154,15 @@ public class ReportServiceImpl implements ReportService {
 
 		// GetOperationOptions options = GetOperationOptions.createRaw();
 
-		if (!(query.getFilter() instanceof TypeFilter)) {
-			throw new IllegalArgumentException("Query must contain type filter.");
-		}
-
-		TypeFilter typeFilter = (TypeFilter) query.getFilter();
-		QName type = typeFilter.getType();
-		Class clazz = prismContext.getSchemaRegistry().determineCompileTimeClass(type);
-		if (clazz == null) {
-			clazz = prismContext.getSchemaRegistry().findObjectDefinitionByType(type).getCompileTimeClass();
-		}
-
-		ObjectQuery queryForSearch = ObjectQuery.createObjectQuery(typeFilter.getFilter());
+		Class clazz = getSearchedType(query);
+		ObjectQuery queryForSearch = createQueryForSearch(query);
 
 		Task task = taskManager.createTaskInstance(ReportService.class.getName() + ".searchObjects()");
 		OperationResult parentResult = task.getResult();
 
 		// options.add(new
 		// SelectorOptions(GetOperationOptions.createResolveNames()));
-		GetOperationOptions getOptions = GetOperationOptions.createResolveNames();
-		getOptions.setRaw(Boolean.TRUE);
-		options = SelectorOptions.createCollection(getOptions);
+		options = createSearchOptions();
 		List<PrismObject<? extends ObjectType>> results;
 		try {
 			results = model.searchObjects(clazz, queryForSearch, options, task, parentResult);
@@ -186,6 +175,43 @@ public class ReportServiceImpl implements ReportService {
 
 	}
 
+	@Override
+	public void searchObjectsIterative(ObjectQuery query, Collection<SelectorOptions<GetOperationOptions>> options,
+			ResultHandler<ObjectType> handler) throws SchemaException, ObjectNotFoundException,
+			SecurityViolationException, CommunicationException, ConfigurationException {
+
+		Class clazz = getSearchedType(query);
+		ObjectQuery queryForSearch = createQueryForSearch(query);
+
+		Task task = taskManager.createTaskInstance(ReportService.class.getName() + ".searchObjectsIterative()");
+		OperationResult parentResult = task.getResult();
+
+		model.searchObjectsIterative(clazz, queryForSearch, (ResultHandler) handler, createSearchOptions(), task, parentResult);
+	}
+
+	private Class getSearchedType(ObjectQuery query) {
+		if (!(query.getFilter() instanceof TypeFilter)) {
+			throw new IllegalArgumentException("Query must contain type filter.");
+		}
+
+		QName type = ((TypeFilter) query.getFilter()).getType();
+		Class clazz = prismContext.getSchemaRegistry().determineCompileTimeClass(type);
+		if (clazz == null) {
+			clazz = prismContext.getSchemaRegistry().findObjectDefinitionByType(type).getCompileTimeClass();
+		}
+		return clazz;
+	}
+
+	private ObjectQuery createQueryForSearch(ObjectQuery query) {
+		return ObjectQuery.createObjectQuery(((TypeFilter) query.getFilter()).getFilter());
+	}
+
+	private Collection<SelectorOptions<GetOperationOptions>> createSearchOptions() {
+		GetOperationOptions getOptions = GetOperationOptions.createResolveNames();
+		getOptions.setRaw(Boolean.TRUE);
+		return SelectorOptions.createCollection(getOptions);
+	}
+
 	public Collection<PrismContainerValue<? extends Containerable>> evaluateScript(String script,
 			Map<QName, Object> parameters) throws SchemaException, ExpressionEvaluationException,
 			ObjectNotFoundException {
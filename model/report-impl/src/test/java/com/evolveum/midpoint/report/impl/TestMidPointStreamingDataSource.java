@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.report.impl;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.QName;
+
+import net.sf.jasperreports.engine.JRException;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
+import org.xml.sax.SAXException;
+
+import com.evolveum.midpoint.audit.api.AuditEventRecord;
+import com.evolveum.midpoint.prism.Containerable;
+import com.evolveum.midpoint.prism.PrismContainerValue;
+import com.evolveum.midpoint.prism.PrismObject;
+import com.evolveum.midpoint.prism.query.ObjectQuery;
+import com.evolveum.midpoint.prism.util.PrismTestUtil;
+import com.evolveum.midpoint.report.api.ReportService;
+import com.evolveum.midpoint.schema.GetOperationOptions;
+import com.evolveum.midpoint.schema.MidPointPrismContextFactory;
+import com.evolveum.midpoint.schema.ResultHandler;
+import com.evolveum.midpoint.schema.SelectorOptions;
+import com.evolveum.midpoint.schema.constants.MidPointConstants;
+import com.evolveum.midpoint.util.PrettyPrinter;
+import com.evolveum.midpoint.util.exception.SchemaException;
+import com.evolveum.midpoint.util.exception.SystemException;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ObjectType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.UserType;
+
+/**
+ * Streaming of report data (MidPointStreamingDataSource) without the report engine: the objects are read
+ * in the order of the search, errors of the search are reported and the search thread is always released.
+ *
+ * @author agent
+ */
+public class TestMidPointStreamingDataSource {
+
+	private static final int PAGE_SIZE = 10;
+
+	private ExecutorService executor;
+
+	@BeforeSuite
+	public void setup() throws SchemaException, SAXException, IOException {
+		PrettyPrinter.setDefaultNamespacePrefix(MidPointConstants.NS_MIDPOINT_PUBLIC_PREFIX);
+		PrismTestUtil.resetPrismContext(MidPointPrismContextFactory.FACTORY);
+	}
+
+	@BeforeClass
+	public void createExecutor() {
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@AfterClass
+	public void shutdownExecutor() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void test100StreamAllObjects() throws Exception {
+		// GIVEN
+		int count = PAGE_SIZE * 5 + 3;
+		UserSearchStub search = new UserSearchStub(count, null);
+		MidPointStreamingDataSource dataSource = createDataSource(search);
+
+		// WHEN
+		int read = 0;
+		while (dataSource.next()) {
+			assertEquals("Wrong object at position " + read, "user" + read, getName(dataSource));
+			read++;
+		}
+		dataSource.close();
+
+		// THEN
+		assertEquals("Wrong number of objects", count, read);
+		assertFalse("next() returned true after the end", dataSource.next());
+		search.assertFinished();
+	}
+
+	@Test
+	public void test110SearchFails() throws Exception {
+		// GIVEN
+		UserSearchStub search = new UserSearchStub(PAGE_SIZE / 2, new SystemException("Search failed"));
+		MidPointStreamingDataSource dataSource = createDataSource(search);
+
+		// WHEN
+		int read = 0;
+		try {
+			while (dataSource.next()) {
+				read++;
+			}
+			fail("Unexpected success");
+		} catch (JRException e) {
+			// THEN
+			assertTrue("Wrong exception: " + e, e.getCause() instanceof SystemException);
+		} finally {
+			dataSource.close();
+		}
+		assertEquals("Wrong number of objects read before the failure", PAGE_SIZE / 2, read);
+		search.assertFinished();
+	}
+
+	/**
+	 * The report stops reading before the end and closes the data source; the search has to stop.
+	 */
+	@Test
+	public void test120CloseBeforeEnd() throws Exception {
+		// GIVEN
+		UserSearchStub search = new UserSearchStub(PAGE_SIZE * 10, null);
+		MidPointStreamingDataSource dataSource = createDataSource(search);
+		assertTrue("No object", dataSource.next());
+
+		// WHEN
+		dataSource.close();
+
+		// THEN
+		search.assertFinished();
+		assertTrue("Search was not stopped early", search.handled < PAGE_SIZE * 10);
+	}
+
+	/**
+	 * The report stops reading but it does not close the data source (e.g. after an error in the report engine).
+	 * The search must not wait for the consumer forever.
+	 */
+	@Test
+	public void test130ConsumerGone() throws Exception {
+		// GIVEN
+		UserSearchStub search = new UserSearchStub(PAGE_SIZE * 10, null);
+		MidPointStreamingDataSource dataSource = createDataSource(search);
+		dataSource.setMaxConsumerIdle(1000L);
+
+		// WHEN
+		assertTrue("No object", dataSource.next());
+
+		// THEN
+		search.assertFinished();
+		// the objects that were already fetched can be read, then the data source reports the problem
+		try {
+			while (dataSource.next()) {
+				// skip
+			}
+			fail("Unexpected success");
+		} catch (JRException e) {
+			assertTrue("Wrong exception: " + e, e.getCause() instanceof IllegalStateException);
+		}
+	}
+
+	private MidPointStreamingDataSource createDataSource(ReportService reportService) {
+		MidPointStreamingDataSource dataSource = new MidPointStreamingDataSource(reportService, new ObjectQuery(),
+				null, PAGE_SIZE, executor);
+		dataSource.start();
+		return dataSource;
+	}
+
+	private String getName(MidPointStreamingDataSource dataSource) {
+		return ((UserType) dataSource.currentObject.asContainerable()).getName().getOrig();
+	}
+
+	/**
+	 * Iterative search that produces the given number of users and then (optionally) fails.
+	 */
+	private static class UserSearchStub implements ReportService {
+
+		private final int count;
+		private final RuntimeException failure;
+		private final CountDownLatch finished = new CountDownLatch(1);
+		private volatile int handled;
+
+		private UserSearchStub(int count, RuntimeException failure) {
+			this.count = count;
+			this.failure = failure;
+		}
+
+		@Override
+		public void searchObjectsIterative(ObjectQuery query, Collection<SelectorOptions<GetOperationOptions>> options,
+				ResultHandler<ObjectType> handler) {
+			try {
+				for (int i = 0; i < count; i++) {
+					PrismObject<UserType> user = new UserType().asPrismObject();
+					PrismTestUtil.getPrismContext().adopt(user);
+					user.asObjectable().setName(PrismTestUtil.createPolyStringType("user" + i));
+					handled++;
+					if (!handler.handle((PrismObject) user, null)) {
+						return;
+					}
+				}
+				if (failure != null) {
+					throw failure;
+				}
+			} catch (SchemaException e) {
+				throw new SystemException(e);
+			} finally {
+				finished.countDown();
+			}
+		}
+
+		private void assertFinished() throws InterruptedException {
+			assertTrue("Search is still running", finished.await(10, TimeUnit.SECONDS));
+		}
+
+		@Override
+		public ObjectQuery parseQuery(String query, Map<QName, Object> parameters) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Collection<PrismObject<? extends ObjectType>> searchObjects(ObjectQuery query,
+				Collection<SelectorOptions<GetOperationOptions>> options) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Collection<PrismContainerValue<? extends Containerable>> evaluateScript(String script,
+				Map<QName, Object> parameters) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Collection<AuditEventRecord> evaluateAuditScript(String script, Map<QName, Object> parameters) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -15,6 +15,7 @@
  */
 package com.evolveum.midpoint.provisioning.impl;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
@@ -55,6 +56,7 @@ import com.evolveum.midpoint.provisioning.ucf.api.ResultHandler;
 import com.evolveum.midpoint.provisioning.util.ProvisioningUtil;
 import com.evolveum.midpoint.schema.processor.ResourceAttribute;
 import com.evolveum.midpoint.schema.processor.ResourceAttributeContainer;
+import com.evolveum.midpoint.schema.processor.ResourceAttributeDefinition;
 import com.evolveum.midpoint.schema.processor.ResourceObjectIdentification;
 import com.evolveum.midpoint.schema.processor.SearchHierarchyConstraints;
 import com.evolveum.midpoint.schema.result.OperationResult;
@@ -101,8 +103,12 @@ class EntitlementConverter {
 	// GET
 	/////////
 	
+	/**
+	 * If entitlementIndex is present (i.e. when searching), object-to-subject associations that are marked for bulk fetch are resolved
+	 * using the index. The index is filled on the first use, i.e. by one search for all the entitlements.
+	 */
 	public void postProcessEntitlementsRead(ProvisioningContext subjectCtx,
-			PrismObject<ShadowType> resourceObject, OperationResult parentResult) throws SchemaException, CommunicationException, ObjectNotFoundException, ConfigurationException, SecurityViolationException {
+			PrismObject<ShadowType> resourceObject, EntitlementIndex entitlementIndex, OperationResult parentResult) throws SchemaException, CommunicationException, ObjectNotFoundException, ConfigurationException, SecurityViolationException {
 		ResourceType resourceType = subjectCtx.getResource();
 		LOGGER.trace("Starting postProcessEntitlementRead");
 		RefinedObjectClassDefinition objectClassDefinition = subjectCtx.getObjectClassDefinition();
@@ -132,7 +138,7 @@ class EntitlementConverter {
 									assocDefType.getResourceObjectAssociationType().getShortcutAssociationAttribute(),
 									assocDefType.getResourceObjectAssociationType().getShortcutValueAttribute(), parentResult);
 						} else {
-							postProcessEntitlementEntitlementToSubject(subjectCtx, resourceObject, assocDefType, entitlementCtx, attributesContainer, associationContainer, parentResult);
+							postProcessEntitlementEntitlementToSubject(subjectCtx, resourceObject, assocDefType, entitlementCtx, intent, attributesContainer, associationContainer, entitlementIndex, parentResult);
 						}
 					} else {
 						throw new IllegalArgumentException("Unknown entitlement direction "+direction+" in association "+assocDefType+" in "+resourceType);
@@ -205,9 +211,9 @@ class EntitlementConverter {
     }
 	
 	private <S extends ShadowType,T> void postProcessEntitlementEntitlementToSubject(ProvisioningContext subjectCtx, final PrismObject<S> resourceObject, 
-			RefinedAssociationDefinition assocDefType, final ProvisioningContext entitlementCtx,
+			RefinedAssociationDefinition assocDefType, final ProvisioningContext entitlementCtx, String intent,
 			ResourceAttributeContainer attributesContainer, final PrismContainer<ShadowAssociationType> associationContainer,
-			OperationResult parentResult) throws SchemaException, CommunicationException, ObjectNotFoundException, ConfigurationException, SecurityViolationException {
+			EntitlementIndex entitlementIndex, OperationResult parentResult) throws SchemaException, CommunicationException, ObjectNotFoundException, ConfigurationException, SecurityViolationException {
 		ResourceType resourceType = subjectCtx.getResource();
 		final QName associationName = assocDefType.getName();
 		final RefinedObjectClassDefinition entitlementDef = entitlementCtx.getObjectClassDefinition();
@@ -249,40 +255,30 @@ class EntitlementConverter {
 			throw new SchemaException("Value attribute "+valueAttrName+" has no more than one value; attribute defined in entitlement association '"+associationName+"' in "+resourceType);
 		}
 		
+		if (entitlementIndex != null && assocDefType.isBulkFetch()) {
+			if (!entitlementIndex.isLoaded(associationName, intent)) {
+				loadEntitlementIndex(subjectCtx, assocDefType, entitlementCtx, intent, assocAttrDef, entitlementIndex, parentResult);
+			}
+			Object normalizedValue = normalizeAssociationValue(assocDefType, assocAttrDef, valueAttr).getValue();
+			for (PrismObject<ShadowType> entitlementShadow : entitlementIndex.get(associationName, intent, normalizedValue)) {
+				// the indexed shadow is shared by all the subjects, each association value gets its own copy
+				addEntitlementToSubjectAssociationValue(resourceObject, associationName, entitlementDef, associationContainer, entitlementShadow.clone());
+			}
+			return;
+		}
+
 		ObjectQuery query = createQuery(assocDefType, assocAttrDef, valueAttr);
 		
 		AttributesToReturn attributesToReturn = ProvisioningUtil.createAttributesToReturn(entitlementCtx);
 		
-		SearchHierarchyConstraints searchHierarchyConstraints = null;
-		ResourceObjectReferenceType baseContextRef = entitlementDef.getBaseContext();
-		if (baseContextRef != null) {
-			// TODO: this should be done once per search. Not in every run of postProcessEntitlementEntitlementToSubject
-			// this has to go outside of this method
-			PrismObject<ShadowType> baseContextShadow = resourceObjectReferenceResolver.resolve(subjectCtx, baseContextRef, 
-					null, "base context specification in "+entitlementDef, parentResult);
-			RefinedObjectClassDefinition baseContextObjectClassDefinition = subjectCtx.getRefinedSchema().determineCompositeObjectClassDefinition(baseContextShadow);
-			ResourceObjectIdentification baseContextIdentification =  ShadowUtil.getResourceObjectIdentification(baseContextShadow, baseContextObjectClassDefinition);
-			searchHierarchyConstraints = new SearchHierarchyConstraints(baseContextIdentification, null);
-		}
+		// TODO: this should be done once per search. Not in every run of postProcessEntitlementEntitlementToSubject
+		SearchHierarchyConstraints searchHierarchyConstraints = determineSearchHierarchyConstraints(subjectCtx, entitlementDef, parentResult);
 		
 		ResultHandler<ShadowType> handler = new ResultHandler<ShadowType>() {
 			@Override
 			public boolean handle(PrismObject<ShadowType> entitlementShadow) {
-				PrismContainerValue<ShadowAssociationType> associationCVal = associationContainer.createNewValue();
-				associationCVal.asContainerable().setName(associationName);
-				Collection<ResourceAttribute<?>> entitlementIdentifiers = ShadowUtil.getIdentifiers(entitlementShadow);
 				try {
-					ResourceAttributeContainer identifiersContainer = new ResourceAttributeContainer(
-							ShadowAssociationType.F_IDENTIFIERS, entitlementDef.toResourceAttributeContainerDefinition(), prismContext);
-					associationCVal.add(identifiersContainer);
-					identifiersContainer.getValue().addAll(ResourceAttribute.cloneCollection(entitlementIdentifiers));
-					
-					// Remember the full shadow in user data. This is used later as an optimization to create the shadow in repo 
-					identifiersContainer.setUserData(ResourceObjectConverter.FULL_SHADOW_KEY, entitlementShadow);
-					if (LOGGER.isTraceEnabled()) {
-						LOGGER.trace("Processed entitlement-to-subject association for account {} and entitlement {}",
-								ShadowUtil.getHumanReadableName(resourceObject), ShadowUtil.getHumanReadableName(entitlementShadow));
-					}
+					addEntitlementToSubjectAssociationValue(resourceObject, associationName, entitlementDef, associationContainer, entitlementShadow);
 				} catch (SchemaException e) {
 					throw new TunnelException(e);
 				}
@@ -308,16 +304,108 @@ class EntitlementConverter {
 		
 	}
 
-    // precondition: valueAttr has exactly one value
-	private <TV,TA> ObjectQuery createQuery(RefinedAssociationDefinition assocDefType, RefinedAttributeDefinition<TA> assocAttrDef, ResourceAttribute<TV> valueAttr) throws SchemaException{
-		MatchingRule<TA> matchingRule = matchingRuleRegistry.getMatchingRule(assocDefType.getResourceObjectAssociationType().getMatchingRule(),
+	private <S extends ShadowType> void addEntitlementToSubjectAssociationValue(PrismObject<S> resourceObject, QName associationName,
+			RefinedObjectClassDefinition entitlementDef, PrismContainer<ShadowAssociationType> associationContainer,
+			PrismObject<ShadowType> entitlementShadow) throws SchemaException {
+		PrismContainerValue<ShadowAssociationType> associationCVal = associationContainer.createNewValue();
+		associationCVal.asContainerable().setName(associationName);
+		Collection<ResourceAttribute<?>> entitlementIdentifiers = ShadowUtil.getIdentifiers(entitlementShadow);
+		ResourceAttributeContainer identifiersContainer = new ResourceAttributeContainer(
+				ShadowAssociationType.F_IDENTIFIERS, entitlementDef.toResourceAttributeContainerDefinition(), prismContext);
+		associationCVal.add(identifiersContainer);
+		identifiersContainer.getValue().addAll(ResourceAttribute.cloneCollection(entitlementIdentifiers));
+		
+		// Remember the full shadow in user data. This is used later as an optimization to create the shadow in repo 
+		identifiersContainer.setUserData(ResourceObjectConverter.FULL_SHADOW_KEY, entitlementShadow);
+		if (LOGGER.isTraceEnabled()) {
+			LOGGER.trace("Processed entitlement-to-subject association for account {} and entitlement {}",
+					ShadowUtil.getHumanReadableName(resourceObject), ShadowUtil.getHumanReadableName(entitlementShadow));
+		}
+	}
+
+	private SearchHierarchyConstraints determineSearchHierarchyConstraints(ProvisioningContext subjectCtx,
+			RefinedObjectClassDefinition entitlementDef, OperationResult parentResult) throws SchemaException, CommunicationException, ObjectNotFoundException, ConfigurationException, SecurityViolationException {
+		ResourceObjectReferenceType baseContextRef = entitlementDef.getBaseContext();
+		if (baseContextRef == null) {
+			return null;
+		}
+		PrismObject<ShadowType> baseContextShadow = resourceObjectReferenceResolver.resolve(subjectCtx, baseContextRef, 
+				null, "base context specification in "+entitlementDef, parentResult);
+		RefinedObjectClassDefinition baseContextObjectClassDefinition = subjectCtx.getRefinedSchema().determineCompositeObjectClassDefinition(baseContextShadow);
+		ResourceObjectIdentification baseContextIdentification =  ShadowUtil.getResourceObjectIdentification(baseContextShadow, baseContextObjectClassDefinition);
+		return new SearchHierarchyConstraints(baseContextIdentification, null);
+	}
+
+	/**
+	 * Fetches all the entitlements of given intent and indexes them by (normalized) values of the association attribute.
+	 */
+	private <TA> void loadEntitlementIndex(ProvisioningContext subjectCtx, RefinedAssociationDefinition assocDefType,
+			ProvisioningContext entitlementCtx, final String intent, final RefinedAttributeDefinition<TA> assocAttrDef,
+			final EntitlementIndex entitlementIndex, OperationResult parentResult) throws SchemaException, CommunicationException, ObjectNotFoundException, ConfigurationException, SecurityViolationException {
+		final QName associationName = assocDefType.getName();
+		RefinedObjectClassDefinition entitlementDef = entitlementCtx.getObjectClassDefinition();
+		final MatchingRule<TA> matchingRule = matchingRuleRegistry.getMatchingRule(assocDefType.getResourceObjectAssociationType().getMatchingRule(),
 				assocAttrDef.getTypeName());
-		PrismPropertyValue<TA> converted = PrismUtil.convertPropertyValue(valueAttr.getValue(0), valueAttr.getDefinition(), assocAttrDef);
-		PrismPropertyValue<TA> normalized = converted;
-		if (matchingRule != null) {
-			TA normalizedRealValue = matchingRule.normalize(converted.getValue());
-			normalized = new PrismPropertyValue<TA>(normalizedRealValue);
+		
+		AttributesToReturn attributesToReturn = ProvisioningUtil.createAttributesToReturn(entitlementCtx);
+		if (!attributesToReturn.isReturnDefaultAttributes() || !assocAttrDef.isReturnedByDefault()) {
+			// the index is built from the association attribute, so we need it even if it is not fetched by default
+			Collection<ResourceAttributeDefinition> explicit = new ArrayList<ResourceAttributeDefinition>();
+			if (attributesToReturn.getAttributesToReturn() != null) {
+				explicit.addAll(attributesToReturn.getAttributesToReturn());
+			}
+			if (!explicit.contains(assocAttrDef)) {
+				explicit.add(assocAttrDef);
+			}
+			attributesToReturn.setAttributesToReturn(explicit);
+		}
+		
+		SearchHierarchyConstraints searchHierarchyConstraints = determineSearchHierarchyConstraints(subjectCtx, entitlementDef, parentResult);
+		
+		final int[] count = new int[1];
+		ResultHandler<ShadowType> handler = new ResultHandler<ShadowType>() {
+			@Override
+			public boolean handle(PrismObject<ShadowType> entitlementShadow) {
+				count[0]++;
+				ResourceAttribute<TA> assocAttr = ShadowUtil.getAttributesContainer(entitlementShadow).findAttribute(assocAttrDef.getName());
+				if (assocAttr == null) {
+					return true;
+				}
+				try {
+					for (PrismPropertyValue<TA> assocAttrPVal : assocAttr.getValues()) {
+						TA value = assocAttrPVal.getValue();
+						if (matchingRule != null) {
+							value = matchingRule.normalize(value);
+						}
+						entitlementIndex.add(associationName, intent, value, entitlementShadow);
+					}
+				} catch (SchemaException e) {
+					throw new TunnelException(e);
+				}
+				return true;
+			}
+		};
+		
+		ConnectorInstance connector = subjectCtx.getConnector(parentResult);
+		try {
+			LOGGER.trace("Fetching all entitlements for association {} (intent {})", associationName, intent);
+			try {
+				connector.search(entitlementDef, null, handler, attributesToReturn, entitlementDef.getPagedSearches(),
+						searchHierarchyConstraints, subjectCtx, parentResult);
+			} catch (GenericFrameworkException e) {
+				throw new GenericConnectorException("Generic error in the connector " + connector + ". Reason: "
+						+ e.getMessage(), e);
+			}
+		} catch (TunnelException e) {
+			throw (SchemaException)e.getCause();
 		}
+		entitlementIndex.markLoaded(associationName, intent);
+		LOGGER.debug("Fetched {} entitlements for association {} (intent {}) in bulk", count[0], associationName, intent);
+	}
+
+    // precondition: valueAttr has exactly one value
+	private <TV,TA> ObjectQuery createQuery(RefinedAssociationDefinition assocDefType, RefinedAttributeDefinition<TA> assocAttrDef, ResourceAttribute<TV> valueAttr) throws SchemaException{
+		PrismPropertyValue<TA> normalized = normalizeAssociationValue(assocDefType, assocAttrDef, valueAttr);
 		LOGGER.trace("Converted entitlement filter: {} ({}) def={}", 
 				new Object[]{normalized, normalized.getValue().getClass(), assocAttrDef});
 		ObjectFilter filter = EqualFilter.createEqual(new ItemPath(ShadowType.F_ATTRIBUTES, assocAttrDef.getName()), assocAttrDef, normalized);
@@ -325,6 +413,19 @@ class EntitlementConverter {
 		query.setAllowPartialResults(true);
 		return query;
 	}
+
+	// precondition: valueAttr has exactly one value
+	private <TV,TA> PrismPropertyValue<TA> normalizeAssociationValue(RefinedAssociationDefinition assocDefType,
+			RefinedAttributeDefinition<TA> assocAttrDef, ResourceAttribute<TV> valueAttr) throws SchemaException {
+		MatchingRule<TA> matchingRule = matchingRuleRegistry.getMatchingRule(assocDefType.getResourceObjectAssociationType().getMatchingRule(),
+				assocAttrDef.getTypeName());
+		PrismPropertyValue<TA> converted = PrismUtil.convertPropertyValue(valueAttr.getValue(0), valueAttr.getDefinition(), assocAttrDef);
+		if (matchingRule == null) {
+			return converted;
+		}
+		TA normalizedRealValue = matchingRule.normalize(converted.getValue());
+		return new PrismPropertyValue<TA>(normalizedRealValue);
+	}
 	
 	//////////
 	// ADD
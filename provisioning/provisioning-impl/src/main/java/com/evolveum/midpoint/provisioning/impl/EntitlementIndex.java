@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.provisioning.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import com.evolveum.midpoint.prism.PrismObject;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ShadowType;
+
+/**
+ * Reverse index of object-to-subject associations: maps (normalized) values of the association attribute
+ * of entitlements (e.g. group members) to the entitlements. It is filled once per search of subjects
+ * by EntitlementConverter, so the associations of the individual subjects can be resolved without
+ * searching the resource for each of them.
+ *
+ * The index lives only as long as the search. It is used from the thread that processes the search results.
+ * The indexed entitlement shadows are shared by all the subjects, so they are copied before they are attached to a subject.
+ *
+ * @author agent
+ */
+class EntitlementIndex {
+
+	private final Map<String, Map<Object, List<PrismObject<ShadowType>>>> associations = new HashMap<>();
+
+	boolean isLoaded(QName associationName, String intent) {
+		return associations.containsKey(key(associationName, intent));
+	}
+
+	void markLoaded(QName associationName, String intent) {
+		String key = key(associationName, intent);
+		if (!associations.containsKey(key)) {
+			associations.put(key, new HashMap<Object, List<PrismObject<ShadowType>>>());
+		}
+	}
+
+	void add(QName associationName, String intent, Object normalizedValue, PrismObject<ShadowType> entitlement) {
+		markLoaded(associationName, intent);
+		Map<Object, List<PrismObject<ShadowType>>> entitlements = associations.get(key(associationName, intent));
+		List<PrismObject<ShadowType>> list = entitlements.get(normalizedValue);
+		if (list == null) {
+			list = new ArrayList<>();
+			entitlements.put(normalizedValue, list);
+		}
+		list.add(entitlement);
+	}
+
+	List<PrismObject<ShadowType>> get(QName associationName, String intent, Object normalizedValue) {
+		Map<Object, List<PrismObject<ShadowType>>> entitlements = associations.get(key(associationName, intent));
+		if (entitlements == null) {
+			return Collections.emptyList();
+		}
+		List<PrismObject<ShadowType>> list = entitlements.get(normalizedValue);
+		return list != null ? list : Collections.<PrismObject<ShadowType>>emptyList();
+	}
+
+	private String key(QName associationName, String intent) {
+		return associationName + "/" + intent;
+	}
+
+	@Override
+	public String toString() {
+		return "EntitlementIndex(" + associations.keySet() + ")";
+	}
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.provisioning.impl;
+
+import com.evolveum.midpoint.common.refinery.RefinedAttributeDefinition;
+import com.evolveum.midpoint.common.refinery.RefinedObjectClassDefinition;
+import com.evolveum.midpoint.prism.Item;
+import com.evolveum.midpoint.prism.PrismContainer;
+import com.evolveum.midpoint.prism.PrismProperty;
+import com.evolveum.midpoint.prism.match.MatchingRule;
+import com.evolveum.midpoint.prism.match.MatchingRuleRegistry;
+import com.evolveum.midpoint.provisioning.ucf.api.Change;
+import com.evolveum.midpoint.provisioning.ucf.api.ChangeHandler;
+import com.evolveum.midpoint.provisioning.ucf.api.GenericFrameworkException;
+import com.evolveum.midpoint.schema.constants.SchemaConstants;
+import com.evolveum.midpoint.schema.processor.ResourceAttribute;
+import com.evolveum.midpoint.schema.result.OperationResult;
+import com.evolveum.midpoint.schema.result.OperationResultStatus;
+import com.evolveum.midpoint.task.api.LightweightTaskHandler;
+import com.evolveum.midpoint.task.api.Task;
+import com.evolveum.midpoint.task.api.TaskManager;
+import com.evolveum.midpoint.util.exception.CommunicationException;
+import com.evolveum.midpoint.util.exception.ConfigurationException;
+import com.evolveum.midpoint.util.exception.ObjectAlreadyExistsException;
+import com.evolveum.midpoint.util.exception.ObjectNotFoundException;
+import com.evolveum.midpoint.util.exception.SchemaException;
+import com.evolveum.midpoint.util.exception.SecurityViolationException;
+import com.evolveum.midpoint.util.exception.SystemException;
+import com.evolveum.midpoint.util.logging.LoggingUtils;
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ShadowType;
+
+import javax.xml.namespace.QName;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Processes live synchronization changes, as they are streamed from the connector, in worker threads
+ * (lightweight subtasks of the live sync task).
+ *
+ * Each change is assigned a sequence number and put into the queue of a worker determined by the change
+ * identifiers (normalized by their matching rules). Therefore all changes of a given resource object are processed
+ * by the same worker, in the order in which they were received. Queues are bounded, so the connector is slowed down if the workers cannot keep up.
+ *
+ * The token is advanced only to the token of the change with the highest sequence number such that all the
+ * changes before it have been processed. Changes whose processing has failed (without an exception) do not
+ * advance the token by themselves, just like in the sequential processing.
+ *
+ * After the first exception, no more changes are accepted nor processed; the exception is then rethrown
+ * by throwProcessingException.
+ *
+ * @author agent
+ */
+class ParallelLiveSyncProcessor implements ChangeHandler<ShadowType> {
+
+	private static final Trace LOGGER = TraceManager.getTrace(ParallelLiveSyncProcessor.class);
+
+	private static final int QUEUE_SIZE_PER_WORKER = 100;
+	private static final long WAIT_INTERVAL = 100;						// milliseconds
+	private static final int SAVE_TOKEN_INTERVAL = 100;					// number of token updates
+
+	private final ShadowCache shadowCache;
+	private final ProvisioningContext ctx;
+	private final Task coordinatorTask;
+	private final TaskManager taskManager;
+	private final MatchingRuleRegistry matchingRuleRegistry;
+	private final int workerThreads;
+
+	private final List<BlockingQueue<SequencedChange>> queues;
+	private final List<OperationResult> workerResults;
+
+	private volatile boolean allChangesSubmitted = false;
+	private volatile Throwable processingException;
+
+	// used only by the fetching (coordinator) thread
+	private long nextSequenceNumber = 0;
+	private int changesReceived = 0;
+	private final Map<QName, RefinedObjectClassDefinition> objectClassDefinitions = new HashMap<>();
+
+	// guarded by this
+	private long firstUncommitted = 0;
+	private final Map<Long, PrismProperty<?>> completed = new HashMap<>();		// sequence number -> token to commit (or null)
+	private int changesProcessed = 0;
+	private int tokenUpdatesSinceSave = 0;
+
+	ParallelLiveSyncProcessor(ShadowCache shadowCache, ProvisioningContext ctx, Task coordinatorTask,
+			TaskManager taskManager, MatchingRuleRegistry matchingRuleRegistry, int workerThreads) {
+		this.shadowCache = shadowCache;
+		this.ctx = ctx;
+		this.coordinatorTask = coordinatorTask;
+		this.taskManager = taskManager;
+		this.matchingRuleRegistry = matchingRuleRegistry;
+		this.workerThreads = workerThreads;
+		this.queues = new ArrayList<>(workerThreads);
+		this.workerResults = new ArrayList<>(workerThreads);
+	}
+
+	void startWorkers() throws SchemaException {
+		for (int i = 0; i < workerThreads; i++) {
+			BlockingQueue<SequencedChange> queue = new ArrayBlockingQueue<>(QUEUE_SIZE_PER_WORKER);
+			queues.add(queue);
+
+			// we intentionally do not put worker specific result under the main operation result until the processing is done
+			OperationResult workerResult = new OperationResult(ShadowCache.class.getName() + ".synchronize.worker");
+			workerResult.addContext("subtask", i);
+			workerResults.add(workerResult);
+
+			Task subtask = coordinatorTask.createSubtask(new Worker(queue, workerResult));
+			subtask.setCategory(coordinatorTask.getCategory());
+			subtask.setChannel(coordinatorTask.getChannel());
+			copyExtension(subtask);
+			subtask.setResult(new OperationResult(ShadowCache.class.getName() + ".synchronize.executeWorker", OperationResultStatus.IN_PROGRESS, null));
+			subtask.setName("Live sync worker " + (i+1) + " of " + workerThreads);
+			subtask.startLightweightHandler();
+			LOGGER.trace("Worker subtask {} created", subtask);
+		}
+	}
+
+	// change processing (e.g. synchronization service in model) may look at e.g. dry run flag or kind/intent in task extension
+	private void copyExtension(Task subtask) throws SchemaException {
+		PrismContainer<?> extension = coordinatorTask.getExtension();
+		if (extension == null || extension.getValue() == null || extension.getValue().getItems() == null) {
+			return;
+		}
+		for (Item<?,?> item : extension.getValue().getItems()) {
+			if (item instanceof PrismProperty && !SchemaConstants.SYNC_TOKEN.equals(item.getElementName())) {
+				subtask.setExtensionProperty((PrismProperty<?>) item);
+			}
+		}
+	}
+
+	@Override
+	public boolean handleChange(Change<ShadowType> change) {
+		if (processingException != null || !coordinatorTask.canRun()) {
+			return false;
+		}
+		long sequenceNumber = nextSequenceNumber++;
+		changesReceived++;
+
+		if (change.isTokenOnly()) {
+			LOGGER.trace("Found token-only change: {}", change);
+			try {
+				markCompleted(sequenceNumber, change.getToken(), false);
+			} catch (Throwable t) {
+				recordException(t);
+				return false;
+			}
+			return true;
+		}
+
+		BlockingQueue<SequencedChange> queue;
+		try {
+			queue = queues.get(getWorkerIndex(change));
+		} catch (Throwable t) {
+			recordException(t);
+			return false;
+		}
+		SequencedChange sequencedChange = new SequencedChange(sequenceNumber, change);
+		try {
+			while (!queue.offer(sequencedChange, WAIT_INTERVAL, TimeUnit.MILLISECONDS)) {
+				if (processingException != null || !coordinatorTask.canRun()) {
+					return false;
+				}
+			}
+		} catch (InterruptedException e) {
+			LOGGER.trace("Interrupted while waiting for a free slot in worker queue", e);
+			return false;
+		}
+		return true;
+	}
+
+	// e.g. changes of "jack" and "JACK" on a case-insensitive resource have to go to the same worker
+	private int getWorkerIndex(Change<ShadowType> change) throws SchemaException, ConfigurationException,
+			ObjectNotFoundException, CommunicationException {
+		int hash = 0;
+		if (change.getIdentifiers() != null) {
+			RefinedObjectClassDefinition objectClassDefinition = getObjectClassDefinition(change);
+			for (ResourceAttribute<?> identifier : change.getIdentifiers()) {
+				MatchingRule<Object> matchingRule = getMatchingRule(identifier, objectClassDefinition);
+				for (Object value : identifier.getRealValues()) {
+					if (value != null && matchingRule != null) {
+						value = matchingRule.normalize(value);
+					}
+					hash += value != null ? value.hashCode() : 0;			// order of identifiers is not important
+				}
+			}
+		}
+		return (hash & Integer.MAX_VALUE) % workerThreads;
+	}
+
+	private RefinedObjectClassDefinition getObjectClassDefinition(Change<ShadowType> change) throws SchemaException,
+			ConfigurationException, ObjectNotFoundException, CommunicationException {
+		if (change.getObjectClassDefinition() == null) {
+			// e.g. a delete change; the definition of the context is used, if there is any
+			return ctx.getObjectClassDefinition();
+		}
+		QName objectClassName = change.getObjectClassDefinition().getTypeName();
+		if (!objectClassDefinitions.containsKey(objectClassName)) {
+			objectClassDefinitions.put(objectClassName, ctx.spawn(objectClassName).getObjectClassDefinition());
+		}
+		return objectClassDefinitions.get(objectClassName);
+	}
+
+	private MatchingRule<Object> getMatchingRule(ResourceAttribute<?> identifier,
+			RefinedObjectClassDefinition objectClassDefinition) throws SchemaException {
+		if (objectClassDefinition == null) {
+			return null;
+		}
+		RefinedAttributeDefinition attrDef = objectClassDefinition.findAttributeDefinition(identifier.getElementName());
+		if (attrDef == null || attrDef.getMatchingRuleQName() == null) {
+			return null;
+		}
+		return matchingRuleRegistry.getMatchingRule(attrDef.getMatchingRuleQName(), attrDef.getTypeName());
+	}
+
+	private synchronized void markCompleted(long sequenceNumber, PrismProperty<?> token, boolean processed)
+			throws SchemaException, ObjectNotFoundException, ObjectAlreadyExistsException {
+		completed.put(sequenceNumber, token);
+		PrismProperty<?> tokenToCommit = null;
+		while (completed.containsKey(firstUncommitted)) {
+			PrismProperty<?> completedToken = completed.remove(firstUncommitted);
+			if (completedToken != null) {
+				tokenToCommit = completedToken;
+			}
+			firstUncommitted++;
+		}
+		if (processed) {
+			changesProcessed++;
+			coordinatorTask.setProgress(coordinatorTask.getProgress()+1);
+		}
+		if (tokenToCommit != null) {
+			LOGGER.trace("Advancing token to {} (all changes up to #{} completed)", tokenToCommit, firstUncommitted-1);
+			coordinatorTask.setExtensionProperty(tokenToCommit);
+			if (++tokenUpdatesSinceSave >= SAVE_TOKEN_INTERVAL) {
+				// so that not too many changes are re-processed if the node crashes
+				coordinatorTask.savePendingModifications(new OperationResult(ParallelLiveSyncProcessor.class.getName() + ".saveToken"));
+				tokenUpdatesSinceSave = 0;
+			}
+		}
+	}
+
+	private void recordException(Throwable t) {
+		synchronized (this) {
+			if (processingException == null) {
+				processingException = t;
+			}
+		}
+	}
+
+	/**
+	 * Waits for workers to process all submitted changes (or to stop because of an error or task suspension).
+	 */
+	void finish(OperationResult result) {
+		allChangesSubmitted = true;
+		taskManager.waitForTransientChildren(coordinatorTask, result);
+		for (OperationResult workerResult : workerResults) {
+			workerResult.computeStatus();
+			workerResult.summarize();
+			result.addSubresult(workerResult);
+		}
+	}
+
+	void throwProcessingException() throws SchemaException, CommunicationException, ConfigurationException,
+			SecurityViolationException, ObjectNotFoundException, ObjectAlreadyExistsException, GenericFrameworkException {
+		Throwable t = processingException;
+		if (t == null) {
+			return;
+		} else if (t instanceof SchemaException) {
+			throw (SchemaException) t;
+		} else if (t instanceof CommunicationException) {
+			throw (CommunicationException) t;
+		} else if (t instanceof ConfigurationException) {
+			throw (ConfigurationException) t;
+		} else if (t instanceof SecurityViolationException) {
+			throw (SecurityViolationException) t;
+		} else if (t instanceof ObjectNotFoundException) {
+			throw (ObjectNotFoundException) t;
+		} else if (t instanceof ObjectAlreadyExistsException) {
+			throw (ObjectAlreadyExistsException) t;
+		} else if (t instanceof GenericFrameworkException) {
+			throw (GenericFrameworkException) t;
+		} else if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		} else if (t instanceof Error) {
+			throw (Error) t;
+		} else {
+			throw new SystemException("Unexpected exception during live sync change processing: " + t.getMessage(), t);
+		}
+	}
+
+	int getChangesReceived() {
+		return changesReceived;
+	}
+
+	synchronized int getChangesProcessed() {
+		return changesProcessed;
+	}
+
+	private class Worker implements LightweightTaskHandler {
+
+		private final BlockingQueue<SequencedChange> queue;
+		private final OperationResult workerResult;
+
+		Worker(BlockingQueue<SequencedChange> queue, OperationResult workerResult) {
+			this.queue = queue;
+			this.workerResult = workerResult;
+		}
+
+		@Override
+		public void run(Task workerTask) {
+			ProvisioningContext workerCtx = ctx.spawnForTask(workerTask, workerResult);
+			try {
+				// loaded once per worker; contexts spawned for individual changes share this copy
+				workerCtx.getResource();
+			} catch (Throwable t) {
+				LoggingUtils.logException(LOGGER, "Couldn't get resource for live sync worker", t);
+				workerResult.recordFatalError("Couldn't get resource: " + t.getMessage(), t);
+				recordException(t);
+				return;
+			}
+			while (workerTask.canRun() && processingException == null) {
+				SequencedChange sequencedChange;
+				try {
+					sequencedChange = queue.poll(WAIT_INTERVAL, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					LOGGER.trace("Interrupted when waiting for next change", e);
+					return;
+				}
+				if (sequencedChange == null) {
+					if (allChangesSubmitted) {
+						LOGGER.trace("Queue is empty and nothing more is expected - exiting");
+						return;
+					}
+					continue;
+				}
+				Change<ShadowType> change = sequencedChange.change;
+				try {
+					boolean processed = shadowCache.processLiveSyncChange(workerCtx, change, workerResult);
+					markCompleted(sequencedChange.sequenceNumber, processed ? change.getToken() : null, processed);
+				} catch (Throwable t) {
+					LoggingUtils.logException(LOGGER, "Couldn't process live sync change {}", t, change);
+					workerResult.recordFatalError("Couldn't process live sync change: " + t.getMessage(), t);
+					recordException(t);
+					return;
+				}
+			}
+		}
+	}
+
+	private static class SequencedChange {
+		private final long sequenceNumber;
+		private final Change<ShadowType> change;
+
+		SequencedChange(long sequenceNumber, Change<ShadowType> change) {
+			this.sequenceNumber = sequenceNumber;
+			this.change = change;
+		}
+	}
+}
@@ -113,6 +113,10 @@ public class ProvisioningContext extends StateReporter {
 		this.useRefinedDefinition = useRefinedDefinition;
 	}
 
+	/**
+	 * Returns the resource of this context. It is looked up (and cloned by the resource cache) only once; the contexts
+	 * spawned for the same task share the instance.
+	 */
 	public ResourceType getResource() throws ObjectNotFoundException, SchemaException, CommunicationException, ConfigurationException {
 		if (resource == null) {
 			if (resourceOid == null) {
@@ -218,8 +222,37 @@ public class ProvisioningContext extends StateReporter {
 //		return ctx;
 //	}
 	
+	/**
+	 * Creates a context for the same resource and object class, to be used in another task (e.g. a worker thread).
+	 * The resource is not shared: the new context gets its own copy from the resource cache when it needs it.
+	 */
+	public ProvisioningContext spawnForTask(Task task) {
+		return spawnForTask(task, parentResult);
+	}
+
+	/**
+	 * Like {@link #spawnForTask(Task)}, but the new context (and contexts spawned from it) record their operations
+	 * into given result. Use this for contexts used by other threads, as operation results are not thread-safe.
+	 */
+	public ProvisioningContext spawnForTask(Task task, OperationResult result) {
+		ProvisioningContext ctx = spawnSameResource(result);
+		// even reading a resource through its JAXB getters may modify it, so it must not be used by two threads
+		ctx.resource = null;
+		ctx.shadowCoordinates = this.shadowCoordinates;
+		ctx.originalShadow = this.originalShadow;
+		ctx.additionalAuxiliaryObjectClassQNames = this.additionalAuxiliaryObjectClassQNames;
+		ctx.useRefinedDefinition = this.useRefinedDefinition;
+		ctx.objectClassDefinition = this.objectClassDefinition;
+		ctx.setTask(task);
+		return ctx;
+	}
+
 	private ProvisioningContext spawnSameResource() {
-		ProvisioningContext ctx = new ProvisioningContext(connectorManager, resourceManager, parentResult);
+		return spawnSameResource(parentResult);
+	}
+
+	private ProvisioningContext spawnSameResource(OperationResult result) {
+		ProvisioningContext ctx = new ProvisioningContext(connectorManager, resourceManager, result);
 		ctx.task = this.task;
 		ctx.resourceOid = this.resourceOid;
 		ctx.resource = this.resource;
@@ -15,43 +15,97 @@
  */
 package com.evolveum.midpoint.provisioning.impl;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.configuration.Configuration;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
-import org.w3c.dom.Element;
 
+import com.evolveum.midpoint.common.configuration.api.MidpointConfiguration;
 import com.evolveum.midpoint.common.refinery.RefinedResourceSchema;
 import com.evolveum.midpoint.prism.PrismContext;
 import com.evolveum.midpoint.prism.PrismObject;
-import com.evolveum.midpoint.prism.schema.PrismSchema;
-import com.evolveum.midpoint.schema.processor.ResourceSchema;
-import com.evolveum.midpoint.schema.util.ObjectTypeUtil;
-import com.evolveum.midpoint.schema.util.ResourceTypeUtil;
+import com.evolveum.midpoint.repo.api.RepositoryService;
+import com.evolveum.midpoint.repo.cache.CacheInvalidationListener;
+import com.evolveum.midpoint.repo.cache.RepositoryCache;
 import com.evolveum.midpoint.util.exception.SchemaException;
-import com.evolveum.midpoint.xml.ns._public.common.common_3.CachingMetadataType;
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ObjectType;
 import com.evolveum.midpoint.xml.ns._public.common.common_3.ResourceType;
-import com.evolveum.midpoint.xml.ns._public.common.common_3.XmlSchemaType;
 
 /**
  * Class for caching ResourceType instances with a parsed schemas.
+ *
+ * The cached instances never leave the cache: each lookup returns a clone, as even reading a resource through
+ * its JAXB getters may add (empty) items to it. Parsed and refined schemas are computed before the resource is
+ * stored, so the clones share them and do not need to parse the schema again. Provisioning operations look the
+ * resource up once per ProvisioningContext (see ProvisioningContext.getResource), not on each use.
+ *
+ * Lookups do not lock. Versions of cached resources are verified against the repository at most once per
+ * versionCheckInterval; changes done on this node are reported by the repository cache and the affected
+ * entries are dropped immediately. So the interval only limits how long a change made by other cluster node
+ * can stay unnoticed.
  * 
  * @author Radovan Semancik
  *
  */
 @Component
-public class ResourceCache {
+public class ResourceCache implements CacheInvalidationListener {
+
+	private static final Trace LOGGER = TraceManager.getTrace(ResourceCache.class);
+
+	public static final String CONFIGURATION_COMPONENT = "midpoint.provisioning";
+	public static final String PROPERTY_VERSION_CHECK_INTERVAL = "resourceCacheVersionCheckInterval";
+	public static final long DEFAULT_VERSION_CHECK_INTERVAL = 1000L;
+
+	private final Map<String, CachedResource> cache = new ConcurrentHashMap<>();
 
-	private Map<String,PrismObject<ResourceType>> cache;
     @Autowired(required = true)
 	private PrismContext prismContext;
 
+	@Autowired(required = true)
+	@Qualifier("cacheRepositoryService")
+	private RepositoryService repositoryService;
+
+	@Autowired(required = false)
+	private MidpointConfiguration midpointConfiguration;
+
+	// zero means that the version is checked on each use
+	private volatile long versionCheckInterval = DEFAULT_VERSION_CHECK_INTERVAL;
+
     ResourceCache() {
-        cache = new HashMap<String, PrismObject<ResourceType>>();
     }
-	
-	public synchronized void put(PrismObject<ResourceType> resource) throws SchemaException {
+
+	@PostConstruct
+	public void init() {
+		if (midpointConfiguration != null) {
+			Configuration configuration = midpointConfiguration.getConfiguration(CONFIGURATION_COMPONENT);
+			versionCheckInterval = configuration.getLong(PROPERTY_VERSION_CHECK_INTERVAL, DEFAULT_VERSION_CHECK_INTERVAL);
+		}
+		if (repositoryService instanceof RepositoryCache) {
+			((RepositoryCache) repositoryService).registerInvalidationListener(this);
+		} else {
+			// we would not learn about the changes
+			LOGGER.warn("Repository service is not a repository cache ({}), resource versions will be checked on each use",
+					repositoryService != null ? repositoryService.getClass().getName() : null);
+			versionCheckInterval = 0;
+		}
+	}
+
+	@PreDestroy
+	public void destroy() {
+		if (repositoryService instanceof RepositoryCache) {
+			((RepositoryCache) repositoryService).unregisterInvalidationListener(this);
+		}
+	}
+
+	public void put(PrismObject<ResourceType> resource) throws SchemaException {
 		String oid = resource.getOid();
 		if (oid == null) {
 			throw new SchemaException("Attempt to cache "+resource+" without an OID");
@@ -62,17 +116,22 @@ public class ResourceCache {
 			throw new SchemaException("Attempt to cache "+resource+" without version");
 		}
 		
-		PrismObject<ResourceType> cachedResource = cache.get(oid);
-		if (cachedResource == null) {
-			cache.put(oid, resource.clone());
-		} else {
-			if (compareVersion(resource.getVersion(), cachedResource.getVersion())) {
-				// We already have equivalent resource, nothing to do
-				return;
-			} else {
-				cache.put(oid, resource.clone());
-			}
+		CachedResource cachedResource = cache.get(oid);
+		if (cachedResource != null && compareVersion(version, cachedResource.version)) {
+			// We already have equivalent resource, nothing to do
+			return;
+		}
+
+		// The schemas are stored in user data; they have to be there before the resource is cached. They are computed
+		// on the original object, so the clone (and the caller) use the same schema instances.
+		try {
+			RefinedResourceSchema.getRefinedSchema(resource, prismContext);
+		} catch (SchemaException|RuntimeException e) {
+			LOGGER.warn("Couldn't parse schema of {}, the resource will not be cached: {}", resource, e.getMessage(), e);
+			return;
 		}
+		// not verified yet: the resource might have been changed since it was read
+		cache.put(oid, new CachedResource(resource.clone(), version));
 	}
 	
 	private boolean compareVersion(String version1, String version2) {
@@ -85,25 +144,39 @@ public class ResourceCache {
 		return version1.equals(version2);
 	}
 
-	public synchronized PrismObject<ResourceType> get(PrismObject<ResourceType> resource) throws SchemaException {
+	public PrismObject<ResourceType> get(PrismObject<ResourceType> resource) throws SchemaException {
 		return get(resource.getOid(), resource.getVersion());
 	}
 	
-	public synchronized PrismObject<ResourceType> get(String oid, String version) throws SchemaException {
+	/**
+	 * Returns a clone of the cached resource, if its version is the requested one. The version should
+	 * be current one, i.e. freshly read from the repository.
+	 */
+	public PrismObject<ResourceType> get(String oid, String version) throws SchemaException {
 		if (oid == null) {
 			return null;
 		}
-		
-		PrismObject<ResourceType> cachedResource = cache.get(oid);
-		if (cachedResource == null) {
+		CachedResource cachedResource = cache.get(oid);
+		if (cachedResource == null || !compareVersion(version, cachedResource.version)) {
 			return null;
 		}
+		cachedResource.lastVerified = System.currentTimeMillis();
+		return cachedResource.resource.clone();
+	}
 
-		if (!compareVersion(version, cachedResource.getVersion())) {
+	/**
+	 * Returns a clone of the cached resource, if its version was verified recently enough (see versionCheckInterval).
+	 * Otherwise returns null and the caller has to get the current version from the repository.
+	 */
+	public PrismObject<ResourceType> getIfRecentlyVerified(String oid) {
+		if (oid == null || versionCheckInterval <= 0) {
 			return null;
 		}
-		
-		return cachedResource.clone();
+		CachedResource cachedResource = cache.get(oid);
+		if (cachedResource == null || System.currentTimeMillis() - cachedResource.lastVerified > versionCheckInterval) {
+			return null;
+		}
+		return cachedResource.resource.clone();
 	}
 	
 	/**
@@ -113,15 +186,46 @@ public class ResourceCache {
 		if (oid == null) {
 			return null;
 		}
-		PrismObject<ResourceType> cachedResource = cache.get(oid);
+		CachedResource cachedResource = cache.get(oid);
 		if (cachedResource == null) {
 			return null;
 		}
-		return cachedResource.getVersion();
+		return cachedResource.version;
 	}
 
 	public void remove(String oid) {
 		cache.remove(oid);
 	}
 
+	@Override
+	public <T extends ObjectType> void invalidate(Class<T> type, String oid) {
+		if (oid != null && (type == null || type.isAssignableFrom(ResourceType.class))) {
+			if (cache.remove(oid) != null) {
+				LOGGER.trace("Resource {} was changed, removed from the cache", oid);
+			}
+		}
+	}
+
+	public long getVersionCheckInterval() {
+		return versionCheckInterval;
+	}
+
+	public void setVersionCheckInterval(long versionCheckInterval) {
+		this.versionCheckInterval = versionCheckInterval;
+	}
+
+	private static class CachedResource {
+
+		// only read (cloned), never returned to the callers
+		private final PrismObject<ResourceType> resource;
+		private final String version;
+		// time of the last successful version check; zero if the version was not checked yet
+		private volatile long lastVerified;
+
+		CachedResource(PrismObject<ResourceType> resource, String version) {
+			this.resource = resource;
+			this.version = version;
+		}
+	}
+
 }
@@ -134,8 +134,13 @@ public class ResourceManager {
 	public PrismObject<ResourceType> getResource(String oid, GetOperationOptions options, OperationResult parentResult) throws ObjectNotFoundException, SchemaException, CommunicationException, ConfigurationException{
 		InternalMonitor.getResourceCacheStats().recordRequest();
 		
-		String version = repositoryService.getVersion(ResourceType.class, oid, parentResult);
-		PrismObject<ResourceType> cachedResource = resourceCache.get(oid, version);
+		// repository is asked for the version only if the cached resource was not verified recently
+		String version = null;
+		PrismObject<ResourceType> cachedResource = resourceCache.getIfRecentlyVerified(oid);
+		if (cachedResource == null) {
+			version = repositoryService.getVersion(ResourceType.class, oid, parentResult);
+			cachedResource = resourceCache.get(oid, version);
+		}
 		if (cachedResource != null) {
 			InternalMonitor.getResourceCacheStats().recordHit();
 			if (LOGGER.isTraceEnabled()){
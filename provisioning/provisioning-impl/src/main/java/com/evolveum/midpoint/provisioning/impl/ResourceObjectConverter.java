@@ -68,6 +68,7 @@ import com.evolveum.midpoint.prism.util.PrismUtil;
 import com.evolveum.midpoint.provisioning.api.GenericConnectorException;
 import com.evolveum.midpoint.provisioning.ucf.api.AttributesToReturn;
 import com.evolveum.midpoint.provisioning.ucf.api.Change;
+import com.evolveum.midpoint.provisioning.ucf.api.ChangeHandler;
 import com.evolveum.midpoint.provisioning.ucf.api.ConnectorInstance;
 import com.evolveum.midpoint.provisioning.ucf.api.ExecuteProvisioningScriptOperation;
 import com.evolveum.midpoint.provisioning.ucf.api.GenericFrameworkException;
@@ -1076,6 +1077,9 @@ public class ResourceObjectConverter {
 			query.getFilter().checkConsistence();
 		}
 
+		// associations that are fetched in bulk are resolved using this index (filled on the first use)
+		final EntitlementIndex entitlementIndex = fetchAssociations ? new EntitlementIndex() : null;
+
 		ResultHandler<ShadowType> innerResultHandler = new ResultHandler<ShadowType>() {
 			@Override
 			public boolean handle(PrismObject<ShadowType> shadow) {
@@ -1083,7 +1087,7 @@ public class ResourceObjectConverter {
 				RepositoryCache.enter();
 				try {
 					try {
-						shadow = postProcessResourceObjectRead(ctx, shadow, fetchAssociations, parentResult);
+						shadow = postProcessResourceObjectRead(ctx, shadow, fetchAssociations, entitlementIndex, parentResult);
 					} catch (SchemaException e) {
 						throw new TunnelException(e);
 					} catch (CommunicationException e) {
@@ -1533,73 +1537,143 @@ public class ResourceObjectConverter {
 		Iterator<Change<ShadowType>> iterator = changes.iterator();
 		while (iterator.hasNext()) {
 			Change<ShadowType> change = iterator.next();
-			LOGGER.trace("Original change:\n{}", change.debugDump());
-			if (change.isTokenOnly()) {
-				continue;
+			if (!preProcessChange(ctx, connector, attrsToReturn, change, parentResult)) {
+				iterator.remove();
 			}
-			ProvisioningContext shadowCtx = ctx;
-			AttributesToReturn shadowAttrsToReturn = attrsToReturn;
-			PrismObject<ShadowType> currentShadow = change.getCurrentShadow();
-			ObjectClassComplexTypeDefinition changeObjectClassDefinition = change.getObjectClassDefinition();
-			if (changeObjectClassDefinition == null) {
-				if (!ctx.isWildcard() || change.getObjectDelta() == null || !change.getObjectDelta().isDelete()) {
-					throw new SchemaException("No object class definition in change "+change);
+		}
+
+		parentResult.recordSuccess();
+		LOGGER.trace("END fetch changes ({} changes)", changes == null ? "null" : changes.size());
+		return changes;
+	}
+
+	/**
+	 * Streaming variant of fetchChanges: each change is pre-processed and passed to the handler as soon
+	 * as it is received from the connector. See ConnectorInstance.fetchChanges.
+	 */
+	public void fetchChanges(final ProvisioningContext ctx, PrismProperty<?> lastToken, final ChangeHandler<ShadowType> handler,
+			final OperationResult parentResult) throws SchemaException,
+			CommunicationException, ConfigurationException, SecurityViolationException, GenericFrameworkException, ObjectNotFoundException {
+		Validate.notNull(parentResult, "Operation result must not be null.");
+
+		LOGGER.trace("START fetch changes (streaming), objectClass: {}", ctx.getObjectClassDefinition());
+		AttributesToReturn attrsToReturnOrNull = null;
+		if (!ctx.isWildcard()) {
+			attrsToReturnOrNull = ProvisioningUtil.createAttributesToReturn(ctx);
+		}
+		final AttributesToReturn attrsToReturn = attrsToReturnOrNull;
+		
+		final ConnectorInstance connector = ctx.getConnector(parentResult);
+
+		final Holder<Exception> exceptionHolder = new Holder<>();
+		ChangeHandler<ShadowType> preProcessingHandler = new ChangeHandler<ShadowType>() {
+			@Override
+			public boolean handleChange(Change<ShadowType> change) {
+				try {
+					if (!preProcessChange(ctx, connector, attrsToReturn, change, parentResult)) {
+						return true;
+					}
+				} catch (SchemaException|CommunicationException|ConfigurationException|SecurityViolationException|ObjectNotFoundException|GenericFrameworkException|RuntimeException e) {
+					exceptionHolder.setValue(e);
+					return false;
 				}
+				return handler.handleChange(change);
 			}
-			if (ctx.isWildcard() && changeObjectClassDefinition != null) {
-				shadowCtx = ctx.spawn(changeObjectClassDefinition.getTypeName());
-				if (shadowCtx.isWildcard()) {
-					String message = "Unkown object class "+changeObjectClassDefinition.getTypeName()+" found in synchronization delta";
-					parentResult.recordFatalError(message);
-					throw new SchemaException(message);
-				}
-				change.setObjectClassDefinition(shadowCtx.getObjectClassDefinition());
-				
-				shadowAttrsToReturn = ProvisioningUtil.createAttributesToReturn(shadowCtx);
+		};
+		connector.fetchChanges(ctx.getObjectClassDefinition(), lastToken, attrsToReturn, preProcessingHandler, ctx, parentResult);
+
+		Exception exception = exceptionHolder.getValue();
+		if (exception != null) {
+			if (exception instanceof SchemaException) {
+				throw (SchemaException) exception;
+			} else if (exception instanceof CommunicationException) {
+				throw (CommunicationException) exception;
+			} else if (exception instanceof ConfigurationException) {
+				throw (ConfigurationException) exception;
+			} else if (exception instanceof SecurityViolationException) {
+				throw (SecurityViolationException) exception;
+			} else if (exception instanceof ObjectNotFoundException) {
+				throw (ObjectNotFoundException) exception;
+			} else if (exception instanceof GenericFrameworkException) {
+				throw (GenericFrameworkException) exception;
+			} else {
+				throw (RuntimeException) exception;
 			}
+		}
+
+		parentResult.recordSuccess();
+		LOGGER.trace("END fetch changes (streaming)");
+	}
+
+	/**
+	 * Completes the change as fetched from the connector: determines the object class and fetches or post-processes
+	 * the current shadow. Returns false if the change should be skipped.
+	 */
+	private boolean preProcessChange(ProvisioningContext ctx, ConnectorInstance connector, AttributesToReturn attrsToReturn,
+			Change<ShadowType> change, OperationResult parentResult) throws SchemaException,
+			CommunicationException, ConfigurationException, SecurityViolationException, ObjectNotFoundException, GenericFrameworkException {
+		LOGGER.trace("Original change:\n{}", change.debugDump());
+		if (change.isTokenOnly()) {
+			return true;
+		}
+		ProvisioningContext shadowCtx = ctx;
+		AttributesToReturn shadowAttrsToReturn = attrsToReturn;
+		PrismObject<ShadowType> currentShadow = change.getCurrentShadow();
+		ObjectClassComplexTypeDefinition changeObjectClassDefinition = change.getObjectClassDefinition();
+		if (changeObjectClassDefinition == null) {
+			if (!ctx.isWildcard() || change.getObjectDelta() == null || !change.getObjectDelta().isDelete()) {
+				throw new SchemaException("No object class definition in change "+change);
+			}
+		}
+		if (ctx.isWildcard() && changeObjectClassDefinition != null) {
+			shadowCtx = ctx.spawn(changeObjectClassDefinition.getTypeName());
+			if (shadowCtx.isWildcard()) {
+				String message = "Unkown object class "+changeObjectClassDefinition.getTypeName()+" found in synchronization delta";
+				parentResult.recordFatalError(message);
+				throw new SchemaException(message);
+			}
+			change.setObjectClassDefinition(shadowCtx.getObjectClassDefinition());
 			
-			if (change.getObjectDelta() == null || !change.getObjectDelta().isDelete()) {
-				if (currentShadow == null) {
-					// There is no current shadow in a change. Add it by fetching it explicitly.
-					try {
-						
-						LOGGER.trace("Re-fetching object {} because it is not in the change", change.getIdentifiers());
-						currentShadow = fetchResourceObject(shadowCtx, 
-								change.getIdentifiers(), shadowAttrsToReturn, true, parentResult);	// todo consider whether it is always necessary to fetch the entitlements
-						change.setCurrentShadow(currentShadow);
-						
-					} catch (ObjectNotFoundException ex) {
-						parentResult.recordHandledError(
-								"Object detected in change log no longer exist on the resource. Skipping processing this object.", ex);
-						LOGGER.warn("Object detected in change log no longer exist on the resource. Skipping processing this object "
-								+ ex.getMessage());
-						// TODO: Maybe change to DELETE instead of this?
-						iterator.remove();
-						continue;
-					}
-				} else {
-					if (ctx.isWildcard()) {
-						if (!MiscUtil.equals(shadowAttrsToReturn, attrsToReturn)) {
-							// re-fetch the shadow if necessary (if attributesToGet does not match)
-							ResourceObjectIdentification identification = new ResourceObjectIdentification(shadowCtx.getObjectClassDefinition(), 
-									change.getIdentifiers(), null);
-							LOGGER.trace("Re-fetching object {} because of attrsToReturn", identification);
-							currentShadow = connector.fetchObject(ShadowType.class, identification, shadowAttrsToReturn, ctx, parentResult);
-						}
-						
+			shadowAttrsToReturn = ProvisioningUtil.createAttributesToReturn(shadowCtx);
+		}
+		
+		if (change.getObjectDelta() == null || !change.getObjectDelta().isDelete()) {
+			if (currentShadow == null) {
+				// There is no current shadow in a change. Add it by fetching it explicitly.
+				try {
+					
+					LOGGER.trace("Re-fetching object {} because it is not in the change", change.getIdentifiers());
+					currentShadow = fetchResourceObject(shadowCtx, 
+							change.getIdentifiers(), shadowAttrsToReturn, true, parentResult);	// todo consider whether it is always necessary to fetch the entitlements
+					change.setCurrentShadow(currentShadow);
+					
+				} catch (ObjectNotFoundException ex) {
+					parentResult.recordHandledError(
+							"Object detected in change log no longer exist on the resource. Skipping processing this object.", ex);
+					LOGGER.warn("Object detected in change log no longer exist on the resource. Skipping processing this object "
+							+ ex.getMessage());
+					// TODO: Maybe change to DELETE instead of this?
+					return false;
+				}
+			} else {
+				if (ctx.isWildcard()) {
+					if (!MiscUtil.equals(shadowAttrsToReturn, attrsToReturn)) {
+						// re-fetch the shadow if necessary (if attributesToGet does not match)
+						ResourceObjectIdentification identification = new ResourceObjectIdentification(shadowCtx.getObjectClassDefinition(), 
+								change.getIdentifiers(), null);
+						LOGGER.trace("Re-fetching object {} because of attrsToReturn", identification);
+						currentShadow = connector.fetchObject(ShadowType.class, identification, shadowAttrsToReturn, ctx, parentResult);
 					}
-							
-					PrismObject<ShadowType> processedCurrentShadow = postProcessResourceObjectRead(shadowCtx,
-							currentShadow, true, parentResult);
-					change.setCurrentShadow(processedCurrentShadow);
+					
 				}
+						
+				PrismObject<ShadowType> processedCurrentShadow = postProcessResourceObjectRead(shadowCtx,
+						currentShadow, true, parentResult);
+				change.setCurrentShadow(processedCurrentShadow);
 			}
-			LOGGER.trace("Processed change\n:{}", change.debugDump());
 		}
-
-		parentResult.recordSuccess();
-		LOGGER.trace("END fetch changes ({} changes)", changes == null ? "null" : changes.size());
-		return changes;
+		LOGGER.trace("Processed change\n:{}", change.debugDump());
+		return true;
 	}
 	
 	/**
@@ -1607,6 +1681,12 @@ public class ResourceObjectConverter {
 	 */
 	private PrismObject<ShadowType> postProcessResourceObjectRead(ProvisioningContext ctx,
 			PrismObject<ShadowType> resourceObject, boolean fetchAssociations,
+            OperationResult parentResult) throws SchemaException, CommunicationException, ObjectNotFoundException, ConfigurationException, SecurityViolationException {
+		return postProcessResourceObjectRead(ctx, resourceObject, fetchAssociations, null, parentResult);
+	}
+
+	private PrismObject<ShadowType> postProcessResourceObjectRead(ProvisioningContext ctx,
+			PrismObject<ShadowType> resourceObject, boolean fetchAssociations, EntitlementIndex entitlementIndex,
             OperationResult parentResult) throws SchemaException, CommunicationException, ObjectNotFoundException, ConfigurationException, SecurityViolationException {
 		ResourceType resourceType = ctx.getResource();
 		ConnectorInstance connector = ctx.getConnector(parentResult);
@@ -1633,7 +1713,7 @@ public class ResourceObjectConverter {
 		
 		// Entitlements
         if (fetchAssociations) {
-            entitlementConverter.postProcessEntitlementsRead(ctx, resourceObject, parentResult);
+            entitlementConverter.postProcessEntitlementsRead(ctx, resourceObject, entitlementIndex, parentResult);
         }
 		
 		return resourceObject;
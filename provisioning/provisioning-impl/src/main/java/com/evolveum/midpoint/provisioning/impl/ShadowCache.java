@@ -17,20 +17,28 @@ package com.evolveum.midpoint.provisioning.impl;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
+import javax.annotation.PostConstruct;
 import javax.xml.namespace.QName;
 
 import com.evolveum.midpoint.prism.Item;
 import com.evolveum.midpoint.schema.util.ObjectQueryUtil;
 
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.Validate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 
 import com.evolveum.midpoint.common.InternalsConfig;
+import com.evolveum.midpoint.common.configuration.api.MidpointConfiguration;
 import com.evolveum.midpoint.common.monitor.InternalMonitor;
 import com.evolveum.midpoint.common.refinery.RefinedAssociationDefinition;
 import com.evolveum.midpoint.common.refinery.RefinedAttributeDefinition;
@@ -183,12 +191,28 @@ public abstract class ShadowCache {
 	@Autowired(required = true)
 	private ProvisioningContextFactory ctxFactory;
 
+	@Autowired(required = false)
+	private MidpointConfiguration midpointConfiguration;
+
 	private static final Trace LOGGER = TraceManager.getTrace(ShadowCache.class);
 
+	public static final String PROPERTY_SHADOW_LOOKUP_BATCH_SIZE = "shadowLookupBatchSize";
+	public static final int DEFAULT_SHADOW_LOOKUP_BATCH_SIZE = 100;
+
+	private int shadowLookupBatchSize = DEFAULT_SHADOW_LOOKUP_BATCH_SIZE;
+
 	public ShadowCache() {
 		repositoryService = null;
 	}
 
+	@PostConstruct
+	public void init() {
+		if (midpointConfiguration != null) {
+			Configuration configuration = midpointConfiguration.getConfiguration(ResourceCache.CONFIGURATION_COMPONENT);
+			setShadowLookupBatchSize(configuration.getInt(PROPERTY_SHADOW_LOOKUP_BATCH_SIZE, DEFAULT_SHADOW_LOOKUP_BATCH_SIZE));
+		}
+	}
+
 	/**
 	 * Get the value of repositoryService.
 	 * 
@@ -731,33 +755,17 @@ public abstract class ShadowCache {
 		
         ObjectQuery attributeQuery = createAttributeQuery(query);
 
+		final ShadowLookupBatch batch = new ShadowLookupBatch(handler, readFromRepository, parentResult);
 		ResultHandler<ShadowType> resultHandler = new ResultHandler<ShadowType>() {
 
 			@Override
 			public boolean handle(PrismObject<ShadowType> resourceShadow) {
 				LOGGER.trace("Found resource object {}", SchemaDebugUtil.prettyPrint(resourceShadow));
-				PrismObject<ShadowType> resultShadow;
 				try {
 					// The shadow does not have any kind or intent at this point. 
 					// But at least locate the definition using object classes.
 					ProvisioningContext estimatedShadowCtx = reapplyDefinitions(ctx, resourceShadow);
-					// Try to find shadow that corresponds to the resource object.
-					if (readFromRepository) {
-						PrismObject<ShadowType> repoShadow = lookupOrCreateShadowInRepository(estimatedShadowCtx, resourceShadow, 
-								true, parentResult); 
-						
-						// This determines the definitions exactly. How the repo shadow should have proper kind/intent
-						ProvisioningContext shadowCtx = applyAttributesDefinition(ctx, repoShadow);
-						
-						repoShadow = shadowManager.updateShadow(shadowCtx, resourceShadow, repoShadow, parentResult);
-
-						resultShadow = completeShadow(shadowCtx, resourceShadow, repoShadow, parentResult);
-
-					} else {
-						resultShadow = resourceShadow;
-					}
-
-					// TODO: better error handling
+					return batch.add(ctx, estimatedShadowCtx, resourceShadow);
 				} catch (SchemaException e) {
 					parentResult.recordFatalError("Schema error: " + e.getMessage(), e);
 					LOGGER.error("Schema error: {}", e.getMessage(), e);
@@ -766,23 +774,242 @@ public abstract class ShadowCache {
 					parentResult.recordFatalError("Configuration error: " + e.getMessage(), e);
 					LOGGER.error("Configuration error: {}", e.getMessage(), e);
 					return false;
-				} catch (ObjectNotFoundException | ObjectAlreadyExistsException | CommunicationException 
-						| SecurityViolationException | GenericConnectorException e) {
+				} catch (ObjectNotFoundException | CommunicationException e) {
 					parentResult.recordFatalError(e.getMessage(), e);
 					LOGGER.error("{}", e.getMessage(), e);
 					return false;
 				}
-				
-				return handler.handle(resultShadow.asObjectable());
 			}
 
 		};
 
         boolean fetchAssociations = SelectorOptions.hasToLoadPath(ShadowType.F_ASSOCIATION, options);
 		
-		return resouceObjectConverter.searchResourceObjects(ctx, resultHandler,
+		SearchResultMetadata resultMetadata = resouceObjectConverter.searchResourceObjects(ctx, resultHandler,
                 attributeQuery, fetchAssociations, parentResult);
-		
+		batch.flush();
+		return resultMetadata;
+	}
+
+	/**
+	 * Buffers the resource objects coming from the connector so the corresponding
+	 * repository shadows can be looked up by a single repository search instead of
+	 * one search per object. The objects are passed to the handler in the same
+	 * order as they came from the resource.
+	 */
+	private class ShadowLookupBatch {
+
+		private final ShadowHandler<ShadowType> handler;
+		private final boolean readFromRepository;
+		private final OperationResult parentResult;
+		private final List<ProvisioningContext> searchCtxs = new ArrayList<>();
+		private final List<ProvisioningContext> shadowCtxs = new ArrayList<>();
+		private final List<PrismObject<ShadowType>> resourceShadows = new ArrayList<>();
+		// shadows created while processing the current batch, by lookup key and normalized identifiers
+		private final Map<ShadowLookupKey, Map<Map<QName, List<Object>>, PrismObject<ShadowType>>> createdShadows = new HashMap<>();
+		private boolean stopped = false;
+
+		ShadowLookupBatch(ShadowHandler<ShadowType> handler, boolean readFromRepository, OperationResult parentResult) {
+			this.handler = handler;
+			this.readFromRepository = readFromRepository;
+			this.parentResult = parentResult;
+		}
+
+		boolean add(ProvisioningContext searchCtx, ProvisioningContext shadowCtx, PrismObject<ShadowType> resourceShadow) {
+			if (stopped) {
+				return false;
+			}
+			searchCtxs.add(searchCtx);
+			shadowCtxs.add(shadowCtx);
+			resourceShadows.add(resourceShadow);
+			if (readFromRepository && resourceShadows.size() < shadowLookupBatchSize) {
+				return true;
+			}
+			return flush();
+		}
+
+		/**
+		 * Resolves the repository shadows for all the buffered objects and passes them to the handler.
+		 * Returns false if the processing should stop.
+		 */
+		boolean flush() {
+			if (resourceShadows.isEmpty()) {
+				return !stopped;
+			}
+			try {
+				List<PrismObject<ShadowType>> repoShadows = null;
+				if (readFromRepository) {
+					repoShadows = lookupShadowsInRepository();
+				}
+				for (int i = 0; i < resourceShadows.size() && !stopped; i++) {
+					PrismObject<ShadowType> resultShadow = resourceShadows.get(i);
+					if (readFromRepository) {
+						resultShadow = completeSearchedShadow(searchCtxs.get(i), shadowCtxs.get(i), resultShadow,
+								repoShadows.get(i));
+					}
+					if (!handler.handle(resultShadow.asObjectable())) {
+						stopped = true;
+					}
+				}
+			// TODO: better error handling
+			} catch (SchemaException e) {
+				parentResult.recordFatalError("Schema error: " + e.getMessage(), e);
+				LOGGER.error("Schema error: {}", e.getMessage(), e);
+				stopped = true;
+			} catch (ConfigurationException e) {
+				parentResult.recordFatalError("Configuration error: " + e.getMessage(), e);
+				LOGGER.error("Configuration error: {}", e.getMessage(), e);
+				stopped = true;
+			} catch (ObjectNotFoundException | ObjectAlreadyExistsException | CommunicationException 
+					| SecurityViolationException | GenericConnectorException e) {
+				parentResult.recordFatalError(e.getMessage(), e);
+				LOGGER.error("{}", e.getMessage(), e);
+				stopped = true;
+			} finally {
+				searchCtxs.clear();
+				shadowCtxs.clear();
+				resourceShadows.clear();
+				createdShadows.clear();
+			}
+			return !stopped;
+		}
+
+		private List<PrismObject<ShadowType>> lookupShadowsInRepository() throws SchemaException, ConfigurationException,
+				ObjectNotFoundException, CommunicationException {
+			// Objects of the same resource and object class can be looked up together. Each object gets its own
+			// (estimated) context, so the contexts are grouped by what they point to, not by the instances.
+			Map<ShadowLookupKey, List<Integer>> positions = new LinkedHashMap<>();
+			for (int i = 0; i < shadowCtxs.size(); i++) {
+				ShadowLookupKey key = new ShadowLookupKey(shadowCtxs.get(i));
+				List<Integer> keyPositions = positions.get(key);
+				if (keyPositions == null) {
+					keyPositions = new ArrayList<>();
+					positions.put(key, keyPositions);
+				}
+				keyPositions.add(i);
+			}
+			List<PrismObject<ShadowType>> repoShadows = new ArrayList<>(Collections.<PrismObject<ShadowType>>nCopies(resourceShadows.size(), null));
+			for (List<Integer> keyPositions : positions.values()) {
+				List<PrismObject<ShadowType>> keyResourceShadows = new ArrayList<>(keyPositions.size());
+				for (Integer i : keyPositions) {
+					keyResourceShadows.add(resourceShadows.get(i));
+				}
+				// all the contexts in the group are equivalent for the lookup
+				ProvisioningContext lookupCtx = shadowCtxs.get(keyPositions.get(0));
+				List<PrismObject<ShadowType>> keyRepoShadows = shadowManager.lookupShadowsInRepository(lookupCtx,
+						keyResourceShadows, parentResult);
+				for (int j = 0; j < keyRepoShadows.size(); j++) {
+					repoShadows.set(keyPositions.get(j), keyRepoShadows.get(j));
+				}
+			}
+			return repoShadows;
+		}
+
+		private PrismObject<ShadowType> completeSearchedShadow(ProvisioningContext ctx, ProvisioningContext estimatedShadowCtx,
+				PrismObject<ShadowType> resourceShadow, PrismObject<ShadowType> repoShadow)
+						throws SchemaException, ConfigurationException, ObjectNotFoundException, CommunicationException,
+						SecurityViolationException, GenericConnectorException, ObjectAlreadyExistsException {
+			if (repoShadow == null) {
+				// The batch lookup has already searched the repository, so the shadow only needs to be created.
+				// It may have been created for the same object earlier in this batch (e.g. if the resource
+				// returned the object twice).
+				repoShadow = findOrCreateShadowInBatch(estimatedShadowCtx, resourceShadow);
+			} else if (LOGGER.isTraceEnabled()) {
+				LOGGER.trace("Found shadow object in the repository {}", SchemaDebugUtil.prettyPrint(repoShadow));
+			}
+
+			// This determines the definitions exactly. How the repo shadow should have proper kind/intent
+			ProvisioningContext shadowCtx = applyAttributesDefinition(ctx, repoShadow);
+
+			repoShadow = shadowManager.updateShadow(shadowCtx, resourceShadow, repoShadow, parentResult);
+
+			return completeShadow(shadowCtx, resourceShadow, repoShadow, parentResult);
+		}
+
+		private PrismObject<ShadowType> findOrCreateShadowInBatch(ProvisioningContext estimatedShadowCtx,
+				PrismObject<ShadowType> resourceShadow) throws SchemaException, ConfigurationException,
+						ObjectNotFoundException, CommunicationException, SecurityViolationException, GenericConnectorException {
+			Map<QName, List<Object>> identifiers = shadowManager.getNormalizedIdentifierValues(estimatedShadowCtx, resourceShadow);
+			if (identifiers == null) {
+				return createShadowInRepository(estimatedShadowCtx, resourceShadow, true, parentResult);
+			}
+			ShadowLookupKey key = new ShadowLookupKey(estimatedShadowCtx);
+			Map<Map<QName, List<Object>>, PrismObject<ShadowType>> keyShadows = createdShadows.get(key);
+			if (keyShadows == null) {
+				keyShadows = new HashMap<>();
+				createdShadows.put(key, keyShadows);
+			}
+			PrismObject<ShadowType> createdShadow = keyShadows.get(identifiers);
+			if (createdShadow != null) {
+				if (LOGGER.isTraceEnabled()) {
+					LOGGER.trace("Shadow was created earlier in this batch {}", SchemaDebugUtil.prettyPrint(createdShadow));
+				}
+				return createdShadow.clone();
+			}
+			if (LOGGER.isTraceEnabled()) {
+				LOGGER.trace(
+						"Shadow object (in repo) corresponding to the resource object (on the resource) was not found. The repo shadow will be created. The resource object:\n{}",
+						SchemaDebugUtil.prettyPrint(resourceShadow));
+			}
+			PrismObject<ShadowType> repoShadow = createShadowInRepository(estimatedShadowCtx, resourceShadow, true, parentResult);
+			keyShadows.put(identifiers, repoShadow.clone());
+			return repoShadow;
+		}
+	}
+
+	/**
+	 * Identifies the contexts that can share a repository lookup: the same resource and the same object class
+	 * definition (the definition determines the normalization of the identifiers).
+	 */
+	private static final class ShadowLookupKey {
+
+		private final String resourceOid;
+		private final QName objectClassName;
+		private final ShadowKindType kind;
+		private final String intent;
+
+		private ShadowLookupKey(ProvisioningContext ctx) throws SchemaException, ConfigurationException,
+				ObjectNotFoundException, CommunicationException {
+			RefinedObjectClassDefinition objectClassDefinition = ctx.getObjectClassDefinition();
+			this.resourceOid = ctx.getResource().getOid();
+			this.objectClassName = objectClassDefinition != null ? objectClassDefinition.getTypeName() : null;
+			this.kind = objectClassDefinition != null ? objectClassDefinition.getKind() : null;
+			this.intent = objectClassDefinition != null ? objectClassDefinition.getIntent() : null;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+			ShadowLookupKey that = (ShadowLookupKey) o;
+			return ObjectUtils.equals(resourceOid, that.resourceOid)
+					&& ObjectUtils.equals(objectClassName, that.objectClassName)
+					&& kind == that.kind
+					&& ObjectUtils.equals(intent, that.intent);
+		}
+
+		@Override
+		public int hashCode() {
+			int result = resourceOid != null ? resourceOid.hashCode() : 0;
+			result = 31 * result + (objectClassName != null ? objectClassName.hashCode() : 0);
+			result = 31 * result + (kind != null ? kind.hashCode() : 0);
+			result = 31 * result + (intent != null ? intent.hashCode() : 0);
+			return result;
+		}
+	}
+
+	public int getShadowLookupBatchSize() {
+		return shadowLookupBatchSize;
+	}
+
+	/**
+	 * Sets the number of resource objects whose repository shadows are looked up
+	 * by a single repository search. Value of 1 means that the shadows are looked up
+	 * one by one.
+	 */
+	public void setShadowLookupBatchSize(int shadowLookupBatchSize) {
+		Validate.isTrue(shadowLookupBatchSize > 0, "Shadow lookup batch size must be positive");
+		this.shadowLookupBatchSize = shadowLookupBatchSize;
 	}
 
     ObjectQuery createAttributeQuery(ObjectQuery query) throws SchemaException {
@@ -1085,6 +1312,11 @@ public abstract class ShadowCache {
 		List<Change<ShadowType>> changes = null;
 		try {
 
+			Integer workerThreads = getWorkerThreads(task);
+			if (workerThreads != null && workerThreads > 0) {
+				return synchronizeInParallel(ctx, lastToken, workerThreads, task, parentResult);
+			}
+
 			changes = resouceObjectConverter.fetchChanges(ctx, lastToken, parentResult);
 
 			LOGGER.trace("Found {} change(s). Start processing it (them).", changes.size());
@@ -1098,48 +1330,8 @@ public abstract class ShadowCache {
 					task.setExtensionProperty(change.getToken());
 					continue;
 				}
-				
-				ObjectClassComplexTypeDefinition changeObjectClassDefinition = change.getObjectClassDefinition();
-				
-				ProvisioningContext shadowCtx;
-				PrismObject<ShadowType> oldShadow = null;
-				if (changeObjectClassDefinition == null) {
-					if (change.getObjectDelta() != null && change.getObjectDelta().isDelete()) {				
-						oldShadow = change.getOldShadow();
-						if (oldShadow == null) {
-							oldShadow = shadowManager.findOrAddShadowFromChangeGlobalContext(ctx, change, parentResult);
-						}
-						if (oldShadow == null) {
-							LOGGER.debug("No old shadow for delete synchronization event {}, we probably did not know about that object anyway, so well be ignoring this event", change);
-							continue;
-						}
-						shadowCtx = ctx.spawn(oldShadow);
-					} else {
-						throw new SchemaException("No object class definition in change " + change);
-					}
-				} else {
-					shadowCtx = ctx.spawn(changeObjectClassDefinition.getTypeName());
-				}
-				
-				processChange(shadowCtx, change, oldShadow, parentResult);
-				
-				// this is the case,when we want to skip processing of change,
-				// because the shadow was not created or found to the resource
-				// object
-				// it may be caused with the fact, that the object which was
-				// created in the resource was deleted before the sync run
-				// such a change should be skipped to process consistent changes
-				if (change.getOldShadow() == null) {
-					PrismProperty<?> newToken = change.getToken();
-					task.setExtensionProperty(newToken);
-					processedChanges++;
-					task.setProgress(task.getProgress()+1);		// because processedChanges are reflected into task only at task run finish
-					LOGGER.debug("Skipping processing change. Can't find appropriate shadow (e.g. the object was deleted on the resource meantime).");
-					continue;
-				}
-				boolean isSuccess = processSynchronization(shadowCtx, change, parentResult);
 
-				if (isSuccess) {
+				if (processLiveSyncChange(ctx, change, parentResult)) {
 //					// get updated token from change,
 //					// create property modification from new token
 //					// and replace old token with the new one
@@ -1179,6 +1371,87 @@ public abstract class ShadowCache {
 		}
 	}
 	
+	/**
+	 * Live synchronization with changes streamed from the connector and processed by worker threads.
+	 *
+	 * Changes are partitioned among workers by their identifiers, so changes of the same resource object are
+	 * always processed in the order in which they were received. The token is advanced only to the last change
+	 * such that all the changes before it were processed; so if the processing is interrupted, no change is lost.
+	 */
+	private int synchronizeInParallel(ProvisioningContext ctx, PrismProperty<?> lastToken, int workerThreads,
+			Task task, OperationResult parentResult) throws ObjectNotFoundException, CommunicationException,
+			GenericFrameworkException, SchemaException, ConfigurationException, SecurityViolationException,
+			ObjectAlreadyExistsException {
+
+		ParallelLiveSyncProcessor processor = new ParallelLiveSyncProcessor(this, ctx, task, taskManager, matchingRuleRegistry, workerThreads);
+		processor.startWorkers();
+		boolean fetched = false;
+		try {
+			resouceObjectConverter.fetchChanges(ctx, lastToken, processor, parentResult);
+			fetched = true;
+		} finally {
+			// we must wait for workers even if fetching failed, not to leave them running (and modifying the task)
+			processor.finish(parentResult);
+		}
+		processor.throwProcessingException();
+
+		if (fetched && processor.getChangesReceived() == 0 && lastToken != null) {
+			LOGGER.trace("No changes to synchronize on " + ctx.getResource());
+			task.setExtensionProperty(lastToken);
+		}
+		task.savePendingModifications(parentResult);
+		return processor.getChangesProcessed();
+	}
+
+	private Integer getWorkerThreads(Task task) {
+		PrismProperty<Integer> workerThreadsProperty = task.getExtensionProperty(SchemaConstants.MODEL_EXTENSION_WORKER_THREADS);
+		return workerThreadsProperty != null ? workerThreadsProperty.getRealValue() : null;
+	}
+
+	/**
+	 * Processes a single (non-token-only) change. Returns true if the change was processed and the token can be advanced.
+	 */
+	boolean processLiveSyncChange(ProvisioningContext ctx, Change<ShadowType> change, OperationResult parentResult)
+			throws SchemaException, CommunicationException, ConfigurationException, SecurityViolationException,
+			ObjectNotFoundException, ObjectAlreadyExistsException {
+
+		ObjectClassComplexTypeDefinition changeObjectClassDefinition = change.getObjectClassDefinition();
+
+		ProvisioningContext shadowCtx;
+		PrismObject<ShadowType> oldShadow = null;
+		if (changeObjectClassDefinition == null) {
+			if (change.getObjectDelta() != null && change.getObjectDelta().isDelete()) {				
+				oldShadow = change.getOldShadow();
+				if (oldShadow == null) {
+					oldShadow = shadowManager.findOrAddShadowFromChangeGlobalContext(ctx, change, parentResult);
+				}
+				if (oldShadow == null) {
+					LOGGER.debug("No old shadow for delete synchronization event {}, we probably did not know about that object anyway, so well be ignoring this event", change);
+					return false;
+				}
+				shadowCtx = ctx.spawn(oldShadow);
+			} else {
+				throw new SchemaException("No object class definition in change " + change);
+			}
+		} else {
+			shadowCtx = ctx.spawn(changeObjectClassDefinition.getTypeName());
+		}
+		
+		processChange(shadowCtx, change, oldShadow, parentResult);
+		
+		// this is the case,when we want to skip processing of change,
+		// because the shadow was not created or found to the resource
+		// object
+		// it may be caused with the fact, that the object which was
+		// created in the resource was deleted before the sync run
+		// such a change should be skipped to process consistent changes
+		if (change.getOldShadow() == null) {
+			LOGGER.debug("Skipping processing change. Can't find appropriate shadow (e.g. the object was deleted on the resource meantime).");
+			return true;
+		}
+		return processSynchronization(shadowCtx, change, parentResult);
+	}
+	
 	@SuppressWarnings("rawtypes") 
 	boolean processSynchronization(ProvisioningContext ctx, Change<ShadowType> change, OperationResult result) throws SchemaException, ObjectNotFoundException,
 			ObjectAlreadyExistsException, CommunicationException, ConfigurationException {
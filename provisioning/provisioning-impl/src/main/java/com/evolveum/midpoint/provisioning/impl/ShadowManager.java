@@ -19,8 +19,10 @@ package com.evolveum.midpoint.provisioning.impl;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import javax.xml.namespace.QName;
 
@@ -31,6 +33,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
+import com.evolveum.midpoint.common.monitor.InternalMonitor;
 import com.evolveum.midpoint.common.refinery.RefinedAssociationDefinition;
 import com.evolveum.midpoint.common.refinery.RefinedAttributeDefinition;
 import com.evolveum.midpoint.common.refinery.RefinedObjectClassDefinition;
@@ -171,6 +174,7 @@ public class ShadowManager {
 //		PagingType paging = new PagingType();
 
 		// TODO: check for errors
+		 InternalMonitor.recordShadowRepositoryLookup();
 		 List<PrismObject<ShadowType>> results = repositoryService.searchObjects(ShadowType.class, query, null, parentResult);
 		 MiscSchemaUtil.reduceSearchResult(results);
 
@@ -231,7 +235,137 @@ public class ShadowManager {
 		return shadow;
 	}
 
-	public PrismObject<ShadowType> lookupShadowBySecondaryIdentifiers( 
+	/**
+	 * Locates the shadows in repository that correspond to the provided resource objects.
+	 * All the resource objects must belong to the same provisioning context (object class).
+	 * The lookup is done by a single repository search for all the objects that have
+	 * a simple (single-valued) primary identifier. Objects with composite identifiers
+	 * are looked up one by one.
+	 *
+	 * @return list of shadows in the same order as the resource objects. The list contains
+	 *         null on the positions where no shadow was found.
+	 */
+	public List<PrismObject<ShadowType>> lookupShadowsInRepository(ProvisioningContext ctx,
+			List<PrismObject<ShadowType>> resourceShadows, OperationResult parentResult)
+					throws SchemaException, ConfigurationException, ObjectNotFoundException, CommunicationException {
+
+		List<PrismObject<ShadowType>> shadows = new ArrayList<>(resourceShadows.size());
+		if (resourceShadows.size() == 1) {
+			shadows.add(lookupShadowInRepository(ctx, resourceShadows.get(0), parentResult));
+			return shadows;
+		}
+
+		PrismPropertyDefinition identifierDef = null;
+		List<Object> normalizedValues = new ArrayList<>(resourceShadows.size());
+		List<ObjectFilter> identifierFilters = new ArrayList<>();
+		for (PrismObject<ShadowType> resourceShadow : resourceShadows) {
+			shadows.add(null);
+			Collection<ResourceAttribute<?>> identifiers = ShadowUtil.getAttributesContainer(resourceShadow).getIdentifiers();
+			if (identifiers.size() != 1) {
+				normalizedValues.add(null);
+				continue;
+			}
+			ResourceAttribute<?> identifier = identifiers.iterator().next();
+			if (identifier.size() != 1 || identifier.getDefinition() == null
+					|| (identifierDef != null && !identifierDef.getName().equals(identifier.getElementName()))) {
+				normalizedValues.add(null);
+				continue;
+			}
+			identifierDef = identifier.getDefinition();
+			PrismPropertyValue normalized = getNormalizedValue(identifier, ctx.getObjectClassDefinition()).get(0);
+			normalizedValues.add(normalized.getValue());
+			identifierFilters.add(EqualFilter.createEqual(new ItemPath(ShadowType.F_ATTRIBUTES, identifierDef.getName()),
+					identifierDef, normalized));
+		}
+
+		Map<Object, PrismObject<ShadowType>> shadowMap = new HashMap<>();
+		if (!identifierFilters.isEmpty()) {
+			ObjectFilter identifierFilter = identifierFilters.size() > 1 ? OrFilter.createOr(identifierFilters) : identifierFilters.get(0);
+			ObjectQuery query = ObjectQuery.createObjectQuery(AndFilter.createAnd(
+					RefFilter.createReferenceEqual(ShadowType.F_RESOURCE_REF, ShadowType.class, ctx.getResource()),
+					identifierFilter));
+			if (LOGGER.isTraceEnabled()) {
+				LOGGER.trace("Searching for {} shadows using filter:\n{}", identifierFilters.size(), query.debugDump());
+			}
+
+			InternalMonitor.recordShadowRepositoryLookup();
+			List<PrismObject<ShadowType>> results = repositoryService.searchObjects(ShadowType.class, query, null, parentResult);
+			MiscSchemaUtil.reduceSearchResult(results);
+			LOGGER.trace("lookupShadows found {} objects for {} resource objects", results.size(), identifierFilters.size());
+
+			for (PrismObject<ShadowType> shadow : results) {
+				Object identifierValue = getRepoIdentifierValue(shadow, identifierDef);
+				if (identifierValue == null) {
+					continue;
+				}
+				PrismObject<ShadowType> existing = shadowMap.put(identifierValue, shadow);
+				if (existing != null) {
+					LOGGER.error("More than one shadow found for identifier {}", identifierValue);
+					if (LOGGER.isDebugEnabled()) {
+						LOGGER.debug("Conflicting shadows:\n{}\n{}", existing.debugDump(), shadow.debugDump());
+					}
+					// TODO: Better error handling later
+					throw new IllegalStateException("More than one shadow found for identifier " + identifierValue);
+				}
+			}
+		}
+
+		for (int i = 0; i < resourceShadows.size(); i++) {
+			Object normalizedValue = normalizedValues.get(i);
+			PrismObject<ShadowType> shadow;
+			if (normalizedValue == null) {
+				shadow = lookupShadowInRepository(ctx, resourceShadows.get(i), parentResult);
+			} else {
+				shadow = shadowMap.get(normalizedValue);
+				if (shadow != null) {
+					checkConsistency(shadow);
+				}
+			}
+			shadows.set(i, shadow);
+		}
+		return shadows;
+	}
+
+	private Object getRepoIdentifierValue(PrismObject<ShadowType> repoShadow, PrismPropertyDefinition identifierDef) throws SchemaException {
+		PrismProperty<?> identifier = repoShadow.findProperty(new ItemPath(ShadowType.F_ATTRIBUTES, identifierDef.getName()));
+		if (identifier == null || identifier.isEmpty()) {
+			return null;
+		}
+		if (identifier.getDefinition() == null) {
+			identifier = identifier.clone();
+			identifier.applyDefinition(identifierDef);
+		}
+		return identifier.getRealValue();
+	}
+
+	/**
+	 * Returns the normalized values of the primary identifiers of a resource object, by identifier name.
+	 * Resource objects with equal values correspond to the same repository shadow. Returns null if the
+	 * identifiers cannot be determined.
+	 */
+	public Map<QName, List<Object>> getNormalizedIdentifierValues(ProvisioningContext ctx,
+			PrismObject<ShadowType> resourceShadow) throws SchemaException, ConfigurationException,
+					ObjectNotFoundException, CommunicationException {
+		RefinedObjectClassDefinition objectClassDefinition = ctx.getObjectClassDefinition();
+		Collection<ResourceAttribute<?>> identifiers = ShadowUtil.getAttributesContainer(resourceShadow).getIdentifiers();
+		if (objectClassDefinition == null || identifiers.isEmpty()) {
+			return null;
+		}
+		Map<QName, List<Object>> values = new HashMap<>();
+		for (ResourceAttribute<?> identifier : identifiers) {
+			if (objectClassDefinition.findAttributeDefinition(identifier.getElementName()) == null) {
+				return null;
+			}
+			List<Object> identifierValues = new ArrayList<>();
+			for (PrismPropertyValue<?> normalized : getNormalizedValue(identifier, objectClassDefinition)) {
+				identifierValues.add(normalized.getValue());
+			}
+			values.put(identifier.getElementName(), identifierValues);
+		}
+		return values;
+	}
+
+	public PrismObject<ShadowType> lookupShadowBySecondaryIdentifiers(
 			ProvisioningContext ctx, PrismObject<ShadowType> resourceShadow, OperationResult parentResult) 
 					throws SchemaException, ConfigurationException, ObjectNotFoundException, CommunicationException {
 
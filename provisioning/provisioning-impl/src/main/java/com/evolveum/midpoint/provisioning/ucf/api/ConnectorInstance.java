@@ -300,6 +300,16 @@ public interface ConnectorInstance {
 	 */
 	public <T extends ShadowType> List<Change<T>> fetchChanges(ObjectClassComplexTypeDefinition objectClass, PrismProperty<?> lastToken, AttributesToReturn attrsToReturn, StateReporter reporter,
 															   OperationResult parentResult) throws CommunicationException, GenericFrameworkException, SchemaException, ConfigurationException;
+
+	/**
+	 * Streaming variant of fetchChanges: changes are passed to the handler as they are received from the resource,
+	 * instead of being collected into a list. If the connector provides the latest token, it is passed
+	 * as the last (token-only) change. Fetching stops when the handler returns false; in that case
+	 * the latest token is not passed.
+	 */
+	public <T extends ShadowType> void fetchChanges(ObjectClassComplexTypeDefinition objectClass, PrismProperty<?> lastToken, AttributesToReturn attrsToReturn,
+													ChangeHandler<T> handler, StateReporter reporter, OperationResult parentResult)
+			throws CommunicationException, GenericFrameworkException, SchemaException, ConfigurationException;
 	
 	//public ValidationResult validateConfiguration(ResourceConfiguration newConfiguration);
 	
@@ -32,6 +32,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
@@ -146,6 +147,11 @@ public class ConnectorFactoryIcfImpl implements ConnectorFactory {
 			CONNECTOR_SCHEMA_PRODUCER_BUFFER_SIZE_XML_ELEMENT_NAME);
 	public static final QName CONNECTOR_SCHEMA_PRODUCER_BUFFER_SIZE_TYPE = DOMUtil.XSD_INT;
 	
+	public static final String CONNECTOR_SCHEMA_SEARCH_READ_AHEAD_BUFFER_SIZE_XML_ELEMENT_NAME = "searchReadAheadBufferSize";
+	public static final QName CONNECTOR_SCHEMA_SEARCH_READ_AHEAD_BUFFER_SIZE_ELEMENT = new QName(NS_ICF_CONFIGURATION,
+			CONNECTOR_SCHEMA_SEARCH_READ_AHEAD_BUFFER_SIZE_XML_ELEMENT_NAME);
+	public static final QName CONNECTOR_SCHEMA_SEARCH_READ_AHEAD_BUFFER_SIZE_TYPE = DOMUtil.XSD_INT;
+
 	public static final String CONNECTOR_SCHEMA_LEGACY_SCHEMA_XML_ELEMENT_NAME = "legacySchema";
 	public static final QName CONNECTOR_SCHEMA_LEGACY_SCHEMA_ELEMENT = new QName(NS_ICF_CONFIGURATION,
 			CONNECTOR_SCHEMA_LEGACY_SCHEMA_XML_ELEMENT_NAME);
@@ -186,6 +192,8 @@ public class ConnectorFactoryIcfImpl implements ConnectorFactory {
 	private ConnectorInfoManager localConnectorInfoManager;
 	private Set<URL> bundleURLs;
 	private Set<ConnectorType> localConnectorTypes = null;
+	// connector threads of read-ahead searches (see ReadAheadSearch)
+	private ExecutorService searchReadAheadExecutor;
 	
 	@Autowired(required = true)
 	private MidpointConfiguration midpointConfiguration;
@@ -231,6 +239,7 @@ public class ConnectorFactoryIcfImpl implements ConnectorFactory {
 
 		connectorInfoManagerFactory = ConnectorInfoManagerFactory.getInstance();
 
+		searchReadAheadExecutor = ReadAheadSearch.createExecutor();
 	}
 
 	/**
@@ -267,6 +276,7 @@ public class ConnectorFactoryIcfImpl implements ConnectorFactory {
 		ConnectorInstanceIcfImpl connectorImpl = new ConnectorInstanceIcfImpl(cinfo, connectorType, namespace,
 				connectorSchema, protector, prismContext);
 		connectorImpl.setDescription(desc);
+		connectorImpl.setSearchReadAheadExecutor(searchReadAheadExecutor);
 		
 		return connectorImpl;
 	}
@@ -814,6 +824,9 @@ public class ConnectorFactoryIcfImpl implements ConnectorFactory {
 	@Override
 	public void shutdown() {
 		LOGGER.info("Shutting down ConnId framework");
+		if (searchReadAheadExecutor != null) {
+			searchReadAheadExecutor.shutdownNow();
+		}
 		ConnectorFacadeFactory.getInstance().dispose();
 	}
 
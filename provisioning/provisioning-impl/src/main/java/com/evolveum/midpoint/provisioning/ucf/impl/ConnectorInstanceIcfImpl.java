@@ -26,6 +26,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 import javax.xml.datatype.XMLGregorianCalendar;
 import javax.xml.namespace.QName;
@@ -119,6 +121,7 @@ import com.evolveum.midpoint.prism.xml.XmlTypeConverter;
 import com.evolveum.midpoint.prism.xml.XsdTypeMapper;
 import com.evolveum.midpoint.provisioning.ucf.api.AttributesToReturn;
 import com.evolveum.midpoint.provisioning.ucf.api.Change;
+import com.evolveum.midpoint.provisioning.ucf.api.ChangeHandler;
 import com.evolveum.midpoint.provisioning.ucf.api.ConnectorInstance;
 import com.evolveum.midpoint.provisioning.ucf.api.ExecuteProvisioningScriptOperation;
 import com.evolveum.midpoint.provisioning.ucf.api.ExecuteScriptArgument;
@@ -221,6 +224,10 @@ public class ConnectorInstanceIcfImpl implements ConnectorInstance {
 	private String description;
 	private boolean caseIgnoreAttributeNames = false;
 	private Boolean legacySchema = null;
+	// zero means that the search results are processed in the connector thread
+	private int searchReadAheadBufferSize = 0;
+	// provided by the connector factory
+	private ExecutorService searchReadAheadExecutor;
 	private boolean supportsReturnDefaultAttributes = false;
 
 	ConnectorInstanceIcfImpl(ConnectorInfo connectorInfo, ConnectorType connectorType,
@@ -241,6 +248,10 @@ public class ConnectorInstanceIcfImpl implements ConnectorInstance {
 		return description;
 	}
 
+	void setSearchReadAheadExecutor(ExecutorService searchReadAheadExecutor) {
+		this.searchReadAheadExecutor = searchReadAheadExecutor;
+	}
+
 	public void setDescription(String description) {
 		this.description = description;
 	}
@@ -334,6 +345,16 @@ public class ConnectorInstanceIcfImpl implements ConnectorInstance {
 			legacySchema = legacySchemaConfigProperty.getRealValue();
 		}
 		LOGGER.trace("Legacy schema (config): {}", legacySchema);
+
+		PrismProperty<Integer> searchReadAheadBufferSizeProperty = configuration.findProperty(new QName(
+				ConnectorFactoryIcfImpl.NS_ICF_CONFIGURATION,
+				ConnectorFactoryIcfImpl.CONNECTOR_SCHEMA_SEARCH_READ_AHEAD_BUFFER_SIZE_XML_ELEMENT_NAME));
+		if (searchReadAheadBufferSizeProperty != null && searchReadAheadBufferSizeProperty.getRealValue() != null) {
+			searchReadAheadBufferSize = searchReadAheadBufferSizeProperty.getRealValue();
+		} else {
+			searchReadAheadBufferSize = 0;
+		}
+		LOGGER.trace("Search read-ahead buffer size (config): {}", searchReadAheadBufferSize);
 	}
 
 	private PrismContainerDefinition<?> getConfigurationContainerDefinition() throws SchemaException {
@@ -423,6 +444,9 @@ public class ConnectorInstanceIcfImpl implements ConnectorInstance {
 		configurationContainerDef.createPropertyDefinition(
 				ConnectorFactoryIcfImpl.CONNECTOR_SCHEMA_LEGACY_SCHEMA_ELEMENT,
 				ConnectorFactoryIcfImpl.CONNECTOR_SCHEMA_LEGACY_SCHEMA_TYPE, 0, 1);
+		configurationContainerDef.createPropertyDefinition(
+				ConnectorFactoryIcfImpl.CONNECTOR_SCHEMA_SEARCH_READ_AHEAD_BUFFER_SIZE_ELEMENT,
+				ConnectorFactoryIcfImpl.CONNECTOR_SCHEMA_SEARCH_READ_AHEAD_BUFFER_SIZE_TYPE, 0, 1);
 
 		// No need to create definition of "configuration" element.
 		// midPoint will look for this element, but it will be generated as part
@@ -2080,6 +2104,22 @@ public class ConnectorInstanceIcfImpl implements ConnectorInstance {
 																OperationResult parentResult) throws CommunicationException, GenericFrameworkException,
 			SchemaException, ConfigurationException {
 
+		final List<Change<T>> changeList = new ArrayList<>();
+		ChangeHandler<T> collectingHandler = new ChangeHandler<T>() {
+			@Override
+			public boolean handleChange(Change<T> change) {
+				return changeList.add(change);
+			}
+		};
+		fetchChanges(objectClass, lastToken, attrsToReturn, collectingHandler, reporter, parentResult);
+		return changeList;
+	}
+
+	@Override
+	public <T extends ShadowType> void fetchChanges(final ObjectClassComplexTypeDefinition objectClass, PrismProperty<?> lastToken, AttributesToReturn attrsToReturn,
+													final ChangeHandler<T> handler, StateReporter reporter, OperationResult parentResult)
+			throws CommunicationException, GenericFrameworkException, SchemaException, ConfigurationException {
+
 		OperationResult result = parentResult.createSubresult(ConnectorInstance.class.getName()
 				+ ".fetchChanges");
 		result.addContext("objectClass", objectClass);
@@ -2095,9 +2135,8 @@ public class ConnectorInstanceIcfImpl implements ConnectorInstance {
 			throw new SchemaException(ex.getMessage(), ex);
 		}
 
-		final List<SyncDelta> syncDeltas = new ArrayList<SyncDelta>();
 		// get icf object class
-		ObjectClass icfObjectClass;
+		final ObjectClass icfObjectClass;
 		if (objectClass == null) {
 			icfObjectClass = ObjectClass.ALL;
 		} else {
@@ -2109,12 +2148,28 @@ public class ConnectorInstanceIcfImpl implements ConnectorInstance {
 			convertToIcfAttrsToGet(objectClass, attrsToReturn, optionsBuilder);
 		}
 		OperationOptions options = optionsBuilder.build();
-		
+
+		// changes are converted and passed to the handler as they come, so they are never held in memory all at once
+		final Holder<Integer> countHolder = new Holder<>(0);
+		final Holder<Boolean> stoppedHolder = new Holder<>(false);
+		final Holder<Exception> conversionExceptionHolder = new Holder<>();
 		SyncResultsHandler syncHandler = new SyncResultsHandler() {
 			@Override
 			public boolean handle(SyncDelta delta) {
 				LOGGER.trace("Detected sync delta: {}", delta);
-				return syncDeltas.add(delta);
+				Change<T> change;
+				try {
+					change = getChangeFromSyncDelta(icfObjectClass, delta, resourceSchema);
+				} catch (SchemaException|GenericFrameworkException e) {
+					conversionExceptionHolder.setValue(e);
+					return false;
+				}
+				countHolder.setValue(countHolder.getValue() + 1);
+				if (!handler.handleChange(change)) {
+					stoppedHolder.setValue(true);
+					return false;
+				}
+				return true;
 			}
 		};
 
@@ -2132,7 +2187,7 @@ public class ConnectorInstanceIcfImpl implements ConnectorInstance {
 					options);
 			recordIcfOperationEnd(reporter, ProvisioningOperation.ICF_SYNC, objectClass);
 			icfResult.recordSuccess();
-			icfResult.addReturn(OperationResult.RETURN_COUNT, syncDeltas.size());
+			icfResult.addReturn(OperationResult.RETURN_COUNT, countHolder.getValue());
 		} catch (Throwable ex) {
 			recordIcfOperationEnd(reporter, ProvisioningOperation.ICF_SYNC, objectClass, ex);
 			Throwable midpointEx = processIcfException(ex, this, icfResult);
@@ -2153,24 +2208,27 @@ public class ConnectorInstanceIcfImpl implements ConnectorInstance {
 				throw new SystemException("Got unexpected exception: " + ex.getClass().getName() + ": " + ex.getMessage(), ex);
 			}
 		}
-		// convert changes from icf to midpoint Change
-		List<Change<T>> changeList;
-		try {
-			changeList = getChangesFromSyncDeltas(icfObjectClass, syncDeltas, resourceSchema, result);
-		} catch (SchemaException ex) {
-			result.recordFatalError(ex.getMessage(), ex);
-			throw new SchemaException(ex.getMessage(), ex);
+
+		Exception conversionException = conversionExceptionHolder.getValue();
+		if (conversionException != null) {
+			result.recordFatalError(conversionException.getMessage(), conversionException);
+			if (conversionException instanceof SchemaException) {
+				throw new SchemaException(conversionException.getMessage(), conversionException);
+			} else {
+				throw (GenericFrameworkException) conversionException;
+			}
 		}
-		
-		if (lastReceivedToken != null) {
+
+		// if the handler stopped the processing, the last token would skip changes that were not processed
+		if (lastReceivedToken != null && !stoppedHolder.getValue()) {
 			Change<T> lastChange = new Change((ObjectDelta)null, getToken(lastReceivedToken));
 			LOGGER.trace("Adding last change: {}", lastChange);
-			changeList.add(lastChange);
+			handler.handleChange(lastChange);
+			countHolder.setValue(countHolder.getValue() + 1);
 		}
 
 		result.recordSuccess();
-		result.addReturn(OperationResult.RETURN_COUNT, changeList == null ? 0 : changeList.size());
-		return changeList;
+		result.addReturn(OperationResult.RETURN_COUNT, countHolder.getValue());
 	}
 
 	@Override
@@ -2238,12 +2296,18 @@ public class ConnectorInstanceIcfImpl implements ConnectorInstance {
 
         final Holder<Integer> countHolder = new Holder<>(0);
 
-		ResultsHandler icfHandler = new ResultsHandler() {
+		// In read-ahead mode the connector thread only converts the objects; the handler is called from this thread.
+		// The connector is not suspended while the objects are processed, so the suspensions are not recorded.
+		final ReadAheadSearch<T> readAheadSearch = searchReadAheadBufferSize > 0 && searchReadAheadExecutor != null ?
+				new ReadAheadSearch<T>(searchReadAheadBufferSize, searchReadAheadExecutor) : null;
+		final ResultHandler<T> targetHandler = readAheadSearch != null ? readAheadSearch.getProducerHandler() : handler;
+
+		final ResultsHandler icfHandler = new ResultsHandler() {
 			@Override
 			public boolean handle(ConnectorObject connectorObject) {
 				// Convert ICF-specific connector object to a generic
 				// ResourceObject
-				recordIcfOperationSuspend(reporter, ProvisioningOperation.ICF_SEARCH, objectClassDefinition);
+				recordSuspend();
                 int count = countHolder.getValue();
                 countHolder.setValue(count+1);
                 if (!useConnectorPaging) {
@@ -2269,16 +2333,24 @@ public class ConnectorInstanceIcfImpl implements ConnectorInstance {
 				}
 
 				// .. and pass it to the handler
-				boolean cont = handler.handle(resourceObject);
-				if (!cont) {
+				boolean cont = targetHandler.handle(resourceObject);
+				if (!cont && readAheadSearch == null) {
 					result.recordWarning("Stopped on request from the handler");
 				}
 				recordResume();
 				return cont;
 			}
 
+			private void recordSuspend() {
+				if (readAheadSearch == null) {
+					recordIcfOperationSuspend(reporter, ProvisioningOperation.ICF_SEARCH, objectClassDefinition);
+				}
+			}
+
 			private void recordResume() {
-				recordIcfOperationResume(reporter, ProvisioningOperation.ICF_SEARCH, objectClassDefinition);
+				if (readAheadSearch == null) {
+					recordIcfOperationResume(reporter, ProvisioningOperation.ICF_SEARCH, objectClassDefinition);
+				}
 			}
 		};
 		
@@ -2344,9 +2416,9 @@ public class ConnectorInstanceIcfImpl implements ConnectorInstance {
         // return incomplete member lists and similar attributes.
         optionsBuilder.setAllowPartialAttributeValues(true);
         
-		OperationOptions options = optionsBuilder.build();
+		final OperationOptions options = optionsBuilder.build();
 
-		Filter filter;
+		final Filter filter;
 		try {
 			filter = convertFilterToIcf(query, objectClassDefinition);
 		} catch (SchemaException | RuntimeException e) {
@@ -2365,7 +2437,21 @@ public class ConnectorInstanceIcfImpl implements ConnectorInstance {
 
 			InternalMonitor.recordConnectorOperation("search");
 			recordIcfOperationStart(reporter, ProvisioningOperation.ICF_SEARCH, objectClassDefinition);
-			icfSearchResult = icfConnectorFacade.search(icfObjectClass, filter, icfHandler, options);
+			if (readAheadSearch != null) {
+				final ObjectClass finalIcfObjectClass = icfObjectClass;
+				icfSearchResult = readAheadSearch.execute(new Callable<SearchResult>() {
+					@Override
+					public SearchResult call() {
+						return icfConnectorFacade.search(finalIcfObjectClass, filter, icfHandler, options);
+					}
+				}, handler, icfObjectClass.getObjectClassValue());
+				// the handler was called in this thread, so the warning can be recorded only now
+				if (readAheadSearch.isStoppedByHandler()) {
+					result.recordWarning("Stopped on request from the handler");
+				}
+			} else {
+				icfSearchResult = icfConnectorFacade.search(icfObjectClass, filter, icfHandler, options);
+			}
 			recordIcfOperationEnd(reporter, ProvisioningOperation.ICF_SEARCH, objectClassDefinition);
 
 			icfResult.recordSuccess();
@@ -2706,102 +2792,94 @@ public class ConnectorInstanceIcfImpl implements ConnectorInstance {
 		attributes.add(ab.build());
 	}
 
-	private <T extends ShadowType> List<Change<T>> getChangesFromSyncDeltas(ObjectClass icfObjClass, Collection<SyncDelta> icfDeltas, PrismSchema schema,
-																			OperationResult parentResult)
+	private <T extends ShadowType> Change<T> getChangeFromSyncDelta(ObjectClass icfObjClass, SyncDelta icfDelta, PrismSchema schema)
 			throws SchemaException, GenericFrameworkException {
-		List<Change<T>> changeList = new ArrayList<Change<T>>();
 
 		QName objectClass = icfNameMapper.objectClassToQname(icfObjClass, getSchemaNamespace(), legacySchema);
 		ObjectClassComplexTypeDefinition objClassDefinition = null;
 		if (objectClass != null) {
 			objClassDefinition = (ObjectClassComplexTypeDefinition) schema.findComplexTypeDefinition(objectClass);
 		}
-		
-		Validate.notNull(icfDeltas, "Sync result must not be null.");
-		for (SyncDelta icfDelta : icfDeltas) {
-
-			ObjectClass deltaIcfObjClass = icfObjClass;
-			QName deltaObjectClass = objectClass;
-			ObjectClassComplexTypeDefinition deltaObjClassDefinition = objClassDefinition;
-			if (objectClass == null) {
-				deltaIcfObjClass = icfDelta.getObjectClass();
-				deltaObjectClass = icfNameMapper.objectClassToQname(deltaIcfObjClass, getSchemaNamespace(), legacySchema);
-				if (deltaIcfObjClass != null) {
-					deltaObjClassDefinition = (ObjectClassComplexTypeDefinition) schema.findComplexTypeDefinition(deltaObjectClass);
-				}
+
+		ObjectClass deltaIcfObjClass = icfObjClass;
+		QName deltaObjectClass = objectClass;
+		ObjectClassComplexTypeDefinition deltaObjClassDefinition = objClassDefinition;
+		if (objectClass == null) {
+			deltaIcfObjClass = icfDelta.getObjectClass();
+			deltaObjectClass = icfNameMapper.objectClassToQname(deltaIcfObjClass, getSchemaNamespace(), legacySchema);
+			if (deltaIcfObjClass != null) {
+				deltaObjClassDefinition = (ObjectClassComplexTypeDefinition) schema.findComplexTypeDefinition(deltaObjectClass);
 			}
-			if (deltaObjClassDefinition == null) {
-				if (icfDelta.getDeltaType() == SyncDeltaType.DELETE) {
-					// tolerate this. E.g. LDAP changelogs do not have objectclass in delete deltas.
-				} else {
-					throw new SchemaException("Got delta with object class "+deltaObjectClass+" ("+deltaIcfObjClass+") that has no definition in resource schema");
-				}
+		}
+		if (deltaObjClassDefinition == null) {
+			if (icfDelta.getDeltaType() == SyncDeltaType.DELETE) {
+				// tolerate this. E.g. LDAP changelogs do not have objectclass in delete deltas.
+			} else {
+				throw new SchemaException("Got delta with object class "+deltaObjectClass+" ("+deltaIcfObjClass+") that has no definition in resource schema");
 			}
+		}
+		
+		SyncDeltaType icfDeltaType = icfDelta.getDeltaType();
+		if (SyncDeltaType.DELETE.equals(icfDeltaType)) {
+			LOGGER.trace("START creating delta of type DELETE");
+			ObjectDelta<ShadowType> objectDelta = new ObjectDelta<ShadowType>(
+					ShadowType.class, ChangeType.DELETE, prismContext);
+			ResourceAttribute<String> uidAttribute = IcfUtil.createUidAttribute(
+					icfDelta.getUid(),
+					IcfUtil.getUidDefinition(deltaObjClassDefinition, resourceSchema));
+			Collection<ResourceAttribute<?>> identifiers = new ArrayList<ResourceAttribute<?>>(1);
+			identifiers.add(uidAttribute);
+			Change change = new Change(identifiers, objectDelta, getToken(icfDelta.getToken()));
+			change.setObjectClassDefinition(deltaObjClassDefinition);
+			LOGGER.trace("END creating delta of type DELETE");
+			return change;
+
+		} else if (SyncDeltaType.CREATE.equals(icfDeltaType)) {
+			PrismObjectDefinition<ShadowType> objectDefinition = toShadowDefinition(deltaObjClassDefinition);
+			LOGGER.trace("Object definition: {}", objectDefinition);
 			
-			SyncDeltaType icfDeltaType = icfDelta.getDeltaType();
-			if (SyncDeltaType.DELETE.equals(icfDeltaType)) {
-				LOGGER.trace("START creating delta of type DELETE");
-				ObjectDelta<ShadowType> objectDelta = new ObjectDelta<ShadowType>(
-						ShadowType.class, ChangeType.DELETE, prismContext);
-				ResourceAttribute<String> uidAttribute = IcfUtil.createUidAttribute(
-						icfDelta.getUid(),
-						IcfUtil.getUidDefinition(deltaObjClassDefinition, resourceSchema));
-				Collection<ResourceAttribute<?>> identifiers = new ArrayList<ResourceAttribute<?>>(1);
-				identifiers.add(uidAttribute);
-				Change change = new Change(identifiers, objectDelta, getToken(icfDelta.getToken()));
-				change.setObjectClassDefinition(deltaObjClassDefinition);
-				changeList.add(change);
-				LOGGER.trace("END creating delta of type DELETE");
-
-			} else if (SyncDeltaType.CREATE.equals(icfDeltaType)) {
-				PrismObjectDefinition<ShadowType> objectDefinition = toShadowDefinition(deltaObjClassDefinition);
-				LOGGER.trace("Object definition: {}", objectDefinition);
-				
-				LOGGER.trace("START creating delta of type CREATE");
-				PrismObject<ShadowType> currentShadow = icfConvertor.convertToResourceObject(icfDelta.getObject(),
-						objectDefinition, false, caseIgnoreAttributeNames);
+			LOGGER.trace("START creating delta of type CREATE");
+			PrismObject<ShadowType> currentShadow = icfConvertor.convertToResourceObject(icfDelta.getObject(),
+					objectDefinition, false, caseIgnoreAttributeNames);
 
-				if (LOGGER.isTraceEnabled()) {
-					LOGGER.trace("Got current shadow: {}", currentShadow.debugDump());
-				}
-
-				Collection<ResourceAttribute<?>> identifiers = ShadowUtil.getIdentifiers(currentShadow);
-				
-				ObjectDelta<ShadowType> objectDelta = new ObjectDelta<ShadowType>(
-						ShadowType.class, ChangeType.ADD, prismContext);
-				objectDelta.setObjectToAdd(currentShadow);
-
-				Change change = new Change(identifiers, objectDelta, getToken(icfDelta.getToken()));
-				change.setObjectClassDefinition(deltaObjClassDefinition);
-				changeList.add(change);
-				LOGGER.trace("END creating delta of type CREATE");
-
-			} else if (SyncDeltaType.CREATE_OR_UPDATE.equals(icfDeltaType) || 
-					SyncDeltaType.UPDATE.equals(icfDeltaType)) {
-				PrismObjectDefinition<ShadowType> objectDefinition = toShadowDefinition(deltaObjClassDefinition);
-				LOGGER.trace("Object definition: {}", objectDefinition);
-				
-				LOGGER.trace("START creating delta of type {}", icfDeltaType);
-				PrismObject<ShadowType> currentShadow = icfConvertor.convertToResourceObject(icfDelta.getObject(),
-						objectDefinition, false, caseIgnoreAttributeNames);
-
-				if (LOGGER.isTraceEnabled()) {
-					LOGGER.trace("Got current shadow: {}", currentShadow.debugDump());
-				}
+			if (LOGGER.isTraceEnabled()) {
+				LOGGER.trace("Got current shadow: {}", currentShadow.debugDump());
+			}
 
-				Collection<ResourceAttribute<?>> identifiers = ShadowUtil.getIdentifiers(currentShadow);
+			Collection<ResourceAttribute<?>> identifiers = ShadowUtil.getIdentifiers(currentShadow);
+			
+			ObjectDelta<ShadowType> objectDelta = new ObjectDelta<ShadowType>(
+					ShadowType.class, ChangeType.ADD, prismContext);
+			objectDelta.setObjectToAdd(currentShadow);
+
+			Change change = new Change(identifiers, objectDelta, getToken(icfDelta.getToken()));
+			change.setObjectClassDefinition(deltaObjClassDefinition);
+			LOGGER.trace("END creating delta of type CREATE");
+			return change;
+
+		} else if (SyncDeltaType.CREATE_OR_UPDATE.equals(icfDeltaType) || 
+				SyncDeltaType.UPDATE.equals(icfDeltaType)) {
+			PrismObjectDefinition<ShadowType> objectDefinition = toShadowDefinition(deltaObjClassDefinition);
+			LOGGER.trace("Object definition: {}", objectDefinition);
+			
+			LOGGER.trace("START creating delta of type {}", icfDeltaType);
+			PrismObject<ShadowType> currentShadow = icfConvertor.convertToResourceObject(icfDelta.getObject(),
+					objectDefinition, false, caseIgnoreAttributeNames);
 
-				Change change = new Change(identifiers, currentShadow, getToken(icfDelta.getToken()));
-				change.setObjectClassDefinition(deltaObjClassDefinition);
-				changeList.add(change);
-				LOGGER.trace("END creating delta of type {}:\n{}", icfDeltaType, change.debugDump());
-				
-			} else {
-				throw new GenericFrameworkException("Unexpected sync delta type " + icfDeltaType);
+			if (LOGGER.isTraceEnabled()) {
+				LOGGER.trace("Got current shadow: {}", currentShadow.debugDump());
 			}
 
+			Collection<ResourceAttribute<?>> identifiers = ShadowUtil.getIdentifiers(currentShadow);
+
+			Change change = new Change(identifiers, currentShadow, getToken(icfDelta.getToken()));
+			change.setObjectClassDefinition(deltaObjClassDefinition);
+			LOGGER.trace("END creating delta of type {}:\n{}", icfDeltaType, change.debugDump());
+			return change;
+			
+		} else {
+			throw new GenericFrameworkException("Unexpected sync delta type " + icfDeltaType);
 		}
-		return changeList;
 	}
 
 	private SyncToken getSyncToken(PrismProperty tokenProperty) throws SchemaException {
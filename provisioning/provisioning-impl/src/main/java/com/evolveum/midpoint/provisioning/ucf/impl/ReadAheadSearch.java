@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.provisioning.ucf.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.identityconnectors.framework.common.objects.SearchResult;
+
+import com.evolveum.midpoint.prism.PrismObject;
+import com.evolveum.midpoint.provisioning.ucf.api.ResultHandler;
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ShadowType;
+
+/**
+ * Executes connector search in a separate thread that reads the objects ahead: the connector thread only converts
+ * the objects and puts them into a bounded queue, while the calling thread takes them from the queue and passes them
+ * to the (midPoint) handler. So the connector can read the next objects from the resource while midPoint processes
+ * the current one.
+ *
+ * The handler is still called only from the calling thread, so it needs not be thread-safe and it can use thread-bound
+ * context (task, operation result, repository cache, security context). When the queue is full, the connector thread
+ * waits. When the handler stops the processing (or fails), the connector thread is told to stop and the search ends
+ * as soon as the connector passes it the next object.
+ *
+ * The connector threads are taken from an executor owned by ConnectorFactoryIcfImpl (see createExecutor),
+ * so they are stopped when the connector framework is shut down.
+ *
+ * @author agent
+ */
+class ReadAheadSearch<T extends ShadowType> {
+
+	private static final Trace LOGGER = TraceManager.getTrace(ReadAheadSearch.class);
+
+	private static final Object END = new Object();
+	private static final long POLL_INTERVAL = 500L;
+
+	private final BlockingQueue<Object> queue;
+	private final ExecutorService executor;
+	private volatile boolean stopped;
+	private volatile Throwable producerException;
+	private volatile SearchResult searchResult;
+	// used only by the calling thread
+	private boolean stoppedByHandler;
+
+	ReadAheadSearch(int bufferSize, ExecutorService executor) {
+		this.queue = new ArrayBlockingQueue<>(bufferSize);
+		this.executor = executor;
+	}
+
+	/**
+	 * Creates the executor for the connector threads. Threads are created as needed and they end when idle.
+	 */
+	static ExecutorService createExecutor() {
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "connector-read-ahead-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Handler to be called by the connector thread. It returns false if the consumer has stopped.
+	 */
+	ResultHandler<T> getProducerHandler() {
+		return new ResultHandler<T>() {
+			@Override
+			public boolean handle(PrismObject<T> object) {
+				return put(object);
+			}
+		};
+	}
+
+	/**
+	 * Starts the search (that has to use the producer handler) in a connector thread and passes the objects
+	 * to the handler. Exceptions thrown by the search or by the handler are re-thrown.
+	 * Whether the handler stopped the search can be found out by isStoppedByHandler afterwards.
+	 */
+	SearchResult execute(final Callable<SearchResult> search, ResultHandler<T> handler, final String description) throws Throwable {
+		Future<?> producer = executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				LOGGER.trace("Starting read-ahead search of {}", description);
+				try {
+					searchResult = search.call();
+				} catch (Throwable t) {
+					producerException = t;
+				} finally {
+					put(END);
+				}
+			}
+		});
+
+		boolean finished = false;
+		try {
+			for (;;) {
+				Object object = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				if (object == null) {
+					if (producer.isDone() && queue.isEmpty()) {
+						// should not occur, as the producer always sends END
+						finished = true;
+						break;
+					}
+				} else if (object == END) {
+					finished = true;
+					break;
+				} else if (!handler.handle((PrismObject<T>) object)) {
+					LOGGER.trace("Read-ahead search of {} stopped by the handler", description);
+					stoppedByHandler = true;
+					break;
+				}
+			}
+		} finally {
+			if (!finished) {
+				// the connector will stop on the next object
+				stopped = true;
+				queue.clear();
+			}
+			waitForProducer(producer, description);
+		}
+
+		if (producerException != null) {
+			throw producerException;
+		}
+		return searchResult;
+	}
+
+	/**
+	 * Returns true if the (midPoint) handler requested to stop the search, i.e. not all objects were processed.
+	 */
+	boolean isStoppedByHandler() {
+		return stoppedByHandler;
+	}
+
+	private void waitForProducer(Future<?> producer, String description) {
+		try {
+			producer.get();
+		} catch (InterruptedException e) {
+			stopped = true;
+			Thread.currentThread().interrupt();
+		} catch (CancellationException | ExecutionException e) {
+			// the executor was shut down (the task itself catches all exceptions)
+			LOGGER.warn("Read-ahead search of {} did not finish: {}", description, e.getMessage(), e);
+		}
+	}
+
+	// returns false if the consumer has stopped
+	private boolean put(Object object) {
+		try {
+			while (!stopped) {
+				if (queue.offer(object, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+					return true;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+}
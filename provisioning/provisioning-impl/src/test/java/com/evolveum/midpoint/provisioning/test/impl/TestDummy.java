@@ -35,6 +35,7 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -45,6 +46,7 @@ import com.evolveum.midpoint.prism.PrismContext;
 import com.evolveum.midpoint.prism.query.OrFilter;
 
 import org.apache.commons.lang.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.ContextConfiguration;
 import org.testng.AssertJUnit;
@@ -57,6 +59,7 @@ import com.evolveum.icf.dummy.resource.DummyAccount;
 import com.evolveum.icf.dummy.resource.DummyGroup;
 import com.evolveum.icf.dummy.resource.DummyPrivilege;
 import com.evolveum.icf.dummy.resource.DummySyncStyle;
+import com.evolveum.midpoint.common.monitor.InternalMonitor;
 import com.evolveum.midpoint.common.refinery.RefinedAttributeDefinition;
 import com.evolveum.midpoint.common.refinery.RefinedObjectClassDefinition;
 import com.evolveum.midpoint.common.refinery.RefinedResourceSchema;
@@ -88,6 +91,8 @@ import com.evolveum.midpoint.prism.xml.XmlTypeConverter;
 import com.evolveum.midpoint.provisioning.ProvisioningTestUtil;
 import com.evolveum.midpoint.provisioning.api.ResourceObjectShadowChangeDescription;
 import com.evolveum.midpoint.provisioning.impl.ProvisioningContext;
+import com.evolveum.midpoint.provisioning.impl.ShadowCache;
+import com.evolveum.midpoint.provisioning.impl.ShadowCacheProvisioner;
 import com.evolveum.midpoint.provisioning.test.ucf.TestUcfDummy;
 import com.evolveum.midpoint.provisioning.ucf.api.AttributesToReturn;
 import com.evolveum.midpoint.provisioning.ucf.api.ConnectorInstance;
@@ -189,6 +194,9 @@ public class TestDummy extends AbstractDummyTest {
 	private String corsairsIcfUid;
 	private String corsairsShadowOid;
 
+	@Autowired(required = true)
+	private ShadowCacheProvisioner shadowCache;
+
 	protected MatchingRule<String> getUidMatchingRule() {
 		return null;
 	}
@@ -1633,6 +1641,125 @@ public class TestDummy extends AbstractDummyTest {
 
 
 
+	/**
+	 * The repository shadows of the found accounts are looked up in batches. Compare the number
+	 * of repository lookups with the one-by-one lookup (batch size 1).
+	 */
+	@Test
+	public void test118SearchAllShadowsBatchedLookup() throws Exception {
+		final String TEST_NAME = "test118SearchAllShadowsBatchedLookup";
+		TestUtil.displayTestTile(TEST_NAME);
+		// GIVEN
+		OperationResult result = new OperationResult(TestDummy.class.getName()
+				+ "." + TEST_NAME);
+		ObjectQuery query = IntegrationTestTools.createAllShadowsQuery(resourceType,
+				SchemaTestConstants.ICF_ACCOUNT_OBJECT_CLASS_LOCAL_NAME, prismContext);
+		int originalBatchSize = shadowCache.getShadowLookupBatchSize();
+
+		List<PrismObject<ShadowType>> oneByOneShadows;
+		long oneByOneLookups;
+		List<PrismObject<ShadowType>> batchedShadows;
+		long batchedLookups;
+		try {
+			shadowCache.setShadowLookupBatchSize(1);
+			long lookupsBefore = InternalMonitor.getShadowRepositoryLookupCount();
+			oneByOneShadows = provisioningService.searchObjects(ShadowType.class, query, null, null, result);
+			oneByOneLookups = InternalMonitor.getShadowRepositoryLookupCount() - lookupsBefore;
+
+			// WHEN
+			shadowCache.setShadowLookupBatchSize(ShadowCache.DEFAULT_SHADOW_LOOKUP_BATCH_SIZE);
+			lookupsBefore = InternalMonitor.getShadowRepositoryLookupCount();
+			batchedShadows = provisioningService.searchObjects(ShadowType.class, query, null, null, result);
+			batchedLookups = InternalMonitor.getShadowRepositoryLookupCount() - lookupsBefore;
+		} finally {
+			shadowCache.setShadowLookupBatchSize(originalBatchSize);
+		}
+
+		// THEN
+		result.computeStatus();
+		display("searchObjects result", result);
+		TestUtil.assertSuccess(result);
+
+		display("Repository lookups: one by one " + oneByOneLookups + ", batched " + batchedLookups);
+		assertEquals("Wrong number of results", oneByOneShadows.size(), batchedShadows.size());
+		assertTrue("Too few one-by-one lookups: " + oneByOneLookups, oneByOneLookups >= oneByOneShadows.size());
+		assertTrue("Batched lookup made " + batchedLookups + " repository searches, one-by-one lookup made "
+				+ oneByOneLookups, batchedLookups < oneByOneLookups);
+
+		Set<String> oneByOneOids = new HashSet<>();
+		for (PrismObject<ShadowType> shadow : oneByOneShadows) {
+			oneByOneOids.add(shadow.getOid());
+		}
+		for (PrismObject<ShadowType> shadow : batchedShadows) {
+			assertTrue("Unexpected shadow " + shadow, oneByOneOids.contains(shadow.getOid()));
+		}
+		checkConsistency(batchedShadows);
+
+		assertSteadyResource();
+	}
+
+	/**
+	 * Accounts that have no shadows yet (first import) must not be looked up again one by one
+	 * after the batched lookup did not find them. Only the batch searches are expected.
+	 */
+	@Test
+	public void test119SearchNewAccountsBatchedLookup() throws Exception {
+		final String TEST_NAME = "test119SearchNewAccountsBatchedLookup";
+		TestUtil.displayTestTile(TEST_NAME);
+		// GIVEN
+		OperationResult result = new OperationResult(TestDummy.class.getName()
+				+ "." + TEST_NAME);
+		ObjectQuery query = IntegrationTestTools.createAllShadowsQuery(resourceType,
+				SchemaTestConstants.ICF_ACCOUNT_OBJECT_CLASS_LOCAL_NAME, prismContext);
+
+		Set<String> existingOids = new HashSet<>();
+		for (PrismObject<ShadowType> shadow : repositoryService.searchObjects(ShadowType.class, null, null, result)) {
+			existingOids.add(shadow.getOid());
+		}
+		String[] newAccountNames = { "batch1", "batch2", "batch3" };
+		for (String newAccountName : newAccountNames) {
+			DummyAccount newAccount = new DummyAccount(newAccountName);
+			newAccount.setEnabled(true);
+			dummyResource.addAccount(newAccount);
+		}
+
+		List<PrismObject<ShadowType>> shadows;
+		long lookups;
+		try {
+			// WHEN
+			long lookupsBefore = InternalMonitor.getShadowRepositoryLookupCount();
+			shadows = provisioningService.searchObjects(ShadowType.class, query, null, null, result);
+			lookups = InternalMonitor.getShadowRepositoryLookupCount() - lookupsBefore;
+		} finally {
+			for (String newAccountName : newAccountNames) {
+				dummyResource.deleteAccountByName(newAccountName);
+			}
+		}
+
+		// THEN
+		result.computeStatus();
+		display("searchObjects result", result);
+		TestUtil.assertSuccess(result);
+
+		List<String> createdOids = new ArrayList<>();
+		for (PrismObject<ShadowType> shadow : shadows) {
+			if (!existingOids.contains(shadow.getOid())) {
+				createdOids.add(shadow.getOid());
+			}
+		}
+		for (String createdOid : createdOids) {
+			repositoryService.deleteObject(ShadowType.class, createdOid, result);
+		}
+
+		int batchSize = shadowCache.getShadowLookupBatchSize();
+		int batches = (shadows.size() + batchSize - 1) / batchSize;
+		display("Repository lookups for " + shadows.size() + " accounts: " + lookups);
+		assertEquals("Wrong number of created shadows", newAccountNames.length, createdOids.size());
+		assertEquals("Wrong number of repository lookups", batches, lookups);
+
+		assertSteadyResource();
+	}
+
 	@Test
 	public void test123ModifyObjectReplace() throws Exception {
 		final String TEST_NAME = "test123ModifyObjectReplace";
@@ -4543,6 +4670,59 @@ public class TestDummy extends AbstractDummyTest {
 		testLiveSyncDeleteDrake("test849LiveSyncDeleteDrakeSmartAny", DummySyncStyle.SMART, null);
 	}
 	
+	/**
+	 * Changes are processed by worker threads. All of them must be processed and the token must be advanced
+	 * past the last one, so the next synchronization run finds nothing.
+	 */
+	@Test
+	public void test850LiveSyncParallel() throws Exception {
+		final String TEST_NAME = "test850LiveSyncParallel";
+		TestUtil.displayTestTile(TEST_NAME);
+		// GIVEN
+		OperationResult result = new OperationResult(TestDummy.class.getName()
+				+ "." + TEST_NAME);
+
+		syncServiceMock.reset();
+		dummyResource.setSyncStyle(DummySyncStyle.SMART);
+		final int ACCOUNTS = 20;
+		for (int i = 0; i < ACCOUNTS; i++) {
+			DummyAccount newAccount = new DummyAccount("parallel-pirate-" + i);
+			newAccount.addAttributeValues("fullname", "Parallel Pirate " + i);
+			newAccount.setEnabled(true);
+			dummyResource.addAccount(newAccount);
+		}
+		syncTokenTask.setExtensionPropertyValue(SchemaConstants.MODEL_EXTENSION_WORKER_THREADS, 3);
+
+		ResourceShadowDiscriminator coords = new ResourceShadowDiscriminator(RESOURCE_DUMMY_OID, 
+				ProvisioningTestUtil.getDefaultAccountObjectClass(resourceType));
+
+		try {
+			// WHEN
+			TestUtil.displayWhen(TEST_NAME);
+			provisioningService.synchronize(coords, syncTokenTask, result);
+
+			// THEN
+			TestUtil.displayThen(TEST_NAME);
+			result.computeStatus();
+			display("Synchronization result", result);
+			TestUtil.assertSuccess("Synchronization result is not OK", result);
+			assertEquals("Wrong number of notified changes", ACCOUNTS, syncServiceMock.getCallCount());
+
+			syncServiceMock.reset();
+			OperationResult result2 = new OperationResult(TestDummy.class.getName() + "." + TEST_NAME + ".again");
+			provisioningService.synchronize(coords, syncTokenTask, result2);
+			result2.computeStatus();
+			TestUtil.assertSuccess("Second synchronization result is not OK", result2);
+			syncServiceMock.assertNoNotifyChange();
+		} finally {
+			syncTokenTask.setExtensionPropertyValue(SchemaConstants.MODEL_EXTENSION_WORKER_THREADS, 0);
+		}
+
+		checkAllShadows();
+		
+		assertSteadyResource();
+	}
+	
 	public void testLiveSyncAddDrake(final String TEST_NAME, DummySyncStyle syncStyle, QName objectClass) throws Exception {
 		TestUtil.displayTestTile(TEST_NAME);
 		// GIVEN
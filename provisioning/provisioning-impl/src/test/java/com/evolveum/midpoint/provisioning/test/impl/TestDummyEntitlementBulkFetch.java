@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.provisioning.test.impl;
+
+import static com.evolveum.midpoint.test.IntegrationTestTools.display;
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ContextConfiguration;
+import org.testng.annotations.Test;
+
+import com.evolveum.icf.dummy.resource.DummyAccount;
+import com.evolveum.icf.dummy.resource.DummyGroup;
+import com.evolveum.midpoint.common.monitor.InternalMonitor;
+import com.evolveum.midpoint.prism.PrismObject;
+import com.evolveum.midpoint.prism.delta.ObjectDelta;
+import com.evolveum.midpoint.prism.query.ObjectQuery;
+import com.evolveum.midpoint.provisioning.ProvisioningTestUtil;
+import com.evolveum.midpoint.schema.result.OperationResult;
+import com.evolveum.midpoint.schema.util.ObjectQueryUtil;
+import com.evolveum.midpoint.task.api.Task;
+import com.evolveum.midpoint.test.util.TestUtil;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ResourceObjectAssociationDirectionType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ResourceObjectAssociationType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ResourceObjectTypeDefinitionType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ResourceType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ShadowAssociationType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ShadowType;
+
+/**
+ * Bulk fetch of object-to-subject associations (groups of the dummy accounts). The search has to return
+ * the same associations as the search of the entitlements for each account separately.
+ *
+ * @author agent
+ */
+@ContextConfiguration(locations = "classpath:ctx-provisioning-test-main.xml")
+@DirtiesContext
+public class TestDummyEntitlementBulkFetch extends AbstractDummyTest {
+
+	private static final String GROUP_SAILORS_NAME = "sailors";
+	private static final String GROUP_EMPTY_NAME = "empty";
+
+	private Map<String, Set<String>> perSubjectAssociations;
+	private long perSubjectConnectorOperations;
+
+	@Override
+	public void initSystem(Task initTask, OperationResult initResult) throws Exception {
+		super.initSystem(initTask, initResult);
+
+		dummyResource.addAccount(new DummyAccount(ACCOUNT_WILL_USERNAME));
+		dummyResource.addAccount(new DummyAccount(ACCOUNT_MORGAN_NAME));
+		dummyResource.addAccount(new DummyAccount(ACCOUNT_LECHUCK_NAME));
+
+		DummyGroup groupPirates = new DummyGroup(GROUP_PIRATES_NAME);
+		dummyResource.addGroup(groupPirates);
+		groupPirates.addMember(ACCOUNT_WILL_USERNAME);
+		groupPirates.addMember(ACCOUNT_MORGAN_NAME);
+
+		DummyGroup groupSailors = new DummyGroup(GROUP_SAILORS_NAME);
+		dummyResource.addGroup(groupSailors);
+		groupSailors.addMember(ACCOUNT_MORGAN_NAME);
+		groupSailors.addMember(ACCOUNT_DAEMON_USERNAME);
+
+		dummyResource.addGroup(new DummyGroup(GROUP_EMPTY_NAME));
+	}
+
+	@Test
+	public void test100SearchAccountsPerSubject() throws Exception {
+		final String TEST_NAME = "test100SearchAccountsPerSubject";
+		TestUtil.displayTestTile(TEST_NAME);
+		// GIVEN
+		Task task = taskManager.createTaskInstance(TestDummyEntitlementBulkFetch.class.getName() + "." + TEST_NAME);
+		OperationResult result = task.getResult();
+		// the first search also fetches the resource schema, the operations are counted by the second one
+		searchAccounts(task, result);
+
+		// WHEN
+		long operationsBefore = InternalMonitor.getConnectorOperationCount();
+		List<PrismObject<ShadowType>> accounts = searchAccounts(task, result);
+		perSubjectConnectorOperations = InternalMonitor.getConnectorOperationCount() - operationsBefore;
+
+		// THEN
+		result.computeStatus();
+		display("searchObjects result", result);
+		TestUtil.assertSuccess(result);
+
+		perSubjectAssociations = getAssociations(accounts);
+		display("Associations (per subject)", perSubjectAssociations);
+		display("Connector operations (per subject)", perSubjectConnectorOperations);
+		assertEquals("Wrong number of accounts", 4, perSubjectAssociations.size());
+		assertEquals("Wrong groups of " + ACCOUNT_WILL_USERNAME, 1, perSubjectAssociations.get(ACCOUNT_WILL_USERNAME).size());
+		assertEquals("Wrong groups of " + ACCOUNT_MORGAN_NAME, 2, perSubjectAssociations.get(ACCOUNT_MORGAN_NAME).size());
+		assertEquals("Wrong groups of " + ACCOUNT_DAEMON_USERNAME, 1, perSubjectAssociations.get(ACCOUNT_DAEMON_USERNAME).size());
+		assertTrue("Unexpected groups of " + ACCOUNT_LECHUCK_NAME, perSubjectAssociations.get(ACCOUNT_LECHUCK_NAME).isEmpty());
+	}
+
+	@Test
+	public void test110SearchAccountsBulkFetch() throws Exception {
+		final String TEST_NAME = "test110SearchAccountsBulkFetch";
+		TestUtil.displayTestTile(TEST_NAME);
+		// GIVEN
+		Task task = taskManager.createTaskInstance(TestDummyEntitlementBulkFetch.class.getName() + "." + TEST_NAME);
+		OperationResult result = task.getResult();
+		setBulkFetch(result);
+		// the first search reloads the modified resource, the operations are counted by the second one
+		searchAccounts(task, result);
+
+		// WHEN
+		long operationsBefore = InternalMonitor.getConnectorOperationCount();
+		List<PrismObject<ShadowType>> accounts = searchAccounts(task, result);
+		long bulkFetchConnectorOperations = InternalMonitor.getConnectorOperationCount() - operationsBefore;
+
+		// THEN
+		result.computeStatus();
+		display("searchObjects result", result);
+		TestUtil.assertSuccess(result);
+
+		Map<String, Set<String>> bulkFetchAssociations = getAssociations(accounts);
+		display("Associations (bulk fetch)", bulkFetchAssociations);
+		display("Connector operations (bulk fetch)", bulkFetchConnectorOperations);
+		assertEquals("Bulk fetch returned different associations", perSubjectAssociations, bulkFetchAssociations);
+		assertTrue("Entitlements were not fetched in bulk: " + bulkFetchConnectorOperations + " connector operations, "
+				+ perSubjectConnectorOperations + " without bulk fetch",
+				bulkFetchConnectorOperations < perSubjectConnectorOperations);
+	}
+
+	private List<PrismObject<ShadowType>> searchAccounts(Task task, OperationResult result) throws Exception {
+		ObjectQuery query = ObjectQueryUtil.createResourceAndObjectClassQuery(RESOURCE_DUMMY_OID,
+				ProvisioningTestUtil.getDefaultAccountObjectClass(resourceType), prismContext);
+		return provisioningService.searchObjects(ShadowType.class, query, null, task, result);
+	}
+
+	/**
+	 * Account name -> (association name, entitlement shadow OID) pairs.
+	 */
+	private Map<String, Set<String>> getAssociations(List<PrismObject<ShadowType>> accounts) {
+		Map<String, Set<String>> associations = new HashMap<>();
+		for (PrismObject<ShadowType> account : accounts) {
+			Set<String> accountAssociations = new HashSet<>();
+			for (ShadowAssociationType association : account.asObjectable().getAssociation()) {
+				assertNotNull("No shadowRef in association of " + account, association.getShadowRef());
+				accountAssociations.add(association.getName().getLocalPart() + ":" + association.getShadowRef().getOid());
+			}
+			associations.put(getIcfName(account), accountAssociations);
+		}
+		return associations;
+	}
+
+	private void setBulkFetch(OperationResult result) throws Exception {
+		PrismObject<ResourceType> resourceBefore = repositoryService.getObject(ResourceType.class, RESOURCE_DUMMY_OID, null, result);
+		PrismObject<ResourceType> resourceAfter = resourceBefore.clone();
+		for (ResourceObjectTypeDefinitionType objectType : resourceAfter.asObjectable().getSchemaHandling().getObjectType()) {
+			for (ResourceObjectAssociationType association : objectType.getAssociation()) {
+				if (association.getDirection() == ResourceObjectAssociationDirectionType.OBJECT_TO_SUBJECT) {
+					association.setBulkFetch(true);
+				}
+			}
+		}
+		ObjectDelta<ResourceType> delta = resourceBefore.diff(resourceAfter);
+		display("Resource delta", delta);
+		repositoryService.modifyObject(ResourceType.class, RESOURCE_DUMMY_OID, delta.getModifications(), result);
+	}
+}
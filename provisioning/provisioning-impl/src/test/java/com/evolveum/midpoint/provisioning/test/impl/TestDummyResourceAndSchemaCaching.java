@@ -37,6 +37,7 @@ import java.util.Set;
 import javax.xml.namespace.QName;
 
 import org.apache.commons.lang.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.ContextConfiguration;
 import org.testng.AssertJUnit;
@@ -65,9 +66,13 @@ import com.evolveum.midpoint.prism.schema.PrismSchema;
 import com.evolveum.midpoint.prism.util.PrismAsserts;
 import com.evolveum.midpoint.prism.util.PrismTestUtil;
 import com.evolveum.midpoint.provisioning.ProvisioningTestUtil;
+import com.evolveum.midpoint.provisioning.impl.ProvisioningContext;
+import com.evolveum.midpoint.provisioning.impl.ResourceCache;
+import com.evolveum.midpoint.provisioning.impl.ResourceManager;
 import com.evolveum.midpoint.provisioning.ucf.api.ConnectorInstance;
 import com.evolveum.midpoint.provisioning.ucf.impl.ConnectorFactoryIcfImpl;
 import com.evolveum.midpoint.schema.CapabilityUtil;
+import com.evolveum.midpoint.schema.ResourceShadowDiscriminator;
 import com.evolveum.midpoint.schema.processor.ResourceSchema;
 import com.evolveum.midpoint.schema.result.OperationResult;
 import com.evolveum.midpoint.schema.util.ConnectorTypeUtil;
@@ -114,6 +119,12 @@ import com.evolveum.midpoint.xml.ns._public.resource.capabilities_3.TestConnecti
 public class TestDummyResourceAndSchemaCaching extends AbstractDummyTest {
 
 	private static final Trace LOGGER = TraceManager.getTrace(TestDummyResourceAndSchemaCaching.class);
+
+	@Autowired(required = true)
+	private ResourceManager resourceManager;
+
+	@Autowired(required = true)
+	private ResourceCache resourceCache;
 	
 	
 	
@@ -527,6 +538,116 @@ public class TestDummyResourceAndSchemaCaching extends AbstractDummyTest {
 		assertConnectorConfigChanged();
 	}
 	
+	/**
+	 * Each lookup should get its own copy of the cached resource (with the cached schemas), so modifications
+	 * of one copy are not visible to others.
+	 * Change in the repository done on this node should be noticed immediately, without waiting for the version check.
+	 */
+	@Test
+	public void test040GetResourceCopies() throws Exception {
+		final String TEST_NAME = "test040GetResourceCopies";
+		TestUtil.displayTestTile(TEST_NAME);
+		// GIVEN
+		Task task = taskManager.createTaskInstance(TestDummyResourceAndSchemaCaching.class.getName()
+				+ "." + TEST_NAME);
+		OperationResult result = task.getResult();
+		long originalInterval = resourceCache.getVersionCheckInterval();
+		// long enough not to expire during the test
+		resourceCache.setVersionCheckInterval(600000L);
+
+		try {
+			// WHEN
+			PrismObject<ResourceType> resource1 = resourceManager.getResource(RESOURCE_DUMMY_OID, null, result);
+			resource1.asObjectable().setDescription("Modified copy");
+			PrismObject<ResourceType> resource2 = resourceManager.getResource(RESOURCE_DUMMY_OID, null, result);
+
+			// THEN
+			result.computeStatus();
+			TestUtil.assertSuccess(result);
+			assertTrue("Resource copy is shared", resource1 != resource2);
+			assertFalse("Modification of one copy is visible in other copy",
+					"Modified copy".equals(resource2.asObjectable().getDescription()));
+			assertTrue("No refined schema in the cached resource", RefinedResourceSchema.hasRefinedSchema(resource2.asObjectable()));
+			AssertJUnit.assertSame("Schema of the cached resource was not reused", RefinedResourceSchema.getRefinedSchema(resource1, prismContext),
+					RefinedResourceSchema.getRefinedSchema(resource2, prismContext));
+
+			// WHEN
+			ProjectionPolicyType accountSynchronizationSettingsType = new ProjectionPolicyType();
+			accountSynchronizationSettingsType.setLegalize(false);
+			ObjectDelta<ResourceType> objectDelta = ObjectDelta.createModificationReplaceProperty(ResourceType.class, RESOURCE_DUMMY_OID, 
+					ResourceType.F_PROJECTION, prismContext, accountSynchronizationSettingsType);
+			repositoryService.modifyObject(ResourceType.class, RESOURCE_DUMMY_OID, objectDelta.getModifications(), result);
+			PrismObject<ResourceType> resource3 = resourceManager.getResource(RESOURCE_DUMMY_OID, null, result);
+
+			// THEN
+			result.computeStatus();
+			TestUtil.assertSuccess(result);
+			assertEquals("Wrong version of the resource after modification",
+					repositoryService.getVersion(ResourceType.class, RESOURCE_DUMMY_OID, result), resource3.getVersion());
+		} finally {
+			resourceCache.setVersionCheckInterval(originalInterval);
+		}
+	}
+
+	/**
+	 * A provisioning context should look the resource up (and clone it) only once and share it with
+	 * the contexts spawned from it. A context spawned for another task (worker thread) must get its own copy,
+	 * which is then shared by the contexts spawned from the worker context.
+	 */
+	@Test
+	public void test041ProvisioningContextResource() throws Exception {
+		final String TEST_NAME = "test041ProvisioningContextResource";
+		TestUtil.displayTestTile(TEST_NAME);
+		// GIVEN
+		Task task = taskManager.createTaskInstance(TestDummyResourceAndSchemaCaching.class.getName()
+				+ "." + TEST_NAME);
+		OperationResult result = task.getResult();
+		ResourceShadowDiscriminator coords = new ResourceShadowDiscriminator(RESOURCE_DUMMY_OID, ShadowKindType.ACCOUNT, null);
+		ProvisioningContext ctx = provisioningContextFactory.create(coords, task, result);
+		long requestsBefore = InternalMonitor.getResourceCacheStats().getRequests();
+
+		// WHEN
+		ResourceType resource = ctx.getResource();
+		ResourceType resourceAgain = ctx.getResource();
+		ResourceType spawnedResource = ctx.spawn(ShadowKindType.ACCOUNT, null).getResource();
+
+		// THEN
+		assertEquals("Wrong number of resource lookups", 1, InternalMonitor.getResourceCacheStats().getRequests() - requestsBefore);
+		AssertJUnit.assertSame("Resource of the context was looked up again", resource, resourceAgain);
+		AssertJUnit.assertSame("Spawned context does not share the resource", resource, spawnedResource);
+
+		// WHEN
+		Task workerTask = taskManager.createTaskInstance(TestDummyResourceAndSchemaCaching.class.getName()
+				+ "." + TEST_NAME + ".worker");
+		ResourceType workerResource = ctx.spawnForTask(workerTask).getResource();
+
+		// THEN
+		result.computeStatus();
+		TestUtil.assertSuccess(result);
+		assertTrue("Worker context shares the resource", workerResource != resource);
+		assertEquals("Wrong version of the worker resource", resource.getVersion(), workerResource.getVersion());
+		AssertJUnit.assertSame("Schema of the cached resource was not reused",
+				RefinedResourceSchema.getRefinedSchema(resource.asPrismObject(), prismContext),
+				RefinedResourceSchema.getRefinedSchema(workerResource.asPrismObject(), prismContext));
+
+		// WHEN
+		OperationResult workerResult = new OperationResult(TestDummyResourceAndSchemaCaching.class.getName()
+				+ "." + TEST_NAME + ".worker");
+		long workerRequestsBefore = InternalMonitor.getResourceCacheStats().getRequests();
+		ProvisioningContext workerCtx = ctx.spawnForTask(workerTask, workerResult);
+		ResourceType boundWorkerResource = workerCtx.getResource();
+		ResourceType workerChildResource = workerCtx.spawn(ShadowKindType.ACCOUNT, null).getResource();
+
+		// THEN
+		assertTrue("Worker context shares the resource", boundWorkerResource != resource);
+		AssertJUnit.assertSame("Context spawned from the worker context does not share its resource",
+				boundWorkerResource, workerChildResource);
+		assertEquals("Wrong number of worker resource lookups", 1,
+				InternalMonitor.getResourceCacheStats().getRequests() - workerRequestsBefore);
+		workerResult.computeStatus();
+		TestUtil.assertSuccess(workerResult);
+	}
+
 	@Test
 	public void test900DeleteResource() throws Exception {
 		final String TEST_NAME = "test900DeleteResource";
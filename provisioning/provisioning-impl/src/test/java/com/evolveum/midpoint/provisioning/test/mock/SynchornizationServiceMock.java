@@ -159,9 +159,11 @@ public class SynchornizationServiceMock implements ResourceObjectChangeListener,
 			changeChecker.check(change);
 		}
 
-		// remember ...
-		callCountNotifyChange++;
-		lastChange = change;
+		// remember ... (changes may come from more threads, e.g. in parallel live sync)
+		synchronized (this) {
+			callCountNotifyChange++;
+			lastChange = change;
+		}
 	}
 	
 	/* (non-Javadoc)
@@ -288,7 +290,7 @@ public class SynchornizationServiceMock implements ResourceObjectChangeListener,
 		this.lastChange = lastChange;
 	}
 
-	public int getCallCount() {
+	public synchronized int getCallCount() {
 		return callCountNotifyChange;
 	}
 
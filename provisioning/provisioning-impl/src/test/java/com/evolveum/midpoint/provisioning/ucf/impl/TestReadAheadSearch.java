@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.provisioning.ucf.impl;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.identityconnectors.framework.common.objects.SearchResult;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
+import org.xml.sax.SAXException;
+
+import com.evolveum.midpoint.prism.PrismObject;
+import com.evolveum.midpoint.prism.util.PrismTestUtil;
+import com.evolveum.midpoint.provisioning.ucf.api.ResultHandler;
+import com.evolveum.midpoint.schema.MidPointPrismContextFactory;
+import com.evolveum.midpoint.schema.constants.MidPointConstants;
+import com.evolveum.midpoint.util.PrettyPrinter;
+import com.evolveum.midpoint.util.exception.SchemaException;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ShadowType;
+
+/**
+ * Read-ahead connector search (ReadAheadSearch) with a simulated connector.
+ *
+ * @author agent
+ */
+public class TestReadAheadSearch {
+
+	private static final int BUFFER_SIZE = 3;
+
+	private ExecutorService executor;
+
+	@BeforeSuite
+	public void setup() throws SchemaException, SAXException, IOException {
+		PrettyPrinter.setDefaultNamespacePrefix(MidPointConstants.NS_MIDPOINT_PUBLIC_PREFIX);
+		PrismTestUtil.resetPrismContext(MidPointPrismContextFactory.FACTORY);
+	}
+
+	@BeforeClass
+	public void createExecutor() {
+		executor = ReadAheadSearch.createExecutor();
+	}
+
+	@AfterClass
+	public void shutdownExecutor() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void test100SearchAllObjects() throws Throwable {
+		// GIVEN
+		ReadAheadSearch<ShadowType> search = new ReadAheadSearch<>(BUFFER_SIZE, executor);
+		ConnectorStub connector = new ConnectorStub(search, 20, null);
+		CollectingHandler handler = new CollectingHandler(Integer.MAX_VALUE, null);
+
+		// WHEN
+		SearchResult result = search.execute(connector, handler, "test100");
+
+		// THEN
+		assertSame("Wrong search result", connector.searchResult, result);
+		assertEquals("Wrong number of objects", 20, handler.names.size());
+		for (int i = 0; i < 20; i++) {
+			assertEquals("Wrong object at position " + i, "object" + i, handler.names.get(i));
+		}
+		assertEquals("Handler was not called in the calling thread", Collections.singleton(Thread.currentThread().getName()),
+				new HashSet<>(handler.threads));
+		assertTrue("Connector has not finished", connector.finished);
+		assertFalse("Search reported as stopped by the handler", search.isStoppedByHandler());
+	}
+
+	/**
+	 * The handler stops after a few objects: the connector has to be told to stop, too.
+	 */
+	@Test
+	public void test110HandlerStops() throws Throwable {
+		// GIVEN
+		ReadAheadSearch<ShadowType> search = new ReadAheadSearch<>(BUFFER_SIZE, executor);
+		ConnectorStub connector = new ConnectorStub(search, 1000, null);
+		CollectingHandler handler = new CollectingHandler(5, null);
+
+		// WHEN
+		search.execute(connector, handler, "test110");
+
+		// THEN
+		assertEquals("Wrong number of objects handled", 5, handler.names.size());
+		assertTrue("Search not reported as stopped by the handler", search.isStoppedByHandler());
+		assertTrue("Connector has not finished", connector.finished);
+		assertTrue("Connector was not stopped", connector.stoppedByHandler);
+		assertTrue("Connector has read too many objects: " + connector.produced.get(), connector.produced.get() < 1000);
+	}
+
+	/**
+	 * The connector fails after a few objects: the objects read before the failure are processed
+	 * and then the exception is re-thrown.
+	 */
+	@Test
+	public void test120ConnectorFails() throws Throwable {
+		// GIVEN
+		ReadAheadSearch<ShadowType> search = new ReadAheadSearch<>(BUFFER_SIZE, executor);
+		IllegalStateException failure = new IllegalStateException("Connector failed");
+		ConnectorStub connector = new ConnectorStub(search, 2, failure);
+		CollectingHandler handler = new CollectingHandler(Integer.MAX_VALUE, null);
+
+		// WHEN
+		try {
+			search.execute(connector, handler, "test120");
+			fail("Unexpected success");
+		} catch (IllegalStateException e) {
+			// THEN
+			assertSame("Wrong exception", failure, e);
+		}
+		assertEquals("Wrong number of objects handled", 2, handler.names.size());
+	}
+
+	/**
+	 * The handler is slow: the connector may only read ahead as many objects as fit into the buffer.
+	 */
+	@Test
+	public void test130FullBuffer() throws Throwable {
+		// GIVEN
+		final ReadAheadSearch<ShadowType> search = new ReadAheadSearch<>(BUFFER_SIZE, executor);
+		final ConnectorStub connector = new ConnectorStub(search, 20, null);
+		CountDownLatch release = new CountDownLatch(1);
+		final CollectingHandler handler = new CollectingHandler(Integer.MAX_VALUE, release);
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		Thread consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					search.execute(connector, handler, "test130");
+				} catch (Throwable t) {
+					errors.add(t);
+				}
+			}
+		});
+
+		// WHEN
+		consumer.start();
+		assertTrue("First object was not handled", handler.started.await(10, TimeUnit.SECONDS));
+		// the connector fills the buffer and waits
+		Thread.sleep(1000L);
+
+		// THEN
+		// one object is in the handler, the buffer is full and the connector waits with the next one
+		assertEquals("Wrong number of objects read ahead", 1 + BUFFER_SIZE + 1, connector.produced.get());
+		assertFalse("Connector has finished", connector.finished);
+
+		release.countDown();
+		consumer.join(10000L);
+		assertFalse("Search has not finished", consumer.isAlive());
+		assertTrue("Unexpected errors: " + errors, errors.isEmpty());
+		assertEquals("Wrong number of objects handled", 20, handler.names.size());
+		assertTrue("Connector has not finished", connector.finished);
+	}
+
+	/**
+	 * Simulated connector search: passes the objects to the producer handler of the read-ahead search.
+	 */
+	private static class ConnectorStub implements Callable<SearchResult> {
+
+		private final ResultHandler<ShadowType> producerHandler;
+		private final int count;
+		private final RuntimeException failure;
+		private final SearchResult searchResult = new SearchResult();
+		// number of objects passed to the producer handler (including the one it is waiting with)
+		private final AtomicInteger produced = new AtomicInteger();
+		private volatile boolean stoppedByHandler;
+		private volatile boolean finished;
+
+		private ConnectorStub(ReadAheadSearch<ShadowType> search, int count, RuntimeException failure) {
+			this.producerHandler = search.getProducerHandler();
+			this.count = count;
+			this.failure = failure;
+		}
+
+		@Override
+		public SearchResult call() throws Exception {
+			try {
+				for (int i = 0; i < count; i++) {
+					produced.incrementAndGet();
+					if (!producerHandler.handle(createShadow("object" + i))) {
+						stoppedByHandler = true;
+						return searchResult;
+					}
+				}
+				if (failure != null) {
+					throw failure;
+				}
+				return searchResult;
+			} finally {
+				finished = true;
+			}
+		}
+
+		private PrismObject<ShadowType> createShadow(String name) throws SchemaException {
+			PrismObject<ShadowType> shadow = new ShadowType().asPrismObject();
+			PrismTestUtil.getPrismContext().adopt(shadow);
+			shadow.asObjectable().setName(PrismTestUtil.createPolyStringType(name));
+			return shadow;
+		}
+	}
+
+	private static class CollectingHandler implements ResultHandler<ShadowType> {
+
+		private final List<String> names = new ArrayList<>();
+		private final List<String> threads = new ArrayList<>();
+		private final int maxObjects;
+		private final CountDownLatch release;
+		private final CountDownLatch started = new CountDownLatch(1);
+
+		private CollectingHandler(int maxObjects, CountDownLatch release) {
+			this.maxObjects = maxObjects;
+			this.release = release;
+		}
+
+		@Override
+		public boolean handle(PrismObject<ShadowType> object) {
+			started.countDown();
+			if (release != null) {
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			names.add(object.asObjectable().getName().getOrig());
+			threads.add(Thread.currentThread().getName());
+			return names.size() < maxObjects;
+		}
+	}
+}
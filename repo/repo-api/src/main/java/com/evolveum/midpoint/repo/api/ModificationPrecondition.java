@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.repo.api;
+
+import com.evolveum.midpoint.prism.PrismObject;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ObjectType;
+
+/**
+ * A condition that has to hold for the current state of an object in order to
+ * apply a modification. It is evaluated by the repository on the object loaded
+ * (and locked) within the modification transaction.
+ *
+ * @author agent
+ */
+public interface ModificationPrecondition<T extends ObjectType> {
+
+	/**
+	 * @throws PreconditionViolationException if the modification must not be applied
+	 */
+	void check(PrismObject<T> object) throws PreconditionViolationException;
+
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.repo.api;
+
+/**
+ * Thrown when a modification precondition does not hold, i.e. the object was changed
+ * by someone else in the meantime.
+ *
+ * @author agent
+ */
+public class PreconditionViolationException extends Exception {
+
+	private static final long serialVersionUID = 3463872519412385127L;
+
+	public PreconditionViolationException(String message) {
+		super(message);
+	}
+
+	public PreconditionViolationException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
@@ -23,6 +23,7 @@ import javax.xml.namespace.QName;
 import com.evolveum.midpoint.prism.Containerable;
 import com.evolveum.midpoint.prism.PrismObject;
 import com.evolveum.midpoint.prism.delta.ItemDelta;
+import com.evolveum.midpoint.prism.delta.ObjectDelta;
 import com.evolveum.midpoint.prism.query.ObjectPaging;
 import com.evolveum.midpoint.prism.query.ObjectQuery;
 import com.evolveum.midpoint.schema.GetOperationOptions;
@@ -132,6 +133,7 @@ public interface RepositoryService {
     @Deprecated
     String LIST_ACCOUNT_SHADOW = CLASS_NAME_WITH_DOT + "listAccountShadowOwner";
     String ADD_OBJECT = CLASS_NAME_WITH_DOT + "addObject";
+    String ADD_OBJECTS = CLASS_NAME_WITH_DOT + "addObjects";
     String DELETE_OBJECT = CLASS_NAME_WITH_DOT + "deleteObject";
     @Deprecated
     String CLAIM_TASK = CLASS_NAME_WITH_DOT + "claimTask";
@@ -141,6 +143,7 @@ public interface RepositoryService {
 	String SEARCH_CONTAINERS = CLASS_NAME_WITH_DOT + "searchContainers";
     String LIST_RESOURCE_OBJECT_SHADOWS = CLASS_NAME_WITH_DOT + "listResourceObjectShadows";
     String MODIFY_OBJECT = CLASS_NAME_WITH_DOT + "modifyObject";
+    String MODIFY_OBJECTS = CLASS_NAME_WITH_DOT + "modifyObjects";
     String COUNT_OBJECTS = CLASS_NAME_WITH_DOT + "countObjects";
     String GET_VERSION = CLASS_NAME_WITH_DOT + "getVersion";
     String SEARCH_OBJECTS_ITERATIVE = CLASS_NAME_WITH_DOT + "searchObjectsIterative";
@@ -241,6 +244,23 @@ public interface RepositoryService {
 	<T extends ObjectType> String addObject(PrismObject<T> object, RepoAddOptions options, OperationResult parentResult)
 			throws ObjectAlreadyExistsException, SchemaException;
 
+	/**
+	 * <p>Adds a batch of new objects.</p>
+	 * <p>
+	 * Semantics of each addition is the same as of {@link #addObject(PrismObject, RepoAddOptions, OperationResult)},
+	 * but the implementation may store the objects more efficiently, e.g. in a single transaction. A failure of one
+	 * addition does not prevent the other objects from being added. OIDs assigned to the objects are set in them.
+	 * </p>
+	 *
+	 * @param objects
+	 *            objects to create
+	 * @param parentResult
+	 *            parent OperationResult (in/out)
+	 * @return results of individual additions, in the same order as the objects
+	 */
+	List<OperationResult> addObjects(List<? extends PrismObject<? extends ObjectType>> objects, RepoAddOptions options,
+			OperationResult parentResult);
+
 
 	/**
 	 * <p>Search for objects in the repository.</p>
@@ -391,6 +411,40 @@ public interface RepositoryService {
 	<T extends ObjectType> void modifyObject(Class<T> type, String oid, Collection<? extends ItemDelta> modifications, OperationResult parentResult)
 			throws ObjectNotFoundException, SchemaException, ObjectAlreadyExistsException;
 
+	/**
+	 * <p>Modifies object using relative change description, provided that the precondition holds.</p>
+	 * <p>
+	 * The precondition is evaluated on the current state of the object within the same transaction
+	 * (with the object locked), so it can be used e.g. for optimistic locking (see {@link VersionPrecondition}).
+	 * Otherwise the semantics is the same as of {@link #modifyObject(Class, String, Collection, OperationResult)}.
+	 * </p>
+	 *
+	 * @param precondition
+	 *            condition to be checked before the modification is applied (may be null)
+	 * @throws PreconditionViolationException
+	 *             the precondition does not hold; no changes were made
+	 */
+	<T extends ObjectType> void modifyObject(Class<T> type, String oid, Collection<? extends ItemDelta> modifications,
+			ModificationPrecondition<T> precondition, OperationResult parentResult)
+			throws ObjectNotFoundException, SchemaException, ObjectAlreadyExistsException, PreconditionViolationException;
+
+	/**
+	 * <p>Modifies a batch of objects.</p>
+	 * <p>
+	 * Semantics of each modification is the same as of {@link #modifyObject(Class, String, Collection, OperationResult)},
+	 * but the implementation may execute the modifications more efficiently, e.g. in a single transaction. A failure of one
+	 * modification does not prevent the other ones from being executed. Modifications of the same object are
+	 * executed in the order in which they are provided.
+	 * </p>
+	 *
+	 * @param deltas
+	 *            MODIFY deltas to be executed (with OIDs and object types set)
+	 * @param parentResult
+	 *            parent OperationResult (in/out)
+	 * @return results of individual modifications, in the same order as the deltas
+	 */
+	List<OperationResult> modifyObjects(List<? extends ObjectDelta<? extends ObjectType>> deltas, OperationResult parentResult);
+
 	/**
 	 * <p>Deletes object with specified OID.</p>
 	 * <p>
@@ -568,6 +622,27 @@ public interface RepositoryService {
      */
     void testOrgClosureConsistency(boolean repairIfNecessary, OperationResult testResult);
 
+    /**
+     * Switches off the maintenance of org closure table for org operations executed on this node,
+     * until finishOrgClosureBulkMode is called. Then the closure table is recomputed in one pass.
+     * This is much faster than maintaining the closure e.g. when importing large org structures;
+     * however, org-related searches do not reflect the changes until the bulk mode is finished.
+     *
+     * Calls may be nested; each call has to be paired with finishOrgClosureBulkMode.
+     *
+     * TODO this method is SQL service specific; it should be generalized/fixed somehow.
+     */
+    void beginOrgClosureBulkMode();
+
+    /**
+     * Finishes the bulk mode started by beginOrgClosureBulkMode. If this is the last such request,
+     * the org closure table is recomputed (locking out the M_ORG_CLOSURE table while doing so).
+     * Errors are recorded in the result.
+     * If operations started in the bulk mode are still running after a timeout, the bulk mode stays active
+     * (a warning is recorded) and it is finished in the background, with the table recomputed, as soon as they finish.
+     */
+    void finishOrgClosureBulkMode(OperationResult result);
+
 	/**
 	 * A bit of hack - execute arbitrary query, e.g. hibernate query in case of SQL repository.
 	 * Use with all the care!
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.repo.api;
+
+import com.evolveum.midpoint.prism.PrismObject;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ObjectType;
+
+/**
+ * Precondition used for optimistic locking: the object must have the expected version.
+ *
+ * @author agent
+ */
+public class VersionPrecondition<T extends ObjectType> implements ModificationPrecondition<T> {
+
+	private final String expectedVersion;
+
+	public VersionPrecondition(String expectedVersion) {
+		this.expectedVersion = expectedVersion;
+	}
+
+	public VersionPrecondition(PrismObject<T> object) {
+		this(object.getVersion());
+	}
+
+	@Override
+	public void check(PrismObject<T> object) throws PreconditionViolationException {
+		if (expectedVersion == null || !expectedVersion.equals(object.getVersion())) {
+			throw new PreconditionViolationException("Object " + object + " has version " + object.getVersion()
+					+ ", expected " + expectedVersion);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "VersionPrecondition(" + expectedVersion + ")";
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.repo.cache;
+
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ObjectType;
+
+/**
+ * Gets notified when an object is added, modified or deleted through RepositoryCache. Used by caches kept
+ * outside the repository (e.g. parsed resources in provisioning) to drop their entries without asking
+ * the repository for the object version on each use.
+ *
+ * Only changes done through this node are reported; changes made by other nodes have to be detected
+ * in some other way (e.g. by checking the version from time to time).
+ *
+ * @author agent
+ */
+public interface CacheInvalidationListener {
+
+    /**
+     * Called after the operation was executed (even if it failed), so the listener should simply drop the entry.
+     */
+    <T extends ObjectType> void invalidate(Class<T> type, String oid);
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.repo.cache;
+
+import com.evolveum.midpoint.prism.PrismObject;
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ObjectType;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node-wide (i.e. shared by all threads) cache of objects of selected types, e.g. roles, orgs or
+ * system configuration. Unlike the thread-local Cache it survives across operations, so it must
+ * never return stale data: each entry carries the object version and the caller (RepositoryCache)
+ * checks it against the repository before using the entry. Objects modified or deleted through
+ * this node are invalidated directly.
+ *
+ * The cache is bounded; least recently used entries are evicted first.
+ *
+ * Objects are stored and returned as they are; the caller is responsible for cloning them.
+ *
+ * @author agent
+ */
+public class GlobalCache {
+
+    private static final Trace LOGGER = TraceManager.getTrace(GlobalCache.class);
+
+    private final int maxSize;
+    private final Set<Class<? extends ObjectType>> types;
+
+    // access-ordered, so the eldest entry is the least recently used one
+    private final Map<String, PrismObject<? extends ObjectType>> objects;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong staleEntries = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public GlobalCache(int maxSize, Collection<Class<? extends ObjectType>> types) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Global cache size must be greater than zero, it is " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.types = new HashSet<>(types);
+        this.objects = new LinkedHashMap<String, PrismObject<? extends ObjectType>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PrismObject<? extends ObjectType>> eldest) {
+                if (size() > GlobalCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns true if objects of given type (or some of them, if the type is abstract) can be stored in the cache.
+     */
+    public boolean supportsType(Class<?> type) {
+        for (Class<? extends ObjectType> supportedType : types) {
+            if (supportedType.isAssignableFrom(type) || type.isAssignableFrom(supportedType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean supportsObjectClass(Class<?> objectClass) {
+        for (Class<? extends ObjectType> supportedType : types) {
+            if (supportedType.isAssignableFrom(objectClass)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns cached object with given OID, if it is of requested type. The version has to be checked by the caller.
+     */
+    public synchronized <T extends ObjectType> PrismObject<T> getObject(Class<T> type, String oid) {
+        PrismObject<? extends ObjectType> object = objects.get(oid);
+        if (object == null || !type.isAssignableFrom(object.getCompileTimeClass())) {
+            misses.incrementAndGet();
+            return null;
+        }
+        return (PrismObject<T>) object;
+    }
+
+    /**
+     * Records that the object obtained by getObject was successfully used, i.e. its version was current.
+     */
+    public void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    /**
+     * Removes the object obtained by getObject because its version was not current any more.
+     */
+    public synchronized void removeStaleObject(String oid) {
+        staleEntries.incrementAndGet();
+        misses.incrementAndGet();
+        objects.remove(oid);
+    }
+
+    public synchronized void putObject(PrismObject<? extends ObjectType> object) {
+        if (object.getOid() == null || object.getVersion() == null || !supportsObjectClass(object.getCompileTimeClass())) {
+            return;
+        }
+        objects.put(object.getOid(), object);
+    }
+
+    public synchronized void removeObject(String oid) {
+        if (objects.remove(oid) != null) {
+            invalidations.incrementAndGet();
+            LOGGER.trace("Global cache: invalidated {}", oid);
+        }
+    }
+
+    public synchronized void clear() {
+        objects.clear();
+    }
+
+    public synchronized int size() {
+        return objects.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getStaleEntries() {
+        return staleEntries.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public String description() {
+        return "size: " + size() + "/" + maxSize + ", hits: " + getHits() + ", misses: " + getMisses()
+                + " (stale: " + getStaleEntries() + "), evictions: " + getEvictions()
+                + ", invalidations: " + getInvalidations();
+    }
+
+    @Override
+    public String toString() {
+        return "GlobalCache(" + description() + ")";
+    }
+}
@@ -19,11 +19,15 @@ import com.evolveum.midpoint.prism.Containerable;
 import com.evolveum.midpoint.prism.PrismContext;
 import com.evolveum.midpoint.prism.PrismObject;
 import com.evolveum.midpoint.prism.delta.ItemDelta;
+import com.evolveum.midpoint.prism.delta.ObjectDelta;
 import com.evolveum.midpoint.prism.query.ObjectPaging;
 import com.evolveum.midpoint.prism.query.ObjectQuery;
+import com.evolveum.midpoint.repo.api.ModificationPrecondition;
+import com.evolveum.midpoint.repo.api.PreconditionViolationException;
 import com.evolveum.midpoint.repo.api.RepoAddOptions;
 import com.evolveum.midpoint.repo.api.RepositoryService;
 import com.evolveum.midpoint.schema.GetOperationOptions;
+import com.evolveum.midpoint.schema.LabeledString;
 import com.evolveum.midpoint.schema.RelationalValueSearchType;
 import com.evolveum.midpoint.schema.RepositoryDiag;
 import com.evolveum.midpoint.schema.ResultHandler;
@@ -45,13 +49,18 @@ import com.evolveum.midpoint.xml.ns._public.common.common_3.UserType;
 
 import org.apache.commons.lang.Validate;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.xml.namespace.QName;
 
 /**
  * Read-through write-through per-session repository cache.
+ *
+ * Optionally backed by node-wide GlobalCache for selected object types. Entries of the global cache
+ * are validated by getVersion before use, so they are safe even if the objects are changed on other nodes.
  * 
  * TODO doc
  * TODO logging perf measurements
@@ -68,8 +77,14 @@ public class RepositoryCache implements RepositoryService {
 	private static final Trace LOGGER = TraceManager.getTrace(RepositoryCache.class);
 	private static final Trace PERFORMANCE_ADVISOR = TraceManager.getPerformanceAdvisorTrace();
 
+	private static final String DETAILS_GLOBAL_CACHE = "globalCache";
+
 	private PrismContext prismContext;
 
+	private GlobalCache globalCache;
+
+	private final List<CacheInvalidationListener> invalidationListeners = new CopyOnWriteArrayList<>();
+
 	public RepositoryCache() {
     }
 	
@@ -80,6 +95,22 @@ public class RepositoryCache implements RepositoryService {
 		this.prismContext = prismContext;
     }
 	
+	public GlobalCache getGlobalCache() {
+		return globalCache;
+	}
+
+	public void setGlobalCache(GlobalCache globalCache) {
+		this.globalCache = globalCache;
+	}
+
+	public void registerInvalidationListener(CacheInvalidationListener listener) {
+		invalidationListeners.add(listener);
+	}
+
+	public void unregisterInvalidationListener(CacheInvalidationListener listener) {
+		invalidationListeners.remove(listener);
+	}
+
 	private static Cache getCache() {
 		return cacheInstance.get();
 	}
@@ -126,11 +157,41 @@ public class RepositoryCache implements RepositoryService {
 			}
 			log("Cache: MISS {} ({})", oid, type.getSimpleName());
 		}
+		if (globalCache != null && globalCache.supportsType(type)) {
+			PrismObject<T> object = getObjectFromGlobalCache(type, oid, parentResult);
+			if (object != null) {
+				cacheObject(cache, object);
+				return object;
+			}
+		}
 		PrismObject<T> object = repository.getObject(type, oid, null, parentResult);
 		cacheObject(cache, object);
+		if (globalCache != null && globalCache.supportsType(type)) {
+			globalCache.putObject(object.clone());
+		}
 		return object;
 	}
 
+	private <T extends ObjectType> PrismObject<T> getObjectFromGlobalCache(Class<T> type, String oid,
+			OperationResult parentResult) throws ObjectNotFoundException, SchemaException {
+		PrismObject<T> cached = globalCache.getObject(type, oid);
+		if (cached == null) {
+			log("Cache: Global MISS {} ({})", oid, type.getSimpleName());
+			return null;
+		}
+		// the object might have been changed on other node, so we have to check the version
+		String currentVersion = repository.getVersion(type, oid, parentResult);
+		if (!currentVersion.equals(cached.getVersion())) {
+			log("Cache: Global STALE {} ({}), cached version {}, current version {}", oid, type.getSimpleName(),
+					cached.getVersion(), currentVersion);
+			globalCache.removeStaleObject(oid);
+			return null;
+		}
+		log("Cache: Global HIT {} ({})", oid, type.getSimpleName());
+		globalCache.recordHit();
+		return cached.clone();
+	}
+
 	private boolean isCacheable(Class<?> type) {
 		if (type.equals(TaskType.class)) {
 			return false;
@@ -154,8 +215,28 @@ public class RepositoryCache implements RepositoryService {
 			cache.removeObject(oid);
 			cache.clearQueryResults(object.getCompileTimeClass());
 		}
+		if (globalCache != null) {
+			// the object may be overwritten
+			globalCache.removeObject(oid);
+		}
+		notifyInvalidationListeners(object.getCompileTimeClass(), oid);
 		return oid;
 	}
+
+	@Override
+	public List<OperationResult> addObjects(List<? extends PrismObject<? extends ObjectType>> objects, RepoAddOptions options,
+			OperationResult parentResult) {
+		try {
+			return repository.addObjects(objects, options, parentResult);
+		} finally {
+			// see addObject - the objects are not cached, only invalidated
+			for (PrismObject<? extends ObjectType> object : objects) {
+				if (object != null && object.getOid() != null && object.getCompileTimeClass() != null) {
+					invalidateCacheEntry(object.getCompileTimeClass(), object.getOid());
+				}
+			}
+		}
+	}
 	
 	@Override
 	public <T extends ObjectType> SearchResultList<PrismObject<T>> searchObjects(Class<T> type, ObjectQuery query, 
@@ -233,12 +314,50 @@ public class RepositoryCache implements RepositoryService {
 		}
 	}
 
+	@Override
+	public <T extends ObjectType> void modifyObject(Class<T> type, String oid, Collection<? extends ItemDelta> modifications,
+			ModificationPrecondition<T> precondition, OperationResult parentResult)
+			throws ObjectNotFoundException, SchemaException, ObjectAlreadyExistsException, PreconditionViolationException {
+		try {
+			repository.modifyObject(type, oid, modifications, precondition, parentResult);
+		} finally {
+			invalidateCacheEntry(type, oid);
+		}
+	}
+
+	@Override
+	public List<OperationResult> modifyObjects(List<? extends ObjectDelta<? extends ObjectType>> deltas, OperationResult parentResult) {
+		try {
+			return repository.modifyObjects(deltas, parentResult);
+		} finally {
+			for (ObjectDelta<? extends ObjectType> delta : deltas) {
+				if (delta != null && delta.getOid() != null && delta.getObjectTypeClass() != null) {
+					invalidateCacheEntry(delta.getObjectTypeClass(), delta.getOid());
+				}
+			}
+		}
+	}
+
 	protected <T extends ObjectType> void invalidateCacheEntry(Class<T> type, String oid) {
 		Cache cache = getCache();
 		if (cache != null) {
 			cache.removeObject(oid);
 			cache.clearQueryResults(type);
 		}
+		if (globalCache != null) {
+			globalCache.removeObject(oid);
+		}
+		notifyInvalidationListeners(type, oid);
+	}
+
+	private <T extends ObjectType> void notifyInvalidationListeners(Class<T> type, String oid) {
+		for (CacheInvalidationListener listener : invalidationListeners) {
+			try {
+				listener.invalidate(type, oid);
+			} catch (RuntimeException e) {
+				LOGGER.error("Cache invalidation listener {} failed for {}: {}", listener, oid, e.getMessage(), e);
+			}
+		}
 	}
 
 	@Override
@@ -325,7 +444,16 @@ public class RepositoryCache implements RepositoryService {
 	 */
 	@Override
 	public RepositoryDiag getRepositoryDiag() {
-		return repository.getRepositoryDiag();
+		RepositoryDiag diag = repository.getRepositoryDiag();
+		if (globalCache != null && diag != null) {
+			List<LabeledString> details = diag.getAdditionalDetails();
+			if (details == null) {
+				details = new ArrayList<>();
+				diag.setAdditionalDetails(details);
+			}
+			details.add(new LabeledString(DETAILS_GLOBAL_CACHE, globalCache.description()));
+		}
+		return diag;
 	}
 
 	/* (non-Javadoc)
@@ -341,6 +469,16 @@ public class RepositoryCache implements RepositoryService {
         repository.testOrgClosureConsistency(repairIfNecessary, testResult);
     }
 
+    @Override
+    public void beginOrgClosureBulkMode() {
+        repository.beginOrgClosureBulkMode();
+    }
+
+    @Override
+    public void finishOrgClosureBulkMode(OperationResult result) {
+        repository.finishOrgClosureBulkMode(result);
+    }
+
     private <T extends ObjectType> void cacheObject(Cache cache, PrismObject<T> object) {
 		if (cache != null) {
 			cache.putObject(object.getOid(), (PrismObject<ObjectType>) object.clone());
@@ -19,19 +19,76 @@ package com.evolveum.midpoint.repo.cache;
 import com.evolveum.midpoint.repo.api.RepositoryService;
 import com.evolveum.midpoint.repo.api.RepositoryServiceFactory;
 import com.evolveum.midpoint.repo.api.RepositoryServiceFactoryException;
+import com.evolveum.midpoint.schema.constants.ObjectTypes;
+import com.evolveum.midpoint.schema.constants.SchemaConstants;
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ObjectType;
 import org.apache.commons.configuration.Configuration;
+import org.apache.commons.lang.StringUtils;
+
+import javax.xml.namespace.QName;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author lazyman
  */
 public class RepositoryCacheFactory implements RepositoryServiceFactory {
 
+    private static final Trace LOGGER = TraceManager.getTrace(RepositoryCacheFactory.class);
+
+    /**
+     * Maximal number of objects in node-wide cache. Zero (the default) means the global cache is disabled.
+     */
+    public static final String PROPERTY_GLOBAL_CACHE_MAX_SIZE = "globalCacheMaxSize";
+
+    /**
+     * Object types (e.g. RoleType) that are kept in node-wide cache.
+     */
+    public static final String PROPERTY_GLOBAL_CACHE_OBJECT_TYPES = "globalCacheObjectTypes";
+
+    private static final String[] DEFAULT_GLOBAL_CACHE_OBJECT_TYPES = { "RoleType", "OrgType", "ResourceType",
+            "SystemConfigurationType", "ObjectTemplateType", "ValuePolicyType" };
+
+    private int globalCacheMaxSize;
+    private List<Class<? extends ObjectType>> globalCacheObjectTypes = new ArrayList<>();
+
     @Override
     public void destroy() throws RepositoryServiceFactoryException {
     }
 
     @Override
     public void init(Configuration configuration) throws RepositoryServiceFactoryException {
+        if (configuration == null) {
+            return;
+        }
+        globalCacheMaxSize = configuration.getInt(PROPERTY_GLOBAL_CACHE_MAX_SIZE, 0);
+        if (globalCacheMaxSize < 0) {
+            throw new RepositoryServiceFactoryException("Global cache size must not be negative.");
+        }
+
+        String[] typeNames = configuration.getStringArray(PROPERTY_GLOBAL_CACHE_OBJECT_TYPES);
+        if (typeNames == null || typeNames.length == 0) {
+            typeNames = DEFAULT_GLOBAL_CACHE_OBJECT_TYPES;
+        }
+        globalCacheObjectTypes.clear();
+        for (String typeName : typeNames) {
+            if (StringUtils.isBlank(typeName)) {
+                continue;
+            }
+            try {
+                QName typeQName = new QName(SchemaConstants.NS_C, typeName.trim());
+                globalCacheObjectTypes.add(ObjectTypes.getObjectTypeFromTypeQName(typeQName).getClassDefinition());
+            } catch (IllegalArgumentException e) {
+                throw new RepositoryServiceFactoryException("Unknown object type '" + typeName + "' in "
+                        + PROPERTY_GLOBAL_CACHE_OBJECT_TYPES + ".", e);
+            }
+        }
+
+        if (globalCacheMaxSize > 0) {
+            LOGGER.info("Global repository cache enabled, max size {}, object types {}", globalCacheMaxSize, globalCacheObjectTypes);
+        }
     }
 
     @Override
@@ -47,6 +104,10 @@ public class RepositoryCacheFactory implements RepositoryServiceFactory {
     @Override
     public RepositoryService getRepositoryService() throws RepositoryServiceFactoryException {
         RepositoryCache.init();
-        return new RepositoryCache();
+        RepositoryCache repositoryCache = new RepositoryCache();
+        if (globalCacheMaxSize > 0) {
+            repositoryCache.setGlobalCache(new GlobalCache(globalCacheMaxSize, globalCacheObjectTypes));
+        }
+        return repositoryCache;
     }
 }
@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.repo.cache;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNotSame;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
+import org.xml.sax.SAXException;
+
+import com.evolveum.midpoint.prism.PrismObject;
+import com.evolveum.midpoint.prism.delta.ItemDelta;
+import com.evolveum.midpoint.prism.delta.ObjectDelta;
+import com.evolveum.midpoint.prism.util.PrismTestUtil;
+import com.evolveum.midpoint.repo.api.RepositoryService;
+import com.evolveum.midpoint.schema.MidPointPrismContextFactory;
+import com.evolveum.midpoint.schema.constants.MidPointConstants;
+import com.evolveum.midpoint.schema.result.OperationResult;
+import com.evolveum.midpoint.test.util.TestUtil;
+import com.evolveum.midpoint.util.PrettyPrinter;
+import com.evolveum.midpoint.util.exception.SchemaException;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ObjectType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.RoleType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.UserType;
+
+/**
+ * Node-wide GlobalCache used by RepositoryCache. The repository below the cache is a mock
+ * that keeps the objects in a map; changing an object there is a modification that bypassed the cache
+ * (e.g. one done on other node).
+ *
+ * @author agent
+ */
+public class TestGlobalCache {
+
+	private static final String ROLE_PIRATE_OID = "12345678-d34d-b33f-f00d-555555556666";
+	private static final String ROLE_CAPTAIN_OID = "12345678-d34d-b33f-f00d-555555556667";
+	private static final String ROLE_SAILOR_OID = "12345678-d34d-b33f-f00d-555555556668";
+	private static final String USER_JACK_OID = "c0c010c0-d34d-b33f-f00d-111111111111";
+
+	private static final int MAX_SIZE = 2;
+
+	private final Map<String, PrismObject<? extends ObjectType>> repoObjects = new HashMap<>();
+	private RepositoryService repository;
+	private GlobalCache globalCache;
+	private RepositoryCache repositoryCache;
+
+	@BeforeSuite
+	public void setup() throws SchemaException, SAXException, IOException {
+		PrettyPrinter.setDefaultNamespacePrefix(MidPointConstants.NS_MIDPOINT_PUBLIC_PREFIX);
+		PrismTestUtil.resetPrismContext(MidPointPrismContextFactory.FACTORY);
+	}
+
+	@BeforeMethod
+	public void initCache() throws Exception {
+		repoObjects.clear();
+		addRepoObject(createRole(ROLE_PIRATE_OID, "pirate"));
+		addRepoObject(createRole(ROLE_CAPTAIN_OID, "captain"));
+		addRepoObject(createRole(ROLE_SAILOR_OID, "sailor"));
+		addRepoObject(createUser(USER_JACK_OID, "jack"));
+
+		repository = Mockito.mock(RepositoryService.class);
+		when(repository.getObject(any(Class.class), anyString(), any(Collection.class), any(OperationResult.class)))
+				.thenAnswer(new Answer<PrismObject<?>>() {
+					@Override
+					public PrismObject<?> answer(InvocationOnMock invocation) throws Throwable {
+						return repoObjects.get((String) invocation.getArguments()[1]).clone();
+					}
+				});
+		when(repository.getVersion(any(Class.class), anyString(), any(OperationResult.class)))
+				.thenAnswer(new Answer<String>() {
+					@Override
+					public String answer(InvocationOnMock invocation) throws Throwable {
+						return repoObjects.get((String) invocation.getArguments()[1]).getVersion();
+					}
+				});
+
+		globalCache = new GlobalCache(MAX_SIZE, Arrays.<Class<? extends ObjectType>>asList(RoleType.class));
+		repositoryCache = new RepositoryCache();
+		repositoryCache.setRepository(repository, PrismTestUtil.getPrismContext());
+		repositoryCache.setGlobalCache(globalCache);
+	}
+
+	@Test
+	public void test100Hit() throws Exception {
+		final String TEST_NAME = "test100Hit";
+		TestUtil.displayTestTile(TEST_NAME);
+		OperationResult result = new OperationResult(TestGlobalCache.class.getName() + "." + TEST_NAME);
+
+		// WHEN
+		PrismObject<RoleType> first = repositoryCache.getObject(RoleType.class, ROLE_PIRATE_OID, null, result);
+		PrismObject<RoleType> second = repositoryCache.getObject(RoleType.class, ROLE_PIRATE_OID, null, result);
+
+		// THEN
+		verify(repository, times(1)).getObject(eq(RoleType.class), eq(ROLE_PIRATE_OID), any(Collection.class), any(OperationResult.class));
+		verify(repository, times(1)).getVersion(eq(RoleType.class), eq(ROLE_PIRATE_OID), any(OperationResult.class));
+		assertEquals("Wrong object", first, second);
+		assertNotSame("Cached object is not cloned", first, second);
+		assertNotSame("Cached object is returned", globalCache.getObject(RoleType.class, ROLE_PIRATE_OID), second);
+		assertCounters(1, 1, 0, 0, 0);
+	}
+
+	@Test
+	public void test110StaleVersion() throws Exception {
+		final String TEST_NAME = "test110StaleVersion";
+		TestUtil.displayTestTile(TEST_NAME);
+		OperationResult result = new OperationResult(TestGlobalCache.class.getName() + "." + TEST_NAME);
+		repositoryCache.getObject(RoleType.class, ROLE_PIRATE_OID, null, result);
+
+		// modification that bypassed the cache
+		repoObjects.get(ROLE_PIRATE_OID).setVersion("2");
+
+		// WHEN
+		PrismObject<RoleType> current = repositoryCache.getObject(RoleType.class, ROLE_PIRATE_OID, null, result);
+
+		// THEN
+		verify(repository, times(2)).getObject(eq(RoleType.class), eq(ROLE_PIRATE_OID), any(Collection.class), any(OperationResult.class));
+		assertEquals("Stale object returned", "2", current.getVersion());
+		assertCounters(0, 2, 1, 0, 0);
+
+		// WHEN
+		PrismObject<RoleType> again = repositoryCache.getObject(RoleType.class, ROLE_PIRATE_OID, null, result);
+
+		// THEN
+		verify(repository, times(2)).getObject(eq(RoleType.class), eq(ROLE_PIRATE_OID), any(Collection.class), any(OperationResult.class));
+		assertEquals("Stale object returned", "2", again.getVersion());
+		assertCounters(1, 2, 1, 0, 0);
+	}
+
+	@Test
+	public void test120InvalidateOnModifyObject() throws Exception {
+		final String TEST_NAME = "test120InvalidateOnModifyObject";
+		TestUtil.displayTestTile(TEST_NAME);
+		OperationResult result = new OperationResult(TestGlobalCache.class.getName() + "." + TEST_NAME);
+		repositoryCache.getObject(RoleType.class, ROLE_PIRATE_OID, null, result);
+
+		// WHEN
+		repositoryCache.modifyObject(RoleType.class, ROLE_PIRATE_OID, Collections.<ItemDelta>emptyList(), result);
+
+		// THEN
+		assertInvalidated(ROLE_PIRATE_OID, result);
+	}
+
+	@Test
+	public void test122InvalidateOnDeleteObject() throws Exception {
+		final String TEST_NAME = "test122InvalidateOnDeleteObject";
+		TestUtil.displayTestTile(TEST_NAME);
+		OperationResult result = new OperationResult(TestGlobalCache.class.getName() + "." + TEST_NAME);
+		repositoryCache.getObject(RoleType.class, ROLE_PIRATE_OID, null, result);
+
+		// WHEN
+		repositoryCache.deleteObject(RoleType.class, ROLE_PIRATE_OID, result);
+
+		// THEN
+		assertInvalidated(ROLE_PIRATE_OID, result);
+	}
+
+	@Test
+	public void test124InvalidateOnAddObjects() throws Exception {
+		final String TEST_NAME = "test124InvalidateOnAddObjects";
+		TestUtil.displayTestTile(TEST_NAME);
+		OperationResult result = new OperationResult(TestGlobalCache.class.getName() + "." + TEST_NAME);
+		repositoryCache.getObject(RoleType.class, ROLE_PIRATE_OID, null, result);
+
+		// WHEN
+		List<PrismObject<RoleType>> objects = Arrays.asList(createRole(ROLE_PIRATE_OID, "pirate"));
+		repositoryCache.addObjects(objects, null, result);
+
+		// THEN
+		assertInvalidated(ROLE_PIRATE_OID, result);
+	}
+
+	@Test
+	public void test126InvalidateOnModifyObjects() throws Exception {
+		final String TEST_NAME = "test126InvalidateOnModifyObjects";
+		TestUtil.displayTestTile(TEST_NAME);
+		OperationResult result = new OperationResult(TestGlobalCache.class.getName() + "." + TEST_NAME);
+		repositoryCache.getObject(RoleType.class, ROLE_PIRATE_OID, null, result);
+		repositoryCache.getObject(RoleType.class, ROLE_CAPTAIN_OID, null, result);
+
+		// WHEN
+		List<ObjectDelta<RoleType>> deltas = Arrays.asList(
+				ObjectDelta.createEmptyModifyDelta(RoleType.class, ROLE_PIRATE_OID, PrismTestUtil.getPrismContext()));
+		repositoryCache.modifyObjects(deltas, result);
+
+		// THEN
+		assertEquals("Wrong cache size", 1, globalCache.size());
+		assertNull("Modified object is still cached", globalCache.getObject(RoleType.class, ROLE_PIRATE_OID));
+		assertEquals("Wrong invalidations", 1, globalCache.getInvalidations());
+	}
+
+	@Test
+	public void test130LruEviction() throws Exception {
+		final String TEST_NAME = "test130LruEviction";
+		TestUtil.displayTestTile(TEST_NAME);
+		OperationResult result = new OperationResult(TestGlobalCache.class.getName() + "." + TEST_NAME);
+		repositoryCache.getObject(RoleType.class, ROLE_PIRATE_OID, null, result);
+		repositoryCache.getObject(RoleType.class, ROLE_CAPTAIN_OID, null, result);
+		// pirate is now the most recently used one
+		repositoryCache.getObject(RoleType.class, ROLE_PIRATE_OID, null, result);
+
+		// WHEN
+		repositoryCache.getObject(RoleType.class, ROLE_SAILOR_OID, null, result);
+
+		// THEN
+		assertEquals("Wrong cache size", MAX_SIZE, globalCache.size());
+		assertCounters(1, 3, 0, 1, 0);
+
+		// WHEN
+		repositoryCache.getObject(RoleType.class, ROLE_PIRATE_OID, null, result);
+		repositoryCache.getObject(RoleType.class, ROLE_CAPTAIN_OID, null, result);
+
+		// THEN
+		verify(repository, times(1)).getObject(eq(RoleType.class), eq(ROLE_PIRATE_OID), any(Collection.class), any(OperationResult.class));
+		verify(repository, times(2)).getObject(eq(RoleType.class), eq(ROLE_CAPTAIN_OID), any(Collection.class), any(OperationResult.class));
+		assertCounters(2, 4, 0, 2, 0);
+	}
+
+	@Test
+	public void test140TypeNotInGlobalCache() throws Exception {
+		final String TEST_NAME = "test140TypeNotInGlobalCache";
+		TestUtil.displayTestTile(TEST_NAME);
+		OperationResult result = new OperationResult(TestGlobalCache.class.getName() + "." + TEST_NAME);
+
+		// WHEN
+		repositoryCache.getObject(UserType.class, USER_JACK_OID, null, result);
+		repositoryCache.getObject(UserType.class, USER_JACK_OID, null, result);
+
+		// THEN
+		assertFalse("User type is supported", globalCache.supportsType(UserType.class));
+		assertTrue("Object type is not supported", globalCache.supportsType(ObjectType.class));
+		verify(repository, times(2)).getObject(eq(UserType.class), eq(USER_JACK_OID), any(Collection.class), any(OperationResult.class));
+		verify(repository, times(0)).getVersion(eq(UserType.class), eq(USER_JACK_OID), any(OperationResult.class));
+		assertEquals("Wrong cache size", 0, globalCache.size());
+		assertCounters(0, 0, 0, 0, 0);
+	}
+
+	private void assertInvalidated(String oid, OperationResult result) throws Exception {
+		assertEquals("Wrong cache size", 0, globalCache.size());
+		assertEquals("Wrong invalidations", 1, globalCache.getInvalidations());
+		repositoryCache.getObject(RoleType.class, oid, null, result);
+		verify(repository, times(2)).getObject(eq(RoleType.class), eq(oid), any(Collection.class), any(OperationResult.class));
+	}
+
+	private void assertCounters(long hits, long misses, long staleEntries, long evictions, long invalidations) {
+		String description = globalCache.description();
+		assertEquals("Wrong hits: " + description, hits, globalCache.getHits());
+		assertEquals("Wrong misses: " + description, misses, globalCache.getMisses());
+		assertEquals("Wrong stale entries: " + description, staleEntries, globalCache.getStaleEntries());
+		assertEquals("Wrong evictions: " + description, evictions, globalCache.getEvictions());
+		assertEquals("Wrong invalidations: " + description, invalidations, globalCache.getInvalidations());
+	}
+
+	private void addRepoObject(PrismObject<? extends ObjectType> object) {
+		object.setVersion("1");
+		repoObjects.put(object.getOid(), object);
+	}
+
+	private PrismObject<RoleType> createRole(String oid, String name) throws SchemaException {
+		PrismObject<RoleType> role = new RoleType().asPrismObject();
+		PrismTestUtil.getPrismContext().adopt(role);
+		role.setOid(oid);
+		role.asObjectable().setName(PrismTestUtil.createPolyStringType(name));
+		return role;
+	}
+
+	private PrismObject<UserType> createUser(String oid, String name) throws SchemaException {
+		PrismObject<UserType> user = new UserType().asPrismObject();
+		PrismTestUtil.getPrismContext().adopt(user);
+		user.setOid(oid);
+		user.asObjectable().setName(PrismTestUtil.createPolyStringType(name));
+		return user;
+	}
+}
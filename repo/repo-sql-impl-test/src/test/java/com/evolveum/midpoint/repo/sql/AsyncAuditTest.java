@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.repo.sql;
+
+import com.evolveum.midpoint.audit.api.AuditEventRecord;
+import com.evolveum.midpoint.audit.api.AuditEventStage;
+import com.evolveum.midpoint.audit.api.AuditEventType;
+import com.evolveum.midpoint.repo.sql.data.audit.RAuditEventRecord;
+import com.evolveum.midpoint.repo.sql.util.SimpleTaskAdapter;
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+import org.apache.commons.io.FileUtils;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ContextConfiguration;
+import org.testng.AssertJUnit;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+/**
+ * @author agent
+ */
+@ContextConfiguration(locations = {"../../../../../ctx-test.xml"})
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+public class AsyncAuditTest extends BaseSQLRepoTest {
+
+    private static final Trace LOGGER = TraceManager.getTrace(AsyncAuditTest.class);
+
+    private static final File SPILL_DIRECTORY = new File("./target/audit-spill");
+
+    @Autowired
+    private SqlAuditServiceFactory auditServiceFactory;
+
+    @Test
+    public void test100BlockingQueue() throws Exception {
+        AsyncAuditConfiguration config = new AsyncAuditConfiguration();
+        config.setAsynchronous(true);
+        config.setQueueSize(5);
+        config.setBatchSize(7);
+        config.setFlushInterval(100L);
+
+        long before = countRecords();
+
+        SqlAuditServiceImpl service = createService(config);
+        auditRecords(service, "block", 50);
+        service.shutdown();
+
+        AssertJUnit.assertEquals("Wrong number of records written", 50, service.getAsyncWriter().getRecordsWritten());
+        AssertJUnit.assertEquals("Wrong number of records in the database", before + 50, countRecords());
+    }
+
+    @Test
+    public void test200SpillOnOverflow() throws Exception {
+        AsyncAuditConfiguration config = new AsyncAuditConfiguration();
+        config.setAsynchronous(true);
+        config.setQueueSize(1);
+        config.setBatchSize(10);
+        config.setFlushInterval(100L);
+        config.setOverflowPolicy(AsyncAuditConfiguration.OverflowPolicy.SPILL);
+        config.setSpillDirectory(SPILL_DIRECTORY.getPath());
+        FileUtils.deleteDirectory(SPILL_DIRECTORY);
+
+        long before = countRecords();
+
+        SqlAuditServiceImpl service = createService(config);
+        auditRecords(service, "spill", 100);
+        service.shutdown();
+
+        AsyncAuditWriter writer = service.getAsyncWriter();
+        LOGGER.info("Written: {}, spilled: {}", writer.getRecordsWritten(), writer.getRecordsSpilled());
+        AssertJUnit.assertEquals("Some records were lost", 0, writer.getRecordsLost());
+        AssertJUnit.assertEquals("Wrong number of records written", 100, writer.getRecordsWritten());
+        AssertJUnit.assertEquals("Wrong number of records in the database", before + 100, countRecords());
+
+        String[] remaining = SPILL_DIRECTORY.list();
+        AssertJUnit.assertNotNull("Spill directory was not created", remaining);
+        AssertJUnit.assertEquals("Spill files were not processed", 0, remaining.length);
+    }
+
+    @Test
+    public void test300AuditAfterShutdown() throws Exception {
+        AsyncAuditConfiguration config = new AsyncAuditConfiguration();
+        config.setAsynchronous(true);
+
+        long before = countRecords();
+
+        SqlAuditServiceImpl service = createService(config);
+        service.shutdown();
+        auditRecords(service, "late", 3);
+
+        // written synchronously
+        AssertJUnit.assertEquals("Wrong number of records in the database", before + 3, countRecords());
+    }
+
+    private SqlAuditServiceImpl createService(AsyncAuditConfiguration config) throws Exception {
+        config.validate();
+        SqlAuditServiceImpl service = new SqlAuditServiceImpl(auditServiceFactory.getRepositoryFactory());
+        applicationContext.getAutowireCapableBeanFactory().autowireBean(service);
+        service.setAsyncConfiguration(config);
+        return service;
+    }
+
+    private void auditRecords(SqlAuditServiceImpl service, String prefix, int count) {
+        for (int i = 0; i < count; i++) {
+            AuditEventRecord record = new AuditEventRecord(AuditEventType.ADD_OBJECT, AuditEventStage.EXECUTION);
+            record.setTimestamp(System.currentTimeMillis());
+            record.setEventIdentifier(prefix + "-" + i);
+            service.audit(record, new SimpleTaskAdapter());
+        }
+    }
+
+    private long countRecords() {
+        Session session = getFactory().openSession();
+        try {
+            session.beginTransaction();
+            Query query = session.createQuery("select count(*) from " + RAuditEventRecord.class.getSimpleName());
+            Long count = (Long) query.uniqueResult();
+            session.getTransaction().commit();
+            return count;
+        } finally {
+            session.close();
+        }
+    }
+}
@@ -53,10 +53,14 @@ import com.evolveum.midpoint.prism.delta.ObjectDelta;
 import com.evolveum.midpoint.prism.delta.PropertyDelta;
 import com.evolveum.midpoint.prism.delta.ReferenceDelta;
 import com.evolveum.midpoint.prism.path.ItemPath;
+import com.evolveum.midpoint.prism.polystring.PolyString;
+import com.evolveum.midpoint.prism.query.EqualFilter;
 import com.evolveum.midpoint.prism.query.LessFilter;
 import com.evolveum.midpoint.prism.query.ObjectQuery;
 import com.evolveum.midpoint.prism.util.PrismTestUtil;
 import com.evolveum.midpoint.prism.xml.XmlTypeConverter;
+import com.evolveum.midpoint.repo.api.PreconditionViolationException;
+import com.evolveum.midpoint.repo.api.VersionPrecondition;
 import com.evolveum.midpoint.repo.sql.data.common.any.ROExtDate;
 import com.evolveum.midpoint.repo.sql.data.common.any.ROExtLong;
 import com.evolveum.midpoint.repo.sql.data.common.any.ROExtString;
@@ -82,6 +86,7 @@ import com.evolveum.midpoint.xml.ns._public.common.common_3.RoleType;
 import com.evolveum.midpoint.xml.ns._public.common.common_3.ShadowType;
 import com.evolveum.midpoint.xml.ns._public.common.common_3.SynchronizationSituationDescriptionType;
 import com.evolveum.midpoint.xml.ns._public.common.common_3.SynchronizationSituationType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.TaskExecutionStatusType;
 import com.evolveum.midpoint.xml.ns._public.common.common_3.TaskType;
 import com.evolveum.midpoint.xml.ns._public.common.common_3.UserType;
 import com.evolveum.prism.xml.ns._public.types_3.PolyStringType;
@@ -579,4 +584,217 @@ public class ModifyTest extends BaseSQLRepoTest {
         AssertJUnit.assertNotNull(container.getValue(2L));
         AssertJUnit.assertNotNull(container.getValue(3L));
     }
+
+    @Test
+    public void test200AddAndModifyObjectsInBatch() throws Exception {
+        OperationResult result = new OperationResult("test200AddAndModifyObjectsInBatch");
+
+        final int COUNT = 30;       // more than one JDBC batch
+        List<PrismObject<UserType>> users = new ArrayList<>();
+        for (int i = 0; i < COUNT; i++) {
+            UserType user = new UserType();
+            user.setName(new PolyStringType(new PolyString("batch-user-" + i, "batch-user-" + i)));
+            PrismObject<UserType> prism = user.asPrismObject();
+            prismContext.adopt(prism);
+            users.add(prism);
+        }
+        // conflicting name - this one should fail, the others should be added
+        UserType conflicting = new UserType();
+        conflicting.setName(new PolyStringType(new PolyString("batch-user-0", "batch-user-0")));
+        PrismObject<UserType> conflictingPrism = conflicting.asPrismObject();
+        prismContext.adopt(conflictingPrism);
+        users.add(conflictingPrism);
+
+        List<OperationResult> addResults = repositoryService.addObjects(users, null, result);
+        AssertJUnit.assertEquals(COUNT + 1, addResults.size());
+        for (int i = 0; i < COUNT; i++) {
+            AssertJUnit.assertTrue("Adding user " + i + " failed: " + addResults.get(i), addResults.get(i).isSuccess());
+            AssertJUnit.assertNotNull("No OID for user " + i, users.get(i).getOid());
+        }
+        AssertJUnit.assertTrue("Adding conflicting user should fail", addResults.get(COUNT).isFatalError());
+
+        List<ObjectDelta<UserType>> deltas = new ArrayList<>();
+        for (int i = 0; i < COUNT; i++) {
+            deltas.add(ObjectDelta.createModificationReplaceProperty(UserType.class, users.get(i).getOid(),
+                    UserType.F_GIVEN_NAME, prismContext, new PolyString("given-" + i)));
+        }
+        // second modification of the same object must be applied after the first one
+        deltas.add(ObjectDelta.createModificationReplaceProperty(UserType.class, users.get(0).getOid(),
+                UserType.F_GIVEN_NAME, prismContext, new PolyString("given-0-changed")));
+        // non-existing object - this one should fail, the others should be applied
+        deltas.add(ObjectDelta.createModificationReplaceProperty(UserType.class, UUID.randomUUID().toString(),
+                UserType.F_GIVEN_NAME, prismContext, new PolyString("nobody")));
+
+        List<OperationResult> modifyResults = repositoryService.modifyObjects(deltas, result);
+        AssertJUnit.assertEquals(COUNT + 2, modifyResults.size());
+        for (int i = 0; i <= COUNT; i++) {
+            AssertJUnit.assertTrue("Modification " + i + " failed: " + modifyResults.get(i), modifyResults.get(i).isSuccess());
+        }
+        AssertJUnit.assertTrue("Modification of non-existing object should fail", modifyResults.get(COUNT + 1).isFatalError());
+
+        for (int i = 0; i < COUNT; i++) {
+            PrismObject<UserType> user = repositoryService.getObject(UserType.class, users.get(i).getOid(), null, result);
+            String expected = i == 0 ? "given-0-changed" : "given-" + i;
+            AssertJUnit.assertEquals(expected, user.asObjectable().getGivenName().getOrig());
+            AssertJUnit.assertEquals(i == 0 ? "2" : "1", user.getVersion());
+        }
+    }
+
+    @Test
+    public void test210ModifyTaskColumnsInPlace() throws Exception {
+        // in-place updates are disabled by default
+        baseHelper.getConfiguration().setInPlaceUpdates(true);
+        try {
+            OperationResult result = new OperationResult("test210ModifyTaskColumnsInPlace");
+
+            PrismObject<TaskType> task = prismContext.parseObject(new File(TEST_DIR, "task.xml"));
+            task.setOid(null);
+            task.asObjectable().setName(new PolyStringType("in-place task"));
+            task.asObjectable().setTaskIdentifier(UUID.randomUUID().toString());
+            String oid = repositoryService.addObject(task, null, result);
+
+            XMLGregorianCalendar timestamp = XmlTypeConverter.createXMLGregorianCalendar(System.currentTimeMillis());
+            Collection<ItemDelta> modifications = new ArrayList<>();
+            modifications.add(PropertyDelta.createModificationReplaceProperty(TaskType.F_LAST_RUN_START_TIMESTAMP,
+                    task.getDefinition(), timestamp));
+            modifications.add(PropertyDelta.createModificationReplaceProperty(TaskType.F_EXECUTION_STATUS,
+                    task.getDefinition(), TaskExecutionStatusType.SUSPENDED));
+            modifications.add(PropertyDelta.createModificationReplaceProperty(TaskType.F_NODE,
+                    task.getDefinition(), "node-1"));
+            repositoryService.modifyObject(TaskType.class, oid, modifications, result);
+
+            PrismObject<TaskType> afterModify = repositoryService.getObject(TaskType.class, oid, null, result);
+            TaskType taskType = afterModify.asObjectable();
+            AssertJUnit.assertEquals(timestamp, taskType.getLastRunStartTimestamp());
+            AssertJUnit.assertEquals(TaskExecutionStatusType.SUSPENDED, taskType.getExecutionStatus());
+            AssertJUnit.assertEquals("node-1", taskType.getNode());
+            AssertJUnit.assertEquals("Demo", taskType.getCategory());
+            AssertJUnit.assertNotNull(taskType.getOwnerRef());
+            AssertJUnit.assertEquals("1", afterModify.getVersion());
+
+            // the columns have to be updated as well, not only the full object
+            EqualFilter filter = EqualFilter.createEqual(TaskType.F_EXECUTION_STATUS, TaskType.class, prismContext,
+                    null, TaskExecutionStatusType.SUSPENDED);
+            List<PrismObject<TaskType>> tasks = repositoryService.searchObjects(TaskType.class,
+                    ObjectQuery.createObjectQuery(filter), null, result);
+            AssertJUnit.assertTrue("Suspended task was not found", containsOid(tasks, oid));
+
+            filter = EqualFilter.createEqual(TaskType.F_NODE, TaskType.class, prismContext, null, "node-1");
+            tasks = repositoryService.searchObjects(TaskType.class, ObjectQuery.createObjectQuery(filter), null, result);
+            AssertJUnit.assertEquals(1, tasks.size());
+
+            // removing the value
+            modifications = new ArrayList<>();
+            modifications.add(PropertyDelta.createModificationReplaceProperty(TaskType.F_NODE, task.getDefinition()));
+            repositoryService.modifyObject(TaskType.class, oid, modifications, result);
+
+            afterModify = repositoryService.getObject(TaskType.class, oid, null, result);
+            AssertJUnit.assertNull(afterModify.asObjectable().getNode());
+            AssertJUnit.assertEquals("2", afterModify.getVersion());
+            tasks = repositoryService.searchObjects(TaskType.class, ObjectQuery.createObjectQuery(filter), null, result);
+            AssertJUnit.assertEquals(0, tasks.size());
+        } finally {
+            baseHelper.getConfiguration().setInPlaceUpdates(false);
+        }
+    }
+
+    @Test
+    public void test220ModifyExtensionInPlace() throws Exception {
+        // in-place updates are disabled by default
+        baseHelper.getConfiguration().setInPlaceUpdates(true);
+        try {
+            final QName QNAME_LOOT = new QName("http://example.com/p", "loot");
+            OperationResult result = new OperationResult("test220ModifyExtensionInPlace");
+
+            PrismObject<UserType> user = prismContext.parseObject(new File(TEST_DIR, "user-with-extension.xml"));
+            user.asObjectable().setName(new PolyStringType(new PolyString("in-place-user", "in-place-user")));
+            String oid = repositoryService.addObject(user, null, result);
+
+            ItemPath path = new ItemPath(UserType.F_EXTENSION, QNAME_LOOT);
+            PrismProperty loot = user.findProperty(path);
+            PropertyDelta lootDelta = new PropertyDelta(path, loot.getDefinition(), prismContext);
+            lootDelta.setValueToReplace(new PrismPropertyValue(789));
+            Collection<ItemDelta> modifications = new ArrayList<>();
+            modifications.add(lootDelta);
+            repositoryService.modifyObject(UserType.class, oid, modifications, result);
+
+            EqualFilter filter = EqualFilter.createEqual(path, loot.getDefinition(), 789);
+            List<PrismObject<UserType>> users = repositoryService.searchObjects(UserType.class,
+                    ObjectQuery.createObjectQuery(filter), null, result);
+            AssertJUnit.assertEquals(1, users.size());
+            AssertJUnit.assertEquals(oid, users.get(0).getOid());
+            AssertJUnit.assertEquals("gun", users.get(0).findProperty(
+                    new ItemPath(UserType.F_EXTENSION, new QName("http://example.com/p", "weapon"))).getRealValue());
+
+            filter = EqualFilter.createEqual(path, loot.getDefinition(), 123);
+            users = repositoryService.searchObjects(UserType.class, ObjectQuery.createObjectQuery(filter), null, result);
+            AssertJUnit.assertFalse("Old extension value is still there", containsOid(users, oid));
+
+            // removing the value
+            lootDelta = new PropertyDelta(path, loot.getDefinition(), prismContext);
+            lootDelta.addValueToDelete(new PrismPropertyValue(789));
+            modifications = new ArrayList<>();
+            modifications.add(lootDelta);
+            repositoryService.modifyObject(UserType.class, oid, modifications, result);
+
+            PrismObject<UserType> afterModify = repositoryService.getObject(UserType.class, oid, null, result);
+            AssertJUnit.assertNull(afterModify.findProperty(path));
+            AssertJUnit.assertEquals("2", afterModify.getVersion());
+            filter = EqualFilter.createEqual(path, loot.getDefinition(), 789);
+            users = repositoryService.searchObjects(UserType.class, ObjectQuery.createObjectQuery(filter), null, result);
+            AssertJUnit.assertEquals(0, users.size());
+        } finally {
+            baseHelper.getConfiguration().setInPlaceUpdates(false);
+        }
+    }
+
+    @Test
+    public void test230ModifyWithVersionPrecondition() throws Exception {
+        OperationResult result = new OperationResult("test230ModifyWithVersionPrecondition");
+
+        PrismObject<TaskType> task = prismContext.parseObject(new File(TEST_DIR, "task.xml"));
+        task.setOid(null);
+        task.asObjectable().setName(new PolyStringType("precondition task"));
+        task.asObjectable().setTaskIdentifier(UUID.randomUUID().toString());
+        String oid = repositoryService.addObject(task, null, result);
+
+        PrismObject<TaskType> current = repositoryService.getObject(TaskType.class, oid, null, result);
+        Collection<ItemDelta> modifications = new ArrayList<>();
+        modifications.add(PropertyDelta.createModificationReplaceProperty(TaskType.F_NODE, task.getDefinition(), "node-1"));
+        repositoryService.modifyObject(TaskType.class, oid, modifications, new VersionPrecondition<>(current), result);
+
+        // the same precondition does not hold any more
+        modifications = new ArrayList<>();
+        modifications.add(PropertyDelta.createModificationReplaceProperty(TaskType.F_NODE, task.getDefinition(), "node-2"));
+        try {
+            repositoryService.modifyObject(TaskType.class, oid, modifications, new VersionPrecondition<>(current), result);
+            AssertJUnit.fail("Unexpected success");
+        } catch (PreconditionViolationException e) {
+            // expected
+        }
+
+        PrismObject<TaskType> afterModify = repositoryService.getObject(TaskType.class, oid, null, result);
+        AssertJUnit.assertEquals("node-1", afterModify.asObjectable().getNode());
+        AssertJUnit.assertEquals("1", afterModify.getVersion());
+
+        // the precondition is checked even if there is nothing to modify
+        try {
+            repositoryService.modifyObject(TaskType.class, oid, new ArrayList<ItemDelta>(),
+                    new VersionPrecondition<>(current), result);
+            AssertJUnit.fail("Unexpected success");
+        } catch (PreconditionViolationException e) {
+            // expected
+        }
+        repositoryService.modifyObject(TaskType.class, oid, new ArrayList<ItemDelta>(),
+                new VersionPrecondition<>(afterModify), result);
+    }
+
+    private boolean containsOid(List<? extends PrismObject<?>> objects, String oid) {
+        for (PrismObject<?> object : objects) {
+            if (oid.equals(object.getOid())) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
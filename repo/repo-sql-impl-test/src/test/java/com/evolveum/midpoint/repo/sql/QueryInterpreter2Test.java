@@ -52,6 +52,7 @@ import com.evolveum.midpoint.prism.xml.XmlTypeConverter;
 import com.evolveum.midpoint.repo.sql.query.QueryException;
 import com.evolveum.midpoint.repo.sql.query.RQuery;
 import com.evolveum.midpoint.repo.sql.query2.QueryEngine2;
+import com.evolveum.midpoint.repo.sql.query2.QueryPlanCache;
 import com.evolveum.midpoint.repo.sql.query2.RQueryImpl;
 import com.evolveum.midpoint.repo.sql.type.XMLGregorianCalendarType;
 import com.evolveum.midpoint.schema.MidPointPrismContextFactory;
@@ -3466,6 +3467,33 @@ public class QueryInterpreter2Test extends BaseSQLRepoTest {
         }
     }
 
+    @Test
+    public void test936OidInterval() throws Exception {
+        Session session = open();
+
+        try {
+            PrismPropertyDefinition<String> oidDefinition = new PrismPropertyDefinition<>(T_ID, DOMUtil.XSD_STRING, prismContext);
+            ObjectFilter filter = AndFilter.createAnd(
+                    GreaterFilter.createGreater(new ItemPath(T_ID), oidDefinition, "4000", true),
+                    LessFilter.createLess(new ItemPath(T_ID), oidDefinition, "8000", false));
+            ObjectQuery query = ObjectQuery.createObjectQuery(filter);
+
+            String real = getInterpretedQuery2(session, UserType.class, query);
+            String expected = "select\n" +
+                    "  u.fullObject, u.stringsCount, u.longsCount, u.datesCount, u.referencesCount, u.polysCount, u.booleansCount\n" +
+                    "from\n" +
+                    "  RUser u\n" +
+                    "where\n" +
+                    "  (\n" +
+                    "    u.oid >= :oid and\n" +
+                    "    u.oid < :oid2\n" +
+                    "  )\n";
+            assertEqualsIgnoreWhitespace(expected, real);
+        } finally {
+            close(session);
+        }
+    }
+
 	@Test
 	public void testAdHoc100ProcessStartTimestamp() throws Exception {
 		Session session = open();
@@ -3530,6 +3558,46 @@ public class QueryInterpreter2Test extends BaseSQLRepoTest {
 
 	}
 
+	@Test
+	public void testAdHoc102QueryPlanCache() throws Exception {
+		Session session = open();
+		try {
+			QueryPlanCache planCache = new QueryPlanCache(10);
+			QueryEngine2 cachingEngine = new QueryEngine2(baseHelper.getConfiguration(), prismContext, planCache);
+
+			ObjectQuery first = createGenericQueryForPlanCache(100, 200, 335);
+			ObjectQuery second = createGenericQueryForPlanCache(1, 2, 3);
+
+			String recorded = getQueryString(cachingEngine.interpret(first, GenericObjectType.class, null, false, session));
+			String replayed = getQueryString(cachingEngine.interpret(second, GenericObjectType.class, null, false, session));
+			String uncached = getInterpretedQuery2(session, GenericObjectType.class, createGenericQueryForPlanCache(1, 2, 3));
+
+			assertEqualsIgnoreWhitespace(uncached, recorded);
+			assertEqualsIgnoreWhitespace(uncached, replayed);
+			AssertJUnit.assertEquals("Wrong # of cached plans", 1, planCache.size());
+			AssertJUnit.assertEquals("Wrong # of cache hits", 1, planCache.getHits());
+			AssertJUnit.assertEquals("Wrong # of cache misses", 1, planCache.getMisses());
+			AssertJUnit.assertEquals("Wrong # of plan mismatches", 0, planCache.getMismatches());
+		} finally {
+			close(session);
+		}
+	}
+
+	private ObjectQuery createGenericQueryForPlanCache(int lower, int upper, long exact) throws SchemaException {
+		return QueryBuilder.queryFor(GenericObjectType.class, prismContext)
+				.item(F_NAME).eqPoly("generic object", "generic object").matchingNorm()
+				.and().item(F_EXTENSION, new QName("intType")).ge(lower)
+				.and().item(F_EXTENSION, new QName("intType")).lt(upper)
+				.and().item(F_EXTENSION, new QName("longType")).eq(exact)
+				.desc(F_NAME)
+				.build();
+	}
+
+	private String getQueryString(RQuery rQuery) {
+		rQuery.list();
+		return ((RQueryImpl) rQuery).getQuery().getQueryString();
+	}
+
 	//    @Test
 //    public void test930OrganizationEqualsCostCenter() throws Exception {
 //        Session session = open();
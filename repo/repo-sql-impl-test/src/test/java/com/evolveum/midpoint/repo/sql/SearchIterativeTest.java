@@ -118,6 +118,40 @@ public class SearchIterativeTest extends BaseSQLRepoTest {
         assertObjects(objects, COUNT);
     }
 
+    @Test
+    public void test107StreamingIteration() throws Exception {
+        OperationResult result = new OperationResult("test107StreamingIteration");
+
+        final List<PrismObject<UserType>> objects = new ArrayList<>();
+
+        ResultHandler handler = new ResultHandler() {
+            @Override
+            public boolean handle(PrismObject object, OperationResult parentResult) {
+                objects.add(object);
+                return true;
+            }
+        };
+
+        SqlRepositoryConfiguration config = ((SqlRepositoryServiceImpl) repositoryService).getConfiguration();
+        boolean oldStreaming = config.isIterativeSearchByStreaming();
+        int oldBatch = config.getIterativeSearchByPagingBatchSize();
+        config.setIterativeSearchByStreaming(true);
+        config.setIterativeSearchByPagingBatchSize(7);
+        try {
+            repositoryService.searchObjectsIterative(UserType.class, null, handler, null, false, result);
+        } finally {
+            config.setIterativeSearchByStreaming(oldStreaming);
+            config.setIterativeSearchByPagingBatchSize(oldBatch);
+        }
+        result.recomputeStatus();
+
+        assertTrue(result.isSuccess());
+        assertObjects(objects, COUNT);
+        for (int i = 1; i < objects.size(); i++) {
+            assertTrue("Objects are not ordered by OID", objects.get(i - 1).getOid().compareTo(objects.get(i).getOid()) < 0);
+        }
+    }
+
     private boolean[] assertObjects(List<PrismObject<UserType>> objects, Integer count) {
         if (count != null) {
             assertEquals("Wrong # of objects", count.intValue(), objects.size());
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.repo.sql.closure;
+
+import com.evolveum.midpoint.prism.PrismObject;
+import com.evolveum.midpoint.repo.sql.helpers.OrgClosureManager;
+import com.evolveum.midpoint.schema.result.OperationResult;
+import com.evolveum.midpoint.test.util.TestUtil;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.OrgType;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ContextConfiguration;
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+/**
+ * Loads the org structure in the bulk mode (closure is computed at the end, by the set-based rebuild)
+ * and then checks that the closure is correct and that it is maintained correctly afterwards.
+ *
+ * @author agent
+ */
+@ContextConfiguration(locations = {"../../../../../../ctx-test.xml"})
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+public class OrgClosureBulkModeTest extends AbstractOrgClosureTest {
+
+    private static final int[] ORG_CHILDREN_IN_LEVEL  = { 4, 3, 3  };
+    private static final int[] USER_CHILDREN_IN_LEVEL = null;
+    private static final int[] PARENTS_IN_LEVEL       = { 0, 2, 2  };
+    private static final int[] LINK_ROUNDS_FOR_LEVELS = { 0, 5, 10 };
+    private static final int[] NODE_ROUNDS_FOR_LEVELS = { 1, 5, 10 };
+
+    @Autowired
+    private OrgClosureManager closureManager;
+
+    private OrgClosureTestConfiguration configuration;
+
+    public OrgClosureBulkModeTest() {
+        configuration = new OrgClosureTestConfiguration();
+        configuration.setCheckChildrenSets(true);
+        configuration.setCheckClosureMatrix(true);
+        configuration.setDeletionsToClosureTest(1);
+        configuration.setOrgChildrenInLevel(ORG_CHILDREN_IN_LEVEL);
+        configuration.setUserChildrenInLevel(USER_CHILDREN_IN_LEVEL);
+        configuration.setParentsInLevel(PARENTS_IN_LEVEL);
+        configuration.setLinkRoundsForLevel(LINK_ROUNDS_FOR_LEVELS);
+        configuration.setNodeRoundsForLevel(NODE_ROUNDS_FOR_LEVELS);
+    }
+
+    @Test
+    public void test100LoadOrgStructureInBulkMode() throws Exception {
+        OperationResult result = new OperationResult("===[ test100LoadOrgStructureInBulkMode ]===");
+
+        repositoryService.beginOrgClosureBulkMode();
+        try {
+            loadOrgStructure(0, null, "", result);
+            assertEquals("Closure table should be empty in bulk mode", 0L, getClosureSize());
+        } finally {
+            repositoryService.finishOrgClosureBulkMode(result);
+        }
+        result.computeStatus();
+        TestUtil.assertSuccess(result);
+
+        System.out.println("Loaded " + allOrgCreated.size() + " orgs; closure table has " + getClosureSize() + " rows");
+    }
+
+    @Test(enabled = true) public void test150CheckClosure() throws Exception { _test150CheckClosure(); }
+
+    @Test
+    public void test160CheckConsistency() throws Exception {
+        OperationResult result = new OperationResult("===[ test160CheckConsistency ]===");
+        repositoryService.testOrgClosureConsistency(false, result);
+        result.computeStatus();
+        TestUtil.assertSuccess(result);
+    }
+
+    @Test(enabled = true) public void test200AddRemoveLinks() throws Exception { _test200AddRemoveLinks(); }
+    @Test(enabled = true) public void test300AddRemoveOrgs() throws Exception { _test300AddRemoveOrgs(); }
+    @Test(enabled = true) public void test390CyclePrevention() throws Exception { _test390CyclePrevention(); }
+    @Test(enabled = true) public void test410RandomUnloadOrgStructure() throws Exception { _test410RandomUnloadOrgStructure(); }
+
+    /**
+     * An operation started in the bulk mode is still running when the bulk mode is finished.
+     * The closure must not be rebuilt under it; the bulk mode stays active and it is finished in the background
+     * when the operation ends.
+     */
+    @Test
+    public void test500FinishBulkModeWithRunningOperation() throws Exception {
+        OperationResult result = new OperationResult("===[ test500FinishBulkModeWithRunningOperation ]===");
+        long originalTimeout = closureManager.getDeferredOperationsWaitTimeout();
+        closureManager.setDeferredOperationsWaitTimeout(500L);
+        Session session = open();
+        try {
+            repositoryService.beginOrgClosureBulkMode();
+            PrismObject<OrgType> org = prismContext.createObject(OrgType.class);
+            OrgClosureManager.Context closureContext = closureManager.onBeginTransactionAdd(session, org, false);
+
+            repositoryService.finishOrgClosureBulkMode(result);
+            result.computeStatus();
+            assertTrue("Finishing the bulk mode with a running operation did not produce a warning", result.isWarning());
+            assertTrue("Bulk mode was finished with a running operation", closureManager.isBulkMode());
+
+            closureManager.cleanUpAfterOperation(closureContext, session);
+            long deadline = System.currentTimeMillis() + 10000L;
+            while (closureManager.isBulkMode() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100L);
+            }
+            assertFalse("Bulk mode was not finished in the background", closureManager.isBulkMode());
+        } finally {
+            close(session);
+            closureManager.setDeferredOperationsWaitTimeout(originalTimeout);
+        }
+
+        OperationResult checkResult = new OperationResult("===[ test500FinishBulkModeWithRunningOperation (check) ]===");
+        repositoryService.testOrgClosureConsistency(false, checkResult);
+        checkResult.computeStatus();
+        TestUtil.assertSuccess(checkResult);
+    }
+
+    private long getClosureSize() {
+        Query q = getSession().createSQLQuery("select count(*) from m_org_closure");
+        return Long.parseLong(q.list().get(0).toString());
+    }
+
+    @Override
+    public OrgClosureTestConfiguration getConfiguration() {
+        return configuration;
+    }
+}
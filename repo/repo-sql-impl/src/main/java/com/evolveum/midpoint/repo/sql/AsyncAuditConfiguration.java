@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.repo.sql;
+
+import com.evolveum.midpoint.audit.api.AuditServiceFactoryException;
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.File;
+
+/**
+ * Configuration of asynchronous audit writing (see AsyncAuditWriter). It is read from the
+ * midpoint/audit/auditService element of SQL audit service, e.g.
+ *
+ * <pre>
+ * &lt;auditService&gt;
+ *     &lt;auditServiceFactoryClass&gt;com.evolveum.midpoint.repo.sql.SqlAuditServiceFactory&lt;/auditServiceFactoryClass&gt;
+ *     &lt;asynchronous&gt;true&lt;/asynchronous&gt;
+ *     &lt;asyncQueueSize&gt;10000&lt;/asyncQueueSize&gt;
+ *     &lt;asyncOverflowPolicy&gt;spill&lt;/asyncOverflowPolicy&gt;
+ * &lt;/auditService&gt;
+ * </pre>
+ *
+ * @author agent
+ */
+public class AsyncAuditConfiguration {
+
+    public static final String PROPERTY_ASYNCHRONOUS = "asynchronous";
+    public static final String PROPERTY_ASYNC_QUEUE_SIZE = "asyncQueueSize";
+    public static final String PROPERTY_ASYNC_BATCH_SIZE = "asyncBatchSize";
+    public static final String PROPERTY_ASYNC_FLUSH_INTERVAL = "asyncFlushInterval";
+    public static final String PROPERTY_ASYNC_OVERFLOW_POLICY = "asyncOverflowPolicy";
+    public static final String PROPERTY_ASYNC_SPILL_DIRECTORY = "asyncSpillDirectory";
+    public static final String PROPERTY_ASYNC_SHUTDOWN_TIMEOUT = "asyncShutdownTimeout";
+
+    private static final String MIDPOINT_HOME_VARIABLE = "midpoint.home";
+    private static final String DEFAULT_SPILL_DIRECTORY = "audit-spill";
+
+    public enum OverflowPolicy {
+
+        /**
+         * Caller waits until there is free space in the queue.
+         */
+        BLOCK("block"),
+
+        /**
+         * Records that do not fit into the queue are written to a local file. They are inserted into
+         * the database later, when the writer has nothing else to do (or at shutdown/next start).
+         */
+        SPILL("spill");
+
+        private final String value;
+
+        OverflowPolicy(String value) {
+            this.value = value;
+        }
+
+        public String value() {
+            return value;
+        }
+
+        public static OverflowPolicy fromValue(String value) {
+            for (OverflowPolicy policy : values()) {
+                if (policy.value.equalsIgnoreCase(value)) {
+                    return policy;
+                }
+            }
+            return null;
+        }
+    }
+
+    private boolean asynchronous;
+    private int queueSize = 10000;
+    private int batchSize = 100;
+    private long flushInterval = 1000L;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private String spillDirectory;
+    private long shutdownTimeout = 30000L;
+
+    public static AsyncAuditConfiguration fromConfiguration(Configuration configuration)
+            throws AuditServiceFactoryException {
+        AsyncAuditConfiguration config = new AsyncAuditConfiguration();
+        config.setAsynchronous(configuration.getBoolean(PROPERTY_ASYNCHRONOUS, config.asynchronous));
+        config.setQueueSize(configuration.getInt(PROPERTY_ASYNC_QUEUE_SIZE, config.queueSize));
+        config.setBatchSize(configuration.getInt(PROPERTY_ASYNC_BATCH_SIZE, config.batchSize));
+        config.setFlushInterval(configuration.getLong(PROPERTY_ASYNC_FLUSH_INTERVAL, config.flushInterval));
+        String policy = configuration.getString(PROPERTY_ASYNC_OVERFLOW_POLICY, config.overflowPolicy.value());
+        config.setOverflowPolicy(OverflowPolicy.fromValue(policy));
+        if (config.getOverflowPolicy() == null) {
+            throw new AuditServiceFactoryException("Unknown asynchronous audit overflow policy '" + policy
+                    + "', supported values are '" + OverflowPolicy.BLOCK.value() + "' and '"
+                    + OverflowPolicy.SPILL.value() + "'.");
+        }
+        config.setSpillDirectory(configuration.getString(PROPERTY_ASYNC_SPILL_DIRECTORY, getDefaultSpillDirectory()));
+        config.setShutdownTimeout(configuration.getLong(PROPERTY_ASYNC_SHUTDOWN_TIMEOUT, config.shutdownTimeout));
+        config.validate();
+        return config;
+    }
+
+    private static String getDefaultSpillDirectory() {
+        String midpointHome = System.getProperty(MIDPOINT_HOME_VARIABLE);
+        if (StringUtils.isEmpty(midpointHome)) {
+            return null;
+        }
+        return new File(midpointHome, DEFAULT_SPILL_DIRECTORY).getPath();
+    }
+
+    public void validate() throws AuditServiceFactoryException {
+        if (!asynchronous) {
+            return;
+        }
+        if (queueSize <= 0) {
+            throw new AuditServiceFactoryException("Asynchronous audit queue size must be greater than zero.");
+        }
+        if (batchSize <= 0) {
+            throw new AuditServiceFactoryException("Asynchronous audit batch size must be greater than zero.");
+        }
+        if (flushInterval <= 0) {
+            throw new AuditServiceFactoryException("Asynchronous audit flush interval must be greater than zero.");
+        }
+        if (overflowPolicy == OverflowPolicy.SPILL && StringUtils.isEmpty(spillDirectory)) {
+            throw new AuditServiceFactoryException("Spill directory for asynchronous audit is not defined "
+                    + "(and midpoint.home is not set).");
+        }
+    }
+
+    /**
+     * @return true if audit records should be written to the database by a background writer, in batches.
+     * Default is false (each record is written in its own transaction by the calling thread).
+     */
+    public boolean isAsynchronous() {
+        return asynchronous;
+    }
+
+    public void setAsynchronous(boolean asynchronous) {
+        this.asynchronous = asynchronous;
+    }
+
+    /**
+     * @return Maximum number of records waiting to be written. Default is 10000.
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * @return Maximum number of records inserted in one transaction. Default is 100.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return How long (in milliseconds) the writer waits for new records before it looks at spilled ones. Default is 1000.
+     */
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @return Directory for records that did not fit into the queue (or could not be written at shutdown).
+     * Default is ${midpoint.home}/audit-spill.
+     */
+    public String getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    public void setSpillDirectory(String spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * @return How long (in milliseconds) to wait for the queue to be written at shutdown. Default is 30000.
+     */
+    public long getShutdownTimeout() {
+        return shutdownTimeout;
+    }
+
+    public void setShutdownTimeout(long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.repo.sql;
+
+import com.evolveum.midpoint.repo.sql.data.audit.RAuditEventRecord;
+import com.evolveum.midpoint.util.logging.LoggingUtils;
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes audit records to the database in a background thread, many records in one transaction
+ * (and, where the ID generator allows it, in JDBC batches).
+ *
+ * Records are converted to their repository form by the calling thread, so the caller is free to modify
+ * (or reuse) the original AuditEventRecord after it was submitted. When the queue is full, the caller either
+ * waits (BLOCK policy) or the record is appended to a local spill file (SPILL policy). Spilled records
+ * are inserted when the writer is idle, at shutdown, or after the next start. Records that cannot be
+ * written to the database are spilled as well (if spilling is configured).
+ *
+ * The writer thread is started on the first submitted record. At shutdown, all queued records are written
+ * before returning.
+ *
+ * @author agent
+ */
+class AsyncAuditWriter implements Runnable {
+
+    private static final Trace LOGGER = TraceManager.getTrace(AsyncAuditWriter.class);
+
+    private static final String THREAD_NAME = "midPoint-async-audit-writer";
+    private static final String SPILL_FILE_PREFIX = "audit-";
+    private static final String SPILL_FILE_SUFFIX = ".ser";
+    private static final String SPILL_FILE_TEMP_SUFFIX = ".tmp";
+
+    // after a failed attempt to replay spilled records we wait this number of flush intervals
+    private static final int REPLAY_BACKOFF_FACTOR = 10;
+
+    private final SqlAuditServiceImpl auditService;
+    private final AsyncAuditConfiguration configuration;
+    private final BlockingQueue<RAuditEventRecord> queue;
+    private final File spillDirectory;              // null if records are never spilled
+
+    // the spill file records are currently appended to (guarded by spillLock)
+    private final Object spillLock = new Object();
+    private File currentSpillFile;
+    private ObjectOutputStream currentSpillStream;
+    private int spillFileSequence;
+
+    private volatile Thread thread;
+    private volatile boolean stopping;
+    private long nextReplayTime;
+
+    private final AtomicLong recordsWritten = new AtomicLong();
+    private final AtomicLong recordsSpilled = new AtomicLong();
+    private final AtomicLong recordsLost = new AtomicLong();
+
+    AsyncAuditWriter(SqlAuditServiceImpl auditService, AsyncAuditConfiguration configuration) {
+        this.auditService = auditService;
+        this.configuration = configuration;
+        this.queue = new ArrayBlockingQueue<>(configuration.getQueueSize());
+        if (configuration.getOverflowPolicy() == AsyncAuditConfiguration.OverflowPolicy.SPILL) {
+            spillDirectory = new File(configuration.getSpillDirectory());
+        } else {
+            spillDirectory = null;
+        }
+    }
+
+    void submit(RAuditEventRecord record) {
+        if (stopping) {
+            // too late for the background thread
+            writeOrSpill(Collections.singletonList(record));
+            return;
+        }
+        if (thread == null) {
+            start();
+        }
+
+        if (spillDirectory == null) {
+            try {
+                queue.put(record);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                writeOrSpill(Collections.singletonList(record));
+                return;
+            }
+        } else if (!queue.offer(record)) {
+            spill(Collections.singletonList(record));
+            return;
+        }
+
+        // shutdown could have drained the queue before we put the record there
+        if (stopping && queue.remove(record)) {
+            writeOrSpill(Collections.singletonList(record));
+        }
+    }
+
+    private synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        if (spillDirectory != null) {
+            prepareSpillDirectory();
+        }
+        Thread t = new Thread(this, THREAD_NAME);
+        t.setDaemon(true);
+        t.start();
+        thread = t;
+        LOGGER.info("Asynchronous audit writer started (queue size {}, batch size {}, overflow policy {}).",
+                new Object[]{configuration.getQueueSize(), configuration.getBatchSize(), configuration.getOverflowPolicy()});
+    }
+
+    @Override
+    public void run() {
+        List<RAuditEventRecord> batch = new ArrayList<>(configuration.getBatchSize());
+        while (!stopping || !queue.isEmpty()) {
+            try {
+                RAuditEventRecord first = queue.poll(configuration.getFlushInterval(), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, configuration.getBatchSize() - 1);
+                    writeOrSpill(batch);
+                } else if (spillDirectory != null && !stopping && System.currentTimeMillis() >= nextReplayTime) {
+                    if (!replaySpilledRecords()) {
+                        nextReplayTime = System.currentTimeMillis() + REPLAY_BACKOFF_FACTOR * configuration.getFlushInterval();
+                    }
+                }
+            } catch (InterruptedException e) {
+                LOGGER.trace("Asynchronous audit writer was interrupted.");
+            } catch (RuntimeException e) {
+                LoggingUtils.logUnexpectedException(LOGGER, "Unexpected exception in asynchronous audit writer", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Stops the writer thread. Records still in the queue are written (or spilled) before returning.
+     * Records submitted after this call are written synchronously.
+     */
+    void shutdown() {
+        stopping = true;
+        Thread t = thread;
+        if (t != null) {
+            try {
+                t.join(configuration.getShutdownTimeout());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (t.isAlive()) {
+                LOGGER.warn("Asynchronous audit writer did not finish in {} ms; writing the rest of the queue ({} records) directly.",
+                        configuration.getShutdownTimeout(), queue.size());
+            }
+        }
+
+        List<RAuditEventRecord> batch = new ArrayList<>(configuration.getBatchSize());
+        while (queue.drainTo(batch, configuration.getBatchSize()) > 0) {
+            writeOrSpill(batch);
+            batch.clear();
+        }
+        if (spillDirectory != null) {
+            replaySpilledRecords();
+            closeSpillFile();
+        }
+        LOGGER.info("Asynchronous audit writer stopped: {} records written, {} spilled, {} lost.",
+                new Object[]{recordsWritten.get(), recordsSpilled.get(), recordsLost.get()});
+    }
+
+    private void writeOrSpill(List<RAuditEventRecord> records) {
+        List<RAuditEventRecord> failed = write(records);
+        if (failed.isEmpty()) {
+            return;
+        }
+        if (spillDirectory != null) {
+            spill(failed);
+        } else {
+            LOGGER.error("{} audit record(s) couldn't be written to the database and are lost.", failed.size());
+            recordsLost.addAndGet(failed.size());
+        }
+    }
+
+    /**
+     * @return records that couldn't be written
+     */
+    private List<RAuditEventRecord> write(List<RAuditEventRecord> records) {
+        try {
+            auditService.writeBatch(records);
+            recordsWritten.addAndGet(records.size());
+            return Collections.emptyList();
+        } catch (RuntimeException e) {
+            if (records.size() == 1) {
+                LoggingUtils.logException(LOGGER, "Couldn't write audit record to the database", e);
+                return new ArrayList<>(records);
+            }
+            LOGGER.warn("Couldn't write {} audit records to the database, trying them one by one: {}",
+                    records.size(), e.getMessage());
+        }
+
+        // one bad record should not prevent writing the others
+        List<RAuditEventRecord> failed = new ArrayList<>();
+        for (RAuditEventRecord record : records) {
+            try {
+                auditService.writeBatch(Collections.singletonList(record));
+                recordsWritten.incrementAndGet();
+            } catch (RuntimeException e) {
+                LoggingUtils.logException(LOGGER, "Couldn't write audit record {} to the database", e,
+                        record.getEventIdentifier());
+                failed.add(record);
+            }
+        }
+        return failed;
+    }
+
+    private void prepareSpillDirectory() {
+        if (!spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+            LOGGER.error("Couldn't create audit spill directory {}", spillDirectory.getAbsolutePath());
+            return;
+        }
+        // files left open by previous run (e.g. after a crash) are readable at least partially
+        File[] leftovers = listSpillFiles(SPILL_FILE_TEMP_SUFFIX);
+        for (File leftover : leftovers) {
+            File target = new File(spillDirectory, leftover.getName().replace(SPILL_FILE_TEMP_SUFFIX, SPILL_FILE_SUFFIX));
+            if (!leftover.renameTo(target)) {
+                LOGGER.warn("Couldn't rename audit spill file {} to {}", leftover, target);
+            }
+        }
+        int existing = listSpillFiles(SPILL_FILE_SUFFIX).length;
+        if (existing > 0) {
+            LOGGER.info("Found {} audit spill file(s) in {}, they will be written to the database.",
+                    existing, spillDirectory.getAbsolutePath());
+        }
+    }
+
+    private void spill(List<RAuditEventRecord> records) {
+        synchronized (spillLock) {
+            try {
+                if (currentSpillStream == null) {
+                    String name = String.format("%s%013d-%06d%s", SPILL_FILE_PREFIX, System.currentTimeMillis(),
+                            spillFileSequence++, SPILL_FILE_TEMP_SUFFIX);
+                    currentSpillFile = new File(spillDirectory, name);
+                    currentSpillStream = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(currentSpillFile)));
+                }
+                for (RAuditEventRecord record : records) {
+                    currentSpillStream.writeObject(record);
+                    // records are not shared; this keeps the stream from remembering all of them
+                    currentSpillStream.reset();
+                }
+                currentSpillStream.flush();
+                recordsSpilled.addAndGet(records.size());
+            } catch (IOException e) {
+                LoggingUtils.logException(LOGGER, "Couldn't spill {} audit record(s) to {}, they are lost", e,
+                        records.size(), currentSpillFile);
+                recordsLost.addAndGet(records.size());
+            }
+        }
+    }
+
+    private void closeSpillFile() {
+        synchronized (spillLock) {
+            if (currentSpillStream == null) {
+                return;
+            }
+            try {
+                currentSpillStream.close();
+            } catch (IOException e) {
+                LoggingUtils.logException(LOGGER, "Couldn't close audit spill file {}", e, currentSpillFile);
+            }
+            File target = new File(spillDirectory, currentSpillFile.getName().replace(SPILL_FILE_TEMP_SUFFIX, SPILL_FILE_SUFFIX));
+            if (!currentSpillFile.renameTo(target)) {
+                LOGGER.warn("Couldn't rename audit spill file {} to {}", currentSpillFile, target);
+            }
+            currentSpillStream = null;
+            currentSpillFile = null;
+        }
+    }
+
+    /**
+     * @return false if the database seems to be (still) unavailable
+     */
+    private synchronized boolean replaySpilledRecords() {
+        closeSpillFile();
+        File[] files = listSpillFiles(SPILL_FILE_SUFFIX);
+        Arrays.sort(files);
+        for (File file : files) {
+            if (!replaySpillFile(file)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean replaySpillFile(File file) {
+        LOGGER.debug("Writing spilled audit records from {}", file);
+        boolean databaseAvailable = true;
+        List<RAuditEventRecord> batch = new ArrayList<>(configuration.getBatchSize());
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                RAuditEventRecord record;
+                try {
+                    record = (RAuditEventRecord) in.readObject();
+                } catch (EOFException e) {
+                    break;
+                }
+                batch.add(record);
+                if (batch.size() >= configuration.getBatchSize()) {
+                    databaseAvailable = replayBatch(batch, databaseAvailable);
+                    batch.clear();
+                }
+            }
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            // e.g. a file that was not closed properly; we keep what we were able to read
+            LoggingUtils.logException(LOGGER, "Couldn't read all audit records from spill file {}", e, file);
+        }
+        if (!batch.isEmpty()) {
+            databaseAvailable = replayBatch(batch, databaseAvailable);
+        }
+
+        // records not written are in the current spill file now
+        if (!file.delete()) {
+            LOGGER.error("Couldn't delete audit spill file {}; its records will be written again.", file);
+        }
+        return databaseAvailable;
+    }
+
+    private boolean replayBatch(List<RAuditEventRecord> batch, boolean databaseAvailable) {
+        if (!databaseAvailable) {
+            spill(batch);
+            return false;
+        }
+        List<RAuditEventRecord> failed = write(batch);
+        if (!failed.isEmpty()) {
+            spill(failed);
+        }
+        return failed.size() < batch.size();
+    }
+
+    private File[] listSpillFiles(final String suffix) {
+        File[] files = spillDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SPILL_FILE_PREFIX) && name.endsWith(suffix);
+            }
+        });
+        return files != null ? files : new File[0];
+    }
+
+    long getRecordsWritten() {
+        return recordsWritten.get();
+    }
+
+    long getRecordsSpilled() {
+        return recordsSpilled.get();
+    }
+
+    long getRecordsLost() {
+        return recordsLost.get();
+    }
+}
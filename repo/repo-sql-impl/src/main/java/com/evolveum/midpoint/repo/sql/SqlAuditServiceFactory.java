@@ -32,6 +32,7 @@ public class SqlAuditServiceFactory implements AuditServiceFactory {
 
     private static final Trace LOGGER = TraceManager.getTrace(SqlAuditServiceFactory.class);
     private SqlRepositoryFactory repositoryFactory;
+    private AsyncAuditConfiguration asyncConfiguration;
 
     public SqlRepositoryFactory getRepositoryFactory() {
         return repositoryFactory;
@@ -60,16 +61,22 @@ public class SqlAuditServiceFactory implements AuditServiceFactory {
         } catch (RepositoryServiceFactoryException ex) {
             throw new AuditServiceFactoryException(ex.getMessage(), ex);
         }
+        asyncConfiguration = AsyncAuditConfiguration.fromConfiguration(config);
         LOGGER.info("Sql audit service factory initialization complete.");
     }
 
     @Override
     public void destroyService(AuditService service) throws AuditServiceFactoryException {
-        //we don't need destroying service objects, they will be GC correctly
+        // service objects will be GC correctly, we only have to write records waiting in the asynchronous queue
+        if (service instanceof SqlAuditServiceImpl) {
+            ((SqlAuditServiceImpl) service).shutdown();
+        }
     }
 
     @Override
     public AuditService getAuditService() throws AuditServiceFactoryException {
-        return new SqlAuditServiceImpl(repositoryFactory);
+        SqlAuditServiceImpl service = new SqlAuditServiceImpl(repositoryFactory);
+        service.setAsyncConfiguration(asyncConfiguration);
+        return service;
     }
 }
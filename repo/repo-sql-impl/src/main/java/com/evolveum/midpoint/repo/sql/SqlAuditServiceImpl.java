@@ -20,21 +20,21 @@ import com.evolveum.midpoint.audit.api.AuditEventStage;
 import com.evolveum.midpoint.audit.api.AuditEventType;
 import com.evolveum.midpoint.audit.api.AuditService;
 import com.evolveum.midpoint.prism.PrismObject;
-import com.evolveum.midpoint.prism.parser.XNodeProcessorEvaluationMode;
 import com.evolveum.midpoint.repo.sql.data.audit.RAuditEventRecord;
 import com.evolveum.midpoint.repo.sql.data.audit.RAuditEventStage;
 import com.evolveum.midpoint.repo.sql.data.audit.RAuditEventType;
 import com.evolveum.midpoint.repo.sql.data.audit.RObjectDeltaOperation;
 import com.evolveum.midpoint.repo.sql.helpers.BaseHelper;
+import com.evolveum.midpoint.repo.sql.helpers.ObjectRetriever;
 import com.evolveum.midpoint.repo.sql.util.DtoTranslationException;
 import com.evolveum.midpoint.repo.sql.util.GetObjectResult;
-import com.evolveum.midpoint.repo.sql.util.RUtil;
 import com.evolveum.midpoint.schema.result.OperationResult;
 import com.evolveum.midpoint.task.api.Task;
 import com.evolveum.midpoint.util.Holder;
 import com.evolveum.midpoint.util.MiscUtil;
 import com.evolveum.midpoint.util.exception.SchemaException;
 import com.evolveum.midpoint.util.exception.SystemException;
+import com.evolveum.midpoint.util.logging.LoggingUtils;
 import com.evolveum.midpoint.util.logging.Trace;
 import com.evolveum.midpoint.util.logging.TraceManager;
 import com.evolveum.midpoint.xml.ns._public.common.common_3.CleanupPolicyType;
@@ -69,18 +69,62 @@ public class SqlAuditServiceImpl extends SqlBaseService implements AuditService
 	@Autowired
 	private BaseHelper baseHelper;
 
+	@Autowired
+	private ObjectRetriever objectRetriever;
+
     private static final Trace LOGGER = TraceManager.getTrace(SqlAuditServiceImpl.class);
     private static final Integer CLEANUP_AUDIT_BATCH_SIZE = 500;
+    // should correspond to hibernate.jdbc.batch_size
+    private static final int AUDIT_FLUSH_BATCH_SIZE = 20;
+
+    private AsyncAuditWriter asyncWriter;
 
     public SqlAuditServiceImpl(SqlRepositoryFactory repositoryFactory) {
         super(repositoryFactory);
     }
 
+    /**
+     * Switches this service to asynchronous writing of audit records (if enabled in the configuration).
+     * Must be called before the service is used.
+     */
+    public void setAsyncConfiguration(AsyncAuditConfiguration configuration) {
+        if (configuration != null && configuration.isAsynchronous()) {
+            asyncWriter = new AsyncAuditWriter(this, configuration);
+        } else {
+            asyncWriter = null;
+        }
+    }
+
+    AsyncAuditWriter getAsyncWriter() {
+        return asyncWriter;
+    }
+
+    /**
+     * Writes all records waiting in the asynchronous queue. Records audited after this call are written synchronously.
+     */
+    public void shutdown() {
+        if (asyncWriter != null) {
+            asyncWriter.shutdown();
+        }
+    }
+
     @Override
     public void audit(AuditEventRecord record, Task task) {
         Validate.notNull(record, "Audit event record must not be null.");
         Validate.notNull(task, "Task must not be null.");
 
+        if (asyncWriter != null) {
+            RAuditEventRecord newRecord;
+            try {
+                newRecord = RAuditEventRecord.toRepo(record, getPrismContext());
+            } catch (DtoTranslationException ex) {
+                LoggingUtils.logException(LOGGER, "Couldn't convert audit record {}", ex, record.getEventIdentifier());
+                throw new SystemException(ex.getMessage(), ex);
+            }
+            asyncWriter.submit(newRecord);
+            return;
+        }
+
         final String operation = "audit";
         int attempt = 1;
 
@@ -174,8 +218,8 @@ public class SqlAuditServiceImpl extends SqlBaseService implements AuditService
 
         PrismObject result = null;
         if (object != null) {
-            String xml = RUtil.getXmlFromByteArray(object.getFullObject(), getConfiguration().isUseZip());
-            result = getPrismContext().parseObject(xml, XNodeProcessorEvaluationMode.COMPAT);
+            // the full object may be stored in any of the supported formats (XML, gzipped XML, binary)
+            result = objectRetriever.parseFullObject(object.getFullObject());
         }
 
         return result;
@@ -199,6 +243,50 @@ public class SqlAuditServiceImpl extends SqlBaseService implements AuditService
         }
     }
 
+    /**
+     * Inserts given records in one transaction. Used by the asynchronous writer.
+     */
+    void writeBatch(List<RAuditEventRecord> records) {
+        final String operation = "auditBatch";
+        int attempt = 1;
+
+        while (true) {
+            try {
+                writeBatchAttempt(records);
+                return;
+            } catch (RuntimeException ex) {
+                // IDs assigned in the rolled back transaction must not be reused
+                for (RAuditEventRecord record : records) {
+                    record.setId(0);
+                }
+                attempt = baseHelper.logOperationAttempt(null, operation, attempt, ex, null);
+            }
+        }
+    }
+
+    private void writeBatchAttempt(List<RAuditEventRecord> records) {
+        Session session = null;
+        try {
+            session = baseHelper.beginTransaction();
+
+            int count = 0;
+            for (RAuditEventRecord record : records) {
+                session.save(record);
+                if (++count % AUDIT_FLUSH_BATCH_SIZE == 0) {
+                    // inserts are sent in JDBC batches; we don't need to keep the records in the session
+                    session.flush();
+                    session.clear();
+                }
+            }
+
+            session.getTransaction().commit();
+        } catch (RuntimeException ex) {
+			baseHelper.handleGeneralRuntimeException(ex, session, null);
+        } finally {
+			baseHelper.cleanupSessionAndResult(session, null);
+        }
+    }
+
     @Override
     public void cleanupAudit(CleanupPolicyType policy, OperationResult parentResult) {
         Validate.notNull(policy, "Cleanup policy must not be null.");
@@ -58,6 +58,8 @@ public class SqlRepositoryConfiguration {
     public static final String PROPERTY_JDBC_URL = "jdbcUrl";
     public static final String PROPERTY_DATASOURCE = "dataSource";
     public static final String PROPERTY_USE_ZIP = "useZip";
+    public static final String PROPERTY_FULL_OBJECT_FORMAT = "fullObjectFormat";
+    public static final String PROPERTY_IN_PLACE_UPDATES = "inPlaceUpdates";
     public static final String PROPERTY_MIN_POOL_SIZE = "minPoolSize";
     public static final String PROPERTY_MAX_POOL_SIZE = "maxPoolSize";
 
@@ -72,12 +74,22 @@ public class SqlRepositoryConfiguration {
     //other
     public static final String PROPERTY_ITERATIVE_SEARCH_BY_PAGING = "iterativeSearchByPaging";
     public static final String PROPERTY_ITERATIVE_SEARCH_BY_PAGING_BATCH_SIZE = "iterativeSearchByPagingBatchSize";
+    public static final String PROPERTY_ITERATIVE_SEARCH_BY_STREAMING = "iterativeSearchByStreaming";
+    public static final String PROPERTY_ITERATIVE_SEARCH_PARSING_THREADS = "iterativeSearchParsingThreads";
+    public static final String PROPERTY_ORDER_INSERTS_AND_UPDATES = "orderInsertsAndUpdates";
 
     //closure
     public static final String PROPERTY_IGNORE_ORG_CLOSURE = "ignoreOrgClosure";
     public static final String PROPERTY_ORG_CLOSURE_STARTUP_ACTION = "orgClosureStartupAction";
     public static final String PROPERTY_SKIP_ORG_CLOSURE_STRUCTURE_CHECK = "skipOrgClosureStructureCheck";
     public static final String PROPERTY_STOP_ON_ORG_CLOSURE_STARTUP_FAILURE = "stopOnOrgClosureStartupFailure";
+    public static final String PROPERTY_ORG_CLOSURE_LOCKING = "orgClosureLocking";
+
+    //query interpretation
+    public static final String PROPERTY_QUERY_PLAN_CACHE_SIZE = "queryPlanCacheSize";
+
+    public static final String FULL_OBJECT_FORMAT_XML = "xml";
+    public static final String FULL_OBJECT_FORMAT_BINARY = "binary";
 
     private String database = Database.H2.name();
 
@@ -100,6 +112,8 @@ public class SqlRepositoryConfiguration {
     private int minPoolSize = 8;
     private int maxPoolSize = 20;
     private boolean useZip;
+    private String fullObjectFormat = FULL_OBJECT_FORMAT_XML;
+    private boolean inPlaceUpdates;
 
     private TransactionIsolation transactionIsolation;
     private boolean lockForUpdateViaHibernate;
@@ -110,11 +124,17 @@ public class SqlRepositoryConfiguration {
 
     private boolean iterativeSearchByPaging;
     private int iterativeSearchByPagingBatchSize;
+    private boolean iterativeSearchByStreaming;
+    private int iterativeSearchParsingThreads;
+    private boolean orderInsertsAndUpdates;
 
     private boolean ignoreOrgClosure;
     private OrgClosureManager.StartupAction orgClosureStartupAction;
     private boolean skipOrgClosureStructureCheck;
     private boolean stopOnOrgClosureStartupFailure;
+    private OrgClosureManager.LockingMode orgClosureLocking;
+
+    private int queryPlanCacheSize = 1000;
 
     public SqlRepositoryConfiguration(Configuration configuration) {
         setDatabase(configuration.getString(PROPERTY_DATABASE, database));
@@ -138,6 +158,8 @@ public class SqlRepositoryConfiguration {
         setMinPoolSize(configuration.getInt(PROPERTY_MIN_POOL_SIZE, minPoolSize));
         setMaxPoolSize(configuration.getInt(PROPERTY_MAX_POOL_SIZE, maxPoolSize));
         setUseZip(configuration.getBoolean(PROPERTY_USE_ZIP, useZip));
+        setFullObjectFormat(configuration.getString(PROPERTY_FULL_OBJECT_FORMAT, fullObjectFormat));
+        setInPlaceUpdates(configuration.getBoolean(PROPERTY_IN_PLACE_UPDATES, inPlaceUpdates));
 
         computeDefaultConcurrencyParameters();
 
@@ -152,11 +174,17 @@ public class SqlRepositoryConfiguration {
 
         setIterativeSearchByPaging(configuration.getBoolean(PROPERTY_ITERATIVE_SEARCH_BY_PAGING, iterativeSearchByPaging));
         setIterativeSearchByPagingBatchSize(configuration.getInt(PROPERTY_ITERATIVE_SEARCH_BY_PAGING_BATCH_SIZE, iterativeSearchByPagingBatchSize));
+        setIterativeSearchByStreaming(configuration.getBoolean(PROPERTY_ITERATIVE_SEARCH_BY_STREAMING, iterativeSearchByStreaming));
+        setIterativeSearchParsingThreads(configuration.getInt(PROPERTY_ITERATIVE_SEARCH_PARSING_THREADS, iterativeSearchParsingThreads));
+        setOrderInsertsAndUpdates(configuration.getBoolean(PROPERTY_ORDER_INSERTS_AND_UPDATES, orderInsertsAndUpdates));
 
         setIgnoreOrgClosure(configuration.getBoolean(PROPERTY_IGNORE_ORG_CLOSURE, false));
         setOrgClosureStartupAction(configuration.getString(PROPERTY_ORG_CLOSURE_STARTUP_ACTION, OrgClosureManager.StartupAction.REBUILD_IF_NEEDED.toString()));
         setSkipOrgClosureStructureCheck(configuration.getBoolean(PROPERTY_SKIP_ORG_CLOSURE_STRUCTURE_CHECK, false));
         setStopOnOrgClosureStartupFailure(configuration.getBoolean(PROPERTY_STOP_ON_ORG_CLOSURE_STARTUP_FAILURE, true));
+        setOrgClosureLocking(configuration.getString(PROPERTY_ORG_CLOSURE_LOCKING, OrgClosureManager.LockingMode.TABLE.toString()));
+
+        setQueryPlanCacheSize(configuration.getInt(PROPERTY_QUERY_PLAN_CACHE_SIZE, queryPlanCacheSize));
     }
 
     private void computeDefaultDatabaseParameters() {
@@ -235,7 +263,10 @@ public class SqlRepositoryConfiguration {
             iterativeSearchByPagingBatchSize = 50;
         } else {
             iterativeSearchByPaging = false;
+            iterativeSearchByPagingBatchSize = 50;
         }
+        iterativeSearchByStreaming = false;
+        iterativeSearchParsingThreads = Runtime.getRuntime().availableProcessors();
     }
 
     /**
@@ -274,6 +305,24 @@ public class SqlRepositoryConfiguration {
         if (getMinPoolSize() > getMaxPoolSize()) {
             throw new RepositoryServiceFactoryException("Max. pool size must be greater than min. pool size.");
         }
+
+        if (!FULL_OBJECT_FORMAT_XML.equals(getFullObjectFormat()) && !FULL_OBJECT_FORMAT_BINARY.equals(getFullObjectFormat())) {
+            throw new RepositoryServiceFactoryException("Unknown full object format '" + getFullObjectFormat()
+                    + "', supported values are '" + FULL_OBJECT_FORMAT_XML + "' and '" + FULL_OBJECT_FORMAT_BINARY + "'.");
+        }
+
+        if (isIterativeSearchByStreaming()) {
+            if (getIterativeSearchByPagingBatchSize() <= 0) {
+                throw new RepositoryServiceFactoryException("Iterative search batch size must be greater than zero.");
+            }
+            if (getIterativeSearchParsingThreads() <= 0) {
+                throw new RepositoryServiceFactoryException("Iterative search parsing threads must be greater than zero.");
+            }
+        }
+
+        if (getQueryPlanCacheSize() < 0) {
+            throw new RepositoryServiceFactoryException("Query plan cache size must not be negative.");
+        }
     }
 
     private void notNull(String value, String message) throws RepositoryServiceFactoryException {
@@ -496,6 +545,29 @@ public class SqlRepositoryConfiguration {
         this.iterativeSearchByPagingBatchSize = iterativeSearchByPagingBatchSize;
     }
 
+    /**
+     * @return true if iterative search should fetch objects in OID-ordered chunks and parse them in parallel
+     * (see ObjectRetriever.searchObjectsIterativeByStreaming). Takes precedence over iterative search by paging.
+     */
+    public boolean isIterativeSearchByStreaming() {
+        return iterativeSearchByStreaming;
+    }
+
+    public void setIterativeSearchByStreaming(boolean iterativeSearchByStreaming) {
+        this.iterativeSearchByStreaming = iterativeSearchByStreaming;
+    }
+
+    /**
+     * @return Number of threads used to parse objects in streaming iterative search. Default is number of processors.
+     */
+    public int getIterativeSearchParsingThreads() {
+        return iterativeSearchParsingThreads;
+    }
+
+    public void setIterativeSearchParsingThreads(int iterativeSearchParsingThreads) {
+        this.iterativeSearchParsingThreads = iterativeSearchParsingThreads;
+    }
+
     public String getDataSource() {
         return dataSource;
     }
@@ -528,6 +600,35 @@ public class SqlRepositoryConfiguration {
         this.useZip = useZip;
     }
 
+    /**
+     * @return Format in which full objects are written: "xml" (default, compressed if useZip is set)
+     * or "binary" (compact prism binary format, see PrismContext.serializeObjectToBinary). Objects are
+     * always readable regardless of this setting, so the format can be switched without migration.
+     */
+    public String getFullObjectFormat() {
+        return fullObjectFormat;
+    }
+
+    public void setFullObjectFormat(String fullObjectFormat) {
+        this.fullObjectFormat = fullObjectFormat;
+    }
+
+    public boolean isFullObjectFormatBinary() {
+        return FULL_OBJECT_FORMAT_BINARY.equals(fullObjectFormat);
+    }
+
+    /**
+     * @return true if simple modifications (single-valued columns, extension values) are written directly
+     * into affected tables, instead of re-creating and merging the whole data object. Disabled by default.
+     */
+    public boolean isInPlaceUpdates() {
+        return inPlaceUpdates;
+    }
+
+    public void setInPlaceUpdates(boolean inPlaceUpdates) {
+        this.inPlaceUpdates = inPlaceUpdates;
+    }
+
     public boolean isIgnoreOrgClosure() {
         return ignoreOrgClosure;
     }
@@ -593,6 +694,39 @@ public class SqlRepositoryConfiguration {
         this.skipOrgClosureStructureCheck = skipOrgClosureStructureCheck;
     }
 
+    public OrgClosureManager.LockingMode getOrgClosureLocking() {
+        return orgClosureLocking;
+    }
+
+    public void setOrgClosureLocking(String orgClosureLocking) {
+        this.orgClosureLocking = OrgClosureManager.LockingMode.fromValue(orgClosureLocking);
+    }
+
+    /**
+     * @return Max. number of query plans cached by the query interpreter; 0 means the cache is switched off.
+     */
+    public int getQueryPlanCacheSize() {
+        return queryPlanCacheSize;
+    }
+
+    public void setQueryPlanCacheSize(int queryPlanCacheSize) {
+        this.queryPlanCacheSize = queryPlanCacheSize;
+    }
+
+    /**
+     * @return True if hibernate should order inserts and updates by entity (hibernate.order_inserts and
+     * hibernate.order_updates). This helps JDBC batching of addObjects/modifyObjects, but it applies to all sessions,
+     * so it also reorders the statements of org closure maintenance and other single-object operations.
+     * Off by default.
+     */
+    public boolean isOrderInsertsAndUpdates() {
+        return orderInsertsAndUpdates;
+    }
+
+    public void setOrderInsertsAndUpdates(boolean orderInsertsAndUpdates) {
+        this.orderInsertsAndUpdates = orderInsertsAndUpdates;
+    }
+
     public String getDatabase() {
         return database;
     }
@@ -24,6 +24,7 @@ import com.evolveum.midpoint.prism.PrismObject;
 import com.evolveum.midpoint.prism.PrismProperty;
 import com.evolveum.midpoint.prism.PrismPropertyValue;
 import com.evolveum.midpoint.prism.delta.ItemDelta;
+import com.evolveum.midpoint.prism.delta.ObjectDelta;
 import com.evolveum.midpoint.prism.delta.PropertyDelta;
 import com.evolveum.midpoint.prism.path.ItemPath;
 import com.evolveum.midpoint.prism.polystring.PolyString;
@@ -32,9 +33,12 @@ import com.evolveum.midpoint.prism.query.NoneFilter;
 import com.evolveum.midpoint.prism.query.ObjectFilter;
 import com.evolveum.midpoint.prism.query.ObjectPaging;
 import com.evolveum.midpoint.prism.query.ObjectQuery;
+import com.evolveum.midpoint.repo.api.ModificationPrecondition;
+import com.evolveum.midpoint.repo.api.PreconditionViolationException;
 import com.evolveum.midpoint.repo.api.RepoAddOptions;
 import com.evolveum.midpoint.repo.api.RepositoryService;
 import com.evolveum.midpoint.repo.sql.helpers.*;
+import com.evolveum.midpoint.repo.sql.query2.QueryPlanCache;
 import com.evolveum.midpoint.schema.GetOperationOptions;
 import com.evolveum.midpoint.schema.LabeledString;
 import com.evolveum.midpoint.schema.RepositoryDiag;
@@ -55,6 +59,7 @@ import com.evolveum.midpoint.xml.ns._public.common.common_3.ObjectType;
 import com.evolveum.midpoint.xml.ns._public.common.common_3.ShadowType;
 import com.evolveum.midpoint.xml.ns._public.common.common_3.UserType;
 import com.evolveum.prism.xml.ns._public.types_3.PolyStringType;
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.Validate;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
@@ -68,12 +73,15 @@ import java.sql.Driver;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 
 /**
  * @author lazyman
@@ -85,6 +93,16 @@ public class SqlRepositoryServiceImpl extends SqlBaseService implements Reposito
 
     public static final String PERFORMANCE_LOG_NAME = SqlRepositoryServiceImpl.class.getName() + ".performance";
 
+    public static final String CONVERT_FULL_OBJECTS = SqlRepositoryServiceImpl.class.getName() + ".convertFullObjects";
+    private static final int CONVERT_FULL_OBJECTS_BATCH_SIZE = 100;
+
+    private static final String ADD_OBJECTS_ITEM = ADD_OBJECTS + ".item";
+    private static final String ADD_OBJECTS_BATCH = ADD_OBJECTS + ".batch";
+    private static final String MODIFY_OBJECTS_ITEM = MODIFY_OBJECTS + ".item";
+    private static final String MODIFY_OBJECTS_BATCH = MODIFY_OBJECTS + ".batch";
+    // maximal number of objects added or modified in one transaction by addObjects/modifyObjects
+    private static final int BATCH_OPERATION_SIZE = 100;
+
     private static final Trace LOGGER = TraceManager.getTrace(SqlRepositoryServiceImpl.class);
     private static final Trace LOGGER_PERFORMANCE = TraceManager.getTrace(PERFORMANCE_LOG_NAME);
 
@@ -97,6 +115,7 @@ public class SqlRepositoryServiceImpl extends SqlBaseService implements Reposito
     private static final String DETAILS_DATA_SOURCE = "dataSource";
     private static final String DETAILS_HIBERNATE_DIALECT = "hibernateDialect";
     private static final String DETAILS_HIBERNATE_HBM_2_DDL = "hibernateHbm2ddl";
+    private static final String DETAILS_QUERY_PLAN_CACHE = "queryPlanCache";
 
     @Autowired
     private SequenceHelper sequenceHelper;
@@ -338,6 +357,26 @@ public class SqlRepositoryServiceImpl extends SqlBaseService implements Reposito
                         options.isAllowUnencryptedValues()}
         );
 
+        checkObjectToAdd(object, options);
+
+        OperationResult subResult = result.createSubresult(ADD_OBJECT);
+        subResult.addParam("object", object);
+        subResult.addParam("options", options);
+
+        final String operation = "adding";
+        int attempt = 1;
+
+        String oid = object.getOid();
+        while (true) {
+            try {
+                return objectUpdater.addObjectAttempt(object, options, subResult);
+            } catch (RuntimeException ex) {
+                attempt = baseHelper.logOperationAttempt(oid, operation, attempt, ex, subResult);
+            }
+        }
+    }
+
+    private void checkObjectToAdd(PrismObject<? extends ObjectType> object, RepoAddOptions options) {
         if (InternalsConfig.encryptionChecks && !RepoAddOptions.isAllowUnencryptedValues(options)) {
             CryptoUtil.checkEncrypted(object);
         }
@@ -353,20 +392,132 @@ public class SqlRepositoryServiceImpl extends SqlBaseService implements Reposito
             PolyStringType namePolyType = object.asObjectable().getName();
             LOGGER.trace("NAME: {} - {}", namePolyType.getOrig(), namePolyType.getNorm());
         }
+    }
 
-        OperationResult subResult = result.createSubresult(ADD_OBJECT);
-        subResult.addParam("object", object);
+    @Override
+    public List<OperationResult> addObjects(List<? extends PrismObject<? extends ObjectType>> objects,
+                                            RepoAddOptions options, OperationResult result) {
+        Validate.notNull(objects, "Objects must not be null.");
+        Validate.notNull(result, "Operation result must not be null.");
+
+        if (options == null) {
+            options = new RepoAddOptions();
+        }
+
+        LOGGER.debug("Adding {} objects, overwrite={}, allowUnencryptedValues={}",
+                new Object[]{objects.size(), options.isOverwrite(), options.isAllowUnencryptedValues()});
+
+        OperationResult subResult = result.createSubresult(ADD_OBJECTS);
+        subResult.addParam("count", objects.size());
         subResult.addParam("options", options);
 
-        final String operation = "adding";
+        OperationResult[] itemResults = new OperationResult[objects.size()];
+        try {
+            // overwriting additions are not batched, they have to read (and lock) existing objects anyway
+            List<Integer> batchable = new ArrayList<>();
+            if (!options.isOverwrite()) {
+                Set<String> oids = new HashSet<>();
+                for (int i = 0; i < objects.size(); i++) {
+                    PrismObject<? extends ObjectType> object = objects.get(i);
+                    if (isBatchAddable(object, options) && (object.getOid() == null || oids.add(object.getOid()))) {
+                        batchable.add(i);
+                    }
+                }
+            }
+
+            for (int from = 0; from < batchable.size(); from += BATCH_OPERATION_SIZE) {
+                List<Integer> chunk = batchable.subList(from, Math.min(from + BATCH_OPERATION_SIZE, batchable.size()));
+                if (chunk.size() < 2) {
+                    break;
+                }
+                List<PrismObject<? extends ObjectType>> chunkObjects = new ArrayList<>(chunk.size());
+                for (Integer i : chunk) {
+                    chunkObjects.add(objects.get(i));
+                }
+                if (addObjectsInBatch(chunkObjects, subResult)) {
+                    for (Integer i : chunk) {
+                        itemResults[i] = createAddObjectsItemResult(objects.get(i), subResult);
+                        itemResults[i].recordSuccess();
+                    }
+                }
+            }
+
+            // the rest is added one by one
+            for (int i = 0; i < objects.size(); i++) {
+                if (itemResults[i] != null) {
+                    continue;
+                }
+                PrismObject<? extends ObjectType> object = objects.get(i);
+                OperationResult itemResult = createAddObjectsItemResult(object, subResult);
+                try {
+                    addObject(object, options, itemResult);
+                } catch (ObjectAlreadyExistsException | SchemaException | RuntimeException ex) {
+                    LOGGER.debug("Couldn't add object {}: {}", object, ex.getMessage(), ex);
+                    itemResult.recordFatalError(ex);
+                } finally {
+                    itemResult.computeStatusIfUnknown();
+                }
+                itemResults[i] = itemResult;
+            }
+        } finally {
+            subResult.computeStatus();
+        }
+        return Arrays.asList(itemResults);
+    }
+
+    private boolean isBatchAddable(PrismObject<? extends ObjectType> object, RepoAddOptions options) {
+        if (object == null || !objectUpdater.isBatchAddSupported(object)) {
+            return false;
+        }
+        try {
+            validateName(object);
+            checkObjectToAdd(object, options);
+            return true;
+        } catch (SchemaException | RuntimeException ex) {
+            // the object will be added individually, failing with proper result
+            return false;
+        }
+    }
+
+    private OperationResult createAddObjectsItemResult(PrismObject<? extends ObjectType> object, OperationResult result) {
+        OperationResult itemResult = result.createSubresult(ADD_OBJECTS_ITEM);
+        if (object != null) {
+            itemResult.addParam("type", object.getCompileTimeClass() != null ? object.getCompileTimeClass().getName() : null);
+            itemResult.addParam("oid", object.getOid());
+        }
+        return itemResult;
+    }
+
+    private boolean addObjectsInBatch(List<PrismObject<? extends ObjectType>> objects, OperationResult result) {
+        OperationResult batchResult = result.createSubresult(ADD_OBJECTS_BATCH);
+        batchResult.addParam("count", objects.size());
+
+        final String operation = "adding (in batch)";
         int attempt = 1;
 
-        String oid = object.getOid();
-        while (true) {
-            try {
-                return objectUpdater.addObjectAttempt(object, options, subResult);
-            } catch (RuntimeException ex) {
-                attempt = baseHelper.logOperationAttempt(oid, operation, attempt, ex, subResult);
+        SqlPerformanceMonitor pm = getPerformanceMonitor();
+        long opHandle = pm.registerOperationStart("addObjects");
+
+        boolean added = false;
+        try {
+            while (true) {
+                try {
+                    added = objectUpdater.addObjectsAttempt(objects, batchResult);
+                    return added;
+                } catch (RuntimeException ex) {
+                    attempt = baseHelper.logOperationAttempt(null, operation, attempt, ex, batchResult);
+                    pm.registerOperationNewTrial(opHandle, attempt);
+                }
+            }
+        } catch (RuntimeException ex) {
+            LOGGER.debug("Couldn't add {} objects in batch, they will be added one by one: {}", objects.size(), ex.getMessage(), ex);
+            return false;
+        } finally {
+            pm.registerOperationFinish(opHandle, attempt);
+            if (!added) {
+                // the objects will be added one by one, this is not an error yet
+                batchResult.computeStatusIfUnknown();
+                batchResult.muteError();
             }
         }
     }
@@ -454,6 +605,19 @@ public class SqlRepositoryServiceImpl extends SqlBaseService implements Reposito
                                                     Collection<? extends ItemDelta> modifications,
                                                     OperationResult result)
             throws ObjectNotFoundException, SchemaException, ObjectAlreadyExistsException {
+        try {
+            modifyObject(type, oid, modifications, null, result);
+        } catch (PreconditionViolationException e) {
+            throw new IllegalStateException("Unexpected precondition violation without a precondition", e);
+        }
+    }
+
+    @Override
+    public <T extends ObjectType> void modifyObject(Class<T> type, String oid,
+                                                    Collection<? extends ItemDelta> modifications,
+                                                    ModificationPrecondition<T> precondition,
+                                                    OperationResult result)
+            throws ObjectNotFoundException, SchemaException, ObjectAlreadyExistsException, PreconditionViolationException {
 
         Validate.notNull(modifications, "Modifications must not be null.");
         Validate.notNull(type, "Object class in delta must not be null.");
@@ -465,12 +629,37 @@ public class SqlRepositoryServiceImpl extends SqlBaseService implements Reposito
         subResult.addParam("oid", oid);
         subResult.addCollectionOfSerializablesAsParam("modifications", modifications);
 
-        if (modifications.isEmpty()) {
+        if (modifications.isEmpty() && precondition == null) {
             LOGGER.debug("Modification list is empty, nothing was modified.");
             subResult.recordStatus(OperationResultStatus.SUCCESS, "Modification list is empty, nothing was modified.");
             return;
         }
 
+        checkModifications(modifications);
+
+        final String operation = "modifying";
+        int attempt = 1;
+
+        SqlPerformanceMonitor pm = getPerformanceMonitor();
+        long opHandle = pm.registerOperationStart("modifyObject");
+
+        try {
+            while (true) {
+                try {
+                    objectUpdater.modifyObjectAttempt(type, oid, modifications, precondition, subResult);
+                    return;
+                } catch (RuntimeException ex) {
+                    attempt = baseHelper.logOperationAttempt(oid, operation, attempt, ex, subResult);
+                    pm.registerOperationNewTrial(opHandle, attempt);
+                }
+            }
+        } finally {
+            pm.registerOperationFinish(opHandle, attempt);
+        }
+
+    }
+
+    private void checkModifications(Collection<? extends ItemDelta> modifications) {
         if (InternalsConfig.encryptionChecks) {
             CryptoUtil.checkEncrypted(modifications);
         }
@@ -495,27 +684,141 @@ public class SqlRepositoryServiceImpl extends SqlBaseService implements Reposito
                 }
             }
         }
+    }
 
-        final String operation = "modifying";
+    @Override
+    public List<OperationResult> modifyObjects(List<? extends ObjectDelta<? extends ObjectType>> deltas,
+                                               OperationResult result) {
+        Validate.notNull(deltas, "Deltas must not be null.");
+        Validate.notNull(result, "Operation result must not be null.");
+
+        LOGGER.debug("Modifying {} objects.", deltas.size());
+
+        OperationResult subResult = result.createSubresult(MODIFY_OBJECTS);
+        subResult.addParam("count", deltas.size());
+
+        OperationResult[] itemResults = new OperationResult[deltas.size()];
+        try {
+            // Only the first modification of each object can be batched; the following ones are executed one by one
+            // afterwards, so the order of modifications of each object is kept. Deltas are sorted by OID in order to
+            // lock the objects in the same order in concurrent batches.
+            List<Integer> batchable = new ArrayList<>();
+            Set<String> oids = new HashSet<>();
+            for (int i = 0; i < deltas.size(); i++) {
+                ObjectDelta<? extends ObjectType> delta = deltas.get(i);
+                if (isBatchModifiable(delta) && oids.add(delta.getOid())) {
+                    batchable.add(i);
+                }
+            }
+            sortByOid(batchable, deltas);
+
+            for (int from = 0; from < batchable.size(); from += BATCH_OPERATION_SIZE) {
+                List<Integer> chunk = batchable.subList(from, Math.min(from + BATCH_OPERATION_SIZE, batchable.size()));
+                if (chunk.size() < 2) {
+                    break;
+                }
+                List<ObjectDelta<? extends ObjectType>> chunkDeltas = new ArrayList<>(chunk.size());
+                for (Integer i : chunk) {
+                    chunkDeltas.add(deltas.get(i));
+                }
+                if (modifyObjectsInBatch(chunkDeltas, subResult)) {
+                    for (Integer i : chunk) {
+                        itemResults[i] = createModifyObjectsItemResult(deltas.get(i), subResult);
+                        itemResults[i].recordSuccess();
+                    }
+                }
+            }
+
+            // the rest is modified one by one
+            for (int i = 0; i < deltas.size(); i++) {
+                if (itemResults[i] != null) {
+                    continue;
+                }
+                ObjectDelta<? extends ObjectType> delta = deltas.get(i);
+                OperationResult itemResult = createModifyObjectsItemResult(delta, subResult);
+                try {
+                    if (delta == null || !delta.isModify()) {
+                        throw new IllegalArgumentException("Not a MODIFY delta: " + delta);
+                    }
+                    modifyObject(delta.getObjectTypeClass(), delta.getOid(), delta.getModifications(), itemResult);
+                } catch (ObjectNotFoundException | SchemaException | ObjectAlreadyExistsException | RuntimeException ex) {
+                    LOGGER.debug("Couldn't modify object {}: {}", delta != null ? delta.getOid() : null, ex.getMessage(), ex);
+                    itemResult.recordFatalError(ex);
+                } finally {
+                    itemResult.computeStatusIfUnknown();
+                }
+                itemResults[i] = itemResult;
+            }
+        } finally {
+            subResult.computeStatus();
+        }
+        return Arrays.asList(itemResults);
+    }
+
+    private boolean isBatchModifiable(ObjectDelta<? extends ObjectType> delta) {
+        if (delta == null || !delta.isModify() || delta.getObjectTypeClass() == null || StringUtils.isEmpty(delta.getOid())
+                || delta.getModifications().isEmpty() || !objectUpdater.isBatchModifySupported(delta.getObjectTypeClass())) {
+            return false;
+        }
+        try {
+            checkModifications(delta.getModifications());
+            return true;
+        } catch (RuntimeException ex) {
+            // the delta will be executed individually, failing with proper result
+            return false;
+        }
+    }
+
+    private void sortByOid(List<Integer> indices, final List<? extends ObjectDelta<? extends ObjectType>> deltas) {
+        Collections.sort(indices, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return deltas.get(i1).getOid().compareTo(deltas.get(i2).getOid());
+            }
+        });
+    }
+
+    private OperationResult createModifyObjectsItemResult(ObjectDelta<? extends ObjectType> delta, OperationResult result) {
+        OperationResult itemResult = result.createSubresult(MODIFY_OBJECTS_ITEM);
+        if (delta != null) {
+            itemResult.addParam("type", delta.getObjectTypeClass() != null ? delta.getObjectTypeClass().getName() : null);
+            itemResult.addParam("oid", delta.getOid());
+        }
+        return itemResult;
+    }
+
+    private boolean modifyObjectsInBatch(List<ObjectDelta<? extends ObjectType>> deltas, OperationResult result) {
+        OperationResult batchResult = result.createSubresult(MODIFY_OBJECTS_BATCH);
+        batchResult.addParam("count", deltas.size());
+
+        final String operation = "modifying (in batch)";
         int attempt = 1;
 
         SqlPerformanceMonitor pm = getPerformanceMonitor();
-        long opHandle = pm.registerOperationStart("modifyObject");
+        long opHandle = pm.registerOperationStart("modifyObjects");
 
+        boolean modified = false;
         try {
             while (true) {
                 try {
-                    objectUpdater.modifyObjectAttempt(type, oid, modifications, subResult);
-                    return;
+                    modified = objectUpdater.modifyObjectsAttempt(deltas, batchResult);
+                    return modified;
                 } catch (RuntimeException ex) {
-                    attempt = baseHelper.logOperationAttempt(oid, operation, attempt, ex, subResult);
+                    attempt = baseHelper.logOperationAttempt(null, operation, attempt, ex, batchResult);
                     pm.registerOperationNewTrial(opHandle, attempt);
                 }
             }
+        } catch (RuntimeException ex) {
+            LOGGER.debug("Couldn't modify {} objects in batch, they will be modified one by one: {}", deltas.size(), ex.getMessage(), ex);
+            return false;
         } finally {
             pm.registerOperationFinish(opHandle, attempt);
+            if (!modified) {
+                // the objects will be modified one by one, this is not an error yet
+                batchResult.computeStatusIfUnknown();
+                batchResult.muteError();
+            }
         }
-
     }
 
     @Override
@@ -583,6 +886,10 @@ public class SqlRepositoryServiceImpl extends SqlBaseService implements Reposito
         details.add(new LabeledString(DETAILS_DATA_SOURCE, config.getDataSource()));
         details.add(new LabeledString(DETAILS_HIBERNATE_DIALECT, config.getHibernateDialect()));
         details.add(new LabeledString(DETAILS_HIBERNATE_HBM_2_DDL, config.getHibernateHbm2ddl()));
+        QueryPlanCache queryPlanCache = objectRetriever.getQueryPlanCache();
+        if (queryPlanCache != null) {
+            details.add(new LabeledString(DETAILS_QUERY_PLAN_CACHE, queryPlanCache.toString()));
+        }
 
         readDetailsFromConnection(diag, config);
 
@@ -685,6 +992,16 @@ public class SqlRepositoryServiceImpl extends SqlBaseService implements Reposito
         getClosureManager().checkAndOrRebuild(true, repairIfNecessary, false, false, testResult);
     }
 
+    @Override
+    public void beginOrgClosureBulkMode() {
+        getClosureManager().beginBulkMode();
+    }
+
+    @Override
+    public void finishOrgClosureBulkMode(OperationResult result) {
+        getClosureManager().finishBulkMode(result);
+    }
+
     @Override
     public <T extends ObjectType> String getVersion(Class<T> type, String oid, OperationResult parentResult)
             throws ObjectNotFoundException, SchemaException {
@@ -749,6 +1066,11 @@ public class SqlRepositoryServiceImpl extends SqlBaseService implements Reposito
             }
         }
 
+        if (getConfiguration().isIterativeSearchByStreaming() && (query == null || query.getPaging() == null)) {
+            objectRetriever.searchObjectsIterativeByStreaming(type, query, handler, options, subResult);
+            return null;
+        }
+
         if (getConfiguration().isIterativeSearchByPaging()) {
             if (strictlySequential) {
                 objectRetriever.searchObjectsIterativeByPagingStrictlySequential(type, query, handler, options, subResult);
@@ -909,4 +1231,47 @@ public class SqlRepositoryServiceImpl extends SqlBaseService implements Reposito
         }
     }
 
+
+    /**
+     * Rewrites full objects of all objects in the repository into the full object format that is currently
+     * configured (see SqlRepositoryConfiguration.getFullObjectFormat). This is not part of RepositoryService
+     * interface; it is a maintenance operation to be run e.g. from repo-ninja after the format was changed.
+     * Objects are processed in OID order, in separate transactions of CONVERT_FULL_OBJECTS_BATCH_SIZE objects.
+     */
+    public void convertFullObjects(OperationResult result) {
+        Validate.notNull(result, "Operation result must not be null.");
+
+        LOGGER.info("Converting full objects to '{}' format.", getConfiguration().getFullObjectFormat());
+
+        OperationResult subResult = result.createSubresult(CONVERT_FULL_OBJECTS);
+        subResult.addParam("format", getConfiguration().getFullObjectFormat());
+
+        final String operation = "converting full objects";
+        String lastOid = null;
+        try {
+            while (true) {
+                String newLastOid = null;
+                int attempt = 1;
+                while (true) {
+                    try {
+                        newLastOid = objectUpdater.convertFullObjectsAttempt(lastOid, CONVERT_FULL_OBJECTS_BATCH_SIZE,
+                                subResult.createMinorSubresult(CONVERT_FULL_OBJECTS + ".batch"));
+                        break;
+                    } catch (RuntimeException ex) {
+                        attempt = baseHelper.logOperationAttempt(null, operation, attempt, ex, subResult);
+                    }
+                }
+                if (newLastOid == null) {
+                    break;
+                }
+                lastOid = newLastOid;
+                LOGGER.info("Converted full objects up to OID {}.", lastOid);
+            }
+            subResult.recordSuccess();
+        } catch (RuntimeException ex) {
+            subResult.recordFatalError(ex);
+            throw ex;
+        }
+    }
+
 }
@@ -232,7 +232,7 @@ public class BaseHelper {
 		return ++attempt;
 	}
 
-	private boolean isExceptionRelatedToSerialization(Exception ex) {
+	public boolean isExceptionRelatedToSerialization(Exception ex) {
 
 		if (ex instanceof SerializationRelatedException
 				|| ex instanceof PessimisticLockException
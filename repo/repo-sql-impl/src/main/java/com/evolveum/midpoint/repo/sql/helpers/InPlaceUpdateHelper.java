@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.repo.sql.helpers;
+
+import com.evolveum.midpoint.prism.Item;
+import com.evolveum.midpoint.prism.PrismContext;
+import com.evolveum.midpoint.prism.PrismObject;
+import com.evolveum.midpoint.prism.PrismProperty;
+import com.evolveum.midpoint.prism.delta.ItemDelta;
+import com.evolveum.midpoint.prism.delta.PropertyDelta;
+import com.evolveum.midpoint.prism.delta.ReferenceDelta;
+import com.evolveum.midpoint.prism.path.ItemPath;
+import com.evolveum.midpoint.prism.path.ItemPathSegment;
+import com.evolveum.midpoint.prism.path.NameItemPathSegment;
+import com.evolveum.midpoint.repo.sql.data.common.RObject;
+import com.evolveum.midpoint.repo.sql.data.common.any.RAnyConverter;
+import com.evolveum.midpoint.repo.sql.data.common.any.RAnyValue;
+import com.evolveum.midpoint.repo.sql.data.common.any.ROExtBoolean;
+import com.evolveum.midpoint.repo.sql.data.common.any.ROExtDate;
+import com.evolveum.midpoint.repo.sql.data.common.any.ROExtLong;
+import com.evolveum.midpoint.repo.sql.data.common.any.ROExtPolyString;
+import com.evolveum.midpoint.repo.sql.data.common.any.ROExtReference;
+import com.evolveum.midpoint.repo.sql.data.common.any.ROExtString;
+import com.evolveum.midpoint.repo.sql.data.common.any.ROExtValue;
+import com.evolveum.midpoint.repo.sql.data.common.enums.SchemaEnum;
+import com.evolveum.midpoint.repo.sql.data.common.type.RObjectExtensionType;
+import com.evolveum.midpoint.repo.sql.query.QueryException;
+import com.evolveum.midpoint.repo.sql.query2.QueryDefinitionRegistry2;
+import com.evolveum.midpoint.repo.sql.query2.definition.JpaEntityDefinition;
+import com.evolveum.midpoint.repo.sql.query2.definition.JpaLinkDefinition;
+import com.evolveum.midpoint.repo.sql.query2.definition.JpaPropertyDefinition;
+import com.evolveum.midpoint.repo.sql.query2.resolution.DataSearchResult;
+import com.evolveum.midpoint.repo.sql.util.ClassMapper;
+import com.evolveum.midpoint.repo.sql.util.DtoTranslationException;
+import com.evolveum.midpoint.repo.sql.util.RUtil;
+import com.evolveum.midpoint.util.exception.SystemException;
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.ObjectType;
+import org.hibernate.Query;
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes simple modifications directly into affected tables, instead of re-creating the whole data object
+ * (RObject) from the modified prism object and merging it into the session. Merge is expensive for objects
+ * with many child rows (assignments, references, extension values), because hibernate loads and compares
+ * all of them, even if only a single timestamp has changed.
+ *
+ * Supported modifications are:
+ * - property deltas on top-level single-valued properties that are stored in a plain column
+ *   (string, number, boolean, timestamp or enum), e.g. task/lastRunStartTimestamp or shadow/synchronizationTimestamp,
+ * - property and reference deltas on items in object extension.
+ *
+ * The object itself (fullObject column) is always rewritten, as well as its version.
+ *
+ * In-place updates are used only if enabled by inPlaceUpdates repository configuration property.
+ *
+ * @author agent
+ */
+@Component
+public class InPlaceUpdateHelper {
+
+    private static final Trace LOGGER = TraceManager.getTrace(InPlaceUpdateHelper.class);
+
+    private static final Set<Class> SUPPORTED_COLUMN_TYPES = new HashSet<Class>(Arrays.asList(
+            String.class, Integer.class, Long.class, Short.class, Boolean.class, XMLGregorianCalendar.class));
+
+    // entity names of extension values, in the order of counts returned by "getExtCount" named query
+    private static final List<Class<? extends ROExtValue>> EXTENSION_VALUE_CLASSES = Arrays.asList(
+            ROExtString.class, ROExtLong.class, ROExtDate.class, ROExtReference.class, ROExtPolyString.class, ROExtBoolean.class);
+    private static final List<String> EXTENSION_COUNT_PROPERTIES = Arrays.asList(
+            "stringsCount", "longsCount", "datesCount", "referencesCount", "polysCount", "booleansCount");
+
+    @Autowired
+    private BaseHelper baseHelper;
+
+    @Autowired
+    private PrismContext prismContext;
+
+    /**
+     * Returns true if all the modifications can be written in place.
+     */
+    public <T extends ObjectType> boolean isApplicable(Class<T> type, Collection<? extends ItemDelta> modifications) {
+        if (!baseHelper.getConfiguration().isInPlaceUpdates() || modifications.isEmpty()) {
+            return false;
+        }
+        JpaEntityDefinition entityDefinition;
+        try {
+            entityDefinition = QueryDefinitionRegistry2.getInstance().findEntityDefinition(type);
+        } catch (QueryException|RuntimeException e) {
+            LOGGER.trace("No entity definition for {}, in-place update is not possible: {}", type, e.getMessage());
+            return false;
+        }
+        for (ItemDelta modification : modifications) {
+            if (isExtensionItemPath(modification.getPath())) {
+                if ((!(modification instanceof PropertyDelta) && !(modification instanceof ReferenceDelta))
+                        || modification.getDefinition() == null) {
+                    return false;
+                }
+            } else if (!(modification instanceof PropertyDelta) || findColumnDefinition(entityDefinition, modification.getPath()) == null) {
+                LOGGER.trace("In-place update is not possible for {} because of {}", type, modification.getPath());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the object (with the modifications already applied) into the database.
+     *
+     * @param fullObject serialized form of the object, with the new version
+     */
+    public <T extends ObjectType> void updateObject(Session session, PrismObject<T> object,
+                                                    Collection<? extends ItemDelta> modifications,
+                                                    int version, byte[] fullObject) throws DtoTranslationException {
+        String oid = object.getOid();
+        Class<? extends RObject> hqlType = ClassMapper.getHQLTypeClass(object.getCompileTimeClass());
+
+        Map<String, Object> columnValues = new LinkedHashMap<>();
+        columnValues.put("version", version);
+        columnValues.put("fullObject", fullObject);
+
+        JpaEntityDefinition entityDefinition;
+        try {
+            entityDefinition = QueryDefinitionRegistry2.getInstance().findEntityDefinition(object.getCompileTimeClass());
+        } catch (QueryException e) {
+            throw new DtoTranslationException(e.getMessage(), e);
+        }
+
+        List<ItemPath> extensionItemPaths = new ArrayList<>();
+        for (ItemDelta modification : modifications) {
+            ItemPath path = modification.getPath();
+            if (isExtensionItemPath(path)) {
+                if (!ItemPath.containsEquivalent(extensionItemPaths, path)) {
+                    extensionItemPaths.add(path);
+                }
+                continue;
+            }
+            JpaLinkDefinition<JpaPropertyDefinition> link = findColumnDefinition(entityDefinition, path);
+            if (link == null) {
+                throw new IllegalStateException("Modification of " + path + " in " + object + " can't be written in place");
+            }
+            PrismProperty property = object.findProperty(path);
+            Object realValue = property != null ? property.getRealValue() : null;
+            columnValues.put(link.getJpaName(), toRepoValue(link.getTargetDefinition(), realValue));
+        }
+
+        if (!extensionItemPaths.isEmpty()) {
+            updateExtensionItems(session, object, extensionItemPaths, columnValues);
+        }
+
+        updateColumns(session, hqlType, oid, columnValues);
+    }
+
+    private boolean isExtensionItemPath(ItemPath path) {
+        if (path == null || path.size() != 2) {
+            return false;
+        }
+        ItemPathSegment first = path.first();
+        ItemPathSegment second = path.getSegments().get(1);
+        return first instanceof NameItemPathSegment
+                && ObjectType.F_EXTENSION.equals(((NameItemPathSegment) first).getName())
+                && second instanceof NameItemPathSegment;
+    }
+
+    /**
+     * Returns definition of the column that stores the item, if it can be updated by a single value.
+     */
+    private JpaLinkDefinition<JpaPropertyDefinition> findColumnDefinition(JpaEntityDefinition entityDefinition, ItemPath path) {
+        if (path == null || path.size() != 1 || !(path.first() instanceof NameItemPathSegment)) {
+            return null;
+        }
+        DataSearchResult<JpaPropertyDefinition> result;
+        try {
+            result = entityDefinition.findDataNodeDefinition(path, null, JpaPropertyDefinition.class);
+        } catch (QueryException e) {
+            return null;
+        }
+        if (result == null || !result.isComplete()) {
+            return null;
+        }
+        JpaLinkDefinition<JpaPropertyDefinition> link = result.getLinkDefinition();
+        if (link.isMultivalued() || !link.hasJpaRepresentation() || link.getItemPath().size() != 1) {
+            return null;
+        }
+        JpaPropertyDefinition property = link.getTargetDefinition();
+        if (property.isLob() || property.isPolyString()) {
+            return null;
+        }
+        Class jpaClass = property.getJpaClass();
+        if (property.isEnumerated()) {
+            return SchemaEnum.class.isAssignableFrom(jpaClass) ? link : null;
+        }
+        if (SUPPORTED_COLUMN_TYPES.contains(jpaClass) && jpaClass.equals(property.getJaxbClass())) {
+            return link;
+        }
+        return null;
+    }
+
+    private Object toRepoValue(JpaPropertyDefinition definition, Object realValue) {
+        if (realValue == null) {
+            return null;
+        }
+        if (definition.isEnumerated()) {
+            return RUtil.getRepoEnumValue(realValue, definition.getJpaClass());
+        }
+        if (!definition.getJpaClass().isAssignableFrom(realValue.getClass())) {
+            throw new SystemException("Value " + realValue + " is of type " + realValue.getClass()
+                    + ", expected " + definition.getJpaClass());
+        }
+        return realValue;
+    }
+
+    /**
+     * Replaces all the values of given extension items (m_object_ext_* tables) and updates the value counts.
+     */
+    private void updateExtensionItems(Session session, PrismObject<? extends ObjectType> object,
+                                      List<ItemPath> paths, Map<String, Object> columnValues) throws DtoTranslationException {
+        String oid = object.getOid();
+
+        Query countQuery = session.getNamedQuery("getExtCount");
+        countQuery.setString("oid", oid);
+        Object[] counts = (Object[]) countQuery.uniqueResult();
+        int[] newCounts = new int[EXTENSION_VALUE_CLASSES.size()];
+        for (int i = 0; i < newCounts.length; i++) {
+            newCounts[i] = counts != null && counts[i] != null ? ((Number) counts[i]).intValue() : 0;
+        }
+
+        RObject owner = (RObject) session.load(RObject.class, oid);
+        RAnyConverter converter = new RAnyConverter(prismContext);
+        for (ItemPath path : paths) {
+            String name = RUtil.qnameToString(((NameItemPathSegment) path.last()).getName());
+            for (int i = 0; i < newCounts.length; i++) {
+                if (newCounts[i] == 0) {
+                    continue;
+                }
+                Query delete = session.createQuery("delete from " + EXTENSION_VALUE_CLASSES.get(i).getSimpleName()
+                        + " where ownerOid = :oid and ownerType = :ownerType and name = :name");
+                delete.setString("oid", oid);
+                delete.setParameter("ownerType", RObjectExtensionType.EXTENSION);
+                delete.setString("name", name);
+                newCounts[i] -= delete.executeUpdate();
+            }
+
+            Item item = object.findItem(path);
+            if (item == null || item.isEmpty()) {
+                continue;
+            }
+            for (RAnyValue value : converter.convertToRValue(item, false)) {
+                ROExtValue extValue = (ROExtValue) value;
+                extValue.setOwner(owner);
+                extValue.setOwnerType(RObjectExtensionType.EXTENSION);
+                session.save(extValue);
+                newCounts[EXTENSION_VALUE_CLASSES.indexOf(extValue.getClass())]++;
+            }
+        }
+
+        for (int i = 0; i < newCounts.length; i++) {
+            columnValues.put(EXTENSION_COUNT_PROPERTIES.get(i), (short) newCounts[i]);
+        }
+    }
+
+    /**
+     * Updates columns of the object tables (m_object and the table(s) of the specific type) by native SQL.
+     * Table and column names are taken from hibernate metadata.
+     */
+    private void updateColumns(Session session, Class<? extends RObject> hqlType, String oid, Map<String, Object> columnValues) {
+        ClassMetadata metadata = session.getSessionFactory().getClassMetadata(hqlType);
+        if (!(metadata instanceof AbstractEntityPersister)) {
+            throw new SystemException("Unsupported metadata for " + hqlType + ": " + metadata);
+        }
+        AbstractEntityPersister persister = (AbstractEntityPersister) metadata;
+        String keyColumn = persister.getKeyColumnNames()[0];
+
+        Map<String, List<String>> propertiesByTable = new LinkedHashMap<>();
+        for (String property : columnValues.keySet()) {
+            String table = persister.getPropertyTableName(property);
+            List<String> properties = propertiesByTable.get(table);
+            if (properties == null) {
+                properties = new ArrayList<>();
+                propertiesByTable.put(table, properties);
+            }
+            properties.add(property);
+        }
+
+        for (Map.Entry<String, List<String>> entry : propertiesByTable.entrySet()) {
+            StringBuilder sb = new StringBuilder("update ").append(entry.getKey()).append(" set ");
+            boolean first = true;
+            for (String property : entry.getValue()) {
+                String[] columns = persister.getPropertyColumnNames(property);
+                if (columns.length != 1) {
+                    throw new SystemException("Property " + property + " of " + hqlType + " is not stored in a single column");
+                }
+                if (!first) {
+                    sb.append(", ");
+                }
+                sb.append(columns[0]).append(" = ?");
+                first = false;
+            }
+            sb.append(" where ").append(keyColumn).append(" = ?");
+
+            SQLQuery query = session.createSQLQuery(sb.toString());
+            int index = 0;
+            for (String property : entry.getValue()) {
+                query.setParameter(index++, columnValues.get(property), persister.getPropertyType(property));
+            }
+            query.setString(index, oid);
+            LOGGER.trace("Updating object {} in place: {}", oid, sb);
+            int updated = query.executeUpdate();
+            if (updated != 1) {
+                throw new SystemException("Unexpected number of rows updated in " + entry.getKey() + " for " + oid + ": " + updated);
+            }
+        }
+    }
+}
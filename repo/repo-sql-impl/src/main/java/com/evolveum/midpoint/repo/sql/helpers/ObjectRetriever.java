@@ -39,6 +39,7 @@ import com.evolveum.midpoint.repo.sql.query.QueryEngine;
 import com.evolveum.midpoint.repo.sql.query.QueryException;
 import com.evolveum.midpoint.repo.sql.query.RQuery;
 import com.evolveum.midpoint.repo.sql.query2.QueryEngine2;
+import com.evolveum.midpoint.repo.sql.query2.QueryPlanCache;
 import com.evolveum.midpoint.repo.sql.util.*;
 import com.evolveum.midpoint.schema.GetOperationOptions;
 import com.evolveum.midpoint.schema.ResultHandler;
@@ -71,8 +72,20 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import javax.xml.namespace.QName;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author lazyman, mederly
@@ -82,6 +95,10 @@ public class ObjectRetriever {
 
 	public static final String CLASS_DOT = ObjectRetriever.class.getName() + ".";
 	public static final String OPERATION_GET_OBJECT_INTERNAL = CLASS_DOT + "getObjectInternal";
+	public static final String OPERATION_SEARCH_OBJECTS_ITERATIVE_PRODUCER = CLASS_DOT + "searchObjectsIterativeProducer";
+
+    private static final Object STREAM_END = new Object();
+    private static final long STREAMING_QUEUE_POLL_INTERVAL = 500L;
 
     private static final Trace LOGGER = TraceManager.getTrace(ObjectRetriever.class);
     private static final Trace LOGGER_PERFORMANCE = TraceManager.getTrace(SqlRepositoryServiceImpl.PERFORMANCE_LOG_NAME);
@@ -105,6 +122,10 @@ public class ObjectRetriever {
     @Autowired
     private PrismContext prismContext;
 
+    private ExecutorService parserExecutor;
+    private ExecutorService streamingProducerExecutor;
+    private volatile QueryPlanCache queryPlanCache;
+
     public <T extends ObjectType> PrismObject<T> getObjectAttempt(Class<T> type, String oid,
                                                                   Collection<SelectorOptions<GetOperationOptions>> options,
                                                                   OperationResult result)
@@ -144,6 +165,18 @@ public class ObjectRetriever {
 			Collection<SelectorOptions<GetOperationOptions>> options,
 			boolean lockForUpdate, OperationResult operationResult)
             throws ObjectNotFoundException, SchemaException, DtoTranslationException {
+		return getObjectInternal(session, type, oid, options, lockForUpdate, lockForUpdate, operationResult);
+	}
+
+	/**
+	 * @param loadEntity if true, the data object is loaded into the session (needed if it is going to be merged).
+	 *                   It is relevant only when locking for update; if the lock is acquired via hibernate,
+	 *                   the entity is loaded in any case.
+	 */
+	public <T extends ObjectType> PrismObject<T> getObjectInternal(Session session, Class<T> type, String oid,
+			Collection<SelectorOptions<GetOperationOptions>> options,
+			boolean lockForUpdate, boolean loadEntity, OperationResult operationResult)
+            throws ObjectNotFoundException, SchemaException, DtoTranslationException {
 
 		OperationResult subResult = operationResult.createMinorSubresult(OPERATION_GET_OBJECT_INTERNAL);
 		try {
@@ -186,7 +219,7 @@ public class ObjectRetriever {
 			}
 
 			GetObjectResult fullObject = null;
-			if (!lockForUpdate) {
+			if (!lockForUpdate || (!loadEntity && !lockedForUpdateViaHibernate)) {
 				Query query = session.getNamedQuery("get.object");
 				query.setString("oid", oid);
 				query.setResultTransformer(GetObjectResult.RESULT_TRANSFORMER);
@@ -339,7 +372,7 @@ public class ObjectRetriever {
             } else {
                 RQuery rQuery;
                 if (isUseNewQueryInterpreter(query)) {
-                    QueryEngine2 engine = new QueryEngine2(getConfiguration(), prismContext);
+                    QueryEngine2 engine = new QueryEngine2(getConfiguration(), prismContext, getQueryPlanCache());
                     rQuery = engine.interpret(query, type, null, true, session);
                 } else {
                     QueryEngine engine = new QueryEngine(getConfiguration(), prismContext);
@@ -371,7 +404,7 @@ public class ObjectRetriever {
             RQuery rQuery;
 
             if (isUseNewQueryInterpreter(query)) {
-                QueryEngine2 engine = new QueryEngine2(getConfiguration(), prismContext);
+                QueryEngine2 engine = new QueryEngine2(getConfiguration(), prismContext, getQueryPlanCache());
                 rQuery = engine.interpret(query, type, options, false, session);
             } else {
                 QueryEngine engine = new QueryEngine(getConfiguration(), prismContext);
@@ -410,7 +443,7 @@ public class ObjectRetriever {
         try {
             session = baseHelper.beginReadOnlyTransaction();
 
-            QueryEngine2 engine = new QueryEngine2(getConfiguration(), prismContext);
+            QueryEngine2 engine = new QueryEngine2(getConfiguration(), prismContext, getQueryPlanCache());
             RQuery rQuery = engine.interpret(query, type, options, false, session);
 
             List<GetContainerableResult> items = rQuery.list();
@@ -439,11 +472,37 @@ public class ObjectRetriever {
 			Collection<SelectorOptions<GetOperationOptions>> options,
 			Session session, OperationResult operationResult) throws SchemaException {
 
-        String xml = RUtil.getXmlFromByteArray(result.getFullObject(), getConfiguration().isUseZip());
+        PrismObject<T> prismObject = parseLoadedObject(result);
+        updateLoadedObject(prismObject, result, type, options, session);
+        return prismObject;
+    }
+
+    /**
+     * Parses the full object. Does not need the session, so it can be run in a different thread.
+     */
+    private <T extends ObjectType> PrismObject<T> parseLoadedObject(GetObjectResult result) throws SchemaException {
+        return parseFullObject(result.getFullObject());
+    }
+
+    /**
+     * Parses content of the fullObject column. Binary format and gzip compression are recognized by their
+     * headers, so objects stored in any format can coexist in the repository (e.g. during or after migration).
+     */
+    public <T extends ObjectType> PrismObject<T> parseFullObject(byte[] fullObject) throws SchemaException {
+        // "Postel mode": be tolerant what you read. We need this to tolerate (custom) schema changes
+        ParsingContext parsingContext = ParsingContext.forMode(XNodeProcessorEvaluationMode.COMPAT);
+        if (PrismContext.isBinary(fullObject)) {
+            try {
+                return prismContext.parseObject(fullObject, parsingContext);
+            } catch (SchemaException|RuntimeException e) {
+                LOGGER.debug("Couldn't parse object in binary format because of exception ({})", e.toString());
+                throw e;
+            }
+        }
+
+        String xml = RUtil.getXmlFromByteArray(fullObject, RUtil.isGzipped(fullObject));
         PrismObject<T> prismObject;
         try {
-            // "Postel mode": be tolerant what you read. We need this to tolerate (custom) schema changes
-			ParsingContext parsingContext = ParsingContext.forMode(XNodeProcessorEvaluationMode.COMPAT);
             prismObject = prismContext.parseObject(xml, parsingContext);
 			// TODO enable if needed
 //			if (parsingContext.hasWarnings()) {
@@ -458,6 +517,15 @@ public class ObjectRetriever {
             LOGGER.debug("Couldn't parse object because of unexpected exception ({}):\nObject: {}", e, xml);
             throw e;
         }
+        return prismObject;
+    }
+
+    /**
+     * Loads the parts of the object that are not stored in the full object (e.g. shadow attribute definitions,
+     * lookup table rows).
+     */
+    private <T extends ObjectType> void updateLoadedObject(PrismObject<T> prismObject, GetObjectResult result, Class<T> type,
+            Collection<SelectorOptions<GetOperationOptions>> options, Session session) throws SchemaException {
 
         if (FocusType.class.isAssignableFrom(prismObject.getCompileTimeClass())) {
             if (SelectorOptions.hasToLoadPath(FocusType.F_JPEG_PHOTO, options)) {
@@ -496,8 +564,6 @@ public class ObjectRetriever {
 
         nameResolutionHelper.resolveNamesIfRequested(session, prismObject.getValue(), options);
         validateObjectType(prismObject, type);
-
-        return prismObject;
     }
 
 
@@ -621,7 +687,7 @@ public class ObjectRetriever {
             session = baseHelper.beginReadOnlyTransaction();
             RQuery rQuery;
             if (isUseNewQueryInterpreter(query)) {
-                QueryEngine2 engine = new QueryEngine2(getConfiguration(), prismContext);
+                QueryEngine2 engine = new QueryEngine2(getConfiguration(), prismContext, getQueryPlanCache());
                 rQuery = engine.interpret(query, type, options, false, session);
             } else {
                 QueryEngine engine = new QueryEngine(getConfiguration(), prismContext);
@@ -766,6 +832,237 @@ main:       for (;;) {
         }
     }
 
+    /**
+     * Streaming version of strictly-sequential iterative search.
+     *
+     * Objects are fetched in chunks ordered by OID (keyset paging, the same as in strictly sequential search),
+     * each chunk in its own short read-only transaction. Full objects of a chunk are parsed in parallel
+     * on a bounded pool of parser threads. Fetching and parsing is done by a producer thread that puts
+     * the objects (in OID order) into a bounded queue; the calling thread takes them from the queue and passes
+     * them to the handler. So the handler runs without any open transaction and concurrently with
+     * fetching and parsing of the next chunk.
+     *
+     * Guarantees are the same as for strictly sequential search. No explicit paging is allowed.
+     */
+    public <T extends ObjectType> void searchObjectsIterativeByStreaming(
+            final Class<T> type, ObjectQuery query, ResultHandler<T> handler,
+            final Collection<SelectorOptions<GetOperationOptions>> options, OperationResult result)
+            throws SchemaException {
+
+        final ObjectQuery pagedQuery = query != null ? query.clone() : new ObjectQuery();
+        if (pagedQuery.getPaging() != null) {
+            throw new IllegalArgumentException("Externally specified paging is not supported on streaming iterative search.");
+        }
+
+        final int batchSize = getConfiguration().getIterativeSearchByPagingBatchSize();
+        final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(2 * batchSize + 1);
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        final OperationResult producerResult = new OperationResult(OPERATION_SEARCH_OBJECTS_ITERATIVE_PRODUCER);
+
+        Future<?> producer = getStreamingProducerExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    produceStreamedObjects(type, pagedQuery, options, batchSize, queue, stopped, producerResult);
+                    putToStreamingQueue(queue, STREAM_END, stopped);
+                } catch (Throwable t) {
+                    putToStreamingQueue(queue, t, stopped);
+                }
+            }
+        });
+
+        try {
+            for (;;) {
+                Object item = queue.take();
+                if (item == STREAM_END) {
+                    break;
+                } else if (item instanceof SchemaException) {
+                    throw (SchemaException) item;
+                } else if (item instanceof RuntimeException) {
+                    throw (RuntimeException) item;
+                } else if (item instanceof Throwable) {
+                    throw new SystemException("Couldn't fetch objects: " + ((Throwable) item).getMessage(), (Throwable) item);
+                }
+                if (!handler.handle((PrismObject<T>) item, result)) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SystemException("Interrupted while waiting for objects to be fetched", e);
+        } finally {
+            stopped.set(true);
+            queue.clear();          // to unblock the producer
+            try {
+                producer.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                LOGGER.warn("Unexpected exception in iterative search producer: {}", e.getMessage(), e);
+            }
+            producerResult.computeStatusIfUnknown();
+            result.addSubresult(producerResult);
+            if (result.isUnknown()) {
+                result.computeStatus();
+            }
+        }
+    }
+
+    private <T extends ObjectType> void produceStreamedObjects(Class<T> type, ObjectQuery pagedQuery,
+            Collection<SelectorOptions<GetOperationOptions>> options, int batchSize, BlockingQueue<Object> queue,
+            AtomicBoolean stopped, OperationResult result) throws SchemaException, InterruptedException {
+
+        ObjectPagingAfterOid paging = new ObjectPagingAfterOid();
+        pagedQuery.setPaging(paging);
+        String lastOid = "";
+
+        while (!stopped.get()) {
+            paging.setOidGreaterThan(lastOid);
+            paging.setMaxSize(batchSize);
+
+            List<PrismObject<T>> objects = fetchAndParseChunk(type, pagedQuery, options, result);
+            if (objects.isEmpty()) {
+                break;
+            }
+            for (PrismObject<T> object : objects) {
+                lastOid = object.getOid();
+                if (!putToStreamingQueue(queue, object, stopped)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private <T extends ObjectType> List<PrismObject<T>> fetchAndParseChunk(Class<T> type, ObjectQuery pagedQuery,
+            Collection<SelectorOptions<GetOperationOptions>> options, OperationResult result)
+            throws SchemaException, InterruptedException {
+
+        List<PrismObject<T>> list = new ArrayList<>();
+        Session session = null;
+        try {
+            session = baseHelper.beginReadOnlyTransaction();
+            QueryEngine2 engine = new QueryEngine2(getConfiguration(), prismContext, getQueryPlanCache());
+            RQuery rQuery = engine.interpret(pagedQuery, type, options, false, session);
+
+            List<GetObjectResult> objects = rQuery.list();
+            List<Future<PrismObject<T>>> parsed = new ArrayList<>(objects.size());
+            for (final GetObjectResult object : objects) {
+                parsed.add(getParserExecutor().submit(new Callable<PrismObject<T>>() {
+                    @Override
+                    public PrismObject<T> call() throws SchemaException {
+                        return parseLoadedObject(object);
+                    }
+                }));
+            }
+            for (int i = 0; i < objects.size(); i++) {
+                PrismObject<T> prismObject = getParsedObject(parsed.get(i));
+                updateLoadedObject(prismObject, objects.get(i), type, options, session);
+                list.add(prismObject);
+            }
+
+            session.getTransaction().commit();
+        } catch (QueryException | RuntimeException ex) {
+            baseHelper.handleGeneralException(ex, session, result);
+        } finally {
+            baseHelper.cleanupSessionAndResult(session, result);
+        }
+        return list;
+    }
+
+    private <T extends ObjectType> PrismObject<T> getParsedObject(Future<PrismObject<T>> future)
+            throws SchemaException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SchemaException) {
+                throw (SchemaException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new SystemException("Couldn't parse object: " + cause.getMessage(), cause);
+            }
+        }
+    }
+
+    /**
+     * Returns false if the search was stopped in the meanwhile.
+     */
+    private boolean putToStreamingQueue(BlockingQueue<Object> queue, Object item, AtomicBoolean stopped) {
+        try {
+            while (!stopped.get()) {
+                if (queue.offer(item, STREAMING_QUEUE_POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private synchronized ExecutorService getParserExecutor() {
+        if (parserExecutor == null) {
+            parserExecutor = Executors.newFixedThreadPool(getConfiguration().getIterativeSearchParsingThreads(),
+                    new NamedDaemonThreadFactory("repo-parser"));
+        }
+        return parserExecutor;
+    }
+
+    private synchronized ExecutorService getStreamingProducerExecutor() {
+        if (streamingProducerExecutor == null) {
+            streamingProducerExecutor = Executors.newCachedThreadPool(new NamedDaemonThreadFactory("repo-search-producer"));
+        }
+        return streamingProducerExecutor;
+    }
+
+    /**
+     * @return Query plan cache shared by all query interpretations, or null if it is switched off.
+     */
+    public QueryPlanCache getQueryPlanCache() {
+        // called for each search, so the lock is taken only when the cache is being created
+        QueryPlanCache cache = queryPlanCache;
+        if (cache == null && getConfiguration().getQueryPlanCacheSize() > 0) {
+            synchronized (this) {
+                cache = queryPlanCache;
+                if (cache == null) {
+                    cache = new QueryPlanCache(getConfiguration().getQueryPlanCacheSize());
+                    queryPlanCache = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (parserExecutor != null) {
+            parserExecutor.shutdownNow();
+            parserExecutor = null;
+        }
+        if (streamingProducerExecutor != null) {
+            streamingProducerExecutor.shutdownNow();
+            streamingProducerExecutor = null;
+        }
+    }
+
+    private static class NamedDaemonThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        NamedDaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
     public boolean isAnySubordinateAttempt(String upperOrgOid, Collection<String> lowerObjectOids) {
         Session session = null;
         try {
@@ -26,6 +26,8 @@ import com.evolveum.midpoint.prism.delta.ObjectDelta;
 import com.evolveum.midpoint.prism.delta.ReferenceDelta;
 import com.evolveum.midpoint.prism.path.ItemPath;
 import com.evolveum.midpoint.prism.util.CloneUtil;
+import com.evolveum.midpoint.repo.api.ModificationPrecondition;
+import com.evolveum.midpoint.repo.api.PreconditionViolationException;
 import com.evolveum.midpoint.repo.api.RepoAddOptions;
 import com.evolveum.midpoint.repo.api.RepositoryService;
 import com.evolveum.midpoint.repo.sql.SerializationRelatedException;
@@ -41,6 +43,7 @@ import com.evolveum.midpoint.schema.GetOperationOptions;
 import com.evolveum.midpoint.schema.RetrieveOption;
 import com.evolveum.midpoint.schema.SelectorOptions;
 import com.evolveum.midpoint.schema.result.OperationResult;
+import com.evolveum.midpoint.schema.result.OperationResultStatus;
 import com.evolveum.midpoint.util.DebugUtil;
 import com.evolveum.midpoint.util.exception.ObjectAlreadyExistsException;
 import com.evolveum.midpoint.util.exception.ObjectNotFoundException;
@@ -51,6 +54,7 @@ import com.evolveum.midpoint.xml.ns._public.common.common_3.AccessCertificationC
 import com.evolveum.midpoint.xml.ns._public.common.common_3.FocusType;
 import com.evolveum.midpoint.xml.ns._public.common.common_3.LookupTableType;
 import com.evolveum.midpoint.xml.ns._public.common.common_3.ObjectType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.OrgType;
 import org.apache.commons.lang.StringUtils;
 import org.hibernate.Criteria;
 import org.hibernate.Query;
@@ -67,7 +71,9 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * @author lazyman, mederly
@@ -98,6 +104,9 @@ public class ObjectUpdater {
     @Autowired
     private OrgClosureManager closureManager;
 
+    @Autowired
+    private InPlaceUpdateHelper inPlaceUpdateHelper;
+
     @Autowired
     private PrismContext prismContext;
 
@@ -235,7 +244,14 @@ public class ObjectUpdater {
             throws DtoTranslationException, SchemaException {
         LOGGER.debug("Updating full object xml column start.");
         savedObject.setVersion(Integer.toString(object.getVersion()));
+        object.setFullObject(createFullObject(savedObject));
+        LOGGER.debug("Updating full object xml column finish.");
+    }
 
+    /**
+     * Removes items that are stored outside fullObject column and serializes the object.
+     */
+    private <T extends ObjectType> byte[] createFullObject(PrismObject<T> savedObject) throws SchemaException {
         if (FocusType.class.isAssignableFrom(savedObject.getCompileTimeClass())) {
             savedObject.removeProperty(FocusType.F_JPEG_PHOTO);
         } else if (LookupTableType.class.equals(savedObject.getCompileTimeClass())) {
@@ -246,14 +262,75 @@ public class ObjectUpdater {
             savedObject.remove(caseContainer);
         }
 
-        String xml = prismContext.serializeObjectToString(savedObject, PrismContext.LANG_XML);
-        byte[] fullObject = RUtil.getByteArrayFromXml(xml, getConfiguration().isUseZip());
+        return serializeFullObject(savedObject);
+    }
+
+    /**
+     * Serializes the object into the form stored in fullObject column, according to the configured format.
+     */
+    public <T extends ObjectType> byte[] serializeFullObject(PrismObject<T> object) throws SchemaException {
+        if (getConfiguration().isFullObjectFormatBinary()) {
+            // binary format is compact enough, it is never compressed
+            if (LOGGER.isTraceEnabled()) LOGGER.trace("Storing full object in binary format\n{}", object.debugDump());
+            return prismContext.serializeObjectToBinary(object);
+        }
 
+        String xml = prismContext.serializeObjectToString(object, PrismContext.LANG_XML);
         if (LOGGER.isTraceEnabled()) LOGGER.trace("Storing full object\n{}", xml);
+        return RUtil.getByteArrayFromXml(xml, getConfiguration().isUseZip());
+    }
 
-        object.setFullObject(fullObject);
+    /**
+     * Rewrites fullObject column of (at most) batchSize objects following afterOid (in OID order)
+     * into the configured full object format. Objects already stored in the configured format are skipped.
+     * Object versions are not changed, as the content of the objects stays the same.
+     *
+     * @return OID of the last object processed or null if there were no more objects
+     */
+    public String convertFullObjectsAttempt(String afterOid, int batchSize, OperationResult result) {
+        LOGGER_PERFORMANCE.debug("> convert full objects after {}", afterOid);
+        boolean toBinary = getConfiguration().isFullObjectFormatBinary();
+
+        String lastOid = null;
+        int converted = 0;
+        Session session = null;
+        try {
+            session = baseHelper.beginTransaction();
 
-        LOGGER.debug("Updating full object xml column finish.");
+            Query query = session.createQuery("select o.oid, o.fullObject from RObject o"
+                    + (afterOid != null ? " where o.oid > :oid" : "") + " order by o.oid");
+            if (afterOid != null) {
+                query.setString("oid", afterOid);
+            }
+            query.setMaxResults(batchSize);
+
+            Query update = session.createQuery("update RObject o set o.fullObject = :fullObject where o.oid = :oid");
+            List<Object[]> rows = query.list();
+            for (Object[] row : rows) {
+                lastOid = (String) row[0];
+                byte[] fullObject = (byte[]) row[1];
+                if (PrismContext.isBinary(fullObject) == toBinary) {
+                    continue;
+                }
+
+                PrismObject<ObjectType> object = objectRetriever.parseFullObject(fullObject);
+                update.setParameter("fullObject", serializeFullObject(object));
+                update.setString("oid", lastOid);
+                update.executeUpdate();
+                converted++;
+            }
+
+            session.getTransaction().commit();
+        } catch (SchemaException ex) {
+            baseHelper.handleGeneralCheckedException(ex, session, result);
+        } catch (RuntimeException ex) {
+            baseHelper.handleGeneralException(ex, session, result);
+        } finally {
+            baseHelper.cleanupSessionAndResult(session, result);
+        }
+
+        LOGGER.debug("Converted {} full objects after {} up to {}", converted, afterOid, lastOid);
+        return lastOid;
     }
 
     protected SqlRepositoryConfiguration getConfiguration() {
@@ -338,8 +415,9 @@ public class ObjectUpdater {
 
     public <T extends ObjectType> void modifyObjectAttempt(Class<T> type, String oid,
                                                            Collection<? extends ItemDelta> modifications,
+                                                           ModificationPrecondition<T> precondition,
                                                            OperationResult result) throws ObjectNotFoundException,
-            SchemaException, ObjectAlreadyExistsException, SerializationRelatedException {
+            SchemaException, ObjectAlreadyExistsException, SerializationRelatedException, PreconditionViolationException {
 
         // clone - because some certification and lookup table related methods manipulate this collection and even their constituent deltas
         // TODO clone elements only if necessary
@@ -359,78 +437,7 @@ public class ObjectUpdater {
 
             closureContext = closureManager.onBeginTransactionModify(session, type, oid, modifications);
 
-            Collection<? extends ItemDelta> lookupTableModifications = lookupTableHelper.filterLookupTableModifications(type, modifications);
-            Collection<? extends ItemDelta> campaignCaseModifications = caseHelper.filterCampaignCaseModifications(type, modifications);
-
-            if (!modifications.isEmpty()) {
-
-                // JpegPhoto (RFocusPhoto) is a special kind of entity. First of all, it is lazily loaded, because photos are really big.
-                // Each RFocusPhoto naturally belongs to one RFocus, so it would be appropriate to set orphanRemoval=true for focus-photo
-                // association. However, this leads to a strange problem when merging in-memory RFocus object with the database state:
-                // If in-memory RFocus object has no photo associated (because of lazy loading), then the associated RFocusPhoto is deleted.
-                //
-                // To prevent this behavior, we've set orphanRemoval to false. Fortunately, the remove operation on RFocus
-                // seems to be still cascaded to RFocusPhoto. What we have to implement ourselves, however, is removal of RFocusPhoto
-                // _without_ removing of RFocus. In order to know whether the photo has to be removed, we have to retrieve
-                // its value, apply the delta (e.g. if the delta is a DELETE VALUE X, we have to know whether X matches current
-                // value of the photo), and if the resulting value is empty, we have to manually delete the RFocusPhoto instance.
-                //
-                // So the first step is to retrieve the current value of photo - we obviously do this only if the modifications
-                // deal with the jpegPhoto property.
-                Collection<SelectorOptions<GetOperationOptions>> options;
-                boolean containsFocusPhotoModification = FocusType.class.isAssignableFrom(type) && containsPhotoModification(modifications);
-                if (containsFocusPhotoModification) {
-                    options = Arrays.asList(SelectorOptions.create(FocusType.F_JPEG_PHOTO, GetOperationOptions.createRetrieve(RetrieveOption.INCLUDE)));
-                } else {
-                    options = null;
-                }
-
-                // get object
-                PrismObject<T> prismObject = objectRetriever.getObjectInternal(session, type, oid, options, true, result);
-                // apply diff
-                if (LOGGER.isTraceEnabled()) {
-                    LOGGER.trace("OBJECT before:\n{}", new Object[]{prismObject.debugDump()});
-                }
-                PrismObject<T> originalObject = null;
-                if (closureManager.isEnabled()) {
-                    originalObject = prismObject.clone();
-                }
-                ItemDelta.applyTo(modifications, prismObject);
-                if (LOGGER.isTraceEnabled()) {
-                    LOGGER.trace("OBJECT after:\n{}", prismObject.debugDump());
-                }
-                // Continuing the photo treatment: should we remove the (now obsolete) focus photo?
-                // We have to test prismObject at this place, because updateFullObject (below) removes photo property from the prismObject.
-                boolean shouldPhotoBeRemoved = containsFocusPhotoModification && ((FocusType) prismObject.asObjectable()).getJpegPhoto() == null;
-
-                // merge and update object
-                LOGGER.trace("Translating JAXB to data type.");
-                RObject rObject = createDataObjectFromJAXB(prismObject, PrismIdentifierGenerator.Operation.MODIFY);
-                rObject.setVersion(rObject.getVersion() + 1);
-
-                updateFullObject(rObject, prismObject);
-                LOGGER.trace("Starting merge.");
-                session.merge(rObject);
-                if (closureManager.isEnabled()) {
-                    closureManager.updateOrgClosure(originalObject, modifications, session, oid, type, OrgClosureManager.Operation.MODIFY, closureContext);
-                }
-
-                // JpegPhoto cleanup: As said before, if a focus has to have no photo (after modifications are applied),
-                // we have to remove the photo manually.
-                if (shouldPhotoBeRemoved) {
-                    Query query = session.createQuery("delete RFocusPhoto where ownerOid = :oid");
-                    query.setParameter("oid", prismObject.getOid());
-                    query.executeUpdate();
-                    LOGGER.trace("Focus photo for {} was deleted", prismObject.getOid());
-                }
-            }
-
-            if (LookupTableType.class.isAssignableFrom(type)) {
-                lookupTableHelper.updateLookupTableData(session, oid, lookupTableModifications);
-            }
-            if (AccessCertificationCampaignType.class.isAssignableFrom(type)) {
-                caseHelper.updateCampaignCases(session, oid, campaignCaseModifications);
-            }
+            modifyObjectInSession(session, type, oid, modifications, precondition, closureContext, result);
 
             LOGGER.trace("Before commit...");
             session.getTransaction().commit();
@@ -452,6 +459,11 @@ public class ObjectUpdater {
         } catch (SchemaException ex) {
             baseHelper.rollbackTransaction(session, ex, result, true);
             throw ex;
+        } catch (PreconditionViolationException ex) {
+            // this is an expected situation (e.g. when using optimistic locking), so the result is not marked as fatal error
+            baseHelper.rollbackTransaction(session, null, result, false);
+            result.recordStatus(OperationResultStatus.WARNING, ex.getMessage());
+            throw ex;
         } catch (DtoTranslationException | RuntimeException ex) {
             baseHelper.handleGeneralException(ex, session, result);
         } finally {
@@ -460,6 +472,273 @@ public class ObjectUpdater {
         }
     }
 
+    /**
+     * Applies the modifications to the object and stores the result, within an existing transaction.
+     * The precondition (if any) is checked on the object loaded and locked in this transaction.
+     */
+    private <T extends ObjectType> void modifyObjectInSession(Session session, Class<T> type, String oid,
+                                                              Collection<? extends ItemDelta> modifications,
+                                                              ModificationPrecondition<T> precondition,
+                                                              OrgClosureManager.Context closureContext, OperationResult result)
+            throws ObjectNotFoundException, SchemaException, DtoTranslationException, PreconditionViolationException {
+
+        Collection<? extends ItemDelta> lookupTableModifications = lookupTableHelper.filterLookupTableModifications(type, modifications);
+        Collection<? extends ItemDelta> campaignCaseModifications = caseHelper.filterCampaignCaseModifications(type, modifications);
+
+        if (!modifications.isEmpty() && inPlaceUpdateHelper.isApplicable(type, modifications)) {
+            modifyObjectInPlace(session, type, oid, modifications, precondition, result);
+        } else if (!modifications.isEmpty()) {
+
+            // JpegPhoto (RFocusPhoto) is a special kind of entity. First of all, it is lazily loaded, because photos are really big.
+            // Each RFocusPhoto naturally belongs to one RFocus, so it would be appropriate to set orphanRemoval=true for focus-photo
+            // association. However, this leads to a strange problem when merging in-memory RFocus object with the database state:
+            // If in-memory RFocus object has no photo associated (because of lazy loading), then the associated RFocusPhoto is deleted.
+            //
+            // To prevent this behavior, we've set orphanRemoval to false. Fortunately, the remove operation on RFocus
+            // seems to be still cascaded to RFocusPhoto. What we have to implement ourselves, however, is removal of RFocusPhoto
+            // _without_ removing of RFocus. In order to know whether the photo has to be removed, we have to retrieve
+            // its value, apply the delta (e.g. if the delta is a DELETE VALUE X, we have to know whether X matches current
+            // value of the photo), and if the resulting value is empty, we have to manually delete the RFocusPhoto instance.
+            //
+            // So the first step is to retrieve the current value of photo - we obviously do this only if the modifications
+            // deal with the jpegPhoto property.
+            Collection<SelectorOptions<GetOperationOptions>> options;
+            boolean containsFocusPhotoModification = FocusType.class.isAssignableFrom(type) && containsPhotoModification(modifications);
+            if (containsFocusPhotoModification) {
+                options = Arrays.asList(SelectorOptions.create(FocusType.F_JPEG_PHOTO, GetOperationOptions.createRetrieve(RetrieveOption.INCLUDE)));
+            } else {
+                options = null;
+            }
+
+            // get object
+            PrismObject<T> prismObject = objectRetriever.getObjectInternal(session, type, oid, options, true, result);
+            if (precondition != null) {
+                precondition.check(prismObject);
+            }
+            // apply diff
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace("OBJECT before:\n{}", new Object[]{prismObject.debugDump()});
+            }
+            PrismObject<T> originalObject = null;
+            if (closureManager.isEnabled()) {
+                originalObject = prismObject.clone();
+            }
+            ItemDelta.applyTo(modifications, prismObject);
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace("OBJECT after:\n{}", prismObject.debugDump());
+            }
+            // Continuing the photo treatment: should we remove the (now obsolete) focus photo?
+            // We have to test prismObject at this place, because updateFullObject (below) removes photo property from the prismObject.
+            boolean shouldPhotoBeRemoved = containsFocusPhotoModification && ((FocusType) prismObject.asObjectable()).getJpegPhoto() == null;
+
+            // merge and update object
+            LOGGER.trace("Translating JAXB to data type.");
+            RObject rObject = createDataObjectFromJAXB(prismObject, PrismIdentifierGenerator.Operation.MODIFY);
+            rObject.setVersion(rObject.getVersion() + 1);
+
+            updateFullObject(rObject, prismObject);
+            LOGGER.trace("Starting merge.");
+            session.merge(rObject);
+            if (closureManager.isEnabled()) {
+                closureManager.updateOrgClosure(originalObject, modifications, session, oid, type, OrgClosureManager.Operation.MODIFY, closureContext);
+            }
+
+            // JpegPhoto cleanup: As said before, if a focus has to have no photo (after modifications are applied),
+            // we have to remove the photo manually.
+            if (shouldPhotoBeRemoved) {
+                Query query = session.createQuery("delete RFocusPhoto where ownerOid = :oid");
+                query.setParameter("oid", prismObject.getOid());
+                query.executeUpdate();
+                LOGGER.trace("Focus photo for {} was deleted", prismObject.getOid());
+            }
+        } else if (precondition != null) {
+            // nothing to change in the object itself, but the precondition has to hold anyway
+            PrismObject<T> prismObject = objectRetriever.getObjectInternal(session, type, oid, null, true, result);
+            precondition.check(prismObject);
+        }
+
+        if (LookupTableType.class.isAssignableFrom(type)) {
+            lookupTableHelper.updateLookupTableData(session, oid, lookupTableModifications);
+        }
+        if (AccessCertificationCampaignType.class.isAssignableFrom(type)) {
+            caseHelper.updateCampaignCases(session, oid, campaignCaseModifications);
+        }
+    }
+
+    /**
+     * Applies simple modifications without re-creating and merging the whole data object.
+     * See {@link InPlaceUpdateHelper}.
+     */
+    private <T extends ObjectType> void modifyObjectInPlace(Session session, Class<T> type, String oid,
+                                                            Collection<? extends ItemDelta> modifications,
+                                                            ModificationPrecondition<T> precondition,
+                                                            OperationResult result)
+            throws ObjectNotFoundException, SchemaException, DtoTranslationException, PreconditionViolationException {
+
+        // the data object is not needed in the session, as it won't be merged
+        PrismObject<T> prismObject = objectRetriever.getObjectInternal(session, type, oid, null, true, false, result);
+        if (precondition != null) {
+            precondition.check(prismObject);
+        }
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace("OBJECT before:\n{}", prismObject.debugDump());
+        }
+        ItemDelta.applyTo(modifications, prismObject);
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace("OBJECT after:\n{}", prismObject.debugDump());
+        }
+
+        int version = Integer.parseInt(prismObject.getVersion()) + 1;
+        prismObject.setVersion(Integer.toString(version));
+        byte[] fullObject = createFullObject(prismObject);
+
+        LOGGER.trace("Updating object in place.");
+        inPlaceUpdateHelper.updateObject(session, prismObject, modifications, version, fullObject);
+    }
+
+    /**
+     * Returns true if the object can be added by {@link #addObjectsAttempt(List, OperationResult)}.
+     * Orgs (because of org closure maintenance) and focal objects with photos are always added one by one.
+     */
+    public boolean isBatchAddSupported(PrismObject<? extends ObjectType> object) {
+        Class<? extends ObjectType> type = object.getCompileTimeClass();
+        if (closureManager.isEnabled() && OrgType.class.isAssignableFrom(type)) {
+            return false;
+        }
+        // photo is removed from the object when storing it, so the object could not be re-added if the batch fails
+        return !FocusType.class.isAssignableFrom(type) || object.findProperty(FocusType.F_JPEG_PHOTO) == null;
+    }
+
+    /**
+     * Returns true if objects of given type can be modified by {@link #modifyObjectsAttempt(List, OperationResult)}.
+     */
+    public boolean isBatchModifySupported(Class<? extends ObjectType> type) {
+        return !closureManager.isEnabled() || !(OrgType.class.isAssignableFrom(type) || type.isAssignableFrom(OrgType.class));
+    }
+
+    /**
+     * Adds objects (without overwriting) in a single transaction; inserts are sent to the database in JDBC batches.
+     *
+     * The operation is all-or-nothing. If any of the objects cannot be added (e.g. because of a conflict), the
+     * transaction is rolled back and false is returned, so the caller can add the objects one by one and get
+     * a precise result for each of them. Serialization-related problems are signalled by RuntimeException,
+     * just like in other "attempt" methods.
+     */
+    public boolean addObjectsAttempt(List<? extends PrismObject<? extends ObjectType>> objects, OperationResult result) {
+        LOGGER_PERFORMANCE.debug("> add objects, count={}", objects.size());
+
+        List<String> originalOids = new ArrayList<>(objects.size());
+        for (PrismObject<? extends ObjectType> object : objects) {
+            originalOids.add(object.getOid());
+        }
+
+        Session session = null;
+        try {
+            session = baseHelper.beginTransaction();
+
+            // check oid uniqueness for all objects at once
+            Set<String> oids = new HashSet<>();
+            for (String oid : originalOids) {
+                if (StringUtils.isNotEmpty(oid)) {
+                    oids.add(oid);
+                }
+            }
+            if (!oids.isEmpty()) {
+                Query query = session.createQuery("select o.oid from RObject o where o.oid in (:oids)");
+                query.setParameterList("oids", oids);
+                List<String> existing = query.list();
+                if (!existing.isEmpty()) {
+                    LOGGER.debug("Objects with oids {} already exist, objects will be added one by one.", existing);
+                    baseHelper.rollbackTransaction(session);
+                    return false;
+                }
+            }
+
+            int count = 0;
+            for (PrismObject<? extends ObjectType> object : objects) {
+                RObject rObject = createDataObjectFromJAXB(object, PrismIdentifierGenerator.Operation.ADD);
+                updateFullObject(rObject, object);
+                String oid = (String) session.save(rObject);
+                lookupTableHelper.addLookupTableRows(session, rObject, false);
+                caseHelper.addCertificationCampaignCases(session, rObject, false);
+                object.setOid(oid);
+
+                if (++count % RUtil.JDBC_BATCH_SIZE == 0) {
+                    session.flush();
+                    session.clear();
+                }
+            }
+            session.getTransaction().commit();
+            LOGGER.trace("Saved {} objects.", objects.size());
+            return true;
+        } catch (SchemaException | DtoTranslationException | RuntimeException ex) {
+            restoreOids(objects, originalOids);
+            handleBatchException(ex, session, objects.size(), result);
+            return false;
+        } finally {
+            baseHelper.cleanupSessionAndResult(session, result);
+        }
+    }
+
+    private void restoreOids(List<? extends PrismObject<? extends ObjectType>> objects, List<String> originalOids) {
+        for (int i = 0; i < objects.size(); i++) {
+            objects.get(i).setOid(originalOids.get(i));
+        }
+    }
+
+    /**
+     * Modifies objects in a single transaction; updates are sent to the database in JDBC batches.
+     * Each object may be present only once in the list.
+     *
+     * The operation is all-or-nothing, see {@link #addObjectsAttempt(List, OperationResult)}.
+     */
+    public boolean modifyObjectsAttempt(List<? extends ObjectDelta<? extends ObjectType>> deltas, OperationResult result) {
+        LOGGER_PERFORMANCE.debug("> modify objects, count={}", deltas.size());
+
+        Session session = null;
+        try {
+            session = baseHelper.beginTransaction();
+
+            int count = 0;
+            for (ObjectDelta<? extends ObjectType> delta : deltas) {
+                modifyObjectInBatch(session, delta, result);
+
+                if (++count % RUtil.JDBC_BATCH_SIZE == 0) {
+                    session.flush();
+                    session.clear();
+                }
+            }
+            session.getTransaction().commit();
+            LOGGER.trace("Modified {} objects.", deltas.size());
+            return true;
+        } catch (ObjectNotFoundException | SchemaException | DtoTranslationException | RuntimeException ex) {
+            handleBatchException(ex, session, deltas.size(), result);
+            return false;
+        } finally {
+            baseHelper.cleanupSessionAndResult(session, result);
+        }
+    }
+
+    private <T extends ObjectType> void modifyObjectInBatch(Session session, ObjectDelta<T> delta, OperationResult result)
+            throws ObjectNotFoundException, SchemaException, DtoTranslationException {
+        // clone - see modifyObjectAttempt; moreover, the original deltas are needed if the batch fails
+        Collection<? extends ItemDelta> modifications = CloneUtil.cloneCollectionMembers(delta.getModifications());
+        LOGGER.debug("Modifying object '{}' with oid '{}' (in batch).", delta.getObjectTypeClass().getSimpleName(), delta.getOid());
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace("Modifications:\n{}", DebugUtil.debugDump(modifications));
+        }
+        modifyObjectInSession(session, delta.getObjectTypeClass(), delta.getOid(), modifications, null, null, result);
+    }
+
+    private void handleBatchException(Exception ex, Session session, int size, OperationResult result) {
+        if (ex instanceof RuntimeException && baseHelper.isExceptionRelatedToSerialization(ex)) {
+            // the whole batch will be retried
+            baseHelper.handleGeneralRuntimeException((RuntimeException) ex, session, result);
+        }
+        LOGGER.debug("Batch operation on {} objects failed, the objects will be processed one by one: {}", size, ex.getMessage(), ex);
+        baseHelper.rollbackTransaction(session, ex, result, false);
+    }
+
     private <T extends ObjectType> boolean containsPhotoModification(Collection<? extends ItemDelta> modifications) {
         ItemPath photoPath = new ItemPath(FocusType.F_JPEG_PHOTO);
         for (ItemDelta delta : modifications) {
@@ -19,13 +19,11 @@ import com.evolveum.midpoint.prism.PrismObject;
 import com.evolveum.midpoint.prism.PrismReferenceValue;
 import com.evolveum.midpoint.prism.delta.ItemDelta;
 import com.evolveum.midpoint.prism.delta.ReferenceDelta;
-import com.evolveum.midpoint.prism.query.ObjectQuery;
-import com.evolveum.midpoint.repo.api.RepositoryService;
 import com.evolveum.midpoint.repo.sql.SqlRepositoryConfiguration;
 import com.evolveum.midpoint.repo.sql.SqlRepositoryServiceImpl;
+import com.evolveum.midpoint.repo.sql.data.common.RObjectReference;
 import com.evolveum.midpoint.repo.sql.data.common.ROrgClosure;
 import com.evolveum.midpoint.repo.sql.data.common.other.RObjectType;
-import com.evolveum.midpoint.schema.ResultHandler;
 import com.evolveum.midpoint.schema.result.OperationResult;
 import com.evolveum.midpoint.schema.result.OperationResultStatus;
 import com.evolveum.midpoint.util.Holder;
@@ -39,7 +37,6 @@ import com.evolveum.midpoint.xml.ns._public.common.common_3.ObjectReferenceType;
 import com.evolveum.midpoint.xml.ns._public.common.common_3.ObjectType;
 import com.evolveum.midpoint.xml.ns._public.common.common_3.OrgType;
 import org.apache.commons.lang.Validate;
-import org.apache.commons.lang.mutable.MutableInt;
 import org.hibernate.Query;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
@@ -49,17 +46,22 @@ import org.hibernate.tool.hbm2ddl.SchemaUpdate;
 import org.hibernate.type.IntegerType;
 import org.hibernate.type.StringType;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.DependsOn;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class and its subclasses provides org. closure table handling.
@@ -76,6 +78,9 @@ import java.util.*;
  * namely from Chapter 6 (http://vadimtropashko.files.wordpress.com/2014/01/book_sql_chap6_v1.pdf).
  * SQL queries were then optimized by hand for various database engines.
  *
+ * For large imports of org structures there is a "bulk mode" (see beginBulkMode) in which the closure is not
+ * maintained per operation; it is recomputed in one pass when the bulk mode is finished.
+ *
  * @author lazyman
  * @author mederly
  */
@@ -85,10 +90,6 @@ public class OrgClosureManager {
 
     private static final Trace LOGGER = TraceManager.getTrace(OrgClosureManager.class);
 
-    @Autowired
-	@Qualifier("repositoryService")
-    private RepositoryService repositoryService;
-
 	@Autowired
 	private BaseHelper baseHelper;
 
@@ -97,9 +98,22 @@ public class OrgClosureManager {
     static final String CLOSURE_TABLE_NAME = "m_org_closure";
     public static final String TEMP_DELTA_TABLE_NAME_FOR_ORACLE = "m_org_closure_temp_delta";
 
+    // Oracle does not allow more than 1000 items in an IN clause
+    private static final int MAX_OIDS_IN_QUERY = 1000;
+    private static final long DEFAULT_DEFERRED_OPERATIONS_WAIT_TIMEOUT = 60000L;
+
     // only for single-thread performance testing
     long lastOperationDuration;
 
+    // number of callers that requested the bulk mode (on this node)
+    private final AtomicInteger bulkModeRequests = new AtomicInteger();
+    // number of operations started in the bulk mode that have not finished yet
+    private final AtomicInteger deferredOperations = new AtomicInteger();
+    private volatile long deferredOperationsWaitTimeout = DEFAULT_DEFERRED_OPERATIONS_WAIT_TIMEOUT;
+    // finishes the bulk mode when operations started in it did not finish in time (see finishBulkMode)
+    private ExecutorService bulkModeFinisher;
+    private boolean shutDown;
+
     //region Public interface
     /**
      * Main method called from SQL repository service to update the closure table during an operation.
@@ -124,6 +138,11 @@ public class OrgClosureManager {
             return;
         }
 
+        if (closureContext != null && closureContext.deferred) {
+            LOGGER.trace("Org closure update for {} oid={} is deferred until the end of bulk mode.", operation, oid);
+            return;
+        }
+
         session.flush();
         session.clear();
 
@@ -134,6 +153,10 @@ public class OrgClosureManager {
 
         List<ReferenceDelta> deltas = filterParentRefDeltas(modifications);
 
+        if (isSubtreeLocking()) {
+            lockSubtrees(getOidsToLock(oid, deltas, originalObject, operation, session), session);
+        }
+
         switch (operation) {
             case ADD:
                 handleAdd(oid, deltas, closureContext, session);
@@ -163,7 +186,7 @@ public class OrgClosureManager {
             return null;
         }
         // we have to be ready for closure-related operation even if there are no known parents (because there may be orphans pointing to this org!)
-        return onBeginTransaction(session);
+        return onBeginOperation(session);
     }
 
     public <T extends ObjectType> Context onBeginTransactionModify(Session session, Class<T> type, String oid, Collection<? extends ItemDelta> modifications) {
@@ -176,20 +199,178 @@ public class OrgClosureManager {
         if (filterParentRefDeltas(modifications).isEmpty()) {
             return null;
         }
-        return onBeginTransaction(session);
+        return onBeginOperation(session);
     }
 
     public <T extends ObjectType> Context onBeginTransactionDelete(Session session, Class<T> type, String oid) {
         if (!isEnabled() || !(OrgType.class.isAssignableFrom(type))) {
             return null;
         }
-        return onBeginTransaction(session);
+        return onBeginOperation(session);
+    }
+
+    /**
+     * Starts the bulk mode: from now on, org closure is not updated by add/modify/delete operations executed
+     * on this node (and the closure table is not locked by them). The closure is recomputed when the last
+     * caller finishes the bulk mode. Until then, the closure (and therefore org-related searches)
+     * does not reflect the changes made.
+     *
+     * This is meant for large imports of org structures; each call must be paired with finishBulkMode.
+     */
+    public void beginBulkMode() {
+        if (!isEnabled()) {
+            return;
+        }
+        int requests = bulkModeRequests.incrementAndGet();
+        LOGGER.info("Org closure bulk mode started (active requests: {})", requests);
+    }
+
+    /**
+     * Finishes the bulk mode. If there are no other callers that requested it, waits for deferred operations
+     * to finish and rebuilds the closure table.
+     *
+     * If the deferred operations do not finish in time, the closure is not rebuilt yet (it would miss their changes):
+     * the bulk mode stays active, a warning is recorded in the result, and the bulk mode is finished (and the closure
+     * rebuilt) in the background as soon as the operations finish.
+     */
+    public void finishBulkMode(OperationResult result) {
+        if (!isEnabled()) {
+            return;
+        }
+        int remaining = bulkModeRequests.decrementAndGet();
+        if (remaining < 0) {
+            bulkModeRequests.incrementAndGet();
+            throw new IllegalStateException("Org closure bulk mode is not active");
+        }
+        if (remaining > 0) {
+            LOGGER.info("Org closure bulk mode is still requested by {} other caller(s), closure will be rebuilt later", remaining);
+            result.recordSuccess();
+            return;
+        }
+        if (!waitForDeferredOperations()) {
+            bulkModeRequests.incrementAndGet();
+            String message = deferredOperations.get() + " operation(s) started in org closure bulk mode are still running;"
+                    + " the bulk mode stays active and the closure table will be rebuilt when they finish";
+            LOGGER.warn(message);
+            if (scheduleFinishBulkMode()) {
+                result.recordWarning(message);
+            } else {
+                result.recordFatalError("Couldn't schedule the end of org closure bulk mode: " + message);
+            }
+            return;
+        }
+        LOGGER.info("Org closure bulk mode finished, rebuilding the closure table");
+        checkAndOrRebuild(false, true, false, false, result);
+    }
+
+    public boolean isBulkMode() {
+        return bulkModeRequests.get() > 0;
+    }
+
+    public long getDeferredOperationsWaitTimeout() {
+        return deferredOperationsWaitTimeout;
+    }
+
+    /**
+     * How long (in milliseconds) finishBulkMode waits for the operations started in the bulk mode.
+     */
+    public void setDeferredOperationsWaitTimeout(long deferredOperationsWaitTimeout) {
+        this.deferredOperationsWaitTimeout = deferredOperationsWaitTimeout;
+    }
+
+    // the scheduled task reschedules itself (by calling finishBulkMode) until the bulk mode is finished
+    private synchronized boolean scheduleFinishBulkMode() {
+        if (shutDown) {
+            return false;
+        }
+        if (bulkModeFinisher == null) {
+            bulkModeFinisher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "org-closure-bulk-mode-finisher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        try {
+            bulkModeFinisher.submit(new Runnable() {
+                @Override
+                public void run() {
+                    OperationResult result = new OperationResult(OrgClosureManager.class.getName() + ".finishBulkMode");
+                    try {
+                        finishBulkMode(result);
+                    } catch (RuntimeException e) {
+                        result.recordFatalError(e);
+                    }
+                    result.computeStatusIfUnknown();
+                    if (result.isError()) {
+                        LOGGER.error("Couldn't finish org closure bulk mode: {}", result.getMessage());
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            LoggingUtils.logException(LOGGER, "Couldn't schedule the end of org closure bulk mode", e);
+            return false;
+        }
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        shutDown = true;
+        if (bulkModeFinisher != null) {
+            bulkModeFinisher.shutdownNow();
+            bulkModeFinisher = null;
+        }
+    }
+
+    // returns false if some deferred operations are still running
+    private boolean waitForDeferredOperations() {
+        long deadline = System.currentTimeMillis() + deferredOperationsWaitTimeout;
+        while (deferredOperations.get() > 0) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(100L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
     }
 
-    private Context onBeginTransaction(Session session) {
+    /**
+     * The operation is registered as deferred before the bulk mode is checked again: if the check succeeds,
+     * finishBulkMode (that decrements the requests before waiting for deferred operations) is guaranteed to wait
+     * for this operation. If the bulk mode was finished in the meanwhile, the closure is updated in the usual way.
+     */
+    private Context onBeginOperation(Session session) {
+        if (isBulkMode()) {
+            deferredOperations.incrementAndGet();
+            if (isBulkMode()) {
+                Context ctx = new Context();
+                ctx.deferred = true;
+                return ctx;
+            }
+            deferredOperations.decrementAndGet();
+        }
+        return onBeginTransaction(session, isSubtreeLocking());
+    }
+
+    private Context onBeginTransaction(Session session, boolean subtreeLocking) {
         // table locking
-        if (isH2() || isOracle() || isSQLServer()) {
+        if (isH2()) {
             lockClosureTable(session);
+        } else if (isOracle() || isSQLServer()) {
+            if (subtreeLocking) {
+                // orgs are locked later, in updateOrgClosure
+                lockClosureTableShared(session);
+            } else {
+                lockClosureTable(session);
+            }
         }
         // other
         Context ctx = new Context();
@@ -214,6 +395,11 @@ public class OrgClosureManager {
         if (closureContext == null) {
             return;
         }
+        if (closureContext.deferred) {
+            closureContext.deferred = false;
+            deferredOperations.decrementAndGet();
+            return;
+        }
         if (closureContext.temporaryTableName == null) {
             return;
         }
@@ -381,7 +567,8 @@ public class OrgClosureManager {
             session.getTransaction().begin();
             if (rebuild || (check && !quickCheckOnly)) {
                 // thorough check requires the temporary table as well
-                context = onBeginTransaction(session);
+                // the whole table is locked here, regardless of the locking mode
+                context = onBeginTransaction(session, false);
             }
 
             if (quickCheckOnly) {
@@ -421,6 +608,7 @@ public class OrgClosureManager {
             }
         } catch (SchemaException|RuntimeException e) {
             LoggingUtils.logException(LOGGER, "Exception during check and/or recomputation of closure table", e);
+            result.recordFatalError("Couldn't check and/or recompute closure table: " + e.getMessage(), e);
             session.getTransaction().rollback();
             if (stopOnFailure) {
                 if (e instanceof RuntimeException) {
@@ -460,23 +648,7 @@ public class OrgClosureManager {
         deleteQuery.executeUpdate();
         LOGGER.trace("Closure table content deleted");
 
-        final int orgsTotal = repositoryService.countObjects(OrgType.class, new ObjectQuery(), result);
-        final MutableInt orgsProcessed = new MutableInt(0);
-
-        ResultHandler<OrgType> handler = new ResultHandler<OrgType>() {
-            @Override
-            public boolean handle(PrismObject<OrgType> object, OperationResult parentResult) {
-                LOGGER.trace("Processing {}", object);
-                handleAdd(object.getOid(), getParentOidsFromObject(object), context, session);
-                orgsProcessed.add(1);
-                int currentState = orgsProcessed.intValue();
-                if (currentState % 100 == 0) {
-                    LOGGER.info("{} organizations processed (out of {})", currentState, orgsTotal);
-                }
-                return true;
-            }
-        };
-        repositoryService.searchObjectsIterative(OrgType.class, new ObjectQuery(), handler, null, false, result);
+        int orgsTotal = computeClosure(session);
 
         LOGGER.info("Org closure table was successfully recomputed (not committed yet); all {} organizations processed", orgsTotal);
 
@@ -494,6 +666,115 @@ public class OrgClosureManager {
         }
     }
 
+    /**
+     * Computes the closure table content (the table must be empty) in a set-based way: orgs are sorted
+     * topologically and the closure records for all orgs in one "layer" (i.e. orgs whose parents are all
+     * in previous layers) are inserted by a single statement, from the closure records of their parents.
+     *
+     * Returns the number of orgs processed.
+     */
+    private int computeClosure(Session session) {
+        List<String> orgOids = session.createQuery("select o.oid from ROrg o").list();
+        Set<String> orgs = new HashSet<>(orgOids);
+
+        Query edgesQuery = session.createQuery("select distinct parentRef.ownerOid, parentRef.targetOid from RObjectReference as parentRef" +
+                " join parentRef.owner as owner where parentRef.referenceType=0 and owner.objectTypeClass = :orgType");
+        edgesQuery.setParameter("orgType", RObjectType.ORG);
+        List<Object[]> edges = edgesQuery.list();
+
+        Map<String, List<String>> childrenMap = new HashMap<>();
+        Map<String, MutableCounter> unprocessedParents = new HashMap<>();
+        for (Object[] edge : edges) {
+            String child = (String) edge[0];
+            String parent = (String) edge[1];
+            if (!orgs.contains(child) || !orgs.contains(parent)) {
+                continue;       // dangling references are not part of the closure
+            }
+            List<String> children = childrenMap.get(parent);
+            if (children == null) {
+                children = new ArrayList<>();
+                childrenMap.put(parent, children);
+            }
+            children.add(child);
+            MutableCounter counter = unprocessedParents.get(child);
+            if (counter == null) {
+                counter = new MutableCounter();
+                unprocessedParents.put(child, counter);
+            }
+            counter.value++;
+        }
+
+        long start = System.currentTimeMillis();
+        Query selfRecordsQuery = session.createSQLQuery("insert into " + CLOSURE_TABLE_NAME + " (descendant_oid, ancestor_oid, val) " +
+                "select oid, oid, 1 from m_org");
+        int count = selfRecordsQuery.executeUpdate();
+        LOGGER.debug("Inserted {} self records into closure table in {} ms", count, System.currentTimeMillis() - start);
+
+        List<String> layer = new ArrayList<>();
+        for (String oid : orgOids) {
+            if (!unprocessedParents.containsKey(oid)) {
+                layer.add(oid);
+            }
+        }
+        int processed = 0, layerNumber = 0;
+        while (!layer.isEmpty()) {
+            if (layerNumber > 0) {
+                insertClosureForLayer(layer, session);
+            }
+            processed += layer.size();
+            LOGGER.info("{} organizations processed (out of {}), layer {}", processed, orgOids.size(), layerNumber);
+
+            List<String> nextLayer = new ArrayList<>();
+            for (String oid : layer) {
+                List<String> children = childrenMap.get(oid);
+                if (children == null) {
+                    continue;
+                }
+                for (String child : children) {
+                    if (--unprocessedParents.get(child).value == 0) {
+                        nextLayer.add(child);
+                    }
+                }
+            }
+            layer = nextLayer;
+            layerNumber++;
+        }
+
+        if (processed < orgOids.size()) {
+            List<String> unprocessed = new ArrayList<>();
+            for (Map.Entry<String, MutableCounter> entry : unprocessedParents.entrySet()) {
+                if (entry.getValue().value > 0) {
+                    unprocessed.add(entry.getKey());
+                }
+            }
+            throw new IllegalStateException("Org structure graph contains a cycle; the following organizations (and their descendants) "
+                    + "couldn't be processed: " + formatList(unprocessed));
+        }
+        session.flush();
+        session.clear();
+        return processed;
+    }
+
+    // all parents of the orgs in the layer have complete closure records at this moment
+    private void insertClosureForLayer(List<String> layer, Session session) {
+        for (int i = 0; i < layer.size(); i += MAX_OIDS_IN_QUERY) {
+            List<String> oids = layer.subList(i, Math.min(layer.size(), i + MAX_OIDS_IN_QUERY));
+            long start = System.currentTimeMillis();
+            Query insertQuery = session.createSQLQuery("insert into " + CLOSURE_TABLE_NAME + " (descendant_oid, ancestor_oid, val) " +
+                    "select ref.owner_oid, cl.ancestor_oid, sum(cl.val) " +
+                    "from (select distinct owner_oid, targetOid from m_reference " +
+                    "where " + RObjectReference.REFERENCE_TYPE + " = 0 and owner_oid in (:oids)) ref, " + CLOSURE_TABLE_NAME + " cl " +
+                    "where cl.descendant_oid = ref.targetOid " +
+                    "group by ref.owner_oid, cl.ancestor_oid");
+            insertQuery.setParameterList("oids", oids);
+            int count = insertQuery.executeUpdate();
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace("Inserted {} closure records for {} organizations in {} ms", count, oids.size(),
+                        System.currentTimeMillis() - start);
+            }
+        }
+    }
+
     private void compareOrgClosureTables(List existingEntries, List recomputedEntries, boolean rebuild, OperationResult result) {
         Set<List> existing = convertEntries(existingEntries);
         Set<List> recomputed = convertEntries(recomputedEntries);
@@ -1008,6 +1289,86 @@ public class OrgClosureManager {
 
     }
 
+    // Used in subtree locking mode: prevents the closure table from being locked exclusively (e.g. by a rebuild)
+    // while this operation is running, but does not block other org operations.
+    private void lockClosureTableShared(Session session) {
+        if (isOracle()) {
+            Query q = session.createSQLQuery("LOCK TABLE " + CLOSURE_TABLE_NAME + " IN ROW SHARE MODE");
+            q.executeUpdate();
+        }
+        // SQL Server acquires intent locks on the closure table when it is updated
+    }
+
+    // Orgs whose position in the org structure is directly affected by the operation.
+    private Set<String> getOidsToLock(String oid, List<ReferenceDelta> deltas, PrismObject<? extends ObjectType> originalObject,
+                                      Operation operation, Session session) {
+        Set<String> oids = new HashSet<>();
+        oids.add(oid);
+        switch (operation) {
+            case ADD:
+                oids.addAll(getParentOidsToAdd(deltas, null));
+                oids.addAll(getChildren(oid, session));         // orphans that will be attached to the new org
+                break;
+            case MODIFY:
+                if (!deltas.isEmpty()) {
+                    oids.addAll(getParentOidsToAdd(deltas, originalObject));
+                    oids.addAll(getParentOidsToDelete(deltas, originalObject));
+                }
+                break;
+            case DELETE:
+                oids.addAll(getChildren(oid, session));         // their closure records are changed as well
+                break;
+        }
+        return oids;
+    }
+
+    /**
+     * Locks the rows (in M_ORG) of given orgs and all their ancestors. Two operations that could affect the same
+     * closure records always share at least one of the locked orgs, so they are serialized; operations in
+     * independent parts of the org structure can run concurrently. Deadlocks are possible (as locks are
+     * acquired gradually), they are resolved by the database and the operation is then retried by the repository.
+     */
+    private void lockSubtrees(Collection<String> oids, Session session) {
+        long start = System.currentTimeMillis();
+        Set<String> locked = new HashSet<>();
+        Set<String> toLock = new TreeSet<>(oids);           // sorted to lower the chance of deadlocks
+        while (!toLock.isEmpty()) {
+            lockOrgs(new ArrayList<>(toLock), session);
+            locked.addAll(toLock);
+            // ancestors have to be re-read after locking, as they might have been changed in the meanwhile
+            Set<String> ancestors = new TreeSet<>(getAncestors(toLock, session));
+            ancestors.removeAll(locked);
+            toLock = ancestors;
+        }
+        LOGGER.trace("Locked {} orgs in {} ms", locked.size(), System.currentTimeMillis() - start);
+    }
+
+    private void lockOrgs(List<String> oids, Session session) {
+        for (int i = 0; i < oids.size(); i += MAX_OIDS_IN_QUERY) {
+            List<String> chunk = oids.subList(i, Math.min(oids.size(), i + MAX_OIDS_IN_QUERY));
+            Query q;
+            if (isSQLServer()) {
+                q = session.createSQLQuery("SELECT oid FROM m_org WITH (UPDLOCK, ROWLOCK, HOLDLOCK) WHERE oid IN (:oids)");
+            } else {
+                q = session.createSQLQuery("SELECT oid FROM m_org WHERE oid IN (:oids) FOR UPDATE");
+            }
+            q.setParameterList("oids", chunk);
+            q.list();
+        }
+    }
+
+    private List<String> getAncestors(Collection<String> oids, Session session) {
+        List<String> all = new ArrayList<>(oids);
+        List<String> rv = new ArrayList<>();
+        for (int i = 0; i < all.size(); i += MAX_OIDS_IN_QUERY) {
+            Query q = session.createSQLQuery("SELECT DISTINCT ancestor_oid FROM " + CLOSURE_TABLE_NAME + " WHERE descendant_oid IN (:oids)")
+                    .addScalar("ancestor_oid", StringType.INSTANCE);
+            q.setParameterList("oids", all.subList(i, Math.min(all.size(), i + MAX_OIDS_IN_QUERY)));
+            rv.addAll(q.list());
+        }
+        return rv;
+    }
+
     // returns table name
     private String computeDeltaTable(List<Edge> edges, Context context, Session session) {
 
@@ -1320,6 +1681,13 @@ public class OrgClosureManager {
         }
     }
 
+    // subtree locking is implemented only for Oracle and SQL Server; H2 always locks the whole table
+    // and PostgreSQL/MySQL do not lock the closure at all
+    private boolean isSubtreeLocking() {
+        return baseHelper.getConfiguration().getOrgClosureLocking() == LockingMode.SUBTREE
+                && (isOracle() || isSQLServer());
+    }
+
     private boolean isMySQL() {
         return baseHelper.getConfiguration().isUsingMySQL();
     }
@@ -1415,8 +1783,46 @@ public class OrgClosureManager {
         }
     }
 
+    public static enum LockingMode {
+
+        /**
+         * The whole closure table is locked by each org operation (org operations are serialized).
+         */
+        TABLE("table"),
+
+        /**
+         * Only the modified orgs and their ancestors are locked (Oracle and SQL Server only).
+         */
+        SUBTREE("subtree");
+
+        private String value;
+
+        LockingMode(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return value;
+        }
+
+        public static LockingMode fromValue(String v) {
+            for (LockingMode m: LockingMode.values()) {
+                if (m.value.equals(v)) {
+                    return m;
+                }
+            }
+            throw new IllegalArgumentException(v);
+        }
+    }
+
     public static class Context {
         String temporaryTableName;
+        boolean deferred;           // closure update is deferred because of the bulk mode
+    }
+
+    private static class MutableCounter {
+        int value;
     }
     //endregion
 
@@ -25,9 +25,13 @@ import com.evolveum.midpoint.repo.sql.query.RQuery;
 import com.evolveum.midpoint.repo.sql.query2.hqm.HibernateQuery;
 import com.evolveum.midpoint.repo.sql.query2.hqm.ProjectionElement;
 import com.evolveum.midpoint.repo.sql.query2.hqm.RootHibernateQuery;
+import com.evolveum.midpoint.repo.sql.query2.resolution.ResolutionPlan;
+import com.evolveum.midpoint.repo.sql.query2.resolution.ResolutionPlanMismatchException;
 import com.evolveum.midpoint.repo.sql.util.GetObjectResult;
 import com.evolveum.midpoint.schema.GetOperationOptions;
 import com.evolveum.midpoint.schema.SelectorOptions;
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
 import com.evolveum.midpoint.xml.ns._public.common.common_3.ObjectType;
 import org.hibernate.Criteria;
 import org.hibernate.Session;
@@ -40,12 +44,20 @@ import java.util.Collection;
  */
 public class QueryEngine2 {
 
+    private static final Trace LOGGER = TraceManager.getTrace(QueryEngine2.class);
+
     private SqlRepositoryConfiguration repoConfiguration;
     private PrismContext prismContext;
+    private QueryPlanCache planCache;
 
     public QueryEngine2(SqlRepositoryConfiguration config, PrismContext prismContext) {
+        this(config, prismContext, null);
+    }
+
+    public QueryEngine2(SqlRepositoryConfiguration config, PrismContext prismContext, QueryPlanCache planCache) {
         this.repoConfiguration = config;
         this.prismContext = prismContext;
+        this.planCache = planCache;
     }
 
     public RQuery interpret(ObjectQuery query, Class<? extends Containerable> type,
@@ -53,8 +65,37 @@ public class QueryEngine2 {
                             boolean countingObjects, Session session) throws QueryException {
 
         QueryInterpreter2 interpreter = new QueryInterpreter2(repoConfiguration);
-        RootHibernateQuery hibernateQuery = interpreter.interpret(query, type, options, prismContext, countingObjects, session);
+        RootHibernateQuery hibernateQuery;
+        if (planCache == null) {
+            hibernateQuery = interpreter.interpret(query, type, options, prismContext, countingObjects, session);
+        } else {
+            hibernateQuery = interpretUsingPlanCache(interpreter, query, type, options, countingObjects, session);
+        }
 
         return new RQueryImpl(hibernateQuery.getAsHqlQuery(session));
     }
+
+    private RootHibernateQuery interpretUsingPlanCache(QueryInterpreter2 interpreter, ObjectQuery query,
+                                                      Class<? extends Containerable> type,
+                                                      Collection<SelectorOptions<GetOperationOptions>> options,
+                                                      boolean countingObjects, Session session) throws QueryException {
+        QueryPlanCache.Key key = planCache.createKey(type, query, countingObjects);
+        if (key == null) {
+            return interpreter.interpret(query, type, options, prismContext, countingObjects, session);
+        }
+        ResolutionPlan cachedPlan = planCache.get(key);
+        if (cachedPlan != null) {
+            try {
+                return interpreter.interpret(query, type, options, prismContext, countingObjects, session, null, cachedPlan);
+            } catch (ResolutionPlanMismatchException e) {
+                LOGGER.debug("Cached query plan couldn't be used, interpreting the query from scratch: {}", e.getMessage());
+                planCache.recordMismatch(key);
+            }
+        }
+        ResolutionPlan newPlan = new ResolutionPlan();
+        RootHibernateQuery hibernateQuery = interpreter.interpret(query, type, options, prismContext, countingObjects, session,
+                newPlan, null);
+        planCache.put(key, newPlan);
+        return hibernateQuery;
+    }
 }
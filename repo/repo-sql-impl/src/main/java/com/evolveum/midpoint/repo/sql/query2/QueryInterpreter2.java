@@ -19,6 +19,7 @@ package com.evolveum.midpoint.repo.sql.query2;
 import com.evolveum.midpoint.prism.Containerable;
 import com.evolveum.midpoint.prism.ItemDefinition;
 import com.evolveum.midpoint.prism.PrismContext;
+import com.evolveum.midpoint.prism.path.IdentifierPathSegment;
 import com.evolveum.midpoint.prism.path.ItemPath;
 import com.evolveum.midpoint.prism.polystring.PolyString;
 import com.evolveum.midpoint.prism.query.AllFilter;
@@ -56,11 +57,13 @@ import com.evolveum.midpoint.repo.sql.query2.matcher.PolyStringMatcher;
 import com.evolveum.midpoint.repo.sql.query2.matcher.StringMatcher;
 import com.evolveum.midpoint.repo.sql.query2.resolution.ItemPathResolver;
 import com.evolveum.midpoint.repo.sql.query2.resolution.ProperDataSearchResult;
+import com.evolveum.midpoint.repo.sql.query2.resolution.ResolutionPlan;
 import com.evolveum.midpoint.repo.sql.query2.restriction.AndRestriction;
 import com.evolveum.midpoint.repo.sql.query2.restriction.AnyPropertyRestriction;
 import com.evolveum.midpoint.repo.sql.query2.restriction.ExistsRestriction;
 import com.evolveum.midpoint.repo.sql.query2.restriction.InOidRestriction;
 import com.evolveum.midpoint.repo.sql.query2.restriction.NotRestriction;
+import com.evolveum.midpoint.repo.sql.query2.restriction.OidRestriction;
 import com.evolveum.midpoint.repo.sql.query2.restriction.OrRestriction;
 import com.evolveum.midpoint.repo.sql.query2.restriction.OrgRestriction;
 import com.evolveum.midpoint.repo.sql.query2.restriction.PropertyRestriction;
@@ -139,6 +142,18 @@ public class QueryInterpreter2 {
     public RootHibernateQuery interpret(ObjectQuery query, Class<? extends Containerable> type,
                                         Collection<SelectorOptions<GetOperationOptions>> options, PrismContext prismContext,
                                         boolean countingObjects, Session session) throws QueryException {
+        return interpret(query, type, options, prismContext, countingObjects, session, null, null);
+    }
+
+    /**
+     * @param planToRecord If not null, item path resolutions done during the interpretation are recorded into it.
+     * @param planToReplay If not null, item path resolutions are taken from this plan instead of being computed.
+     *                     If the query does not match the plan, ResolutionPlanMismatchException is thrown.
+     */
+    public RootHibernateQuery interpret(ObjectQuery query, Class<? extends Containerable> type,
+                                        Collection<SelectorOptions<GetOperationOptions>> options, PrismContext prismContext,
+                                        boolean countingObjects, Session session,
+                                        ResolutionPlan planToRecord, ResolutionPlan planToReplay) throws QueryException {
         Validate.notNull(type, "Type must not be null.");
         Validate.notNull(session, "Session must not be null.");
         Validate.notNull(prismContext, "Prism context must not be null.");
@@ -148,9 +163,15 @@ public class QueryInterpreter2 {
         }
 
         InterpretationContext context = new InterpretationContext(this, type, prismContext, session);
+        if (planToReplay != null) {
+            context.getItemPathResolver().replay(planToReplay);
+        } else if (planToRecord != null) {
+            context.getItemPathResolver().record(planToRecord);
+        }
 
         interpretQueryFilter(context, query);
         interpretPagingAndSorting(context, query, countingObjects);
+        context.getItemPathResolver().finishReplay();
 
         RootHibernateQuery hibernateQuery = context.getHibernateQuery();
 
@@ -252,6 +273,8 @@ public class QueryInterpreter2 {
             }
             return new ReferenceRestriction(context, refFilter, searchResult.getEntityDefinition(),
                     parent, searchResult.getLinkDefinition());
+        } else if (filter instanceof PropertyValueFilter && isOidPath(((PropertyValueFilter) filter).getFullPath())) {
+            return new OidRestriction(context, (PropertyValueFilter) filter, baseEntityDefinition, parent);
         } else if (filter instanceof PropertyValueFilter) {
             PropertyValueFilter valFilter = (PropertyValueFilter) filter;
             ItemPath path = valFilter.getFullPath();
@@ -275,6 +298,10 @@ public class QueryInterpreter2 {
         }
     }
 
+    private boolean isOidPath(ItemPath path) {
+        return path != null && path.size() == 1 && path.first() instanceof IdentifierPathSegment;
+    }
+
     private void interpretPagingAndSorting(InterpretationContext context, ObjectQuery query, boolean countingObjects) throws QueryException {
         RootHibernateQuery hibernateQuery = context.getHibernateQuery();
         String rootAlias = hibernateQuery.getPrimaryEntityAlias();
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.repo.sql.query2;
+
+import com.evolveum.midpoint.prism.Containerable;
+import com.evolveum.midpoint.prism.ItemDefinition;
+import com.evolveum.midpoint.prism.query.ExistsFilter;
+import com.evolveum.midpoint.prism.query.LogicalFilter;
+import com.evolveum.midpoint.prism.query.ObjectFilter;
+import com.evolveum.midpoint.prism.query.ObjectOrdering;
+import com.evolveum.midpoint.prism.query.ObjectPaging;
+import com.evolveum.midpoint.prism.query.ObjectQuery;
+import com.evolveum.midpoint.prism.query.PropertyValueFilter;
+import com.evolveum.midpoint.prism.query.TypeFilter;
+import com.evolveum.midpoint.prism.query.ValueFilter;
+import com.evolveum.midpoint.repo.sql.ObjectPagingAfterOid;
+import com.evolveum.midpoint.repo.sql.query2.resolution.ResolutionPlan;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded (LRU) cache of resolution plans (see ResolutionPlan), keyed by the shape of the query: requested type,
+ * counting flag, structure of the filter (filter classes, item paths, definitions) and ordering - but not values.
+ * So e.g. all shadow lookups by resource, object class and a given attribute share one plan, and item path
+ * resolution (the most expensive part of query interpretation) is done only once for them.
+ *
+ * The key does not have to describe the query exactly: plans are verified while being replayed, and a plan that
+ * does not match is replaced by a new one.
+ *
+ * The cache is used by all concurrent searches, so it is split into segments (selected by key hash), each one being
+ * a small LRU map with its own lock. The LRU order is therefore kept only within a segment.
+ *
+ * @author agent
+ */
+public class QueryPlanCache {
+
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_SIZE = 16;
+
+    private final int maxSize;
+    private final Segment[] segments;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong mismatches = new AtomicLong();
+
+    public QueryPlanCache(int maxSize) {
+        this.maxSize = maxSize;
+        int segmentCount = Math.max(1, Math.min(MAX_SEGMENTS, maxSize / MIN_SEGMENT_SIZE));
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            // capacities of the segments add up to maxSize
+            segments[i] = new Segment(maxSize / segmentCount + (i < maxSize % segmentCount ? 1 : 0));
+        }
+    }
+
+    /**
+     * Returns the key for the query, or null if the query is not worth caching (there is nothing to resolve).
+     */
+    public Key createKey(Class<? extends Containerable> type, ObjectQuery query, boolean countingObjects) {
+        if (query == null) {
+            return null;
+        }
+        List<Object> elements = new ArrayList<>();
+        elements.add(type);
+        elements.add(countingObjects);
+        if (query.getFilter() != null) {
+            addFilterShape(elements, query.getFilter());
+        }
+        ObjectPaging paging = query.getPaging();
+        if (paging instanceof ObjectPagingAfterOid) {
+            elements.add(ObjectPagingAfterOid.class);
+        } else if (paging != null && !countingObjects && paging.hasOrdering()) {
+            for (ObjectOrdering ordering : paging.getOrderingInstructions()) {
+                elements.add(ordering.getOrderBy());
+            }
+        }
+        if (elements.size() == 2) {
+            return null;
+        }
+        return new Key(elements);
+    }
+
+    private void addFilterShape(List<Object> elements, ObjectFilter filter) {
+        elements.add(filter.getClass());
+        if (filter instanceof ValueFilter) {
+            ValueFilter valueFilter = (ValueFilter) filter;
+            elements.add(valueFilter.getFullPath());
+            addDefinitionShape(elements, valueFilter.getDefinition());
+            if (filter instanceof PropertyValueFilter) {
+                elements.add(((PropertyValueFilter) filter).getRightSidePath());
+            }
+        } else if (filter instanceof LogicalFilter) {
+            List<ObjectFilter> conditions = ((LogicalFilter) filter).getConditions();
+            elements.add(conditions.size());
+            for (ObjectFilter condition : conditions) {
+                addFilterShape(elements, condition);
+            }
+        } else if (filter instanceof TypeFilter) {
+            TypeFilter typeFilter = (TypeFilter) filter;
+            elements.add(typeFilter.getType());
+            if (typeFilter.getFilter() != null) {
+                addFilterShape(elements, typeFilter.getFilter());
+            }
+        } else if (filter instanceof ExistsFilter) {
+            ExistsFilter existsFilter = (ExistsFilter) filter;
+            elements.add(existsFilter.getFullPath());
+            addDefinitionShape(elements, existsFilter.getDefinition());
+            if (existsFilter.getFilter() != null) {
+                addFilterShape(elements, existsFilter.getFilter());
+            }
+        }
+        // other filters (InOid, Org, ...) do not resolve any item paths
+    }
+
+    private void addDefinitionShape(List<Object> elements, ItemDefinition definition) {
+        if (definition != null) {
+            elements.add(definition.getTypeName());
+        }
+    }
+
+    private Segment segmentFor(Key key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    public ResolutionPlan get(Key key) {
+        Segment segment = segmentFor(key);
+        ResolutionPlan plan;
+        synchronized (segment) {
+            plan = segment.get(key);
+        }
+        if (plan != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return plan;
+    }
+
+    public void put(Key key, ResolutionPlan plan) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, plan);
+        }
+    }
+
+    /**
+     * Called when a cached plan couldn't be used for a query. The plan is thrown away; it is replaced
+     * by the plan recorded for the current query.
+     */
+    public void recordMismatch(Key key) {
+        mismatches.incrementAndGet();
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.remove(key);
+        }
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getMismatches() {
+        return mismatches.get();
+    }
+
+    /**
+     * Fraction of lookups that were answered by a usable plan.
+     */
+    public double getHitRatio() {
+        long lookups = hits.get() + misses.get();
+        return lookups > 0 ? (double) (hits.get() - mismatches.get()) / lookups : 0.0;
+    }
+
+    public void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+        mismatches.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "QueryPlanCache{size=" + size() + "/" + maxSize + ", hits=" + hits.get() + ", misses=" + misses.get()
+                + ", mismatches=" + mismatches.get() + ", hitRatio=" + String.format("%.3f", getHitRatio()) + "}";
+    }
+
+    private static final class Segment extends LinkedHashMap<Key, ResolutionPlan> {
+
+        private final int capacity;
+
+        private Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, ResolutionPlan> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    public static final class Key {
+
+        private final List<Object> elements;
+        private final int hashCode;
+
+        private Key(List<Object> elements) {
+            this.elements = elements;
+            this.hashCode = elements.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return hashCode == key.hashCode && elements.equals(key.elements);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public String toString() {
+            return "Key" + elements;
+        }
+    }
+}
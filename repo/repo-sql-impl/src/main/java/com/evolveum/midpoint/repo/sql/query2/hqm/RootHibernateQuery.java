@@ -83,7 +83,9 @@ public class RootHibernateQuery extends HibernateQuery {
         for (Map.Entry<String,QueryParameterValue> parameter : parameters.entrySet()) {
             String name = parameter.getKey();
             QueryParameterValue parameterValue = parameter.getValue();
-            LOGGER.trace("Parameter {} = {}", name, parameterValue.debugDump());
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace("Parameter {} = {}", name, parameterValue.debugDump());
+            }
 
             if (parameterValue.getValue() instanceof Collection) {
                 if (parameterValue.getType() != null) {
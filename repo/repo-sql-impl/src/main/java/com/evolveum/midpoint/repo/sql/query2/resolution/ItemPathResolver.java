@@ -54,10 +54,41 @@ public class ItemPathResolver {
 
     private InterpretationContext context;
 
+    // at most one of these is set (see ResolutionPlan)
+    private ResolutionPlan planToRecord;
+    private ResolutionPlan.Replay replay;
+
+    // step being recorded by resolveItemPath (joins are added to it)
+    private ResolutionPlan.ResolvePathStep currentStep;
+
     public ItemPathResolver(InterpretationContext interpretationContext) {
         this.context = interpretationContext;
     }
 
+    /**
+     * Resolutions done from now on are recorded into the plan.
+     */
+    public void record(ResolutionPlan plan) {
+        this.planToRecord = plan;
+        this.replay = null;
+    }
+
+    /**
+     * Resolutions are taken from the plan from now on (instead of being computed).
+     * The caller should call finishReplay() after the query is interpreted.
+     */
+    public void replay(ResolutionPlan plan) {
+        this.replay = plan.startReplay();
+        this.planToRecord = null;
+    }
+
+    public void finishReplay() {
+        if (replay != null) {
+            replay.finish();
+            replay = null;
+        }
+    }
+
     /**
      * Resolves item path by creating a sequence of resolution states and preparing joins that are used to access JPA properties.
      * @param itemDefinition Definition for the (final) item pointed to. Optional - necessary only for extension items.
@@ -74,16 +105,50 @@ public class ItemPathResolver {
                                            HqlDataInstance baseDataInstance,
                                            boolean singletonOnly) throws QueryException {
 
+        if (replay != null) {
+            ResolutionPlan.ResolvePathStep step = replay.nextStep(ResolutionPlan.ResolvePathStep.class);
+            step.check(relativePath, itemDefinition, baseDataInstance, singletonOnly);
+            RootHibernateQuery hibernateQuery = context.getHibernateQuery();
+            for (ResolutionPlan.AddedJoin join : step.getJoins()) {
+                Condition condition = createJoinCondition(join.alias, join.linkDefinition, hibernateQuery);
+                hibernateQuery.getPrimaryEntity().addJoin(new JoinSpecification(join.alias, join.path, condition));
+            }
+            return step.result;
+        }
+
+        if (planToRecord != null) {
+            currentStep = new ResolutionPlan.ResolvePathStep(relativePath, itemDefinition, baseDataInstance, singletonOnly);
+        }
+        try {
+            HqlDataInstance result = resolveItemPathInternal(relativePath, itemDefinition, baseDataInstance, singletonOnly);
+            if (currentStep != null) {
+                currentStep.result = result;
+                planToRecord.addStep(currentStep);
+            }
+            return result;
+        } finally {
+            currentStep = null;
+        }
+    }
+
+    private HqlDataInstance resolveItemPathInternal(ItemPath relativePath, ItemDefinition itemDefinition,
+                                                    HqlDataInstance baseDataInstance,
+                                                    boolean singletonOnly) throws QueryException {
+
         ItemPathResolutionState currentState = new ItemPathResolutionState(relativePath, baseDataInstance, this);
 
         LOGGER.trace("Starting resolution and context update for item path '{}', singletonOnly='{}'", relativePath, singletonOnly);
 
         while (!currentState.isFinal()) {
-            LOGGER.trace("Current resolution state:\n{}", currentState.debugDumpNoParent());
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace("Current resolution state:\n{}", currentState.debugDumpNoParent());
+            }
             currentState = currentState.nextState(itemDefinition, singletonOnly);
         }
 
-        LOGGER.trace("resolveItemPath({}) ending in resolution state of:\n{}", relativePath, currentState.debugDump());
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace("resolveItemPath({}) ending in resolution state of:\n{}", relativePath, currentState.debugDump());
+        }
         return currentState.getHqlDataInstance();
     }
 
@@ -125,6 +190,9 @@ public class ItemPathResolver {
         joinedItemAlias = hibernateQuery.createAlias(joinedItemDefinition);
         Condition condition = createJoinCondition(joinedItemAlias, joinedItemDefinition, hibernateQuery);
         hibernateQuery.getPrimaryEntity().addJoin(new JoinSpecification(joinedItemAlias, joinedItemFullPath, condition));
+        if (currentStep != null) {
+            currentStep.joins.add(new ResolutionPlan.AddedJoin(joinedItemAlias, joinedItemFullPath, joinedItemDefinition));
+        }
         return joinedItemAlias;
     }
 
@@ -198,6 +266,22 @@ public class ItemPathResolver {
     ProperDataSearchResult<T> findProperDataDefinition(JpaEntityDefinition baseEntityDefinition,
                                                        ItemPath path, ItemDefinition itemDefinition,
                                                        Class<T> clazz) throws QueryException {
+        if (replay != null) {
+            ResolutionPlan.FindDefinitionStep step = replay.nextStep(ResolutionPlan.FindDefinitionStep.class);
+            step.check(baseEntityDefinition, path, itemDefinition, clazz);
+            return (ProperDataSearchResult<T>) step.result;
+        }
+        ProperDataSearchResult<T> result = findProperDataDefinitionInternal(baseEntityDefinition, path, itemDefinition, clazz);
+        if (planToRecord != null) {
+            planToRecord.addStep(new ResolutionPlan.FindDefinitionStep(baseEntityDefinition, path, itemDefinition, clazz, result));
+        }
+        return result;
+    }
+
+    private <T extends JpaDataNodeDefinition>
+    ProperDataSearchResult<T> findProperDataDefinitionInternal(JpaEntityDefinition baseEntityDefinition,
+                                                               ItemPath path, ItemDefinition itemDefinition,
+                                                               Class<T> clazz) throws QueryException {
         QueryDefinitionRegistry2 registry = QueryDefinitionRegistry2.getInstance();
         ProperDataSearchResult<T> candidateResult = null;
 
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.repo.sql.query2.resolution;
+
+import com.evolveum.midpoint.prism.ItemDefinition;
+import com.evolveum.midpoint.prism.PrismPropertyDefinition;
+import com.evolveum.midpoint.prism.path.ItemPath;
+import com.evolveum.midpoint.repo.sql.query2.definition.JpaEntityDefinition;
+import com.evolveum.midpoint.repo.sql.query2.definition.JpaLinkDefinition;
+import org.apache.commons.lang.ObjectUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Value-independent part of query interpretation: results of item path resolution (definitions found and joins
+ * created), in the order in which they were requested by the interpreter. Queries of the same shape request
+ * the same resolutions, so a plan recorded while interpreting one query can be replayed when interpreting
+ * another one. Values are still converted and bound by the restrictions as usual.
+ *
+ * Each replayed step is checked against the actual request. If they differ, ResolutionPlanMismatchException
+ * is thrown and the query has to be interpreted from scratch.
+ *
+ * The plan is filled in by one thread; it must not be changed after it was made available to others.
+ *
+ * @author agent
+ */
+public class ResolutionPlan {
+
+    private final List<Step> steps = new ArrayList<>();
+
+    void addStep(Step step) {
+        steps.add(step);
+    }
+
+    public int size() {
+        return steps.size();
+    }
+
+    public Replay startReplay() {
+        return new Replay();
+    }
+
+    public class Replay {
+
+        private int next;
+
+        <S extends Step> S nextStep(Class<S> expectedClass) {
+            if (next >= steps.size()) {
+                throw new ResolutionPlanMismatchException("No more steps in resolution plan (" + steps.size() + " steps)");
+            }
+            Step step = steps.get(next++);
+            if (!expectedClass.isInstance(step)) {
+                throw new ResolutionPlanMismatchException("Expected " + expectedClass.getSimpleName() + " at position "
+                        + (next - 1) + ", found " + step);
+            }
+            return expectedClass.cast(step);
+        }
+
+        public void finish() {
+            if (next != steps.size()) {
+                throw new ResolutionPlanMismatchException("Only " + next + " out of " + steps.size()
+                        + " resolution plan steps were used");
+            }
+        }
+    }
+
+    abstract static class Step {
+    }
+
+    static class FindDefinitionStep extends Step {
+
+        final JpaEntityDefinition baseEntityDefinition;
+        final ItemPath path;
+        final ItemDefinition itemDefinition;
+        final Class<?> clazz;
+        final ProperDataSearchResult<?> result;
+
+        FindDefinitionStep(JpaEntityDefinition baseEntityDefinition, ItemPath path, ItemDefinition itemDefinition,
+                           Class<?> clazz, ProperDataSearchResult<?> result) {
+            this.baseEntityDefinition = baseEntityDefinition;
+            this.path = path;
+            this.itemDefinition = itemDefinition;
+            this.clazz = clazz;
+            this.result = result;
+        }
+
+        void check(JpaEntityDefinition baseEntityDefinition, ItemPath path, ItemDefinition itemDefinition, Class<?> clazz) {
+            if (this.baseEntityDefinition != baseEntityDefinition || this.clazz != clazz
+                    || !ObjectUtils.equals(this.path, path) || !sameItemDefinition(this.itemDefinition, itemDefinition)) {
+                throw new ResolutionPlanMismatchException("Definition lookup for " + path + " in " + baseEntityDefinition
+                        + " does not match the plan: " + this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "FindDefinitionStep{path=" + path + ", base=" + baseEntityDefinition + ", class=" + clazz.getSimpleName() + "}";
+        }
+    }
+
+    static class ResolvePathStep extends Step {
+
+        final ItemPath path;
+        final ItemDefinition itemDefinition;
+        final HqlDataInstance baseDataInstance;
+        final boolean singletonOnly;
+        final List<AddedJoin> joins = new ArrayList<>();
+        HqlDataInstance result;
+
+        ResolvePathStep(ItemPath path, ItemDefinition itemDefinition, HqlDataInstance baseDataInstance, boolean singletonOnly) {
+            this.path = path;
+            this.itemDefinition = itemDefinition;
+            this.baseDataInstance = baseDataInstance;
+            this.singletonOnly = singletonOnly;
+        }
+
+        void check(ItemPath path, ItemDefinition itemDefinition, HqlDataInstance baseDataInstance, boolean singletonOnly) {
+            if (this.singletonOnly != singletonOnly || !ObjectUtils.equals(this.path, path)
+                    || !sameDataInstance(this.baseDataInstance, baseDataInstance)
+                    || !sameItemDefinition(this.itemDefinition, itemDefinition)) {
+                throw new ResolutionPlanMismatchException("Resolution of " + path + " from " + baseDataInstance
+                        + " does not match the plan: " + this);
+            }
+        }
+
+        List<AddedJoin> getJoins() {
+            return Collections.unmodifiableList(joins);
+        }
+
+        @Override
+        public String toString() {
+            return "ResolvePathStep{path=" + path + ", base=" + baseDataInstance + ", joins=" + joins.size() + "}";
+        }
+    }
+
+    static class AddedJoin {
+
+        final String alias;
+        final String path;
+        final JpaLinkDefinition linkDefinition;
+
+        AddedJoin(String alias, String path, JpaLinkDefinition linkDefinition) {
+            this.alias = alias;
+            this.path = path;
+            this.linkDefinition = linkDefinition;
+        }
+    }
+
+    private static boolean sameDataInstance(HqlDataInstance first, HqlDataInstance second) {
+        while (first != null && second != null) {
+            if (first == second) {
+                return true;
+            }
+            if (first.jpaDefinition != second.jpaDefinition || !first.hqlPath.equals(second.hqlPath)) {
+                return false;
+            }
+            first = first.parentDataItem;
+            second = second.parentDataItem;
+        }
+        return first == second;
+    }
+
+    // item definitions are used only when resolving extension items (name, type, multiplicity, indexing)
+    private static boolean sameItemDefinition(ItemDefinition first, ItemDefinition second) {
+        if (first == second) {
+            return true;
+        }
+        if (first == null || second == null || first.getClass() != second.getClass()) {
+            return false;
+        }
+        if (!ObjectUtils.equals(first.getName(), second.getName())
+                || !ObjectUtils.equals(first.getTypeName(), second.getTypeName())
+                || first.isSingleValue() != second.isSingleValue()) {
+            return false;
+        }
+        if (first instanceof PrismPropertyDefinition) {
+            return ObjectUtils.equals(((PrismPropertyDefinition) first).isIndexed(), ((PrismPropertyDefinition) second).isIndexed());
+        }
+        return true;
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.repo.sql.query2.resolution;
+
+/**
+ * Thrown when a query being interpreted does not follow the resolution plan that is being replayed.
+ * The query should be interpreted again, without the plan.
+ *
+ * @author agent
+ */
+public class ResolutionPlanMismatchException extends RuntimeException {
+
+    public ResolutionPlanMismatchException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.repo.sql.query2.restriction;
+
+import com.evolveum.midpoint.prism.PrismPropertyValue;
+import com.evolveum.midpoint.prism.PrismValue;
+import com.evolveum.midpoint.prism.query.EqualFilter;
+import com.evolveum.midpoint.prism.query.GreaterFilter;
+import com.evolveum.midpoint.prism.query.LessFilter;
+import com.evolveum.midpoint.prism.query.PropertyValueFilter;
+import com.evolveum.midpoint.repo.sql.data.common.RObject;
+import com.evolveum.midpoint.repo.sql.query.QueryException;
+import com.evolveum.midpoint.repo.sql.query2.InterpretationContext;
+import com.evolveum.midpoint.repo.sql.query2.definition.JpaEntityDefinition;
+import com.evolveum.midpoint.repo.sql.query2.hqm.condition.Condition;
+
+/**
+ * Comparison of object OID with a constant, i.e. EqualFilter, GreaterFilter or LessFilter
+ * with the "#" (identifier) path applied to an object. Used e.g. to split the object space
+ * into OID intervals.
+ *
+ * @author agent
+ */
+public class OidRestriction extends Restriction<PropertyValueFilter> {
+
+    public OidRestriction(InterpretationContext context, PropertyValueFilter filter, JpaEntityDefinition baseEntityDefinition, Restriction parent) {
+        super(context, filter, baseEntityDefinition, parent);
+    }
+
+    @Override
+    public Condition interpret() throws QueryException {
+        if (!RObject.class.isAssignableFrom(getBaseHqlEntity().getJpaDefinition().getJpaClass())) {
+            throw new QueryException("OID comparison cannot be applied to the entity: " + getBaseHqlEntity());
+        }
+        if (filter.getRightSidePath() != null) {
+            throw new QueryException("Right-side ItemPath is not supported for OID comparison: " + filter);
+        }
+        String hqlPath = getBaseHqlEntity().getHqlPath() + ".oid";
+        return getContext().getHibernateQuery().createSimpleComparisonCondition(hqlPath, getOid(), getOperation().symbol());
+    }
+
+    private ItemRestrictionOperation getOperation() throws QueryException {
+        if (filter instanceof EqualFilter) {
+            return ItemRestrictionOperation.EQ;
+        } else if (filter instanceof GreaterFilter) {
+            return ((GreaterFilter) filter).isEquals() ? ItemRestrictionOperation.GE : ItemRestrictionOperation.GT;
+        } else if (filter instanceof LessFilter) {
+            return ((LessFilter) filter).isEquals() ? ItemRestrictionOperation.LE : ItemRestrictionOperation.LT;
+        } else {
+            throw new QueryException("Unsupported filter for OID comparison: " + filter);
+        }
+    }
+
+    private String getOid() throws QueryException {
+        PrismValue val = filter.getSingleValue();
+        if (!(val instanceof PrismPropertyValue) || ((PrismPropertyValue) val).getValue() == null) {
+            throw new QueryException("OID comparison requires a single non-null value: " + filter);
+        }
+        return String.valueOf(((PrismPropertyValue) val).getValue());
+    }
+}
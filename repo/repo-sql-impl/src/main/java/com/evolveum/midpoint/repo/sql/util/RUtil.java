@@ -463,6 +463,15 @@ public final class RUtil {
         return array;
     }
 
+    /**
+     * @return true if the array starts with gzip header, i.e. it was probably stored with useZip option set
+     */
+    public static boolean isGzipped(byte[] array) {
+        return array != null && array.length >= 2
+                && (array[0] & 0xff) == (GZIPInputStream.GZIP_MAGIC & 0xff)
+                && (array[1] & 0xff) == ((GZIPInputStream.GZIP_MAGIC >> 8) & 0xff);
+    }
+
     public static String getXmlFromByteArray(byte[] array, boolean compressed) {
         String xml;
 
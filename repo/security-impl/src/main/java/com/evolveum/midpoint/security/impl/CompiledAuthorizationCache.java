@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.security.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.evolveum.midpoint.security.api.Authorization;
+import com.evolveum.midpoint.security.api.MidPointPrincipal;
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+
+/**
+ * Compiled authorizations (see CompiledAuthorizations) of the principals. The entries are weakly referenced by
+ * the principals, so they live as long as the principal (e.g. as long as the GUI session). An entry is compiled
+ * again if the authorizations of the principal have changed.
+ *
+ * Principal hits/misses count the lookups of the compiled authorizations, selector hits/misses count the lookups
+ * of the memoized parts (applicable authorizations, item paths and parsed filters).
+ *
+ * @author agent
+ */
+public class CompiledAuthorizationCache {
+
+	private static final Trace LOGGER = TraceManager.getTrace(CompiledAuthorizationCache.class);
+
+	private final Map<MidPointPrincipal, CompiledAuthorizations> compiled = new WeakHashMap<>();
+
+	private final AtomicLong principalHits = new AtomicLong();
+	private final AtomicLong principalMisses = new AtomicLong();
+	private final AtomicLong selectorHits = new AtomicLong();
+	private final AtomicLong selectorMisses = new AtomicLong();
+
+	CompiledAuthorizations get(MidPointPrincipal principal) {
+		Collection<Authorization> authorities = principal.getAuthorities();
+		synchronized (compiled) {
+			CompiledAuthorizations compiledAuthorizations = compiled.get(principal);
+			if (compiledAuthorizations != null && compiledAuthorizations.isCompiledFrom(authorities)) {
+				principalHits.incrementAndGet();
+				return compiledAuthorizations;
+			}
+		}
+		principalMisses.incrementAndGet();
+		List<Authorization> authorizations = new ArrayList<>();
+		if (authorities != null) {
+			for (Object authority : authorities) {
+				if (authority instanceof Authorization) {
+					authorizations.add((Authorization) authority);
+				} else {
+					LOGGER.warn("Unknown authority type {} in user {}", authority.getClass(), principal.getUsername());
+				}
+			}
+		}
+		CompiledAuthorizations compiledAuthorizations = new CompiledAuthorizations(authorizations, this);
+		synchronized (compiled) {
+			compiled.put(principal, compiledAuthorizations);
+		}
+		return compiledAuthorizations;
+	}
+
+	void recordSelectorHit() {
+		selectorHits.incrementAndGet();
+	}
+
+	void recordSelectorMiss() {
+		selectorMisses.incrementAndGet();
+	}
+
+	public void clear() {
+		synchronized (compiled) {
+			compiled.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (compiled) {
+			return compiled.size();
+		}
+	}
+
+	public long getPrincipalHits() {
+		return principalHits.get();
+	}
+
+	public long getPrincipalMisses() {
+		return principalMisses.get();
+	}
+
+	public long getSelectorHits() {
+		return selectorHits.get();
+	}
+
+	public long getSelectorMisses() {
+		return selectorMisses.get();
+	}
+
+	public void resetStatistics() {
+		principalHits.set(0);
+		principalMisses.set(0);
+		selectorHits.set(0);
+		selectorMisses.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "CompiledAuthorizationCache(size=" + size() + ", principalHits=" + principalHits.get()
+				+ ", principalMisses=" + principalMisses.get() + ", selectorHits=" + selectorHits.get()
+				+ ", selectorMisses=" + selectorMisses.get() + ")";
+	}
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.security.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.namespace.QName;
+
+import org.apache.commons.lang.ObjectUtils;
+
+import com.evolveum.midpoint.prism.path.ItemPath;
+import com.evolveum.midpoint.prism.query.ObjectFilter;
+import com.evolveum.midpoint.security.api.Authorization;
+import com.evolveum.midpoint.security.api.AuthorizationConstants;
+import com.evolveum.midpoint.util.QNameUtil;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.AuthorizationPhaseType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.OwnedObjectSpecificationType;
+import com.evolveum.prism.xml.ns._public.query_3.SearchFilterType;
+import com.evolveum.prism.xml.ns._public.types_3.ItemPathType;
+
+/**
+ * Authorizations of one principal, prepared for repeated evaluation. Selections of the authorizations that are applicable
+ * for given action, phase and object type are computed once and remembered (keeping the original order of
+ * the authorizations, as the evaluation depends on it). The same holds for the item paths of the authorizations and for
+ * the filters in object specifications, which are parsed only once for each object type.
+ *
+ * The structure is valid only as long as the principal has the same authorizations (see isCompiledFrom).
+ *
+ * @author agent
+ */
+class CompiledAuthorizations {
+
+	private final List<Authorization> authorizations;
+	private final CompiledAuthorizationCache cache;
+
+	private final ConcurrentMap<SelectionKey, List<Authorization>> selections = new ConcurrentHashMap<>();
+	private final Map<Authorization, Collection<ItemPath>> items = new HashMap<>();
+	private final Map<FilterKey, ObjectFilter> filters = new HashMap<>();
+
+	CompiledAuthorizations(List<Authorization> authorizations, CompiledAuthorizationCache cache) {
+		this.authorizations = authorizations;
+		this.cache = cache;
+	}
+
+	/**
+	 * Returns true if the structure was compiled from exactly these authorizations (the same instances in the same order).
+	 */
+	boolean isCompiledFrom(Collection<Authorization> currentAuthorizations) {
+		if (currentAuthorizations == null) {
+			return authorizations.isEmpty();
+		}
+		int size = 0;
+		Iterator<Authorization> iterator = authorizations.iterator();
+		for (Object current : currentAuthorizations) {
+			if (!(current instanceof Authorization)) {
+				continue;
+			}
+			if (!iterator.hasNext() || iterator.next() != current) {
+				return false;
+			}
+			size++;
+		}
+		return size == authorizations.size();
+	}
+
+	List<Authorization> getAuthorizations() {
+		return authorizations;
+	}
+
+	/**
+	 * Authorizations applicable for the action and phase. If includeNullPhase is true, the authorizations
+	 * without phase are included as well. If objectTypeName is specified, authorizations whose object specifications
+	 * can never match objects of that type are left out.
+	 */
+	List<Authorization> select(String action, AuthorizationPhaseType phase, boolean includeNullPhase, QName objectTypeName) {
+		return select(new SelectionKey(action, phase, includeNullPhase, false, objectTypeName));
+	}
+
+	/**
+	 * Authorizations for all actions and phases that can be applicable to objects of given type.
+	 */
+	List<Authorization> selectForObjectType(QName objectTypeName) {
+		return select(new SelectionKey(null, null, false, true, objectTypeName));
+	}
+
+	private List<Authorization> select(SelectionKey key) {
+		List<Authorization> selection = selections.get(key);
+		if (selection != null) {
+			cache.recordSelectorHit();
+			return selection;
+		}
+		cache.recordSelectorMiss();
+		List<Authorization> newSelection = new ArrayList<>();
+		for (Authorization autz : authorizations) {
+			if (key.matches(autz)) {
+				newSelection.add(autz);
+			}
+		}
+		selection = Collections.unmodifiableList(newSelection);
+		selections.put(key, selection);
+		return selection;
+	}
+
+	synchronized Collection<ItemPath> getItems(Authorization autz) {
+		Collection<ItemPath> itemPaths = items.get(autz);
+		if (itemPaths != null) {
+			cache.recordSelectorHit();
+			return itemPaths;
+		}
+		cache.recordSelectorMiss();
+		List<ItemPathType> itemPathTypes = autz.getItem();
+		List<ItemPath> newItemPaths = new ArrayList<>(itemPathTypes.size());
+		for (ItemPathType itemPathType : itemPathTypes) {
+			newItemPaths.add(itemPathType.getItemPath());
+		}
+		itemPaths = Collections.<ItemPath>unmodifiableList(newItemPaths);
+		items.put(autz, itemPaths);
+		return itemPaths;
+	}
+
+	/**
+	 * Returns true if the filter was already parsed for given context (e.g. object class or definition).
+	 * The parsed filter (may be null) is then returned by getParsedFilter.
+	 */
+	synchronized boolean isFilterParsed(SearchFilterType filterType, Object context) {
+		if (filters.containsKey(new FilterKey(filterType, context))) {
+			cache.recordSelectorHit();
+			return true;
+		}
+		cache.recordSelectorMiss();
+		return false;
+	}
+
+	synchronized ObjectFilter getParsedFilter(SearchFilterType filterType, Object context) {
+		return filters.get(new FilterKey(filterType, context));
+	}
+
+	synchronized void putParsedFilter(SearchFilterType filterType, Object context, ObjectFilter filter) {
+		filters.put(new FilterKey(filterType, context), filter);
+	}
+
+	private static final class SelectionKey {
+
+		private final String action;
+		private final AuthorizationPhaseType phase;
+		private final boolean includeNullPhase;
+		private final boolean allActionsAndPhases;
+		private final QName objectTypeName;
+
+		private SelectionKey(String action, AuthorizationPhaseType phase, boolean includeNullPhase,
+				boolean allActionsAndPhases, QName objectTypeName) {
+			this.action = action;
+			this.phase = phase;
+			this.includeNullPhase = includeNullPhase;
+			this.allActionsAndPhases = allActionsAndPhases;
+			this.objectTypeName = objectTypeName;
+		}
+
+		private boolean matches(Authorization autz) {
+			if (!allActionsAndPhases) {
+				if (!autz.getAction().contains(action) && !autz.getAction().contains(AuthorizationConstants.AUTZ_ALL_URL)) {
+					return false;
+				}
+				if (autz.getPhase() != phase && !(includeNullPhase && autz.getPhase() == null)) {
+					return false;
+				}
+			}
+			return objectTypeName == null || isApplicableForType(autz.getObject());
+		}
+
+		// the same type check as the one done when evaluating object specification
+		private boolean isApplicableForType(List<OwnedObjectSpecificationType> objectSpecTypes) {
+			if (objectSpecTypes == null || objectSpecTypes.isEmpty()) {
+				return true;
+			}
+			for (OwnedObjectSpecificationType objectSpecType : objectSpecTypes) {
+				QName specTypeQName = objectSpecType.getType();
+				if (specTypeQName == null || QNameUtil.match(specTypeQName, objectTypeName)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+			SelectionKey that = (SelectionKey) o;
+			return includeNullPhase == that.includeNullPhase
+					&& allActionsAndPhases == that.allActionsAndPhases
+					&& phase == that.phase
+					&& ObjectUtils.equals(action, that.action)
+					&& ObjectUtils.equals(objectTypeName, that.objectTypeName);
+		}
+
+		@Override
+		public int hashCode() {
+			int result = action != null ? action.hashCode() : 0;
+			result = 31 * result + (phase != null ? phase.hashCode() : 0);
+			result = 31 * result + (includeNullPhase ? 1 : 0);
+			result = 31 * result + (allActionsAndPhases ? 1 : 0);
+			result = 31 * result + (objectTypeName != null ? objectTypeName.hashCode() : 0);
+			return result;
+		}
+	}
+
+	// filters are identified by the instance (they come from the authorizations of this principal)
+	private static final class FilterKey {
+
+		private final SearchFilterType filterType;
+		private final Object context;
+
+		private FilterKey(SearchFilterType filterType, Object context) {
+			this.filterType = filterType;
+			this.context = context;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+			FilterKey that = (FilterKey) o;
+			return filterType == that.filterType && ObjectUtils.equals(context, that.context);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(filterType) + (context != null ? context.hashCode() : 0);
+		}
+	}
+}
@@ -32,7 +32,6 @@ import org.springframework.security.access.ConfigAttribute;
 import org.springframework.security.access.SecurityConfig;
 import org.springframework.security.authentication.InsufficientAuthenticationException;
 import org.springframework.security.core.Authentication;
-import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.context.SecurityContext;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.web.FilterInvocation;
@@ -123,6 +122,8 @@ public class SecurityEnforcerImpl implements SecurityEnforcer {
 	
 	private UserProfileService userProfileService = null;
 	
+	private final CompiledAuthorizationCache compiledAuthorizationCache = new CompiledAuthorizationCache();
+	
 	@Override
 	public UserProfileService getUserProfileService() {
 		return userProfileService;
@@ -133,6 +134,10 @@ public class SecurityEnforcerImpl implements SecurityEnforcer {
 		this.userProfileService = userProfileService;
 	}
 
+	public CompiledAuthorizationCache getCompiledAuthorizationCache() {
+		return compiledAuthorizationCache;
+	}
+
 	@Override
 	public MidPointPrincipal getPrincipal() throws SecurityViolationException {
 		return SecurityUtil.getPrincipal();
@@ -197,87 +202,61 @@ public class SecurityEnforcerImpl implements SecurityEnforcer {
 		LOGGER.trace("AUTZ: evaluating authorization principal={}, op={}, phase={}, object={}, delta={}, target={}",
 				new Object[]{midPointPrincipal, operationUrl, phase, object, delta, target});
 		final Collection<ItemPath> allowedItems = new ArrayList<>();
-		Collection<Authorization> authorities = midPointPrincipal.getAuthorities();
-		if (authorities != null) {
-			for (GrantedAuthority authority: authorities) {
-				if (authority instanceof Authorization) {
-					Authorization autz = (Authorization)authority;
-					String autzHumanReadableDesc = autz.getHumanReadableDesc();
-					LOGGER.trace("Evaluating {}", autzHumanReadableDesc);
-					
-					// First check if the authorization is applicable.
-					
-					// action
-					if (!autz.getAction().contains(operationUrl) && !autz.getAction().contains(AuthorizationConstants.AUTZ_ALL_URL)) {
-						LOGGER.trace("  {} not applicable for operation {}", autzHumanReadableDesc, operationUrl);
-						continue;
-					}
-					
-					// phase
-					if (autz.getPhase() == null) {
-						LOGGER.trace("  {} is applicable for all phases (continuing evaluation)", autzHumanReadableDesc);
-					} else {
-						if (autz.getPhase() != phase) {
-							LOGGER.trace("  {} is not applicable for phases {} (breaking evaluation)", autzHumanReadableDesc, phase);
-							continue;
-						} else {
-							LOGGER.trace("  {} is applicable for phases {} (continuing evaluation)", autzHumanReadableDesc, phase);
-						}
-					}
-					
-					// object
-					if (isApplicable(autz.getObject(), object, midPointPrincipal, ownerResolver, "object", autzHumanReadableDesc)) {
-						LOGGER.trace("  {} applicable for object {} (continuing evaluation)", autzHumanReadableDesc, object);
-					} else {
-						LOGGER.trace("  {} not applicable for object {}, none of the object specifications match (breaking evaluation)", 
-								autzHumanReadableDesc, object);
-						continue;
-					}
-					
-					// target
-					if (isApplicable(autz.getTarget(), target, midPointPrincipal, ownerResolver, "target", autzHumanReadableDesc)) {
-						LOGGER.trace("  {} applicable for target {} (continuing evaluation)", autzHumanReadableDesc, object);
-					} else {
-						LOGGER.trace("  {} not applicable for target {}, none of the target specifications match (breaking evaluation)", 
-								autzHumanReadableDesc, object);
-						continue;
-					}
-					
-					// authority is applicable to this situation. now we can process the decision.
-					AuthorizationDecisionType decision = autz.getDecision();
-					if (decision == null || decision == AuthorizationDecisionType.ALLOW) {
-						// if there is more than one role which specify
-						// different authz (e.g one role specify allow for whole
-						// objet, the other role specify allow only for some
-						// attributes. this ended with allow for whole object (MID-2018)
-						Collection<ItemPath> allowed = getItems(autz);
-						if (allow && allowedItems.isEmpty()){
-							LOGGER.trace("  {}: ALLOW operation {} (but continue evaluation)", autzHumanReadableDesc, operationUrl);
-						} else if (allow && allowed.isEmpty()){
-							allowedItems.clear();
-						} else {
-							allowedItems.addAll(allowed);
-						}
-						LOGGER.trace("  {}: ALLOW operation {} (but continue evaluation)", autzHumanReadableDesc, operationUrl);
-						allow = true;
-						// Do NOT break here. Other authorization statements may still deny the operation
-					} else {
-						// item
-						if (isApplicableItem(autz, object, delta)) {
-							LOGGER.trace("  {}: Deny authorization applicable for items (continuing evaluation)", autzHumanReadableDesc);
-						} else {
-							LOGGER.trace("  {} not applicable for items (breaking evaluation)", autzHumanReadableDesc);
-							continue;
-						}
-						LOGGER.trace("  {}: DENY operation {}", autzHumanReadableDesc, operationUrl);
-						allow = false;
-						// Break right here. Deny cannot be overridden by allow. This decision cannot be changed. 
-						break;
-					}
-					
+		CompiledAuthorizations compiled = compiledAuthorizationCache.get(midPointPrincipal);
+		// action, phase and object type are already checked by the selection
+		List<Authorization> applicableAuthorizations = compiled.select(operationUrl, phase, true, getTypeName(object));
+		for (Authorization autz: applicableAuthorizations) {
+			String autzHumanReadableDesc = autz.getHumanReadableDesc();
+			LOGGER.trace("Evaluating {}", autzHumanReadableDesc);
+			
+			// object
+			if (isApplicable(autz.getObject(), object, midPointPrincipal, ownerResolver, "object", autzHumanReadableDesc, compiled)) {
+				LOGGER.trace("  {} applicable for object {} (continuing evaluation)", autzHumanReadableDesc, object);
+			} else {
+				LOGGER.trace("  {} not applicable for object {}, none of the object specifications match (breaking evaluation)", 
+						autzHumanReadableDesc, object);
+				continue;
+			}
+			
+			// target
+			if (isApplicable(autz.getTarget(), target, midPointPrincipal, ownerResolver, "target", autzHumanReadableDesc, compiled)) {
+				LOGGER.trace("  {} applicable for target {} (continuing evaluation)", autzHumanReadableDesc, object);
+			} else {
+				LOGGER.trace("  {} not applicable for target {}, none of the target specifications match (breaking evaluation)", 
+						autzHumanReadableDesc, object);
+				continue;
+			}
+			
+			// authority is applicable to this situation. now we can process the decision.
+			AuthorizationDecisionType decision = autz.getDecision();
+			if (decision == null || decision == AuthorizationDecisionType.ALLOW) {
+				// if there is more than one role which specify
+				// different authz (e.g one role specify allow for whole
+				// objet, the other role specify allow only for some
+				// attributes. this ended with allow for whole object (MID-2018)
+				Collection<ItemPath> allowed = compiled.getItems(autz);
+				if (allow && allowedItems.isEmpty()){
+					LOGGER.trace("  {}: ALLOW operation {} (but continue evaluation)", autzHumanReadableDesc, operationUrl);
+				} else if (allow && allowed.isEmpty()){
+					allowedItems.clear();
 				} else {
-					LOGGER.warn("Unknown authority type {} in user {}", authority.getClass(), midPointPrincipal.getUsername());
+					allowedItems.addAll(allowed);
 				}
+				LOGGER.trace("  {}: ALLOW operation {} (but continue evaluation)", autzHumanReadableDesc, operationUrl);
+				allow = true;
+				// Do NOT break here. Other authorization statements may still deny the operation
+			} else {
+				// item
+				if (isApplicableItem(autz, object, delta)) {
+					LOGGER.trace("  {}: Deny authorization applicable for items (continuing evaluation)", autzHumanReadableDesc);
+				} else {
+					LOGGER.trace("  {} not applicable for items (breaking evaluation)", autzHumanReadableDesc);
+					continue;
+				}
+				LOGGER.trace("  {}: DENY operation {}", autzHumanReadableDesc, operationUrl);
+				allow = false;
+				// Break right here. Deny cannot be overridden by allow. This decision cannot be changed. 
+				break;
 			}
 		}
 		
@@ -374,15 +353,23 @@ public class SecurityEnforcerImpl implements SecurityEnforcer {
 		}
 	}
 	
+	private QName getTypeName(PrismObject<?> object) {
+		if (object == null || object.getDefinition() == null) {
+			return null;
+		}
+		return object.getDefinition().getTypeName();
+	}
+	
 	private <O extends ObjectType> boolean isApplicable(List<OwnedObjectSpecificationType> objectSpecTypes, PrismObject<O> object, 
-			MidPointPrincipal midPointPrincipal, OwnerResolver ownerResolver, String desc, String autzHumanReadableDesc) throws SchemaException {
+			MidPointPrincipal midPointPrincipal, OwnerResolver ownerResolver, String desc, String autzHumanReadableDesc,
+			CompiledAuthorizations compiled) throws SchemaException {
 		if (objectSpecTypes != null && !objectSpecTypes.isEmpty()) {
 			if (object == null) {
 				LOGGER.trace("  {} not applicable for null {}", autzHumanReadableDesc, desc);
 				return false;
 			}
 			for (OwnedObjectSpecificationType autzObject: objectSpecTypes) {
-				if (isApplicable(autzObject, object, midPointPrincipal, ownerResolver, desc, autzHumanReadableDesc)) {
+				if (isApplicable(autzObject, object, midPointPrincipal, ownerResolver, desc, autzHumanReadableDesc, compiled)) {
 					return true;
 				}
 			}
@@ -394,7 +381,8 @@ public class SecurityEnforcerImpl implements SecurityEnforcer {
 	}
 	
 	private <O extends ObjectType> boolean isApplicable(ObjectSpecificationType objectSpecType, PrismObject<O> object, 
-			MidPointPrincipal principal, OwnerResolver ownerResolver, String desc, String autzHumanReadableDesc) throws SchemaException {
+			MidPointPrincipal principal, OwnerResolver ownerResolver, String desc, String autzHumanReadableDesc,
+			CompiledAuthorizations compiled) throws SchemaException {
 		if (objectSpecType == null) {
 			LOGGER.trace("  {} not applicable for {} because of null object specification", autzHumanReadableDesc, desc);
 			return false;
@@ -444,9 +432,16 @@ public class SecurityEnforcerImpl implements SecurityEnforcer {
 		
 		// Filter
 		if (specFilterType != null) {
-			ObjectFilter specFilter = QueryJaxbConvertor.createObjectFilter(object.getCompileTimeClass(), specFilterType, object.getPrismContext());
-			if (specFilter != null) {
-				ObjectQueryUtil.assertPropertyOnly(specFilter, "Filter in "+autzHumanReadableDesc+" "+desc+" is not property-only filter");
+			// the filter is only matched (not modified), so the parsed instance can be reused
+			ObjectFilter specFilter;
+			if (compiled.isFilterParsed(specFilterType, object.getCompileTimeClass())) {
+				specFilter = compiled.getParsedFilter(specFilterType, object.getCompileTimeClass());
+			} else {
+				specFilter = QueryJaxbConvertor.createObjectFilter(object.getCompileTimeClass(), specFilterType, object.getPrismContext());
+				if (specFilter != null) {
+					ObjectQueryUtil.assertPropertyOnly(specFilter, "Filter in "+autzHumanReadableDesc+" "+desc+" is not property-only filter");
+				}
+				compiled.putParsedFilter(specFilterType, object.getCompileTimeClass(), specFilter);
 			}
 			try {
 				if (!ObjectQuery.match(object, specFilter, matchingRuleRegistry)) {
@@ -505,7 +500,7 @@ public class SecurityEnforcerImpl implements SecurityEnforcer {
 							new Object[]{autzHumanReadableDesc, desc, object.getOid()});
 					return false;
 				}
-				boolean ownerApplicable = isApplicable(ownerSpec, owner, principal, ownerResolver, "owner of "+desc, autzHumanReadableDesc);
+				boolean ownerApplicable = isApplicable(ownerSpec, owner, principal, ownerResolver, "owner of "+desc, autzHumanReadableDesc, compiled);
 				if (!ownerApplicable) {
 					LOGGER.trace("  {}: owner object spec not applicable for {}, object OID {} because owner does not match (owner={})",
 							new Object[]{autzHumanReadableDesc, desc, object.getOid(), owner});
@@ -595,18 +590,6 @@ public class SecurityEnforcerImpl implements SecurityEnforcer {
 		return false;
 	}
 	
-	private Collection<ItemPath> getItems(Authorization autz) {
-		List<ItemPathType> itemPaths = autz.getItem();
-		Collection<ItemPath> items = new ArrayList<>(itemPaths.size());
-		if (itemPaths != null) {
-			for (ItemPathType itemPathType: itemPaths) {
-				ItemPath itemPath = itemPathType.getItemPath();
-				items.add(itemPath);
-			}
-		}
-		return items;
-	}
-	
 	/**
 	 * Spring security method. It is practically applicable only for simple cases.
 	 */
@@ -730,52 +713,44 @@ public class SecurityEnforcerImpl implements SecurityEnforcer {
 		}
 		LOGGER.trace("AUTZ: evaluating security constraints principal={}, object={}", principal, object);
 		ObjectSecurityConstraintsImpl objectSecurityConstraints = new ObjectSecurityConstraintsImpl();
-		Collection<Authorization> authorities = principal.getAuthorities();
-		if (authorities != null) {
-			for (GrantedAuthority authority: authorities) {
-				if (authority instanceof Authorization) {
-					Authorization autz = (Authorization)authority;
-					String autzHumanReadableDesc = autz.getHumanReadableDesc();
-					LOGGER.trace("Evaluating {}", autzHumanReadableDesc);
-					
-					// skip action applicability evaluation. We are interested in all actions
-					
-					// object
-					if (isApplicable(autz.getObject(), object, principal, ownerResolver, "object", autzHumanReadableDesc)) {
-						LOGGER.trace("  {} applicable for object {} (continuing evaluation)", autzHumanReadableDesc, object);
-					} else {
-						LOGGER.trace("  {} not applicable for object {}, none of the object specifications match (breaking evaluation)", 
-								autzHumanReadableDesc, object);
-						continue;
-					}
-					
-					// skip target applicability evaluation. We do not have a target here
-					
-					List<String> actions = autz.getAction();
-					AuthorizationPhaseType phase = autz.getPhase();
-					AuthorizationDecisionType decision = autz.getDecision();
-					if (decision == null || decision == AuthorizationDecisionType.ALLOW) {
-						Collection<ItemPath> items = getItems(autz);
-						if (items == null || items.isEmpty()) {
-							applyDecision(objectSecurityConstraints.getActionDecisionMap(), actions, phase, AuthorizationDecisionType.ALLOW);
-						} else {
-							for (ItemPath item: items) {
-								applyItemDecision(objectSecurityConstraints.getItemConstraintMap(), item, actions, phase, AuthorizationDecisionType.ALLOW);
-							}
-						}
-					} else {
-						Collection<ItemPath> items = getItems(autz);
-						if (items == null || items.isEmpty()) {
-							applyDecision(objectSecurityConstraints.getActionDecisionMap(), actions, phase, AuthorizationDecisionType.DENY);
-						} else {
-							for (ItemPath item: items) {
-								applyItemDecision(objectSecurityConstraints.getItemConstraintMap(), item, actions, phase, AuthorizationDecisionType.DENY);
-							}
-						}
+		CompiledAuthorizations compiled = compiledAuthorizationCache.get(principal);
+		for (Authorization autz: compiled.selectForObjectType(getTypeName(object))) {
+			String autzHumanReadableDesc = autz.getHumanReadableDesc();
+			LOGGER.trace("Evaluating {}", autzHumanReadableDesc);
+			
+			// skip action applicability evaluation. We are interested in all actions
+			
+			// object
+			if (isApplicable(autz.getObject(), object, principal, ownerResolver, "object", autzHumanReadableDesc, compiled)) {
+				LOGGER.trace("  {} applicable for object {} (continuing evaluation)", autzHumanReadableDesc, object);
+			} else {
+				LOGGER.trace("  {} not applicable for object {}, none of the object specifications match (breaking evaluation)", 
+						autzHumanReadableDesc, object);
+				continue;
+			}
+			
+			// skip target applicability evaluation. We do not have a target here
+			
+			List<String> actions = autz.getAction();
+			AuthorizationPhaseType phase = autz.getPhase();
+			AuthorizationDecisionType decision = autz.getDecision();
+			if (decision == null || decision == AuthorizationDecisionType.ALLOW) {
+				Collection<ItemPath> items = compiled.getItems(autz);
+				if (items == null || items.isEmpty()) {
+					applyDecision(objectSecurityConstraints.getActionDecisionMap(), actions, phase, AuthorizationDecisionType.ALLOW);
+				} else {
+					for (ItemPath item: items) {
+						applyItemDecision(objectSecurityConstraints.getItemConstraintMap(), item, actions, phase, AuthorizationDecisionType.ALLOW);
 					}
-					
+				}
+			} else {
+				Collection<ItemPath> items = compiled.getItems(autz);
+				if (items == null || items.isEmpty()) {
+					applyDecision(objectSecurityConstraints.getActionDecisionMap(), actions, phase, AuthorizationDecisionType.DENY);
 				} else {
-					LOGGER.warn("Unknown authority type {} in user {}", authority.getClass(), principal.getUsername());
+					for (ItemPath item: items) {
+						applyItemDecision(objectSecurityConstraints.getItemConstraintMap(), item, actions, phase, AuthorizationDecisionType.DENY);
+					}
 				}
 			}
 		}
@@ -879,220 +854,209 @@ public class SecurityEnforcerImpl implements SecurityEnforcer {
 	private <T extends ObjectType, O extends ObjectType> ObjectFilter preProcessObjectFilterInternal(MidPointPrincipal principal, String operationUrl, 
 			AuthorizationPhaseType phase, boolean includeNullPhase, 
 			Class<T> objectType, PrismObject<O> object, ObjectFilter origFilter) throws SchemaException {
-		Collection<Authorization> authorities = principal.getAuthorities();
+		CompiledAuthorizations compiled = compiledAuthorizationCache.get(principal);
 		ObjectFilter securityFilterAllow = null;
 		ObjectFilter securityFilterDeny = null;
 		boolean hasAllowAll = false;
-		if (authorities != null) {
-			for (GrantedAuthority authority: authorities) {
-				if (authority instanceof Authorization) {
-					Authorization autz = (Authorization)authority;
-					LOGGER.trace("Evaluating authorization {}", autz);
+		// action and phase are already checked by the selection
+		for (Authorization autz: compiled.select(operationUrl, phase, includeNullPhase, null)) {
+			LOGGER.trace("Evaluating authorization {}", autz);
+			
+			// object or target
+			ObjectFilter autzObjSecurityFilter = null;
+			List<OwnedObjectSpecificationType> objectSpecTypes;
+			if (object == null) {
+				// object not present. Therefore we are looking for object here
+				objectSpecTypes = autz.getObject();
+			} else {
+				// object present. Therefore we are looking for target
+				objectSpecTypes = autz.getTarget();
+				
+				// .. but we need to decide whether this authorization is applicable to the object
+				if (!isApplicableItem(autz, object, null)) {
+					LOGGER.trace("  Authorization is not applicable for object {}", object);
+				}
+			}
+
+			boolean applicable = true;
+			if (objectSpecTypes != null && !objectSpecTypes.isEmpty()) {
+				applicable = false;
+				for (OwnedObjectSpecificationType objectSpecType: objectSpecTypes) {
+					ObjectFilter objSpecSecurityFilter = null;
+					TypeFilter objSpecTypeFilter = null;
+					SearchFilterType specFilterType = objectSpecType.getFilter();
+					ObjectReferenceType specOrgRef = objectSpecType.getOrgRef();
+					OrgRelationObjectSpecificationType specOrgRelation = objectSpecType.getOrgRelation();
+					QName specTypeQName = objectSpecType.getType();
+					PrismObjectDefinition<T> objectDefinition = null;
 					
-					// action
-					if (!autz.getAction().contains(operationUrl) && !autz.getAction().contains(AuthorizationConstants.AUTZ_ALL_URL)) {
-						LOGGER.trace("  Authorization not applicable for operation {}", operationUrl);
-						continue;
-					}
-	
-					// phase
-					if (autz.getPhase() == phase || (includeNullPhase && autz.getPhase() == null)) {
-						LOGGER.trace("  Authorization is applicable for phases {} (continuing evaluation)", phase);
-					} else {
-						LOGGER.trace("  Authorization is not applicable for phase {}", phase);
-						continue;
-					}
-	
-					// object or target
-					ObjectFilter autzObjSecurityFilter = null;
-					List<OwnedObjectSpecificationType> objectSpecTypes;
-					if (object == null) {
-						// object not present. Therefore we are looking for object here
-						objectSpecTypes = autz.getObject();
-					} else {
-						// object present. Therefore we are looking for target
-						objectSpecTypes = autz.getTarget();
-						
-						// .. but we need to decide whether this authorization is applicable to the object
-						if (!isApplicableItem(autz, object, null)) {
-							LOGGER.trace("  Authorization is not applicable for object {}", object);
+					// Type
+					if (specTypeQName != null) {
+                                specTypeQName = prismContext.getSchemaRegistry().qualifyTypeName(specTypeQName);
+						PrismObjectDefinition<?> specObjectDef = prismContext.getSchemaRegistry().findObjectDefinitionByType(specTypeQName);
+						Class<?> specObjectClass = specObjectDef.getCompileTimeClass();
+						if (!objectType.isAssignableFrom(specObjectClass)) {
+							LOGGER.trace("  Authorization not applicable for object because of type mismatch, authorization {}, query {}",
+									new Object[]{specObjectClass, objectType});
+							continue;
+						} else {
+							LOGGER.trace("  Authorization is applicable for object because of type match, authorization {}, query {}",
+									new Object[]{specObjectClass, objectType});
+							// The spec type is a subclass of requested type. So it might be returned from the search.
+							// We need to use type filter.
+							objSpecTypeFilter = TypeFilter.createType(specTypeQName, null);
+							// and now we have a more specific object definition to use later in filter processing
+							objectDefinition = (PrismObjectDefinition<T>) specObjectDef;
 						}
 					}
-
-					boolean applicable = true;
-					if (objectSpecTypes != null && !objectSpecTypes.isEmpty()) {
-						applicable = false;
-						for (OwnedObjectSpecificationType objectSpecType: objectSpecTypes) {
-							ObjectFilter objSpecSecurityFilter = null;
-							TypeFilter objSpecTypeFilter = null;
-							SearchFilterType specFilterType = objectSpecType.getFilter();
-							ObjectReferenceType specOrgRef = objectSpecType.getOrgRef();
-							OrgRelationObjectSpecificationType specOrgRelation = objectSpecType.getOrgRelation();
-							QName specTypeQName = objectSpecType.getType();
-							PrismObjectDefinition<T> objectDefinition = null;
-							
-							// Type
-							if (specTypeQName != null) {
-                                specTypeQName = prismContext.getSchemaRegistry().qualifyTypeName(specTypeQName);
-								PrismObjectDefinition<?> specObjectDef = prismContext.getSchemaRegistry().findObjectDefinitionByType(specTypeQName);
-								Class<?> specObjectClass = specObjectDef.getCompileTimeClass();
-								if (!objectType.isAssignableFrom(specObjectClass)) {
-									LOGGER.trace("  Authorization not applicable for object because of type mismatch, authorization {}, query {}",
-											new Object[]{specObjectClass, objectType});
-									continue;
-								} else {
-									LOGGER.trace("  Authorization is applicable for object because of type match, authorization {}, query {}",
-											new Object[]{specObjectClass, objectType});
-									// The spec type is a subclass of requested type. So it might be returned from the search.
-									// We need to use type filter.
-									objSpecTypeFilter = TypeFilter.createType(specTypeQName, null);
-									// and now we have a more specific object definition to use later in filter processing
-									objectDefinition = (PrismObjectDefinition<T>) specObjectDef;
-								}
-							}
-							
-							// Owner
-							if (objectSpecType.getOwner() != null) {
-								if (AbstractRoleType.class.isAssignableFrom(objectType)) {
-									if (objectDefinition == null) {
-										objectDefinition = prismContext.getSchemaRegistry().findObjectDefinitionByCompileTimeClass(objectType);
-									}
-									ItemPath ownerRefPath = new ItemPath(AbstractRoleType.F_OWNER_REF);
-									PrismReferenceDefinition ownerRefDef = objectDefinition.findReferenceDefinition(ownerRefPath);
-									ObjectFilter objSpecOwnerFilter = RefFilter.createReferenceEqual(ownerRefPath, ownerRefDef, principal.getUser().getOid());
-									for (ObjectReferenceType subjectParentOrgRef: principal.getUser().getParentOrgRef()) {
-										if (MiscSchemaUtil.compareRelation(null, subjectParentOrgRef.getRelation())) {
-											objSpecOwnerFilter = ObjectQueryUtil.filterOr(objSpecOwnerFilter,
-													RefFilter.createReferenceEqual(ownerRefPath, ownerRefDef, subjectParentOrgRef.getOid()));
-										}
-									}
-									objSpecSecurityFilter = ObjectQueryUtil.filterAnd(objSpecSecurityFilter, objSpecOwnerFilter);
-									LOGGER.trace("  applying owner filter {}", objSpecOwnerFilter);
-								} else {
-									LOGGER.trace("  Authorization not applicable for object because it has owner specification (this is not applicable for search)");
-									continue;
-								}								
+					
+					// Owner
+					if (objectSpecType.getOwner() != null) {
+						if (AbstractRoleType.class.isAssignableFrom(objectType)) {
+							if (objectDefinition == null) {
+								objectDefinition = prismContext.getSchemaRegistry().findObjectDefinitionByCompileTimeClass(objectType);
 							}
-							
-							applicable = true;
-							
-							// Special
-							List<SpecialObjectSpecificationType> specSpecial = objectSpecType.getSpecial();
-							if (specSpecial != null && !specSpecial.isEmpty()) {
-								if (specFilterType != null || specOrgRef != null || specOrgRelation != null) {
-									throw new SchemaException("Both filter/org and special object specification specified in authorization");
-								}
-								ObjectFilter specialFilter = null;
-								for (SpecialObjectSpecificationType special: specSpecial) {
-									if (special == SpecialObjectSpecificationType.SELF) {
-										String principalOid = principal.getOid();
-										specialFilter = ObjectQueryUtil.filterOr(specialFilter, InOidFilter.createInOid(principalOid));
-									} else {
-										throw new SchemaException("Unsupported special object specification specified in authorization: "+special);
-									}
+							ItemPath ownerRefPath = new ItemPath(AbstractRoleType.F_OWNER_REF);
+							PrismReferenceDefinition ownerRefDef = objectDefinition.findReferenceDefinition(ownerRefPath);
+							ObjectFilter objSpecOwnerFilter = RefFilter.createReferenceEqual(ownerRefPath, ownerRefDef, principal.getUser().getOid());
+							for (ObjectReferenceType subjectParentOrgRef: principal.getUser().getParentOrgRef()) {
+								if (MiscSchemaUtil.compareRelation(null, subjectParentOrgRef.getRelation())) {
+									objSpecOwnerFilter = ObjectQueryUtil.filterOr(objSpecOwnerFilter,
+											RefFilter.createReferenceEqual(ownerRefPath, ownerRefDef, subjectParentOrgRef.getOid()));
 								}
-                                objSpecSecurityFilter = specTypeQName != null ?
-                                        TypeFilter.createType(specTypeQName, specialFilter) : specialFilter;
-							} else {
-								LOGGER.trace("  specials empty: {}", specSpecial);
 							}
-							
-							// Filter
-							if (specFilterType != null) {
-								if (objectDefinition == null) {
-									objectDefinition = prismContext.getSchemaRegistry().findObjectDefinitionByCompileTimeClass(objectType);
-								}
-								ObjectFilter specFilter = QueryJaxbConvertor.createObjectFilter(objectDefinition, specFilterType, prismContext);
-								if (specFilter != null) {
-									ObjectQueryUtil.assertNotRaw(specFilter, "Filter in authorization object has undefined items. Maybe a 'type' specification is missing in the authorization?");
-									ObjectQueryUtil.assertPropertyOnly(specFilter, "Filter in authorization object is not property-only filter");
-								}
-								LOGGER.trace("  applying property filter {}", specFilter);
-								objSpecSecurityFilter = ObjectQueryUtil.filterAnd(objSpecSecurityFilter, specFilter);
+							objSpecSecurityFilter = ObjectQueryUtil.filterAnd(objSpecSecurityFilter, objSpecOwnerFilter);
+							LOGGER.trace("  applying owner filter {}", objSpecOwnerFilter);
+						} else {
+							LOGGER.trace("  Authorization not applicable for object because it has owner specification (this is not applicable for search)");
+							continue;
+						}								
+					}
+					
+					applicable = true;
+					
+					// Special
+					List<SpecialObjectSpecificationType> specSpecial = objectSpecType.getSpecial();
+					if (specSpecial != null && !specSpecial.isEmpty()) {
+						if (specFilterType != null || specOrgRef != null || specOrgRelation != null) {
+							throw new SchemaException("Both filter/org and special object specification specified in authorization");
+						}
+						ObjectFilter specialFilter = null;
+						for (SpecialObjectSpecificationType special: specSpecial) {
+							if (special == SpecialObjectSpecificationType.SELF) {
+								String principalOid = principal.getOid();
+								specialFilter = ObjectQueryUtil.filterOr(specialFilter, InOidFilter.createInOid(principalOid));
 							} else {
-								LOGGER.trace("  filter empty");
+								throw new SchemaException("Unsupported special object specification specified in authorization: "+special);
 							}
-							
-							// Org
-							if (specOrgRef != null) {
-								OrgFilter orgFilter = OrgFilter.createOrg(specOrgRef.getOid());
-								objSpecSecurityFilter = ObjectQueryUtil.filterAnd(objSpecSecurityFilter, orgFilter);
-								LOGGER.trace("  applying org filter {}", orgFilter);
-							} else {
-								LOGGER.trace("  org empty");
+						}
+                                objSpecSecurityFilter = specTypeQName != null ?
+                                        TypeFilter.createType(specTypeQName, specialFilter) : specialFilter;
+					} else {
+						LOGGER.trace("  specials empty: {}", specSpecial);
+					}
+					
+					// Filter
+					if (specFilterType != null) {
+						if (objectDefinition == null) {
+							objectDefinition = prismContext.getSchemaRegistry().findObjectDefinitionByCompileTimeClass(objectType);
+						}
+						ObjectFilter specFilter;
+						if (compiled.isFilterParsed(specFilterType, objectDefinition.getTypeName())) {
+							specFilter = compiled.getParsedFilter(specFilterType, objectDefinition.getTypeName());
+						} else {
+							specFilter = QueryJaxbConvertor.createObjectFilter(objectDefinition, specFilterType, prismContext);
+							if (specFilter != null) {
+								ObjectQueryUtil.assertNotRaw(specFilter, "Filter in authorization object has undefined items. Maybe a 'type' specification is missing in the authorization?");
+								ObjectQueryUtil.assertPropertyOnly(specFilter, "Filter in authorization object is not property-only filter");
 							}
-							
-							// orgRelation
-							if (specOrgRelation != null) {
-								ObjectFilter objSpecOrgRelationFilter = null;
-								QName subjectRelation = specOrgRelation.getSubjectRelation();
-								for (ObjectReferenceType subjectParentOrgRef: principal.getUser().getParentOrgRef()) {
-									if (MiscSchemaUtil.compareRelation(subjectRelation, subjectParentOrgRef.getRelation())) {
-										OrgFilter orgFilter = null;
-										if (specOrgRelation.getScope() == null || specOrgRelation.getScope() == OrgScopeType.ALL_DESCENDANTS) {
-											orgFilter = OrgFilter.createOrg(subjectParentOrgRef.getOid(), OrgFilter.Scope.SUBTREE);
-										} else if (specOrgRelation.getScope() == OrgScopeType.DIRECT_DESCENDANTS) {
-											orgFilter = OrgFilter.createOrg(subjectParentOrgRef.getOid(), OrgFilter.Scope.ONE_LEVEL);
-										} else if (specOrgRelation.getScope() == OrgScopeType.ALL_ANCESTORS) {
-											throw new UnsupportedOperationException("orgRelation scope "+specOrgRelation.getScope()+" is not supported yet");
-										} else {
-											throw new UnsupportedOperationException("Unknown orgRelation scope "+specOrgRelation.getScope());
-										}
-										if (BooleanUtils.isTrue(specOrgRelation.isIncludeReferenceOrg())) {
-											InOidFilter oidFilter = InOidFilter.createInOid(subjectParentOrgRef.getOid());
-											objSpecOrgRelationFilter = ObjectQueryUtil.filterAnd(objSpecOrgRelationFilter, 
-													ObjectQueryUtil.filterOr(orgFilter, oidFilter));
-										} else {
-											objSpecOrgRelationFilter = ObjectQueryUtil.filterAnd(objSpecOrgRelationFilter, orgFilter);
-										}
-									}
+							compiled.putParsedFilter(specFilterType, objectDefinition.getTypeName(), specFilter);
+						}
+						// the resulting filter is given to the caller, so it must not share the cached instance
+						if (specFilter != null) {
+							specFilter = specFilter.clone();
+						}
+						LOGGER.trace("  applying property filter {}", specFilter);
+						objSpecSecurityFilter = ObjectQueryUtil.filterAnd(objSpecSecurityFilter, specFilter);
+					} else {
+						LOGGER.trace("  filter empty");
+					}
+					
+					// Org
+					if (specOrgRef != null) {
+						OrgFilter orgFilter = OrgFilter.createOrg(specOrgRef.getOid());
+						objSpecSecurityFilter = ObjectQueryUtil.filterAnd(objSpecSecurityFilter, orgFilter);
+						LOGGER.trace("  applying org filter {}", orgFilter);
+					} else {
+						LOGGER.trace("  org empty");
+					}
+					
+					// orgRelation
+					if (specOrgRelation != null) {
+						ObjectFilter objSpecOrgRelationFilter = null;
+						QName subjectRelation = specOrgRelation.getSubjectRelation();
+						for (ObjectReferenceType subjectParentOrgRef: principal.getUser().getParentOrgRef()) {
+							if (MiscSchemaUtil.compareRelation(subjectRelation, subjectParentOrgRef.getRelation())) {
+								OrgFilter orgFilter = null;
+								if (specOrgRelation.getScope() == null || specOrgRelation.getScope() == OrgScopeType.ALL_DESCENDANTS) {
+									orgFilter = OrgFilter.createOrg(subjectParentOrgRef.getOid(), OrgFilter.Scope.SUBTREE);
+								} else if (specOrgRelation.getScope() == OrgScopeType.DIRECT_DESCENDANTS) {
+									orgFilter = OrgFilter.createOrg(subjectParentOrgRef.getOid(), OrgFilter.Scope.ONE_LEVEL);
+								} else if (specOrgRelation.getScope() == OrgScopeType.ALL_ANCESTORS) {
+									throw new UnsupportedOperationException("orgRelation scope "+specOrgRelation.getScope()+" is not supported yet");
+								} else {
+									throw new UnsupportedOperationException("Unknown orgRelation scope "+specOrgRelation.getScope());
 								}
-								if (objSpecOrgRelationFilter == null) {
-									objSpecOrgRelationFilter = NoneFilter.createNone();
+								if (BooleanUtils.isTrue(specOrgRelation.isIncludeReferenceOrg())) {
+									InOidFilter oidFilter = InOidFilter.createInOid(subjectParentOrgRef.getOid());
+									objSpecOrgRelationFilter = ObjectQueryUtil.filterAnd(objSpecOrgRelationFilter, 
+											ObjectQueryUtil.filterOr(orgFilter, oidFilter));
+								} else {
+									objSpecOrgRelationFilter = ObjectQueryUtil.filterAnd(objSpecOrgRelationFilter, orgFilter);
 								}
-								objSpecSecurityFilter = ObjectQueryUtil.filterAnd(objSpecSecurityFilter, objSpecOrgRelationFilter);
-								LOGGER.trace("  applying orgRelation filter {}", objSpecOrgRelationFilter);
-							} else {
-								LOGGER.trace("  orgRelation empty");
 							}
-							
-							if (objSpecTypeFilter != null) {
-								objSpecTypeFilter.setFilter(objSpecSecurityFilter);
-								objSpecSecurityFilter = objSpecTypeFilter;
-							}
-							
-							autzObjSecurityFilter = ObjectQueryUtil.filterOr(autzObjSecurityFilter, objSpecSecurityFilter);
 						}
+						if (objSpecOrgRelationFilter == null) {
+							objSpecOrgRelationFilter = NoneFilter.createNone();
+						}
+						objSpecSecurityFilter = ObjectQueryUtil.filterAnd(objSpecSecurityFilter, objSpecOrgRelationFilter);
+						LOGGER.trace("  applying orgRelation filter {}", objSpecOrgRelationFilter);
 					} else {
-						LOGGER.trace("  No object specification in authorization (authorization is universaly applicable)");
-						autzObjSecurityFilter = AllFilter.createAll();
+						LOGGER.trace("  orgRelation empty");
 					}
 					
-					if (applicable) {
-						// authority is applicable to this situation. now we can process the decision.
-						AuthorizationDecisionType decision = autz.getDecision();
-						if (decision == null || decision == AuthorizationDecisionType.ALLOW) {
-							// allow
-							if (ObjectQueryUtil.isAll(autzObjSecurityFilter)) {
-								// this is "allow all" authorization.
-								hasAllowAll = true;
-							} else {
-								securityFilterAllow = ObjectQueryUtil.filterOr(securityFilterAllow, autzObjSecurityFilter);
-							}
-						} else {
-							// deny
-							if (ObjectQueryUtil.isAll(autzObjSecurityFilter)) {
-								// This is "deny all". We cannot have anything stronger than that.
-								// There is no point in continuing the evaluation.
-								LOGGER.trace("AUTZ search pre-process: principal={}, operation={}: deny all", new Object[]{principal.getUsername(), operationUrl});
-								return NoneFilter.createNone();
-							}
-							securityFilterDeny = ObjectQueryUtil.filterOr(securityFilterDeny, autzObjSecurityFilter);
-						}
+					if (objSpecTypeFilter != null) {
+						objSpecTypeFilter.setFilter(objSpecSecurityFilter);
+						objSpecSecurityFilter = objSpecTypeFilter;
 					}
 					
+					autzObjSecurityFilter = ObjectQueryUtil.filterOr(autzObjSecurityFilter, objSpecSecurityFilter);
+				}
+			} else {
+				LOGGER.trace("  No object specification in authorization (authorization is universaly applicable)");
+				autzObjSecurityFilter = AllFilter.createAll();
+			}
+			
+			if (applicable) {
+				// authority is applicable to this situation. now we can process the decision.
+				AuthorizationDecisionType decision = autz.getDecision();
+				if (decision == null || decision == AuthorizationDecisionType.ALLOW) {
+					// allow
+					if (ObjectQueryUtil.isAll(autzObjSecurityFilter)) {
+						// this is "allow all" authorization.
+						hasAllowAll = true;
+					} else {
+						securityFilterAllow = ObjectQueryUtil.filterOr(securityFilterAllow, autzObjSecurityFilter);
+					}
 				} else {
-					LOGGER.warn("Unknown authority type {} in user {}", authority.getClass(), principal.getUsername());
+					// deny
+					if (ObjectQueryUtil.isAll(autzObjSecurityFilter)) {
+						// This is "deny all". We cannot have anything stronger than that.
+						// There is no point in continuing the evaluation.
+						LOGGER.trace("AUTZ search pre-process: principal={}, operation={}: deny all", new Object[]{principal.getUsername(), operationUrl});
+						return NoneFilter.createNone();
+					}
+					securityFilterDeny = ObjectQueryUtil.filterOr(securityFilterDeny, autzObjSecurityFilter);
 				}
 			}
 		}
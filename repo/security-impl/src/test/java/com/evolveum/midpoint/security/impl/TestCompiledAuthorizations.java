@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.security.impl;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNotSame;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.xml.namespace.QName;
+
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.authentication.preauth.PreAuthenticatedAuthenticationToken;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
+import org.xml.sax.SAXException;
+
+import com.evolveum.midpoint.prism.PrismObject;
+import com.evolveum.midpoint.prism.path.ItemPath;
+import com.evolveum.midpoint.prism.util.PrismTestUtil;
+import com.evolveum.midpoint.schema.MidPointPrismContextFactory;
+import com.evolveum.midpoint.schema.constants.MidPointConstants;
+import com.evolveum.midpoint.security.api.Authorization;
+import com.evolveum.midpoint.security.api.AuthorizationConstants;
+import com.evolveum.midpoint.security.api.MidPointPrincipal;
+import com.evolveum.midpoint.test.util.TestUtil;
+import com.evolveum.midpoint.util.PrettyPrinter;
+import com.evolveum.midpoint.util.exception.SchemaException;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.AuthorizationDecisionType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.AuthorizationPhaseType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.AuthorizationType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.OwnedObjectSpecificationType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.RoleType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.SpecialObjectSpecificationType;
+import com.evolveum.midpoint.xml.ns._public.common.common_3.UserType;
+import com.evolveum.prism.xml.ns._public.types_3.ItemPathType;
+
+/**
+ * Authorization decisions of SecurityEnforcerImpl that are evaluated from the compiled authorizations
+ * (CompiledAuthorizations, CompiledAuthorizationCache). Each decision is evaluated twice, with the compiled
+ * structure cold and warm, and it has to be the same as the decision given by the authorizations
+ * evaluated in their original order.
+ *
+ * @author agent
+ */
+public class TestCompiledAuthorizations {
+
+	private static final String NS_TEST_AUTZ = "http://midpoint.evolveum.com/xml/ns/test/authorization";
+	private static final String AUTZ_READ_URL = NS_TEST_AUTZ + "#read";
+	private static final String AUTZ_MODIFY_URL = NS_TEST_AUTZ + "#modify";
+	private static final String AUTZ_DELETE_URL = NS_TEST_AUTZ + "#delete";
+
+	private static final String USER_JACK_OID = "c0c010c0-d34d-b33f-f00d-111111111111";
+	private static final String USER_BARBOSSA_OID = "c0c010c0-d34d-b33f-f00d-111111111112";
+
+	private SecurityEnforcerImpl securityEnforcer;
+	private MidPointPrincipal principal;
+
+	@BeforeSuite
+	public void setup() throws SchemaException, SAXException, IOException {
+		PrettyPrinter.setDefaultNamespacePrefix(MidPointConstants.NS_MIDPOINT_PUBLIC_PREFIX);
+		PrismTestUtil.resetPrismContext(MidPointPrismContextFactory.FACTORY);
+	}
+
+	@BeforeMethod
+	public void login() throws SchemaException {
+		securityEnforcer = new SecurityEnforcerImpl();
+		ReflectionTestUtils.setField(securityEnforcer, "prismContext", PrismTestUtil.getPrismContext());
+		principal = new MidPointPrincipal(createUser(USER_JACK_OID, "jack").asObjectable());
+		securityEnforcer.setupPreAuthenticatedSecurityContext(new PreAuthenticatedAuthenticationToken(principal, null));
+	}
+
+	@AfterMethod
+	public void logout() {
+		SecurityContextHolder.clearContext();
+	}
+
+	@Test
+	public void test100AllowForObjectType() throws Exception {
+		final String TEST_NAME = "test100AllowForObjectType";
+		TestUtil.displayTestTile(TEST_NAME);
+		// GIVEN
+		addAuthorization(AuthorizationDecisionType.ALLOW, null, AUTZ_READ_URL, UserType.COMPLEX_TYPE);
+
+		// WHEN, THEN
+		assertAuthorized(true, AUTZ_READ_URL, null, createUser(USER_BARBOSSA_OID, "barbossa"));
+		assertAuthorized(false, AUTZ_READ_URL, null, createRole());
+		assertAuthorized(false, AUTZ_MODIFY_URL, null, createUser(USER_BARBOSSA_OID, "barbossa"));
+		// object specification is not applicable if there is no object
+		assertAuthorized(false, AUTZ_READ_URL, null, null);
+	}
+
+	@Test
+	public void test110DenyOverridesAllow() throws Exception {
+		final String TEST_NAME = "test110DenyOverridesAllow";
+		TestUtil.displayTestTile(TEST_NAME);
+		// GIVEN
+		addAuthorization(AuthorizationDecisionType.ALLOW, null, AuthorizationConstants.AUTZ_ALL_URL, null);
+		addAuthorization(AuthorizationDecisionType.DENY, null, AUTZ_DELETE_URL, UserType.COMPLEX_TYPE);
+
+		// WHEN, THEN
+		assertAuthorized(true, AUTZ_READ_URL, null, createUser(USER_BARBOSSA_OID, "barbossa"));
+		assertAuthorized(false, AUTZ_DELETE_URL, null, createUser(USER_BARBOSSA_OID, "barbossa"));
+		assertAuthorized(true, AUTZ_DELETE_URL, null, createRole());
+		assertAuthorized(true, AUTZ_DELETE_URL, null, null);
+	}
+
+	/**
+	 * Deny cannot be overridden by an allow that follows it.
+	 */
+	@Test
+	public void test120DenyBeforeAllow() throws Exception {
+		final String TEST_NAME = "test120DenyBeforeAllow";
+		TestUtil.displayTestTile(TEST_NAME);
+		// GIVEN
+		addAuthorization(AuthorizationDecisionType.DENY, null, AUTZ_DELETE_URL, UserType.COMPLEX_TYPE);
+		addAuthorization(AuthorizationDecisionType.ALLOW, null, AuthorizationConstants.AUTZ_ALL_URL, null);
+
+		// WHEN, THEN
+		assertAuthorized(false, AUTZ_DELETE_URL, null, createUser(USER_BARBOSSA_OID, "barbossa"));
+		assertAuthorized(true, AUTZ_DELETE_URL, null, createRole());
+	}
+
+	@Test
+	public void test130Phases() throws Exception {
+		final String TEST_NAME = "test130Phases";
+		TestUtil.displayTestTile(TEST_NAME);
+		// GIVEN
+		addAuthorization(AuthorizationDecisionType.ALLOW, AuthorizationPhaseType.REQUEST, AUTZ_MODIFY_URL, null);
+		addAuthorization(AuthorizationDecisionType.ALLOW, null, AUTZ_READ_URL, null);
+		PrismObject<UserType> user = createUser(USER_BARBOSSA_OID, "barbossa");
+
+		// WHEN, THEN
+		assertAuthorized(true, AUTZ_MODIFY_URL, AuthorizationPhaseType.REQUEST, user);
+		assertAuthorized(false, AUTZ_MODIFY_URL, AuthorizationPhaseType.EXECUTION, user);
+		// both phases are needed if no phase is specified
+		assertAuthorized(false, AUTZ_MODIFY_URL, null, user);
+		assertAuthorized(true, AUTZ_READ_URL, AuthorizationPhaseType.REQUEST, user);
+		assertAuthorized(true, AUTZ_READ_URL, AuthorizationPhaseType.EXECUTION, user);
+		assertAuthorized(true, AUTZ_READ_URL, null, user);
+	}
+
+	@Test
+	public void test140AllowedItems() throws Exception {
+		final String TEST_NAME = "test140AllowedItems";
+		TestUtil.displayTestTile(TEST_NAME);
+		// GIVEN
+		Authorization autz = addAuthorization(AuthorizationDecisionType.ALLOW, null, AUTZ_READ_URL, UserType.COMPLEX_TYPE);
+		autz.getItem().add(new ItemPathType(new ItemPath(UserType.F_NAME)));
+		PrismObject<UserType> userWithFullName = createUser(USER_BARBOSSA_OID, "barbossa");
+		userWithFullName.asObjectable().setFullName(PrismTestUtil.createPolyStringType("Hector Barbossa"));
+
+		// WHEN, THEN
+		assertAuthorized(true, AUTZ_READ_URL, null, createUser(USER_BARBOSSA_OID, "barbossa"));
+		assertAuthorized(false, AUTZ_READ_URL, null, userWithFullName);
+	}
+
+	@Test
+	public void test150Self() throws Exception {
+		final String TEST_NAME = "test150Self";
+		TestUtil.displayTestTile(TEST_NAME);
+		// GIVEN
+		Authorization autz = addAuthorization(AuthorizationDecisionType.ALLOW, null, AUTZ_READ_URL, null);
+		OwnedObjectSpecificationType objectSpec = new OwnedObjectSpecificationType();
+		objectSpec.getSpecial().add(SpecialObjectSpecificationType.SELF);
+		autz.getObject().add(objectSpec);
+
+		// WHEN, THEN
+		assertAuthorized(true, AUTZ_READ_URL, null, createUser(USER_JACK_OID, "jack"));
+		assertAuthorized(false, AUTZ_READ_URL, null, createUser(USER_BARBOSSA_OID, "barbossa"));
+	}
+
+	/**
+	 * Selections keep the order of the authorizations and leave out the authorizations for other actions,
+	 * phases and object types.
+	 */
+	@Test
+	public void test200Select() throws Exception {
+		final String TEST_NAME = "test200Select";
+		TestUtil.displayTestTile(TEST_NAME);
+		// GIVEN
+		Authorization allowAll = addAuthorization(AuthorizationDecisionType.ALLOW, null, AuthorizationConstants.AUTZ_ALL_URL, null);
+		Authorization denyDeleteUser = addAuthorization(AuthorizationDecisionType.DENY, null, AUTZ_DELETE_URL, UserType.COMPLEX_TYPE);
+		Authorization readRole = addAuthorization(AuthorizationDecisionType.ALLOW, AuthorizationPhaseType.REQUEST, AUTZ_READ_URL, RoleType.COMPLEX_TYPE);
+		CompiledAuthorizationCache cache = securityEnforcer.getCompiledAuthorizationCache();
+
+		// WHEN
+		CompiledAuthorizations compiled = cache.get(principal);
+
+		// THEN
+		assertEquals("Wrong selection", Arrays.asList(allowAll, denyDeleteUser),
+				compiled.select(AUTZ_DELETE_URL, AuthorizationPhaseType.REQUEST, true, UserType.COMPLEX_TYPE));
+		assertEquals("Wrong selection", Collections.singletonList(allowAll),
+				compiled.select(AUTZ_DELETE_URL, AuthorizationPhaseType.REQUEST, true, RoleType.COMPLEX_TYPE));
+		assertEquals("Wrong selection", Arrays.asList(allowAll, readRole),
+				compiled.select(AUTZ_READ_URL, AuthorizationPhaseType.REQUEST, true, RoleType.COMPLEX_TYPE));
+		assertEquals("Wrong selection", Collections.singletonList(readRole),
+				compiled.select(AUTZ_READ_URL, AuthorizationPhaseType.REQUEST, false, null));
+		assertEquals("Wrong selection", Collections.singletonList(allowAll),
+				compiled.select(AUTZ_READ_URL, AuthorizationPhaseType.EXECUTION, true, RoleType.COMPLEX_TYPE));
+		assertEquals("Wrong selection", Arrays.asList(allowAll, denyDeleteUser),
+				compiled.selectForObjectType(UserType.COMPLEX_TYPE));
+
+		// the same selection is memoized
+		long selectorHitsBefore = cache.getSelectorHits();
+		assertSame("Selection was not memoized",
+				compiled.select(AUTZ_DELETE_URL, AuthorizationPhaseType.REQUEST, true, UserType.COMPLEX_TYPE),
+				compiled.select(AUTZ_DELETE_URL, AuthorizationPhaseType.REQUEST, true, UserType.COMPLEX_TYPE));
+		assertEquals("Wrong selector hits", selectorHitsBefore + 2, cache.getSelectorHits());
+	}
+
+	/**
+	 * The compiled structure is reused while the authorizations of the principal are the same and compiled again
+	 * when they change (e.g. after the principal's roles were changed).
+	 */
+	@Test
+	public void test300RecompileWhenAuthorizationsChange() throws Exception {
+		final String TEST_NAME = "test300RecompileWhenAuthorizationsChange";
+		TestUtil.displayTestTile(TEST_NAME);
+		// GIVEN
+		addAuthorization(AuthorizationDecisionType.ALLOW, null, AUTZ_READ_URL, UserType.COMPLEX_TYPE);
+		CompiledAuthorizationCache cache = securityEnforcer.getCompiledAuthorizationCache();
+		PrismObject<UserType> user = createUser(USER_BARBOSSA_OID, "barbossa");
+		assertAuthorized(false, AUTZ_DELETE_URL, null, user);
+		CompiledAuthorizations compiledBefore = cache.get(principal);
+		assertSame("Compiled authorizations were not reused", compiledBefore, cache.get(principal));
+		long missesBefore = cache.getPrincipalMisses();
+
+		// WHEN
+		Authorization allowDelete = addAuthorization(AuthorizationDecisionType.ALLOW, null, AUTZ_DELETE_URL, UserType.COMPLEX_TYPE);
+
+		// THEN
+		assertAuthorized(true, AUTZ_DELETE_URL, null, user);
+		assertEquals("Authorizations were not compiled again", missesBefore + 1, cache.getPrincipalMisses());
+		CompiledAuthorizations compiledAfter = cache.get(principal);
+		assertNotSame("Compiled authorizations were not replaced", compiledBefore, compiledAfter);
+		assertTrue("Wrong compiled authorizations", compiledAfter.isCompiledFrom(principal.getAuthorities()));
+		assertEquals("Wrong number of cached principals", 1, cache.size());
+
+		// WHEN
+		principal.getAuthorities().remove(allowDelete);
+
+		// THEN
+		assertFalse("Stale compiled authorizations", compiledAfter.isCompiledFrom(principal.getAuthorities()));
+		assertAuthorized(false, AUTZ_DELETE_URL, null, user);
+		assertAuthorized(true, AUTZ_READ_URL, null, user);
+	}
+
+	/**
+	 * Replacing an authorization by another instance (e.g. a role was re-read) means that the principal has new
+	 * authorizations, even if the number of the authorizations is the same.
+	 */
+	@Test
+	public void test310RecompileWhenAuthorizationReplaced() throws Exception {
+		final String TEST_NAME = "test310RecompileWhenAuthorizationReplaced";
+		TestUtil.displayTestTile(TEST_NAME);
+		// GIVEN
+		Authorization allowDelete = addAuthorization(AuthorizationDecisionType.ALLOW, null, AUTZ_DELETE_URL, UserType.COMPLEX_TYPE);
+		PrismObject<UserType> user = createUser(USER_BARBOSSA_OID, "barbossa");
+		assertAuthorized(true, AUTZ_DELETE_URL, null, user);
+
+		// WHEN
+		principal.getAuthorities().remove(allowDelete);
+		addAuthorization(AuthorizationDecisionType.DENY, null, AUTZ_DELETE_URL, UserType.COMPLEX_TYPE);
+
+		// THEN
+		assertAuthorized(false, AUTZ_DELETE_URL, null, user);
+	}
+
+	/**
+	 * Evaluates the decision twice: the first evaluation may compile the authorizations, the second one is
+	 * evaluated from the memoized selections.
+	 */
+	private void assertAuthorized(boolean expected, String operationUrl, AuthorizationPhaseType phase,
+			PrismObject<?> object) throws SchemaException {
+		for (int i = 0; i < 2; i++) {
+			boolean authorized = securityEnforcer.isAuthorized(operationUrl, phase, (PrismObject) object, null, null, null);
+			assertEquals("Wrong decision for " + operationUrl + ", phase " + phase + ", object " + object
+					+ " (evaluation " + (i + 1) + ")", expected, authorized);
+		}
+	}
+
+	private Authorization addAuthorization(AuthorizationDecisionType decision, AuthorizationPhaseType phase, String action,
+			QName objectType) {
+		AuthorizationType authorizationType = new AuthorizationType();
+		authorizationType.setDecision(decision);
+		authorizationType.setPhase(phase);
+		authorizationType.getAction().add(action);
+		if (objectType != null) {
+			OwnedObjectSpecificationType objectSpec = new OwnedObjectSpecificationType();
+			objectSpec.setType(objectType);
+			authorizationType.getObject().add(objectSpec);
+		}
+		Authorization authorization = new Authorization(authorizationType);
+		principal.getAuthorities().add(authorization);
+		return authorization;
+	}
+
+	private PrismObject<UserType> createUser(String oid, String name) throws SchemaException {
+		PrismObject<UserType> user = new UserType().asPrismObject();
+		PrismTestUtil.getPrismContext().adopt(user);
+		user.setOid(oid);
+		user.asObjectable().setName(PrismTestUtil.createPolyStringType(name));
+		return user;
+	}
+
+	private PrismObject<RoleType> createRole() throws SchemaException {
+		PrismObject<RoleType> role = new RoleType().asPrismObject();
+		PrismTestUtil.getPrismContext().adopt(role);
+		role.setOid("12345678-d34d-b33f-f00d-987987987988");
+		role.asObjectable().setName(PrismTestUtil.createPolyStringType("captain"));
+		return role;
+	}
+}
@@ -32,7 +32,9 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author lazyman
@@ -47,6 +49,7 @@ public class AuditFactory implements ApplicationContextAware, RuntimeConfigurati
     @Autowired
     MidpointConfiguration midpointConfiguration;
     private List<AuditServiceFactory> serviceFactories = new ArrayList<AuditServiceFactory>();
+    private Map<AuditServiceFactory, AuditService> createdServices = new LinkedHashMap<>();
     private AuditService auditService;
 
     public void init() {
@@ -93,7 +96,15 @@ public class AuditFactory implements ApplicationContextAware, RuntimeConfigurati
     }
 
     public void destroy() {
-
+        // e.g. asynchronous audit services have to write their queues
+        for (Map.Entry<AuditServiceFactory, AuditService> entry : createdServices.entrySet()) {
+            try {
+                entry.getKey().destroyService(entry.getValue());
+            } catch (Exception ex) {
+                LoggingUtils.logException(LOGGER, "Couldn't destroy audit service from factory '{}'", ex, entry.getKey());
+            }
+        }
+        createdServices.clear();
     }
 
     public AuditService getAuditService() {
@@ -106,6 +117,7 @@ public class AuditFactory implements ApplicationContextAware, RuntimeConfigurati
                     applicationContext.getAutowireCapableBeanFactory().autowireBean(service);
 
                     proxy.registerService(service);
+                    createdServices.put(factory, service);
                 } catch (Exception ex) {
                     LoggingUtils.logException(LOGGER, "Couldn't get audit service from factory '{}'", ex, factory);
                     throw new SystemException(ex.getMessage(), ex);
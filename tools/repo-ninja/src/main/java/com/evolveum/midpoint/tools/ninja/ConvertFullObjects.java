@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2010-2016 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.tools.ninja;
+
+import com.evolveum.midpoint.repo.api.RepositoryService;
+import com.evolveum.midpoint.repo.sql.SqlRepositoryServiceImpl;
+import com.evolveum.midpoint.schema.result.OperationResult;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+/**
+ * Rewrites full objects stored in SQL repository into the format set by fullObjectFormat
+ * repository configuration property (xml or binary).
+ *
+ * @author agent
+ */
+public class ConvertFullObjects extends BaseNinjaAction {
+
+    public boolean execute() {
+        System.out.println("Starting full objects conversion.");
+
+        boolean success = true;
+        ClassPathXmlApplicationContext context = null;
+        try {
+            System.out.println("Loading spring contexts.");
+            context = new ClassPathXmlApplicationContext(CONTEXTS);
+
+            RepositoryService repository = context.getBean("repositoryService", RepositoryService.class);
+            if (!(repository instanceof SqlRepositoryServiceImpl)) {
+                System.out.println("Full objects conversion is supported only for SQL repository, not for "
+                        + repository.getClass().getName());
+                return false;
+            }
+
+            OperationResult result = new OperationResult("Convert full objects");
+            ((SqlRepositoryServiceImpl) repository).convertFullObjects(result);
+            result.computeStatusIfUnknown();
+            System.out.println("Conversion result: " + result.getStatus());
+            success = result.isSuccess();
+        } catch (Exception ex) {
+            System.out.println("Exception occurred during full objects conversion, reason: " + ex.getMessage());
+            ex.printStackTrace();
+
+            success = false;
+        } finally {
+            destroyContext(context);
+        }
+
+        System.out.println("Full objects conversion finished.");
+        return success;
+    }
+}
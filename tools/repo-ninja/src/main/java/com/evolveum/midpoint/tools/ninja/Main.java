@@ -46,6 +46,8 @@ public class Main {
     public static final Option outputFormat = new Option("f", "format", true, "Output format to which will be file serialized");
     public static final Option outputDirectory = new Option("out", "outDirectory", true, "Output directory - where the serialized fie will be saved");
     public static final Option input = new Option("in", "input", true, "Input - file or directory with files that need to be transformed");
+    public static final Option convertFullObjects = new Option("m", "convert-full-objects", false,
+            "Convert full objects stored in SQL repository to the format set by fullObjectFormat repository configuration property.");
 
 
     public static void main(String[] args) {
@@ -66,6 +68,7 @@ public class Main {
         options.addOption(outputFormat);
         options.addOption(outputDirectory);
         options.addOption(input);
+        options.addOption(convertFullObjects);
 
         try {
             CommandLineParser parser = new GnuParser();
@@ -103,6 +106,11 @@ public class Main {
                 objects.execute();
             }
             
+            if (valid && line.hasOption(convertFullObjects.getOpt())) {
+                ConvertFullObjects conversion = new ConvertFullObjects();
+                conversion.execute();
+            }
+
             if (line.hasOption(keyStore.getOpt())){
             	KeyStoreDumper keyStoreDumper = new KeyStoreDumper();
             	keyStoreDumper.execute();